@@ -102,6 +102,20 @@ public abstract class AbstractAsynchronousCache implements ArtifactCache {
 
   protected abstract FetchResult fetchImpl(RuleKey ruleKey, LazyPath output) throws IOException;
 
+  /**
+   * Fetches an artifact for {@link #fetchAsync(RuleKey, LazyPath, ArtifactPayloadConsumer)}. By
+   * default this fetches it to output and reads it back, caches which are able to should override
+   * this to hand over the artifact while it is being downloaded.
+   */
+  protected FetchResult fetchImpl(
+      RuleKey ruleKey, LazyPath output, ArtifactPayloadConsumer payloadConsumer)
+      throws IOException {
+    FetchResult fetchResult = fetchImpl(ruleKey, output);
+    return fetchResult.withCacheResult(
+        ArtifactPayloadConsumers.consumeFetchedFile(
+            fetchResult.getCacheResult(), output, payloadConsumer));
+  }
+
   protected abstract MultiContainsResult multiContainsImpl(ImmutableSet<RuleKey> ruleKeys)
       throws IOException;
 
@@ -154,7 +168,8 @@ public abstract class AbstractAsynchronousCache implements ArtifactCache {
             thisRequest.reschedule();
           } else {
             requestEvents.finished(i, thisResult);
-            thisRequest.setResult(thisResult.getCacheResult());
+            thisRequest.setResult(
+                consumeIfRequested(thisRequest.getRequest(), thisResult.getCacheResult()));
           }
         }
         gotNonError =
@@ -199,7 +214,11 @@ public abstract class AbstractAsynchronousCache implements ArtifactCache {
     CacheEventListener.FetchRequestEvents requestEvents =
         eventListener.fetchStarted(request.getRuleKey());
     try {
-      FetchResult fetchResult = fetchImpl(request.getRuleKey(), request.getOutput());
+      FetchResult fetchResult =
+          request.getPayloadConsumer().isPresent()
+              ? fetchImpl(
+                  request.getRuleKey(), request.getOutput(), request.getPayloadConsumer().get())
+              : fetchImpl(request.getRuleKey(), request.getOutput());
       result = fetchResult.getCacheResult();
       requestEvents.finished(fetchResult);
     } catch (IOException e) {
@@ -212,6 +231,14 @@ public abstract class AbstractAsynchronousCache implements ArtifactCache {
     request.future.set(result);
   }
 
+  private static CacheResult consumeIfRequested(FetchRequest request, CacheResult result) {
+    if (!request.getPayloadConsumer().isPresent()) {
+      return result;
+    }
+    return ArtifactPayloadConsumers.consumeFetchedFile(
+        result, request.getOutput(), request.getPayloadConsumer().get());
+  }
+
   private void processFetch() {
     try {
       int multiFetchLimit =
@@ -314,6 +341,15 @@ public abstract class AbstractAsynchronousCache implements ArtifactCache {
     return future;
   }
 
+  @Override
+  public final ListenableFuture<CacheResult> fetchAsync(
+      RuleKey ruleKey, LazyPath output, ArtifactPayloadConsumer payloadConsumer) {
+    eventListener.fetchScheduled(ruleKey);
+    SettableFuture<CacheResult> future = SettableFuture.create();
+    addFetchRequest(new FetchRequest(ruleKey, output, Optional.of(payloadConsumer), future));
+    return future;
+  }
+
   @Override
   public final ListenableFuture<ImmutableMap<RuleKey, CacheResult>> multiContainsAsync(
       ImmutableSet<RuleKey> ruleKeys) {
@@ -448,12 +484,22 @@ public abstract class AbstractAsynchronousCache implements ArtifactCache {
   protected static class FetchRequest {
     private final RuleKey ruleKey;
     private final LazyPath output;
+    private final Optional<ArtifactPayloadConsumer> payloadConsumer;
     private final SettableFuture<CacheResult> future;
 
     @VisibleForTesting
     protected FetchRequest(RuleKey ruleKey, LazyPath output, SettableFuture<CacheResult> future) {
+      this(ruleKey, output, Optional.empty(), future);
+    }
+
+    private FetchRequest(
+        RuleKey ruleKey,
+        LazyPath output,
+        Optional<ArtifactPayloadConsumer> payloadConsumer,
+        SettableFuture<CacheResult> future) {
       this.ruleKey = ruleKey;
       this.output = output;
+      this.payloadConsumer = payloadConsumer;
       this.future = future;
     }
 
@@ -464,6 +510,10 @@ public abstract class AbstractAsynchronousCache implements ArtifactCache {
     public LazyPath getOutput() {
       return output;
     }
+
+    public Optional<ArtifactPayloadConsumer> getPayloadConsumer() {
+      return payloadConsumer;
+    }
   }
 
   /** Return type used by the implementations of this abstract class. */
@@ -69,4 +69,67 @@ abstract class AbstractCacheCountersSummary {
   @Value.Parameter
   @JsonView(JsonViews.MachineReadableLog.class)
   public abstract AtomicInteger getFailureUploadCount();
+
+  /** The number of artifacts fetched ahead of the build needing them. */
+  @Value.Default
+  @JsonView(JsonViews.MachineReadableLog.class)
+  public int getTotalPrefetches() {
+    return 0;
+  }
+
+  /** The number of prefetches which found their artifact in the cache. */
+  @Value.Default
+  @JsonView(JsonViews.MachineReadableLog.class)
+  public int getTotalPrefetchHits() {
+    return 0;
+  }
+
+  /** The number of prefetches whose result was used by the build. */
+  @Value.Default
+  @JsonView(JsonViews.MachineReadableLog.class)
+  public int getTotalPrefetchesUsed() {
+    return 0;
+  }
+
+  /** The number of prefetched artifacts which were never used by the build. */
+  @Value.Default
+  @JsonView(JsonViews.MachineReadableLog.class)
+  public int getTotalPrefetchesWasted() {
+    return 0;
+  }
+
+  /** The total size of the prefetched artifacts which were never used by the build. */
+  @Value.Default
+  @JsonView(JsonViews.MachineReadableLog.class)
+  public long getPrefetchWastedBytes() {
+    return 0;
+  }
+
+  /** The number of artifacts served from the daemon's memory. */
+  @Value.Default
+  @JsonView(JsonViews.MachineReadableLog.class)
+  public int getTotalMemoryCacheHits() {
+    return 0;
+  }
+
+  /** The number of artifacts looked up in the daemon's memory and fetched from a cache instead. */
+  @Value.Default
+  @JsonView(JsonViews.MachineReadableLog.class)
+  public int getTotalMemoryCacheMisses() {
+    return 0;
+  }
+
+  /** The number of artifacts evicted from the daemon's memory to make room for others. */
+  @Value.Default
+  @JsonView(JsonViews.MachineReadableLog.class)
+  public long getMemoryCacheEvictions() {
+    return 0;
+  }
+
+  /** The size of the artifacts in the daemon's memory at the end of the command. */
+  @Value.Default
+  @JsonView(JsonViews.MachineReadableLog.class)
+  public long getMemoryCacheSizeBytes() {
+    return 0;
+  }
 }
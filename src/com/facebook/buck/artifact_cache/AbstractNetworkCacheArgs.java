@@ -54,4 +54,10 @@ interface AbstractNetworkCacheArgs {
   String getErrorTextTemplate();
 
   Optional<Long> getMaxStoreSizeBytes();
+
+  /** Whether fetched artifacts may be handed over while they are still being downloaded. */
+  @Value.Default
+  default boolean getStreamingFetchEnabled() {
+    return false;
+  }
 }
@@ -22,7 +22,9 @@ import com.facebook.buck.io.file.LazyPath;
 import com.facebook.buck.rules.RuleKey;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 import java.util.List;
 
 public interface ArtifactCache extends AutoCloseable {
@@ -38,6 +40,28 @@ public interface ArtifactCache extends AutoCloseable {
    */
   ListenableFuture<CacheResult> fetchAsync(RuleKey ruleKey, LazyPath output);
 
+  /**
+   * Fetch a cached artifact, keyed by ruleKey, and pass its contents to payloadConsumer. Caches
+   * that support it hand over the artifact while it is being downloaded, so that it can be
+   * processed without being written to disk first, the others fetch it to output and read it back.
+   *
+   * @param ruleKey cache fetch key
+   * @param output Path the artifact may be stored to before it is consumed. Its contents are
+   *     unspecified once the fetch completes.
+   * @param payloadConsumer receives the artifact. On a successful fetch, it has been called at
+   *     least once, and the last call received the fetched artifact.
+   * @return whether it was a {@link CacheResultType#MISS} (indicating a failure) or some type of
+   *     hit.
+   */
+  default ListenableFuture<CacheResult> fetchAsync(
+      RuleKey ruleKey, LazyPath output, ArtifactPayloadConsumer payloadConsumer) {
+    return Futures.transform(
+        fetchAsync(ruleKey, output),
+        (CacheResult result) ->
+            ArtifactPayloadConsumers.consumeFetchedFile(result, output, payloadConsumer),
+        MoreExecutors.directExecutor());
+  }
+
   /**
    * Store the artifact at path specified by output to cache, such that it can later be fetched
    * using ruleKey as the lookup key. If any internal errors occur, fail silently and continue
@@ -47,7 +71,8 @@ public interface ArtifactCache extends AutoCloseable {
    *
    * @param info information to store with the artifact
    * @param output path to read artifact from. If its borrowable, you may freely move the file into
-   *     cache without obtaining a copy of the file.
+   *     cache without obtaining a copy of the file. Callers may delete or move it as soon as this
+   *     returns, so stores which complete later have to work from a copy of their own.
    * @return {@link ListenableFuture} that completes once the store has finished.
    */
   ListenableFuture<Void> store(ArtifactInfo info, BorrowablePath output);
@@ -38,18 +38,26 @@ import com.facebook.buck.util.AsyncCloseable;
 import com.facebook.buck.util.HumanReadableException;
 import com.facebook.buck.util.randomizedtrial.RandomizedTrial;
 import com.facebook.buck.util.timing.DefaultClock;
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.CharMatcher;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import java.io.IOException;
 import java.net.URI;
 import java.nio.file.Path;
 import java.sql.SQLException;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import okhttp3.ConnectionPool;
 import okhttp3.Dispatcher;
@@ -68,6 +76,8 @@ import okio.Source;
 public class ArtifactCaches implements ArtifactCacheFactory {
 
   private static final Logger LOG = Logger.get(ArtifactCaches.class);
+  private static final long DIR_CACHE_THREAD_KEEP_ALIVE_SECONDS = 10;
+  private static final int DIR_CACHE_MAX_QUEUED_TASKS = 1000;
 
   private final ArtifactCacheBuckConfig buckConfig;
   private final BuckEventBus buckEventBus;
@@ -76,6 +86,9 @@ public class ArtifactCaches implements ArtifactCacheFactory {
   private final ListeningExecutorService httpWriteExecutorService;
   private final ListeningExecutorService httpFetchExecutorService;
   private final Optional<AsyncCloseable> asyncCloseable;
+  private final Optional<MemoryArtifactStore> memoryArtifactStore;
+  // Picked once, so that the multi-fetch experiment is reported once however many caches there are.
+  private final Supplier<Integer> thriftMultiFetchLimit;
 
   private interface NetworkCacheFactory {
     ArtifactCache newInstance(NetworkCacheArgs args);
@@ -98,6 +111,32 @@ public class ArtifactCaches implements ArtifactCacheFactory {
       ListeningExecutorService httpWriteExecutorService,
       ListeningExecutorService httpFetchExecutorService,
       Optional<AsyncCloseable> asyncCloseable) {
+    this(
+        buckConfig,
+        buckEventBus,
+        projectFilesystem,
+        wifiSsid,
+        httpWriteExecutorService,
+        httpFetchExecutorService,
+        asyncCloseable,
+        Optional.empty());
+  }
+
+  /**
+   * Creates a new instance of the cache factory for use during a build.
+   *
+   * @param memoryArtifactStore artifacts kept in memory by the daemon, served before any of the
+   *     configured caches are asked
+   */
+  public ArtifactCaches(
+      ArtifactCacheBuckConfig buckConfig,
+      BuckEventBus buckEventBus,
+      ProjectFilesystem projectFilesystem,
+      Optional<String> wifiSsid,
+      ListeningExecutorService httpWriteExecutorService,
+      ListeningExecutorService httpFetchExecutorService,
+      Optional<AsyncCloseable> asyncCloseable,
+      Optional<MemoryArtifactStore> memoryArtifactStore) {
     this.buckConfig = buckConfig;
     this.buckEventBus = buckEventBus;
     this.projectFilesystem = projectFilesystem;
@@ -105,6 +144,9 @@ public class ArtifactCaches implements ArtifactCacheFactory {
     this.httpWriteExecutorService = httpWriteExecutorService;
     this.httpFetchExecutorService = httpFetchExecutorService;
     this.asyncCloseable = asyncCloseable;
+    this.memoryArtifactStore = memoryArtifactStore;
+    this.thriftMultiFetchLimit =
+        Suppliers.memoize(() -> getMultiFetchLimit(buckConfig, buckEventBus));
   }
 
   private static Request.Builder addHeadersToBuilder(
@@ -146,7 +188,9 @@ public class ArtifactCaches implements ArtifactCacheFactory {
             httpWriteExecutorService,
             httpFetchExecutorService,
             onlyRemote,
-            distributedBuildModeEnabled);
+            distributedBuildModeEnabled,
+            onlyRemote ? Optional.empty() : memoryArtifactStore,
+            thriftMultiFetchLimit);
 
     if (asyncCloseable.isPresent()) {
       artifactCache = asyncCloseable.get().closeAsync(artifactCache);
@@ -165,7 +209,8 @@ public class ArtifactCaches implements ArtifactCacheFactory {
         wifiSsid,
         httpWriteExecutorService,
         httpFetchExecutorService,
-        asyncCloseable);
+        asyncCloseable,
+        memoryArtifactStore);
   }
 
   /**
@@ -179,7 +224,13 @@ public class ArtifactCaches implements ArtifactCacheFactory {
       ArtifactCacheBuckConfig buckConfig, final ProjectFilesystem projectFilesystem) {
     return buckConfig
         .getServedLocalCache()
-        .map(input -> createDirArtifactCache(Optional.empty(), input, projectFilesystem));
+        .map(
+            input ->
+                createDirArtifactCache(
+                    Optional.empty(),
+                    input,
+                    projectFilesystem,
+                    buckConfig.getDirCacheIoThreads()));
   }
 
   private static ArtifactCache newInstanceInternal(
@@ -190,7 +241,9 @@ public class ArtifactCaches implements ArtifactCacheFactory {
       ListeningExecutorService httpWriteExecutorService,
       ListeningExecutorService httpFetchExecutorService,
       boolean onlyRemote,
-      boolean distributedBuildModeEnabled) {
+      boolean distributedBuildModeEnabled,
+      Optional<MemoryArtifactStore> memoryArtifactStore,
+      Supplier<Integer> thriftMultiFetchLimit) {
     ImmutableSet<ArtifactCacheMode> modes = buckConfig.getArtifactCacheModes();
     if (modes.isEmpty()) {
       return new NoopArtifactCache();
@@ -201,7 +254,8 @@ public class ArtifactCaches implements ArtifactCacheFactory {
       switch (mode) {
         case dir:
           if (!onlyRemote) {
-            initializeDirCaches(cacheEntries, buckEventBus, projectFilesystem, builder);
+            initializeDirCaches(
+                cacheEntries, buckConfig, buckEventBus, projectFilesystem, builder);
           }
           break;
         case http:
@@ -214,7 +268,11 @@ public class ArtifactCaches implements ArtifactCacheFactory {
               httpWriteExecutorService,
               httpFetchExecutorService,
               builder,
-              HttpArtifactCache::new,
+              (args) ->
+                  new HttpArtifactCache(
+                      args,
+                      buckConfig.getHttpMultiFetchEnabled() ? buckConfig.getMultiFetchLimit() : 0,
+                      buckConfig.getHttpFetchConcurrency()),
               mode);
           break;
         case sqlite:
@@ -240,7 +298,7 @@ public class ArtifactCaches implements ArtifactCacheFactory {
                       args,
                       buckConfig.getHybridThriftEndpoint().get(),
                       distributedBuildModeEnabled,
-                      getMultiFetchLimit(buckConfig, buckEventBus),
+                      thriftMultiFetchLimit.get(),
                       buckConfig.getHttpFetchConcurrency()),
               mode);
           break;
@@ -256,6 +314,20 @@ public class ArtifactCaches implements ArtifactCacheFactory {
       result = new MultiArtifactCache(artifactCaches);
     }
 
+    if (memoryArtifactStore.isPresent()) {
+      result = new MemoryArtifactCacheDecorator(result, memoryArtifactStore.get(), buckEventBus);
+    }
+
+    // Always support reading chunked cache stores (in case we performed any in the past).
+    result =
+        new ChunkedArtifactCacheDecorator(
+            result,
+            projectFilesystem,
+            buckEventBus,
+            buckConfig.getChunkedCachingEnabled(),
+            buckConfig.getChunkedCachingMinimumSize(),
+            buckConfig.getChunkedCachingAverageChunkSize());
+
     // Always support reading two-level cache stores (in case we performed any in the past).
     result =
         new TwoLevelArtifactCacheDecorator(
@@ -271,12 +343,17 @@ public class ArtifactCaches implements ArtifactCacheFactory {
 
   private static void initializeDirCaches(
       ArtifactCacheEntries artifactCacheEntries,
+      ArtifactCacheBuckConfig buckConfig,
       BuckEventBus buckEventBus,
       ProjectFilesystem projectFilesystem,
       ImmutableList.Builder<ArtifactCache> builder) {
     for (DirCacheEntry cacheEntry : artifactCacheEntries.getDirCacheEntries()) {
       builder.add(
-          createDirArtifactCache(Optional.ofNullable(buckEventBus), cacheEntry, projectFilesystem));
+          createDirArtifactCache(
+              Optional.ofNullable(buckEventBus),
+              cacheEntry,
+              projectFilesystem,
+              buckConfig.getDirCacheIoThreads()));
     }
   }
 
@@ -332,7 +409,8 @@ public class ArtifactCaches implements ArtifactCacheFactory {
   private static ArtifactCache createDirArtifactCache(
       Optional<BuckEventBus> buckEventBus,
       DirCacheEntry dirCacheConfig,
-      ProjectFilesystem projectFilesystem) {
+      ProjectFilesystem projectFilesystem,
+      int ioThreads) {
     Path cacheDir = dirCacheConfig.getCacheDir();
     try {
       DirArtifactCache dirArtifactCache =
@@ -341,7 +419,12 @@ public class ArtifactCaches implements ArtifactCacheFactory {
               projectFilesystem,
               cacheDir,
               dirCacheConfig.getCacheReadMode(),
-              dirCacheConfig.getMaxSizeBytes());
+              dirCacheConfig.getMaxSizeBytes(),
+              newDirCacheExecutorService(
+                  "dir-cache-io-%d", ioThreads, DIR_CACHE_MAX_QUEUED_TASKS),
+              newDirCacheExecutorService(
+                  "dir-cache-eviction-%d", 1, DIR_CACHE_MAX_QUEUED_TASKS),
+              buckEventBus);
 
       if (!buckEventBus.isPresent()) {
         return dirArtifactCache;
@@ -358,6 +441,35 @@ public class ArtifactCaches implements ArtifactCacheFactory {
     }
   }
 
+  /**
+   * Creates an executor which queues at most {@code maxQueuedTasks} tasks. Tasks submitted while
+   * the queue is full are run by the thread submitting them, so that callers which submit faster
+   * than the cache keeps up are slowed down to its pace, rather than queue up work without bound.
+   * Tasks submitted once the executor is shut down are rejected, as usual.
+   */
+  @VisibleForTesting
+  static ListeningExecutorService newDirCacheExecutorService(
+      String nameFormat, int threads, int maxQueuedTasks) {
+    // The threads are allowed to die when idle, so caches that are never closed don't leak them.
+    ThreadPoolExecutor executor =
+        new ThreadPoolExecutor(
+            threads,
+            threads,
+            DIR_CACHE_THREAD_KEEP_ALIVE_SECONDS,
+            TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(maxQueuedTasks),
+            new ThreadFactoryBuilder().setNameFormat(nameFormat).setDaemon(true).build(),
+            (task, rejectingExecutor) -> {
+              // Unlike CallerRunsPolicy, which silently drops the task, leaving its future pending.
+              if (rejectingExecutor.isShutdown()) {
+                throw new RejectedExecutionException("Directory cache is closed.");
+              }
+              task.run();
+            });
+    executor.allowCoreThreadTimeOut(true);
+    return MoreExecutors.listeningDecorator(executor);
+  }
+
   private static ArtifactCache createRetryingArtifactCache(
       HttpCacheEntry cacheDescription,
       final String hostToReportToRemote,
@@ -504,6 +616,7 @@ public class ArtifactCaches implements ArtifactCacheFactory {
             .setHttpWriteExecutorService(httpWriteExecutorService)
             .setHttpFetchExecutorService(httpFetchExecutorService)
             .setErrorTextTemplate(cacheDescription.getErrorMessageFormat())
+            .setStreamingFetchEnabled(config.getHttpStreamingFetchEnabled())
             .build());
   }
 
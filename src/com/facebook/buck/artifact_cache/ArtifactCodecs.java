@@ -0,0 +1,182 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.artifact_cache;
+
+import com.facebook.buck.artifact_cache.config.ArtifactCompression;
+import com.facebook.buck.artifact_cache.config.ArtifactCompressionCodec;
+import com.facebook.buck.io.filesystem.ProjectFilesystem;
+import com.facebook.buck.rules.RuleKey;
+import com.facebook.buck.util.zip.Lz4FrameInputStream;
+import com.facebook.buck.util.zip.Lz4FrameOutputStream;
+import com.facebook.buck.util.zip.Zip;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.hash.Hashing;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.Locale;
+import java.util.zip.Deflater;
+
+/**
+ * Writes and reads artifacts compressed with one of the {@link ArtifactCompressionCodec}s.
+ *
+ * <p>Whatever the codec, an artifact is a zip archive of the build outputs. The codec is recorded
+ * in the metadata of the artifact, under {@link #METADATA_KEY}, which readers check before
+ * unpacking it. Artifacts stored before codecs were configurable have no codec recorded, and are
+ * deflated.
+ *
+ * <p>Artifacts which aren't plain zip archives are stored under a key of their own for each
+ * codec, see {@link #getArtifactKey}, so that versions of buck which can't read them miss rather
+ * than fail to unpack them.
+ */
+public class ArtifactCodecs {
+
+  public static final String METADATA_KEY = "ARTIFACT_COMPRESSION_CODEC";
+
+  private ArtifactCodecs() {}
+
+  /**
+   * @return the key to store and fetch the artifact of {@code ruleKey} under, when it's compressed
+   *     with {@code codec}.
+   */
+  public static RuleKey getArtifactKey(RuleKey ruleKey, ArtifactCompressionCodec codec) {
+    switch (codec) {
+      case STORED:
+      case DEFLATE:
+        return ruleKey;
+      case LZ4:
+        return new RuleKey(
+            Hashing.sha1()
+                .newHasher()
+                .putBytes(ruleKey.getHashCode().asBytes())
+                .putString(getName(codec), StandardCharsets.UTF_8)
+                .hash());
+    }
+    throw new IllegalStateException("Unhandled artifact compression codec " + codec);
+  }
+
+  /** @return the keys to store an artifact compressed with {@code codec} under. */
+  public static ImmutableSet<RuleKey> getArtifactKeys(
+      ImmutableSet<RuleKey> ruleKeys, ArtifactCompressionCodec codec) {
+    return ruleKeys
+        .stream()
+        .map(ruleKey -> getArtifactKey(ruleKey, codec))
+        .collect(ImmutableSet.toImmutableSet());
+  }
+
+  /** @return the metadata to store an artifact compressed with {@code compression} with. */
+  public static ImmutableMap<String, String> addCodecToMetadata(
+      ImmutableMap<String, String> metadata, ArtifactCompression compression) {
+    return ImmutableMap.<String, String>builder()
+        .putAll(metadata)
+        .put(METADATA_KEY, getName(compression.getCodec()))
+        .build();
+  }
+
+  /**
+   * @return the codec of an artifact, given its metadata.
+   * @throws IOException if the artifact was stored with a codec this version doesn't know.
+   */
+  public static ArtifactCompressionCodec getCodec(ImmutableMap<String, String> metadata)
+      throws IOException {
+    String name = metadata.get(METADATA_KEY);
+    if (name == null) {
+      return ArtifactCompressionCodec.DEFLATE;
+    }
+    try {
+      return ArtifactCompressionCodec.valueOf(name.toUpperCase(Locale.ROOT));
+    } catch (IllegalArgumentException e) {
+      throw new IOException(String.format("Unknown artifact compression codec %s.", name), e);
+    }
+  }
+
+  public static String getName(ArtifactCompressionCodec codec) {
+    return codec.toString().toLowerCase(Locale.ROOT);
+  }
+
+  /** Writes an artifact containing {@code paths}, compressed with {@code compression}, to out. */
+  public static void compress(
+      ProjectFilesystem projectFilesystem,
+      Collection<Path> paths,
+      Path out,
+      ArtifactCompression compression)
+      throws IOException {
+    OutputStream outputStream = new BufferedOutputStream(Files.newOutputStream(out));
+    switch (compression.getCodec()) {
+      case STORED:
+        Zip.create(projectFilesystem, paths, outputStream, Deflater.NO_COMPRESSION);
+        break;
+      case DEFLATE:
+        Zip.create(projectFilesystem, paths, outputStream, compression.getLevel());
+        break;
+      case LZ4:
+        // Compressing the whole archive rather than each entry finds matches across files too.
+        Zip.create(
+            projectFilesystem,
+            paths,
+            new Lz4FrameOutputStream(outputStream),
+            Deflater.NO_COMPRESSION);
+        break;
+    }
+  }
+
+  /**
+   * @return a stream of the zip archive held by {@code payload}, an artifact compressed with {@code
+   *     codec}.
+   */
+  public static InputStream decompress(ArtifactCompressionCodec codec, InputStream payload)
+      throws IOException {
+    switch (codec) {
+      case LZ4:
+        return new Lz4FrameInputStream(payload);
+      case STORED:
+      case DEFLATE:
+        return payload;
+    }
+    throw new IllegalStateException("Unhandled artifact compression codec " + codec);
+  }
+
+  /**
+   * Decompresses an artifact file, compressed with {@code codec}, to the zip archive it holds.
+   *
+   * @return the path of the zip archive, which is {@code artifact} itself unless it had to be
+   *     decompressed to {@code zip}.
+   */
+  public static Path decompressToZip(ArtifactCompressionCodec codec, Path artifact, Path zip)
+      throws IOException {
+    switch (codec) {
+      case STORED:
+      case DEFLATE:
+        return artifact;
+      case LZ4:
+        try (InputStream in =
+            decompress(codec, new BufferedInputStream(Files.newInputStream(artifact)))) {
+          Files.copy(in, zip, StandardCopyOption.REPLACE_EXISTING);
+        }
+        return zip;
+    }
+    throw new IllegalStateException("Unhandled artifact compression codec " + codec);
+  }
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.artifact_cache;
+
+import com.google.common.collect.ImmutableMap;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Receives the contents of an artifact fetched from an {@link ArtifactCache}, possibly while it is
+ * still being downloaded.
+ *
+ * <p>A cache may call {@link #consume} more than once for a single fetch, for example when it
+ * retries after a failed download or falls back to another cache, so each call must discard
+ * whatever the previous call produced. Only the last call made before the fetch succeeds describes
+ * the fetched artifact.
+ */
+@FunctionalInterface
+public interface ArtifactPayloadConsumer {
+
+  /**
+   * @param metadata the metadata stored with the artifact, which describes how to read it.
+   * @param payload the contents of the artifact. It may be read straight from the network, so it
+   *     hasn't necessarily been checked for integrity yet: if the fetch ends up not succeeding the
+   *     consumed data must be thrown away. Consumers don't need to read it to the end, and must not
+   *     close it.
+   */
+  void consume(ImmutableMap<String, String> metadata, InputStream payload) throws IOException;
+}
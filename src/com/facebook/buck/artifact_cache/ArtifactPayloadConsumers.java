@@ -0,0 +1,79 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.artifact_cache;
+
+import com.facebook.buck.io.TeeInputStream;
+import com.facebook.buck.io.file.LazyPath;
+import com.facebook.buck.log.Logger;
+import com.google.common.io.ByteStreams;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/** Helpers for caches implementing fetches that pass artifacts to an ArtifactPayloadConsumer. */
+class ArtifactPayloadConsumers {
+
+  private static final Logger LOG = Logger.get(ArtifactPayloadConsumers.class);
+
+  private ArtifactPayloadConsumers() {}
+
+  /**
+   * Hands an artifact which has been fetched to {@code output} to {@code payloadConsumer}, for
+   * caches that can't pass it on while downloading it. Failing to consume the artifact turns {@code
+   * result} into an error.
+   */
+  static CacheResult consumeFetchedFile(
+      CacheResult result, LazyPath output, ArtifactPayloadConsumer payloadConsumer) {
+    if (result.getType() != CacheResultType.HIT) {
+      return result;
+    }
+    Path file = output.getUnchecked();
+    try (InputStream payload = Files.newInputStream(file)) {
+      payloadConsumer.consume(result.getMetadata(), payload);
+      return result;
+    } catch (IOException e) {
+      LOG.warn(e, "Failed to consume artifact fetched to %s.", file);
+      return CacheResult.error(
+          result.getCacheSource(),
+          result.cacheMode().get(),
+          String.format("consume(%s): %s: %s", file, e.getClass().getName(), e.getMessage()));
+    }
+  }
+
+  /**
+   * Returns a consumer which passes payloads on to {@code payloadConsumer} while also writing them
+   * to {@code file}, for callers which need the artifact on disk as well.
+   */
+  static ArtifactPayloadConsumer teeTo(Path file, ArtifactPayloadConsumer payloadConsumer) {
+    return (metadata, payload) -> {
+      try (OutputStream output = Files.newOutputStream(file)) {
+        InputStream teeInputStream =
+            new TeeInputStream(payload, output) {
+              @Override
+              public long skip(long n) throws IOException {
+                // Skipped bytes still need to make it to the file.
+                return ByteStreams.copy(ByteStreams.limit(in, n), output);
+              }
+            };
+        payloadConsumer.consume(metadata, teeInputStream);
+        ByteStreams.copy(payload, output);
+      }
+    };
+  }
+}
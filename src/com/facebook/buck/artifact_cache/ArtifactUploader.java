@@ -16,6 +16,7 @@
 
 package com.facebook.buck.artifact_cache;
 
+import com.facebook.buck.artifact_cache.config.ArtifactCompression;
 import com.facebook.buck.event.ArtifactCompressionEvent;
 import com.facebook.buck.event.BuckEventBus;
 import com.facebook.buck.io.file.BorrowablePath;
@@ -27,7 +28,6 @@ import com.facebook.buck.util.CloseableHolder;
 import com.facebook.buck.util.ErrorLogger;
 import com.facebook.buck.util.NamedTemporaryFile;
 import com.facebook.buck.util.exceptions.BuckUncheckedExecutionException;
-import com.facebook.buck.util.zip.Zip;
 import com.google.common.base.Joiner;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
@@ -52,15 +52,19 @@ public class ArtifactUploader {
       ImmutableMap<String, String> buildMetadata,
       SortedSet<Path> pathsToIncludeInZip,
       BuildTarget buildTarget,
-      ProjectFilesystem projectFilesystem) {
+      ProjectFilesystem projectFilesystem,
+      ArtifactCompression compression) {
     NamedTemporaryFile zip =
         getTemporaryArtifactZip(
-            buildTarget, projectFilesystem, ruleKeys, eventBus, pathsToIncludeInZip);
+            buildTarget, projectFilesystem, ruleKeys, eventBus, pathsToIncludeInZip, compression);
 
     // Store the artifact, including any additional metadata.
     ListenableFuture<Void> storeFuture =
         artifactCache.store(
-            ArtifactInfo.builder().setRuleKeys(ruleKeys).setMetadata(buildMetadata).build(),
+            ArtifactInfo.builder()
+                .setRuleKeys(ArtifactCodecs.getArtifactKeys(ruleKeys, compression.getCodec()))
+                .setMetadata(ArtifactCodecs.addCodecToMetadata(buildMetadata, compression))
+                .build(),
             BorrowablePath.borrowablePath(zip.get()));
     Futures.addCallback(
         storeFuture,
@@ -107,15 +111,19 @@ public class ArtifactUploader {
       ProjectFilesystem projectFilesystem,
       ImmutableSet<RuleKey> ruleKeys,
       BuckEventBus eventBus,
-      SortedSet<Path> pathsToIncludeInZip) {
+      SortedSet<Path> pathsToIncludeInZip,
+      ArtifactCompression compression) {
     ArtifactCompressionEvent.Started started =
-        ArtifactCompressionEvent.started(ArtifactCompressionEvent.Operation.COMPRESS, ruleKeys);
+        ArtifactCompressionEvent.started(
+            ArtifactCompressionEvent.Operation.COMPRESS,
+            ruleKeys,
+            ArtifactCodecs.getName(compression.getCodec()));
     eventBus.post(started);
     try (CloseableHolder<NamedTemporaryFile> zip =
         new CloseableHolder<>(
             new NamedTemporaryFile(
                 "buck_artifact_" + MoreFiles.sanitize(buildTarget.getShortName()), ".zip"))) {
-      Zip.create(projectFilesystem, pathsToIncludeInZip, zip.get().get());
+      ArtifactCodecs.compress(projectFilesystem, pathsToIncludeInZip, zip.get().get(), compression);
       return zip.release();
     } catch (IOException e) {
       throw new BuckUncheckedExecutionException(
@@ -0,0 +1,551 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.artifact_cache;
+
+import com.facebook.buck.artifact_cache.ContentDefinedChunker.Chunk;
+import com.facebook.buck.artifact_cache.config.CacheReadMode;
+import com.facebook.buck.counters.CounterRegistry;
+import com.facebook.buck.counters.IntegerCounter;
+import com.facebook.buck.counters.SamplingCounter;
+import com.facebook.buck.event.BuckEventBus;
+import com.facebook.buck.io.file.BorrowablePath;
+import com.facebook.buck.io.file.LazyPath;
+import com.facebook.buck.io.filesystem.ProjectFilesystem;
+import com.facebook.buck.log.Logger;
+import com.facebook.buck.rules.RuleKey;
+import com.facebook.buck.util.HumanReadableException;
+import com.facebook.buck.util.RichStream;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.hash.HashingInputStream;
+import com.google.common.io.ByteSource;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.MoreFiles;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Stores large artifacts as a list of content-defined chunks instead of a single blob. The data is
+ * stored using the following scheme: rulekey -> (metadata, chunk manifest) and chunk hash -> chunk
+ * contents. The chunk manifest lists the hash and size of every chunk in order. When storing,
+ * chunks which the underlying caches already contain are not stored again, and when fetching, each
+ * chunk is fetched separately so that chunks already present in a faster tier (e.g. the dir cache,
+ * which {@link MultiArtifactCache} back-fills) are not transferred again. A small change to a large
+ * artifact therefore only moves the few chunks around the change.
+ *
+ * <p>Chunked entries are always readable, whether or not chunked stores are enabled.
+ */
+public class ChunkedArtifactCacheDecorator implements ArtifactCache, CacheDecorator {
+
+  @VisibleForTesting static final String METADATA_KEY = "CHUNKED_CACHE_MANIFEST_VERSION";
+  private static final String MANIFEST_VERSION = "1";
+  // Appended to the chunk hash so that chunk keys never collide with rule keys or with the keys
+  // used by the TwoLevelArtifactCacheDecorator.
+  private static final String CHUNK_KEY_SUFFIX = "cdc0";
+  private static final String COUNTER_CATEGORY = "buck_chunked_cache_stats";
+  // The chunks of an artifact are fetched a few at a time, so that a large artifact doesn't flood
+  // the delegate with requests.
+  @VisibleForTesting static final int MAX_IN_FLIGHT_CHUNK_FETCHES = 8;
+
+  private static final Logger LOG = Logger.get(ChunkedArtifactCacheDecorator.class);
+
+  private final ArtifactCache delegate;
+  private final ProjectFilesystem projectFilesystem;
+  private final Path tmpDir;
+  private final boolean performChunkedStores;
+  private final long minimumChunkedStoredArtifactSize;
+  private final ContentDefinedChunker chunker;
+
+  // Chunks which were referenced by a manifest but could not be fetched. Stores of these chunks
+  // must not be skipped even if a (best-effort) contains check claims they are present.
+  private final Set<RuleKey> knownMissingChunks = ConcurrentHashMap.newKeySet();
+
+  private final IntegerCounter chunksStored;
+  private final IntegerCounter chunksSkipped;
+  private final SamplingCounter chunkBytesStored;
+  private final IntegerCounter chunksFetched;
+  private final SamplingCounter chunkBytesFetched;
+  private final IntegerCounter chunkMisses;
+
+  public ChunkedArtifactCacheDecorator(
+      ArtifactCache delegate,
+      ProjectFilesystem projectFilesystem,
+      BuckEventBus buckEventBus,
+      boolean performChunkedStores,
+      long minimumChunkedStoredArtifactSize,
+      int averageChunkSize) {
+    this.delegate = delegate;
+    this.projectFilesystem = projectFilesystem;
+    this.performChunkedStores = performChunkedStores;
+    this.minimumChunkedStoredArtifactSize = minimumChunkedStoredArtifactSize;
+    this.chunker = new ContentDefinedChunker(averageChunkSize);
+
+    this.tmpDir = projectFilesystem.getBuckPaths().getTmpDir();
+    try {
+      projectFilesystem.mkdirs(tmpDir);
+    } catch (IOException e) {
+      throw new HumanReadableException(
+          "Could not create directory " + projectFilesystem.resolve(tmpDir));
+    }
+
+    chunksStored = new IntegerCounter(COUNTER_CATEGORY, "chunks_stored", ImmutableMap.of());
+    chunksSkipped = new IntegerCounter(COUNTER_CATEGORY, "chunks_skipped", ImmutableMap.of());
+    chunkBytesStored =
+        new SamplingCounter(COUNTER_CATEGORY, "chunk_bytes_stored", ImmutableMap.of());
+    chunksFetched = new IntegerCounter(COUNTER_CATEGORY, "chunks_fetched", ImmutableMap.of());
+    chunkBytesFetched =
+        new SamplingCounter(COUNTER_CATEGORY, "chunk_bytes_fetched", ImmutableMap.of());
+    chunkMisses = new IntegerCounter(COUNTER_CATEGORY, "chunk_misses", ImmutableMap.of());
+    buckEventBus.post(
+        new CounterRegistry.AsyncCounterRegistrationEvent(
+            ImmutableSet.of(
+                chunksStored,
+                chunksSkipped,
+                chunkBytesStored,
+                chunksFetched,
+                chunkBytesFetched,
+                chunkMisses)));
+  }
+
+  @Override
+  public ListenableFuture<CacheResult> fetchAsync(RuleKey ruleKey, LazyPath output) {
+    return Futures.transformAsync(
+        delegate.fetchAsync(ruleKey, output),
+        (CacheResult fetchResult) -> {
+          if (!isChunkManifest(fetchResult)) {
+            return Futures.immediateFuture(fetchResult);
+          }
+          return fetchChunkedArtifact(
+              ruleKey, fetchResult, MoreFiles.asByteSource(output.getUnchecked()), output);
+        },
+        MoreExecutors.directExecutor());
+  }
+
+  @Override
+  public ListenableFuture<CacheResult> fetchAsync(
+      RuleKey ruleKey, LazyPath output, ArtifactPayloadConsumer payloadConsumer) {
+    // Artifacts stored directly are passed straight through. Manifests are kept in memory, and the
+    // artifact is handed over once it has been assembled from its chunks.
+    AtomicReference<byte[]> manifestContents = new AtomicReference<>();
+    ArtifactPayloadConsumer manifestPayloadConsumer =
+        (metadata, payload) -> {
+          manifestContents.set(null);
+          if (metadata.containsKey(METADATA_KEY)) {
+            manifestContents.set(ByteStreams.toByteArray(payload));
+          } else {
+            payloadConsumer.consume(metadata, payload);
+          }
+        };
+    return Futures.transformAsync(
+        delegate.fetchAsync(ruleKey, output, manifestPayloadConsumer),
+        (CacheResult fetchResult) -> {
+          if (!isChunkManifest(fetchResult)) {
+            return Futures.immediateFuture(fetchResult);
+          }
+          return Futures.transform(
+              fetchChunkedArtifact(
+                  ruleKey,
+                  fetchResult,
+                  ByteSource.wrap(Preconditions.checkNotNull(manifestContents.get())),
+                  output),
+              (CacheResult result) ->
+                  ArtifactPayloadConsumers.consumeFetchedFile(result, output, payloadConsumer),
+              MoreExecutors.directExecutor());
+        },
+        MoreExecutors.directExecutor());
+  }
+
+  private static boolean isChunkManifest(CacheResult fetchResult) {
+    return fetchResult.getType().isSuccess() && fetchResult.getMetadata().containsKey(METADATA_KEY);
+  }
+
+  private ListenableFuture<CacheResult> fetchChunkedArtifact(
+      RuleKey ruleKey, CacheResult manifestResult, ByteSource manifestContents, LazyPath output)
+      throws IOException {
+    String version = manifestResult.getMetadata().get(METADATA_KEY);
+    if (!MANIFEST_VERSION.equals(version)) {
+      LOG.warn("Ignoring chunked artifact %s with unknown version %s.", ruleKey, version);
+      return Futures.immediateFuture(CacheResult.miss());
+    }
+
+    ImmutableList<ManifestEntry> manifest;
+    try {
+      manifest = readManifest(manifestContents);
+    } catch (IOException | IllegalArgumentException e) {
+      LOG.warn(e, "Ignoring chunked artifact %s with a malformed manifest.", ruleKey);
+      return Futures.immediateFuture(CacheResult.miss());
+    }
+    LOG.verbose("Found a chunk manifest with %d chunks for %s.", manifest.size(), ruleKey);
+    return fetchChunks(manifestResult, manifest, output.get());
+  }
+
+  private ListenableFuture<CacheResult> fetchChunks(
+      CacheResult manifestResult, ImmutableList<ManifestEntry> manifest, Path output)
+      throws IOException {
+    List<LazyPath> chunkPaths = new ArrayList<>(manifest.size());
+    for (int i = 0; i < manifest.size(); i++) {
+      chunkPaths.add(LazyPath.ofInstance(createTempChunkFile()));
+    }
+
+    return Futures.transform(
+        new ChunkFetches(manifest, chunkPaths).start(),
+        (List<CacheResult> results) -> {
+          try {
+            return assembleChunks(manifestResult, manifest, results, chunkPaths, output);
+          } finally {
+            for (LazyPath chunkPath : chunkPaths) {
+              deleteQuietly(chunkPath.getUnchecked());
+            }
+          }
+        },
+        MoreExecutors.directExecutor());
+  }
+
+  private CacheResult assembleChunks(
+      CacheResult manifestResult,
+      ImmutableList<ManifestEntry> manifest,
+      List<CacheResult> results,
+      List<LazyPath> chunkPaths,
+      Path output) {
+    boolean missing = false;
+    for (int i = 0; i < manifest.size(); i++) {
+      if (!results.get(i).getType().isSuccess()) {
+        knownMissingChunks.add(manifest.get(i).getChunkKey());
+        missing = true;
+      }
+    }
+    if (missing) {
+      chunkMisses.inc();
+      return CacheResult.miss();
+    }
+
+    long totalSize = 0;
+    try (OutputStream outputStream = Files.newOutputStream(output)) {
+      for (int i = 0; i < manifest.size(); i++) {
+        ManifestEntry entry = manifest.get(i);
+        Path chunkPath = chunkPaths.get(i).getUnchecked();
+        long size;
+        HashCode hash;
+        try (HashingInputStream inputStream =
+            new HashingInputStream(Hashing.sha1(), Files.newInputStream(chunkPath))) {
+          size = ByteStreams.copy(inputStream, outputStream);
+          hash = inputStream.hash();
+        }
+        if (size != entry.getSize() || !hash.equals(entry.getHash())) {
+          LOG.warn("Chunk %s of the artifact in %s is corrupted.", entry.getHash(), output);
+          knownMissingChunks.add(entry.getChunkKey());
+          return CacheResult.miss();
+        }
+        totalSize += size;
+        chunksFetched.inc();
+        chunkBytesFetched.addSample(size);
+      }
+    } catch (IOException e) {
+      LOG.warn(e, "Failed to assemble chunked artifact into %s.", output);
+      return CacheResult.miss();
+    }
+
+    // The manifest metadata is an implementation detail of this class, don't leak it.
+    return manifestResult
+        .withArtifactSizeBytes(totalSize)
+        .withMetadata(
+            ImmutableMap.copyOf(
+                RichStream.from(manifestResult.getMetadata().entrySet())
+                    .filter(e -> !Objects.equals(e.getKey(), METADATA_KEY))
+                    .toOnceIterable()));
+  }
+
+  @Override
+  public ListenableFuture<Void> store(ArtifactInfo info, BorrowablePath output) {
+    try {
+      if (!performChunkedStores
+          || projectFilesystem.getFileSize(output.getPath()) < minimumChunkedStoredArtifactSize) {
+        return delegate.store(info, output);
+      }
+
+      ImmutableList<Chunk> chunks;
+      try (InputStream inputStream = Files.newInputStream(output.getPath())) {
+        chunks = chunker.split(inputStream);
+      }
+      // The chunks are only cut once the delegate said which of them it's missing, and by then the
+      // caller may have deleted or moved the output.
+      Path snapshot = createTempChunkFile();
+      if (output.canBorrow()) {
+        Files.move(output.getPath(), snapshot, StandardCopyOption.REPLACE_EXISTING);
+      } else {
+        Files.copy(output.getPath(), snapshot, StandardCopyOption.REPLACE_EXISTING);
+      }
+      ListenableFuture<Void> storeFuture = storeChunks(info, snapshot, chunks);
+      storeFuture.addListener(() -> deleteQuietly(snapshot), MoreExecutors.directExecutor());
+      return storeFuture;
+    } catch (IOException e) {
+      LOG.warn(e, "Failed to chunk %s, storing it as a single artifact.", output.getPath());
+      return delegate.store(info, output);
+    }
+  }
+
+  private ListenableFuture<Void> storeChunks(
+      ArtifactInfo info, Path artifact, ImmutableList<Chunk> chunks) {
+    ImmutableMap<RuleKey, Chunk> chunksByKey =
+        chunks
+            .stream()
+            .collect(
+                ImmutableMap.toImmutableMap(
+                    chunk -> toChunkKey(chunk.getHash()), chunk -> chunk, (a, b) -> a));
+
+    ListenableFuture<List<Void>> chunkStores =
+        Futures.transformAsync(
+            delegate.multiContainsAsync(chunksByKey.keySet()),
+            (ImmutableMap<RuleKey, CacheResult> containsResults) -> {
+              List<ListenableFuture<Void>> stores = new ArrayList<>();
+              for (Map.Entry<RuleKey, Chunk> entry : chunksByKey.entrySet()) {
+                RuleKey chunkKey = entry.getKey();
+                CacheResult containsResult = containsResults.get(chunkKey);
+                if (containsResult != null
+                    && containsResult.getType().isSuccess()
+                    && !knownMissingChunks.contains(chunkKey)) {
+                  chunksSkipped.inc();
+                  continue;
+                }
+                stores.add(storeChunk(chunkKey, artifact, entry.getValue()));
+              }
+              return Futures.allAsList(stores);
+            },
+            MoreExecutors.directExecutor());
+
+    // Only publish the manifest once all of its chunks made it into the cache.
+    return Futures.transformAsync(
+        chunkStores,
+        ignored -> {
+          Path manifestPath = createTempChunkFile();
+          writeManifest(manifestPath, chunks);
+          ListenableFuture<Void> storeFuture =
+              delegate.store(
+                  ArtifactInfo.builder()
+                      .from(info)
+                      .setMetadata(
+                          ImmutableMap.<String, String>builder()
+                              .putAll(info.getMetadata())
+                              .put(METADATA_KEY, MANIFEST_VERSION)
+                              .build())
+                      .build(),
+                  BorrowablePath.borrowablePath(manifestPath));
+          // The delegate may have copied the manifest rather than taking it.
+          storeFuture.addListener(
+              () -> deleteQuietly(manifestPath), MoreExecutors.directExecutor());
+          return storeFuture;
+        },
+        MoreExecutors.directExecutor());
+  }
+
+  private ListenableFuture<Void> storeChunk(RuleKey chunkKey, Path artifact, Chunk chunk)
+      throws IOException {
+    Path chunkPath = createTempChunkFile();
+    try (FileChannel source = FileChannel.open(artifact, StandardOpenOption.READ);
+        FileChannel target = FileChannel.open(chunkPath, StandardOpenOption.WRITE)) {
+      long transferred = 0;
+      while (transferred < chunk.getSize()) {
+        transferred +=
+            source.transferTo(
+                chunk.getOffset() + transferred, chunk.getSize() - transferred, target);
+      }
+    }
+    chunksStored.inc();
+    chunkBytesStored.addSample(chunk.getSize());
+    ListenableFuture<Void> storeFuture =
+        delegate.store(
+            ArtifactInfo.builder().addRuleKeys(chunkKey).build(),
+            BorrowablePath.borrowablePath(chunkPath));
+    storeFuture.addListener(
+        () -> {
+          knownMissingChunks.remove(chunkKey);
+          deleteQuietly(chunkPath);
+        },
+        MoreExecutors.directExecutor());
+    return storeFuture;
+  }
+
+  /**
+   * Fetches the chunks of an artifact, with at most {@link #MAX_IN_FLIGHT_CHUNK_FETCHES} of them in
+   * flight at a time.
+   */
+  private class ChunkFetches {
+    private final ImmutableList<ManifestEntry> manifest;
+    private final List<LazyPath> chunkPaths;
+    private final List<SettableFuture<CacheResult>> results;
+    private final AtomicInteger nextChunk = new AtomicInteger();
+    // Counts the requests to start another fetch. Fetches which complete right away make their
+    // request while the previous one is being handled, which then loops instead of recursing.
+    private final AtomicInteger pendingStarts = new AtomicInteger();
+
+    private ChunkFetches(ImmutableList<ManifestEntry> manifest, List<LazyPath> chunkPaths) {
+      this.manifest = manifest;
+      this.chunkPaths = chunkPaths;
+      this.results = new ArrayList<>(manifest.size());
+      for (int i = 0; i < manifest.size(); i++) {
+        results.add(SettableFuture.create());
+      }
+    }
+
+    private ListenableFuture<List<CacheResult>> start() {
+      for (int i = 0; i < Math.min(MAX_IN_FLIGHT_CHUNK_FETCHES, manifest.size()); i++) {
+        startNext();
+      }
+      return Futures.allAsList(results);
+    }
+
+    private void startNext() {
+      if (pendingStarts.getAndIncrement() != 0) {
+        return;
+      }
+      do {
+        int index = nextChunk.getAndIncrement();
+        if (index < manifest.size()) {
+          ListenableFuture<CacheResult> result =
+              delegate.fetchAsync(manifest.get(index).getChunkKey(), chunkPaths.get(index));
+          results.get(index).setFuture(result);
+          result.addListener(this::startNext, MoreExecutors.directExecutor());
+        }
+      } while (pendingStarts.decrementAndGet() != 0);
+    }
+  }
+
+  private Path createTempChunkFile() throws IOException {
+    return projectFilesystem.resolve(
+        projectFilesystem.createTempFile(tmpDir, ".buckcache", ".chunk"));
+  }
+
+  private void deleteQuietly(Path path) {
+    try {
+      Files.deleteIfExists(path);
+    } catch (IOException e) {
+      LOG.debug(e, "Exception when deleting temp file %s.", path);
+    }
+  }
+
+  private static RuleKey toChunkKey(HashCode chunkHash) {
+    return new RuleKey(chunkHash.toString() + CHUNK_KEY_SUFFIX);
+  }
+
+  private static void writeManifest(Path path, ImmutableList<Chunk> chunks) throws IOException {
+    try (Writer writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8)) {
+      for (Chunk chunk : chunks) {
+        writer.write(chunk.getHash().toString());
+        writer.write(' ');
+        writer.write(Integer.toString(chunk.getSize()));
+        writer.write('\n');
+      }
+    }
+  }
+
+  private static ImmutableList<ManifestEntry> readManifest(ByteSource manifestContents)
+      throws IOException {
+    ImmutableList.Builder<ManifestEntry> entries = ImmutableList.builder();
+    try (BufferedReader reader =
+        manifestContents.asCharSource(StandardCharsets.UTF_8).openBufferedStream()) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (line.isEmpty()) {
+          continue;
+        }
+        List<String> parts = Splitter.on(' ').splitToList(line);
+        if (parts.size() != 2) {
+          throw new IOException(String.format("Malformed chunk manifest line: '%s'.", line));
+        }
+        entries.add(new ManifestEntry(HashCode.fromString(parts.get(0)), parts.get(1)));
+      }
+    }
+    return entries.build();
+  }
+
+  @Override
+  public ListenableFuture<ImmutableMap<RuleKey, CacheResult>> multiContainsAsync(
+      ImmutableSet<RuleKey> ruleKeys) {
+    // Contains is best-effort, assume the chunks of a manifest are present.
+    return delegate.multiContainsAsync(ruleKeys);
+  }
+
+  @Override
+  public ListenableFuture<CacheDeleteResult> deleteAsync(List<RuleKey> ruleKeys) {
+    // Only the manifests are deleted, chunks may be shared with other artifacts.
+    return delegate.deleteAsync(ruleKeys);
+  }
+
+  @Override
+  public ArtifactCache getDelegate() {
+    return delegate;
+  }
+
+  @Override
+  public CacheReadMode getCacheReadMode() {
+    return delegate.getCacheReadMode();
+  }
+
+  @Override
+  public void close() {
+    delegate.close();
+  }
+
+  private static final class ManifestEntry {
+    private final HashCode hash;
+    private final int size;
+
+    ManifestEntry(HashCode hash, String size) {
+      this.hash = hash;
+      this.size = Integer.parseInt(size);
+    }
+
+    HashCode getHash() {
+      return hash;
+    }
+
+    int getSize() {
+      return size;
+    }
+
+    RuleKey getChunkKey() {
+      return toChunkKey(hash);
+    }
+  }
+}
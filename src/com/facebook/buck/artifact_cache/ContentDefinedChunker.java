@@ -0,0 +1,125 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.artifact_cache;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+/**
+ * Splits a stream of bytes into content-defined chunks using a gear rolling hash. Chunk boundaries
+ * only depend on the bytes around them, so inserting or changing a few bytes in a large artifact
+ * only changes the chunks around the edit, and the remaining chunks keep their hashes.
+ */
+class ContentDefinedChunker {
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  // The gear table must be identical on every machine reading or writing chunks, so it is derived
+  // from a fixed seed using java.util.Random, whose sequence is specified by the JDK.
+  private static final long[] GEAR = new long[256];
+
+  static {
+    Random random = new Random(0x6275636b4364634cL);
+    for (int i = 0; i < GEAR.length; i++) {
+      GEAR[i] = random.nextLong();
+    }
+  }
+
+  private final int minimumChunkSize;
+  private final int maximumChunkSize;
+  private final long mask;
+
+  /**
+   * @param averageChunkSize desired average chunk size in bytes, must be a power of two. Chunks are
+   *     never smaller than a quarter or larger than four times this size (except for the last one).
+   */
+  ContentDefinedChunker(int averageChunkSize) {
+    Preconditions.checkArgument(
+        averageChunkSize >= 64 && Integer.bitCount(averageChunkSize) == 1,
+        "Average chunk size must be a power of two of at least 64 bytes, got %s.",
+        averageChunkSize);
+    this.minimumChunkSize = averageChunkSize / 4;
+    this.maximumChunkSize = averageChunkSize * 4;
+    this.mask = averageChunkSize - 1;
+  }
+
+  /** Reads {@code inputStream} to the end, returning the chunks it is made of in order. */
+  ImmutableList<Chunk> split(InputStream inputStream) throws IOException {
+    ImmutableList.Builder<Chunk> chunks = ImmutableList.builder();
+    byte[] buffer = new byte[BUFFER_SIZE];
+    long chunkOffset = 0;
+    int chunkSize = 0;
+    long rollingHash = 0;
+    Hasher hasher = Hashing.sha1().newHasher();
+
+    int read;
+    while ((read = inputStream.read(buffer)) != -1) {
+      int hashedUpTo = 0;
+      for (int i = 0; i < read; i++) {
+        rollingHash = (rollingHash << 1) + GEAR[buffer[i] & 0xff];
+        chunkSize++;
+        if ((chunkSize >= minimumChunkSize && (rollingHash & mask) == 0)
+            || chunkSize >= maximumChunkSize) {
+          hasher.putBytes(buffer, hashedUpTo, i + 1 - hashedUpTo);
+          hashedUpTo = i + 1;
+          chunks.add(new Chunk(chunkOffset, chunkSize, hasher.hash()));
+          chunkOffset += chunkSize;
+          chunkSize = 0;
+          rollingHash = 0;
+          hasher = Hashing.sha1().newHasher();
+        }
+      }
+      hasher.putBytes(buffer, hashedUpTo, read - hashedUpTo);
+    }
+
+    if (chunkSize > 0) {
+      chunks.add(new Chunk(chunkOffset, chunkSize, hasher.hash()));
+    }
+    return chunks.build();
+  }
+
+  /** A contiguous range of the input together with the SHA-1 of its contents. */
+  static final class Chunk {
+    private final long offset;
+    private final int size;
+    private final HashCode hash;
+
+    Chunk(long offset, int size, HashCode hash) {
+      this.offset = offset;
+      this.size = size;
+      this.hash = hash;
+    }
+
+    long getOffset() {
+      return offset;
+    }
+
+    int getSize() {
+      return size;
+    }
+
+    HashCode getHash() {
+      return hash;
+    }
+  }
+}
@@ -18,22 +18,25 @@ package com.facebook.buck.artifact_cache;
 
 import com.facebook.buck.artifact_cache.config.ArtifactCacheMode;
 import com.facebook.buck.artifact_cache.config.CacheReadMode;
+import com.facebook.buck.counters.CounterRegistry;
+import com.facebook.buck.counters.SamplingCounter;
+import com.facebook.buck.event.BuckEventBus;
 import com.facebook.buck.io.file.BorrowablePath;
 import com.facebook.buck.io.file.LazyPath;
 import com.facebook.buck.io.filesystem.ProjectFilesystem;
 import com.facebook.buck.log.Logger;
 import com.facebook.buck.rules.RuleKey;
-import com.facebook.buck.util.DirectoryCleaner;
-import com.facebook.buck.util.DirectoryCleanerArgs;
+import com.facebook.buck.util.concurrent.MostExecutors;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Charsets;
-import com.google.common.collect.ComparisonChain;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.io.ByteStreams;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
@@ -45,10 +48,18 @@ import java.nio.file.SimpleFileVisitor;
 import java.nio.file.StandardCopyOption;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class DirArtifactCache implements ArtifactCache {
 
@@ -61,14 +72,29 @@ public class DirArtifactCache implements ArtifactCache {
   // How much of the max size to leave if we decide to delete old files.
   private static final float MAX_BYTES_TRIM_RATIO = 2 / 3f;
   private static final String TMP_EXTENSION = ".tmp";
+  private static final String METADATA_EXTENSION = ".metadata";
+  private static final String INDEX_LOG_FILE_NAME = "index.log";
+  private static final String COUNTER_CATEGORY = "buck_dir_cache_stats";
+  private static final long SHUTDOWN_TIMEOUT_MINUTES = 30;
 
   private final String name;
   private final ProjectFilesystem filesystem;
   private final Path cacheDir;
   private final Optional<Long> maxCacheSizeBytes;
   private final CacheReadMode cacheReadMode;
-  private long bytesSinceLastDeleteOldFiles;
-
+  private final ListeningExecutorService ioExecutorService;
+  private final ListeningExecutorService evictionExecutorService;
+  private final Optional<BuckEventBus> buckEventBus;
+  private final DirArtifactCacheIndex index = new DirArtifactCacheIndex();
+  private final DirArtifactCacheIndexLog indexLog;
+  private final AtomicLong bytesSinceLastDeleteOldFiles = new AtomicLong();
+  private final AtomicBoolean evictionScheduled = new AtomicBoolean();
+  private final AtomicInteger pendingOperations = new AtomicInteger();
+  private final SamplingCounter ioQueueDepth;
+  private final SamplingCounter evictionTimeMs;
+  private final SamplingCounter evictedBytes;
+
+  /** Creates a cache that does all of its I/O on the calling threads. */
   public DirArtifactCache(
       String name,
       ProjectFilesystem filesystem,
@@ -76,25 +102,79 @@ public class DirArtifactCache implements ArtifactCache {
       CacheReadMode cacheReadMode,
       Optional<Long> maxCacheSizeBytes)
       throws IOException {
+    this(
+        name,
+        filesystem,
+        cacheDir,
+        cacheReadMode,
+        maxCacheSizeBytes,
+        MoreExecutors.newDirectExecutorService(),
+        MoreExecutors.newDirectExecutorService(),
+        Optional.empty());
+  }
+
+  /**
+   * Creates a cache that fetches and stores artifacts on {@code ioExecutorService} and trims itself
+   * on {@code evictionExecutorService}, so that neither blocks the threads calling it. The cache
+   * takes ownership of both executors, and waits for them to finish on {@link #close()}.
+   */
+  public DirArtifactCache(
+      String name,
+      ProjectFilesystem filesystem,
+      Path cacheDir,
+      CacheReadMode cacheReadMode,
+      Optional<Long> maxCacheSizeBytes,
+      ListeningExecutorService ioExecutorService,
+      ListeningExecutorService evictionExecutorService,
+      Optional<BuckEventBus> buckEventBus)
+      throws IOException {
     this.name = name;
     this.filesystem = filesystem;
     this.cacheDir = cacheDir;
     this.maxCacheSizeBytes = maxCacheSizeBytes;
     this.cacheReadMode = cacheReadMode;
-    this.bytesSinceLastDeleteOldFiles = 0L;
+    this.ioExecutorService = ioExecutorService;
+    this.evictionExecutorService = evictionExecutorService;
+    this.buckEventBus = buckEventBus;
 
     // Check first, as mkdirs will fail if the path is a symlink.
     if (!filesystem.isDirectory(cacheDir)) {
       filesystem.mkdirs(cacheDir);
     }
+
+    indexLog =
+        new DirArtifactCacheIndexLog(
+            filesystem,
+            getPathToIndexFolder().resolve(INDEX_LOG_FILE_NAME),
+            filesystem.resolve(cacheDir));
+
+    ImmutableMap<String, String> tags = ImmutableMap.of("cache_name", name);
+    ioQueueDepth = new SamplingCounter(COUNTER_CATEGORY, "io_queue_depth", tags);
+    evictionTimeMs = new SamplingCounter(COUNTER_CATEGORY, "eviction_time_ms", tags);
+    evictedBytes = new SamplingCounter(COUNTER_CATEGORY, "evicted_bytes", tags);
+    buckEventBus.ifPresent(
+        eventBus ->
+            eventBus.post(
+                new CounterRegistry.AsyncCounterRegistrationEvent(
+                    ImmutableSet.of(ioQueueDepth, evictionTimeMs, evictedBytes))));
+
+    if (indexLog.exists()) {
+      // Until the index is loaded, the cache falls back to checking the disk.
+      evictionExecutorService.execute(this::readIndexLog);
+    }
   }
 
   @Override
   public ListenableFuture<CacheResult> fetchAsync(RuleKey ruleKey, LazyPath output) {
-    return Futures.immediateFuture(fetch(ruleKey, output));
+    return Futures.catching(
+        submit(() -> fetch(ruleKey, output)),
+        RejectedExecutionException.class,
+        e -> CacheResult.error(name, CACHE_MODE, "Cache is closed."),
+        MoreExecutors.directExecutor());
   }
 
   private CacheResult fetch(RuleKey ruleKey, LazyPath output) {
+    Path artifactPath = getPathForRuleKey(ruleKey, Optional.empty());
     CacheResult result;
     try {
       // First, build up the metadata from the metadata file.
@@ -102,7 +182,7 @@ public class DirArtifactCache implements ArtifactCache {
       try (DataInputStream in =
           new DataInputStream(
               filesystem.newFileInputStream(
-                  getPathForRuleKey(ruleKey, Optional.of(".metadata"))))) {
+                  getPathForRuleKey(ruleKey, Optional.of(METADATA_EXTENSION))))) {
         int sz = in.readInt();
         for (int i = 0; i < sz; i++) {
           String key = in.readUTF();
@@ -114,12 +194,17 @@ public class DirArtifactCache implements ArtifactCache {
       }
 
       // Now copy the artifact out.
-      filesystem.copyFile(getPathForRuleKey(ruleKey, Optional.empty()), output.get());
+      filesystem.copyFile(artifactPath, output.get());
 
       result =
           CacheResult.hit(name, CACHE_MODE, metadata.build(), filesystem.getFileSize(output.get()));
+      recordUsed(artifactPath);
     } catch (NoSuchFileException e) {
       result = CacheResult.miss();
+      if (index.contains(filesystem.resolve(artifactPath))) {
+        // Whatever deleted the entry didn't record it.
+        recordRemoved(artifactPath);
+      }
     } catch (IOException e) {
       LOG.warn(e, "Artifact fetch(%s, %s) error", ruleKey, output);
       result =
@@ -140,13 +225,58 @@ public class DirArtifactCache implements ArtifactCache {
       return Futures.immediateFuture(null);
     }
 
+    // Callers are free to delete or move `output` as soon as this returns, so take a private
+    // snapshot of it now and only defer moving the snapshot into place.
+    Path snapshot;
+    try {
+      snapshot = takeSnapshot(output);
+    } catch (IOException e) {
+      LOG.warn(e, "Artifact store(%s, %s) error", info.getRuleKeys(), output);
+      return Futures.immediateFuture(null);
+    }
+
+    ListenableFuture<Void> future =
+        submit(
+            () -> {
+              storeSync(info, BorrowablePath.borrowablePath(snapshot));
+              maybeScheduleEviction();
+              return null;
+            });
+    future.addListener(
+        () -> {
+          try {
+            filesystem.deleteFileAtPathIfExists(snapshot);
+          } catch (IOException e) {
+            LOG.warn(e, "Failed to delete %s", snapshot);
+          }
+        },
+        MoreExecutors.directExecutor());
+    return future;
+  }
+
+  private Path takeSnapshot(BorrowablePath output) throws IOException {
+    Path snapshot = filesystem.createTempFile(getPreparedTempFolder(), "artifact", TMP_EXTENSION);
+    if (output.canBorrow()) {
+      filesystem.move(output.getPath(), snapshot, StandardCopyOption.REPLACE_EXISTING);
+    } else {
+      filesystem.copyFile(output.getPath(), snapshot);
+    }
+    return snapshot;
+  }
+
+  private void storeSync(ArtifactInfo info, BorrowablePath output) {
     try {
       Optional<Path> borrowedAndStoredArtifactPath = Optional.empty();
       for (RuleKey ruleKey : info.getRuleKeys()) {
         Path artifactPath = getPathForRuleKey(ruleKey, Optional.empty());
-        Path metadataPath = getPathForRuleKey(ruleKey, Optional.of(".metadata"));
-
-        if (filesystem.exists(artifactPath) && filesystem.exists(metadataPath)) {
+        Path metadataPath = getPathForRuleKey(ruleKey, Optional.of(METADATA_EXTENSION));
+
+        // The index may not know that the files were deleted behind its back, so check them
+        // before skipping the store.
+        if (isStored(artifactPath, metadataPath)
+            && filesystem.exists(artifactPath)
+            && filesystem.exists(metadataPath)) {
+          recordUsed(artifactPath);
           continue;
         }
 
@@ -165,7 +295,7 @@ public class DirArtifactCache implements ArtifactCache {
             storeArtifactOutput(borrowedAndStoredArtifactPath.get(), artifactPath);
           }
         }
-        bytesSinceLastDeleteOldFiles += filesystem.getFileSize(artifactPath);
+        long artifactSize = filesystem.getFileSize(artifactPath);
 
         // Now, write the meta data artifact.
         Path tmp = filesystem.createTempFile(getPreparedTempFolder(), "metadata", TMP_EXTENSION);
@@ -180,40 +310,40 @@ public class DirArtifactCache implements ArtifactCache {
             }
           }
           filesystem.move(tmp, metadataPath, StandardCopyOption.REPLACE_EXISTING);
-          bytesSinceLastDeleteOldFiles += filesystem.getFileSize(metadataPath);
         } finally {
           filesystem.deleteFileAtPathIfExists(tmp);
         }
+        long entrySize = artifactSize + filesystem.getFileSize(metadataPath);
+        bytesSinceLastDeleteOldFiles.addAndGet(entrySize);
+        recordAdded(artifactPath, entrySize);
       }
 
     } catch (IOException e) {
       LOG.warn(e, "Artifact store(%s, %s) error", info.getRuleKeys(), output);
     }
-
-    if (maxCacheSizeBytes.isPresent()
-        && bytesSinceLastDeleteOldFiles
-            > (maxCacheSizeBytes.get() * STORED_TO_MAX_BYTES_RATIO_TRIM_TRIGGER)) {
-      bytesSinceLastDeleteOldFiles = 0L;
-      deleteOldFiles();
-    }
-
-    return Futures.immediateFuture(null);
   }
 
   @Override
   public ListenableFuture<ImmutableMap<RuleKey, CacheResult>> multiContainsAsync(
       ImmutableSet<RuleKey> ruleKeys) {
-    return Futures.immediateFuture(multiContains(ruleKeys));
+    return submit(() -> multiContains(ruleKeys));
   }
 
   private ImmutableMap<RuleKey, CacheResult> multiContains(Set<RuleKey> ruleKeys) {
     ImmutableMap.Builder<RuleKey, CacheResult> results = new ImmutableMap.Builder<>();
 
+    boolean readIndexLog = false;
     for (RuleKey ruleKey : ruleKeys) {
       Path artifactPath = getPathForRuleKey(ruleKey, Optional.empty());
-      Path metadataPath = getPathForRuleKey(ruleKey, Optional.of(".metadata"));
-
-      boolean contains = filesystem.exists(artifactPath) && filesystem.exists(metadataPath);
+      Path metadataPath = getPathForRuleKey(ruleKey, Optional.of(METADATA_EXTENSION));
+
+      boolean contains = isStored(artifactPath, metadataPath);
+      if (!contains && index.isLoaded() && !readIndexLog) {
+        // Another build sharing the cache may have stored it since the log was last read.
+        readIndexLog = true;
+        readIndexLog();
+        contains = isStored(artifactPath, metadataPath);
+      }
       results.put(ruleKey, contains ? CacheResult.contains(name, CACHE_MODE) : CacheResult.miss());
       LOG.verbose(
           "Artifact contains request for rulekey [%s] was a cache %s.",
@@ -225,11 +355,12 @@ public class DirArtifactCache implements ArtifactCache {
 
   private void deleteSync(RuleKey ruleKey) {
     Path artifactPath = getPathForRuleKey(ruleKey, Optional.empty());
-    Path metadataPath = getPathForRuleKey(ruleKey, Optional.of(".metadata"));
+    Path metadataPath = getPathForRuleKey(ruleKey, Optional.of(METADATA_EXTENSION));
 
     try {
       filesystem.deleteFileAtPathIfExists(metadataPath);
       filesystem.deleteFileAtPathIfExists(artifactPath);
+      recordRemoved(artifactPath);
     } catch (IOException e) {
       String message =
           String.format("Failed to delete artifact for rule key [%s] from local cache", ruleKey);
@@ -240,16 +371,111 @@ public class DirArtifactCache implements ArtifactCache {
 
   @Override
   public ListenableFuture<CacheDeleteResult> deleteAsync(List<RuleKey> ruleKeys) {
-    ruleKeys.forEach(this::deleteSync);
+    return submit(
+        () -> {
+          ruleKeys.forEach(this::deleteSync);
+
+          ImmutableList<String> cacheNames =
+              ImmutableList.of(DirArtifactCache.class.getSimpleName());
+          return CacheDeleteResult.builder().setCacheNames(cacheNames).build();
+        });
+  }
+
+  /**
+   * Whether both files of an entry are in the cache. Once the index is loaded, it's checked instead
+   * of the disk.
+   */
+  private boolean isStored(Path artifactPath, Path metadataPath) {
+    if (index.isLoaded()) {
+      return index.contains(filesystem.resolve(artifactPath));
+    }
+    return filesystem.exists(artifactPath) && filesystem.exists(metadataPath);
+  }
+
+  private void recordAdded(Path artifactPath, long sizeBytes) {
+    Path absolutePath = filesystem.resolve(artifactPath);
+    index.add(absolutePath, sizeBytes);
+    appendToIndexLog(DirArtifactCacheIndexLog.Operation.ADD, absolutePath, sizeBytes);
+  }
+
+  private void recordUsed(Path artifactPath) {
+    Path absolutePath = filesystem.resolve(artifactPath);
+    index.touch(absolutePath);
+    appendToIndexLog(DirArtifactCacheIndexLog.Operation.TOUCH, absolutePath, 0);
+  }
+
+  private void recordRemoved(Path artifactPath) {
+    Path absolutePath = filesystem.resolve(artifactPath);
+    index.remove(absolutePath);
+    appendToIndexLog(DirArtifactCacheIndexLog.Operation.REMOVE, absolutePath, 0);
+  }
+
+  private void appendToIndexLog(
+      DirArtifactCacheIndexLog.Operation operation, Path absolutePath, long sizeBytes) {
+    try {
+      indexLog.append(operation, absolutePath, sizeBytes);
+    } catch (IOException e) {
+      LOG.warn(e, "Failed to update the index of %s cache.", name);
+    }
+  }
+
+  /**
+   * Catches up with the changes recorded in the index log, including those of other builds sharing
+   * the cache. If the log is corrupt, it's deleted, and the index is loaded from the disk and
+   * written out again by the next trim.
+   */
+  private void readIndexLog() {
+    if (!indexLog.exists()) {
+      return;
+    }
+    try {
+      indexLog.readNewRecords(index);
+    } catch (IOException e) {
+      LOG.warn(e, "Failed to read the index of %s cache, rebuilding it.", name);
+      index.clear();
+      try {
+        indexLog.delete();
+      } catch (IOException deleteException) {
+        LOG.warn(deleteException, "Failed to delete the index of %s cache.", name);
+      }
+    }
+  }
+
+  /** Rewrites the index log from the index, if it has been loaded. */
+  private void compactIndexLog() {
+    if (!index.isLoaded()) {
+      return;
+    }
+    try {
+      indexLog.compact(index);
+    } catch (IOException e) {
+      LOG.warn(e, "Failed to write the index of %s cache.", name);
+    }
+  }
 
-    ImmutableList<String> cacheNames = ImmutableList.of(DirArtifactCache.class.getSimpleName());
-    return Futures.immediateFuture(CacheDeleteResult.builder().setCacheNames(cacheNames).build());
+  /** Runs {@code task} on the I/O executor, keeping track of how many tasks are waiting there. */
+  private <T> ListenableFuture<T> submit(Callable<T> task) {
+    ioQueueDepth.addSample(pendingOperations.incrementAndGet());
+    ListenableFuture<T> future;
+    try {
+      future = ioExecutorService.submit(task);
+    } catch (RejectedExecutionException e) {
+      // The cache was closed.
+      pendingOperations.decrementAndGet();
+      return Futures.immediateFailedFuture(e);
+    }
+    future.addListener(pendingOperations::decrementAndGet, MoreExecutors.directExecutor());
+    return future;
   }
 
   private Path getPathToTempFolder() {
     return cacheDir.resolve("tmp");
   }
 
+  private Path getPathToIndexFolder() {
+    return cacheDir.resolve("index");
+  }
+
   private Path getPreparedTempFolder() throws IOException {
     Path tmp = getPathToTempFolder();
     if (!filesystem.exists(tmp)) {
@@ -289,8 +515,8 @@ public class DirArtifactCache implements ArtifactCache {
     Path tmp = filesystem.createTempFile(getPreparedTempFolder(), "artifact", TMP_EXTENSION);
     try {
       filesystem.copyFile(output, tmp);
-      filesystem.move(tmp, artifactPath);
-      bytesSinceLastDeleteOldFiles += filesystem.getFileSize(artifactPath);
+      // Another thread may have stored the same artifact in the meantime.
+      filesystem.move(tmp, artifactPath, StandardCopyOption.REPLACE_EXISTING);
     } finally {
       filesystem.deleteFileAtPathIfExists(tmp);
     }
@@ -303,9 +529,55 @@ public class DirArtifactCache implements ArtifactCache {
 
   @Override
   public void close() {
+    // Let pending stores finish, so that nothing is lost and the final clean up sees them.
+    try {
+      if (!MostExecutors.shutdown(ioExecutorService, SHUTDOWN_TIMEOUT_MINUTES, TimeUnit.MINUTES)
+          || !MostExecutors.shutdown(
+              evictionExecutorService, SHUTDOWN_TIMEOUT_MINUTES, TimeUnit.MINUTES)) {
+        LOG.warn("Timed out waiting for %s cache operations to finish.", name);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return;
+    }
+
     // Do a cache clean up on exit only if cache was written to.
-    if (bytesSinceLastDeleteOldFiles > 0) {
+    if (bytesSinceLastDeleteOldFiles.get() > 0) {
       deleteOldFiles();
+    } else if (indexLog.needsCompaction(index.size())) {
+      synchronized (this) {
+        readIndexLog();
+        compactIndexLog();
+      }
+    }
+  }
+
+  /**
+   * Trims the cache in the background once enough has been stored to it. Until the index has been
+   * loaded, its total size isn't known, so the amount stored since the last trim is used instead.
+   */
+  private void maybeScheduleEviction() {
+    if (!maxCacheSizeBytes.isPresent()) {
+      return;
+    }
+    boolean shouldEvict =
+        index.isLoaded()
+            ? index.getTotalSizeBytes() > maxCacheSizeBytes.get()
+                || indexLog.needsCompaction(index.size())
+            : bytesSinceLastDeleteOldFiles.get()
+                > maxCacheSizeBytes.get() * STORED_TO_MAX_BYTES_RATIO_TRIM_TRIGGER;
+    if (!shouldEvict || !evictionScheduled.compareAndSet(false, true)) {
+      return;
+    }
+    try {
+      evictionExecutorService.execute(
+          () -> {
+            evictionScheduled.set(false);
+            deleteOldFiles();
+          });
+    } catch (RejectedExecutionException e) {
+      // The cache is being closed, which trims it anyway.
+      evictionScheduled.set(false);
     }
   }
 
@@ -316,20 +588,92 @@ public class DirArtifactCache implements ArtifactCache {
       return;
     }
 
-    Path cacheDirInFs = filesystem.resolve(cacheDir);
-    try {
-      synchronized (this) {
-        newDirectoryCleaner().clean(cacheDirInFs);
+    synchronized (this) {
+      bytesSinceLastDeleteOldFiles.set(0L);
+      readIndexLog();
+      if (!index.isLoaded()) {
+        // Walking the cache directory is slow, so record what it found for next time.
+        index.load(getSizesOfEntriesOnDisk());
+        compactIndexLog();
+      } else if (indexLog.needsCompaction(index.size())) {
+        compactIndexLog();
       }
-    } catch (IOException e) {
-      LOG.error(e, "Failed to clean path [%s].", cacheDirInFs);
+      long sizeBytes = index.getTotalSizeBytes();
+      if (sizeBytes <= maxCacheSizeBytes.get()) {
+        return;
+      }
+
+      long startMillis = System.currentTimeMillis();
+      DirArtifactCacheEvent.EvictionStarted started =
+          DirArtifactCacheEvent.evictionStarted(name, sizeBytes, pendingOperations.get());
+      buckEventBus.ifPresent(eventBus -> eventBus.post(started));
+
+      ImmutableList<Path> evicted =
+          index.removeLeastRecentlyUsed((long) (maxCacheSizeBytes.get() * MAX_BYTES_TRIM_RATIO));
+      for (Path artifactPath : evicted) {
+        try {
+          filesystem.deleteFileAtPathIfExists(
+              artifactPath.resolveSibling(artifactPath.getFileName() + METADATA_EXTENSION));
+          filesystem.deleteFileAtPathIfExists(artifactPath);
+        } catch (IOException e) {
+          LOG.warn(e, "Failed to evict %s from %s cache.", artifactPath, name);
+        }
+      }
+      try {
+        indexLog.appendRemovals(evicted);
+      } catch (IOException e) {
+        LOG.warn(e, "Failed to update the index of %s cache.", name);
+      }
+
+      long sizeBytesAfter = index.getTotalSizeBytes();
+      evictionTimeMs.addSample(System.currentTimeMillis() - startMillis);
+      evictedBytes.addSample(sizeBytes - sizeBytesAfter);
+      buckEventBus.ifPresent(
+          eventBus ->
+              eventBus.post(
+                  DirArtifactCacheEvent.evictionFinished(
+                      started, evicted.size(), sizeBytes - sizeBytesAfter, sizeBytesAfter)));
     }
   }
 
+  /**
+   * Walks the cache directory to find the size of every entry, to load the index with.
+   *
+   * @return the size of each entry, from the least to the most recently accessed.
+   */
+  private Map<Path, Long> getSizesOfEntriesOnDisk() {
+    Map<Path, Long> sizes = new HashMap<>();
+    Map<Path, Long> lastAccessMillis = new HashMap<>();
+    for (Path file : getAllFilesInCache()) {
+      String fileName = file.getFileName().toString();
+      Path artifactPath =
+          fileName.endsWith(METADATA_EXTENSION)
+              ? file.resolveSibling(
+                  fileName.substring(0, fileName.length() - METADATA_EXTENSION.length()))
+              : file;
+      try {
+        BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        sizes.merge(artifactPath, attributes.size(), Long::sum);
+        lastAccessMillis.merge(artifactPath, attributes.lastAccessTime().toMillis(), Math::max);
+      } catch (IOException e) {
+        LOG.debug(e, "Failed to read the attributes of %s.", file);
+      }
+    }
+
+    LinkedHashMap<Path, Long> sizesByLastAccess = new LinkedHashMap<>();
+    lastAccessMillis
+        .entrySet()
+        .stream()
+        .sorted(Map.Entry.comparingByValue())
+        .forEachOrdered(entry -> sizesByLastAccess.put(entry.getKey(), sizes.get(entry.getKey())));
+    return sizesByLastAccess;
+  }
+
   @VisibleForTesting
   List<Path> getAllFilesInCache() {
     final List<Path> allFiles = new ArrayList<>();
-    final Path tempFolderPath = getPathToTempFolder();
+    final Path tempFolderPath = filesystem.resolve(getPathToTempFolder());
+    final Path indexFolderPath = filesystem.resolve(getPathToIndexFolder());
     try {
       Files.walkFileTree(
           filesystem.resolve(cacheDir),
@@ -340,8 +684,9 @@ public class DirArtifactCache implements ArtifactCache {
             @Override
             public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs)
                 throws IOException {
-              // do not work with files in temp folder as they will be moved later
-              if (dir.equals(tempFolderPath)) {
+              // do not work with files in temp folder as they will be moved later, nor with the
+              // index, which isn't an artifact
+              if (dir.equals(tempFolderPath) || dir.equals(indexFolderPath)) {
                 return FileVisitResult.SKIP_SUBTREE;
               }
               return super.preVisitDirectory(dir, attrs);
@@ -361,36 +706,6 @@ public class DirArtifactCache implements ArtifactCache {
     return allFiles;
   }
 
-  private DirectoryCleaner newDirectoryCleaner() {
-    DirectoryCleanerArgs cleanerArgs =
-        DirectoryCleanerArgs.builder()
-            .setPathSelector(getDirectoryCleanerPathSelector())
-            .setMaxTotalSizeBytes(maxCacheSizeBytes.get())
-            .setMaxBytesAfterDeletion((long) (maxCacheSizeBytes.get() * MAX_BYTES_TRIM_RATIO))
-            .setMinAmountOfEntriesToKeep(0)
-            .build();
-
-    return new DirectoryCleaner(cleanerArgs);
-  }
-
-  @VisibleForTesting
-  DirectoryCleaner.PathSelector getDirectoryCleanerPathSelector() {
-    return new DirectoryCleaner.PathSelector() {
-      @Override
-      public Iterable<Path> getCandidatesToDelete(Path rootPath) throws IOException {
-        return getAllFilesInCache();
-      }
-
-      @Override
-      public int comparePaths(DirectoryCleaner.PathStats path1, DirectoryCleaner.PathStats path2) {
-        return ComparisonChain.start()
-            .compare(path1.getLastAccessMillis(), path2.getLastAccessMillis())
-            .compare(path1.getCreationMillis(), path2.getCreationMillis())
-            .result();
-      }
-    };
-  }
-
   @VisibleForTesting
   Path getCacheDir() {
     return cacheDir;
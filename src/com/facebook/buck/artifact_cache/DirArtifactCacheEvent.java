@@ -17,7 +17,9 @@
 package com.facebook.buck.artifact_cache;
 
 import com.facebook.buck.artifact_cache.ArtifactCacheEvent.Operation;
+import com.facebook.buck.event.AbstractBuckEvent;
 import com.facebook.buck.event.EventKey;
+import com.facebook.buck.event.LeafEvent;
 import com.facebook.buck.rules.RuleKey;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
@@ -115,4 +117,96 @@ public class DirArtifactCacheEvent {
       return "DirArtifactCacheEvent.Finished";
     }
   }
+
+  /** Posted around the background trimming of a dir cache that grew past its maximum size. */
+  public abstract static class EvictionEvent extends AbstractBuckEvent implements LeafEvent {
+    private final String cacheName;
+
+    protected EvictionEvent(EventKey eventKey, String cacheName) {
+      super(eventKey);
+      this.cacheName = cacheName;
+    }
+
+    public String getCacheName() {
+      return cacheName;
+    }
+
+    @Override
+    public String getCategory() {
+      return "dir_cache_eviction";
+    }
+
+    @Override
+    protected String getValueString() {
+      return cacheName;
+    }
+  }
+
+  public static EvictionStarted evictionStarted(
+      String cacheName, long sizeBytes, int pendingOperations) {
+    return new EvictionStarted(cacheName, sizeBytes, pendingOperations);
+  }
+
+  public static EvictionFinished evictionFinished(
+      EvictionStarted started, int evictedEntries, long evictedBytes, long sizeBytes) {
+    return new EvictionFinished(started, evictedEntries, evictedBytes, sizeBytes);
+  }
+
+  public static class EvictionStarted extends EvictionEvent {
+    private final long sizeBytes;
+    private final int pendingOperations;
+
+    protected EvictionStarted(String cacheName, long sizeBytes, int pendingOperations) {
+      super(EventKey.unique(), cacheName);
+      this.sizeBytes = sizeBytes;
+      this.pendingOperations = pendingOperations;
+    }
+
+    /** @return the size of the cache before the eviction. */
+    public long getSizeBytes() {
+      return sizeBytes;
+    }
+
+    /** @return the number of fetches and stores queued or running when the eviction started. */
+    public int getPendingOperations() {
+      return pendingOperations;
+    }
+
+    @Override
+    public String getEventName() {
+      return "DirArtifactCacheEvictionStarted";
+    }
+  }
+
+  public static class EvictionFinished extends EvictionEvent {
+    private final int evictedEntries;
+    private final long evictedBytes;
+    private final long sizeBytes;
+
+    protected EvictionFinished(
+        EvictionStarted started, int evictedEntries, long evictedBytes, long sizeBytes) {
+      super(started.getEventKey(), started.getCacheName());
+      this.evictedEntries = evictedEntries;
+      this.evictedBytes = evictedBytes;
+      this.sizeBytes = sizeBytes;
+    }
+
+    public int getEvictedEntries() {
+      return evictedEntries;
+    }
+
+    public long getEvictedBytes() {
+      return evictedBytes;
+    }
+
+    /** @return the size of the cache after the eviction. */
+    public long getSizeBytes() {
+      return sizeBytes;
+    }
+
+    @Override
+    public String getEventName() {
+      return "DirArtifactCacheEvictionFinished";
+    }
+  }
 }
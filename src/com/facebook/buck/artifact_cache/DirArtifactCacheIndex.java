@@ -0,0 +1,128 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.artifact_cache;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Tracks the size and recency of use of the entries of a {@link DirArtifactCache}, so that it can
+ * be trimmed without walking the cache directory every time.
+ *
+ * <p>Entries are keyed by the path of their artifact file, and their size accounts for both it and
+ * its metadata file. The index starts out empty and only knows about the entries used since the
+ * cache was created until it is {@link #load loaded} with the entries found on disk, or replayed
+ * from a {@link DirArtifactCacheIndexLog}.
+ */
+class DirArtifactCacheIndex {
+
+  // Iterates from the least to the most recently used entry.
+  private LinkedHashMap<Path, Long> sizes = newAccessOrderedMap();
+  private long totalSizeBytes = 0;
+  private boolean loaded = false;
+
+  /** Records a stored entry, replacing any previous entry for the same artifact. */
+  public synchronized void add(Path artifactPath, long sizeBytes) {
+    Long previousSize = sizes.put(artifactPath, sizeBytes);
+    totalSizeBytes += sizeBytes - (previousSize == null ? 0 : previousSize);
+  }
+
+  /** Marks an entry as the most recently used one. */
+  public synchronized void touch(Path artifactPath) {
+    sizes.get(artifactPath);
+  }
+
+  public synchronized void remove(Path artifactPath) {
+    Long previousSize = sizes.remove(artifactPath);
+    if (previousSize != null) {
+      totalSizeBytes -= previousSize;
+    }
+  }
+
+  public synchronized boolean contains(Path artifactPath) {
+    return sizes.containsKey(artifactPath);
+  }
+
+  /** Forgets every entry, and that the index was loaded. */
+  public synchronized void clear() {
+    sizes = newAccessOrderedMap();
+    totalSizeBytes = 0;
+    loaded = false;
+  }
+
+  public synchronized int size() {
+    return sizes.size();
+  }
+
+  public synchronized long getTotalSizeBytes() {
+    return totalSizeBytes;
+  }
+
+  public synchronized boolean isLoaded() {
+    return loaded;
+  }
+
+  /**
+   * Adds the entries found on disk to the index. They are considered older than any entry recorded
+   * since the index was created, and entries the index already knows about are left untouched.
+   *
+   * @param sizesOnDisk the size of each entry, iterating from the least recently used one.
+   */
+  public synchronized void load(Map<Path, Long> sizesOnDisk) {
+    LinkedHashMap<Path, Long> merged = newAccessOrderedMap();
+    for (Map.Entry<Path, Long> entry : sizesOnDisk.entrySet()) {
+      if (!sizes.containsKey(entry.getKey())) {
+        merged.put(entry.getKey(), entry.getValue());
+        totalSizeBytes += entry.getValue();
+      }
+    }
+    merged.putAll(sizes);
+    sizes = merged;
+    loaded = true;
+  }
+
+  /** @return the size of each entry, iterating from the least recently used one. */
+  public synchronized ImmutableMap<Path, Long> getEntries() {
+    return ImmutableMap.copyOf(sizes);
+  }
+
+  /**
+   * Removes the least recently used entries until the total size is at most {@code
+   * targetSizeBytes}.
+   *
+   * @return the artifact paths of the removed entries.
+   */
+  public synchronized ImmutableList<Path> removeLeastRecentlyUsed(long targetSizeBytes) {
+    ImmutableList.Builder<Path> removed = ImmutableList.builder();
+    Iterator<Map.Entry<Path, Long>> iterator = sizes.entrySet().iterator();
+    while (totalSizeBytes > targetSizeBytes && iterator.hasNext()) {
+      Map.Entry<Path, Long> entry = iterator.next();
+      totalSizeBytes -= entry.getValue();
+      removed.add(entry.getKey());
+      iterator.remove();
+    }
+    return removed.build();
+  }
+
+  private static LinkedHashMap<Path, Long> newAccessOrderedMap() {
+    return new LinkedHashMap<>(16, 0.75f, /* accessOrder */ true);
+  }
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.artifact_cache;
+
+import com.facebook.buck.io.filesystem.ProjectFilesystem;
+import com.facebook.buck.util.recordlog.RecordLog;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * An append-only log of the changes made to a {@link DirArtifactCacheIndex}, kept in the cache
+ * directory so that the index of a large cache can be loaded without walking it.
+ *
+ * <p>The log starts with a snapshot of the whole index, written when it is {@link #compact
+ * compacted}, followed by a record of every entry added, used or removed since. All the builds
+ * sharing a cache directory append to the same log, a whole record per write, and pick up each
+ * other's records when they {@link #readNewRecords read} it. Compacting replaces the log with one
+ * of a new generation, which tells readers to reload the index from scratch.
+ *
+ * <p>Records hold the path of the artifact relative to the cache directory. See {@link RecordLog}
+ * for how they're laid out in the log.
+ */
+class DirArtifactCacheIndexLog {
+
+  private static final int MAGIC = 0x42444349;
+  private static final int VERSION = 1;
+  private static final int MAX_RECORD_SIZE_BYTES = 64 * 1024;
+  // Don't bother compacting small logs, however many duplicate records they hold.
+  private static final long MIN_RECORDS_BEFORE_COMPACTION = 10000;
+
+  enum Operation {
+    ADD,
+    TOUCH,
+    REMOVE,
+  }
+
+  private final RecordLog log;
+  private final Path cacheRoot;
+
+  // The generation of the log that has been read so far, or 0 if none has.
+  private long generation = 0;
+  private long readOffset = 0;
+  private long recordsSinceCompaction = 0;
+
+  /**
+   * @param logPath the path of the log, relative to the project root.
+   * @param cacheRoot the absolute path of the cache directory, which paths are recorded relative
+   *     to.
+   */
+  public DirArtifactCacheIndexLog(ProjectFilesystem filesystem, Path logPath, Path cacheRoot) {
+    this.log =
+        new RecordLog(
+            filesystem, logPath, "dir cache index log", MAGIC, VERSION, MAX_RECORD_SIZE_BYTES);
+    this.cacheRoot = cacheRoot;
+  }
+
+  /**
+   * Whether the log has been created. Until it is, by the first {@link #compact}, nothing is
+   * appended to it.
+   */
+  public boolean exists() {
+    return log.exists();
+  }
+
+  /** Appends a record of a change to the index, if the log has been created. */
+  public void append(Operation operation, Path artifactPath, long sizeBytes) throws IOException {
+    append(ImmutableList.of(encodeRecord(operation, artifactPath, sizeBytes)));
+  }
+
+  /** Appends records of the removal of {@code artifactPaths}, if the log has been created. */
+  public void appendRemovals(Iterable<Path> artifactPaths) throws IOException {
+    List<byte[]> records = new ArrayList<>();
+    for (Path artifactPath : artifactPaths) {
+      records.add(encodeRecord(Operation.REMOVE, artifactPath, 0));
+    }
+    if (!records.isEmpty()) {
+      append(records);
+    }
+  }
+
+  private synchronized void append(List<byte[]> records) throws IOException {
+    if (!exists()) {
+      return;
+    }
+    // Other builds may be appending to the log too, so all of the records are written at once.
+    log.append(records);
+    recordsSinceCompaction += records.size();
+  }
+
+  /**
+   * Applies the records appended to the log since it was last read to {@code index}. If the log
+   * was compacted in the meantime, or has never been read, the index is cleared and reloaded from
+   * the whole log instead.
+   *
+   * @throws IOException if the log can't be read or is corrupt.
+   */
+  public synchronized void readNewRecords(DirArtifactCacheIndex index) throws IOException {
+    try (RecordLog.Reader reader = log.newReader()) {
+      long logGeneration = reader.getHeaderInput().readLong();
+      if (logGeneration != generation) {
+        index.clear();
+        generation = logGeneration;
+        readOffset = reader.getOffset();
+        recordsSinceCompaction = 0;
+      } else {
+        reader.skipTo(readOffset);
+      }
+      // A record cut short is one another build is appending right now, which is read next time.
+      byte[] record;
+      while ((record = reader.readRecord()) != null) {
+        applyRecord(record, index);
+        readOffset = reader.getOffset();
+        recordsSinceCompaction++;
+      }
+    }
+    // The log holds every entry of the cache, so there's nothing else to load.
+    if (!index.isLoaded()) {
+      index.load(ImmutableMap.of());
+    }
+  }
+
+  /**
+   * Replaces the log with a snapshot of {@code index}, creating it if needed. It should be read
+   * right before, as the records other builds appended since are only carried over to the new log
+   * as they are.
+   */
+  public synchronized void compact(DirArtifactCacheIndex index) throws IOException {
+    long newGeneration;
+    do {
+      newGeneration = ThreadLocalRandom.current().nextLong();
+    } while (newGeneration == 0 || newGeneration == generation);
+
+    long sizeBytes;
+    long carriedOver = 0;
+    try (RecordLog.Rewriter rewriter = log.newRewriter()) {
+      rewriter.getHeaderOutput().writeLong(newGeneration);
+      for (Map.Entry<Path, Long> entry : index.getEntries().entrySet()) {
+        rewriter.writeRecord(encodeRecord(Operation.ADD, entry.getKey(), entry.getValue()));
+      }
+
+      // Other builds keep appending to the log while the snapshot is written, so copy the records
+      // they appended since it was read right before replacing it, or they would be lost.
+      if (exists()) {
+        try (RecordLog.Reader reader = log.newReader()) {
+          if (reader.getHeaderInput().readLong() != generation) {
+            // Another build compacted the log since it was read, so there's no need to.
+            return;
+          }
+          reader.skipTo(readOffset);
+          byte[] record;
+          while ((record = reader.readRecord()) != null) {
+            applyRecord(record, index);
+            rewriter.writeRecord(record);
+            carriedOver++;
+          }
+        }
+      }
+
+      rewriter.commit();
+      sizeBytes = rewriter.getSizeBytes();
+    }
+
+    generation = newGeneration;
+    readOffset = sizeBytes;
+    recordsSinceCompaction = carriedOver;
+  }
+
+  /** Whether enough records have been appended that a compacted log would be much smaller. */
+  public synchronized boolean needsCompaction(int indexSize) {
+    return recordsSinceCompaction > Math.max(MIN_RECORDS_BEFORE_COMPACTION, indexSize);
+  }
+
+  /** Deletes the log, so that nothing is appended to it until it's created again. */
+  public synchronized void delete() throws IOException {
+    log.delete();
+    generation = 0;
+    readOffset = 0;
+    recordsSinceCompaction = 0;
+  }
+
+  private void applyRecord(byte[] record, DirArtifactCacheIndex index) throws IOException {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+    int ordinal = in.readUnsignedByte();
+    if (ordinal >= Operation.values().length) {
+      throw new IOException(String.format("Unknown dir cache index log operation %d.", ordinal));
+    }
+    Path artifactPath = cacheRoot.resolve(in.readUTF());
+    switch (Operation.values()[ordinal]) {
+      case ADD:
+        index.add(artifactPath, in.readLong());
+        break;
+      case TOUCH:
+        index.touch(artifactPath);
+        break;
+      case REMOVE:
+        index.remove(artifactPath);
+        break;
+    }
+  }
+
+  private byte[] encodeRecord(Operation operation, Path artifactPath, long sizeBytes)
+      throws IOException {
+    ByteArrayOutputStream record = new ByteArrayOutputStream();
+    try (DataOutputStream out = new DataOutputStream(record)) {
+      out.writeByte(operation.ordinal());
+      out.writeUTF(cacheRoot.relativize(artifactPath).toString());
+      if (operation == Operation.ADD) {
+        out.writeLong(sizeBytes);
+      }
+    }
+    return record.toByteArray();
+  }
+}
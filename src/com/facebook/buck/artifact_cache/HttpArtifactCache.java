@@ -20,6 +20,8 @@ import com.facebook.buck.io.file.LazyPath;
 import com.facebook.buck.log.Logger;
 import com.facebook.buck.rules.RuleKey;
 import com.facebook.buck.slb.HttpResponse;
+import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.io.ByteSource;
 import java.io.DataInputStream;
@@ -29,7 +31,9 @@ import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
+import java.util.Collections;
 import java.util.List;
+import java.util.Optional;
 import okhttp3.MediaType;
 import okhttp3.Request;
 import okhttp3.RequestBody;
@@ -47,12 +51,66 @@ public final class HttpArtifactCache extends AbstractNetworkCache {
    */
   private static final Logger LOG = Logger.get(HttpArtifactCache.class);
 
+  // The responses of servers which don't have the multi-fetch endpoint.
+  private static final ImmutableSet<Integer> MULTI_FETCH_UNSUPPORTED_STATUS_CODES =
+      ImmutableSet.of(
+          HttpURLConnection.HTTP_NOT_FOUND,
+          HttpURLConnection.HTTP_BAD_METHOD,
+          HttpURLConnection.HTTP_NOT_IMPLEMENTED);
+
+  private final boolean streamingFetchEnabled;
+  private final int multiFetchLimit;
+  private final int concurrencyLevel;
+
+  // Cleared once the server turns out not to support multi-fetch, for the rest of the command.
+  private volatile boolean multiFetchSupported = true;
+
   public HttpArtifactCache(NetworkCacheArgs args) {
+    this(args, /* multiFetchLimit */ 0, /* concurrencyLevel */ 0);
+  }
+
+  /**
+   * @param multiFetchLimit the most artifacts to fetch in a single request, or 0 to fetch each of
+   *     them with a request of its own.
+   * @param concurrencyLevel the number of requests made at the same time, which the pending
+   *     fetches are spread over.
+   */
+  public HttpArtifactCache(NetworkCacheArgs args, int multiFetchLimit, int concurrencyLevel) {
     super(args);
+    this.streamingFetchEnabled = args.getStreamingFetchEnabled();
+    this.multiFetchLimit = multiFetchLimit;
+    this.concurrencyLevel = concurrencyLevel;
   }
 
   @Override
   protected FetchResult fetchImpl(RuleKey ruleKey, LazyPath output) throws IOException {
+    return fetchImpl(ruleKey, new FilePayloadSink(output));
+  }
+
+  @Override
+  protected FetchResult fetchImpl(
+      RuleKey ruleKey, LazyPath output, ArtifactPayloadConsumer payloadConsumer)
+      throws IOException {
+    if (!streamingFetchEnabled) {
+      return super.fetchImpl(ruleKey, output, payloadConsumer);
+    }
+    return fetchImpl(
+        ruleKey,
+        new PayloadSink() {
+          @Override
+          public FetchResponseReadResult read(DataInputStream input) throws IOException {
+            return HttpArtifactCacheBinaryProtocol.readFetchResponse(input, payloadConsumer);
+          }
+
+          @Override
+          public void commit() {}
+
+          @Override
+          public void discard() {}
+        });
+  }
+
+  private FetchResult fetchImpl(RuleKey ruleKey, PayloadSink payloadSink) throws IOException {
     FetchResult.Builder resultBuilder = FetchResult.builder();
     Request.Builder requestBuilder = new Request.Builder().get();
     try (HttpResponse response =
@@ -76,55 +134,101 @@ public final class HttpArtifactCache extends AbstractNetworkCache {
           return resultBuilder.setCacheResult(CacheResult.error(getName(), getMode(), msg)).build();
         }
 
-        // Setup a temporary file, which sits next to the destination, to write to and
-        // make sure all parent dirs exist.
-        Path file = output.get();
-        getProjectFilesystem().createParentDirs(file);
-        Path temp =
-            getProjectFilesystem()
-                .createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
-
-        FetchResponseReadResult fetchedData;
-        try (OutputStream tempFileOutputStream = getProjectFilesystem().newFileOutputStream(temp)) {
-          fetchedData =
-              HttpArtifactCacheBinaryProtocol.readFetchResponse(input, tempFileOutputStream);
-        }
+        return readFetchResponse(response.requestUrl(), ruleKey, input, payloadSink, resultBuilder);
+      }
+    }
+  }
 
-        resultBuilder
-            .setBuildTarget(ArtifactCacheEvent.getTarget(fetchedData.getMetadata()))
-            .setResponseSizeBytes(fetchedData.getResponseSizeBytes())
-            .setArtifactContentHash(fetchedData.getArtifactOnlyHashCode().toString());
+  private FetchResult readFetchResponse(
+      String requestUrl,
+      RuleKey ruleKey,
+      DataInputStream input,
+      PayloadSink payloadSink,
+      FetchResult.Builder resultBuilder)
+      throws IOException {
+    FetchResponseReadResult fetchedData = payloadSink.read(input);
 
-        // Verify that we were one of the rule keys that stored this artifact.
-        if (!fetchedData.getRuleKeys().contains(ruleKey)) {
-          String msg = "incorrect key name";
-          reportFailureWithFormatKey("fetch(%s, %s): %s", response.requestUrl(), ruleKey, msg);
-          return resultBuilder.setCacheResult(CacheResult.error(getName(), getMode(), msg)).build();
-        }
+    resultBuilder
+        .setBuildTarget(ArtifactCacheEvent.getTarget(fetchedData.getMetadata()))
+        .setResponseSizeBytes(fetchedData.getResponseSizeBytes())
+        .setArtifactContentHash(fetchedData.getArtifactOnlyHashCode().toString());
 
-        // Now form the checksum on the file we got and compare it to the checksum form the
-        // the HTTP header.  If it's incorrect, log this and return a miss.
-        if (!fetchedData.getExpectedHashCode().equals(fetchedData.getActualHashCode())) {
-          String msg = "artifact had invalid checksum";
-          reportFailureWithFormatKey("fetch(%s, %s): %s", response.requestUrl(), ruleKey, msg);
-          getProjectFilesystem().deleteFileAtPath(temp);
-          return resultBuilder.setCacheResult(CacheResult.error(getName(), getMode(), msg)).build();
-        }
+    // Verify that we were one of the rule keys that stored this artifact.
+    if (!fetchedData.getRuleKeys().contains(ruleKey)) {
+      String msg = "incorrect key name";
+      reportFailureWithFormatKey("fetch(%s, %s): %s", requestUrl, ruleKey, msg);
+      payloadSink.discard();
+      return resultBuilder.setCacheResult(CacheResult.error(getName(), getMode(), msg)).build();
+    }
+
+    // Now form the checksum on the file we got and compare it to the checksum form the
+    // the HTTP header.  If it's incorrect, log this and return a miss.
+    if (!fetchedData.getExpectedHashCode().equals(fetchedData.getActualHashCode())) {
+      String msg = "artifact had invalid checksum";
+      reportFailureWithFormatKey("fetch(%s, %s): %s", requestUrl, ruleKey, msg);
+      payloadSink.discard();
+      return resultBuilder.setCacheResult(CacheResult.error(getName(), getMode(), msg)).build();
+    }
+
+    payloadSink.commit();
+
+    LOG.info("fetch(%s, %s): cache hit", requestUrl, ruleKey);
+    return resultBuilder
+        .setCacheResult(
+            CacheResult.hit(
+                getName(),
+                getMode(),
+                fetchedData.getMetadata(),
+                fetchedData.getResponseSizeBytes()))
+        .build();
+  }
 
-        // Finally, move the temp file into it's final place.
-        getProjectFilesystem().move(temp, file, StandardCopyOption.REPLACE_EXISTING);
-
-        LOG.info("fetch(%s, %s): cache hit", response.requestUrl(), ruleKey);
-        return resultBuilder
-            .setCacheResult(
-                CacheResult.hit(
-                    getName(),
-                    getMode(),
-                    fetchedData.getMetadata(),
-                    fetchedData.getResponseSizeBytes()))
-            .build();
+  /** Where the payload of a successful fetch response ends up. */
+  private interface PayloadSink {
+    FetchResponseReadResult read(DataInputStream input) throws IOException;
+
+    /** Called once the payload has been verified. */
+    void commit() throws IOException;
+
+    /** Called if the payload turns out not to be the requested artifact. */
+    void discard() throws IOException;
+  }
+
+  /** Downloads the payload to a temporary file, which is moved to the output once verified. */
+  private class FilePayloadSink implements PayloadSink {
+    private final LazyPath output;
+    private Path file;
+    private Path temp;
+
+    private FilePayloadSink(LazyPath output) {
+      this.output = output;
+    }
+
+    @Override
+    public FetchResponseReadResult read(DataInputStream input) throws IOException {
+      // Setup a temporary file, which sits next to the destination, to write to and
+      // make sure all parent dirs exist.
+      file = output.get();
+      getProjectFilesystem().createParentDirs(file);
+      temp =
+          getProjectFilesystem()
+              .createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+
+      try (OutputStream tempFileOutputStream = getProjectFilesystem().newFileOutputStream(temp)) {
+        return HttpArtifactCacheBinaryProtocol.readFetchResponse(input, tempFileOutputStream);
       }
     }
+
+    @Override
+    public void commit() throws IOException {
+      // Finally, move the temp file into it's final place.
+      getProjectFilesystem().move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    @Override
+    public void discard() throws IOException {
+      getProjectFilesystem().deleteFileAtPath(temp);
+    }
   }
 
   @Override
@@ -194,9 +298,110 @@ public final class HttpArtifactCache extends AbstractNetworkCache {
     throw new RuntimeException("Delete operation is not yet supported");
   }
 
+  @Override
+  protected int getMultiFetchBatchSize(int pendingRequestsSize) {
+    if (multiFetchSupported && concurrencyLevel > 0) {
+      return Math.min(multiFetchLimit, 1 + pendingRequestsSize / concurrencyLevel);
+    }
+    return 0;
+  }
+
   @Override
   protected MultiFetchResult multiFetchImpl(
       Iterable<AbstractAsynchronousCache.FetchRequest> requests) throws IOException {
-    throw new RuntimeException("multiFetch not supported");
+    ImmutableList<FetchRequest> requestList = ImmutableList.copyOf(requests);
+    ImmutableList<RuleKey> ruleKeys =
+        requestList
+            .stream()
+            .map(FetchRequest::getRuleKey)
+            .collect(ImmutableList.toImmutableList());
+    Request.Builder requestBuilder =
+        new Request.Builder()
+            .post(
+                RequestBody.create(
+                    OCTET_STREAM_CONTENT_TYPE,
+                    HttpArtifactCacheBinaryProtocol.createMultiFetchRequest(ruleKeys)));
+    try (HttpResponse response = fetchClient.makeRequest("/artifacts/multikey", requestBuilder)) {
+      try (DataInputStream input =
+          new DataInputStream(new FullyReadOnCloseInputStream(response.getBody()))) {
+        if (!MULTI_FETCH_UNSUPPORTED_STATUS_CODES.contains(response.statusCode())) {
+          return readMultiFetchResponse(response, input, requestList, ruleKeys);
+        }
+        LOG.info(
+            "multifetch(%s): not supported by the server [%d:%s], fetching keys one at a time.",
+            response.requestUrl(), response.statusCode(), response.statusMessage());
+      }
+    }
+    multiFetchSupported = false;
+    return fetchFirstAndSkipRest(requestList);
+  }
+
+  private MultiFetchResult readMultiFetchResponse(
+      HttpResponse response,
+      DataInputStream input,
+      ImmutableList<FetchRequest> requestList,
+      ImmutableList<RuleKey> ruleKeys)
+      throws IOException {
+    if (response.statusCode() != HttpURLConnection.HTTP_OK) {
+      String msg =
+          String.format(
+              "unexpected server response: [%d:%s]",
+              response.statusCode(), response.statusMessage());
+      reportFailureWithFormatKey(
+          "multifetch(%s, <%s>): %s", response.requestUrl(), Joiner.on(", ").join(ruleKeys), msg);
+      FetchResult error =
+          FetchResult.builder()
+              .setCacheResult(CacheResult.error(getName(), getMode(), msg))
+              .build();
+      return MultiFetchResult.of(Collections.nCopies(ruleKeys.size(), error));
+    }
+
+    // The response holds an entry for each of the rule keys, in the order they were requested.
+    int entryCount = HttpArtifactCacheBinaryProtocol.readMultiFetchResponseHeader(input);
+    if (entryCount != ruleKeys.size()) {
+      throw new IOException(
+          String.format(
+              "Multi-fetch response has %d entries for %d rule keys.",
+              entryCount, ruleKeys.size()));
+    }
+    ImmutableList.Builder<FetchResult> results = ImmutableList.builder();
+    for (FetchRequest request : requestList) {
+      results.add(readMultiFetchResponseEntry(response.requestUrl(), request, input));
+    }
+    return MultiFetchResult.of(results.build());
+  }
+
+  /**
+   * Fetches the first of {@code requests} on its own, and skips the rest, which are rescheduled
+   * and fetched one at a time once multi-fetch is disabled.
+   */
+  private MultiFetchResult fetchFirstAndSkipRest(ImmutableList<FetchRequest> requests)
+      throws IOException {
+    FetchRequest first = requests.get(0);
+    FetchResult skipped = FetchResult.builder().setCacheResult(CacheResult.skipped()).build();
+    return MultiFetchResult.of(
+        ImmutableList.<FetchResult>builder()
+            .add(fetchImpl(first.getRuleKey(), first.getOutput()))
+            .addAll(Collections.nCopies(requests.size() - 1, skipped))
+            .build());
+  }
+
+  private FetchResult readMultiFetchResponseEntry(
+      String requestUrl, FetchRequest request, DataInputStream input) throws IOException {
+    RuleKey ruleKey = request.getRuleKey();
+    Optional<DataInputStream> entry =
+        HttpArtifactCacheBinaryProtocol.readMultiFetchResponseEntry(input);
+    if (!entry.isPresent()) {
+      LOG.info("multifetch(%s, %s): cache miss", requestUrl, ruleKey);
+      return FetchResult.builder().setCacheResult(CacheResult.miss()).build();
+    }
+    try (DataInputStream entryInput = entry.get()) {
+      return readFetchResponse(
+          requestUrl,
+          ruleKey,
+          entryInput,
+          new FilePayloadSink(request.getOutput()),
+          FetchResult.builder());
+    }
   }
 }
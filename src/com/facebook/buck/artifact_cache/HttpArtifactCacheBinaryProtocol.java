@@ -22,6 +22,7 @@ import com.facebook.buck.util.hash.HasherOutputStream;
 import com.facebook.buck.util.immutables.BuckStyleImmutable;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.hash.HashCode;
@@ -30,14 +31,17 @@ import com.google.common.hash.Hasher;
 import com.google.common.hash.Hashing;
 import com.google.common.io.ByteSource;
 import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingInputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.Map;
+import java.util.Optional;
 import org.immutables.value.Value;
 
 /** Implements the binary protocol used by Buck to talk to the cache server. */
@@ -46,6 +50,9 @@ public class HttpArtifactCacheBinaryProtocol {
   private static final HashFunction HASH_FUNCTION = Hashing.crc32();
   // 64MB should be enough for everyone.
   private static final long MAX_METADATA_HEADER_SIZE = 64 * 1024 * 1024;
+  // Markers preceding each entry of a multi-fetch response.
+  private static final byte MULTI_FETCH_MISS = 0;
+  private static final byte MULTI_FETCH_HIT = 1;
 
   private HttpArtifactCacheBinaryProtocol() {
     // Utility class, don't instantiate.
@@ -61,6 +68,95 @@ public class HttpArtifactCacheBinaryProtocol {
     return result.build();
   }
 
+  /**
+   * Like {@link #readFetchResponse(DataInputStream, OutputStream)}, but hands the payload to {@code
+   * payloadConsumer} as it is read rather than copying it somewhere. Whatever the consumer leaves
+   * unread is skipped over, so that the checksum still covers the whole payload.
+   */
+  public static FetchResponseReadResult readFetchResponse(
+      DataInputStream input, ArtifactPayloadConsumer payloadConsumer) throws IOException {
+
+    MetadataAndPayloadReadResultInternal resultInternal =
+        readMetadataAndPayload(
+            input,
+            (metadata, payload) -> {
+              CountingInputStream countingPayload = new CountingInputStream(payload);
+              payloadConsumer.consume(metadata, countingPayload);
+              ByteStreams.exhaust(countingPayload);
+              return countingPayload.getCount();
+            });
+
+    FetchResponseReadResult.Builder result = FetchResponseReadResult.builder().from(resultInternal);
+    return result.build();
+  }
+
+  /**
+   * Creates the body of a request fetching the artifacts of {@code ruleKeys} at once: the number of
+   * keys, followed by each of them.
+   */
+  public static byte[] createMultiFetchRequest(ImmutableList<RuleKey> ruleKeys)
+      throws IOException {
+    try (ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(out)) {
+      data.writeInt(ruleKeys.size());
+      for (RuleKey ruleKey : ruleKeys) {
+        data.writeUTF(ruleKey.toString());
+      }
+      return out.toByteArray();
+    }
+  }
+
+  public static ImmutableList<RuleKey> readMultiFetchRequest(DataInputStream input)
+      throws IOException {
+    int ruleKeysCount = input.readInt();
+    if (ruleKeysCount < 0) {
+      throw new IOException(String.format("Invalid number of rule keys %d.", ruleKeysCount));
+    }
+    ImmutableList.Builder<RuleKey> ruleKeys = ImmutableList.builder();
+    for (int i = 0; i < ruleKeysCount; i++) {
+      ruleKeys.add(new RuleKey(input.readUTF()));
+    }
+    return ruleKeys.build();
+  }
+
+  /** @return the number of entries in the multi-fetch response, one per requested rule key. */
+  public static int readMultiFetchResponseHeader(DataInputStream input) throws IOException {
+    return input.readInt();
+  }
+
+  /**
+   * Reads the start of the next entry of a multi-fetch response.
+   *
+   * @return nothing if the artifact wasn't found, or a stream over the entry, which has the same
+   *     format as a single fetch response and can be read with {@link
+   *     #readFetchResponse(DataInputStream, OutputStream)}. Whatever is left unread of the entry is
+   *     skipped when the stream is closed, leaving {@code input} at the next entry.
+   */
+  public static Optional<DataInputStream> readMultiFetchResponseEntry(DataInputStream input)
+      throws IOException {
+    byte marker = input.readByte();
+    if (marker == MULTI_FETCH_MISS) {
+      return Optional.empty();
+    }
+    if (marker != MULTI_FETCH_HIT) {
+      throw new IOException(String.format("Invalid multi-fetch entry marker %d.", marker));
+    }
+    long entrySize = input.readLong();
+    if (entrySize < 0) {
+      throw new IOException(String.format("Invalid multi-fetch entry size %d.", entrySize));
+    }
+    InputStream entry = ByteStreams.limit(input, entrySize);
+    return Optional.of(
+        new DataInputStream(
+            new FilterInputStream(entry) {
+              @Override
+              public void close() throws IOException {
+                // The entry is followed by the rest of the response, so leave that open.
+                ByteStreams.exhaust(entry);
+              }
+            }));
+  }
+
   public static StoreResponseReadResult readStoreRequest(
       DataInputStream input, OutputStream payloadSink) throws IOException {
     ImmutableSet.Builder<RuleKey> rawRuleKeys = ImmutableSet.builder();
@@ -79,6 +175,18 @@ public class HttpArtifactCacheBinaryProtocol {
 
   public static MetadataAndPayloadReadResultInternal readMetadataAndPayload(
       DataInputStream input, OutputStream payloadSink) throws IOException {
+    return readMetadataAndPayload(
+        input, (metadata, payload) -> ByteStreams.copy(payload, payloadSink));
+  }
+
+  /** Processes the payload of a request or response once its metadata has been read. */
+  private interface PayloadReader {
+    /** @return the number of bytes read from {@code payload}. */
+    long read(ImmutableMap<String, String> metadata, InputStream payload) throws IOException;
+  }
+
+  private static MetadataAndPayloadReadResultInternal readMetadataAndPayload(
+      DataInputStream input, PayloadReader payloadReader) throws IOException {
     // Read the size of a the metadata, and use that to build a input stream to read and
     // process the rest of it.
     int metadataSize = input.readInt();
@@ -90,6 +198,7 @@ public class HttpArtifactCacheBinaryProtocol {
     // Create a hasher to be used to generate a hash of the metadata and input.  We'll use
     // this to compare against the embedded checksum.
     Hasher hasher = HASH_FUNCTION.newHasher();
+    ImmutableMap.Builder<String, String> metadata = ImmutableMap.builder();
     byte[] rawMetadata = new byte[metadataSize];
     ByteStreams.readFully(input, rawMetadata);
     try (InputStream rawMetadataIn = new ByteArrayInputStream(rawMetadata)) {
@@ -112,7 +221,7 @@ public class HttpArtifactCacheBinaryProtocol {
           int valSize = metadataIn.readInt();
           byte[] val = new byte[valSize];
           ByteStreams.readFully(metadataIn, val);
-          result.putMetadata(key, new String(val, Charsets.UTF_8));
+          metadata.put(key, new String(val, Charsets.UTF_8));
         }
       }
 
@@ -123,12 +232,15 @@ public class HttpArtifactCacheBinaryProtocol {
       result.setExpectedHashCode(HashCode.fromBytes(hashCodeBytes));
     }
 
-    // The remaining data is the payload, which we write to the created file, and also include
+    ImmutableMap<String, String> metadataMap = metadata.build();
+    result.setMetadata(metadataMap);
+
+    // The remaining data is the payload, which we hand to the payload reader, and also include
     // in our verification checksum.
     Hasher artifactOnlyHasher = HASH_FUNCTION.newHasher();
     try (InputStream payload =
         new HasherInputStream(artifactOnlyHasher, new HasherInputStream(hasher, input))) {
-      result.setResponseSizeBytes(ByteStreams.copy(payload, payloadSink));
+      result.setResponseSizeBytes(payloadReader.read(metadataMap, payload));
       result.setArtifactOnlyHashCode(artifactOnlyHasher.hash());
     }
 
@@ -247,9 +359,56 @@ public class HttpArtifactCacheBinaryProtocol {
 
     public void write(OutputStream responseSink) throws IOException {
       try (DataOutputStream dataOutputStream = new DataOutputStream(responseSink)) {
-        dataOutputStream.writeInt(rawMetadata.length);
-        dataOutputStream.write(rawMetadata);
-        ByteStreams.copy(payloadSource.openStream(), responseSink);
+        writeUnclosed(dataOutputStream);
+      }
+    }
+
+    private void writeUnclosed(DataOutputStream dataOutputStream) throws IOException {
+      dataOutputStream.writeInt(rawMetadata.length);
+      dataOutputStream.write(rawMetadata);
+      try (InputStream payload = payloadSource.openStream()) {
+        ByteStreams.copy(payload, dataOutputStream);
+      }
+    }
+  }
+
+  /**
+   * A response to a multi-fetch request: the number of entries, followed by an entry for each of
+   * the requested rule keys, in order. An entry is either a miss marker, or a hit marker followed
+   * by the size of a {@link FetchResponse} and the response itself.
+   */
+  public static class MultiFetchResponse {
+    private final ImmutableList<Optional<FetchResponse>> entries;
+    private final long contentLength;
+
+    public MultiFetchResponse(ImmutableList<Optional<FetchResponse>> entries) {
+      this.entries = entries;
+      long length = Integer.SIZE / Byte.SIZE;
+      for (Optional<FetchResponse> entry : entries) {
+        length += 1;
+        if (entry.isPresent()) {
+          length += Long.SIZE / Byte.SIZE + entry.get().getContentLength();
+        }
+      }
+      this.contentLength = length;
+    }
+
+    public long getContentLength() {
+      return contentLength;
+    }
+
+    public void write(OutputStream responseSink) throws IOException {
+      try (DataOutputStream dataOutputStream = new DataOutputStream(responseSink)) {
+        dataOutputStream.writeInt(entries.size());
+        for (Optional<FetchResponse> entry : entries) {
+          if (!entry.isPresent()) {
+            dataOutputStream.writeByte(MULTI_FETCH_MISS);
+            continue;
+          }
+          dataOutputStream.writeByte(MULTI_FETCH_HIT);
+          dataOutputStream.writeLong(entry.get().getContentLength());
+          entry.get().writeUnclosed(dataOutputStream);
+        }
       }
     }
   }
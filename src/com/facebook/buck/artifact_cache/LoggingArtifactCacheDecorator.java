@@ -26,6 +26,7 @@ import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.MoreExecutors;
 import java.util.List;
+import java.util.function.Supplier;
 
 /**
  * Decorator for wrapping a {@link ArtifactCache} to log a {@link ArtifactCacheEvent} for the start
@@ -45,10 +46,21 @@ public class LoggingArtifactCacheDecorator implements ArtifactCache, CacheDecora
 
   @Override
   public ListenableFuture<CacheResult> fetchAsync(RuleKey ruleKey, LazyPath output) {
+    return logFetch(ruleKey, () -> delegate.fetchAsync(ruleKey, output));
+  }
+
+  @Override
+  public ListenableFuture<CacheResult> fetchAsync(
+      RuleKey ruleKey, LazyPath output, ArtifactPayloadConsumer payloadConsumer) {
+    return logFetch(ruleKey, () -> delegate.fetchAsync(ruleKey, output, payloadConsumer));
+  }
+
+  private ListenableFuture<CacheResult> logFetch(
+      RuleKey ruleKey, Supplier<ListenableFuture<CacheResult>> fetch) {
     ArtifactCacheEvent.Started started =
         eventFactory.newFetchStartedEvent(ImmutableSet.of(ruleKey));
     eventBus.post(started);
-    CacheResult fetchResult = Futures.getUnchecked(delegate.fetchAsync(ruleKey, output));
+    CacheResult fetchResult = Futures.getUnchecked(fetch.get());
     eventBus.post(eventFactory.newFetchFinishedEvent(started, fetchResult));
     return Futures.immediateFuture(fetchResult);
   }
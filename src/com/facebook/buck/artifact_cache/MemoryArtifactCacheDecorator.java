@@ -0,0 +1,293 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.artifact_cache;
+
+import com.facebook.buck.artifact_cache.MemoryArtifactStore.StoredArtifact;
+import com.facebook.buck.artifact_cache.config.CacheReadMode;
+import com.facebook.buck.event.BuckEventBus;
+import com.facebook.buck.io.file.BorrowablePath;
+import com.facebook.buck.io.file.LazyPath;
+import com.facebook.buck.log.Logger;
+import com.facebook.buck.rules.RuleKey;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Serves artifacts from a {@link MemoryArtifactStore} before asking the caches it decorates, and
+ * keeps the small artifacts those caches return or are given in the store.
+ *
+ * <p>The store is owned by the daemon and outlives this decorator, which only reports how useful
+ * the store was to its command when it is closed.
+ */
+public class MemoryArtifactCacheDecorator implements ArtifactCache, CacheDecorator {
+
+  private static final Logger LOG = Logger.get(MemoryArtifactCacheDecorator.class);
+
+  static final String CACHE_SOURCE = "memory";
+
+  private final ArtifactCache delegate;
+  private final MemoryArtifactStore store;
+  private final BuckEventBus buckEventBus;
+  private final long initialEvictionCount;
+  private final AtomicInteger hitCount = new AtomicInteger();
+  private final AtomicInteger missCount = new AtomicInteger();
+
+  public MemoryArtifactCacheDecorator(
+      ArtifactCache delegate, MemoryArtifactStore store, BuckEventBus buckEventBus) {
+    this.delegate = delegate;
+    this.store = store;
+    this.buckEventBus = buckEventBus;
+    this.initialEvictionCount = store.getEvictionCount();
+  }
+
+  @Override
+  public ListenableFuture<CacheResult> fetchAsync(RuleKey ruleKey, LazyPath output) {
+    Optional<StoredArtifact> stored = store.get(ruleKey);
+    if (stored.isPresent()) {
+      try {
+        Path path = output.get();
+        try (FileChannel channel =
+            FileChannel.open(
+                path,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+          ByteBuffer data = stored.get().getData();
+          while (data.hasRemaining()) {
+            channel.write(data);
+          }
+        }
+        hitCount.incrementAndGet();
+        return Futures.immediateFuture(hit(stored.get()));
+      } catch (IOException e) {
+        LOG.warn(e, "Failed to write artifact of %s from memory, fetching it instead.", ruleKey);
+      }
+    }
+    missCount.incrementAndGet();
+    return Futures.transform(
+        delegate.fetchAsync(ruleKey, output),
+        result -> {
+          if (result.getType() == CacheResultType.HIT) {
+            keepFetchedFile(ruleKey, result, output);
+          }
+          return result;
+        },
+        MoreExecutors.directExecutor());
+  }
+
+  @Override
+  public ListenableFuture<CacheResult> fetchAsync(
+      RuleKey ruleKey, LazyPath output, ArtifactPayloadConsumer payloadConsumer) {
+    Optional<StoredArtifact> stored = store.get(ruleKey);
+    if (stored.isPresent()) {
+      ByteBuffer data = stored.get().getData();
+      byte[] bytes = new byte[data.remaining()];
+      data.get(bytes);
+      try {
+        payloadConsumer.consume(stored.get().getMetadata(), new ByteArrayInputStream(bytes));
+        hitCount.incrementAndGet();
+        return Futures.immediateFuture(hit(stored.get()));
+      } catch (IOException e) {
+        LOG.warn(e, "Failed to consume artifact of %s from memory, fetching it instead.", ruleKey);
+      }
+    }
+    missCount.incrementAndGet();
+    // The payload consumer sees the artifact once per attempt, and the last one is fetched.
+    AtomicReference<CapturingInputStream> lastPayload = new AtomicReference<>();
+    return Futures.transform(
+        delegate.fetchAsync(
+            ruleKey,
+            output,
+            (metadata, payload) -> {
+              CapturingInputStream capturing = new CapturingInputStream(payload);
+              lastPayload.set(capturing);
+              payloadConsumer.consume(metadata, capturing);
+            }),
+        result -> {
+          CapturingInputStream captured = lastPayload.get();
+          if (result.getType() == CacheResultType.HIT && captured != null) {
+            captured
+                .getCaptured()
+                .ifPresent(
+                    bytes -> store.put(ruleKey, result.getMetadata(), bytes, result.cacheMode()));
+          }
+          return result;
+        },
+        MoreExecutors.directExecutor());
+  }
+
+  private static CacheResult hit(StoredArtifact stored) {
+    return CacheResult.builder()
+        .setType(CacheResultType.HIT)
+        .setCacheSource(CACHE_SOURCE)
+        .setCacheMode(stored.getCacheMode())
+        .setMetadata(stored.getMetadata())
+        .setArtifactSizeBytes(stored.getSizeBytes())
+        .build();
+  }
+
+  private void keepFetchedFile(RuleKey ruleKey, CacheResult result, LazyPath output) {
+    try {
+      Path path = output.get();
+      if (store.accepts(Files.size(path))) {
+        store.put(ruleKey, result.getMetadata(), Files.readAllBytes(path), result.cacheMode());
+      }
+    } catch (IOException e) {
+      LOG.debug(e, "Failed to keep artifact of %s in memory.", ruleKey);
+    }
+  }
+
+  @Override
+  public ListenableFuture<Void> store(ArtifactInfo info, BorrowablePath output) {
+    // Read the artifact first, the delegate may take the file.
+    try {
+      if (store.accepts(Files.size(output.getPath()))) {
+        byte[] data = Files.readAllBytes(output.getPath());
+        for (RuleKey ruleKey : info.getRuleKeys()) {
+          store.put(ruleKey, info.getMetadata(), data, Optional.empty());
+        }
+      }
+    } catch (IOException e) {
+      LOG.debug(e, "Failed to keep stored artifact %s in memory.", output.getPath());
+    }
+    return delegate.store(info, output);
+  }
+
+  @Override
+  public ListenableFuture<ImmutableMap<RuleKey, CacheResult>> multiContainsAsync(
+      ImmutableSet<RuleKey> ruleKeys) {
+    return delegate.multiContainsAsync(ruleKeys);
+  }
+
+  @Override
+  public ListenableFuture<CacheDeleteResult> deleteAsync(List<RuleKey> ruleKeys) {
+    ruleKeys.forEach(store::remove);
+    return delegate.deleteAsync(ruleKeys);
+  }
+
+  @Override
+  public CacheReadMode getCacheReadMode() {
+    return delegate.getCacheReadMode();
+  }
+
+  @Override
+  public ArtifactCache getDelegate() {
+    return delegate;
+  }
+
+  /** @return the counters of the memory cache during this command, in a summary of their own. */
+  public CacheCountersSummary getMemoryCacheCounters() {
+    return CacheCountersSummary.builder()
+        .setTotalCacheHits(0)
+        .setTotalCacheErrors(0)
+        .setTotalCacheMisses(0)
+        .setTotalCacheIgnores(0)
+        .setTotalCacheLocalKeyUnchangedHits(0)
+        .setSuccessUploadCount(new AtomicInteger(0))
+        .setFailureUploadCount(new AtomicInteger(0))
+        .setTotalMemoryCacheHits(hitCount.get())
+        .setTotalMemoryCacheMisses(missCount.get())
+        .setMemoryCacheEvictions(store.getEvictionCount() - initialEvictionCount)
+        .setMemoryCacheSizeBytes(store.getSizeBytes())
+        .build();
+  }
+
+  @Override
+  public void close() {
+    buckEventBus.post(CacheCountersSummaryEvent.newSummary(getMemoryCacheCounters()));
+    delegate.close();
+  }
+
+  /** Keeps a copy of the bytes read through it, as long as they fit in the store. */
+  private class CapturingInputStream extends FilterInputStream {
+    private ByteArrayOutputStream captured = new ByteArrayOutputStream();
+    private boolean complete = false;
+
+    private CapturingInputStream(InputStream in) {
+      super(in);
+    }
+
+    /** @return the whole artifact, if it was read to its end and isn't too large to keep. */
+    private Optional<byte[]> getCaptured() {
+      return complete && captured != null
+          ? Optional.of(captured.toByteArray())
+          : Optional.empty();
+    }
+
+    private void capture(byte[] b, int off, int len) {
+      if (captured == null) {
+        return;
+      }
+      if (!store.accepts(captured.size() + (long) len)) {
+        captured = null;
+        return;
+      }
+      captured.write(b, off, len);
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = super.read();
+      if (b == -1) {
+        complete = true;
+      } else {
+        capture(new byte[] {(byte) b}, 0, 1);
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      int read = super.read(b, off, len);
+      if (read == -1) {
+        complete = true;
+      } else {
+        capture(b, off, read);
+      }
+      return read;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      // Skipped bytes aren't captured, so the artifact can't be kept.
+      captured = null;
+      return super.skip(n);
+    }
+
+    @Override
+    public boolean markSupported() {
+      return false;
+    }
+  }
+}
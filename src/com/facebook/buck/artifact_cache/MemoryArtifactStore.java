@@ -0,0 +1,169 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.artifact_cache;
+
+import com.facebook.buck.artifact_cache.config.ArtifactCacheMode;
+import com.facebook.buck.artifact_cache.config.MemoryCacheEntry;
+import com.facebook.buck.artifact_cache.config.MemoryCacheEvictionPolicy;
+import com.facebook.buck.log.Logger;
+import com.facebook.buck.rules.RuleKey;
+import com.google.common.collect.ImmutableMap;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * Artifacts kept in memory by the daemon, so that they outlive the commands which fetched or
+ * stored them.
+ *
+ * <p>The artifacts are kept off the Java heap, in direct buffers, so that a large store doesn't
+ * slow down garbage collection. Once they take up more than {@link
+ * MemoryCacheEntry#getMaxSizeBytes()}, artifacts are evicted in the order given by {@link
+ * MemoryCacheEntry#getEvictionPolicy()}.
+ */
+public class MemoryArtifactStore {
+
+  private static final Logger LOG = Logger.get(MemoryArtifactStore.class);
+
+  private final long maxSizeBytes;
+  private final long maxArtifactSizeBytes;
+
+  @GuardedBy("this")
+  private final LinkedHashMap<RuleKey, StoredArtifact> artifacts;
+
+  @GuardedBy("this")
+  private long sizeBytes = 0;
+
+  @GuardedBy("this")
+  private long evictionCount = 0;
+
+  public MemoryArtifactStore(MemoryCacheEntry entry) {
+    this.maxSizeBytes = entry.getMaxSizeBytes();
+    this.maxArtifactSizeBytes = entry.getMaxArtifactSizeBytes();
+    this.artifacts =
+        new LinkedHashMap<>(
+            16, 0.75f, entry.getEvictionPolicy() == MemoryCacheEvictionPolicy.LRU);
+  }
+
+  /** @return whether an artifact of {@code sizeBytes} bytes would be kept at all. */
+  public boolean accepts(long sizeBytes) {
+    return sizeBytes <= maxArtifactSizeBytes && sizeBytes <= maxSizeBytes;
+  }
+
+  public synchronized Optional<StoredArtifact> get(RuleKey ruleKey) {
+    return Optional.ofNullable(artifacts.get(ruleKey));
+  }
+
+  /**
+   * Keeps a copy of {@code data} for {@code ruleKey}, evicting other artifacts to make room for it.
+   *
+   * @param cacheMode the cache the artifact was fetched from, if any.
+   */
+  public void put(
+      RuleKey ruleKey,
+      ImmutableMap<String, String> metadata,
+      byte[] data,
+      Optional<ArtifactCacheMode> cacheMode) {
+    if (!accepts(data.length)) {
+      return;
+    }
+    ByteBuffer buffer;
+    try {
+      buffer = ByteBuffer.allocateDirect(data.length);
+    } catch (OutOfMemoryError e) {
+      // The JVM's direct memory limit is lower than the configured size, so it's not worth failing
+      // the build over.
+      LOG.warn(e, "Out of direct memory to keep an artifact of %d bytes.", data.length);
+      return;
+    }
+    buffer.put(data).flip();
+    StoredArtifact artifact = new StoredArtifact(metadata, buffer, cacheMode);
+    synchronized (this) {
+      StoredArtifact previous = artifacts.put(ruleKey, artifact);
+      if (previous != null) {
+        sizeBytes -= previous.getSizeBytes();
+      }
+      sizeBytes += artifact.getSizeBytes();
+      Iterator<Map.Entry<RuleKey, StoredArtifact>> iterator = artifacts.entrySet().iterator();
+      while (sizeBytes > maxSizeBytes && iterator.hasNext()) {
+        Map.Entry<RuleKey, StoredArtifact> eldest = iterator.next();
+        if (eldest.getValue() == artifact) {
+          continue;
+        }
+        iterator.remove();
+        sizeBytes -= eldest.getValue().getSizeBytes();
+        evictionCount++;
+      }
+    }
+  }
+
+  public synchronized void remove(RuleKey ruleKey) {
+    StoredArtifact removed = artifacts.remove(ruleKey);
+    if (removed != null) {
+      sizeBytes -= removed.getSizeBytes();
+    }
+  }
+
+  public synchronized int getArtifactCount() {
+    return artifacts.size();
+  }
+
+  public synchronized long getSizeBytes() {
+    return sizeBytes;
+  }
+
+  /** @return how many artifacts have been evicted since the store was created. */
+  public synchronized long getEvictionCount() {
+    return evictionCount;
+  }
+
+  /** An artifact kept in memory. */
+  public static class StoredArtifact {
+    private final ImmutableMap<String, String> metadata;
+    private final ByteBuffer data;
+    private final Optional<ArtifactCacheMode> cacheMode;
+
+    private StoredArtifact(
+        ImmutableMap<String, String> metadata,
+        ByteBuffer data,
+        Optional<ArtifactCacheMode> cacheMode) {
+      this.metadata = metadata;
+      this.data = data;
+      this.cacheMode = cacheMode;
+    }
+
+    public ImmutableMap<String, String> getMetadata() {
+      return metadata;
+    }
+
+    /** @return a read-only view of the artifact, positioned at its start. */
+    public ByteBuffer getData() {
+      return data.asReadOnlyBuffer();
+    }
+
+    public Optional<ArtifactCacheMode> getCacheMode() {
+      return cacheMode;
+    }
+
+    public long getSizeBytes() {
+      return data.capacity();
+    }
+  }
+}
@@ -19,6 +19,7 @@ package com.facebook.buck.artifact_cache;
 import com.facebook.buck.artifact_cache.config.CacheReadMode;
 import com.facebook.buck.io.file.BorrowablePath;
 import com.facebook.buck.io.file.LazyPath;
+import com.facebook.buck.log.Logger;
 import com.facebook.buck.rules.RuleKey;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Functions;
@@ -30,11 +31,15 @@ import com.google.common.collect.Lists;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.MoreExecutors;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * MultiArtifactCache encapsulates a set of ArtifactCache instances such that fetch() succeeds if
@@ -43,6 +48,8 @@ import java.util.Optional;
  */
 public class MultiArtifactCache implements ArtifactCache {
 
+  private static final Logger LOG = Logger.get(MultiArtifactCache.class);
+
   private final ImmutableList<ArtifactCache> artifactCaches;
   private final ImmutableList<ArtifactCache> writableArtifactCaches;
   private final boolean isStoreSupported;
@@ -99,6 +106,86 @@ public class MultiArtifactCache implements ArtifactCache {
         MoreExecutors.directExecutor());
   }
 
+  /**
+   * Fetch the artifact matching ruleKey and pass it to payloadConsumer. If any of the encapsulated
+   * ArtifactCaches contains the desired artifact, this method succeeds, and it stores the artifact
+   * to the writable caches which missed before it. The artifact is handed over as it is fetched,
+   * and is only copied to disk if it needs to be stored to other caches.
+   */
+  @Override
+  public ListenableFuture<CacheResult> fetchAsync(
+      RuleKey ruleKey, LazyPath output, ArtifactPayloadConsumer payloadConsumer) {
+    ListenableFuture<CacheResult> cacheResult = Futures.immediateFuture(CacheResult.miss());
+    // This is the list of higher-priority caches that we should write the artifact to.
+    List<ArtifactCache> cachesToFill = new ArrayList<>();
+    AtomicReference<Path> copyForCachesToFill = new AtomicReference<>();
+    for (ArtifactCache artifactCache : artifactCaches) {
+      cacheResult =
+          Futures.transformAsync(
+              cacheResult,
+              (result) -> {
+                if (result.getType().isSuccess()) {
+                  return Futures.immediateFuture(result);
+                }
+                ArtifactPayloadConsumer cachePayloadConsumer = payloadConsumer;
+                if (!cachesToFill.isEmpty()) {
+                  if (copyForCachesToFill.get() == null) {
+                    // Concurrent fetches of the same output each need a copy of their own.
+                    Path file = output.get();
+                    copyForCachesToFill.set(
+                        Files.createTempFile(
+                            file.getParent(), file.getFileName().toString(), ".fill"));
+                  }
+                  cachePayloadConsumer =
+                      ArtifactPayloadConsumers.teeTo(copyForCachesToFill.get(), payloadConsumer);
+                }
+                return Futures.transform(
+                    artifactCache.fetchAsync(ruleKey, output, cachePayloadConsumer),
+                    (CacheResult fetchResult) -> {
+                      if (!fetchResult.getType().isSuccess()
+                          && artifactCache.getCacheReadMode().isWritable()) {
+                        cachesToFill.add(artifactCache);
+                      }
+                      return fetchResult;
+                    },
+                    MoreExecutors.directExecutor());
+              },
+              MoreExecutors.directExecutor());
+    }
+
+    // Propagate the artifact to previous writable caches.
+    return Futures.transform(
+        cacheResult,
+        (CacheResult result) -> {
+          Path copy = copyForCachesToFill.get();
+          if (copy == null) {
+            return result;
+          }
+          if (!result.getType().isSuccess()) {
+            deleteQuietly(copy);
+            return result;
+          }
+          storeToCaches(
+                  ImmutableList.copyOf(cachesToFill),
+                  ArtifactInfo.builder()
+                      .addRuleKeys(ruleKey)
+                      .setMetadata(result.getMetadata())
+                      .build(),
+                  BorrowablePath.borrowablePath(copy))
+              .addListener(() -> deleteQuietly(copy), MoreExecutors.directExecutor());
+          return result;
+        },
+        MoreExecutors.directExecutor());
+  }
+
+  private static void deleteQuietly(Path path) {
+    try {
+      Files.deleteIfExists(path);
+    } catch (IOException e) {
+      LOG.warn(e, "Failed to delete %s.", path);
+    }
+  }
+
   private static ListenableFuture<Void> storeToCaches(
       ImmutableList<ArtifactCache> caches, ArtifactInfo info, BorrowablePath output) {
     // TODO(cjhopman): support BorrowablePath with multiple writable caches.
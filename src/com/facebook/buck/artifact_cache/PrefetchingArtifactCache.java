@@ -0,0 +1,414 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.artifact_cache;
+
+import com.facebook.buck.artifact_cache.config.ArtifactPrefetch;
+import com.facebook.buck.artifact_cache.config.CacheReadMode;
+import com.facebook.buck.event.BuckEventBus;
+import com.facebook.buck.io.file.BorrowablePath;
+import com.facebook.buck.io.file.LazyPath;
+import com.facebook.buck.io.filesystem.ProjectFilesystem;
+import com.facebook.buck.log.Logger;
+import com.facebook.buck.rules.RuleKey;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * Fetches artifacts before the build asks for them, and hands them over when it does.
+ *
+ * <p>{@link #prefetch} queues a fetch from the delegate, which is started once fewer than {@link
+ * ArtifactPrefetch#getMaxInFlight()} prefetches are in flight, and prefetched artifacts waiting to
+ * be used take up less than {@link ArtifactPrefetch#getMaxSizeBytes()}. A later fetch of the same
+ * rule key waits for the prefetch instead of asking the delegate again, and takes its artifact, or
+ * its miss. Each prefetch is used at most once, and fetches of rule keys which weren't prefetched
+ * go straight to the delegate.
+ *
+ * <p>The delegate is shared with the rest of the build, so it is left open by {@link #close()},
+ * which only discards the artifacts nobody asked for and reports how useful prefetching was.
+ */
+public class PrefetchingArtifactCache implements ArtifactCache, CacheDecorator {
+
+  private static final Logger LOG = Logger.get(PrefetchingArtifactCache.class);
+
+  private final ArtifactCache delegate;
+  private final ProjectFilesystem filesystem;
+  private final BuckEventBus buckEventBus;
+  private final int maxInFlight;
+  private final long maxSizeBytes;
+
+  @GuardedBy("this")
+  private final Map<RuleKey, Prefetch> prefetches = new HashMap<>();
+
+  @GuardedBy("this")
+  private final Queue<Prefetch> queued = new ArrayDeque<>();
+
+  @GuardedBy("this")
+  private int inFlight = 0;
+
+  // The size of the prefetched artifacts which are on disk, waiting to be used.
+  @GuardedBy("this")
+  private long sizeBytes = 0;
+
+  @GuardedBy("this")
+  private boolean closed = false;
+
+  private final AtomicInteger prefetchCount = new AtomicInteger();
+  private final AtomicInteger prefetchHitCount = new AtomicInteger();
+  private final AtomicInteger usedCount = new AtomicInteger();
+  private final AtomicInteger wastedCount = new AtomicInteger();
+  private final AtomicLong wastedBytes = new AtomicLong();
+
+  /** Prefetched artifacts are kept in {@code filesystem}'s tmp dir until they're used. */
+  public PrefetchingArtifactCache(
+      ArtifactCache delegate,
+      ProjectFilesystem filesystem,
+      BuckEventBus buckEventBus,
+      ArtifactPrefetch config) {
+    this.delegate = delegate;
+    this.filesystem = filesystem;
+    this.buckEventBus = buckEventBus;
+    this.maxInFlight = config.getMaxInFlight();
+    this.maxSizeBytes = config.getMaxSizeBytes();
+  }
+
+  /**
+   * Queues a fetch of the artifact of {@code ruleKey}, unless it has already been prefetched.
+   *
+   * @return a future which completes with the result of the prefetch. It is cancelled if the
+   *     artifact is fetched before the prefetch started, or the cache is closed first.
+   */
+  public ListenableFuture<CacheResult> prefetch(RuleKey ruleKey) {
+    Prefetch prefetch;
+    synchronized (this) {
+      if (closed) {
+        return Futures.immediateCancelledFuture();
+      }
+      prefetch = prefetches.get(ruleKey);
+      if (prefetch != null) {
+        return Futures.nonCancellationPropagating(prefetch.result);
+      }
+      prefetch = new Prefetch(ruleKey, filesystem);
+      prefetches.put(ruleKey, prefetch);
+      queued.add(prefetch);
+    }
+    startQueuedPrefetches();
+    return Futures.nonCancellationPropagating(prefetch.result);
+  }
+
+  private void startQueuedPrefetches() {
+    List<Prefetch> toStart = new ArrayList<>();
+    synchronized (this) {
+      while (!closed && inFlight < maxInFlight && sizeBytes < maxSizeBytes && !queued.isEmpty()) {
+        toStart.add(queued.remove());
+        inFlight++;
+      }
+    }
+    for (Prefetch prefetch : toStart) {
+      prefetchCount.incrementAndGet();
+      Futures.addCallback(
+          delegate.fetchAsync(prefetch.ruleKey, prefetch.output),
+          new FutureCallback<CacheResult>() {
+            @Override
+            public void onSuccess(@Nullable CacheResult result) {
+              onPrefetched(prefetch, result);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+              LOG.debug(t, "Failed to prefetch artifact of %s.", prefetch.ruleKey);
+              onPrefetched(prefetch, null);
+            }
+          },
+          MoreExecutors.directExecutor());
+    }
+  }
+
+  private void onPrefetched(Prefetch prefetch, @Nullable CacheResult result) {
+    boolean discard;
+    synchronized (this) {
+      inFlight--;
+      prefetch.completed = true;
+      prefetch.hit = result != null && result.getType() == CacheResultType.HIT;
+      if (prefetch.hit) {
+        prefetchHitCount.incrementAndGet();
+        prefetch.sizeBytes = prefetch.getFileSize();
+        sizeBytes += prefetch.sizeBytes;
+      }
+      // Nobody will ask for the artifact anymore.
+      discard = closed && !prefetch.claimed;
+    }
+    if (discard) {
+      discard(prefetch, /* wasted */ prefetch.hit);
+    }
+    prefetch.result.set(result);
+    startQueuedPrefetches();
+  }
+
+  /** @return the prefetch of {@code ruleKey}, if it has started and not been used yet. */
+  @Nullable
+  private synchronized Prefetch claim(RuleKey ruleKey) {
+    Prefetch prefetch = prefetches.get(ruleKey);
+    if (prefetch == null || prefetch.claimed) {
+      return null;
+    }
+    prefetch.claimed = true;
+    if (queued.remove(prefetch)) {
+      // There's no point in starting it anymore.
+      prefetch.result.cancel(false);
+      return null;
+    }
+    return prefetch;
+  }
+
+  private synchronized void release(Prefetch prefetch) {
+    sizeBytes -= prefetch.sizeBytes;
+    prefetch.sizeBytes = 0;
+  }
+
+  @Override
+  public ListenableFuture<CacheResult> fetchAsync(RuleKey ruleKey, LazyPath output) {
+    Prefetch prefetch = claim(ruleKey);
+    if (prefetch == null) {
+      return delegate.fetchAsync(ruleKey, output);
+    }
+    return usePrefetched(
+        prefetch,
+        result -> {
+          // Stores take their own copy of what they're given before returning, so the stores the
+          // delegate made while prefetching no longer need the file. It's in buck-out, so this is
+          // a rename rather than a copy.
+          Files.move(prefetch.getFile(), output.get(), StandardCopyOption.REPLACE_EXISTING);
+          return result;
+        },
+        () -> delegate.fetchAsync(ruleKey, output));
+  }
+
+  @Override
+  public ListenableFuture<CacheResult> fetchAsync(
+      RuleKey ruleKey, LazyPath output, ArtifactPayloadConsumer payloadConsumer) {
+    Prefetch prefetch = claim(ruleKey);
+    if (prefetch == null) {
+      return delegate.fetchAsync(ruleKey, output, payloadConsumer);
+    }
+    return usePrefetched(
+        prefetch,
+        result -> {
+          try {
+            return ArtifactPayloadConsumers.consumeFetchedFile(
+                result, LazyPath.ofInstance(prefetch.getFile()), payloadConsumer);
+          } finally {
+            Files.deleteIfExists(prefetch.getFile());
+          }
+        },
+        () -> delegate.fetchAsync(ruleKey, output, payloadConsumer));
+  }
+
+  /** Takes over the prefetched artifact, or fetches it again if the prefetch didn't work out. */
+  private ListenableFuture<CacheResult> usePrefetched(
+      Prefetch prefetch,
+      HitHandler hitHandler,
+      Supplier<ListenableFuture<CacheResult>> fetch) {
+    return Futures.transformAsync(
+        Futures.catching(
+            prefetch.result,
+            CancellationException.class,
+            e -> null,
+            MoreExecutors.directExecutor()),
+        result -> {
+          if (prefetch.result.isCancelled()) {
+            // The cache was closed before the prefetch started.
+            return Futures.immediateFuture(CacheResult.miss());
+          }
+          if (result != null && result.getType() == CacheResultType.MISS) {
+            usedCount.incrementAndGet();
+            return Futures.immediateFuture(result);
+          }
+          if (result == null || result.getType() != CacheResultType.HIT) {
+            return fetch.get();
+          }
+          try {
+            CacheResult handled = hitHandler.apply(result);
+            usedCount.incrementAndGet();
+            return Futures.immediateFuture(handled);
+          } catch (IOException e) {
+            LOG.warn(e, "Failed to use prefetched artifact of %s.", prefetch.ruleKey);
+            discard(prefetch, /* wasted */ true);
+            return fetch.get();
+          } finally {
+            release(prefetch);
+          }
+        },
+        MoreExecutors.directExecutor());
+  }
+
+  /** What to do with a prefetched artifact once it is used. */
+  private interface HitHandler {
+    CacheResult apply(CacheResult result) throws IOException;
+  }
+
+  private void discard(Prefetch prefetch, boolean wasted) {
+    long size = prefetch.getFileSize();
+    release(prefetch);
+    if (wasted) {
+      wastedCount.incrementAndGet();
+      wastedBytes.addAndGet(size);
+    }
+    Path file = prefetch.file;
+    if (file == null) {
+      return;
+    }
+    try {
+      Files.deleteIfExists(file);
+    } catch (IOException e) {
+      LOG.warn(e, "Failed to delete prefetched artifact %s.", file);
+    }
+  }
+
+  /** @return the counters of this cache's prefetches, in a summary of their own. */
+  public CacheCountersSummary getPrefetchCounters() {
+    return CacheCountersSummary.builder()
+        .setTotalCacheHits(0)
+        .setTotalCacheErrors(0)
+        .setTotalCacheMisses(0)
+        .setTotalCacheIgnores(0)
+        .setTotalCacheLocalKeyUnchangedHits(0)
+        .setSuccessUploadCount(new AtomicInteger(0))
+        .setFailureUploadCount(new AtomicInteger(0))
+        .setTotalPrefetches(prefetchCount.get())
+        .setTotalPrefetchHits(prefetchHitCount.get())
+        .setTotalPrefetchesUsed(usedCount.get())
+        .setTotalPrefetchesWasted(wastedCount.get())
+        .setPrefetchWastedBytes(wastedBytes.get())
+        .build();
+  }
+
+  @Override
+  public ArtifactCache getDelegate() {
+    return delegate;
+  }
+
+  @Override
+  public ListenableFuture<Void> store(ArtifactInfo info, BorrowablePath output) {
+    return delegate.store(info, output);
+  }
+
+  @Override
+  public ListenableFuture<ImmutableMap<RuleKey, CacheResult>> multiContainsAsync(
+      ImmutableSet<RuleKey> ruleKeys) {
+    return delegate.multiContainsAsync(ruleKeys);
+  }
+
+  @Override
+  public ListenableFuture<CacheDeleteResult> deleteAsync(List<RuleKey> ruleKeys) {
+    return delegate.deleteAsync(ruleKeys);
+  }
+
+  @Override
+  public CacheReadMode getCacheReadMode() {
+    return delegate.getCacheReadMode();
+  }
+
+  /** Discards the prefetched artifacts which haven't been used, leaving the delegate open. */
+  @Override
+  public void close() {
+    ImmutableList<Prefetch> unused;
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      queued.forEach(prefetch -> prefetch.result.cancel(false));
+      queued.clear();
+      // Prefetches still in flight are discarded once they complete.
+      unused =
+          prefetches
+              .values()
+              .stream()
+              .filter(prefetch -> !prefetch.claimed && prefetch.completed)
+              .collect(ImmutableList.toImmutableList());
+    }
+    for (Prefetch prefetch : unused) {
+      discard(prefetch, /* wasted */ prefetch.hit);
+    }
+    buckEventBus.post(CacheCountersSummaryEvent.newSummary(getPrefetchCounters()));
+  }
+
+  private static class Prefetch {
+    private final RuleKey ruleKey;
+    private final SettableFuture<CacheResult> result = SettableFuture.create();
+    private final LazyPath output;
+    @Nullable private volatile Path file;
+
+    // Guarded by the cache.
+    private boolean claimed = false;
+    private boolean completed = false;
+    private boolean hit = false;
+    private long sizeBytes = 0;
+
+    private Prefetch(RuleKey ruleKey, ProjectFilesystem filesystem) {
+      this.ruleKey = ruleKey;
+      this.output =
+          new LazyPath() {
+            @Override
+            protected Path create() throws IOException {
+              file =
+                  filesystem.resolve(
+                      filesystem.createTempFile("buck_prefetched_artifact", ".tmp"));
+              return file;
+            }
+          };
+    }
+
+    private Path getFile() throws IOException {
+      return output.get();
+    }
+
+    private long getFileSize() {
+      Path path = file;
+      if (path == null) {
+        return 0;
+      }
+      try {
+        return Files.exists(path) ? Files.size(path) : 0;
+      } catch (IOException e) {
+        return 0;
+      }
+    }
+  }
+}
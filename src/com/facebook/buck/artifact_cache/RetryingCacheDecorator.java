@@ -32,6 +32,7 @@ import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.function.Supplier;
 
 public class RetryingCacheDecorator implements ArtifactCache, CacheDecorator {
 
@@ -57,8 +58,19 @@ public class RetryingCacheDecorator implements ArtifactCache, CacheDecorator {
 
   @Override
   public ListenableFuture<CacheResult> fetchAsync(RuleKey ruleKey, LazyPath output) {
+    return fetchWithRetries(ruleKey, () -> delegate.fetchAsync(ruleKey, output));
+  }
+
+  @Override
+  public ListenableFuture<CacheResult> fetchAsync(
+      RuleKey ruleKey, LazyPath output, ArtifactPayloadConsumer payloadConsumer) {
+    return fetchWithRetries(ruleKey, () -> delegate.fetchAsync(ruleKey, output, payloadConsumer));
+  }
+
+  private ListenableFuture<CacheResult> fetchWithRetries(
+      RuleKey ruleKey, Supplier<ListenableFuture<CacheResult>> fetch) {
     List<String> allCacheErrors = new ArrayList<>();
-    ListenableFuture<CacheResult> resultFuture = delegate.fetchAsync(ruleKey, output);
+    ListenableFuture<CacheResult> resultFuture = fetch.get();
     for (int retryCount = 1; retryCount < maxFetchRetries; retryCount++) {
       int retryCountForLambda = retryCount;
       resultFuture =
@@ -72,7 +84,7 @@ public class RetryingCacheDecorator implements ArtifactCache, CacheDecorator {
                 LOG.info(
                     "Failed to fetch %s after %d/%d attempts, exception: %s",
                     ruleKey, retryCountForLambda + 1, maxFetchRetries, result.cacheError());
-                return delegate.fetchAsync(ruleKey, output);
+                return fetch.get();
               });
     }
     return Futures.transform(
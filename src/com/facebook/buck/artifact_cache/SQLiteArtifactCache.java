@@ -29,6 +29,7 @@ import com.facebook.buck.model.Pair;
 import com.facebook.buck.rules.BuildInfo;
 import com.facebook.buck.rules.RuleKey;
 import com.facebook.buck.util.HumanReadableException;
+import com.facebook.buck.util.concurrent.MostExecutors;
 import com.facebook.buck.util.sqlite.RetryBusyHandler;
 import com.facebook.buck.util.sqlite.SQLiteUtils;
 import com.google.common.annotations.VisibleForTesting;
@@ -41,6 +42,8 @@ import com.google.common.hash.HashCode;
 import com.google.common.io.ByteStreams;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
@@ -57,12 +60,25 @@ import java.sql.SQLException;
 import java.sql.Timestamp;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
 import org.sqlite.BusyHandler;
 import org.sqlite.SQLiteConfig;
 
@@ -83,6 +99,12 @@ public class SQLiteArtifactCache implements ArtifactCache {
   private static final String TMP_EXTENSION = ".tmp";
   private static final long DEFAULT_MAX_INLINED_BYTES = 40;
   private static final Duration DEFAULT_EVICTION_TIME = Duration.ofDays(7);
+  // How often batched writes are committed, and how many make a batch worth committing right away.
+  private static final long WRITE_BATCH_INTERVAL_MS = 100;
+  private static final int MAX_WRITE_BATCH_SIZE = 1000;
+  private static final int READ_CONNECTIONS =
+      Math.min(8, Math.max(1, Runtime.getRuntime().availableProcessors()));
+  private static final long WRITER_SHUTDOWN_TIMEOUT_SECONDS = 30;
 
   private final String name;
   private final ProjectFilesystem filesystem;
@@ -108,6 +130,28 @@ public class SQLiteArtifactCache implements ArtifactCache {
       Optional<Long> maxInlinedSizeBytes,
       CacheReadMode cacheMode)
       throws IOException, SQLException {
+    this(
+        name,
+        filesystem,
+        cacheDir,
+        eventBus,
+        maxCacheSizeBytes,
+        maxInlinedSizeBytes,
+        cacheMode,
+        WRITE_BATCH_INTERVAL_MS);
+  }
+
+  @VisibleForTesting
+  SQLiteArtifactCache(
+      String name,
+      ProjectFilesystem filesystem,
+      Path cacheDir,
+      BuckEventBus eventBus,
+      Optional<Long> maxCacheSizeBytes,
+      Optional<Long> maxInlinedSizeBytes,
+      CacheReadMode cacheMode,
+      long writeBatchIntervalMs)
+      throws IOException, SQLException {
     this.name = name;
     this.filesystem = filesystem;
     this.cacheDir = cacheDir;
@@ -132,7 +176,7 @@ public class SQLiteArtifactCache implements ArtifactCache {
           String.format("Cache path [%s] already exists and is not a directory.", cacheDir));
     }
 
-    this.db = new ConnectionInfo(cacheDir);
+    this.db = new ConnectionInfo(cacheDir, writeBatchIntervalMs);
   }
 
   @Override
@@ -269,8 +313,8 @@ public class SQLiteArtifactCache implements ArtifactCache {
     }
 
     try {
-      db.storeMetadata(info.getRuleKeys(), marshalMetadata(metadata));
-    } catch (IOException | SQLException e) {
+      return db.storeMetadata(info.getRuleKeys(), marshalMetadata(metadata));
+    } catch (IOException e) {
       LOG.warn(e, "Metadata store(%s) error", info.getRuleKeys());
     }
 
@@ -288,7 +332,7 @@ public class SQLiteArtifactCache implements ArtifactCache {
       long size = filesystem.getFileSize(content.getPath());
       if (size <= maxInlinedBytes) {
         // artifact is small enough to inline in the database
-        db.storeArtifact(toStore, Files.readAllBytes(content.getPath()), size);
+        return db.storeArtifact(toStore, Files.readAllBytes(content.getPath()), size);
       } else if (!toStore.isEmpty()) {
         // artifact is too large to inline, store on disk and put path in database
         Path artifactPath = getArtifactPath(toStore.iterator().next());
@@ -300,7 +344,7 @@ public class SQLiteArtifactCache implements ArtifactCache {
           storeArtifactOutput(content.getPath(), artifactPath);
         }
 
-        db.storeFilepath(toStore, artifactPath.toString(), size);
+        return db.storeFilepath(toStore, artifactPath.toString(), size);
       }
     } catch (IOException | SQLException e) {
       LOG.warn(e, "Artifact store(%s, %s) error", contentHashes, content);
@@ -392,6 +436,7 @@ public class SQLiteArtifactCache implements ArtifactCache {
   ListenableFuture<Void> removeOldMetadata() {
     Timestamp evictionTime = Timestamp.from(Instant.now().minus(DEFAULT_EVICTION_TIME));
     try {
+      db.flush();
       int deleted = db.deleteMetadata(evictionTime);
       LOG.verbose("Removed %d metadata rows not accessed since %s", deleted, evictionTime);
     } catch (SQLException e) {
@@ -410,6 +455,7 @@ public class SQLiteArtifactCache implements ArtifactCache {
 
     long totalSizeBytes;
     try {
+      db.flush();
       totalSizeBytes = db.totalSize();
       if (totalSizeBytes <= maxCacheSizeBytes.get()) {
         return Futures.immediateFuture(null);
@@ -490,6 +536,7 @@ public class SQLiteArtifactCache implements ArtifactCache {
 
   @VisibleForTesting
   ImmutableList<RuleKey> directoryFileContentHashes() throws SQLException {
+    db.flush();
     ImmutableList.Builder<RuleKey> keys = ImmutableList.builder();
     try (ResultSet rs =
         db.connection
@@ -504,6 +551,7 @@ public class SQLiteArtifactCache implements ArtifactCache {
 
   @VisibleForTesting
   ImmutableList<RuleKey> inlinedArtifactContentHashes() throws SQLException {
+    db.flush();
     ImmutableList.Builder<RuleKey> keys = ImmutableList.builder();
     try (ResultSet rs =
         db.connection
@@ -518,6 +566,7 @@ public class SQLiteArtifactCache implements ArtifactCache {
 
   @VisibleForTesting
   ImmutableList<RuleKey> metadataRuleKeys() throws SQLException {
+    db.flush();
     ImmutableList.Builder<RuleKey> keys = ImmutableList.builder();
     try (ResultSet rs =
         db.connection.createStatement().executeQuery("SELECT rulekey FROM metadata")) {
@@ -528,11 +577,19 @@ public class SQLiteArtifactCache implements ArtifactCache {
     return keys.build();
   }
 
+  /**
+   * The connections to the database of the cache.
+   *
+   * <p>Stores, deletes of content whose file is gone, and the access time updates made by fetches,
+   * are batched up and committed together by a background thread every few milliseconds, rather
+   * than each of them waiting for the single write connection in turn. Until they're committed,
+   * they're visible to the reads of this cache but not to other processes. The database is in WAL
+   * mode, so reads use a pool of connections of their own, and don't wait for writes either.
+   */
   private static class ConnectionInfo {
     private final Connection connection;
-
-    private final PreparedStatement fetchMetadata;
-    private final PreparedStatement fetchContent;
+    private final BlockingQueue<ReadConnection> readConnections;
+    private final ScheduledExecutorService writer;
 
     private final PreparedStatement updateMetadataTime;
     private final PreparedStatement updateContentTime;
@@ -549,14 +606,17 @@ public class SQLiteArtifactCache implements ArtifactCache {
 
     private final PreparedStatement contentSize;
 
-    private ConnectionInfo(Path cacheDir) throws SQLException {
-      // date format must be set to match CURRENT_TIMESTAMP
-      Properties properties = new SQLiteConfig().toProperties();
-      properties.setProperty(
-          SQLiteConfig.Pragma.DATE_STRING_FORMAT.pragmaName, "yyyy-MM-dd HH:mm:ss");
-      connection =
-          DriverManager.getConnection("jdbc:sqlite:" + cacheDir.resolve("dircache.db"), properties);
-      connection.createStatement().executeUpdate("PRAGMA SYNCHRONOUS = OFF");
+    private final Object batchLock = new Object();
+
+    @GuardedBy("batchLock")
+    private WriteBatch pendingWrites = new WriteBatch();
+
+    // The batch being committed, if any, which reads still have to look at until it is.
+    @GuardedBy("batchLock")
+    private WriteBatch committingWrites = new WriteBatch();
+
+    private ConnectionInfo(Path cacheDir, long writeBatchIntervalMs) throws SQLException {
+      connection = openConnection(cacheDir);
       connection.createStatement().executeUpdate("PRAGMA JOURNAL_MODE = WAL");
 
       /*
@@ -591,11 +651,6 @@ public class SQLiteArtifactCache implements ArtifactCache {
                   + "OR artifact ISNULL AND filepath NOT NULL)) "
                   + "WITHOUT ROWID");
 
-      fetchMetadata = connection.prepareStatement("SELECT data FROM metadata WHERE rulekey = ?");
-      fetchContent =
-          connection.prepareStatement(
-              "SELECT artifact, filepath, size FROM content WHERE sha1 = ?");
-
       updateMetadataTime =
           connection.prepareStatement(
               "UPDATE metadata SET accessed = CURRENT_TIMESTAMP WHERE rulekey = ?");
@@ -605,12 +660,13 @@ public class SQLiteArtifactCache implements ArtifactCache {
 
       storeMetadata =
           connection.prepareStatement("REPLACE INTO metadata (rulekey, data) VALUES (?, ?)");
+      // Another thread may have stored the same content since the batch was started.
       storeArtifact =
           connection.prepareStatement(
-              "INSERT INTO content (sha1, artifact, size) VALUES (?, ?, ?)");
+              "REPLACE INTO content (sha1, artifact, size) VALUES (?, ?, ?)");
       storeFilepath =
           connection.prepareStatement(
-              "INSERT INTO content (sha1, filepath, size) VALUES (?, ?, ?)");
+              "REPLACE INTO content (sha1, filepath, size) VALUES (?, ?, ?)");
 
       selectContentByTime =
           connection.prepareStatement(
@@ -624,63 +680,218 @@ public class SQLiteArtifactCache implements ArtifactCache {
 
       contentSize = connection.prepareStatement("SELECT sum(size) FROM content");
 
+      readConnections = new ArrayBlockingQueue<>(READ_CONNECTIONS);
+      for (int i = 0; i < READ_CONNECTIONS; i++) {
+        readConnections.add(new ReadConnection(openConnection(cacheDir)));
+      }
+
+      writer =
+          Executors.newSingleThreadScheduledExecutor(
+              new ThreadFactoryBuilder()
+                  .setNameFormat("SQLiteArtifactCache-writer-%d")
+                  .setDaemon(true)
+                  .build());
+      writer.scheduleWithFixedDelay(
+          this::flush, writeBatchIntervalMs, writeBatchIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    private static Connection openConnection(Path cacheDir) throws SQLException {
+      // date format must be set to match CURRENT_TIMESTAMP
+      Properties properties = new SQLiteConfig().toProperties();
+      properties.setProperty(
+          SQLiteConfig.Pragma.DATE_STRING_FORMAT.pragmaName, "yyyy-MM-dd HH:mm:ss");
+      Connection connection =
+          DriverManager.getConnection("jdbc:sqlite:" + cacheDir.resolve("dircache.db"), properties);
+      connection.createStatement().executeUpdate("PRAGMA SYNCHRONOUS = OFF");
       BusyHandler.setHandler(connection, new RetryBusyHandler());
+      return connection;
     }
 
-    private synchronized Optional<byte[]> selectMetadata(RuleKey ruleKey) throws SQLException {
-      fetchMetadata.setBytes(1, getBytes(ruleKey));
-      ResultSet rs = fetchMetadata.executeQuery();
-      return rs.next() ? Optional.of(rs.getBytes(1)) : Optional.empty();
+    private Optional<byte[]> selectMetadata(RuleKey ruleKey) throws SQLException {
+      byte[] pending = getPendingWrite(batch -> batch.metadata, ruleKey);
+      if (pending != null) {
+        return Optional.of(pending);
+      }
+
+      ReadConnection readConnection = borrowReadConnection();
+      try {
+        return readConnection.selectMetadata(ruleKey);
+      } finally {
+        readConnections.add(readConnection);
+      }
     }
 
-    private synchronized Optional<Content> selectContent(RuleKey contentHash) throws SQLException {
-      fetchContent.setBytes(1, getBytes(contentHash));
-      ResultSet rs = fetchContent.executeQuery();
-      return rs.next()
-          ? Optional.of(new Content(rs.getBytes(1), rs.getString(2), rs.getLong(3)))
-          : Optional.empty();
+    private Optional<Content> selectContent(RuleKey contentHash) throws SQLException {
+      synchronized (batchLock) {
+        // The pending batch is committed after the one being committed, so it's looked at first.
+        for (WriteBatch batch : ImmutableList.of(pendingWrites, committingWrites)) {
+          if (batch.deletedContent.contains(contentHash)) {
+            return Optional.empty();
+          }
+          Content pending = batch.content.get(contentHash);
+          if (pending != null) {
+            return Optional.of(pending);
+          }
+        }
+      }
+
+      ReadConnection readConnection = borrowReadConnection();
+      try {
+        return readConnection.selectContent(contentHash);
+      } finally {
+        readConnections.add(readConnection);
+      }
     }
 
-    private synchronized void accessMetadata(RuleKey ruleKey) throws SQLException {
-      updateMetadataTime.setBytes(1, getBytes(ruleKey));
-      updateMetadataTime.executeUpdate();
+    @Nullable
+    private <T> T getPendingWrite(Function<WriteBatch, Map<RuleKey, T>> writes, RuleKey key) {
+      synchronized (batchLock) {
+        T pending = writes.apply(pendingWrites).get(key);
+        return pending != null ? pending : writes.apply(committingWrites).get(key);
+      }
     }
 
-    private synchronized void accessContent(RuleKey contentHash) throws SQLException {
-      updateContentTime.setBytes(1, getBytes(contentHash));
-      updateContentTime.executeUpdate();
+    private ReadConnection borrowReadConnection() throws SQLException {
+      try {
+        return readConnections.take();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new SQLException("Interrupted while waiting for a database connection", e);
+      }
     }
 
-    private synchronized void storeMetadata(ImmutableSet<RuleKey> ruleKeys, byte[] metadata)
-        throws SQLException {
-      for (RuleKey ruleKey : ruleKeys) {
-        storeMetadata.setBytes(1, getBytes(ruleKey));
-        storeMetadata.setBytes(2, metadata);
-        storeMetadata.addBatch();
+    private void accessMetadata(RuleKey ruleKey) {
+      addWrites(batch -> batch.accessedMetadata.add(ruleKey));
+    }
+
+    private void accessContent(RuleKey contentHash) {
+      addWrites(batch -> batch.accessedContent.add(contentHash));
+    }
+
+    private ListenableFuture<Void> storeMetadata(ImmutableSet<RuleKey> ruleKeys, byte[] metadata) {
+      return addWrites(
+          batch -> {
+            for (RuleKey ruleKey : ruleKeys) {
+              batch.metadata.put(ruleKey, metadata);
+            }
+          });
+    }
+
+    private ListenableFuture<Void> storeArtifact(
+        Iterable<RuleKey> hashes, byte[] artifact, long size) {
+      return addWrites(
+          batch -> {
+            for (RuleKey contentHash : hashes) {
+              batch.content.put(contentHash, new Content(artifact, null, size));
+              batch.deletedContent.remove(contentHash);
+            }
+          });
+    }
+
+    private ListenableFuture<Void> storeFilepath(
+        Iterable<RuleKey> ruleKeys, String filepath, long size) {
+      return addWrites(
+          batch -> {
+            for (RuleKey ruleKey : ruleKeys) {
+              batch.content.put(ruleKey, new Content(null, filepath, size));
+              batch.deletedContent.remove(ruleKey);
+            }
+          });
+    }
+
+    /** @return a future that completes once the writes are committed. */
+    private ListenableFuture<Void> addWrites(Consumer<WriteBatch> writes) {
+      ListenableFuture<Void> committed;
+      boolean flushNow;
+      synchronized (batchLock) {
+        writes.accept(pendingWrites);
+        committed = pendingWrites.committed;
+        flushNow = !pendingWrites.flushRequested && pendingWrites.size() >= MAX_WRITE_BATCH_SIZE;
+        pendingWrites.flushRequested |= flushNow;
+      }
+      if (flushNow) {
+        try {
+          writer.execute(this::flush);
+        } catch (RejectedExecutionException e) {
+          // The cache is being closed, which commits the batch anyway.
+        }
       }
-      storeMetadata.executeBatch();
+      return committed;
     }
 
-    private synchronized void storeArtifact(Iterable<RuleKey> hashes, byte[] artifact, long size)
-        throws SQLException {
-      for (RuleKey contentHash : hashes) {
-        storeArtifact.setBytes(1, getBytes(contentHash));
-        storeArtifact.setBytes(2, artifact);
-        storeArtifact.setLong(3, size);
-        storeArtifact.addBatch();
+    /** Commits the pending writes in a single transaction. */
+    private synchronized void flush() {
+      WriteBatch batch;
+      synchronized (batchLock) {
+        if (pendingWrites.size() == 0) {
+          return;
+        }
+        batch = pendingWrites;
+        committingWrites = batch;
+        pendingWrites = new WriteBatch();
+      }
+
+      try {
+        commit(batch);
+        batch.committed.set(null);
+      } catch (SQLException e) {
+        LOG.warn(e, "Failed to commit %d writes to the SQLite cache", batch.size());
+        batch.committed.setException(e);
+      } finally {
+        synchronized (batchLock) {
+          committingWrites = new WriteBatch();
+        }
       }
-      storeArtifact.executeBatch();
     }
 
-    private synchronized void storeFilepath(Iterable<RuleKey> ruleKeys, String filepath, long size)
-        throws SQLException {
-      for (RuleKey ruleKey : ruleKeys) {
-        storeFilepath.setBytes(1, getBytes(ruleKey));
-        storeFilepath.setString(2, filepath);
-        storeFilepath.setLong(3, size);
-        storeFilepath.addBatch();
+    private void commit(WriteBatch batch) throws SQLException {
+      connection.setAutoCommit(false);
+      try {
+        for (Map.Entry<RuleKey, byte[]> entry : batch.metadata.entrySet()) {
+          storeMetadata.setBytes(1, getBytes(entry.getKey()));
+          storeMetadata.setBytes(2, entry.getValue());
+          storeMetadata.addBatch();
+        }
+        for (Map.Entry<RuleKey, Content> entry : batch.content.entrySet()) {
+          Content content = entry.getValue();
+          if (Objects.nonNull(content.artifact)) {
+            storeArtifact.setBytes(1, getBytes(entry.getKey()));
+            storeArtifact.setBytes(2, content.artifact);
+            storeArtifact.setLong(3, content.size);
+            storeArtifact.addBatch();
+          } else {
+            storeFilepath.setBytes(1, getBytes(entry.getKey()));
+            storeFilepath.setString(2, content.filepath);
+            storeFilepath.setLong(3, content.size);
+            storeFilepath.addBatch();
+          }
+        }
+        for (RuleKey ruleKey : batch.accessedMetadata) {
+          updateMetadataTime.setBytes(1, getBytes(ruleKey));
+          updateMetadataTime.addBatch();
+        }
+        for (RuleKey contentHash : batch.accessedContent) {
+          updateContentTime.setBytes(1, getBytes(contentHash));
+          updateContentTime.addBatch();
+        }
+        for (RuleKey contentHash : batch.deletedContent) {
+          deleteContentForHash.setBytes(1, getBytes(contentHash));
+          deleteContentForHash.addBatch();
+        }
+
+        storeMetadata.executeBatch();
+        storeArtifact.executeBatch();
+        storeFilepath.executeBatch();
+        updateMetadataTime.executeBatch();
+        updateContentTime.executeBatch();
+        deleteContentForHash.executeBatch();
+        connection.commit();
+      } catch (SQLException e) {
+        connection.rollback();
+        throw e;
+      } finally {
+        connection.setAutoCommit(true);
       }
-      storeFilepath.executeBatch();
     }
 
     private synchronized int deleteMetadata(Timestamp evictionCutoff) throws SQLException {
@@ -693,9 +904,17 @@ public class SQLiteArtifactCache implements ArtifactCache {
       return deleteContentBeforeCutoff.executeUpdate();
     }
 
-    private synchronized void deleteContent(RuleKey contentHash) throws SQLException {
-      deleteContentForHash.setBytes(1, getBytes(contentHash));
-      deleteContentForHash.executeUpdate();
+    /**
+     * Deletes the content as part of the pending batch, so that it's committed after the batch
+     * being committed, which may store the same content.
+     */
+    private void deleteContent(RuleKey contentHash) {
+      addWrites(
+          batch -> {
+            batch.content.remove(contentHash);
+            batch.accessedContent.remove(contentHash);
+            batch.deletedContent.add(contentHash);
+          });
     }
 
     private synchronized long totalSize() throws SQLException {
@@ -744,6 +963,20 @@ public class SQLiteArtifactCache implements ArtifactCache {
 
     private void close() {
       try {
+        if (!MostExecutors.shutdown(
+            writer, WRITER_SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+          LOG.warn("Timed out waiting for the SQLite cache to commit its writes");
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      // Commit whatever was written since the last batch.
+      flush();
+
+      try {
+        for (ReadConnection readConnection : readConnections) {
+          readConnection.connection.close();
+        }
         connection.close();
       } catch (SQLException e) {
         throw new RuntimeException(e);
@@ -751,6 +984,57 @@ public class SQLiteArtifactCache implements ArtifactCache {
     }
   }
 
+  /** A connection used to look up entries, which doesn't block the writes to the database. */
+  private static class ReadConnection {
+    private final Connection connection;
+    private final PreparedStatement fetchMetadata;
+    private final PreparedStatement fetchContent;
+
+    private ReadConnection(Connection connection) throws SQLException {
+      this.connection = connection;
+      fetchMetadata = connection.prepareStatement("SELECT data FROM metadata WHERE rulekey = ?");
+      fetchContent =
+          connection.prepareStatement(
+              "SELECT artifact, filepath, size FROM content WHERE sha1 = ?");
+    }
+
+    private Optional<byte[]> selectMetadata(RuleKey ruleKey) throws SQLException {
+      fetchMetadata.setBytes(1, ConnectionInfo.getBytes(ruleKey));
+      try (ResultSet rs = fetchMetadata.executeQuery()) {
+        return rs.next() ? Optional.of(rs.getBytes(1)) : Optional.empty();
+      }
+    }
+
+    private Optional<Content> selectContent(RuleKey contentHash) throws SQLException {
+      fetchContent.setBytes(1, ConnectionInfo.getBytes(contentHash));
+      try (ResultSet rs = fetchContent.executeQuery()) {
+        return rs.next()
+            ? Optional.of(new Content(rs.getBytes(1), rs.getString(2), rs.getLong(3)))
+            : Optional.empty();
+      }
+    }
+  }
+
+  /** Writes waiting to be committed to the database together. */
+  private static class WriteBatch {
+    // Later writes of the same entry replace the earlier ones.
+    private final Map<RuleKey, byte[]> metadata = new HashMap<>();
+    private final Map<RuleKey, Content> content = new HashMap<>();
+    private final Set<RuleKey> accessedMetadata = new HashSet<>();
+    private final Set<RuleKey> accessedContent = new HashSet<>();
+    private final Set<RuleKey> deletedContent = new HashSet<>();
+    private final SettableFuture<Void> committed = SettableFuture.create();
+    private boolean flushRequested = false;
+
+    private int size() {
+      return metadata.size()
+          + content.size()
+          + accessedMetadata.size()
+          + accessedContent.size()
+          + deletedContent.size();
+    }
+  }
+
   private static class Content {
     private final byte[] artifact;
     private final String filepath;
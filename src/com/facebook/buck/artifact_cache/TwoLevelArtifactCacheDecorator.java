@@ -42,6 +42,7 @@ import java.nio.file.Path;
 import java.util.List;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.function.BiFunction;
 
 /**
  * The {@link DirArtifactCache} and {@link HttpArtifactCache} caches use a straightforward rulekey
@@ -117,8 +118,37 @@ public class TwoLevelArtifactCacheDecorator implements ArtifactCache, CacheDecor
 
   @Override
   public ListenableFuture<CacheResult> fetchAsync(RuleKey ruleKey, LazyPath output) {
-    return Futures.transformAsync(
+    return fetch(
         delegate.fetchAsync(ruleKey, output),
+        (contentHashKey, metadata) -> delegate.fetchAsync(contentHashKey, output));
+  }
+
+  @Override
+  public ListenableFuture<CacheResult> fetchAsync(
+      RuleKey ruleKey, LazyPath output, ArtifactPayloadConsumer payloadConsumer) {
+    // The payload of a first-level entry isn't part of the artifact, so don't pass it on.
+    ArtifactPayloadConsumer firstLevelPayloadConsumer =
+        (metadata, payload) -> {
+          if (!metadata.containsKey(METADATA_KEY)) {
+            payloadConsumer.consume(metadata, payload);
+          }
+        };
+    // Second-level entries are stored without metadata, so pass on that of the artifact instead.
+    return fetch(
+        delegate.fetchAsync(ruleKey, output, firstLevelPayloadConsumer),
+        (contentHashKey, metadata) ->
+            delegate.fetchAsync(
+                contentHashKey,
+                output,
+                (secondLevelMetadata, payload) -> payloadConsumer.consume(metadata, payload)));
+  }
+
+  private ListenableFuture<CacheResult> fetch(
+      ListenableFuture<CacheResult> firstLevelFetch,
+      BiFunction<RuleKey, ImmutableMap<String, String>, ListenableFuture<CacheResult>>
+          secondLevelFetch) {
+    return Futures.transformAsync(
+        firstLevelFetch,
         (CacheResult fetchResult) -> {
           if (!fetchResult.getType().isSuccess()) {
             LOG.verbose("Missed first-level lookup.");
@@ -130,8 +160,13 @@ public class TwoLevelArtifactCacheDecorator implements ArtifactCache, CacheDecor
           LOG.verbose("Found a first-level artifact with metadata: %s", fetchResult.getMetadata());
 
           String contentHashKey = fetchResult.getMetadata().get(METADATA_KEY);
+          ImmutableMap<String, String> artifactMetadata =
+              ImmutableMap.copyOf(
+                  RichStream.from(fetchResult.getMetadata().entrySet())
+                      .filter(e -> !Objects.equals(e.getKey(), METADATA_KEY))
+                      .toOnceIterable());
           ListenableFuture<CacheResult> outputFileFetchResultFuture =
-              delegate.fetchAsync(new RuleKey(contentHashKey), output);
+              secondLevelFetch.apply(new RuleKey(contentHashKey), artifactMetadata);
 
           return Futures.transformAsync(
               outputFileFetchResultFuture,
@@ -166,12 +201,7 @@ public class TwoLevelArtifactCacheDecorator implements ArtifactCache, CacheDecor
 
                 // The two level content hash was not part of the original metadata that was stored
                 // to the cache, don't include it in the result.
-                finalResult =
-                    finalResult.withMetadata(
-                        ImmutableMap.copyOf(
-                            RichStream.from(finalResult.getMetadata().entrySet())
-                                .filter(e -> !Objects.equals(e.getKey(), METADATA_KEY))
-                                .toOnceIterable()));
+                finalResult = finalResult.withMetadata(artifactMetadata);
                 return Futures.immediateFuture(finalResult);
               },
               MoreExecutors.directExecutor());
@@ -0,0 +1,43 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.artifact_cache.config;
+
+import com.facebook.buck.util.immutables.BuckStyleTuple;
+import com.google.common.base.Preconditions;
+import org.immutables.value.Value;
+
+/** The codec used to compress artifacts stored to the cache. */
+@Value.Immutable
+@BuckStyleTuple
+abstract class AbstractArtifactCompression {
+
+  public static final ArtifactCompression DEFAULT =
+      ArtifactCompression.of(ArtifactCompressionCodec.DEFLATE, 6);
+
+  public abstract ArtifactCompressionCodec getCodec();
+
+  /** The deflate level, from 1 to 9. Only used by {@link ArtifactCompressionCodec#DEFLATE}. */
+  public abstract int getLevel();
+
+  @Value.Check
+  protected void check() {
+    Preconditions.checkState(
+        getLevel() >= 1 && getLevel() <= 9,
+        "Artifact compression level must be between 1 and 9, got %s.",
+        getLevel());
+  }
+}
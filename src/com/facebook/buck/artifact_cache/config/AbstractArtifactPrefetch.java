@@ -0,0 +1,50 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.artifact_cache.config;
+
+import com.facebook.buck.util.immutables.BuckStyleTuple;
+import com.google.common.base.Preconditions;
+import org.immutables.value.Value;
+
+/** Whether, and how far, artifacts are fetched from the cache ahead of the build needing them. */
+@Value.Immutable
+@BuckStyleTuple
+abstract class AbstractArtifactPrefetch {
+
+  public static final ArtifactPrefetch DISABLED =
+      ArtifactPrefetch.of(false, 16, 1024 * 1024 * 1024L);
+
+  public abstract boolean isEnabled();
+
+  /** The most prefetches waiting on the cache at once. */
+  public abstract int getMaxInFlight();
+
+  /** The most bytes of prefetched artifacts kept on disk until the build uses them. */
+  public abstract long getMaxSizeBytes();
+
+  @Value.Check
+  protected void check() {
+    Preconditions.checkState(
+        getMaxInFlight() >= 1,
+        "Max prefetches in flight must be positive, got %s.",
+        getMaxInFlight());
+    Preconditions.checkState(
+        getMaxSizeBytes() >= 0,
+        "Max prefetched size must not be negative, got %s.",
+        getMaxSizeBytes());
+  }
+}
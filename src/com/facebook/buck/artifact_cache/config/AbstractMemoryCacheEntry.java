@@ -0,0 +1,45 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.artifact_cache.config;
+
+import com.facebook.buck.util.immutables.BuckStyleTuple;
+import com.google.common.base.Preconditions;
+import org.immutables.value.Value;
+
+/** How the daemon keeps recently used artifacts in memory. */
+@Value.Immutable
+@BuckStyleTuple
+abstract class AbstractMemoryCacheEntry {
+
+  /** The most bytes of artifacts kept in memory. */
+  public abstract long getMaxSizeBytes();
+
+  /** Artifacts larger than this are never kept in memory. */
+  public abstract long getMaxArtifactSizeBytes();
+
+  public abstract MemoryCacheEvictionPolicy getEvictionPolicy();
+
+  @Value.Check
+  protected void check() {
+    Preconditions.checkState(
+        getMaxSizeBytes() > 0, "Max size must be positive, got %s.", getMaxSizeBytes());
+    Preconditions.checkState(
+        getMaxArtifactSizeBytes() >= 0,
+        "Max artifact size must not be negative, got %s.",
+        getMaxArtifactSizeBytes());
+  }
+}
@@ -76,11 +76,15 @@ public class ArtifactCacheBuckConfig implements ConfigView<BuckConfig> {
           HTTP_CACHE_ERROR_MESSAGE_NAME,
           HTTP_MAX_STORE_SIZE);
   private static final String HTTP_MAX_FETCH_RETRIES = "http_max_fetch_retries";
+  private static final String HTTP_STREAMING_FETCH_ENABLED = "http_streaming_fetch_enabled";
+  private static final String HTTP_MULTI_FETCH_ENABLED = "http_multi_fetch_enabled";
 
   private static final String DIR_FIELD = "dir";
   private static final String DIR_MODE_FIELD = "dir_mode";
   private static final String DIR_MAX_SIZE_FIELD = "dir_max_size";
   private static final String DIR_CACHE_NAMES_FIELD_NAME = "dir_cache_names";
+  private static final String DIR_CACHE_IO_THREADS_FIELD_NAME = "dir_cache_io_threads";
+  private static final int DEFAULT_DIR_CACHE_IO_THREADS = 4;
   private static final ImmutableSet<String> DIR_CACHE_DESCRIPTION_FIELDS =
       ImmutableSet.of(DIR_FIELD, DIR_MODE_FIELD, DIR_MAX_SIZE_FIELD);
 
@@ -117,6 +121,24 @@ public class ArtifactCacheBuckConfig implements ConfigView<BuckConfig> {
       "two_level_cache_maximum_size";
   private static final long TWO_LEVEL_CACHING_MIN_SIZE_DEFAULT = 20 * 1024L;
 
+  private static final String CHUNKED_CACHING_ENABLED_FIELD_NAME = "chunked_cache_enabled";
+  private static final String CHUNKED_CACHING_MIN_SIZE_FIELD_NAME = "chunked_cache_minimum_size";
+  private static final String CHUNKED_CACHING_AVERAGE_CHUNK_SIZE_FIELD_NAME =
+      "chunked_cache_average_chunk_size";
+  private static final String ARTIFACT_COMPRESSION_FIELD_NAME = "artifact_compression";
+  private static final String ARTIFACT_COMPRESSION_LEVEL_FIELD_NAME = "artifact_compression_level";
+  private static final String PREFETCH_FIELD_NAME = "prefetch";
+  private static final String PREFETCH_MAX_IN_FLIGHT_FIELD_NAME = "prefetch_max_in_flight";
+  private static final String PREFETCH_MAX_SIZE_FIELD_NAME = "prefetch_max_size";
+  private static final String MEMORY_CACHE_MAX_SIZE_FIELD_NAME = "memory_cache_max_size";
+  private static final String MEMORY_CACHE_MAX_ARTIFACT_SIZE_FIELD_NAME =
+      "memory_cache_max_artifact_size";
+  private static final String MEMORY_CACHE_EVICTION_POLICY_FIELD_NAME =
+      "memory_cache_eviction_policy";
+  private static final long DEFAULT_MEMORY_CACHE_MAX_ARTIFACT_SIZE = 1024 * 1024;
+  private static final long CHUNKED_CACHING_MIN_SIZE_DEFAULT = 4 * 1024 * 1024L;
+  private static final long CHUNKED_CACHING_AVERAGE_CHUNK_SIZE_DEFAULT = 1024 * 1024L;
+
   private static final String HYBRID_THRIFT_ENDPOINT = "hybrid_thrift_endpoint";
   private static final String REPOSITORY = "repository";
   private static final String DEFAULT_REPOSITORY = "";
@@ -205,6 +227,18 @@ public class ArtifactCacheBuckConfig implements ConfigView<BuckConfig> {
         .orElse(DEFAULT_HTTP_MAX_FETCH_RETRIES);
   }
 
+  public boolean getHttpStreamingFetchEnabled() {
+    return buckConfig.getBooleanValue(CACHE_SECTION_NAME, HTTP_STREAMING_FETCH_ENABLED, false);
+  }
+
+  /**
+   * Whether the http caches fetch batches of artifacts from the multi-fetch endpoint, which older
+   * servers don't have.
+   */
+  public boolean getHttpMultiFetchEnabled() {
+    return buckConfig.getBooleanValue(CACHE_SECTION_NAME, HTTP_MULTI_FETCH_ENABLED, false);
+  }
+
   public boolean hasAtLeastOneWriteableCache() {
     return getHttpCacheEntries()
         .stream()
@@ -346,6 +380,119 @@ public class ArtifactCacheBuckConfig implements ConfigView<BuckConfig> {
         .map(SizeUnit::parseBytes);
   }
 
+  public boolean getChunkedCachingEnabled() {
+    return buckConfig.getBooleanValue(
+        CACHE_SECTION_NAME, CHUNKED_CACHING_ENABLED_FIELD_NAME, false);
+  }
+
+  public long getChunkedCachingMinimumSize() {
+    return buckConfig
+        .getValue(CACHE_SECTION_NAME, CHUNKED_CACHING_MIN_SIZE_FIELD_NAME)
+        .map(SizeUnit::parseBytes)
+        .orElse(CHUNKED_CACHING_MIN_SIZE_DEFAULT);
+  }
+
+  public int getChunkedCachingAverageChunkSize() {
+    long averageChunkSize =
+        buckConfig
+            .getValue(CACHE_SECTION_NAME, CHUNKED_CACHING_AVERAGE_CHUNK_SIZE_FIELD_NAME)
+            .map(SizeUnit::parseBytes)
+            .orElse(CHUNKED_CACHING_AVERAGE_CHUNK_SIZE_DEFAULT);
+    if (averageChunkSize < 64
+        || averageChunkSize > 64 * 1024 * 1024L
+        || Long.bitCount(averageChunkSize) != 1) {
+      throw new HumanReadableException(
+          "%s.%s must be a power of two between 64 bytes and 64 MB, got %s.",
+          CACHE_SECTION_NAME,
+          CHUNKED_CACHING_AVERAGE_CHUNK_SIZE_FIELD_NAME,
+          averageChunkSize);
+    }
+    return (int) averageChunkSize;
+  }
+
+  /** @return the number of threads each dir cache fetches and stores artifacts on. */
+  public int getDirCacheIoThreads() {
+    int threads =
+        buckConfig
+            .getInteger(CACHE_SECTION_NAME, DIR_CACHE_IO_THREADS_FIELD_NAME)
+            .orElse(DEFAULT_DIR_CACHE_IO_THREADS);
+    if (threads < 1) {
+      throw new HumanReadableException(
+          "%s.%s must be at least 1, got %s.",
+          CACHE_SECTION_NAME, DIR_CACHE_IO_THREADS_FIELD_NAME, threads);
+    }
+    return threads;
+  }
+
+  public ArtifactCompression getArtifactCompression() {
+    ArtifactCompressionCodec codec =
+        buckConfig
+            .getEnum(
+                CACHE_SECTION_NAME, ARTIFACT_COMPRESSION_FIELD_NAME, ArtifactCompressionCodec.class)
+            .orElse(ArtifactCompression.DEFAULT.getCodec());
+    int level =
+        buckConfig
+            .getInteger(CACHE_SECTION_NAME, ARTIFACT_COMPRESSION_LEVEL_FIELD_NAME)
+            .orElse(ArtifactCompression.DEFAULT.getLevel());
+    if (level < 1 || level > 9) {
+      throw new HumanReadableException(
+          "%s.%s must be between 1 and 9, got %s.",
+          CACHE_SECTION_NAME, ARTIFACT_COMPRESSION_LEVEL_FIELD_NAME, level);
+    }
+    return ArtifactCompression.of(codec, level);
+  }
+
+  /** @return whether, and how far, to fetch artifacts ahead of the build engine needing them. */
+  public ArtifactPrefetch getArtifactPrefetch() {
+    boolean enabled =
+        buckConfig.getBooleanValue(
+            CACHE_SECTION_NAME, PREFETCH_FIELD_NAME, ArtifactPrefetch.DISABLED.isEnabled());
+    int maxInFlight =
+        buckConfig
+            .getInteger(CACHE_SECTION_NAME, PREFETCH_MAX_IN_FLIGHT_FIELD_NAME)
+            .orElse(ArtifactPrefetch.DISABLED.getMaxInFlight());
+    if (maxInFlight < 1) {
+      throw new HumanReadableException(
+          "%s.%s must be at least 1, got %s.",
+          CACHE_SECTION_NAME, PREFETCH_MAX_IN_FLIGHT_FIELD_NAME, maxInFlight);
+    }
+    long maxSizeBytes =
+        buckConfig
+            .getValue(CACHE_SECTION_NAME, PREFETCH_MAX_SIZE_FIELD_NAME)
+            .map(SizeUnit::parseBytes)
+            .orElse(ArtifactPrefetch.DISABLED.getMaxSizeBytes());
+    return ArtifactPrefetch.of(enabled, maxInFlight, maxSizeBytes);
+  }
+
+  /**
+   * @return how the daemon keeps recently used artifacts in memory, if {@code
+   *     cache.memory_cache_max_size} is set.
+   */
+  public Optional<MemoryCacheEntry> getMemoryCacheEntry() {
+    Optional<Long> maxSizeBytes =
+        buckConfig
+            .getValue(CACHE_SECTION_NAME, MEMORY_CACHE_MAX_SIZE_FIELD_NAME)
+            .map(SizeUnit::parseBytes)
+            .filter(size -> size > 0);
+    if (!maxSizeBytes.isPresent()) {
+      return Optional.empty();
+    }
+    long maxArtifactSizeBytes =
+        buckConfig
+            .getValue(CACHE_SECTION_NAME, MEMORY_CACHE_MAX_ARTIFACT_SIZE_FIELD_NAME)
+            .map(SizeUnit::parseBytes)
+            .orElse(DEFAULT_MEMORY_CACHE_MAX_ARTIFACT_SIZE);
+    MemoryCacheEvictionPolicy evictionPolicy =
+        buckConfig
+            .getEnum(
+                CACHE_SECTION_NAME,
+                MEMORY_CACHE_EVICTION_POLICY_FIELD_NAME,
+                MemoryCacheEvictionPolicy.class)
+            .orElse(MemoryCacheEvictionPolicy.LRU);
+    return Optional.of(
+        MemoryCacheEntry.of(maxSizeBytes.get(), maxArtifactSizeBytes, evictionPolicy));
+  }
+
   private boolean getServingLocalCacheEnabled() {
     return buckConfig.getBooleanValue(CACHE_SECTION_NAME, SERVED_CACHE_ENABLED_FIELD_NAME, false);
   }
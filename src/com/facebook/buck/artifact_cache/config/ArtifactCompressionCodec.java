@@ -0,0 +1,28 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.artifact_cache.config;
+
+/** How the zip archives of build outputs stored to the cache are compressed. */
+public enum ArtifactCompressionCodec {
+  /** Entries are stored without compression. */
+  STORED,
+  /** Entries are deflated at a configurable level, which is how artifacts were always stored. */
+  DEFLATE,
+  /** Entries are stored, and the whole archive is compressed as an LZ4 frame. */
+  LZ4,
+  ;
+}
@@ -65,6 +65,7 @@ import com.facebook.buck.rules.BuildEvent;
 import com.facebook.buck.rules.BuildRule;
 import com.facebook.buck.rules.BuildRuleResolver;
 import com.facebook.buck.rules.CachingBuildEngine;
+import com.facebook.buck.rules.Cell;
 import com.facebook.buck.rules.DefaultSourcePathResolver;
 import com.facebook.buck.rules.LocalCachingBuildEngineDelegate;
 import com.facebook.buck.rules.NoOpRemoteBuildRuleCompletionWaiter;
@@ -82,11 +83,16 @@ import com.facebook.buck.rules.coercer.DefaultTypeCoercerFactory;
 import com.facebook.buck.rules.coercer.PathTypeCoercer;
 import com.facebook.buck.rules.coercer.TypeCoercerFactory;
 import com.facebook.buck.rules.keys.DefaultRuleKeyFactory;
+import com.facebook.buck.rules.keys.PersistentRuleKeyCache;
+import com.facebook.buck.rules.keys.PersistentRuleKeyCacheScope;
+import com.facebook.buck.rules.keys.PersistentRuleKeyStore;
 import com.facebook.buck.rules.keys.RuleKeyCacheRecycler;
 import com.facebook.buck.rules.keys.RuleKeyCacheScope;
 import com.facebook.buck.rules.keys.RuleKeyFieldLoader;
 import com.facebook.buck.step.ExecutionContext;
 import com.facebook.buck.step.ExecutorPool;
+import com.facebook.buck.toolchain.ComparableToolchain;
+import com.facebook.buck.toolchain.ToolchainProvider;
 import com.facebook.buck.util.ExitCode;
 import com.facebook.buck.util.HumanReadableException;
 import com.facebook.buck.util.ListeningProcessExecutor;
@@ -100,7 +106,9 @@ import com.google.common.base.Preconditions;
 import com.google.common.base.Throwables;
 import com.google.common.collect.FluentIterable;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSortedSet;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Iterators;
 import com.google.common.util.concurrent.ListenableFuture;
@@ -522,7 +530,7 @@ public class BuildCommand extends AbstractCommand {
         exitCode =
             executeLocalBuild(
                 params,
-                graphs.actionGraph,
+                graphs,
                 commandThreadManager.getWeightedListeningExecutorService(),
                 optionalRuleKeyLogger,
                 new NoOpRemoteBuildRuleCompletionWaiter(),
@@ -760,7 +768,7 @@ public class BuildCommand extends AbstractCommand {
                         localBuildExitCode.set(
                             executeLocalBuild(
                                     params,
-                                    graphs.actionGraph,
+                                    graphs,
                                     executorService,
                                     Optional.empty(),
                                     remoteBuildSynchronizer,
@@ -1022,15 +1030,16 @@ public class BuildCommand extends AbstractCommand {
 
   protected ExitCode executeLocalBuild(
       CommandRunnerParams params,
-      ActionGraphAndResolver actionGraphAndResolver,
+      ActionAndTargetGraphs graphs,
       WeightedListeningExecutorService executor,
       Optional<ThriftRuleKeyLogger> ruleKeyLogger,
       RemoteBuildRuleCompletionWaiter remoteBuildRuleCompletionWaiter,
       Optional<CountDownLatch> initializeBuildLatch)
       throws IOException, InterruptedException {
 
+    ActionGraphAndResolver actionGraphAndResolver = graphs.actionGraph;
     try (RuleKeyCacheScope<RuleKey> ruleKeyCacheScope =
-        getDefaultRuleKeyCacheScope(params, actionGraphAndResolver)) {
+        getDefaultRuleKeyCacheScope(params, graphs)) {
       LocalBuildExecutor builder =
           new LocalBuildExecutor(
               params.createBuilderArgs(),
@@ -1065,11 +1074,66 @@ public class BuildCommand extends AbstractCommand {
   }
 
   RuleKeyCacheScope<RuleKey> getDefaultRuleKeyCacheScope(
-      CommandRunnerParams params, ActionGraphAndResolver actionGraphAndResolver) {
-    return getDefaultRuleKeyCacheScope(
-        params,
-        new RuleKeyCacheRecycler.SettingsAffectingCache(
-            params.getBuckConfig().getKeySeed(), actionGraphAndResolver.getActionGraph()));
+      CommandRunnerParams params, ActionAndTargetGraphs graphs) {
+    ActionGraphAndResolver actionGraphAndResolver = graphs.actionGraph;
+    RuleKeyCacheScope<RuleKey> scope =
+        getDefaultRuleKeyCacheScope(
+            params,
+            new RuleKeyCacheRecycler.SettingsAffectingCache(
+                params.getBuckConfig().getKeySeed(), actionGraphAndResolver.getActionGraph()));
+    Optional<PersistentRuleKeyStore> store =
+        params
+            .getDefaultRuleKeyFactoryCacheRecycler()
+            .flatMap(RuleKeyCacheRecycler::getPersistentStore);
+    if (!store.isPresent()) {
+      return scope;
+    }
+    ImmutableList<Cell> cells = params.getCell().getAllCells();
+    return new PersistentRuleKeyCacheScope(
+        params.getBuckEventBus(),
+        scope,
+        store.get(),
+        new PersistentRuleKeyCache(
+            scope.getCache(),
+            store.get(),
+            graphs.getTargetGraphForLocalBuild().getTargetGraph(),
+            actionGraphAndResolver.getResolver(),
+            PersistentRuleKeyCache.hashSettings(
+                params.getRuleKeyConfiguration(),
+                cells
+                    .stream()
+                    .collect(
+                        ImmutableMap.toImmutableMap(
+                            Cell::getRoot,
+                            cell -> cell.getBuckConfig().getConfig().getRawConfigForDistBuild(),
+                            (first, second) -> first)),
+                cells
+                    .stream()
+                    .collect(
+                        ImmutableMap.toImmutableMap(
+                            Cell::getRoot,
+                            BuildCommand::describeComparableToolchains,
+                            (first, second) -> first))),
+            cells.stream().map(Cell::getFilesystem).collect(ImmutableSet.toImmutableSet()),
+            params.getFileHashCache()));
+  }
+
+  /**
+   * @return a description of each toolchain of {@code cell} which restarts the daemon when it
+   *     changes, by toolchain name. The toolchains which aren't present are left out.
+   */
+  private static ImmutableMap<String, String> describeComparableToolchains(Cell cell) {
+    ToolchainProvider toolchainProvider = cell.getToolchainProvider();
+    ImmutableMap.Builder<String, String> toolchains = ImmutableMap.builder();
+    for (String toolchain :
+        ImmutableSortedSet.copyOf(
+            toolchainProvider.getToolchainsWithCapability(ComparableToolchain.class))) {
+      if (toolchainProvider.isToolchainPresent(toolchain)) {
+        // Comparable toolchains are immutable values, which describe all of their state.
+        toolchains.put(toolchain, toolchainProvider.getByName(toolchain).toString());
+      }
+    }
+    return toolchains.build();
   }
 
   @Override
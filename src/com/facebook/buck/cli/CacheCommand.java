@@ -17,10 +17,13 @@
 package com.facebook.buck.cli;
 
 import com.facebook.buck.artifact_cache.ArtifactCache;
+import com.facebook.buck.artifact_cache.ArtifactCodecs;
 import com.facebook.buck.artifact_cache.CacheCountersSummary;
 import com.facebook.buck.artifact_cache.CacheCountersSummaryEvent;
 import com.facebook.buck.artifact_cache.CacheResult;
 import com.facebook.buck.artifact_cache.CacheResultType;
+import com.facebook.buck.artifact_cache.config.ArtifactCacheBuckConfig;
+import com.facebook.buck.artifact_cache.config.ArtifactCompressionCodec;
 import com.facebook.buck.event.ActionGraphEvent;
 import com.facebook.buck.event.BuckEventBus;
 import com.facebook.buck.event.ConsoleEvent;
@@ -125,6 +128,8 @@ public class CacheCommand extends AbstractCommand {
         arguments.stream().map(RuleKey::new).collect(ImmutableList.toImmutableList());
 
     Path tmpDir = Files.createTempDirectory("buck-cache-command");
+    ArtifactCompressionCodec codec =
+        new ArtifactCacheBuckConfig(params.getBuckConfig()).getArtifactCompression().getCodec();
 
     BuildEvent.Started started = BuildEvent.started(getArguments());
 
@@ -148,7 +153,8 @@ public class CacheCommand extends AbstractCommand {
       for (RuleKey ruleKey : ruleKeys) {
         futures.add(
             executor.submit(
-                new ArtifactRunner(params.getProjectFilesystemFactory(), ruleKey, tmpDir, cache)));
+                new ArtifactRunner(
+                    params.getProjectFilesystemFactory(), ruleKey, codec, tmpDir, cache)));
       }
 
       // Wait for all executions to complete or fail.
@@ -281,10 +287,15 @@ public class CacheCommand extends AbstractCommand {
     }
     ImmutableList<Path> paths;
     try {
+      Path zip =
+          ArtifactCodecs.decompressToZip(
+              ArtifactCodecs.getCodec(metadata),
+              artifact,
+              artifact.resolveSibling(artifact.getFileName() + ".zip"));
       paths =
           Unzip.extractZipFile(
               projectFilesystemFactory,
-              artifact.toAbsolutePath(),
+              zip.toAbsolutePath(),
               tmpDir,
               Unzip.ExistingFileMode.OVERWRITE_AND_CLEAN_DIRECTORIES);
     } catch (IOException e) {
@@ -329,6 +340,7 @@ public class CacheCommand extends AbstractCommand {
 
     final ProjectFilesystemFactory projectFilesystemFactory;
     RuleKey ruleKey;
+    ArtifactCompressionCodec codec;
     Path tmpDir;
     Path artifact;
     CacheResultType cacheResultType;
@@ -341,10 +353,12 @@ public class CacheCommand extends AbstractCommand {
     public ArtifactRunner(
         ProjectFilesystemFactory projectFilesystemFactory,
         RuleKey ruleKey,
+        ArtifactCompressionCodec codec,
         Path tmpDir,
         ArtifactCache cache) {
       this.projectFilesystemFactory = projectFilesystemFactory;
       this.ruleKey = ruleKey;
+      this.codec = codec;
       this.tmpDir = tmpDir;
       this.cache = cache;
       this.artifact = tmpDir.resolve(ruleKey.toString());
@@ -366,7 +380,9 @@ public class CacheCommand extends AbstractCommand {
       // TODO(skotch): don't use intermediate files, that just slows us down
       // instead, unzip from the ~/buck-cache/ directly
       CacheResult success =
-          Futures.getUnchecked(cache.fetchAsync(ruleKey, LazyPath.ofInstance(artifact)));
+          Futures.getUnchecked(
+              cache.fetchAsync(
+                  ArtifactCodecs.getArtifactKey(ruleKey, codec), LazyPath.ofInstance(artifact)));
       cacheResult = cacheResultToString(success);
       cacheResultType = success.getType();
       boolean cacheSuccess = success.getType().isSuccess();
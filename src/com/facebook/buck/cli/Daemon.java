@@ -18,6 +18,7 @@ package com.facebook.buck.cli;
 
 import com.facebook.buck.artifact_cache.ArtifactCache;
 import com.facebook.buck.artifact_cache.ArtifactCaches;
+import com.facebook.buck.artifact_cache.MemoryArtifactStore;
 import com.facebook.buck.artifact_cache.config.ArtifactCacheBuckConfig;
 import com.facebook.buck.config.BuckConfig;
 import com.facebook.buck.event.BuckEventBus;
@@ -32,6 +33,7 @@ import com.facebook.buck.log.Logger;
 import com.facebook.buck.parser.Parser;
 import com.facebook.buck.parser.ParserConfig;
 import com.facebook.buck.rules.ActionGraphCache;
+import com.facebook.buck.rules.BuildRuleHistory;
 import com.facebook.buck.rules.Cell;
 import com.facebook.buck.rules.KnownBuildRuleTypesProvider;
 import com.facebook.buck.rules.RuleKey;
@@ -39,10 +41,12 @@ import com.facebook.buck.rules.coercer.ConstructorArgMarshaller;
 import com.facebook.buck.rules.coercer.DefaultTypeCoercerFactory;
 import com.facebook.buck.rules.coercer.TypeCoercerFactory;
 import com.facebook.buck.rules.keys.DefaultRuleKeyCache;
+import com.facebook.buck.rules.keys.PersistentRuleKeyStore;
 import com.facebook.buck.rules.keys.RuleKeyCacheRecycler;
 import com.facebook.buck.util.RichStream;
 import com.facebook.buck.util.cache.ProjectFileHashCache;
 import com.facebook.buck.util.cache.impl.DefaultFileHashCache;
+import com.facebook.buck.util.cache.impl.PersistentFileHashStore;
 import com.facebook.buck.util.cache.impl.WatchedFileHashCache;
 import com.facebook.buck.versions.VersionedTargetGraphCache;
 import com.facebook.buck.worker.WorkerProcessPool;
@@ -69,6 +73,7 @@ final class Daemon implements Closeable {
   private final TypeCoercerFactory typeCoercerFactory;
   private final Parser parser;
   private final ImmutableList<ProjectFileHashCache> hashCaches;
+  private final ImmutableList<PersistentFileHashStore> fileHashStores;
   private final EventBus fileEventBus;
   private final Optional<WebServer> webServer;
   private final ConcurrentMap<String, WorkerProcessPool> persistentWorkerPools;
@@ -78,6 +83,8 @@ final class Daemon implements Closeable {
   private final RuleKeyCacheRecycler<RuleKey> defaultRuleKeyFactoryCacheRecycler;
   private final ImmutableMap<Path, WatchmanCursor> cursor;
   private final KnownBuildRuleTypesProvider knownBuildRuleTypesProvider;
+  private final Optional<MemoryArtifactStore> memoryArtifactStore;
+  private final BuildRuleHistory buildRuleHistory;
 
   Daemon(
       Cell rootCell,
@@ -90,14 +97,23 @@ final class Daemon implements Closeable {
 
     // Setup the stacked file hash cache from all cells.
     ImmutableList.Builder<ProjectFileHashCache> hashCachesBuilder = ImmutableList.builder();
+    ImmutableList.Builder<PersistentFileHashStore> fileHashStoresBuilder = ImmutableList.builder();
     allCells.forEach(
         subCell -> {
+          Optional<PersistentFileHashStore> fileHashStore =
+              rootCell.getBuckConfig().isPersistentFileHashCacheEnabled()
+                  ? Optional.of(PersistentFileHashStore.forFilesystem(subCell.getFilesystem()))
+                  : Optional.empty();
+          fileHashStore.ifPresent(fileHashStoresBuilder::add);
           WatchedFileHashCache watchedCache =
               new WatchedFileHashCache(
-                  subCell.getFilesystem(), rootCell.getBuckConfig().getFileHashCacheMode());
+                  subCell.getFilesystem(),
+                  rootCell.getBuckConfig().getFileHashCacheMode(),
+                  fileHashStore);
           fileEventBus.register(watchedCache);
           hashCachesBuilder.add(watchedCache);
         });
+    this.fileHashStores = fileHashStoresBuilder.build();
     hashCachesBuilder.add(
         DefaultFileHashCache.createBuckOutFileHashCache(
             rootCell.getFilesystem(), rootCell.getBuckConfig().getFileHashCacheMode()));
@@ -107,6 +123,11 @@ final class Daemon implements Closeable {
     this.actionGraphCache =
         new ActionGraphCache(rootCell.getBuckConfig().getMaxActionGraphCacheEntries());
     this.versionedTargetGraphCache = new VersionedTargetGraphCache();
+    this.memoryArtifactStore =
+        new ArtifactCacheBuckConfig(rootCell.getBuckConfig())
+            .getMemoryCacheEntry()
+            .map(MemoryArtifactStore::new);
+    this.buildRuleHistory = BuildRuleHistory.forFilesystem(rootCell.getFilesystem());
     this.knownBuildRuleTypesProvider = knownBuildRuleTypesProvider;
 
     typeCoercerFactory = new DefaultTypeCoercerFactory();
@@ -124,7 +145,10 @@ final class Daemon implements Closeable {
         RuleKeyCacheRecycler.createAndRegister(
             fileEventBus,
             new DefaultRuleKeyCache<>(),
-            RichStream.from(allCells).map(Cell::getFilesystem).toImmutableSet());
+            RichStream.from(allCells).map(Cell::getFilesystem).toImmutableSet(),
+            rootCell.getBuckConfig().isPersistentRuleKeyCacheEnabled()
+                ? Optional.of(PersistentRuleKeyStore.forFilesystem(rootCell.getFilesystem()))
+                : Optional.empty());
 
     if (webServerToReuse.isPresent()) {
       webServer = webServerToReuse;
@@ -211,6 +235,14 @@ final class Daemon implements Closeable {
     return actionGraphCache;
   }
 
+  Optional<MemoryArtifactStore> getMemoryArtifactStore() {
+    return memoryArtifactStore;
+  }
+
+  BuildRuleHistory getBuildRuleHistory() {
+    return buildRuleHistory;
+  }
+
   BroadcastEventListener getBroadcastEventListener() {
     return broadcastEventListener;
   }
@@ -219,6 +251,11 @@ final class Daemon implements Closeable {
     return hashCaches;
   }
 
+  /** @return the on-disk stores of the file hashes of each cell, if they are enabled. */
+  ImmutableList<PersistentFileHashStore> getPersistentFileHashStores() {
+    return fileHashStores;
+  }
+
   KnownBuildRuleTypesProvider getKnownBuildRuleTypesProvider() {
     return knownBuildRuleTypesProvider;
   }
@@ -56,7 +56,9 @@ public abstract class DistBuildFactory {
 
   public static DistBuildService newDistBuildService(CommandRunnerParams params) {
     return new DistBuildService(
-        newFrontendService(params), params.getBuildEnvironmentDescription().getUser());
+        newFrontendService(params),
+        params.getBuildEnvironmentDescription().getUser(),
+        new DistBuildConfig(params.getBuckConfig()).shouldUploadBuildJobStateInChunks());
   }
 
   public static LogStateTracker newDistBuildLogStateTracker(
@@ -33,6 +33,7 @@ import com.facebook.buck.event.CommandEvent;
 import com.facebook.buck.event.ConsoleEvent;
 import com.facebook.buck.event.DaemonEvent;
 import com.facebook.buck.event.DefaultBuckEventBus;
+import com.facebook.buck.event.QueuedBuckEventBus;
 import com.facebook.buck.event.chrome_trace.ChromeTraceBuckConfig;
 import com.facebook.buck.event.listener.AbstractConsoleEventBusListener;
 import com.facebook.buck.event.listener.BroadcastEventListener;
@@ -79,6 +80,7 @@ import com.facebook.buck.parser.ParserConfig;
 import com.facebook.buck.plugin.BuckPluginManagerFactory;
 import com.facebook.buck.rules.ActionGraphCache;
 import com.facebook.buck.rules.BuildInfoStoreManager;
+import com.facebook.buck.rules.BuildRuleHistory;
 import com.facebook.buck.rules.Cell;
 import com.facebook.buck.rules.CellProviderFactory;
 import com.facebook.buck.rules.DefaultCellPathResolver;
@@ -118,6 +120,7 @@ import com.facebook.buck.util.Scope;
 import com.facebook.buck.util.Verbosity;
 import com.facebook.buck.util.cache.ProjectFileHashCache;
 import com.facebook.buck.util.cache.impl.DefaultFileHashCache;
+import com.facebook.buck.util.cache.impl.PersistentFileHashStore;
 import com.facebook.buck.util.cache.impl.StackedFileHashCache;
 import com.facebook.buck.util.concurrent.MostExecutors;
 import com.facebook.buck.util.config.Config;
@@ -715,17 +718,26 @@ public final class Main {
       // uses the defaults.
       ProjectFilesystem rootCellProjectFilesystem =
           projectFilesystemFactory.createOrThrow(rootCell.getFilesystem().getRootPath());
+      ImmutableList<PersistentFileHashStore> fileHashStores;
       if (daemon.isPresent()) {
         allCaches.addAll(getFileHashCachesFromDaemon(daemon.get()));
+        fileHashStores = daemon.get().getPersistentFileHashStores();
       } else {
-        rootCell
-            .getAllCells()
-            .stream()
-            .map(
-                cell ->
-                    DefaultFileHashCache.createDefaultFileHashCache(
-                        cell.getFilesystem(), rootCell.getBuckConfig().getFileHashCacheMode()))
-            .forEach(allCaches::add);
+        ImmutableList.Builder<PersistentFileHashStore> fileHashStoresBuilder =
+            ImmutableList.builder();
+        for (Cell cell : rootCell.getAllCells()) {
+          Optional<PersistentFileHashStore> fileHashStore =
+              rootCell.getBuckConfig().isPersistentFileHashCacheEnabled()
+                  ? Optional.of(PersistentFileHashStore.forFilesystem(cell.getFilesystem()))
+                  : Optional.empty();
+          fileHashStore.ifPresent(fileHashStoresBuilder::add);
+          allCaches.add(
+              DefaultFileHashCache.createDefaultFileHashCache(
+                  cell.getFilesystem(),
+                  rootCell.getBuckConfig().getFileHashCacheMode(),
+                  fileHashStore));
+        }
+        fileHashStores = fileHashStoresBuilder.build();
         // The Daemon caches a buck-out filehashcache for the root cell, so the non-daemon case
         // needs to create that itself.
         allCaches.add(
@@ -813,10 +825,16 @@ public final class Main {
       BroadcastEventListener broadcastEventListener =
           daemon.map(Daemon::getBroadcastEventListener).orElseGet(BroadcastEventListener::new);
 
+      BuildRuleHistory buildRuleHistory =
+          daemon
+              .map(Daemon::getBuildRuleHistory)
+              .orElseGet(() -> BuildRuleHistory.forFilesystem(filesystem));
+
       // The order of resources in the try-with-resources block is important: the BuckEventBus
       // must be the last resource, so that it is closed first and can deliver its queued events
       // to the other resources before they are closed.
-      try (BuildInfoStoreManager storeManager = new BuildInfoStoreManager();
+      try (BuildInfoStoreManager storeManager =
+              new BuildInfoStoreManager(Optional.of(buildRuleHistory));
           AbstractConsoleEventBusListener consoleListener =
               createConsoleEventListener(
                   clock,
@@ -831,7 +849,7 @@ public final class Main {
                       ? Optional.of(buildId)
                       : Optional.empty());
           AsyncCloseable asyncCloseable = new AsyncCloseable(diskIoExecutorService);
-          DefaultBuckEventBus buildEventBus = new DefaultBuckEventBus(clock, buildId);
+          BuckEventBus buildEventBus = createBuildEventBus(buckConfig, clock, buildId);
           BroadcastEventListener.BroadcastEventBusClosable broadcastEventBusClosable =
               broadcastEventListener.addEventBus(buildEventBus);
 
@@ -862,6 +880,7 @@ public final class Main {
         LOG.debug(invocationInfo.toLogLine());
 
         buildEventBus.register(HANG_MONITOR.getHangMonitor());
+        buildEventBus.register(buildRuleHistory);
 
         ArtifactCaches artifactCacheFactory =
             new ArtifactCaches(
@@ -871,14 +890,16 @@ public final class Main {
                 executionEnvironment.getWifiSsid(),
                 httpWriteExecutorService,
                 httpFetchExecutorService,
-                Optional.of(asyncCloseable));
+                Optional.of(asyncCloseable),
+                daemon.flatMap(Daemon::getMemoryArtifactStore));
 
         ProgressEstimator progressEstimator =
             new ProgressEstimator(
                 filesystem
                     .resolve(filesystem.getBuckPaths().getBuckOut())
                     .resolve(ProgressEstimator.PROGRESS_ESTIMATIONS_JSON),
-                buildEventBus);
+                buildEventBus,
+                Optional.of(buildRuleHistory));
         consoleListener.setProgressEstimator(progressEstimator);
 
         BuildEnvironmentDescription buildEnvironmentDescription =
@@ -1096,6 +1117,7 @@ public final class Main {
           // serialized with this one.)
           TRASH_CLEANER.startCleaningDirectory(filesystem.getBuckPaths().getTrashDir());
         }
+        flushFileHashStores(fileHashStores);
         // shut down the cached thread pools
         for (ExecutorPool p : executors.keySet()) {
           closeExecutorService(p.toString(), executors.get(p), EXECUTOR_SERVICES_TIMEOUT_SECONDS);
@@ -1137,6 +1159,20 @@ public final class Main {
     public abstract Optional<RuleKeyCacheRecycler<RuleKey>> getDefaultRuleKeyFactoryCacheRecycler();
   }
 
+  private static BuckEventBus createBuildEventBus(
+      BuckConfig buckConfig, Clock clock, BuildId buildId) {
+    if (!buckConfig.isPerListenerEventQueuesEnabled()) {
+      return new DefaultBuckEventBus(clock, buildId);
+    }
+    return new QueuedBuckEventBus(
+        clock,
+        buildId,
+        buckConfig.getEventBusQueueCapacity().orElse(QueuedBuckEventBus.DEFAULT_QUEUE_CAPACITY),
+        buckConfig.shouldDropEventsForSlowListeners()
+            ? QueuedBuckEventBus.SlowListenerPolicy.DROP
+            : QueuedBuckEventBus.SlowListenerPolicy.BLOCK);
+  }
+
   private static ParserAndCaches getParserAndCaches(
       Optional<NGContext> context,
       FreshInstanceAction watchmanFreshInstanceAction,
@@ -1415,6 +1451,17 @@ public final class Main {
     return daemon.getFileHashCaches();
   }
 
+  private static void flushFileHashStores(ImmutableList<PersistentFileHashStore> fileHashStores) {
+    for (PersistentFileHashStore fileHashStore : fileHashStores) {
+      try {
+        fileHashStore.flush();
+      } catch (IOException e) {
+        // The hashes will simply be computed again next time.
+        LOG.warn(e, "Failed to save file hashes.");
+      }
+    }
+  }
+
   private void loadListenersFromBuckConfig(
       ImmutableList.Builder<BuckEventListener> eventListeners,
       ProjectFilesystem projectFilesystem,
@@ -17,6 +17,7 @@
 package com.facebook.buck.command;
 
 import com.facebook.buck.artifact_cache.ArtifactCache;
+import com.facebook.buck.artifact_cache.config.ArtifactCacheBuckConfig;
 import com.facebook.buck.config.BuckConfig;
 import com.facebook.buck.event.BuckEventBus;
 import com.facebook.buck.event.ConsoleEvent;
@@ -35,6 +36,7 @@ import com.facebook.buck.rules.BuildEvent;
 import com.facebook.buck.rules.BuildResult;
 import com.facebook.buck.rules.BuildRule;
 import com.facebook.buck.rules.BuildRuleResolver;
+import com.facebook.buck.rules.CachingBuildEngineBuckConfig;
 import com.facebook.buck.rules.Cell;
 import com.facebook.buck.rules.DefaultSourcePathResolver;
 import com.facebook.buck.rules.SourcePathResolver;
@@ -106,6 +108,10 @@ public class Build implements Closeable {
 
   private BuildEngineBuildContext createBuildContext(boolean isKeepGoing) {
     BuildId buildId = executionContext.getBuildId();
+    ArtifactCacheBuckConfig artifactCacheBuckConfig =
+        new ArtifactCacheBuckConfig(rootCell.getBuckConfig());
+    CachingBuildEngineBuckConfig engineConfig =
+        rootCell.getBuckConfig().getView(CachingBuildEngineBuckConfig.class);
     return BuildEngineBuildContext.builder()
         .setBuildContext(
             BuildContext.builder()
@@ -117,6 +123,9 @@ public class Build implements Closeable {
                 .build())
         .setClock(clock)
         .setArtifactCache(artifactCache)
+        .setArtifactCompression(artifactCacheBuckConfig.getArtifactCompression())
+        .setArtifactPrefetch(artifactCacheBuckConfig.getArtifactPrefetch())
+        .setRuleScheduling(engineConfig.getRuleScheduling())
         .setBuildId(buildId)
         .putAllEnvironment(executionContext.getEnvironment())
         .setKeepGoing(isKeepGoing)
@@ -554,6 +554,14 @@ public class BuckConfig implements ConfigPathGetter {
     return getInteger("cache", "max_action_graph_cache_entries").orElse(1);
   }
 
+  /**
+   * @return whether an action graph cache miss should reuse the build rules of the last action
+   *     graph for the target nodes that didn't change.
+   */
+  public boolean isIncrementalActionGraphEnabled() {
+    return getBooleanValue("cache", "incremental_action_graph", false);
+  }
+
   public Optional<String> getRepository() {
     return config.get("cache", "repository");
   }
@@ -834,6 +842,24 @@ public class BuckConfig implements ConfigPathGetter {
     return config.getLong("counters", "flush_interval_millis").orElse(30000L);
   }
 
+  /** @return whether each event bus listener gets its own queue and dispatch thread. */
+  public boolean isPerListenerEventQueuesEnabled() {
+    return getBooleanValue("event_bus", "per_listener_queues", false);
+  }
+
+  /**
+   * @return how many events each listener's queue holds, with per-listener queues, if set.
+   *     Otherwise the event bus picks its own default.
+   */
+  public Optional<Integer> getEventBusQueueCapacity() {
+    return getInteger("event_bus", "queue_capacity");
+  }
+
+  /** @return whether to drop the events of listeners that can't keep up, rather than wait. */
+  public boolean shouldDropEventsForSlowListeners() {
+    return getBooleanValue("event_bus", "drop_events_for_slow_listeners", false);
+  }
+
   public Optional<Path> getPath(String sectionName, String name, boolean isCellRootRelative) {
     Optional<String> pathString = getValue(sectionName, name);
     return pathString.isPresent()
@@ -978,6 +1004,16 @@ public class BuckConfig implements ConfigPathGetter {
         .orElse(FileHashCacheMode.DEFAULT);
   }
 
+  /** @return whether to keep the hashes of source files on disk between runs. */
+  public boolean isPersistentFileHashCacheEnabled() {
+    return getBooleanValue("build", "persistent_file_hash_cache", false);
+  }
+
+  /** @return whether the daemon should keep rule keys on disk, to reuse them once restarted. */
+  public boolean isPersistentRuleKeyCacheEnabled() {
+    return getBooleanValue("build", "persistent_rule_key_cache", false);
+  }
+
   /** Whether to parallelize action graph creation. */
   public ActionGraphParallelizationMode getActionGraphParallelizationMode() {
     return getEnum("build", "action_graph_parallelization", ActionGraphParallelizationMode.class)
@@ -0,0 +1,247 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.distributed;
+
+import com.facebook.buck.distributed.thrift.BuildJobState;
+import com.facebook.buck.distributed.thrift.BuildJobStateBuildTarget;
+import com.facebook.buck.distributed.thrift.BuildJobStateFileHashEntry;
+import com.facebook.buck.distributed.thrift.BuildJobStateFileHashes;
+import com.facebook.buck.distributed.thrift.BuildJobStateTargetGraph;
+import com.facebook.buck.distributed.thrift.BuildJobStateTargetNode;
+import com.google.common.base.Joiner;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.Hashing;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.function.Function;
+
+/**
+ * Splits a {@link BuildJobState} into content addressed chunks, so that a client only has to upload
+ * the chunks that changed since its last distributed build, and joins them back together.
+ *
+ * <p>The file hashes and the target graph are split by cell and package. Packages are grouped into
+ * chunks in name order, and a chunk ends after each package whose name hashes to a multiple of
+ * {@link #PACKAGES_PER_CHUNK}, so adding or removing a package only changes the chunk it lands in.
+ * Everything else goes into a single header chunk. Each chunk is itself a partial {@link
+ * BuildJobState} written with {@link BuildJobStateSerializer}, and is addressed by its SHA-1.
+ *
+ * <p>The state stored for the build is then a manifest listing the chunks, which {@link
+ * #deserializeManifest(byte[])} tells apart from a whole serialized state.
+ */
+public abstract class ChunkedBuildJobStateSerializer {
+  private static final int PACKAGES_PER_CHUNK = 32;
+  private static final String MANIFEST_HEADER = "buck-build-job-state-chunks-v1\n";
+  private static final Comparator<BuildJobStateFileHashEntry> ENTRY_ORDER =
+      Comparator.comparing((BuildJobStateFileHashEntry entry) -> entry.getPath().getPath())
+          .thenComparing(
+              entry -> entry.isSetArchiveMemberPath() ? entry.getArchiveMemberPath() : "");
+  private static final Comparator<BuildJobStateTargetNode> NODE_ORDER =
+      Comparator.comparing(ChunkedBuildJobStateSerializer::getTargetName);
+
+  private ChunkedBuildJobStateSerializer() {
+    // Do not instantiate.
+  }
+
+  /** Returns the serialized chunks of the state, in order, keyed by their SHA-1. */
+  public static ImmutableMap<String, byte[]> serializeChunks(BuildJobState state)
+      throws IOException {
+    List<BuildJobState> chunks = new ArrayList<>();
+
+    BuildJobState header = state.deepCopy();
+    header.unsetFileHashes();
+    if (header.isSetTargetGraph()) {
+      header.getTargetGraph().unsetNodes();
+    }
+    chunks.add(header);
+
+    if (state.isSetFileHashes()) {
+      for (BuildJobStateFileHashes cellHashes : state.getFileHashes()) {
+        addFileHashChunks(cellHashes, chunks);
+      }
+    }
+
+    if (state.isSetTargetGraph() && state.getTargetGraph().isSetNodes()) {
+      addTargetNodeChunks(state.getTargetGraph().getNodes(), chunks);
+    }
+
+    Map<String, byte[]> serializedChunks = new LinkedHashMap<>();
+    for (BuildJobState chunk : chunks) {
+      byte[] data = BuildJobStateSerializer.serialize(chunk);
+      serializedChunks.put(Hashing.sha1().hashBytes(data).toString(), data);
+    }
+    return ImmutableMap.copyOf(serializedChunks);
+  }
+
+  public static byte[] serializeManifest(Collection<String> chunkHashes) {
+    StringBuilder manifest = new StringBuilder(MANIFEST_HEADER);
+    for (String chunkHash : chunkHashes) {
+      manifest.append(chunkHash).append('\n');
+    }
+    return manifest.toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Returns the hashes of the chunks listed in the manifest, in order, or an empty optional if the
+   * data is a whole serialized state rather than a manifest.
+   */
+  public static Optional<ImmutableList<String>> deserializeManifest(byte[] data) {
+    byte[] header = MANIFEST_HEADER.getBytes(StandardCharsets.UTF_8);
+    if (data.length < header.length) {
+      return Optional.empty();
+    }
+    for (int i = 0; i < header.length; i++) {
+      if (data[i] != header[i]) {
+        return Optional.empty();
+      }
+    }
+    String chunkHashes =
+        new String(data, header.length, data.length - header.length, StandardCharsets.UTF_8);
+    return Optional.of(
+        ImmutableList.copyOf(Splitter.on('\n').omitEmptyStrings().split(chunkHashes)));
+  }
+
+  /** Joins the chunks listed in a manifest, given in the same order, back into the whole state. */
+  public static BuildJobState deserializeChunks(Iterable<byte[]> chunks) throws IOException {
+    BuildJobState state = new BuildJobState();
+    Map<Integer, BuildJobStateFileHashes> fileHashesByCell = new LinkedHashMap<>();
+    for (byte[] data : chunks) {
+      BuildJobState chunk = BuildJobStateSerializer.deserialize(data);
+
+      if (chunk.isSetCells()) {
+        state.setCells(chunk.getCells());
+      }
+      if (chunk.isSetTopLevelTargets()) {
+        state.setTopLevelTargets(chunk.getTopLevelTargets());
+      }
+
+      if (chunk.isSetFileHashes()) {
+        for (BuildJobStateFileHashes chunkHashes : chunk.getFileHashes()) {
+          BuildJobStateFileHashes cellHashes =
+              fileHashesByCell.computeIfAbsent(
+                  chunkHashes.getCellIndex(),
+                  cellIndex -> new BuildJobStateFileHashes().setCellIndex(cellIndex));
+          if (chunkHashes.isSetEntries()) {
+            for (BuildJobStateFileHashEntry entry : chunkHashes.getEntries()) {
+              cellHashes.addToEntries(entry);
+            }
+          }
+        }
+      }
+
+      if (chunk.isSetTargetGraph()) {
+        if (!state.isSetTargetGraph()) {
+          state.setTargetGraph(new BuildJobStateTargetGraph());
+        }
+        if (chunk.getTargetGraph().isSetNodes()) {
+          for (BuildJobStateTargetNode node : chunk.getTargetGraph().getNodes()) {
+            state.getTargetGraph().addToNodes(node);
+          }
+        }
+      }
+    }
+
+    if (!fileHashesByCell.isEmpty()) {
+      state.setFileHashes(new ArrayList<>(fileHashesByCell.values()));
+    }
+    return state;
+  }
+
+  private static void addFileHashChunks(
+      BuildJobStateFileHashes cellHashes, List<BuildJobState> chunks) {
+    if (!cellHashes.isSetEntries() || cellHashes.getEntries().isEmpty()) {
+      chunks.add(
+          new BuildJobState()
+              .setFileHashes(
+                  ImmutableList.of(
+                      new BuildJobStateFileHashes().setCellIndex(cellHashes.getCellIndex()))));
+      return;
+    }
+
+    for (List<BuildJobStateFileHashEntry> entries :
+        groupIntoChunks(
+            cellHashes.getEntries(),
+            entry -> getPackage(entry.getPath().getPath()),
+            ENTRY_ORDER)) {
+      chunks.add(
+          new BuildJobState()
+              .setFileHashes(
+                  ImmutableList.of(
+                      new BuildJobStateFileHashes()
+                          .setCellIndex(cellHashes.getCellIndex())
+                          .setEntries(entries))));
+    }
+  }
+
+  private static void addTargetNodeChunks(
+      List<BuildJobStateTargetNode> nodes, List<BuildJobState> chunks) {
+    for (List<BuildJobStateTargetNode> chunkNodes :
+        groupIntoChunks(
+            nodes,
+            node -> node.getCellIndex() + ":" + node.getBuildTarget().getBaseName(),
+            NODE_ORDER)) {
+      chunks.add(
+          new BuildJobState().setTargetGraph(new BuildJobStateTargetGraph().setNodes(chunkNodes)));
+    }
+  }
+
+  private static <T> List<List<T>> groupIntoChunks(
+      List<T> items, Function<T, String> getPackage, Comparator<T> order) {
+    SortedMap<String, List<T>> itemsByPackage = new TreeMap<>();
+    for (T item : items) {
+      itemsByPackage.computeIfAbsent(getPackage.apply(item), key -> new ArrayList<>()).add(item);
+    }
+
+    List<List<T>> chunks = new ArrayList<>();
+    List<T> chunk = new ArrayList<>();
+    for (Map.Entry<String, List<T>> packageItems : itemsByPackage.entrySet()) {
+      packageItems.getValue().sort(order);
+      chunk.addAll(packageItems.getValue());
+      if (Math.floorMod(packageItems.getKey().hashCode(), PACKAGES_PER_CHUNK) == 0) {
+        chunks.add(chunk);
+        chunk = new ArrayList<>();
+      }
+    }
+    if (!chunk.isEmpty()) {
+      chunks.add(chunk);
+    }
+    return chunks;
+  }
+
+  private static String getPackage(String path) {
+    int lastSeparator = path.lastIndexOf('/');
+    return lastSeparator < 0 ? "" : path.substring(0, lastSeparator);
+  }
+
+  private static String getTargetName(BuildJobStateTargetNode node) {
+    BuildJobStateBuildTarget target = node.getBuildTarget();
+    String flavors =
+        target.isSetFlavors() ? "#" + Joiner.on(',').join(new TreeSet<>(target.getFlavors())) : "";
+    return target.getBaseName() + ":" + target.getShortName() + flavors;
+  }
+}
@@ -16,37 +16,47 @@
 
 package com.facebook.buck.distributed;
 
-import com.facebook.buck.io.filesystem.ProjectFilesystem;
-import com.facebook.buck.model.BuckVersion;
+import com.facebook.buck.log.Logger;
 import com.facebook.buck.rules.BuildRule;
 import com.facebook.buck.rules.CachingBuildEngineDelegate;
+import com.facebook.buck.rules.RuleKey;
 import com.facebook.buck.rules.SourcePathResolver;
 import com.facebook.buck.rules.SourcePathRuleFinder;
+import com.facebook.buck.rules.keys.DefaultRuleKeyCache;
 import com.facebook.buck.rules.keys.DefaultRuleKeyFactory;
 import com.facebook.buck.rules.keys.RuleKeyConfiguration;
+import com.facebook.buck.rules.keys.RuleKeyFieldLoader;
+import com.facebook.buck.rules.keys.RuleKeyInput;
 import com.facebook.buck.util.cache.FileHashCache;
 import com.facebook.buck.util.cache.impl.StackedFileHashCache;
-import com.google.common.cache.LoadingCache;
 import com.google.common.collect.ImmutableList;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Optional;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
 /**
  * Implementation of {@link CachingBuildEngineDelegate} for use when building from a state file in
  * distributed build.
+ *
+ * <p>Source files are materialized lazily: the inputs a rule declares are fetched in a single batch
+ * while its deps are being built, and the rule only waits for its own inputs before it runs.
  */
 public class DistBuildCachingEngineDelegate implements CachingBuildEngineDelegate {
+  private static final Logger LOG = Logger.get(DistBuildCachingEngineDelegate.class);
   private static final long DEFAULT_PENDING_FILE_MATERIALIZATION_TIMEOUT_SECONDS = 30;
 
   private final StackedFileHashCache remoteStackedFileHashCache;
   private final ImmutableList<MaterializerDummyFileHashCache> materializerFileHashCaches;
-  private final LoadingCache<ProjectFilesystem, DefaultRuleKeyFactory>
-      materializingRuleKeyFactories;
+  private final InputRecordingRuleKeyCache<RuleKey> materializingRuleKeyCache;
+  private final DefaultRuleKeyFactory materializingRuleKeyFactory;
+  private final Executor prefetchExecutor;
   private final long pendingFileMaterializationTimeoutSeconds;
 
   public DistBuildCachingEngineDelegate(
@@ -54,15 +64,21 @@ public class DistBuildCachingEngineDelegate implements CachingBuildEngineDelegat
       SourcePathRuleFinder ruleFinder,
       StackedFileHashCache remoteStackedFileHashCache,
       StackedFileHashCache materializingStackedFileHashCache,
+      RuleKeyConfiguration ruleKeyConfiguration,
+      Executor prefetchExecutor,
       long pendingFileMaterializationTimeoutSeconds) {
     this.remoteStackedFileHashCache = remoteStackedFileHashCache;
+    this.prefetchExecutor = prefetchExecutor;
     this.pendingFileMaterializationTimeoutSeconds = pendingFileMaterializationTimeoutSeconds;
-    this.materializingRuleKeyFactories =
-        DistBuildFileHashes.createRuleKeyFactories(
+    this.materializingRuleKeyCache = new InputRecordingRuleKeyCache<>(new DefaultRuleKeyCache<>());
+    this.materializingRuleKeyFactory =
+        new DefaultRuleKeyFactory(
+            new RuleKeyFieldLoader(ruleKeyConfiguration),
+            materializingStackedFileHashCache,
             sourcePathResolver,
             ruleFinder,
-            materializingStackedFileHashCache,
-            RuleKeyConfiguration.builder().setSeed(0).setCoreKey(BuckVersion.getVersion()).build());
+            materializingRuleKeyCache,
+            Optional.empty());
 
     this.materializerFileHashCaches =
         materializingStackedFileHashCache
@@ -78,17 +94,23 @@ public class DistBuildCachingEngineDelegate implements CachingBuildEngineDelegat
    * @param ruleFinder Used by the distributed build rule key factories.
    * @param remoteStackedFileHashCache Cache that only requires SHA1.
    * @param materializingStackedFileHashCache Cache that writes the files to the disk.
+   * @param ruleKeyConfiguration Used by the rule keys which trigger the materialization.
+   * @param prefetchExecutor Used to start materializing the inputs of rules ahead of time.
    */
   public DistBuildCachingEngineDelegate(
       SourcePathResolver sourcePathResolver,
       SourcePathRuleFinder ruleFinder,
       StackedFileHashCache remoteStackedFileHashCache,
-      StackedFileHashCache materializingStackedFileHashCache) {
+      StackedFileHashCache materializingStackedFileHashCache,
+      RuleKeyConfiguration ruleKeyConfiguration,
+      Executor prefetchExecutor) {
     this(
         sourcePathResolver,
         ruleFinder,
         remoteStackedFileHashCache,
         materializingStackedFileHashCache,
+        ruleKeyConfiguration,
+        prefetchExecutor,
         DEFAULT_PENDING_FILE_MATERIALIZATION_TIMEOUT_SECONDS);
   }
 
@@ -97,27 +119,57 @@ public class DistBuildCachingEngineDelegate implements CachingBuildEngineDelegat
     return remoteStackedFileHashCache;
   }
 
+  @Override
+  public void onRuleDepsAboutToBeBuilt(BuildRule buildRule) {
+    prefetchExecutor.execute(
+        () -> {
+          try {
+            materializeInputs(buildRule);
+          } catch (IOException | RuntimeException e) {
+            // Prefetching is only an optimization, the failure is reported when the rule is built.
+            LOG.debug(e, "Failed to prefetch the inputs of [%s].", buildRule.getBuildTarget());
+          }
+        });
+  }
+
   @Override
   public void onRuleAboutToBeBuilt(BuildRule buildRule) {
     try {
-      materializingRuleKeyFactories.get(buildRule.getProjectFilesystem()).build(buildRule);
-      waitForPendingFileMaterialization();
-    } catch (ExecutionException e) {
+      waitForFileMaterialization(materializeInputs(buildRule));
+    } catch (IOException e) {
       throw new RuntimeException(e);
     }
   }
 
-  private void waitForPendingFileMaterialization() {
-    List<ListenableFuture<?>> fileMaterializationFutures =
-        new ArrayList<>(materializerFileHashCaches.size());
-    for (MaterializerDummyFileHashCache cache : materializerFileHashCaches) {
-      fileMaterializationFutures.add(cache.getMaterializationFuturesAsList());
+  /** Starts materializing the inputs of the rule, unless that has been done already. */
+  private ListenableFuture<?> materializeInputs(BuildRule buildRule) throws IOException {
+    // Building the rule key hashes every input of the rule, which schedules all of them to be
+    // fetched together.
+    materializingRuleKeyFactory.build(buildRule);
+
+    List<ListenableFuture<?>> fileMaterializationFutures = new ArrayList<>();
+    for (RuleKeyInput input : materializingRuleKeyCache.getInputs(buildRule)) {
+      Optional<MaterializerDummyFileHashCache> materializer = lookup(input);
+      if (materializer.isPresent()) {
+        fileMaterializationFutures.add(materializer.get().materializeAsync(input.getPath()));
+      }
     }
+    return Futures.allAsList(fileMaterializationFutures);
+  }
 
-    ListenableFuture<?> pendingFilesFuture = Futures.allAsList(fileMaterializationFutures);
+  private Optional<MaterializerDummyFileHashCache> lookup(RuleKeyInput input) {
+    // Mirrors how the StackedFileHashCache picks the cache that hashed the input.
+    return materializerFileHashCaches
+        .stream()
+        .filter(
+            cache ->
+                cache.getFilesystem().getRootPath().equals(input.getFilesystem().getRootPath()))
+        .findFirst();
+  }
 
+  private void waitForFileMaterialization(ListenableFuture<?> fileMaterializationFuture) {
     try {
-      pendingFilesFuture.get(pendingFileMaterializationTimeoutSeconds, TimeUnit.SECONDS);
+      fileMaterializationFuture.get(pendingFileMaterializationTimeoutSeconds, TimeUnit.SECONDS);
     } catch (InterruptedException | ExecutionException | TimeoutException e) {
       throw new RuntimeException(
           String.format(
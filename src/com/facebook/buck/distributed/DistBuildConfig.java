@@ -98,6 +98,9 @@ public class DistBuildConfig {
   private static final String ENABLE_DEEP_REMOTE_BUILD = "enable_deep_remote_build";
   private static final boolean DEFAULT_ENABLE_DEEP_REMOTE_BUILD = false;
 
+  private static final String UPLOAD_BUILD_JOB_STATE_IN_CHUNKS = "upload_build_job_state_in_chunks";
+  private static final boolean DEFAULT_UPLOAD_BUILD_JOB_STATE_IN_CHUNKS = false;
+
   private final SlbBuckConfig frontendConfig;
   private final BuckConfig buckConfig;
 
@@ -220,6 +223,17 @@ public class DistBuildConfig {
         STAMPEDE_SECTION, ENABLE_DEEP_REMOTE_BUILD, DEFAULT_ENABLE_DEEP_REMOTE_BUILD);
   }
 
+  /**
+   * Whether the client should upload the target graph and file hashes as content addressed chunks,
+   * so that only the chunks that changed since a previous build are sent.
+   */
+  public boolean shouldUploadBuildJobStateInChunks() {
+    return buckConfig.getBooleanValue(
+        STAMPEDE_SECTION,
+        UPLOAD_BUILD_JOB_STATE_IN_CHUNKS,
+        DEFAULT_UPLOAD_BUILD_JOB_STATE_IN_CHUNKS);
+  }
+
   public long getHearbeatServiceRateMillis() {
     return buckConfig
         .getLong(STAMPEDE_SECTION, HEARTBEAT_SERVICE_INTERVAL_MILLIS)
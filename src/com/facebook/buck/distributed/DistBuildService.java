@@ -110,11 +110,23 @@ public class DistBuildService implements Closeable {
 
   private final FrontendService service;
   private final String username;
+  private final boolean uploadBuildJobStateInChunks;
 
   public DistBuildService(FrontendService service, String username) {
+    this(service, username, false);
+  }
+
+  /**
+   * @param uploadBuildJobStateInChunks whether to upload the target graph as content addressed
+   *     chunks, only sending the ones the CAS doesn't have yet. See {@link
+   *     ChunkedBuildJobStateSerializer}.
+   */
+  public DistBuildService(
+      FrontendService service, String username, boolean uploadBuildJobStateInChunks) {
     Preconditions.checkNotNull(username, "Username needs to be set for distributed build.");
     this.service = service;
     this.username = username;
+    this.uploadBuildJobStateInChunks = uploadBuildJobStateInChunks;
   }
 
   public MultiGetBuildSlaveRealTimeLogsResponse fetchSlaveLogLines(
@@ -156,10 +168,19 @@ public class DistBuildService implements Closeable {
       throws IOException {
     distBuildClientStats.startTimer(UPLOAD_TARGET_GRAPH);
 
-    // Serialize and send the whole buildJobState
     StoreBuildGraphRequest storeBuildGraphRequest = new StoreBuildGraphRequest();
     storeBuildGraphRequest.setStampedeId(stampedeId);
-    storeBuildGraphRequest.setBuildGraph(BuildJobStateSerializer.serialize(buildJobState));
+    if (uploadBuildJobStateInChunks) {
+      // Send the chunks of the buildJobState the CAS doesn't have, and the list of all of them
+      ImmutableMap<String, byte[]> chunks =
+          ChunkedBuildJobStateSerializer.serializeChunks(buildJobState);
+      uploadMissingChunks(chunks);
+      storeBuildGraphRequest.setBuildGraph(
+          ChunkedBuildJobStateSerializer.serializeManifest(chunks.keySet()));
+    } else {
+      // Serialize and send the whole buildJobState
+      storeBuildGraphRequest.setBuildGraph(BuildJobStateSerializer.serialize(buildJobState));
+    }
 
     FrontendRequest request = new FrontendRequest();
     request.setType(FrontendRequestType.STORE_BUILD_GRAPH);
@@ -169,6 +190,41 @@ public class DistBuildService implements Closeable {
     // No response expected.
   }
 
+  private void uploadMissingChunks(ImmutableMap<String, byte[]> chunks) throws IOException {
+    List<String> contentHashes = chunks.keySet().asList();
+    FrontendResponse response =
+        makeRequestChecked(
+            new FrontendRequest()
+                .setType(FrontendRequestType.CAS_CONTAINS)
+                .setCasContainsRequest(new CASContainsRequest().setContentSha1s(contentHashes)));
+    List<Boolean> isPresent = response.getCasContainsResponse().getExists();
+    Preconditions.checkState(isPresent.size() == contentHashes.size());
+
+    List<FileInfo> missingChunks = new ArrayList<>();
+    for (int i = 0; i < isPresent.size(); ++i) {
+      if (!isPresent.get(i)) {
+        String contentHash = contentHashes.get(i);
+        missingChunks.add(
+            new FileInfo().setContentHash(contentHash).setContent(chunks.get(contentHash)));
+      }
+    }
+
+    LOG.info(
+        "%d out of %d build state chunks already exist in the CAS. Uploading %d chunks..",
+        contentHashes.size() - missingChunks.size(),
+        contentHashes.size(),
+        missingChunks.size());
+    if (missingChunks.isEmpty()) {
+      return;
+    }
+
+    makeRequestChecked(
+        new FrontendRequest()
+            .setType(FrontendRequestType.STORE_LOCAL_CHANGES)
+            .setStoreLocalChangesRequest(new StoreLocalChangesRequest().setFiles(missingChunks)));
+    // No response expected.
+  }
+
   public ListenableFuture<Void> uploadMissingFilesAsync(
       final Map<Integer, ProjectFilesystem> localFilesystemsByCell,
       final List<BuildJobStateFileHashes> fileHashes,
@@ -408,8 +464,18 @@ public class DistBuildService implements Closeable {
     Preconditions.checkState(response.getFetchBuildGraphResponse().isSetBuildGraph());
     Preconditions.checkState(response.getFetchBuildGraphResponse().getBuildGraph().length > 0);
 
-    return BuildJobStateSerializer.deserialize(
-        response.getFetchBuildGraphResponse().getBuildGraph());
+    byte[] buildGraph = response.getFetchBuildGraphResponse().getBuildGraph();
+    Optional<ImmutableList<String>> chunkHashes =
+        ChunkedBuildJobStateSerializer.deserializeManifest(buildGraph);
+    if (!chunkHashes.isPresent()) {
+      return BuildJobStateSerializer.deserialize(buildGraph);
+    }
+
+    ImmutableMap<String, byte[]> chunks =
+        multiFetchSourceFiles(ImmutableSet.copyOf(chunkHashes.get()));
+    return ChunkedBuildJobStateSerializer.deserializeChunks(
+        Lists.transform(
+            chunkHashes.get(), chunkHash -> Preconditions.checkNotNull(chunks.get(chunkHash))));
   }
 
   public static FrontendRequest createFetchBuildGraphRequest(StampedeId stampedeId) {
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.distributed;
+
+import com.facebook.buck.io.filesystem.ProjectFilesystem;
+import com.facebook.buck.rules.AddsToRuleKey;
+import com.facebook.buck.rules.BuildRule;
+import com.facebook.buck.rules.keys.RuleKeyCache;
+import com.facebook.buck.rules.keys.RuleKeyInput;
+import com.facebook.buck.rules.keys.RuleKeyResult;
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import javax.annotation.Nullable;
+
+/**
+ * A {@link RuleKeyCache} that remembers the inputs each rule key was computed from, so that the
+ * source files a rule declares can be looked up once its rule key has been built.
+ *
+ * @param <V> The rule key type.
+ */
+class InputRecordingRuleKeyCache<V> implements RuleKeyCache<V> {
+
+  private final RuleKeyCache<V> delegate;
+
+  /** The results of the computed rule keys, indexed by the rule or appendable they belong to. */
+  private final Map<Object, RuleKeyResult<V>> results = new ConcurrentHashMap<>();
+
+  public InputRecordingRuleKeyCache(RuleKeyCache<V> delegate) {
+    this.delegate = delegate;
+  }
+
+  private <K> RuleKeyResult<V> record(K key, RuleKeyResult<V> result) {
+    results.put(key, result);
+    return result;
+  }
+
+  /**
+   * @return the inputs of the rule key of {@code rule}, including the ones of the appendables it
+   *     contains but not the ones of the rules it depends on. Empty if the rule key of {@code rule}
+   *     hasn't been computed through this cache.
+   */
+  public ImmutableSet<RuleKeyInput> getInputs(BuildRule rule) {
+    ImmutableSet.Builder<RuleKeyInput> inputs = ImmutableSet.builder();
+    Set<Object> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+    Deque<Object> remaining = new ArrayDeque<>();
+    remaining.add(rule);
+    while (!remaining.isEmpty()) {
+      Object node = remaining.pop();
+      RuleKeyResult<V> result = results.get(node);
+      if (!visited.add(node) || result == null) {
+        continue;
+      }
+      inputs.addAll(result.inputs);
+      for (Object dep : result.deps) {
+        // The inputs of other rules are materialized when those rules are built.
+        if (!(dep instanceof BuildRule)) {
+          remaining.push(dep);
+        }
+      }
+    }
+    return inputs.build();
+  }
+
+  @Nullable
+  @Override
+  public V get(BuildRule rule) {
+    return delegate.get(rule);
+  }
+
+  @Override
+  public V get(BuildRule rule, Function<? super BuildRule, RuleKeyResult<V>> create) {
+    return delegate.get(rule, key -> record(key, create.apply(key)));
+  }
+
+  @Override
+  public V get(AddsToRuleKey appendable, Function<? super AddsToRuleKey, RuleKeyResult<V>> create) {
+    return delegate.get(appendable, key -> record(key, create.apply(key)));
+  }
+
+  @Override
+  public ImmutableList<Map.Entry<BuildRule, V>> getCachedBuildRules() {
+    return delegate.getCachedBuildRules();
+  }
+
+  @Override
+  public void invalidateInputs(Iterable<RuleKeyInput> inputs) {
+    delegate.invalidateInputs(inputs);
+  }
+
+  @Override
+  public void invalidateAllExceptFilesystems(ImmutableSet<ProjectFilesystem> filesystems) {
+    delegate.invalidateAllExceptFilesystems(filesystems);
+  }
+
+  @Override
+  public void invalidateFilesystem(ProjectFilesystem filesystem) {
+    delegate.invalidateFilesystem(filesystem);
+  }
+
+  @Override
+  public void invalidateAll() {
+    delegate.invalidateAll();
+    results.clear();
+  }
+
+  @Override
+  public CacheStats getStats() {
+    return delegate.getStats();
+  }
+}
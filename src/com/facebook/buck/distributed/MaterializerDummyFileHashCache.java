@@ -34,7 +34,9 @@ import com.google.common.util.concurrent.ListeningExecutorService;
 import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
@@ -142,7 +144,17 @@ class MaterializerDummyFileHashCache implements ProjectFileHashCache {
     }
   }
 
-  private void materializeIfNeededAsync(Path relPath) throws IOException {
+  /**
+   * Starts materializing the given path, if that hasn't been done already.
+   *
+   * @return a future that completes once the files under the path have been written to disk.
+   */
+  public ListenableFuture<?> materializeAsync(Path relPath) throws IOException {
+    return Futures.allAsList(materializeIfNeededAsync(relPath));
+  }
+
+  private List<ListenableFuture<?>> materializeIfNeededAsync(Path relPath) throws IOException {
+    List<ListenableFuture<?>> fileMaterializationFutures = new ArrayList<>();
     Stack<Path> remainingPaths = new Stack<>();
     remainingPaths.add(relPath);
 
@@ -174,8 +186,9 @@ class MaterializerDummyFileHashCache implements ProjectFileHashCache {
         continue;
       }
 
-      materializeFileAsync(relPath, fileHashEntry);
+      fileMaterializationFutures.add(materializeFileAsync(relPath, fileHashEntry));
     }
+    return fileMaterializationFutures;
   }
 
   private void postFileMaterializationHelper(
@@ -0,0 +1,56 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.distributed.build_slave;
+
+import com.facebook.buck.util.immutables.BuckStyleImmutable;
+import org.immutables.value.Value;
+
+/** How much work the coordinator has handed to a single minion, and where its inputs were. */
+@Value.Immutable
+@BuckStyleImmutable
+abstract class AbstractMinionUtilization {
+  public abstract String getMinionId();
+
+  /** Sum of the work units the minion asked for, i.e. of its free capacity when it asked. */
+  public abstract int getWorkUnitsRequested();
+
+  public abstract int getWorkUnitsAssigned();
+
+  public abstract int getTargetsAssigned();
+
+  public abstract int getTargetsFinished();
+
+  /** Work units with dependencies that the minion had built itself. */
+  public abstract int getLocalWorkUnits();
+
+  /**
+   * Work units whose dependencies had all been built by other minions, which the minion took
+   * because it had nothing closer to do.
+   */
+  public abstract int getStolenWorkUnits();
+
+  public int getTargetsInFlight() {
+    return getTargetsAssigned() - getTargetsFinished();
+  }
+
+  /** Fraction of the capacity the minion offered that was filled with work. */
+  public double getCapacityUsed() {
+    return getWorkUnitsRequested() == 0
+        ? 0
+        : (double) getWorkUnitsAssigned() / getWorkUnitsRequested();
+  }
+}
@@ -90,6 +90,7 @@ public class ActiveCoordinatorService implements CoordinatorService.Iface {
 
     chromeTraceTracker.updateWork(
         request.getMinionId(), request.getFinishedTargets(), newWorkUnitsForMinion);
+    buildRuleFinishedPublisher.updateMinionUtilization(allocator.getMinionUtilization());
 
     // If the build is already finished (or just finished with this update, then signal this to
     // the minion.
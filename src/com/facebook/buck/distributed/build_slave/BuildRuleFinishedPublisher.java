@@ -18,8 +18,11 @@ package com.facebook.buck.distributed.build_slave;
 import com.google.common.collect.ImmutableList;
 
 /**
- * Used by Coordinator service to signal to local client that a rule has finished building remotely.
+ * Used by Coordinator service to signal to local client that a rule has finished building remotely,
+ * and how busy the minions are.
  */
 public interface BuildRuleFinishedPublisher {
   void createBuildRuleCompletionEvents(ImmutableList<String> finishedTargets);
+
+  void updateMinionUtilization(ImmutableList<MinionUtilization> minionUtilization);
 }
@@ -21,18 +21,31 @@ import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Queue;
 import java.util.Set;
+import java.util.function.ToIntFunction;
 
 // NOTE: Not thread safe. Caller needs to synchronize access if using multiple threads.
 public class BuildTargetsQueue {
   private static final Logger LOG = Logger.get(BuildTargetsQueue.class);
 
+  // Ready nodes are handed out by locality first, and then by the length of the longest chain of
+  // dependents still waiting on them, so that the critical path is started as early as possible.
+  private static final Comparator<EnqueuedTarget> SCHEDULING_ORDER =
+      Comparator.<EnqueuedTarget>comparingInt(target -> target.localityScore)
+          .thenComparingInt(target -> target.criticalPathLength)
+          .reversed();
+
   private List<EnqueuedTarget> zeroDependencyTargets;
   private final Map<String, EnqueuedTarget> allEnqueuedTargets;
   private final Set<String> seenFinishedNodes = new HashSet<>();
@@ -45,6 +58,7 @@ public class BuildTargetsQueue {
         zeroDependencyTargets.size(), allEnqueuedTargets.size());
     this.zeroDependencyTargets = zeroDependencyTargets;
     this.allEnqueuedTargets = allEnqueuedTargets;
+    computeCriticalPathLengths();
   }
 
   public boolean hasReadyZeroDependencyNodes() {
@@ -53,6 +67,16 @@ public class BuildTargetsQueue {
 
   /** Returns nodes that have all their dependencies satisfied. */
   public List<WorkUnit> dequeueZeroDependencyNodes(List<String> finishedNodes, int maxUnitsOfWork) {
+    return dequeueZeroDependencyNodes(finishedNodes, maxUnitsOfWork, dependencies -> 0);
+  }
+
+  /**
+   * Returns nodes that have all their dependencies satisfied. If there are more of them than
+   * requested, the ones whose dependencies get the highest {@code localityScore} are returned,
+   * with ties going to the nodes with the longest remaining critical path.
+   */
+  public List<WorkUnit> dequeueZeroDependencyNodes(
+      List<String> finishedNodes, int maxUnitsOfWork, ToIntFunction<Set<String>> localityScore) {
     Preconditions.checkArgument(maxUnitsOfWork >= 0);
 
     LOG.info(
@@ -68,7 +92,7 @@ public class BuildTargetsQueue {
 
     List<WorkUnit> newUnitsOfWork = new ArrayList<>();
     createWorkUnitsStartingAtNodes(
-        new HashSet<>(zeroDependencyTargets), newUnitsOfWork, maxUnitsOfWork);
+        getNodesInSchedulingOrder(maxUnitsOfWork, localityScore), newUnitsOfWork, maxUnitsOfWork);
 
     if (newUnitsOfWork.size() > 0) {
       LOG.info(String.format("Returning [%s] work units", newUnitsOfWork.size()));
@@ -77,6 +101,65 @@ public class BuildTargetsQueue {
     return Lists.newArrayList(newUnitsOfWork);
   }
 
+  /** Returns the dependencies of the given target, which must be part of this queue. */
+  Set<String> getDependencies(String target) {
+    return Collections.unmodifiableSet(
+        Preconditions.checkNotNull(allEnqueuedTargets.get(target)).allDependencies);
+  }
+
+  /**
+   * Returns the number of targets on the longest chain from the given target up to a top level
+   * target, including both ends.
+   */
+  int getCriticalPathLength(String target) {
+    return Preconditions.checkNotNull(allEnqueuedTargets.get(target)).criticalPathLength;
+  }
+
+  private List<EnqueuedTarget> getNodesInSchedulingOrder(
+      int maxUnitsOfWork, ToIntFunction<Set<String>> localityScore) {
+    List<EnqueuedTarget> nodes = new ArrayList<>(new LinkedHashSet<>(zeroDependencyTargets));
+    if (nodes.size() <= maxUnitsOfWork) {
+      return nodes; // Everything is handed out, so the order doesn't matter.
+    }
+    for (EnqueuedTarget node : nodes) {
+      node.localityScore = localityScore.applyAsInt(node.allDependencies);
+    }
+    nodes.sort(SCHEDULING_ORDER);
+    return nodes;
+  }
+
+  private void computeCriticalPathLengths() {
+    Deque<EnqueuedTarget> nodesToCheck = new ArrayDeque<>();
+    for (EnqueuedTarget target : allEnqueuedTargets.values()) {
+      nodesToCheck.push(target);
+      while (!nodesToCheck.isEmpty()) {
+        EnqueuedTarget currentNode = nodesToCheck.peek();
+        if (currentNode.criticalPathLength > 0) {
+          nodesToCheck.pop(); // Reached again through another dependent.
+          continue;
+        }
+
+        int longestDependentPath = 0;
+        boolean allDependentsComputed = true;
+        for (String dependent : currentNode.dependentTargets) {
+          EnqueuedTarget dependentNode =
+              Preconditions.checkNotNull(allEnqueuedTargets.get(dependent));
+          if (dependentNode.criticalPathLength == 0) {
+            allDependentsComputed = false;
+            nodesToCheck.push(dependentNode);
+          } else {
+            longestDependentPath = Math.max(longestDependentPath, dependentNode.criticalPathLength);
+          }
+        }
+
+        if (allDependentsComputed) {
+          nodesToCheck.pop();
+          currentNode.criticalPathLength = longestDependentPath + 1;
+        }
+      }
+    }
+  }
+
   private void processFinishedNodes(List<String> finishedNodes) {
     totalBuilt += finishedNodes.size();
 
@@ -116,7 +199,7 @@ public class BuildTargetsQueue {
   }
 
   private void createWorkUnitsStartingAtNodes(
-      Set<EnqueuedTarget> nodes, List<WorkUnit> newUnitsOfWork, int maxUnitsOfWork) {
+      List<EnqueuedTarget> nodes, List<WorkUnit> newUnitsOfWork, int maxUnitsOfWork) {
     for (EnqueuedTarget node : nodes) {
       if (newUnitsOfWork.size() >= maxUnitsOfWork) {
         return;
@@ -188,6 +271,8 @@ public class BuildTargetsQueue {
     private int unsatisfiedDependencies;
 
     private boolean partOfBuildingUnitOfWork = false;
+    private int criticalPathLength = 0;
+    private int localityScore = 0;
 
     public EnqueuedTarget(
         String buildTarget,
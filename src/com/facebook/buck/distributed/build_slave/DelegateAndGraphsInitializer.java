@@ -173,7 +173,9 @@ public class DelegateAndGraphsInitializer {
               DefaultSourcePathResolver.from(ruleFinder),
               ruleFinder,
               caches.remoteStateCache,
-              caches.materializingCache);
+              caches.materializingCache,
+              args.getRuleKeyConfiguration(),
+              Preconditions.checkNotNull(args.getExecutors().get(ExecutorPool.CPU)));
     } else {
       cachingBuildEngineDelegate = new LocalCachingBuildEngineDelegate(caches.remoteStateCache);
     }
@@ -18,18 +18,32 @@ package com.facebook.buck.distributed.build_slave;
 
 import com.facebook.buck.distributed.thrift.WorkUnit;
 import com.facebook.buck.log.Logger;
+import com.google.common.collect.ImmutableList;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
 
 /**
  * Allocates and keeps track of what BuildTargets are allocated to which Minions. NOTE: Not thread
  * safe. Caller needs to synchronize access if using multiple threads.
+ *
+ * <p>Minions ask for work whenever they have free capacity, so the allocator can't push work to a
+ * particular minion. Instead, it remembers which minion built each target, and hands a minion the
+ * ready work units whose dependencies it built itself first, then the ones nobody has inputs for.
+ * Work that another minion holds the inputs for is only given out when nothing closer is left, so
+ * idle minions steal it rather than waiting for the busy one to get to it.
  */
 public class MinionWorkloadAllocator {
   private static final Logger LOG = Logger.get(MinionWorkloadAllocator.class);
 
   private final BuildTargetsQueue queue;
-  private final List<String> nodesAssignedToMinions = new ArrayList<>();
+  private final Set<String> nodesAssignedToMinions = new HashSet<>();
+  private final Map<String, String> minionBuildingTarget = new HashMap<>();
+  private final Map<String, MinionStats> minionStats = new TreeMap<>();
 
   public MinionWorkloadAllocator(BuildTargetsQueue queue) {
     this.queue = queue;
@@ -42,15 +56,26 @@ public class MinionWorkloadAllocator {
   /** Returns nodes that have all their dependencies satisfied. */
   public List<WorkUnit> dequeueZeroDependencyNodes(
       String minionId, List<String> finishedNodes, int maxWorkUnits) {
+    MinionStats stats = minionStats.computeIfAbsent(minionId, id -> new MinionStats());
     nodesAssignedToMinions.removeAll(finishedNodes);
+    stats.targetsFinished += finishedNodes.size();
 
-    List<WorkUnit> workUnits = queue.dequeueZeroDependencyNodes(finishedNodes, maxWorkUnits);
+    List<WorkUnit> workUnits =
+        queue.dequeueZeroDependencyNodes(
+            finishedNodes, maxWorkUnits, dependencies -> getLocalityScore(minionId, dependencies));
 
     List<String> nodesForMinions = new ArrayList<>();
     for (WorkUnit workUnit : workUnits) {
+      recordLocality(stats, minionId, getDependenciesOutsideOf(workUnit));
+      for (String target : workUnit.buildTargets) {
+        minionBuildingTarget.put(target, minionId);
+      }
       nodesForMinions.addAll(workUnit.buildTargets);
     }
     nodesAssignedToMinions.addAll(nodesForMinions);
+    stats.workUnitsRequested += maxWorkUnits;
+    stats.workUnitsAssigned += workUnits.size();
+    stats.targetsAssigned += nodesForMinions.size();
 
     LOG.info(
         String.format(
@@ -64,4 +89,77 @@ public class MinionWorkloadAllocator {
 
     return workUnits;
   }
+
+  /** Returns the work handed to each minion so far, ordered by minion id. */
+  public ImmutableList<MinionUtilization> getMinionUtilization() {
+    ImmutableList.Builder<MinionUtilization> utilization = ImmutableList.builder();
+    for (Map.Entry<String, MinionStats> entry : minionStats.entrySet()) {
+      MinionStats stats = entry.getValue();
+      utilization.add(
+          MinionUtilization.builder()
+              .setMinionId(entry.getKey())
+              .setWorkUnitsRequested(stats.workUnitsRequested)
+              .setWorkUnitsAssigned(stats.workUnitsAssigned)
+              .setTargetsAssigned(stats.targetsAssigned)
+              .setTargetsFinished(stats.targetsFinished)
+              .setLocalWorkUnits(stats.localWorkUnits)
+              .setStolenWorkUnits(stats.stolenWorkUnits)
+              .build());
+    }
+    return utilization.build();
+  }
+
+  /**
+   * Dependencies built by the minion count for the work, and dependencies built by other minions
+   * count against it, so that the work goes to them instead if they ask for it first.
+   */
+  private int getLocalityScore(String minionId, Set<String> dependencies) {
+    int score = 0;
+    for (String dependency : dependencies) {
+      String builtBy = minionBuildingTarget.get(dependency);
+      if (builtBy != null) {
+        score += builtBy.equals(minionId) ? 1 : -1;
+      }
+    }
+    return score;
+  }
+
+  /**
+   * Every target of a work unit but the first may also depend on targets built before the unit was
+   * formed, so the dependencies of all of them count.
+   */
+  private Set<String> getDependenciesOutsideOf(WorkUnit workUnit) {
+    Set<String> dependencies = new HashSet<>();
+    for (String target : workUnit.buildTargets) {
+      dependencies.addAll(queue.getDependencies(target));
+    }
+    dependencies.removeAll(workUnit.buildTargets);
+    return dependencies;
+  }
+
+  private void recordLocality(MinionStats stats, String minionId, Set<String> dependencies) {
+    boolean builtLocally = false;
+    boolean builtRemotely = false;
+    for (String dependency : dependencies) {
+      String builtBy = minionBuildingTarget.get(dependency);
+      if (builtBy != null) {
+        builtLocally |= builtBy.equals(minionId);
+        builtRemotely |= !builtBy.equals(minionId);
+      }
+    }
+    if (builtLocally) {
+      stats.localWorkUnits++;
+    } else if (builtRemotely) {
+      stats.stolenWorkUnits++;
+    }
+  }
+
+  private static class MinionStats {
+    private int workUnitsRequested = 0;
+    private int workUnitsAssigned = 0;
+    private int targetsAssigned = 0;
+    private int targetsFinished = 0;
+    private int localWorkUnits = 0;
+    private int stolenWorkUnits = 0;
+  }
 }
@@ -23,6 +23,8 @@ import com.facebook.buck.doctor.config.UserLocalConfiguration;
 import com.facebook.buck.io.filesystem.ProjectFilesystem;
 import com.facebook.buck.log.LogConfigPaths;
 import com.facebook.buck.log.Logger;
+import com.facebook.buck.rules.BuildRuleHistory;
+import com.facebook.buck.rules.BuildRuleStats;
 import com.facebook.buck.util.Console;
 import com.facebook.buck.util.Optionals;
 import com.facebook.buck.util.RichStream;
@@ -51,6 +53,8 @@ public abstract class AbstractReport {
 
   private static final Logger LOG = Logger.get(AbstractReport.class);
 
+  private static final int SLOWEST_RULES_IN_SUMMARY = 50;
+
   private final ProjectFilesystem filesystem;
   private final DefectReporter defectReporter;
   private final BuildEnvironmentDescription buildEnvironmentDescription;
@@ -149,6 +153,8 @@ public abstract class AbstractReport {
             .append(extraInfoPaths)
             .append(userLocalConfiguration.getLocalConfigsContents().keySet())
             .append(getTracePathsOfBuilds(selectedBuilds))
+            .append(
+                writeBuildHistorySummary().map(ImmutableList::of).orElse(ImmutableList.of()))
             .append(
                 fileChangesIgnoredReport
                     .flatMap(r -> r.getWatchmanDiagReport())
@@ -246,6 +252,44 @@ public abstract class AbstractReport {
     return tracePaths.build();
   }
 
+  /**
+   * Writes down the rules which took the longest to build in earlier builds, with how often they
+   * were fetched from the cache.
+   *
+   * @return the path of the summary, or absent if there is no history to summarize.
+   */
+  private Optional<Path> writeBuildHistorySummary() {
+    ImmutableList<BuildRuleStats> slowestRules =
+        BuildRuleHistory.forFilesystem(filesystem).getSlowestRules(SLOWEST_RULES_IN_SUMMARY);
+    if (slowestRules.isEmpty()) {
+      return Optional.empty();
+    }
+
+    StringBuilder summary = new StringBuilder();
+    summary.append("target\ttype\tduration_ms\toutput_bytes\tcache_hit_rate\n");
+    for (BuildRuleStats stats : slowestRules) {
+      summary.append(
+          String.format(
+              "%s\t%s\t%d\t%s\t%s\n",
+              stats.getTarget(),
+              stats.getRuleType(),
+              stats.getDurationMillis().get(),
+              stats.getOutputSizeBytes().map(String::valueOf).orElse("-"),
+              stats.getCacheHitRate().map(rate -> String.format("%.2f", rate)).orElse("-")));
+    }
+
+    Path summaryPath =
+        filesystem.getBuckPaths().getBuildHistoryDir().resolve("slowest_rules.tsv");
+    try {
+      filesystem.mkdirs(summaryPath.getParent());
+      filesystem.writeContentsToPath(summary.toString(), summaryPath);
+    } catch (IOException e) {
+      LOG.warn(e, "Failed to write the summary of the build history.");
+      return Optional.empty();
+    }
+    return Optional.of(summaryPath);
+  }
+
   private boolean isNoBuckCheckPresent() {
     return Files.exists(filesystem.getRootPath().resolve(".nobuckcheck"));
   }
@@ -21,6 +21,7 @@ import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.google.common.base.CaseFormat;
 import com.google.common.base.Joiner;
 import com.google.common.collect.ImmutableSet;
+import java.util.Optional;
 
 public abstract class ArtifactCompressionEvent extends AbstractBuckEvent
     implements LeafEvent, WorkAdvanceEvent {
@@ -31,12 +32,17 @@ public abstract class ArtifactCompressionEvent extends AbstractBuckEvent
 
   private final Operation operation;
   @JsonIgnore private final ImmutableSet<RuleKey> ruleKeys;
+  private final Optional<String> codec;
 
   protected ArtifactCompressionEvent(
-      EventKey eventKey, Operation operation, ImmutableSet<RuleKey> ruleKeys) {
+      EventKey eventKey,
+      Operation operation,
+      ImmutableSet<RuleKey> ruleKeys,
+      Optional<String> codec) {
     super(eventKey);
     this.operation = operation;
     this.ruleKeys = ruleKeys;
+    this.codec = codec;
   }
 
   @Override
@@ -58,8 +64,18 @@ public abstract class ArtifactCompressionEvent extends AbstractBuckEvent
     return operation;
   }
 
+  /** @return the name of the codec the artifact is compressed with, if known. */
+  public Optional<String> getCodec() {
+    return codec;
+  }
+
   public static Started started(Operation operation, ImmutableSet<RuleKey> ruleKeys) {
-    return new Started(operation, ruleKeys);
+    return new Started(operation, ruleKeys, Optional.empty());
+  }
+
+  public static Started started(
+      Operation operation, ImmutableSet<RuleKey> ruleKeys, String codec) {
+    return new Started(operation, ruleKeys, Optional.of(codec));
   }
 
   public static Finished finished(Started started) {
@@ -67,8 +83,9 @@ public abstract class ArtifactCompressionEvent extends AbstractBuckEvent
   }
 
   public static class Started extends ArtifactCompressionEvent {
-    protected Started(Operation operation, ImmutableSet<RuleKey> ruleKeys) {
-      super(EventKey.unique(), operation, ruleKeys);
+    protected Started(
+        Operation operation, ImmutableSet<RuleKey> ruleKeys, Optional<String> codec) {
+      super(EventKey.unique(), operation, ruleKeys, codec);
     }
 
     @Override
@@ -81,7 +98,11 @@ public abstract class ArtifactCompressionEvent extends AbstractBuckEvent
 
   public static class Finished extends ArtifactCompressionEvent {
     protected Finished(Started started) {
-      super(started.getEventKey(), started.getOperation(), started.getRuleKeys());
+      super(
+          started.getEventKey(),
+          started.getOperation(),
+          started.getRuleKeys(),
+          started.getCodec());
     }
 
     @Override
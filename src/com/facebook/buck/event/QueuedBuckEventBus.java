@@ -0,0 +1,444 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.event;
+
+import com.facebook.buck.log.CommandThreadFactory;
+import com.facebook.buck.log.Logger;
+import com.facebook.buck.model.BuildId;
+import com.facebook.buck.util.Threads;
+import com.facebook.buck.util.concurrent.MpscRingBuffer;
+import com.facebook.buck.util.timing.Clock;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Joiner;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Sets;
+import com.google.common.eventbus.Subscribe;
+import com.google.common.reflect.TypeToken;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Collectors;
+import javax.annotation.Nullable;
+
+/**
+ * A {@link BuckEventBus} that gives every listener its own queue and dispatch thread, so that
+ * posting threads don't contend on a lock and a slow listener only delays its own events.
+ *
+ * <p>Each queue is a bounded {@link MpscRingBuffer}. When a listener falls behind and its queue
+ * fills up, posting threads either wait for room or drop the event for that listener, depending
+ * on the {@link SlowListenerPolicy}. Events posted from the dispatch threads themselves neither
+ * wait nor get dropped, since two listeners posting to each other could otherwise deadlock.
+ *
+ * <p>Each listener gets the events in the order they were posted, but, unlike {@link
+ * DefaultBuckEventBus}, different listeners may be at different points of the stream.
+ *
+ * <p>The {@link Subscribe} methods of a listener are looked up when it's registered, and invoked
+ * through method handles rather than reflection.
+ */
+public class QueuedBuckEventBus implements BuckEventBus {
+
+  private static final Logger LOG = Logger.get(BuckEventBus.class);
+
+  public static final int DEFAULT_QUEUE_CAPACITY = 8192;
+
+  private static final MethodType HANDLER_TYPE =
+      MethodType.methodType(void.class, Object.class, Object.class);
+  private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+  private static final long CLOSE_POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+  private static final int SPINS_BEFORE_PARKING = 100;
+
+  /** The bus whose listener the current thread is dispatching to, if any. */
+  private static final ThreadLocal<QueuedBuckEventBus> DISPATCHING = new ThreadLocal<>();
+
+  /** What a posting thread does when a listener's queue is full. */
+  public enum SlowListenerPolicy {
+    /** Wait until the listener catches up. */
+    BLOCK,
+    /** Drop the event for that listener, and carry on. */
+    DROP,
+  }
+
+  private final Clock clock;
+  private final BuildId buildId;
+  private final int queueCapacity;
+  private final SlowListenerPolicy slowListenerPolicy;
+  private final int shutdownTimeoutMillis;
+  private final CommandThreadFactory threadFactory;
+  private final List<ListenerQueue> queues = new CopyOnWriteArrayList<>();
+  private final Set<Object> listeners = Sets.newIdentityHashSet();
+
+  private volatile boolean stopped = false;
+  @Nullable private volatile Thread closingThread = null;
+
+  public QueuedBuckEventBus(
+      Clock clock,
+      BuildId buildId,
+      int queueCapacity,
+      SlowListenerPolicy slowListenerPolicy,
+      int shutdownTimeoutMillis) {
+    this.clock = clock;
+    this.buildId = buildId;
+    this.queueCapacity = queueCapacity;
+    this.slowListenerPolicy = slowListenerPolicy;
+    this.shutdownTimeoutMillis = shutdownTimeoutMillis;
+    this.threadFactory = new CommandThreadFactory(BuckEventBus.class.getSimpleName());
+  }
+
+  public QueuedBuckEventBus(
+      Clock clock, BuildId buildId, int queueCapacity, SlowListenerPolicy slowListenerPolicy) {
+    this(
+        clock,
+        buildId,
+        queueCapacity,
+        slowListenerPolicy,
+        DefaultBuckEventBus.DEFAULT_SHUTDOWN_TIMEOUT_MS);
+  }
+
+  @Override
+  public void post(BuckEvent event) {
+    timestamp(event);
+    dispatch(event);
+  }
+
+  /** Post event to the EventBus using the timestamp given by atTime. */
+  @Override
+  public void post(BuckEvent event, BuckEvent atTime) {
+    event.configure(
+        atTime.getTimestamp(),
+        atTime.getNanoTime(),
+        atTime.getThreadUserNanoTime(),
+        Thread.currentThread().getId(),
+        buildId);
+    dispatch(event);
+  }
+
+  @Override
+  public void postWithoutConfiguring(BuckEvent event) {
+    Preconditions.checkState(event.isConfigured());
+    dispatch(event);
+  }
+
+  @Override
+  public void timestamp(BuckEvent event) {
+    long threadId = Thread.currentThread().getId();
+    event.configure(
+        clock.currentTimeMillis(),
+        clock.nanoTime(),
+        clock.threadUserNanoTime(threadId),
+        threadId,
+        buildId);
+  }
+
+  @Override
+  public BuildId getBuildId() {
+    return buildId;
+  }
+
+  @Override
+  public void register(Object object) {
+    synchronized (listeners) {
+      Preconditions.checkState(!stopped, "Cannot register listeners on a closed event bus.");
+      if (!listeners.add(object)) {
+        return;
+      }
+      ImmutableList<Handler> handlers = findHandlers(object);
+      if (handlers.isEmpty()) {
+        return;
+      }
+      ListenerQueue queue = new ListenerQueue(object, handlers);
+      queues.add(queue);
+      queue.start();
+    }
+  }
+
+  private void dispatch(BuckEvent event) {
+    if (stopped) {
+      LOG.debug("Dropping %s posted after the event bus was closed.", event);
+      return;
+    }
+    boolean fromDispatchThread = DISPATCHING.get() == this;
+    Class<?> eventClass = event.getClass();
+    for (ListenerQueue queue : queues) {
+      queue.enqueue(event, eventClass, fromDispatchThread);
+    }
+  }
+
+  @VisibleForTesting
+  long getDroppedEventCount() {
+    return queues.stream().mapToLong(queue -> queue.dropped.get()).sum();
+  }
+
+  /**
+   * Waits for the events which have been posted to be delivered, so that listeners can record or
+   * report as much information as possible, then stops the dispatch threads.
+   */
+  @Override
+  public void close() {
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(shutdownTimeoutMillis);
+    closingThread = Thread.currentThread();
+    // Listeners may post more events while they're being drained, so keep waiting until none is
+    // left, rather than for what was pending when we started.
+    while (queues.stream().anyMatch(queue -> queue.pending.get() > 0)) {
+      long remaining = deadline - System.nanoTime();
+      if (remaining <= 0 || Thread.currentThread().isInterrupted()) {
+        break;
+      }
+      LockSupport.parkNanos(this, Math.min(remaining, CLOSE_POLL_NANOS));
+    }
+    closingThread = null;
+
+    synchronized (listeners) {
+      stopped = true;
+    }
+    for (ListenerQueue queue : queues) {
+      LockSupport.unpark(queue.thread);
+    }
+    boolean lostEvents = false;
+    try {
+      for (ListenerQueue queue : queues) {
+        long remaining = Math.max(1, deadline - System.nanoTime());
+        queue.thread.join(TimeUnit.NANOSECONDS.toMillis(remaining) + 1);
+        if (queue.thread.isAlive() || queue.pending.get() > 0) {
+          lostEvents = true;
+          queue.thread.interrupt();
+        }
+      }
+    } catch (InterruptedException e) {
+      Threads.interruptCurrentThread();
+    }
+
+    if (lostEvents) {
+      LOG.warn(
+          Joiner.on(System.lineSeparator())
+              .join(
+                  "The BuckEventBus failed to shut down within the standard timeout.",
+                  "Your build might have succeeded, but some messages were probably lost.",
+                  "Here's some debugging information:",
+                  queues.stream().map(Object::toString).collect(Collectors.joining(", "))));
+    }
+    long dropped = getDroppedEventCount();
+    if (dropped > 0) {
+      LOG.info("Dropped %d events for listeners which couldn't keep up.", dropped);
+    }
+  }
+
+  /**
+   * Finds the {@link Subscribe} methods of the listener and its supertypes, the way Guava's {@link
+   * com.google.common.eventbus.EventBus} does.
+   */
+  private static ImmutableList<Handler> findHandlers(Object listener) {
+    ImmutableList.Builder<Handler> handlers = ImmutableList.builder();
+    Set<List<Object>> seenSignatures = new HashSet<>();
+    for (Class<?> type : TypeToken.of(listener.getClass()).getTypes().rawTypes()) {
+      for (Method method : type.getDeclaredMethods()) {
+        if (!method.isAnnotationPresent(Subscribe.class) || method.isSynthetic()) {
+          continue;
+        }
+        Class<?>[] parameterTypes = method.getParameterTypes();
+        Preconditions.checkArgument(
+            parameterTypes.length == 1,
+            "Method %s has @Subscribe annotation but has %s parameters. "
+                + "Subscriber methods must have exactly 1 parameter.",
+            method,
+            parameterTypes.length);
+        if (!seenSignatures.add(Arrays.asList(method.getName(), Arrays.asList(parameterTypes)))) {
+          // Overridden in a subclass, which we've already seen.
+          continue;
+        }
+        method.setAccessible(true);
+        try {
+          handlers.add(
+              new Handler(parameterTypes[0], MethodHandles.lookup().unreflect(method), method));
+        } catch (IllegalAccessException e) {
+          throw new IllegalStateException(e);
+        }
+      }
+    }
+    return handlers.build();
+  }
+
+  /** A {@link Subscribe} method of a listener. */
+  private static final class Handler {
+    private final Class<?> eventType;
+    private final MethodHandle handle;
+    private final Method method;
+
+    private Handler(Class<?> eventType, MethodHandle handle, Method method) {
+      this.eventType = eventType;
+      this.handle = handle.asType(HANDLER_TYPE);
+      this.method = method;
+    }
+  }
+
+  /** The events of a single listener, and the thread which delivers them. */
+  private final class ListenerQueue implements Runnable {
+    private final Object listener;
+    private final ImmutableList<Handler> handlers;
+    private final ConcurrentMap<Class<?>, Handler[]> handlersByEventClass =
+        new ConcurrentHashMap<>();
+    private final MpscRingBuffer<BuckEvent> ring;
+    /**
+     * Events posted from dispatch threads, which mustn't wait for room in the ring, when it's full.
+     * Nothing goes into the ring while this holds events, so they're all later than the events in
+     * the ring.
+     */
+    private final Queue<BuckEvent> overflow = new ConcurrentLinkedQueue<>();
+    /** Events which have been enqueued, but not delivered yet. */
+    private final AtomicLong pending = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final Thread thread;
+    private volatile boolean waiting = false;
+
+    private ListenerQueue(Object listener, ImmutableList<Handler> handlers) {
+      this.listener = listener;
+      this.handlers = handlers;
+      this.ring = new MpscRingBuffer<>(queueCapacity);
+      this.thread = threadFactory.newThread(this);
+      this.thread.setDaemon(true);
+    }
+
+    private void start() {
+      thread.start();
+    }
+
+    private Handler[] getHandlers(Class<?> eventClass) {
+      Handler[] result = handlersByEventClass.get(eventClass);
+      if (result == null) {
+        result =
+            handlersByEventClass.computeIfAbsent(
+                eventClass,
+                clazz ->
+                    handlers
+                        .stream()
+                        .filter(handler -> handler.eventType.isAssignableFrom(clazz))
+                        .toArray(Handler[]::new));
+      }
+      return result;
+    }
+
+    private void enqueue(BuckEvent event, Class<?> eventClass, boolean fromDispatchThread) {
+      if (getHandlers(eventClass).length == 0) {
+        return;
+      }
+      pending.incrementAndGet();
+      if (fromDispatchThread) {
+        if (!overflow.isEmpty() || !ring.offer(event)) {
+          overflow.add(event);
+        }
+      } else {
+        int spins = 0;
+        while (!overflow.isEmpty() || !ring.offer(event)) {
+          if (slowListenerPolicy == SlowListenerPolicy.DROP || stopped) {
+            drop(event);
+            return;
+          }
+          wakeUp();
+          if (++spins < SPINS_BEFORE_PARKING) {
+            Thread.yield();
+          } else {
+            LockSupport.parkNanos(this, TimeUnit.MICROSECONDS.toNanos(50));
+          }
+        }
+      }
+      wakeUp();
+    }
+
+    private void drop(BuckEvent event) {
+      pending.decrementAndGet();
+      if (dropped.getAndIncrement() == 0) {
+        LOG.warn(
+            "%s can't keep up with the events; dropping some, starting with %s.",
+            listener.getClass().getName(), event);
+      }
+    }
+
+    private void wakeUp() {
+      if (waiting) {
+        LockSupport.unpark(thread);
+      }
+    }
+
+    @Override
+    public void run() {
+      DISPATCHING.set(QueuedBuckEventBus.this);
+      int idleSpins = 0;
+      while (!Thread.currentThread().isInterrupted()) {
+        BuckEvent event = ring.poll();
+        if (event == null) {
+          event = overflow.poll();
+        }
+        if (event != null) {
+          idleSpins = 0;
+          deliver(event);
+          if (pending.decrementAndGet() == 0) {
+            Thread closing = closingThread;
+            if (closing != null) {
+              LockSupport.unpark(closing);
+            }
+          }
+          continue;
+        }
+        if (stopped) {
+          return;
+        }
+        if (++idleSpins < SPINS_BEFORE_PARKING) {
+          // Events tend to come in bursts, so it's worth waiting a little before parking.
+          Thread.yield();
+          continue;
+        }
+        // Posting threads check this after enqueueing, so either we see their event, or they see
+        // that we need waking up.
+        waiting = true;
+        if (overflow.isEmpty() && ring.isEmpty() && !stopped) {
+          LockSupport.parkNanos(this, MAX_PARK_NANOS);
+        }
+        waiting = false;
+      }
+    }
+
+    private void deliver(BuckEvent event) {
+      for (Handler handler : getHandlers(event.getClass())) {
+        try {
+          handler.handle.invokeExact(listener, (Object) event);
+        } catch (Throwable t) {
+          LOG.warn(t, "%s failed to handle %s.", handler.method, event);
+        }
+      }
+    }
+
+    @Override
+    public String toString() {
+      return String.format(
+          "%s: %d pending, %d dropped",
+          listener.getClass().getName(), pending.get(), dropped.get());
+    }
+  }
+}
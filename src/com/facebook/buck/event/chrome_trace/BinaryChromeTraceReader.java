@@ -0,0 +1,225 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.event.chrome_trace;
+
+import static com.facebook.buck.event.chrome_trace.BinaryChromeTraceWriter.MAGIC;
+import static com.facebook.buck.event.chrome_trace.BinaryChromeTraceWriter.TAG_END;
+import static com.facebook.buck.event.chrome_trace.BinaryChromeTraceWriter.TAG_EVENT;
+import static com.facebook.buck.event.chrome_trace.BinaryChromeTraceWriter.TAG_RESET_STRINGS;
+import static com.facebook.buck.event.chrome_trace.BinaryChromeTraceWriter.TAG_STRING;
+import static com.facebook.buck.event.chrome_trace.BinaryChromeTraceWriter.VALUE_DOUBLE;
+import static com.facebook.buck.event.chrome_trace.BinaryChromeTraceWriter.VALUE_FALSE;
+import static com.facebook.buck.event.chrome_trace.BinaryChromeTraceWriter.VALUE_INLINE_JSON;
+import static com.facebook.buck.event.chrome_trace.BinaryChromeTraceWriter.VALUE_INLINE_STRING;
+import static com.facebook.buck.event.chrome_trace.BinaryChromeTraceWriter.VALUE_JSON;
+import static com.facebook.buck.event.chrome_trace.BinaryChromeTraceWriter.VALUE_LONG;
+import static com.facebook.buck.event.chrome_trace.BinaryChromeTraceWriter.VALUE_STRING;
+import static com.facebook.buck.event.chrome_trace.BinaryChromeTraceWriter.VALUE_TRUE;
+import static com.facebook.buck.event.chrome_trace.BinaryChromeTraceWriter.VERSION;
+
+import com.facebook.buck.event.chrome_trace.ChromeTraceEvent.Phase;
+import com.facebook.buck.util.ObjectMappers;
+import com.google.common.collect.ImmutableMap;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.zip.GZIPInputStream;
+import javax.annotation.Nullable;
+
+/**
+ * Reads the traces written by {@link BinaryChromeTraceWriter}. Run it as a tool to convert a
+ * binary trace, compressed or not, to json which chrome://tracing can load.
+ */
+public class BinaryChromeTraceReader implements AutoCloseable {
+
+  private static final Phase[] PHASES = Phase.values();
+
+  private final DataInputStream in;
+  private final List<String> strings = new ArrayList<>();
+  private long lastMicroTime = 0;
+  private long lastMicroThreadUserTime = 0;
+  private boolean ended = false;
+
+  public BinaryChromeTraceReader(InputStream in) throws IOException {
+    this.in = new DataInputStream(new BufferedInputStream(in));
+    byte[] magic = new byte[MAGIC.length];
+    this.in.readFully(magic);
+    if (!Arrays.equals(magic, MAGIC)) {
+      throw new IOException("Not a binary Chrome trace.");
+    }
+    int version = this.in.readUnsignedByte();
+    // Later versions only add records and values, so earlier traces can be read as they are.
+    if (version < 1 || version > VERSION) {
+      throw new IOException(String.format("Unsupported binary Chrome trace version %d.", version));
+    }
+  }
+
+  /** @return the next event, or empty at the end of the trace. */
+  public Optional<ChromeTraceEvent> readEvent() throws IOException {
+    try {
+      while (!ended) {
+        int tag = in.read();
+        switch (tag) {
+          // A trace which was cut short, e.g. because buck was killed, has no end record.
+          case -1:
+          case TAG_END:
+            ended = true;
+            break;
+          case TAG_STRING:
+            strings.add(readInlineString());
+            break;
+          case TAG_RESET_STRINGS:
+            strings.clear();
+            break;
+          case TAG_EVENT:
+            return Optional.of(readEventRecord());
+          default:
+            throw new IOException(String.format("Unknown record type %d in binary trace.", tag));
+        }
+      }
+    } catch (EOFException e) {
+      ended = true;
+    }
+    return Optional.empty();
+  }
+
+  private ChromeTraceEvent readEventRecord() throws IOException {
+    String category = readString();
+    String name = readString();
+    Phase phase = PHASES[in.readUnsignedByte()];
+    long processId = unZigZag(readVarLong());
+    long threadId = unZigZag(readVarLong());
+    lastMicroTime += unZigZag(readVarLong());
+    lastMicroThreadUserTime += unZigZag(readVarLong());
+    ImmutableMap<String, Object> args = null;
+    int argCount = (int) readVarLong();
+    if (argCount > 0) {
+      ImmutableMap.Builder<String, Object> builder = ImmutableMap.builder();
+      for (int i = 0; i < argCount - 1; i++) {
+        builder.put(readString(), readValue());
+      }
+      args = builder.build();
+    }
+    return new ChromeTraceEvent(
+        category,
+        name,
+        phase,
+        processId,
+        threadId,
+        lastMicroTime,
+        lastMicroThreadUserTime,
+        args);
+  }
+
+  private Object readValue() throws IOException {
+    int type = in.readUnsignedByte();
+    switch (type) {
+      case VALUE_STRING:
+        return readString();
+      case VALUE_LONG:
+        return unZigZag(readVarLong());
+      case VALUE_DOUBLE:
+        return in.readDouble();
+      case VALUE_TRUE:
+        return true;
+      case VALUE_FALSE:
+        return false;
+      case VALUE_JSON:
+        return ObjectMappers.READER.readTree(readString());
+      case VALUE_INLINE_STRING:
+        return readInlineString();
+      case VALUE_INLINE_JSON:
+        return ObjectMappers.READER.readTree(readInlineString());
+      default:
+        throw new IOException(String.format("Unknown value type %d in binary trace.", type));
+    }
+  }
+
+  @Nullable
+  private String readString() throws IOException {
+    int index = (int) readVarLong();
+    return index == 0 ? null : strings.get(index - 1);
+  }
+
+  private String readInlineString() throws IOException {
+    byte[] bytes = new byte[(int) readVarLong()];
+    in.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private long readVarLong() throws IOException {
+    long value = 0;
+    for (int shift = 0; ; shift += 7) {
+      int b = in.readUnsignedByte();
+      value |= (long) (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+  }
+
+  private static long unZigZag(long value) {
+    return (value >>> 1) ^ -(value & 1);
+  }
+
+  @Override
+  public void close() throws IOException {
+    in.close();
+  }
+
+  /** Converts a binary trace, which may be gzipped, to json. Closes both streams. */
+  public static void convertToJson(InputStream binaryTrace, OutputStream jsonTrace)
+      throws IOException {
+    BufferedInputStream input = new BufferedInputStream(binaryTrace);
+    input.mark(2);
+    boolean gzipped = input.read() == 0x1f && input.read() == 0x8b;
+    input.reset();
+    try (BinaryChromeTraceReader reader =
+            new BinaryChromeTraceReader(gzipped ? new GZIPInputStream(input) : input);
+        ChromeTraceWriter writer = new ChromeTraceWriter(jsonTrace)) {
+      writer.writeStart();
+      for (Optional<ChromeTraceEvent> event = reader.readEvent();
+          event.isPresent();
+          event = reader.readEvent()) {
+        writer.writeEvent(event.get());
+      }
+      writer.writeEnd();
+    }
+  }
+
+  public static void main(String[] args) throws IOException {
+    if (args.length != 2) {
+      System.err.println("Usage: BinaryChromeTraceReader <binary trace> <json trace>");
+      System.exit(1);
+    }
+    try (InputStream in = Files.newInputStream(Paths.get(args[0]));
+        OutputStream out = new BufferedOutputStream(Files.newOutputStream(Paths.get(args[1])))) {
+      convertToJson(in, out);
+    }
+  }
+}
@@ -54,6 +54,19 @@ public class ChromeTraceBuckConfig implements ConfigView<BuckConfig> {
     return delegate.getBooleanValue(LOG_SECTION, "compress_traces", false);
   }
 
+  /** @return whether to write traces in the binary format of {@link BinaryChromeTraceWriter}. */
+  public boolean getBinaryTraces() {
+    return delegate.getBooleanValue(LOG_SECTION, "binary_traces", false);
+  }
+
+  /**
+   * @return whether to drop events when the trace writer falls behind, rather than make the event
+   *     bus wait for it.
+   */
+  public boolean getDropEventsWhenBehind() {
+    return delegate.getBooleanValue(LOG_SECTION, "drop_trace_events_when_behind", false);
+  }
+
   public Optional<URI> getTraceUploadUri() {
     if (!getShouldUploadBuildTraces()) {
       return Optional.empty();
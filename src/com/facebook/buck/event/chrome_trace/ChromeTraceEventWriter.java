@@ -0,0 +1,35 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.event.chrome_trace;
+
+import java.io.IOException;
+
+/** Writes a stream of {@link ChromeTraceEvent}s, in one of the trace formats. */
+public interface ChromeTraceEventWriter extends AutoCloseable {
+
+  /** Must be called prior to emitting first event to properly initialize stream. */
+  void writeStart() throws IOException;
+
+  /** Write single event. */
+  void writeEvent(ChromeTraceEvent chromeTraceEvent) throws IOException;
+
+  /** Must be called after all events to properly terminate event stream. */
+  void writeEnd() throws IOException;
+
+  @Override
+  void close() throws IOException;
+}
@@ -758,7 +758,7 @@ public abstract class AbstractConsoleEventBusListener implements BuckEventListen
 
     if (finished.getStatus() != BuildRuleStatus.CANCELED) {
       if (progressEstimator.isPresent()) {
-        progressEstimator.get().didFinishRule();
+        progressEstimator.get().didFinishRule(finished.getBuildRule());
       }
       numRulesCompleted.getAndIncrement();
     }
@@ -18,6 +18,7 @@ package com.facebook.buck.event.listener;
 
 import com.facebook.buck.artifact_cache.ArtifactCacheConnectEvent;
 import com.facebook.buck.artifact_cache.ArtifactCacheEvent;
+import com.facebook.buck.artifact_cache.DirArtifactCacheEvent;
 import com.facebook.buck.event.ActionGraphEvent;
 import com.facebook.buck.event.ArtifactCompressionEvent;
 import com.facebook.buck.event.BuckEvent;
@@ -30,9 +31,11 @@ import com.facebook.buck.event.RuleKeyCalculationEvent;
 import com.facebook.buck.event.SimplePerfEvent;
 import com.facebook.buck.event.StartActivityEvent;
 import com.facebook.buck.event.UninstallEvent;
+import com.facebook.buck.event.chrome_trace.BinaryChromeTraceWriter;
 import com.facebook.buck.event.chrome_trace.ChromeTraceBuckConfig;
 import com.facebook.buck.event.chrome_trace.ChromeTraceEvent;
 import com.facebook.buck.event.chrome_trace.ChromeTraceEvent.Phase;
+import com.facebook.buck.event.chrome_trace.ChromeTraceEventWriter;
 import com.facebook.buck.event.chrome_trace.ChromeTraceWriter;
 import com.facebook.buck.io.WatchmanOverflowEvent;
 import com.facebook.buck.io.file.PathListing;
@@ -43,6 +46,7 @@ import com.facebook.buck.log.CommandThreadFactory;
 import com.facebook.buck.log.InvocationInfo;
 import com.facebook.buck.log.Logger;
 import com.facebook.buck.model.BuildId;
+import com.facebook.buck.model.Pair;
 import com.facebook.buck.parser.ParseEvent;
 import com.facebook.buck.parser.events.ParseBuckFileEvent;
 import com.facebook.buck.rules.BuildEvent;
@@ -52,7 +56,7 @@ import com.facebook.buck.rules.TestSummaryEvent;
 import com.facebook.buck.step.StepEvent;
 import com.facebook.buck.test.external.ExternalTestRunEvent;
 import com.facebook.buck.test.external.ExternalTestSpecCalculationEvent;
-import com.facebook.buck.util.BestCompressionGZIPOutputStream;
+import com.facebook.buck.util.BestSpeedGZIPOutputStream;
 import com.facebook.buck.util.HumanReadableException;
 import com.facebook.buck.util.Optionals;
 import com.facebook.buck.util.ProcessResourceConsumption;
@@ -80,9 +84,13 @@ import java.lang.management.ThreadMXBean;
 import java.net.URI;
 import java.nio.file.Path;
 import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
 import java.util.Date;
+import java.util.Deque;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 import java.util.TimeZone;
@@ -90,9 +98,16 @@ import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
+import javax.annotation.concurrent.GuardedBy;
 
-/** Logs events to a json file formatted to be viewed in Chrome Trace View (chrome://tracing). */
+/**
+ * Logs events to a json file formatted to be viewed in Chrome Trace View (chrome://tracing), or to
+ * a binary file which {@link com.facebook.buck.event.chrome_trace.BinaryChromeTraceReader} converts
+ * to one.
+ */
 public class ChromeTraceBuildListener implements BuckEventListener {
 
   private static final LoadingCache<String, String> CONVERTED_EVENT_ID_CACHE =
@@ -111,19 +126,32 @@ public class ChromeTraceBuildListener implements BuckEventListener {
 
   private static final Logger LOG = Logger.get(ChromeTraceBuildListener.class);
   private static final int TIMEOUT_SECONDS = 30;
+  /** Bounds the memory used by events waiting to be written, if the writer falls behind. */
+  private static final int MAX_QUEUED_EVENTS = 100000;
 
   private final ProjectFilesystem projectFilesystem;
   private final Clock clock;
   private final ThreadLocal<SimpleDateFormat> dateFormat;
   private final Path tracePath;
   private final OutputStream traceStream;
-  private final ChromeTraceWriter chromeTraceWriter;
+  private final ChromeTraceEventWriter chromeTraceWriter;
   private final Path logDirectoryPath;
   private final ChromeTraceBuckConfig config;
   private final Set<Long> threadNamesRecorded = new HashSet<>();
   private final ThreadMXBean threadMXBean;
 
   private final ExecutorService outputExecutor;
+  private final boolean dropEventsWhenBehind;
+  /** Events submitted to the output thread which it hasn't written yet. */
+  private final AtomicInteger queuedEvents = new AtomicInteger();
+  /** Events dropped because the writer fell behind, rather than stalling the event bus. */
+  private final AtomicLong droppedEvents = new AtomicLong();
+  /**
+   * Whether each BEGIN event which hasn't ended yet was written, by thread and name, so that the
+   * END events of those written are never dropped.
+   */
+  @GuardedBy("this")
+  private final Map<Pair<Long, String>, Deque<Boolean>> openBeginEvents = new HashMap<>();
 
   public ChromeTraceBuildListener(
       ProjectFilesystem projectFilesystem,
@@ -165,12 +193,21 @@ public class ChromeTraceBuildListener implements BuckEventListener {
         };
     this.threadMXBean = threadMXBean;
     this.config = config;
+    this.dropEventsWhenBehind = config.getDropEventsWhenBehind();
+    // When events may be dropped, the queue is bounded by dropping them, so that the END events
+    // which mustn't be dropped always fit.
     this.outputExecutor =
-        MostExecutors.newSingleThreadExecutor(new CommandThreadFactory(getClass().getName()));
+        dropEventsWhenBehind
+            ? MostExecutors.newSingleThreadExecutor(new CommandThreadFactory(getClass().getName()))
+            : MostExecutors.newSingleThreadExecutor(
+                new CommandThreadFactory(getClass().getName()), MAX_QUEUED_EVENTS);
     TracePathAndStream tracePathAndStream = createPathAndStream(invocationInfo.getBuildId());
     this.tracePath = tracePathAndStream.getPath();
     this.traceStream = tracePathAndStream.getStream();
-    this.chromeTraceWriter = new ChromeTraceWriter(this.traceStream);
+    this.chromeTraceWriter =
+        config.getBinaryTraces()
+            ? new BinaryChromeTraceWriter(this.traceStream)
+            : new ChromeTraceWriter(this.traceStream);
     this.chromeTraceWriter.writeStart();
     addProcessMetadataEvent(invocationInfo);
     addProjectFilesystemDelegateMetadataEvent(projectFilesystem);
@@ -217,7 +254,7 @@ public class ChromeTraceBuildListener implements BuckEventListener {
       for (Path path :
           PathListing.listMatchingPathsWithFilters(
               traceDirectory,
-              "build.*.trace",
+              config.getBinaryTraces() ? "build.*.btrace*" : "build.*.trace",
               PathListing.GET_PATH_MODIFIED_TIME,
               PathListing.FilterMode.EXCLUDE,
               Optional.of(config.getMaxTraces()),
@@ -229,18 +266,21 @@ public class ChromeTraceBuildListener implements BuckEventListener {
     }
   }
 
+  private String getTraceExtension() {
+    String extension = config.getBinaryTraces() ? "btrace" : "trace";
+    return config.getCompressTraces() ? extension + ".gz" : extension;
+  }
+
   private TracePathAndStream createPathAndStream(BuildId buildId) {
     String filenameTime = dateFormat.get().format(new Date(clock.currentTimeMillis()));
-    String traceName = String.format("build.%s.%s.trace", filenameTime, buildId);
-    if (config.getCompressTraces()) {
-      traceName = traceName + ".gz";
-    }
+    String traceName =
+        String.format("build.%s.%s.%s", filenameTime, buildId, getTraceExtension());
     Path tracePath = logDirectoryPath.resolve(traceName);
     try {
       projectFilesystem.createParentDirs(tracePath);
       OutputStream stream = projectFilesystem.newFileOutputStream(tracePath);
       if (config.getCompressTraces()) {
-        stream = new BestCompressionGZIPOutputStream(stream, true);
+        stream = new BestSpeedGZIPOutputStream(stream, true);
       }
       return new TracePathAndStream(tracePath, stream);
     } catch (IOException e) {
@@ -261,12 +301,19 @@ public class ChromeTraceBuildListener implements BuckEventListener {
         Threads.interruptCurrentThread();
       }
 
+      long dropped = droppedEvents.get();
+      if (dropped > 0) {
+        LOG.warn("Dropped %d events from buck trace %s as it fell behind.", dropped, tracePath);
+        // The output thread is done, so the writer can be used directly.
+        chromeTraceWriter.writeEvent(
+            createMetadataEvent("dropped_events", ImmutableMap.of("count", dropped)));
+      }
       chromeTraceWriter.writeEnd();
       chromeTraceWriter.close();
       traceStream.close();
       uploadTraceIfConfigured(buildId);
 
-      String symlinkName = config.getCompressTraces() ? "build.trace.gz" : "build.trace";
+      String symlinkName = "build." + getTraceExtension();
       Path symlinkPath = projectFilesystem.getBuckPaths().getLogDir().resolve(symlinkName);
       projectFilesystem.createSymLink(
           projectFilesystem.resolve(symlinkPath), projectFilesystem.resolve(tracePath), true);
@@ -612,12 +659,36 @@ public class ChromeTraceBuildListener implements BuckEventListener {
 
   public void writeArtifactCompressionEvent(
       ArtifactCompressionEvent event, ChromeTraceEvent.Phase phase) {
+    ImmutableMap.Builder<String, String> args = ImmutableMap.builder();
+    args.put("rule_key", Joiner.on(", ").join(event.getRuleKeys()));
+    event.getCodec().ifPresent(codec -> args.put("codec", codec));
+    writeChromeTraceEvent("buck", event.getCategory(), phase, args.build(), event);
+  }
+
+  @Subscribe
+  public void dirCacheEvictionStarted(DirArtifactCacheEvent.EvictionStarted started) {
     writeChromeTraceEvent(
         "buck",
-        event.getCategory(),
-        phase,
-        ImmutableMap.of("rule_key", Joiner.on(", ").join(event.getRuleKeys())),
-        event);
+        started.getCategory(),
+        ChromeTraceEvent.Phase.BEGIN,
+        ImmutableMap.of(
+            "cache_name", started.getCacheName(),
+            "size_bytes", Long.toString(started.getSizeBytes()),
+            "pending_operations", Integer.toString(started.getPendingOperations())),
+        started);
+  }
+
+  @Subscribe
+  public void dirCacheEvictionFinished(DirArtifactCacheEvent.EvictionFinished finished) {
+    writeChromeTraceEvent(
+        "buck",
+        finished.getCategory(),
+        ChromeTraceEvent.Phase.END,
+        ImmutableMap.of(
+            "evicted_entries", Integer.toString(finished.getEvictedEntries()),
+            "evicted_bytes", Long.toString(finished.getEvictedBytes()),
+            "size_bytes", Long.toString(finished.getSizeBytes())),
+        finished);
   }
 
   @Subscribe
@@ -902,24 +973,32 @@ public class ChromeTraceBuildListener implements BuckEventListener {
   @VisibleForTesting
   void writeChromeTraceMetadataEvent(
       String name, ImmutableMap<String, ? extends Object> arguments) {
+    submitTraceEvent(createMetadataEvent(name, arguments));
+  }
+
+  private ChromeTraceEvent createMetadataEvent(
+      String name, ImmutableMap<String, ? extends Object> arguments) {
     long timestampInMicroseconds = TimeUnit.NANOSECONDS.toMicros(clock.nanoTime());
     long threadTimestampInMicroseconds =
         TimeUnit.NANOSECONDS.toMicros(clock.threadUserNanoTime(Thread.currentThread().getId()));
-    ChromeTraceEvent chromeTraceEvent =
-        new ChromeTraceEvent(
-            /* category */ "buck",
-            name,
-            ChromeTraceEvent.Phase.METADATA,
-            /* processId */ 0,
-            /* threadId */ 0,
-            /* microTime */ timestampInMicroseconds,
-            /* microThreadUserTime */ threadTimestampInMicroseconds,
-            arguments);
-    submitTraceEvent(chromeTraceEvent);
+    return new ChromeTraceEvent(
+        /* category */ "buck",
+        name,
+        ChromeTraceEvent.Phase.METADATA,
+        /* processId */ 0,
+        /* threadId */ 0,
+        /* microTime */ timestampInMicroseconds,
+        /* microThreadUserTime */ threadTimestampInMicroseconds,
+        arguments);
   }
 
   @SuppressWarnings("PMD.EmptyCatchBlock")
   private void submitTraceEvent(final ChromeTraceEvent chromeTraceEvent) {
+    if (dropEventsWhenBehind && shouldDrop(chromeTraceEvent)) {
+      droppedEvents.incrementAndGet();
+      return;
+    }
+    queuedEvents.incrementAndGet();
     @SuppressWarnings("unused")
     Future<?> unused =
         outputExecutor.submit(
@@ -928,11 +1007,47 @@ public class ChromeTraceBuildListener implements BuckEventListener {
                 chromeTraceWriter.writeEvent(chromeTraceEvent);
               } catch (IOException e) {
                 // Swallow any failures to write.
+              } finally {
+                queuedEvents.decrementAndGet();
               }
               return null;
             });
   }
 
+  /**
+   * Whether to drop the event because the writer is behind. An END event is dropped if and only
+   * if its BEGIN event was, so that the trace stays balanced. Metadata events, which name the
+   * threads, are never dropped.
+   */
+  private boolean shouldDrop(ChromeTraceEvent event) {
+    return shouldDrop(event, queuedEvents.get() >= MAX_QUEUED_EVENTS);
+  }
+
+  @VisibleForTesting
+  synchronized boolean shouldDrop(ChromeTraceEvent event, boolean behind) {
+    Pair<Long, String> key = new Pair<>(event.getThreadId(), event.getName());
+    switch (event.getPhase()) {
+      case METADATA:
+        return false;
+      case BEGIN:
+        openBeginEvents.computeIfAbsent(key, k -> new ArrayDeque<>()).push(!behind);
+        return behind;
+      case END:
+        Deque<Boolean> open = openBeginEvents.get(key);
+        if (open == null) {
+          return behind;
+        }
+        boolean beginWritten = open.pop();
+        if (open.isEmpty()) {
+          openBeginEvents.remove(key);
+        }
+        return !beginWritten;
+        // $CASES-OMITTED$
+      default:
+        return behind;
+    }
+  }
+
   private void uploadTraceIfConfigured(BuildId buildId) {
     Optional<URI> traceUploadUri = config.getTraceUploadUri();
     if (!traceUploadUri.isPresent()) {
@@ -942,8 +1057,10 @@ public class ChromeTraceBuildListener implements BuckEventListener {
     Path fullPath = projectFilesystem.resolve(tracePath);
     Path logFile = projectFilesystem.resolve(logDirectoryPath.resolve("upload-build-trace.log"));
 
+    // Lets the server tell binary traces apart, to convert them to json.
+    String traceFileKind = config.getBinaryTraces() ? "binary" : "default";
     UploaderLauncher.uploadInBackground(
-        buildId, fullPath, "default", traceUploadUri.get(), logFile);
+        buildId, fullPath, traceFileKind, traceUploadUri.get(), logFile);
   }
 
   private static class TracePathAndStream {
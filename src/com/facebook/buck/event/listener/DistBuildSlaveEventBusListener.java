@@ -24,6 +24,7 @@ import com.facebook.buck.distributed.FileMaterializationStatsTracker;
 import com.facebook.buck.distributed.build_slave.BuildRuleFinishedPublisher;
 import com.facebook.buck.distributed.build_slave.BuildSlaveFinishedStatusEvent;
 import com.facebook.buck.distributed.build_slave.BuildSlaveTimingStatsTracker;
+import com.facebook.buck.distributed.build_slave.MinionUtilization;
 import com.facebook.buck.distributed.build_slave.UnexpectedSlaveCacheMissTracker;
 import com.facebook.buck.distributed.thrift.BuildSlaveConsoleEvent;
 import com.facebook.buck.distributed.thrift.BuildSlaveFinishedStats;
@@ -88,6 +89,8 @@ public class DistBuildSlaveEventBusListener
 
   private final List<String> finishedTargetsToSignal = new LinkedList<>();
 
+  private volatile ImmutableList<MinionUtilization> minionUtilization = ImmutableList.of();
+
   private final CacheRateStatsKeeper cacheRateStatsKeeper = new CacheRateStatsKeeper();
 
   private volatile int ruleCount = 0;
@@ -183,11 +186,36 @@ public class DistBuildSlaveEventBusListener
 
     // Send final updates.
     sendServerUpdates();
+    logMinionUtilization();
     if (exitCode.isPresent()) {
       sendFinishedStatsToFrontend(createBuildSlaveFinishedStats());
     }
   }
 
+  /**
+   * Returns what the coordinator running on this slave last reported about each of its minions, or
+   * an empty list if this slave isn't a coordinator.
+   */
+  public ImmutableList<MinionUtilization> getMinionUtilization() {
+    return minionUtilization;
+  }
+
+  private void logMinionUtilization() {
+    for (MinionUtilization minion : minionUtilization) {
+      LOG.info(
+          String.format(
+              "Minion [%s] filled [%.0f%%] of the capacity it offered with [%s] work units "
+                  + "([%s] local, [%s] stolen) and built [%s] of its [%s] targets.",
+              minion.getMinionId(),
+              minion.getCapacityUsed() * 100,
+              minion.getWorkUnitsAssigned(),
+              minion.getLocalWorkUnits(),
+              minion.getStolenWorkUnits(),
+              minion.getTargetsFinished(),
+              minion.getTargetsAssigned()));
+    }
+  }
+
   private BuildSlaveStatus createBuildSlaveStatus() {
     return new BuildSlaveStatus()
         .setStampedeId(stampedeId)
@@ -422,4 +450,9 @@ public class DistBuildSlaveEventBusListener
       finishedTargetsToSignal.addAll(finishedTargets);
     }
   }
+
+  @Override
+  public void updateMinionUtilization(ImmutableList<MinionUtilization> minionUtilization) {
+    this.minionUtilization = minionUtilization;
+  }
 }
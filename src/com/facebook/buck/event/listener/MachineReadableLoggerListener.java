@@ -25,6 +25,7 @@ import static com.facebook.buck.log.MachineReadableLogConfig.PREFIX_PERFTIMES_UP
 
 import com.facebook.buck.artifact_cache.ArtifactCacheEvent;
 import com.facebook.buck.artifact_cache.CacheCountersSummary;
+import com.facebook.buck.artifact_cache.CacheCountersSummaryEvent;
 import com.facebook.buck.artifact_cache.CacheResult;
 import com.facebook.buck.artifact_cache.CacheResultType;
 import com.facebook.buck.artifact_cache.HttpArtifactCacheEvent;
@@ -62,6 +63,7 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class MachineReadableLoggerListener implements BuckEventListener {
 
@@ -89,6 +91,19 @@ public class MachineReadableLoggerListener implements BuckEventListener {
   private AtomicInteger cacheUploadSuccessCount = new AtomicInteger();
   private AtomicInteger cacheUploadFailureCount = new AtomicInteger();
 
+  // Prefetch statistics
+  private AtomicInteger prefetches = new AtomicInteger();
+  private AtomicInteger prefetchHits = new AtomicInteger();
+  private AtomicInteger prefetchesUsed = new AtomicInteger();
+  private AtomicInteger prefetchesWasted = new AtomicInteger();
+  private AtomicLong prefetchWastedBytes = new AtomicLong();
+
+  // Memory cache statistics
+  private AtomicInteger memoryCacheHits = new AtomicInteger();
+  private AtomicInteger memoryCacheMisses = new AtomicInteger();
+  private AtomicLong memoryCacheEvictions = new AtomicLong();
+  private AtomicLong memoryCacheSizeBytes = new AtomicLong();
+
   public MachineReadableLoggerListener(
       InvocationInfo info,
       ProjectFilesystem filesystem,
@@ -209,6 +224,20 @@ public class MachineReadableLoggerListener implements BuckEventListener {
     }
   }
 
+  @Subscribe
+  public void onCacheCountersSummaryEvent(CacheCountersSummaryEvent event) {
+    CacheCountersSummary summary = event.getSummary();
+    prefetches.addAndGet(summary.getTotalPrefetches());
+    prefetchHits.addAndGet(summary.getTotalPrefetchHits());
+    prefetchesUsed.addAndGet(summary.getTotalPrefetchesUsed());
+    prefetchesWasted.addAndGet(summary.getTotalPrefetchesWasted());
+    prefetchWastedBytes.addAndGet(summary.getPrefetchWastedBytes());
+    memoryCacheHits.addAndGet(summary.getTotalMemoryCacheHits());
+    memoryCacheMisses.addAndGet(summary.getTotalMemoryCacheMisses());
+    memoryCacheEvictions.addAndGet(summary.getMemoryCacheEvictions());
+    memoryCacheSizeBytes.accumulateAndGet(summary.getMemoryCacheSizeBytes(), Math::max);
+  }
+
   private Path getLogFilePath() {
     return filesystem
         .resolve(info.getLogDirectoryPath())
@@ -244,16 +273,28 @@ public class MachineReadableLoggerListener implements BuckEventListener {
               try {
                 writeToLogImpl(
                     PREFIX_CACHE_STATS,
-                    CacheCountersSummary.of(
-                        cacheModeHits,
-                        cacheModeErrors,
-                        cacheModeHits.values().stream().mapToInt(AtomicInteger::get).sum(),
-                        cacheModeErrors.values().stream().mapToInt(AtomicInteger::get).sum(),
-                        cacheMisses.get(),
-                        cacheIgnores.get(),
-                        localKeyUnchangedHits.get(),
-                        cacheUploadSuccessCount,
-                        cacheUploadFailureCount));
+                    CacheCountersSummary.builder()
+                        .setCacheHitsPerMode(cacheModeHits)
+                        .setCacheErrorsPerMode(cacheModeErrors)
+                        .setTotalCacheHits(
+                            cacheModeHits.values().stream().mapToInt(AtomicInteger::get).sum())
+                        .setTotalCacheErrors(
+                            cacheModeErrors.values().stream().mapToInt(AtomicInteger::get).sum())
+                        .setTotalCacheMisses(cacheMisses.get())
+                        .setTotalCacheIgnores(cacheIgnores.get())
+                        .setTotalCacheLocalKeyUnchangedHits(localKeyUnchangedHits.get())
+                        .setSuccessUploadCount(cacheUploadSuccessCount)
+                        .setFailureUploadCount(cacheUploadFailureCount)
+                        .setTotalPrefetches(prefetches.get())
+                        .setTotalPrefetchHits(prefetchHits.get())
+                        .setTotalPrefetchesUsed(prefetchesUsed.get())
+                        .setTotalPrefetchesWasted(prefetchesWasted.get())
+                        .setPrefetchWastedBytes(prefetchWastedBytes.get())
+                        .setTotalMemoryCacheHits(memoryCacheHits.get())
+                        .setTotalMemoryCacheMisses(memoryCacheMisses.get())
+                        .setMemoryCacheEvictions(memoryCacheEvictions.get())
+                        .setMemoryCacheSizeBytes(memoryCacheSizeBytes.get())
+                        .build());
 
                 outputStream.write(
                     String.format(
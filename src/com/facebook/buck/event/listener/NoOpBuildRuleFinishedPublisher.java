@@ -16,10 +16,14 @@
 package com.facebook.buck.event.listener;
 
 import com.facebook.buck.distributed.build_slave.BuildRuleFinishedPublisher;
+import com.facebook.buck.distributed.build_slave.MinionUtilization;
 import com.google.common.collect.ImmutableList;
 
 /** No-op implementation of BuildRuleFinishedPublisher */
 public class NoOpBuildRuleFinishedPublisher implements BuildRuleFinishedPublisher {
   @Override
   public void createBuildRuleCompletionEvents(ImmutableList<String> finishedTargets) {}
+
+  @Override
+  public void updateMinionUtilization(ImmutableList<MinionUtilization> minionUtilization) {}
 }
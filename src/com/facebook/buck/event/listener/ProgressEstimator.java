@@ -19,6 +19,8 @@ package com.facebook.buck.event.listener;
 import com.facebook.buck.event.BuckEventBus;
 import com.facebook.buck.event.ProgressEvent;
 import com.facebook.buck.log.Logger;
+import com.facebook.buck.rules.BuildRule;
+import com.facebook.buck.rules.BuildRuleHistory;
 import com.facebook.buck.util.ObjectMappers;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.google.common.base.Joiner;
@@ -50,6 +52,8 @@ public class ProgressEstimator {
 
   private BuckEventBus buckEventBus;
 
+  private final Optional<BuildRuleHistory> buildRuleHistory;
+
   @Nullable private Map<String, Map<String, Number>> expectationsStorage;
 
   private final AtomicInteger numberOfParsedRules = new AtomicInteger(0);
@@ -67,11 +71,22 @@ public class ProgressEstimator {
   private final AtomicDouble parsingFilesProgress = new AtomicDouble(-1.0);
   private final AtomicDouble projectGenerationProgress = new AtomicDouble(-1.0);
   private final AtomicDouble buildProgress = new AtomicDouble(-1.0);
+  private final AtomicDouble finishedRulesMillis = new AtomicDouble(0.0);
 
   public ProgressEstimator(Path storageFile, BuckEventBus buckEventBus) {
+    this(storageFile, buckEventBus, Optional.empty());
+  }
+
+  /**
+   * @param buildRuleHistory if present, build progress is weighted by the durations rules took in
+   *     earlier builds instead of counting every rule the same.
+   */
+  public ProgressEstimator(
+      Path storageFile, BuckEventBus buckEventBus, Optional<BuildRuleHistory> buildRuleHistory) {
     this.storageFile = storageFile;
     this.command = null;
     this.buckEventBus = buckEventBus;
+    this.buildRuleHistory = buildRuleHistory;
     this.expectationsStorage = null;
   }
 
@@ -134,9 +149,22 @@ public class ProgressEstimator {
     calculateBuildProgress();
   }
 
+  public void didFinishRule(BuildRule rule) {
+    if (buildRuleHistory.isPresent()) {
+      BuildRuleHistory history = buildRuleHistory.get();
+      Optional<Long> expectedMillis = history.getExpectedDurationMillis(rule);
+      if (!expectedMillis.isPresent()) {
+        expectedMillis = history.getAverageDurationMillis();
+      }
+      expectedMillis.ifPresent(finishedRulesMillis::addAndGet);
+    }
+    didFinishRule();
+  }
+
   public void didStartBuild() {
     numberOfStartedRules.set(0);
     numberOfFinishedRules.set(0);
+    finishedRulesMillis.set(0.0);
   }
 
   public void didFinishBuild() {
@@ -313,6 +341,14 @@ public class ProgressEstimator {
       newValue = -1.0;
     } else {
       double buildProgress = numberOfFinishedRules.get() / ruleCount;
+      Optional<Long> averageMillis =
+          buildRuleHistory.flatMap(BuildRuleHistory::getAverageDurationMillis);
+      double doneMillis = finishedRulesMillis.get();
+      if (averageMillis.isPresent() && doneMillis > 0.0) {
+        // The rules left are unknown, so each of them is assumed to take the average time.
+        double remainingRules = Math.max(ruleCount - numberOfFinishedRules.get(), 0.0);
+        buildProgress = doneMillis / (doneMillis + remainingRules * averageMillis.get());
+      }
       newValue = Math.floor(buildProgress * 100.0) / 100.0;
     }
 
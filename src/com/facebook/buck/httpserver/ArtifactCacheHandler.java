@@ -26,14 +26,18 @@ import com.facebook.buck.io.file.LazyPath;
 import com.facebook.buck.io.filesystem.ProjectFilesystem;
 import com.facebook.buck.log.Logger;
 import com.facebook.buck.rules.RuleKey;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.io.ByteSource;
 import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
@@ -68,6 +72,8 @@ public class ArtifactCacheHandler extends AbstractHandler {
         status = handleGet(baseRequest, response);
       } else if (method.equals("PUT")) {
         status = handlePut(baseRequest, response);
+      } else if (method.equals("POST")) {
+        status = handleMultiFetch(baseRequest, response);
       }
       response.setStatus(status);
     } catch (Exception e) {
@@ -128,6 +134,72 @@ public class ArtifactCacheHandler extends AbstractHandler {
     }
   }
 
+  private int handleMultiFetch(Request baseRequest, HttpServletResponse response)
+      throws IOException {
+    if (!artifactCache.isPresent()) {
+      response.getWriter().write("Serving local cache is disabled for this instance.");
+      return HttpServletResponse.SC_INTERNAL_SERVER_ERROR;
+    }
+
+    String path = baseRequest.getUri().getPath();
+    String[] pathElements = path.split("/");
+    if (pathElements.length != 3 || !pathElements[2].equals("multikey")) {
+      response.getWriter().write("Incorrect url format.");
+      return HttpServletResponse.SC_INTERNAL_SERVER_ERROR;
+    }
+
+    ImmutableList<RuleKey> ruleKeys;
+    try (DataInputStream requestInputData = new DataInputStream(baseRequest.getInputStream())) {
+      ruleKeys = HttpArtifactCacheBinaryProtocol.readMultiFetchRequest(requestInputData);
+    }
+
+    List<Path> temps = new ArrayList<>();
+    try {
+      projectFilesystem.mkdirs(projectFilesystem.getBuckPaths().getScratchDir());
+      // Start all the fetches before waiting for any, so that they proceed in parallel.
+      List<ListenableFuture<CacheResult>> fetches = new ArrayList<>();
+      for (RuleKey ruleKey : ruleKeys) {
+        Path temp =
+            projectFilesystem.createTempFile(
+                projectFilesystem.getBuckPaths().getScratchDir(), "outgoing_rulekey", ".tmp");
+        temps.add(temp);
+        fetches.add(artifactCache.get().fetchAsync(ruleKey, LazyPath.ofInstance(temp)));
+      }
+
+      ImmutableList.Builder<Optional<HttpArtifactCacheBinaryProtocol.FetchResponse>> entries =
+          ImmutableList.builder();
+      for (int i = 0; i < ruleKeys.size(); i++) {
+        CacheResult fetchResult = Futures.getUnchecked(fetches.get(i));
+        if (!fetchResult.getType().isSuccess()) {
+          entries.add(Optional.empty());
+          continue;
+        }
+        Path temp = temps.get(i);
+        entries.add(
+            Optional.of(
+                new HttpArtifactCacheBinaryProtocol.FetchResponse(
+                    ImmutableSet.of(ruleKeys.get(i)),
+                    fetchResult.getMetadata(),
+                    new ByteSource() {
+                      @Override
+                      public InputStream openStream() throws IOException {
+                        return projectFilesystem.newFileInputStream(temp);
+                      }
+                    })));
+      }
+
+      HttpArtifactCacheBinaryProtocol.MultiFetchResponse multiFetchResponse =
+          new HttpArtifactCacheBinaryProtocol.MultiFetchResponse(entries.build());
+      response.setContentLengthLong(multiFetchResponse.getContentLength());
+      multiFetchResponse.write(response.getOutputStream());
+      return HttpServletResponse.SC_OK;
+    } finally {
+      for (Path temp : temps) {
+        projectFilesystem.deleteFileAtPathIfExists(temp);
+      }
+    }
+  }
+
   private int handlePut(Request baseRequest, HttpServletResponse response) throws IOException {
     if (!artifactCache.isPresent()) {
       response.getWriter().write("Serving local cache is disabled for this instance.");
@@ -154,14 +226,16 @@ public class ArtifactCacheHandler extends AbstractHandler {
         return HttpServletResponse.SC_NOT_ACCEPTABLE;
       }
 
-      artifactCache
-          .get()
-          .store(
-              ArtifactInfo.builder()
-                  .setRuleKeys(storeRequest.getRuleKeys())
-                  .setMetadata(storeRequest.getMetadata())
-                  .build(),
-              BorrowablePath.borrowablePath(temp));
+      // The temporary file is deleted below, so the store has to be finished by then.
+      Futures.getUnchecked(
+          artifactCache
+              .get()
+              .store(
+                  ArtifactInfo.builder()
+                      .setRuleKeys(storeRequest.getRuleKeys())
+                      .setMetadata(storeRequest.getMetadata())
+                      .build(),
+                  BorrowablePath.borrowablePath(temp)));
       return HttpServletResponse.SC_ACCEPTED;
     } finally {
       if (temp != null) {
@@ -17,6 +17,7 @@
 package com.facebook.buck.io;
 
 import com.facebook.buck.util.immutables.BuckStyleTuple;
+import com.google.common.collect.ImmutableList;
 import java.nio.file.Path;
 import org.immutables.value.Value;
 
@@ -55,3 +56,17 @@ abstract class AbstractWatchmanPathEvent implements WatchmanEvent {
    */
   public abstract Path getPath();
 }
+
+/**
+ * All the {@link WatchmanPathEvent}s reported by a single Watchman query, posted after each of them
+ * has been posted on its own, so that subscribers can handle a burst of changes, such as a branch
+ * switch, at once.
+ */
+@Value.Immutable(copy = false, builder = false)
+@BuckStyleTuple
+abstract class AbstractWatchmanPathEventBatch {
+  /** Cell path being watched. */
+  public abstract Path getCellPath();
+
+  public abstract ImmutableList<WatchmanPathEvent> getEvents();
+}
@@ -380,6 +380,7 @@ public class WatchmanWatcher {
             perfEvent.appendFinishedInfo("files_sample", files.subList(0, TRACE_CHANGES_THRESHOLD));
           }
 
+          ImmutableList.Builder<WatchmanPathEvent> pathEvents = ImmutableList.builder();
           for (Map<String, Object> file : files) {
             String fileName = (String) file.get("name");
             if (fileName == null) {
@@ -399,7 +400,12 @@ public class WatchmanWatcher {
             if (fileExists != null && !fileExists) {
               kind = WatchmanPathEvent.Kind.DELETE;
             }
-            postWatchEvent(buckEventBus, WatchmanPathEvent.of(cellPath, kind, Paths.get(fileName)));
+            WatchmanPathEvent pathEvent = WatchmanPathEvent.of(cellPath, kind, Paths.get(fileName));
+            postWatchEvent(buckEventBus, pathEvent);
+            pathEvents.add(pathEvent);
+          }
+          if (!files.isEmpty()) {
+            fileChangeEventBus.post(WatchmanPathEventBatch.of(cellPath, pathEvents.build()));
           }
 
           if (!files.isEmpty() || freshInstanceAction == FreshInstanceAction.NONE) {
@@ -86,6 +86,29 @@ abstract class AbstractBuckPaths {
     return getBuckOut().resolve("cache");
   }
 
+  /** Where the hashes of source files are kept between runs. */
+  @Value.Derived
+  public Path getFileHashCacheDir() {
+    return getBuckOut().resolve("file_hashes");
+  }
+
+  @Value.Derived
+  public Path getBuildHistoryDir() {
+    return getBuckOut().resolve("build_history");
+  }
+
+  /** Where rule keys are kept between daemons. */
+  @Value.Derived
+  public Path getRuleKeyCacheDir() {
+    return getBuckOut().resolve("rule_keys");
+  }
+
+  /** Where the raw nodes of parsed build files are kept between runs. */
+  @Value.Derived
+  public Path getParseCacheDir() {
+    return getBuckOut().resolve("parse_cache");
+  }
+
   @Value.Derived
   public Path getTmpDir() {
     return getBuckOut().resolve("tmp");
@@ -27,6 +27,7 @@ import com.google.common.io.Files;
 import java.io.IOException;
 import java.nio.file.Path;
 import java.util.Map;
+import java.util.Optional;
 import java.util.concurrent.atomic.AtomicLong;
 import javax.annotation.Nullable;
 
@@ -75,6 +76,18 @@ public class HybridProjectBuildFileParser implements ProjectBuildFileParser {
     }
   }
 
+  @Override
+  public Optional<Long> getResidentMemoryBytes() {
+    Optional<Long> total = Optional.empty();
+    for (ProjectBuildFileParser parser : parsers.values()) {
+      Optional<Long> bytes = parser.getResidentMemoryBytes();
+      if (bytes.isPresent()) {
+        total = Optional.of(total.orElse(0L) + bytes.get());
+      }
+    }
+    return total;
+  }
+
   @Override
   public void close() throws BuildFileParseException, InterruptedException, IOException {
     for (ProjectBuildFileParser parser : parsers.values()) {
@@ -27,6 +27,7 @@ import com.facebook.buck.io.filesystem.PathOrGlobMatcher;
 import com.facebook.buck.log.Logger;
 import com.facebook.buck.parser.api.ProjectBuildFileParser;
 import com.facebook.buck.parser.events.ParseBuckFileEvent;
+import com.facebook.buck.parser.events.ParseBuckProfilerReportEvent;
 import com.facebook.buck.parser.exceptions.BuildFileParseException;
 import com.facebook.buck.parser.options.ProjectBuildFileParserOptions;
 import com.facebook.buck.rules.Description;
@@ -37,6 +38,8 @@ import com.facebook.buck.util.MoreThrowables;
 import com.facebook.buck.util.ObjectMappers;
 import com.facebook.buck.util.ProcessExecutor;
 import com.facebook.buck.util.ProcessExecutorParams;
+import com.facebook.buck.util.ProcessHelper;
+import com.facebook.buck.util.ProcessResourceConsumption;
 import com.facebook.buck.util.Threads;
 import com.facebook.buck.util.concurrent.AssertScopeExclusiveAccess;
 import com.fasterxml.jackson.core.JsonGenerator;
@@ -670,6 +673,19 @@ public class PythonDslProjectBuildFileParser implements ProjectBuildFileParser {
     }
   }
 
+  @Override
+  public Optional<Long> getResidentMemoryBytes() {
+    ProcessExecutor.LaunchedProcess process = buckPyProcess;
+    if (!(process instanceof ProcessExecutor.LaunchedProcessImpl)) {
+      return Optional.empty();
+    }
+    ProcessHelper processHelper = ProcessHelper.getInstance();
+    return Optional.ofNullable(
+            processHelper.getPid(((ProcessExecutor.LaunchedProcessImpl) process).process))
+        .map(processHelper::getProcessResourceConsumption)
+        .map(ProcessResourceConsumption::getMemResident);
+  }
+
   @Override
   @SuppressWarnings("PMD.EmptyCatchBlock")
   public void close() throws BuildFileParseException, InterruptedException, IOException {
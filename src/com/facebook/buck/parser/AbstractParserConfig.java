@@ -26,6 +26,7 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import java.nio.file.Path;
 import java.util.Optional;
+import java.util.concurrent.TimeUnit;
 import org.immutables.value.Value;
 
 @Value.Immutable(builder = false, copy = false)
@@ -237,4 +238,30 @@ abstract class AbstractParserConfig implements ConfigView<BuckConfig> {
         .getEnum("parser", "default_build_file_syntax", Syntax.class)
         .orElse(Syntax.PYTHON_DSL);
   }
+
+  /**
+   * @return whether to keep the raw nodes of parsed build files on disk, to reuse them in later
+   *     runs.
+   */
+  @Value.Lazy
+  public boolean isPersistentParseCacheEnabled() {
+    return getDelegate().getBooleanValue("parser", "persistent_parse_cache", false);
+  }
+
+  /** @return resident memory above which a parser process is restarted, if any. */
+  @Value.Lazy
+  public Optional<Long> getMaxParserMemoryBytes() {
+    return getDelegate()
+        .getLong("parser", "max_parser_rss_mb")
+        .map(megabytes -> megabytes * 1024 * 1024);
+  }
+
+  /** @return how long a parser process may stay unused before it is closed, if at all. */
+  @Value.Lazy
+  public Optional<Long> getIdleParserTimeoutNanos() {
+    long timeoutMs = getDelegate().getLong("parser", "idle_parser_timeout_ms").orElse(30000L);
+    return timeoutMs > 0
+        ? Optional.of(TimeUnit.MILLISECONDS.toNanos(timeoutMs))
+        : Optional.empty();
+  }
 }
@@ -23,22 +23,24 @@ import com.facebook.buck.model.UnflavoredBuildTarget;
 import com.facebook.buck.parser.thrift.BuildFileEnvProperty;
 import com.facebook.buck.parser.thrift.RemoteDaemonicCellState;
 import com.facebook.buck.rules.Cell;
+import com.facebook.buck.skylark.io.impl.GlobCache;
+import com.facebook.buck.skylark.parser.SkylarkExtensionCache;
 import com.facebook.buck.util.ObjectMappers;
 import com.facebook.buck.util.concurrent.AutoCloseableLock;
-import com.facebook.buck.util.concurrent.AutoCloseableReadWriteUpdateLock;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.base.Preconditions;
-import com.google.common.collect.HashMultimap;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.MapDifference;
 import com.google.common.collect.Maps;
-import com.google.common.collect.SetMultimap;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.Striped;
 import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -46,24 +48,36 @@ import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
 import javax.annotation.concurrent.GuardedBy;
 
+/**
+ * The cached raw and computed nodes of a cell.
+ *
+ * <p>The nodes of each package are guarded by one of a fixed set of striped locks, picked by the
+ * package's directory, so that invalidating a package only blocks lookups in the packages sharing
+ * its stripe rather than in the whole cell.
+ */
 class DaemonicCellState {
 
   private static final Logger LOG = Logger.get(DaemonicCellState.class);
 
+  private static final int PACKAGE_LOCK_STRIPES = 64;
+
   private class CacheImpl<T> implements PipelineNodeCache.Cache<BuildTarget, T> {
 
-    @GuardedBy("rawAndComputedNodesLock")
+    @GuardedBy("packageLocks")
     public final ConcurrentMapCache<BuildTarget, T> allComputedNodes =
         new ConcurrentMapCache<>(parsingThreads);
 
     @Override
     public Optional<T> lookupComputedNode(Cell cell, BuildTarget target)
         throws BuildTargetException {
-      try (AutoCloseableLock readLock = rawAndComputedNodesLock.readLock()) {
+      try (AutoCloseableLock readLock = readLockFor(getPackageDirectory(target))) {
         return Optional.ofNullable(allComputedNodes.getIfPresent(target));
       }
     }
@@ -71,14 +85,16 @@ class DaemonicCellState {
     @Override
     public T putComputedNodeIfNotPresent(Cell cell, BuildTarget target, T targetNode)
         throws BuildTargetException {
-      try (AutoCloseableLock writeLock = rawAndComputedNodesLock.writeLock()) {
+      try (AutoCloseableLock writeLock = writeLockFor(getPackageDirectory(target))) {
         T updatedNode = allComputedNodes.putIfAbsentAndGet(target, targetNode);
         Preconditions.checkState(
             allRawNodeTargets.contains(target.getUnflavoredBuildTarget()),
             "Added %s to computed nodes, which isn't present in raw nodes",
             target);
         if (updatedNode.equals(targetNode)) {
-          targetsCornucopia.put(target.getUnflavoredBuildTarget(), target);
+          targetsCornucopia
+              .computeIfAbsent(target.getUnflavoredBuildTarget(), ignored -> new HashSet<>())
+              .add(target);
         }
         return updatedNode;
       }
@@ -89,26 +105,28 @@ class DaemonicCellState {
   private final Optional<String> cellCanonicalName;
   private AtomicReference<Cell> cell;
 
-  @GuardedBy("rawAndComputedNodesLock")
-  private final SetMultimap<Path, Path> buildFileDependents;
+  /** The build files which depend on each file, such as on the files they include. */
+  private final ConcurrentMap<Path, Set<Path>> buildFileDependents;
 
-  @GuardedBy("rawAndComputedNodesLock")
-  private final SetMultimap<UnflavoredBuildTarget, BuildTarget> targetsCornucopia;
+  /** The flavored targets computed for each target, guarded by the lock of its package. */
+  @GuardedBy("packageLocks")
+  private final ConcurrentMap<UnflavoredBuildTarget, Set<BuildTarget>> targetsCornucopia;
 
-  @GuardedBy("rawAndComputedNodesLock")
-  private final Map<Path, ImmutableMap<String, Optional<String>>> buildFileEnv;
+  private final ConcurrentMap<Path, ImmutableMap<String, Optional<String>>> buildFileEnv;
 
-  @GuardedBy("rawAndComputedNodesLock")
+  @GuardedBy("packageLocks")
   private final ConcurrentMapCache<Path, ImmutableSet<Map<String, Object>>> allRawNodes;
   // Tracks all targets in `allRawNodes`.  Used to verify that every target in `allComputedNodes`
   // is also in `allRawNodes`, as we use the latter for bookkeeping invalidations.
-  @GuardedBy("rawAndComputedNodesLock")
+  @GuardedBy("packageLocks")
   private final Set<UnflavoredBuildTarget> allRawNodeTargets;
 
-  @GuardedBy("rawAndComputedNodesLock")
   private final ConcurrentMap<Class<?>, CacheImpl<?>> typedNodeCaches;
 
-  private final AutoCloseableReadWriteUpdateLock rawAndComputedNodesLock;
+  private final SkylarkExtensionCache skylarkExtensionCache;
+  private final GlobCache skylarkGlobCache;
+
+  private final Striped<ReadWriteLock> packageLocks;
   private final int parsingThreads;
 
   DaemonicCellState(Cell cell, int parsingThreads) {
@@ -116,13 +134,33 @@ class DaemonicCellState {
     this.parsingThreads = parsingThreads;
     this.cellRoot = cell.getRoot();
     this.cellCanonicalName = cell.getCanonicalName();
-    this.buildFileDependents = HashMultimap.create();
-    this.targetsCornucopia = HashMultimap.create();
-    this.buildFileEnv = new HashMap<>();
+    this.buildFileDependents = new ConcurrentHashMap<>();
+    this.targetsCornucopia = new ConcurrentHashMap<>();
+    this.buildFileEnv = new ConcurrentHashMap<>();
     this.allRawNodes = new ConcurrentMapCache<>(parsingThreads);
-    this.allRawNodeTargets = new HashSet<>();
+    this.allRawNodeTargets = Sets.newConcurrentHashSet();
     this.typedNodeCaches = Maps.newConcurrentMap();
-    this.rawAndComputedNodesLock = new AutoCloseableReadWriteUpdateLock();
+    this.skylarkExtensionCache = new SkylarkExtensionCache();
+    this.skylarkGlobCache = new GlobCache();
+    this.packageLocks = Striped.readWriteLock(PACKAGE_LOCK_STRIPES);
+  }
+
+  private static Path getPackageDirectory(BuildTarget target) {
+    return target.getCellPath().resolve(target.getBasePath());
+  }
+
+  /** @return the directory of the package of {@code buildFile}, by which its lock is picked. */
+  private static Path getPackageDirectory(Path buildFile) {
+    Path parent = buildFile.getParent();
+    return parent == null ? buildFile : parent;
+  }
+
+  private AutoCloseableLock readLockFor(Path packageDirectory) {
+    return AutoCloseableLock.createFor(packageLocks.get(packageDirectory).readLock());
+  }
+
+  private AutoCloseableLock writeLockFor(Path packageDirectory) {
+    return AutoCloseableLock.createFor(packageLocks.get(packageDirectory).writeLock());
   }
 
   // TODO(mzlee): Only needed for invalidateBasedOn which does not have access to cell metadata
@@ -134,29 +172,28 @@ class DaemonicCellState {
     return cellRoot;
   }
 
+  /** @return the Skylark extensions evaluated by the parsers of this cell. */
+  SkylarkExtensionCache getSkylarkExtensionCache() {
+    return skylarkExtensionCache;
+  }
+
+  /** @return the results of globs resolved by the Skylark parsers of this cell. */
+  GlobCache getSkylarkGlobCache() {
+    return skylarkGlobCache;
+  }
+
   @SuppressWarnings("unchecked")
   public <T> CacheImpl<T> getOrCreateCache(Class<T> type) {
-    try (AutoCloseableLock updateLock = rawAndComputedNodesLock.updateLock()) {
-      CacheImpl<?> cache = typedNodeCaches.get(type);
-      if (cache == null) {
-        try (AutoCloseableLock writeLock = rawAndComputedNodesLock.writeLock()) {
-          cache = new CacheImpl<>();
-          typedNodeCaches.put(type, cache);
-        }
-      }
-      return (CacheImpl<T>) cache;
-    }
+    return (CacheImpl<T>) typedNodeCaches.computeIfAbsent(type, ignored -> new CacheImpl<>());
   }
 
   @SuppressWarnings("unchecked")
   public <T> CacheImpl<T> getCache(Class<T> type) {
-    try (AutoCloseableLock readLock = rawAndComputedNodesLock.readLock()) {
-      return (CacheImpl<T>) typedNodeCaches.get(type);
-    }
+    return (CacheImpl<T>) typedNodeCaches.get(type);
   }
 
   Optional<ImmutableSet<Map<String, Object>>> lookupRawNodes(Path buildFile) {
-    try (AutoCloseableLock readLock = rawAndComputedNodesLock.readLock()) {
+    try (AutoCloseableLock readLock = readLockFor(getPackageDirectory(buildFile))) {
       return Optional.ofNullable(allRawNodes.getIfPresent(buildFile));
     }
   }
@@ -166,7 +203,7 @@ class DaemonicCellState {
       final ImmutableSet<Map<String, Object>> withoutMetaIncludes,
       final ImmutableSet<Path> dependentsOfEveryNode,
       ImmutableMap<String, Optional<String>> env) {
-    try (AutoCloseableLock writeLock = rawAndComputedNodesLock.writeLock()) {
+    try (AutoCloseableLock writeLock = writeLockFor(getPackageDirectory(buildFile))) {
       ImmutableSet<Map<String, Object>> updated =
           allRawNodes.putIfAbsentAndGet(buildFile, withoutMetaIncludes);
       for (Map<String, Object> node : updated) {
@@ -179,7 +216,17 @@ class DaemonicCellState {
         // We now know all the nodes. They all implicitly depend on everything in
         // the "dependentsOfEveryNode" set.
         for (Path dependent : dependentsOfEveryNode) {
-          buildFileDependents.put(dependent, buildFile);
+          // The dependent is usually in another package, whose lock isn't held here. Adding inside
+          // compute() keeps it atomic with invalidatePath() removing the dependent's set, so the
+          // build file can't be recorded in a set that was already taken away.
+          buildFileDependents.compute(
+              dependent,
+              (ignored, buildFiles) -> {
+                Set<Path> updatedBuildFiles =
+                    buildFiles == null ? Sets.newConcurrentHashSet() : buildFiles;
+                updatedBuildFiles.add(buildFile);
+                return updatedBuildFiles;
+              });
         }
       }
       return updated;
@@ -187,8 +234,8 @@ class DaemonicCellState {
   }
 
   int invalidatePath(Path path) {
-    try (AutoCloseableLock writeLock = rawAndComputedNodesLock.writeLock()) {
-      int invalidatedRawNodes = 0;
+    int invalidatedRawNodes = 0;
+    try (AutoCloseableLock writeLock = writeLockFor(getPackageDirectory(path))) {
       ImmutableSet<Map<String, Object>> rawNodes = allRawNodes.getIfPresent(path);
       if (rawNodes != null) {
         // Increment the counter
@@ -198,17 +245,24 @@ class DaemonicCellState {
               RawNodeParsePipeline.parseBuildTargetFromRawRule(
                   cellRoot, cellCanonicalName, rawNode, path);
           LOG.debug("Invalidating target for path %s: %s", path, target);
-          for (CacheImpl<?> cache : typedNodeCaches.values()) {
-            cache.allComputedNodes.invalidateAll(targetsCornucopia.get(target));
+          Set<BuildTarget> computedTargets = targetsCornucopia.remove(target);
+          if (computedTargets != null) {
+            for (CacheImpl<?> cache : typedNodeCaches.values()) {
+              cache.allComputedNodes.invalidateAll(computedTargets);
+            }
           }
-          targetsCornucopia.removeAll(target);
           allRawNodeTargets.remove(target);
         }
         allRawNodes.invalidate(path);
       }
+      buildFileEnv.remove(path);
+    }
 
-      // We may have been given a file that other build files depend on. Iteratively remove those.
-      Iterable<Path> dependents = buildFileDependents.get(path);
+    // We may have been given a file that other build files depend on. Iteratively remove those.
+    // The lock of this package is released first, as the dependents are usually in other packages
+    // and holding on to several package locks at once could deadlock.
+    Set<Path> dependents = buildFileDependents.remove(path);
+    if (dependents != null) {
       LOG.verbose("Invalidating dependents for path %s: %s", path, dependents);
       for (Path dependent : dependents) {
         if (dependent.equals(path)) {
@@ -216,19 +270,14 @@ class DaemonicCellState {
         }
         invalidatedRawNodes += invalidatePath(dependent);
       }
-      buildFileDependents.removeAll(path);
-      buildFileEnv.remove(path);
-
-      return invalidatedRawNodes;
     }
+
+    return invalidatedRawNodes;
   }
 
   Optional<MapDifference<String, String>> invalidateIfEnvHasChanged(Cell cell, Path buildFile) {
     // Invalidate if env vars have changed.
-    ImmutableMap<String, Optional<String>> usedEnv;
-    try (AutoCloseableLock readLock = rawAndComputedNodesLock.readLock()) {
-      usedEnv = buildFileEnv.get(buildFile);
-    }
+    ImmutableMap<String, Optional<String>> usedEnv = buildFileEnv.get(buildFile);
     if (usedEnv == null) {
       this.cell.set(cell);
       return Optional.empty();
@@ -267,9 +316,8 @@ class DaemonicCellState {
   private Map<String, List<String>> getBuildFileDependentsForSerialisation() {
     Map<String, List<String>> result = new HashMap<>();
     Path root = getCellRoot();
-    Map<Path, Collection<Path>> view = buildFileDependents.asMap();
-    for (Path path : view.keySet()) {
-      Collection<Path> paths = view.get(path);
+    for (Path path : buildFileDependents.keySet()) {
+      Collection<Path> paths = buildFileDependents.get(path);
       if (paths != null) {
         ImmutableList<String> pathList =
             paths
@@ -305,10 +353,19 @@ class DaemonicCellState {
 
   RemoteDaemonicCellState serialise() throws IOException {
     RemoteDaemonicCellState result = new RemoteDaemonicCellState();
-    try (AutoCloseableLock readLock = rawAndComputedNodesLock.readLock()) {
+    // Take every package lock, to serialise a consistent view of the cell.
+    List<Lock> readLocks = new ArrayList<>(packageLocks.size());
+    for (int i = 0; i < packageLocks.size(); i++) {
+      Lock readLock = packageLocks.getAt(i).readLock();
+      readLock.lock();
+      readLocks.add(readLock);
+    }
+    try {
       result.allRawNodesJsons = getAllRawNodesForSerialisation();
       result.buildFileDependents = getBuildFileDependentsForSerialisation();
       result.buildFileEnv = getBuildFileEnvForSerialisation();
+    } finally {
+      readLocks.forEach(Lock::unlock);
     }
     return result;
   }
@@ -324,7 +381,10 @@ class DaemonicCellState {
           .get(pathString)
           .forEach(
               valuePathString -> {
-                daemonicCellState.buildFileDependents.put(key, root.resolve(valuePathString));
+                daemonicCellState
+                    .buildFileDependents
+                    .computeIfAbsent(key, ignored -> Sets.newConcurrentHashSet())
+                    .add(root.resolve(valuePathString));
               });
     }
 
@@ -35,8 +35,8 @@ import com.facebook.buck.parser.thrift.RemoteDaemonicParserState;
 import com.facebook.buck.rules.Cell;
 import com.facebook.buck.rules.CellPathResolver;
 import com.facebook.buck.rules.coercer.TypeCoercerFactory;
-import com.facebook.buck.util.concurrent.AutoCloseableLock;
-import com.facebook.buck.util.concurrent.AutoCloseableReadWriteUpdateLock;
+import com.facebook.buck.skylark.io.impl.GlobCache;
+import com.facebook.buck.skylark.parser.SkylarkExtensionCache;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Throwables;
 import com.google.common.cache.CacheBuilder;
@@ -53,7 +53,9 @@ import com.google.common.util.concurrent.UncheckedExecutionException;
 import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Collection;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
@@ -66,7 +68,6 @@ import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 import javax.annotation.Nullable;
-import javax.annotation.concurrent.GuardedBy;
 import javax.annotation.concurrent.ThreadSafe;
 
 /**
@@ -85,10 +86,10 @@ public class DaemonicParserState {
    * list of strings with the root build file as the head and included build files as the tail, for
    * example: {"__includes":["/foo/BUCK", "/foo/buck_includes"]}
    */
-  private static final String INCLUDES_META_RULE = "__includes";
+  static final String INCLUDES_META_RULE = "__includes";
 
-  private static final String CONFIGS_META_RULE = "__configs";
-  private static final String ENV_META_RULE = "__env";
+  static final String CONFIGS_META_RULE = "__configs";
+  static final String ENV_META_RULE = "__env";
 
   private static final String COUNTER_CATEGORY = "buck_parser_state";
   private static final String INVALIDATED_BY_ENV_VARS_COUNTER_NAME = "invalidated_by_env_vars";
@@ -249,24 +250,24 @@ public class DaemonicParserState {
           .putRawNodesIfNotPresentAndStripMetaEntries(
               buildFile, withoutMetaIncludes, dependentsOfEveryNode.build(), env);
     }
+  }
 
-    /**
-     * Resolves a path of an include string like {@code repo//foo/macro_defs} to a filesystem path.
-     */
-    private Path resolveIncludePath(Cell cell, String include, CellPathResolver cellPathResolver) {
-      // Default includes are given as "cell//path/to/file". They look like targets
-      // but they are not. However, I bet someone will try and treat it like a
-      // target, so find the owning cell if necessary, and then fully resolve
-      // the path against the owning cell's root.
-      Matcher matcher = INCLUDE_PATH_PATTERN.matcher(include);
-      Preconditions.checkState(matcher.matches());
-      Optional<String> cellName = Optional.ofNullable(matcher.group(1));
-      String includePath = matcher.group(2);
-      return cellPathResolver
-          .getCellPath(cellName)
-          .map(cellPath -> cellPath.resolve(includePath))
-          .orElseGet(() -> cell.getFilesystem().resolve(includePath));
-    }
+  /**
+   * Resolves a path of an include string like {@code repo//foo/macro_defs} to a filesystem path.
+   */
+  static Path resolveIncludePath(Cell cell, String include, CellPathResolver cellPathResolver) {
+    // Default includes are given as "cell//path/to/file". They look like targets
+    // but they are not. However, I bet someone will try and treat it like a
+    // target, so find the owning cell if necessary, and then fully resolve
+    // the path against the owning cell's root.
+    Matcher matcher = INCLUDE_PATH_PATTERN.matcher(include);
+    Preconditions.checkState(matcher.matches());
+    Optional<String> cellName = Optional.ofNullable(matcher.group(1));
+    String includePath = matcher.group(2);
+    return cellPathResolver
+        .getCellPath(cellName)
+        .map(cellPath -> cellPath.resolve(includePath))
+        .orElseGet(() -> cell.getFilesystem().resolve(includePath));
   }
 
   private final TypeCoercerFactory typeCoercerFactory;
@@ -280,16 +281,21 @@ public class DaemonicParserState {
 
   /**
    * The set of {@link Cell} instances that have been seen by this state. This information is used
-   * for cache invalidation. Please see {@link #invalidateBasedOn(WatchmanPathEvent)} for example
-   * usage.
+   * for cache invalidation. Please see {@link #invalidateBasedOn(Collection)} for example usage.
+   *
+   * <p>Cells are added and removed atomically, without a lock over all of them, and each cell
+   * state locks its own packages, so that invalidating some packages doesn't block lookups in the
+   * others.
    */
-  @GuardedBy("cellStateLock")
   private final ConcurrentMap<Path, DaemonicCellState> cellPathToDaemonicState;
 
   private final LoadingCache<Class<?>, DaemonicCacheView<?>> typedNodeCaches =
       CacheBuilder.newBuilder().build(CacheLoader.from(cls -> new DaemonicCacheView<>(cls)));
   private final DaemonicRawCacheView rawNodeCache;
 
+  private final ConcurrentMap<Path, PersistentRawNodeStore> persistentRawNodeStores =
+      new ConcurrentHashMap<>();
+
   private final int parsingThreads;
 
   private final LoadingCache<Cell, BuildFileTree> buildFileTrees;
@@ -298,11 +304,7 @@ public class DaemonicParserState {
    * The default includes used by the previous run of the parser in each cell (the key is the cell's
    * root path). If this value changes, then we need to invalidate all the caches.
    */
-  @GuardedBy("cachedStateLock")
-  private Map<Path, Iterable<String>> cachedIncludes;
-
-  private final AutoCloseableReadWriteUpdateLock cachedStateLock;
-  private final AutoCloseableReadWriteUpdateLock cellStateLock;
+  private final ConcurrentMap<Path, Iterable<String>> cachedIncludes;
 
   private BroadcastEventListener broadcastEventListener;
 
@@ -350,8 +352,6 @@ public class DaemonicParserState {
 
     this.rawNodeCache = new DaemonicRawCacheView();
 
-    this.cachedStateLock = new AutoCloseableReadWriteUpdateLock();
-    this.cellStateLock = new AutoCloseableReadWriteUpdateLock();
     this.broadcastEventListener = broadcastEventListener;
   }
 
@@ -363,6 +363,35 @@ public class DaemonicParserState {
     return buildFileTrees;
   }
 
+  /**
+   * @return the cache of Skylark extensions shared by the parsers of {@code cell}. It lives as long
+   *     as the rest of the cached state of the cell.
+   */
+  SkylarkExtensionCache getSkylarkExtensionCache(Cell cell) {
+    return getOrCreateCellState(cell).getSkylarkExtensionCache();
+  }
+
+  /**
+   * @return the cache of glob results shared by the Skylark parsers of {@code cell}. Results are
+   *     dropped when Watchman reports files being added or removed.
+   */
+  GlobCache getSkylarkGlobCache(Cell cell) {
+    return getOrCreateCellState(cell).getSkylarkGlobCache();
+  }
+
+  /**
+   * @return the raw nodes of the build files of {@code cell} kept on disk between runs, if the cell
+   *     enables them.
+   */
+  Optional<PersistentRawNodeStore> getPersistentRawNodeStore(Cell cell) {
+    if (!cell.getBuckConfig().getView(ParserConfig.class).isPersistentParseCacheEnabled()) {
+      return Optional.empty();
+    }
+    return Optional.of(
+        persistentRawNodeStores.computeIfAbsent(
+            cell.getRoot(), root -> PersistentRawNodeStore.forCell(cell)));
+  }
+
   /**
    * Retrieve the cache view for caching a particular type.
    *
@@ -384,20 +413,12 @@ public class DaemonicParserState {
 
   @Nullable
   private DaemonicCellState getCellState(Cell cell) {
-    try (AutoCloseableLock readLock = cellStateLock.readLock()) {
-      return cellPathToDaemonicState.get(cell.getRoot());
-    }
+    return cellPathToDaemonicState.get(cell.getRoot());
   }
 
   private DaemonicCellState getOrCreateCellState(Cell cell) {
-    try (AutoCloseableLock writeLock = cellStateLock.writeLock()) {
-      DaemonicCellState state = cellPathToDaemonicState.get(cell.getRoot());
-      if (state == null) {
-        state = new DaemonicCellState(cell, parsingThreads);
-        cellPathToDaemonicState.put(cell.getRoot(), state);
-      }
-      return state;
-    }
+    return cellPathToDaemonicState.computeIfAbsent(
+        cell.getRoot(), root -> new DaemonicCellState(cell, parsingThreads));
   }
 
   public void invalidateBasedOn(WatchmanOverflowEvent event) {
@@ -411,38 +432,33 @@ public class DaemonicParserState {
   }
 
   public void invalidateBasedOn(WatchmanPathEvent event) {
-    filesChangedCounter.inc();
+    invalidateBasedOn(ImmutableList.of(event));
+  }
 
-    Path path = event.getPath();
-    Path fullPath = event.getCellPath().resolve(event.getPath());
+  /**
+   * Invalidates the caches based on a batch of changes, such as all the changes Watchman reported
+   * at once. The build files affected by the batch are found once for the whole batch, and each
+   * of them is invalidated once, however many of its files changed.
+   */
+  public void invalidateBasedOn(Collection<WatchmanPathEvent> events) {
+    filesChangedCounter.inc(events.size());
 
-    try (AutoCloseableLock readLock = cellStateLock.readLock()) {
-      for (DaemonicCellState state : cellPathToDaemonicState.values()) {
-        try {
-          // We only care about creation and deletion events because modified should result in a
-          // rule key change.  For parsing, these are the only events we need to care about.
-          if (isPathCreateOrDeleteEvent(event)) {
-            Cell cell = state.getCell();
-            BuildFileTree buildFiles = buildFileTrees.get(cell);
-
-            if (fullPath.endsWith(cell.getBuildFileName())) {
-              LOG.debug(
-                  "Build file %s changed, invalidating build file tree for cell %s",
-                  fullPath, cell);
-              // If a build file has been added or removed, reconstruct the build file tree.
-              buildFileTrees.invalidate(cell);
-            }
+    // We only care about creation and deletion events because modified should result in a rule key
+    // change.  For parsing, these are the only events we need to care about.
+    ImmutableList<WatchmanPathEvent> createdOrDeleted =
+        events
+            .stream()
+            .filter(DaemonicParserState::isPathCreateOrDeleteEvent)
+            .collect(ImmutableList.toImmutableList());
+    Set<Path> changedPaths = new LinkedHashSet<>();
+    for (WatchmanPathEvent event : events) {
+      changedPaths.add(event.getCellPath().resolve(event.getPath()));
+    }
 
-            // Added or removed files can affect globs, so invalidate the package build file
-            // "containing" {@code path} unless its filename matches a temp file pattern.
-            if (!cell.getFilesystem().isIgnored(path)) {
-              invalidateContainingBuildFile(cell, buildFiles, path);
-            } else {
-              LOG.debug(
-                  "Not invalidating the owning build file of %s because it is a temporary file.",
-                  fullPath);
-            }
-          }
+    for (DaemonicCellState state : cellPathToDaemonicState.values()) {
+      if (!createdOrDeleted.isEmpty()) {
+        try {
+          invalidateContainingBuildFiles(state, createdOrDeleted);
         } catch (ExecutionException | UncheckedExecutionException e) {
           try {
             Throwables.throwIfInstanceOf(e, BuildFileParseException.class);
@@ -453,39 +469,100 @@ public class DaemonicParserState {
           }
         }
       }
-    }
 
-    invalidatePath(fullPath);
+      // The paths from watchman are not absolute. Because of this, we adopt a conservative
+      // approach to invalidating the caches.
+      for (Path changedPath : changedPaths) {
+        invalidatePath(state, changedPath);
+      }
+    }
   }
 
   public void invalidatePath(Path path) {
 
     // The paths from watchman are not absolute. Because of this, we adopt a conservative approach
     // to invalidating the caches.
-    try (AutoCloseableLock readLock = cellStateLock.readLock()) {
-      for (DaemonicCellState state : cellPathToDaemonicState.values()) {
-        invalidatePath(state, path);
+    for (DaemonicCellState state : cellPathToDaemonicState.values()) {
+      invalidatePath(state, path);
+    }
+  }
+
+  /**
+   * Invalidates the build files of {@code state} owning the files added or removed by {@code
+   * events}, as their globs may have changed.
+   */
+  private void invalidateContainingBuildFiles(
+      DaemonicCellState state, ImmutableList<WatchmanPathEvent> events)
+      throws ExecutionException {
+    Cell cell = state.getCell();
+    Set<Path> paths = new LinkedHashSet<>();
+    boolean buildFilesChanged = false;
+    for (WatchmanPathEvent event : events) {
+      Path fullPath = event.getCellPath().resolve(event.getPath());
+      state.getSkylarkGlobCache().invalidate(fullPath);
+
+      if (fullPath.endsWith(cell.getBuildFileName())) {
+        LOG.debug(
+            "Build file %s changed, invalidating build file tree for cell %s", fullPath, cell);
+        buildFilesChanged = true;
+      }
+
+      // Added or removed files can affect globs, so invalidate the package build file
+      // "containing" {@code path} unless its filename matches a temp file pattern.
+      if (!cell.getFilesystem().isIgnored(event.getPath())) {
+        paths.add(event.getPath());
+      } else {
+        LOG.debug(
+            "Not invalidating the owning build file of %s because it is a temporary file.",
+            fullPath);
       }
     }
+
+    Set<Path> packageBuildFiles = new LinkedHashSet<>();
+    BuildFileTree buildFiles = buildFileTrees.get(cell);
+    for (Path path : paths) {
+      addContainingBuildFiles(cell, buildFiles, path, packageBuildFiles);
+    }
+    if (buildFilesChanged) {
+      // If a build file has been added or removed, reconstruct the build file tree. The files
+      // changed along with it may now belong to other packages, so look them up in both trees.
+      buildFileTrees.invalidate(cell);
+      BuildFileTree updatedBuildFiles = buildFileTrees.get(cell);
+      for (Path path : paths) {
+        addContainingBuildFiles(cell, updatedBuildFiles, path, packageBuildFiles);
+      }
+    }
+
+    buildFilesInvalidatedByFileAddOrRemoveCounter.inc(packageBuildFiles.size());
+    // Invalidate all the packages we found.
+    for (Path buildFile : packageBuildFiles) {
+      invalidatePath(state, buildFile);
+    }
   }
 
   /**
-   * Finds the build file responsible for the given {@link Path} and invalidates all of the cached
-   * rules dependent on it.
+   * Finds the build files responsible for the given {@link Path}.
    *
    * @param path A {@link Path}, relative to the project root and "contained" within the build file
-   *     to find and invalidate.
+   *     to find.
+   * @param packageBuildFiles where to add the absolute paths of the build files found.
    */
-  private void invalidateContainingBuildFile(Cell cell, BuildFileTree buildFiles, Path path) {
+  private void addContainingBuildFiles(
+      Cell cell, BuildFileTree buildFiles, Path path, Set<Path> packageBuildFiles) {
     LOG.verbose("Invalidating rules dependent on change to %s in cell %s", path, cell);
-    Set<Path> packageBuildFiles = new HashSet<>();
 
     // Find the closest ancestor package for the input path.  We'll definitely need to invalidate
     // that.
     Optional<Path> packageBuildFile = buildFiles.getBasePathOfAncestorTarget(path);
-    if (packageBuildFile.isPresent()) {
-      packageBuildFiles.add(cell.getFilesystem().resolve(packageBuildFile.get()));
+    if (!packageBuildFile.isPresent()) {
+      LOG.debug(
+          "%s is not owned by any build file.  Not invalidating anything.",
+          cell.getFilesystem().resolve(path).toAbsolutePath().toString());
+      return;
     }
+    pathsAddedOrRemovedInvalidatingBuildFiles.add(path.toString());
+    packageBuildFiles.add(
+        cell.getFilesystem().resolve(packageBuildFile.get()).resolve(cell.getBuildFileName()));
 
     // If we're *not* enforcing package boundary checks, it's possible for multiple ancestor
     // packages to reference the same file
@@ -494,29 +571,13 @@ public class DaemonicParserState {
         packageBuildFile =
             buildFiles.getBasePathOfAncestorTarget(packageBuildFile.get().getParent());
         if (packageBuildFile.isPresent()) {
-          packageBuildFiles.add(packageBuildFile.get());
+          packageBuildFiles.add(
+              cell.getFilesystem()
+                  .resolve(packageBuildFile.get())
+                  .resolve(cell.getBuildFileName()));
         }
       }
     }
-
-    if (packageBuildFiles.isEmpty()) {
-      LOG.debug(
-          "%s is not owned by any build file.  Not invalidating anything.",
-          cell.getFilesystem().resolve(path).toAbsolutePath().toString());
-      return;
-    }
-
-    buildFilesInvalidatedByFileAddOrRemoveCounter.inc(packageBuildFiles.size());
-    pathsAddedOrRemovedInvalidatingBuildFiles.add(path.toString());
-
-    DaemonicCellState state;
-    try (AutoCloseableLock readLock = cellStateLock.readLock()) {
-      state = cellPathToDaemonicState.get(cell.getRoot());
-    }
-    // Invalidate all the packages we found.
-    for (Path buildFile : packageBuildFiles) {
-      invalidatePath(state, buildFile.resolve(cell.getBuildFileName()));
-    }
   }
 
   /**
@@ -530,6 +591,7 @@ public class DaemonicParserState {
 
     // Paths passed in may not be absolute.
     path = state.getCellRoot().resolve(path);
+    state.getSkylarkExtensionCache().invalidate(path);
     int invalidatedNodes = state.invalidatePath(path);
     rulesInvalidatedByWatchEventsCounter.inc(invalidatedNodes);
   }
@@ -540,61 +602,48 @@ public class DaemonicParserState {
   }
 
   private boolean invalidateIfBuckConfigOrEnvHasChanged(Cell cell, Path buildFile) {
-    try (AutoCloseableLock readLock = cellStateLock.readLock()) {
-      DaemonicCellState state = cellPathToDaemonicState.get(cell.getRoot());
-      if (state == null) {
-        return false;
-      }
-
-      // Keep track of any invalidations.
-      boolean hasInvalidated = false;
-
-      // Currently, if `.buckconfig` settings change, we restart the entire daemon, meaning checking
-      // for `.buckconfig`-based invalidations is redundant.
-
-      // Invalidate based on env vars.
-      Optional<MapDifference<String, String>> envDiff =
-          state.invalidateIfEnvHasChanged(cell, buildFile);
-      if (envDiff.isPresent()) {
-        hasInvalidated = true;
-        MapDifference<String, String> diff = envDiff.get();
-        LOG.warn("Invalidating cache on environment change (%s)", diff);
-        Set<String> environmentChanges = new HashSet<>();
-        environmentChanges.addAll(diff.entriesOnlyOnLeft().keySet());
-        environmentChanges.addAll(diff.entriesOnlyOnRight().keySet());
-        environmentChanges.addAll(diff.entriesDiffering().keySet());
-        cacheInvalidatedByEnvironmentVariableChangeCounter.addAll(environmentChanges);
-        broadcastEventListener.broadcast(
-            ParsingEvent.environmentalChange(environmentChanges.toString()));
-      }
+    DaemonicCellState state = cellPathToDaemonicState.get(cell.getRoot());
+    if (state == null) {
+      return false;
+    }
 
-      return hasInvalidated;
+    // Keep track of any invalidations.
+    boolean hasInvalidated = false;
+
+    // Currently, if `.buckconfig` settings change, we restart the entire daemon, meaning checking
+    // for `.buckconfig`-based invalidations is redundant.
+
+    // Invalidate based on env vars.
+    Optional<MapDifference<String, String>> envDiff =
+        state.invalidateIfEnvHasChanged(cell, buildFile);
+    if (envDiff.isPresent()) {
+      hasInvalidated = true;
+      MapDifference<String, String> diff = envDiff.get();
+      LOG.warn("Invalidating cache on environment change (%s)", diff);
+      Set<String> environmentChanges = new HashSet<>();
+      environmentChanges.addAll(diff.entriesOnlyOnLeft().keySet());
+      environmentChanges.addAll(diff.entriesOnlyOnRight().keySet());
+      environmentChanges.addAll(diff.entriesDiffering().keySet());
+      cacheInvalidatedByEnvironmentVariableChangeCounter.addAll(environmentChanges);
+      broadcastEventListener.broadcast(
+          ParsingEvent.environmentalChange(environmentChanges.toString()));
     }
+
+    return hasInvalidated;
   }
 
   private boolean invalidateIfProjectBuildFileParserStateChanged(Cell cell) {
     Iterable<String> defaultIncludes =
         cell.getBuckConfig().getView(ParserConfig.class).getDefaultIncludes();
 
-    boolean invalidatedByDefaultIncludesChange = false;
-    Iterable<String> expected;
-    try (AutoCloseableLock readLock = cachedStateLock.readLock()) {
-      expected = cachedIncludes.get(cell.getRoot());
-
-      if (expected == null || !Iterables.elementsEqual(defaultIncludes, expected)) {
-        // Someone's changed the default includes. That's almost definitely caused all our lovingly
-        // cached data to be enormously wonky.
-        invalidatedByDefaultIncludesChange = true;
-      }
-
-      if (!invalidatedByDefaultIncludesChange) {
-        return false;
-      }
-    }
-    try (AutoCloseableLock writeLock = cachedStateLock.writeLock()) {
-      cachedIncludes.put(cell.getRoot(), defaultIncludes);
+    Iterable<String> expected = cachedIncludes.get(cell.getRoot());
+    if (expected != null && Iterables.elementsEqual(defaultIncludes, expected)) {
+      return false;
     }
-    if (invalidateCellCaches(cell) && invalidatedByDefaultIncludesChange) {
+    // Someone's changed the default includes. That's almost definitely caused all our lovingly
+    // cached data to be enormously wonky.
+    cachedIncludes.put(cell.getRoot(), defaultIncludes);
+    if (invalidateCellCaches(cell)) {
       LOG.warn(
           "Invalidating cache on default includes change (%s != %s)", expected, defaultIncludes);
       cacheInvalidatedByDefaultIncludesChangeCounter.inc();
@@ -604,32 +653,27 @@ public class DaemonicParserState {
 
   public boolean invalidateCellCaches(Cell cell) {
     LOG.debug("Starting to invalidate caches for %s..", cell.getRoot());
-    try (AutoCloseableLock writeLock = cellStateLock.writeLock()) {
-      boolean invalidated = cellPathToDaemonicState.containsKey(cell.getRoot());
-      cellPathToDaemonicState.remove(cell.getRoot());
-      if (invalidated) {
-        LOG.debug("Cell cache data invalidated.");
-      } else {
-        LOG.debug("Cell caches were empty, no data invalidated.");
-      }
-
-      return invalidated;
+    boolean invalidated = cellPathToDaemonicState.remove(cell.getRoot()) != null;
+    if (invalidated) {
+      LOG.debug("Cell cache data invalidated.");
+    } else {
+      LOG.debug("Cell caches were empty, no data invalidated.");
     }
+
+    return invalidated;
   }
 
   public boolean invalidateAllCaches() {
     LOG.debug("Starting to invalidate all caches..");
-    try (AutoCloseableLock writeLock = cellStateLock.writeLock()) {
-      boolean invalidated = !cellPathToDaemonicState.isEmpty();
-      cellPathToDaemonicState.clear();
-      buildFileTrees.invalidateAll();
-      if (invalidated) {
-        LOG.debug("Cache data invalidated.");
-      } else {
-        LOG.debug("Caches were empty, no data invalidated.");
-      }
-      return invalidated;
+    boolean invalidated = !cellPathToDaemonicState.isEmpty();
+    cellPathToDaemonicState.clear();
+    buildFileTrees.invalidateAll();
+    if (invalidated) {
+      LOG.debug("Cache data invalidated.");
+    } else {
+      LOG.debug("Caches were empty, no data invalidated.");
     }
+    return invalidated;
   }
 
   public ImmutableList<Counter> getCounters() {
@@ -645,31 +689,25 @@ public class DaemonicParserState {
 
   @Override
   public String toString() {
-    try (AutoCloseableLock readLock = cellStateLock.readLock()) {
-      return String.format("memoized=%s", cellPathToDaemonicState);
-    }
+    return String.format("memoized=%s", cellPathToDaemonicState);
   }
 
   public RemoteDaemonicParserState serialiseDaemonicParserState() throws IOException {
     ImmutableList.Builder<String> cellPathsBuilder = ImmutableList.builder();
     ImmutableMap.Builder<String, RemoteDaemonicCellState> cellPathToDaemonicStateBuilder =
         ImmutableMap.builder();
-    try (AutoCloseableLock readLock = cellStateLock.readLock()) {
-      for (Path p : cellPathToDaemonicState.keySet()) {
-        DaemonicCellState daemonicCellState = cellPathToDaemonicState.get(p);
-        Path relPath = daemonicCellState.getCellRoot().relativize(p);
-        cellPathsBuilder.add(relPath.toString());
-        cellPathToDaemonicStateBuilder.put(relPath.toString(), daemonicCellState.serialise());
-      }
+    for (Map.Entry<Path, DaemonicCellState> entry : cellPathToDaemonicState.entrySet()) {
+      DaemonicCellState daemonicCellState = entry.getValue();
+      Path relPath = daemonicCellState.getCellRoot().relativize(entry.getKey());
+      cellPathsBuilder.add(relPath.toString());
+      cellPathToDaemonicStateBuilder.put(relPath.toString(), daemonicCellState.serialise());
     }
     RemoteDaemonicParserState remote = new RemoteDaemonicParserState();
     remote.setCellPaths(cellPathsBuilder.build());
     ImmutableMap.Builder<String, List<String>> cachedIncludesBuilder = ImmutableMap.builder();
-    try (AutoCloseableLock readLock = cachedStateLock.readLock()) {
-      cachedIncludes.forEach(
-          (path, iterable) ->
-              cachedIncludesBuilder.put(path.toString(), Lists.newArrayList(iterable)));
-    }
+    cachedIncludes.forEach(
+        (path, iterable) ->
+            cachedIncludesBuilder.put(path.toString(), Lists.newArrayList(iterable)));
     remote.setCachedIncludes(cachedIncludesBuilder.build());
     remote.setCellPathToDaemonicState(cellPathToDaemonicStateBuilder.build());
 
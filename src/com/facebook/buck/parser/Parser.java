@@ -27,6 +27,7 @@ import com.facebook.buck.graph.GraphTraversable;
 import com.facebook.buck.graph.MutableDirectedGraph;
 import com.facebook.buck.io.WatchmanOverflowEvent;
 import com.facebook.buck.io.WatchmanPathEvent;
+import com.facebook.buck.io.WatchmanPathEventBatch;
 import com.facebook.buck.log.Logger;
 import com.facebook.buck.model.BuildTarget;
 import com.facebook.buck.model.BuildTargetException;
@@ -605,13 +606,23 @@ public class Parser {
     permState.invalidateBasedOn(event);
   }
 
-  @Subscribe
+  /**
+   * Invalidates the parser state based on a single change. The changes reported by Watchman are
+   * handled in batches instead, by {@link #onFileSystemChange(WatchmanPathEventBatch)}.
+   */
   public void onFileSystemChange(WatchmanPathEvent event) {
     LOG.verbose("Parser watched event %s %s", event.getKind(), event.getPath());
 
     permState.invalidateBasedOn(event);
   }
 
+  @Subscribe
+  public void onFileSystemChange(WatchmanPathEventBatch batch) {
+    LOG.verbose("Parser watched %d events in %s", batch.getEvents().size(), batch.getCellPath());
+
+    permState.invalidateBasedOn(batch.getEvents());
+  }
+
   public void recordParseStartTime(BuckEventBus eventBus) {
     LOG.debug(eventBus.toString());
     // Does nothing
@@ -34,6 +34,7 @@ import com.facebook.buck.util.Ansi;
 import com.facebook.buck.util.Console;
 import com.facebook.buck.util.HumanReadableException;
 import com.facebook.buck.util.Verbosity;
+import com.facebook.buck.util.timing.DefaultClock;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
@@ -82,6 +83,7 @@ public class PerBuildState implements AutoCloseable {
   private final Map<Path, Optional<Path>> symlinkExistenceCache;
 
   private final ProjectBuildFileParserPool projectBuildFileParserPool;
+  private final PersistentRawNodeCache persistentRawNodeCache;
   private final RawNodeParsePipeline rawNodeParsePipeline;
   private final TargetNodeParsePipeline targetNodeParsePipeline;
   private final KnownBuildRuleTypesProvider knownBuildRuleTypesProvider;
@@ -123,11 +125,20 @@ public class PerBuildState implements AutoCloseable {
             cell ->
                 createBuildFileParser(
                     cell, knownBuildRuleTypesProvider.get(cell).getDescriptions()),
-            enableProfiling);
-
+            enableProfiling,
+            parserConfig.getMaxParserMemoryBytes(),
+            parserConfig.getIdleParserTimeoutNanos(),
+            Optional.of(eventBus),
+            new DefaultClock());
+
+    this.persistentRawNodeCache =
+        new PersistentRawNodeCache(parser.getPermState()::getPersistentRawNodeStore);
     this.rawNodeParsePipeline =
         new RawNodeParsePipeline(
-            parser.getPermState().getRawNodeCache(), projectBuildFileParserPool, executorService);
+            parser.getPermState().getRawNodeCache(),
+            projectBuildFileParserPool,
+            executorService,
+            persistentRawNodeCache);
     this.targetNodeParsePipeline =
         new TargetNodeParsePipeline(
             parser.getPermState().getOrCreateNodeCache(TargetNode.class),
@@ -198,7 +209,9 @@ public class PerBuildState implements AutoCloseable {
         console,
         eventBus,
         descriptions,
-        enableProfiling);
+        enableProfiling,
+        parser.getPermState().getSkylarkExtensionCache(cell),
+        parser.getPermState().getSkylarkGlobCache(cell));
   }
 
   private void register(Cell cell) {
@@ -348,6 +361,7 @@ public class PerBuildState implements AutoCloseable {
     targetNodeParsePipeline.close();
     rawNodeParsePipeline.close();
     projectBuildFileParserPool.close();
+    persistentRawNodeCache.close();
 
     if (!buildInputPathsUnderSymlink.isEmpty()) {
       LOG.debug(
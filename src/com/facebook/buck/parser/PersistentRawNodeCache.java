@@ -0,0 +1,276 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.parser;
+
+import com.facebook.buck.io.filesystem.ProjectFilesystem;
+import com.facebook.buck.log.Logger;
+import com.facebook.buck.parser.PersistentRawNodeStore.StoredInclude;
+import com.facebook.buck.parser.PersistentRawNodeStore.StoredRawNodes;
+import com.facebook.buck.rules.Cell;
+import com.facebook.buck.util.ObjectMappers;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Sets;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Reuses the raw nodes kept by a {@link PersistentRawNodeStore} for the build files of one parse,
+ * when they are still valid, and stores the raw nodes of the build files it parses.
+ *
+ * <p>Stored nodes are only reused once the build file, the listing of its directory tree and the
+ * files it included hash the same as when they were stored, and the environment variables it read
+ * have the same values. The hashes are computed at most once per parse, so the files included by
+ * many build files are only read once.
+ */
+class PersistentRawNodeCache implements AutoCloseable {
+
+  private static final Logger LOG = Logger.get(PersistentRawNodeCache.class);
+
+  private static final TypeReference<List<Map<String, Object>>> RAW_NODES_TYPE =
+      new TypeReference<List<Map<String, Object>>>() {};
+
+  private final Function<Cell, Optional<PersistentRawNodeStore>> stores;
+  private final Set<PersistentRawNodeStore> usedStores = Sets.newConcurrentHashSet();
+  private final ConcurrentMap<Path, HashCode> fileHashes = new ConcurrentHashMap<>();
+  private final ConcurrentMap<Path, HashCode> directoryHashes = new ConcurrentHashMap<>();
+
+  private final AtomicInteger reused = new AtomicInteger();
+  private final AtomicInteger parsed = new AtomicInteger();
+  private final AtomicInteger outdated = new AtomicInteger();
+
+  PersistentRawNodeCache(Function<Cell, Optional<PersistentRawNodeStore>> stores) {
+    this.stores = stores;
+  }
+
+  /**
+   * @return the raw nodes, including the meta rules, of {@code buildFile}: the stored ones if they
+   *     are still valid, or else the ones returned by {@code parse}, which are then stored.
+   */
+  ListenableFuture<ImmutableSet<Map<String, Object>>> getAllRulesAndMetaRules(
+      Cell cell,
+      Path buildFile,
+      Supplier<ListenableFuture<ImmutableSet<Map<String, Object>>>> parse,
+      ListeningExecutorService executorService) {
+    Optional<PersistentRawNodeStore> store = stores.apply(cell);
+    if (!store.isPresent()) {
+      return parse.get();
+    }
+    usedStores.add(store.get());
+    return Futures.transformAsync(
+        executorService.submit(() -> lookup(store.get(), cell, buildFile)),
+        stored -> {
+          if (stored.isPresent()) {
+            reused.incrementAndGet();
+            return Futures.immediateFuture(stored.get());
+          }
+          parsed.incrementAndGet();
+          return Futures.transform(
+              parse.get(),
+              rawNodes -> {
+                put(store.get(), cell, buildFile, rawNodes);
+                return rawNodes;
+              },
+              executorService);
+        },
+        executorService);
+  }
+
+  private Optional<ImmutableSet<Map<String, Object>>> lookup(
+      PersistentRawNodeStore store, Cell cell, Path buildFile) {
+    ProjectFilesystem filesystem = cell.getFilesystem();
+    Optional<StoredRawNodes> stored = store.get(buildFile);
+    try {
+      // Hashed before parsing, so that nodes parsed from a build file modified in the meantime are
+      // stored with a hash they won't match.
+      HashCode buildFileHash = hashFile(filesystem, buildFile);
+      HashCode directoryHash = hashDirectory(cell, filesystem.relativize(buildFile.getParent()));
+      if (!stored.isPresent()) {
+        return Optional.empty();
+      }
+      if (buildFileHash.equals(stored.get().buildFileHash)
+          && directoryHash.equals(stored.get().directoryHash)
+          && isUpToDate(cell, stored.get())) {
+        try (JsonParser parser = ObjectMappers.createParser(stored.get().json)) {
+          List<Map<String, Object>> rawNodes =
+              ObjectMappers.READER.readValue(parser, RAW_NODES_TYPE);
+          return Optional.of(ImmutableSet.copyOf(rawNodes));
+        }
+      }
+    } catch (IOException e) {
+      LOG.debug(e, "Could not check the stored raw nodes of %s.", buildFile);
+      if (!stored.isPresent()) {
+        return Optional.empty();
+      }
+    }
+    outdated.incrementAndGet();
+    store.remove(buildFile);
+    return Optional.empty();
+  }
+
+  /** @return whether the environment variables and includes of {@code stored} are unchanged. */
+  private boolean isUpToDate(Cell cell, StoredRawNodes stored) throws IOException {
+    ProjectFilesystem filesystem = cell.getFilesystem();
+    ImmutableMap<String, String> environment = cell.getBuckConfig().getEnvironment();
+    for (Map.Entry<String, Optional<String>> entry : stored.env.entrySet()) {
+      if (!Optional.ofNullable(environment.get(entry.getKey())).equals(entry.getValue())) {
+        return false;
+      }
+    }
+    for (StoredInclude include : stored.includes) {
+      if (!hashFile(filesystem, filesystem.resolve(include.path)).equals(include.hashCode)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @SuppressWarnings("unchecked")
+  private void put(
+      PersistentRawNodeStore store,
+      Cell cell,
+      Path buildFile,
+      ImmutableSet<Map<String, Object>> rawNodes) {
+    ProjectFilesystem filesystem = cell.getFilesystem();
+    try {
+      Set<String> includePaths = new LinkedHashSet<>();
+      ImmutableMap<String, Optional<String>> env = ImmutableMap.of();
+      for (Map<String, Object> rawNode : rawNodes) {
+        if (rawNode.containsKey(DaemonicParserState.INCLUDES_META_RULE)) {
+          Iterables.addAll(
+              includePaths,
+              (Iterable<String>) rawNode.get(DaemonicParserState.INCLUDES_META_RULE));
+        } else if (rawNode.containsKey(DaemonicParserState.ENV_META_RULE)) {
+          ImmutableMap.Builder<String, Optional<String>> builder = ImmutableMap.builder();
+          ((Map<String, String>) rawNode.get(DaemonicParserState.ENV_META_RULE))
+              .forEach((name, value) -> builder.put(name, Optional.ofNullable(value)));
+          env = builder.build();
+        }
+      }
+      // The default includes may not be reported by the parser, but every build file depends on
+      // them.
+      for (String include :
+          cell.getBuckConfig().getView(ParserConfig.class).getDefaultIncludes()) {
+        includePaths.add(
+            DaemonicParserState.resolveIncludePath(
+                    cell, include, cell.getBuckConfig().getCellPathResolver())
+                .toString());
+      }
+      ImmutableList.Builder<StoredInclude> includes = ImmutableList.builder();
+      for (String path : includePaths) {
+        includes.add(new StoredInclude(path, hashFile(filesystem, filesystem.resolve(path))));
+      }
+      store.put(
+          buildFile,
+          new StoredRawNodes(
+              hashFile(filesystem, buildFile),
+              hashDirectory(cell, filesystem.relativize(buildFile.getParent())),
+              includes.build(),
+              env,
+              ObjectMappers.WRITER.writeValueAsBytes(rawNodes)));
+    } catch (IOException e) {
+      // The nodes are simply parsed again next time.
+      LOG.debug(e, "Could not store the raw nodes of %s.", buildFile);
+    }
+  }
+
+  private HashCode hashFile(ProjectFilesystem filesystem, Path path) throws IOException {
+    HashCode hashCode = fileHashes.get(path);
+    if (hashCode == null) {
+      hashCode = filesystem.computeSha1(path).asHashCode();
+      fileHashes.put(path, hashCode);
+    }
+    return hashCode;
+  }
+
+  /**
+   * @return a hash of the names and kinds of everything under {@code directory}, which changes when
+   *     a file that a glob of a build file in {@code directory} may match is added or removed.
+   *     Like globs, it doesn't look into the packages below {@code directory}, only at where they
+   *     are.
+   */
+  private HashCode hashDirectory(Cell cell, Path directory) throws IOException {
+    ProjectFilesystem filesystem = cell.getFilesystem();
+    Path key = filesystem.resolve(directory);
+    HashCode hashCode = directoryHashes.get(key);
+    if (hashCode == null) {
+      Hasher hasher = Hashing.sha1().newHasher();
+      for (Path child : filesystem.getDirectoryContents(directory)) {
+        hasher.putString(child.getFileName().toString(), StandardCharsets.UTF_8);
+        if (!filesystem.isDirectory(child, LinkOption.NOFOLLOW_LINKS)) {
+          hasher.putByte((byte) 0);
+        } else if (filesystem.isFile(child.resolve(cell.getBuildFileName()))) {
+          hasher.putByte((byte) 2);
+        } else {
+          hasher.putByte((byte) 1);
+          hasher.putBytes(hashDirectory(cell, child).asBytes());
+        }
+      }
+      hashCode = hasher.hash();
+      directoryHashes.put(key, hashCode);
+    }
+    return hashCode;
+  }
+
+  @VisibleForTesting
+  int getReusedCount() {
+    return reused.get();
+  }
+
+  @VisibleForTesting
+  int getParsedCount() {
+    return parsed.get();
+  }
+
+  /** Saves the raw nodes stored during the parse. */
+  @Override
+  public void close() {
+    LOG.debug(
+        "Reused the stored raw nodes of %d build files, parsed %d (%d outdated).",
+        reused.get(), parsed.get(), outdated.get());
+    for (PersistentRawNodeStore store : usedStores) {
+      try {
+        store.save();
+      } catch (IOException e) {
+        LOG.warn(e, "Could not save the raw nodes of %s.", store.getFilesystem().getRootPath());
+      }
+    }
+  }
+}
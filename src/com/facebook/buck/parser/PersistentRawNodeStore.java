@@ -0,0 +1,236 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.parser;
+
+import com.facebook.buck.io.filesystem.ProjectFilesystem;
+import com.facebook.buck.model.BuckVersion;
+import com.facebook.buck.rules.Cell;
+import com.facebook.buck.util.recordlog.RecordLog;
+import com.facebook.buck.util.recordlog.RecordLogMap;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.collect.Maps;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Raw nodes kept on disk, so that a new daemon (or a run without one) can reuse the build files
+ * parsed by the previous one instead of running every build file through the parser again.
+ *
+ * <p>The raw nodes of a build file, including its meta rules, are stored with what they were read
+ * from: the hash of the build file, a hash of the listing of its directory tree (which globs are
+ * resolved against), the hashes of the files it included and the environment variables it read.
+ * The whole store is tied to a fingerprint of the Buck version and of the cell's configuration, as
+ * not every parser reports the configuration values a build file read.
+ *
+ * <p>Raw nodes are stored in memory as build files are parsed, and {@link #save()} appends them to
+ * a {@link RecordLogMap} under {@code buck-out/parse_cache}. See {@link PersistentRawNodeCache} for
+ * how stored nodes are checked before being reused.
+ */
+public class PersistentRawNodeStore {
+
+  private static final int MAGIC = 0x42504e43;
+  private static final int VERSION = 1;
+  private static final int MAX_RECORD_SIZE_BYTES = 64 * 1024 * 1024;
+
+  private final ProjectFilesystem filesystem;
+  private final RecordLogMap<String, StoredRawNodes> rawNodes;
+
+  public PersistentRawNodeStore(
+      ProjectFilesystem filesystem, Path storePath, HashCode fingerprint) {
+    this.filesystem = filesystem;
+    // Buck or the configuration may have changed since the nodes were stored, which makes them
+    // wrong, so they're discarded when the fingerprint changes.
+    this.rawNodes =
+        new RecordLogMap<>(
+            new RecordLog(
+                filesystem, storePath, "raw node store", MAGIC, VERSION, MAX_RECORD_SIZE_BYTES),
+            Optional.of(fingerprint),
+            new Codec());
+  }
+
+  /** Creates the store of the raw nodes of the build files of {@code cell}. */
+  public static PersistentRawNodeStore forCell(Cell cell) {
+    ProjectFilesystem filesystem = cell.getFilesystem();
+    return new PersistentRawNodeStore(
+        filesystem,
+        filesystem.getBuckPaths().getParseCacheDir().resolve("raw_nodes"),
+        computeFingerprint(cell));
+  }
+
+  /**
+   * @return a hash of what the raw nodes of every build file of {@code cell} depend on, besides the
+   *     files and environment variables recorded with them.
+   */
+  @VisibleForTesting
+  static HashCode computeFingerprint(Cell cell) {
+    Hasher hasher = Hashing.sha1().newHasher();
+    hasher.putString(BuckVersion.getVersion(), StandardCharsets.UTF_8);
+    hasher.putString(cell.getRoot().toString(), StandardCharsets.UTF_8);
+    for (Map.Entry<String, ImmutableMap<String, String>> section :
+        ImmutableSortedMap.copyOf(cell.getBuckConfig().getRawConfigForParser()).entrySet()) {
+      hasher.putString(section.getKey(), StandardCharsets.UTF_8).putByte((byte) 0);
+      for (Map.Entry<String, String> entry :
+          ImmutableSortedMap.copyOf(section.getValue()).entrySet()) {
+        hasher.putString(entry.getKey(), StandardCharsets.UTF_8).putByte((byte) 0);
+        hasher.putString(entry.getValue(), StandardCharsets.UTF_8).putByte((byte) 0);
+      }
+      hasher.putByte((byte) 1);
+    }
+    return hasher.hash();
+  }
+
+  ProjectFilesystem getFilesystem() {
+    return filesystem;
+  }
+
+  /** @return the stored raw nodes of {@code buildFile}, if there are some. */
+  Optional<StoredRawNodes> get(Path buildFile) {
+    return Optional.ofNullable(rawNodes.get(toKey(buildFile)));
+  }
+
+  /** Stores the raw nodes of {@code buildFile}, replacing the ones stored before. */
+  void put(Path buildFile, StoredRawNodes stored) {
+    rawNodes.put(toKey(buildFile), stored);
+  }
+
+  /** Forgets the raw nodes of {@code buildFile}, which are known to be outdated. */
+  void remove(Path buildFile) {
+    rawNodes.remove(toKey(buildFile));
+  }
+
+  private String toKey(Path buildFile) {
+    return filesystem.relativize(buildFile).toString();
+  }
+
+  /** Appends the raw nodes stored since they were loaded or saved to the log. */
+  public void save() throws IOException {
+    rawNodes.save();
+  }
+
+  @VisibleForTesting
+  int size() {
+    return rawNodes.size();
+  }
+
+  private static class Codec implements RecordLogMap.Codec<String, StoredRawNodes> {
+    @Override
+    public void write(String key, StoredRawNodes stored, DataOutputStream out)
+        throws IOException {
+      out.writeUTF(key);
+      RecordLogMap.writeHashCode(out, stored.buildFileHash);
+      RecordLogMap.writeHashCode(out, stored.directoryHash);
+      out.writeInt(stored.includes.size());
+      for (StoredInclude include : stored.includes) {
+        out.writeUTF(include.path);
+        RecordLogMap.writeHashCode(out, include.hashCode);
+      }
+      out.writeInt(stored.env.size());
+      for (Map.Entry<String, Optional<String>> entry : stored.env.entrySet()) {
+        out.writeUTF(entry.getKey());
+        out.writeBoolean(entry.getValue().isPresent());
+        if (entry.getValue().isPresent()) {
+          out.writeUTF(entry.getValue().get());
+        }
+      }
+      out.writeInt(stored.json.length);
+      out.write(stored.json);
+    }
+
+    @Override
+    public Map.Entry<String, StoredRawNodes> read(DataInputStream in) throws IOException {
+      String key = in.readUTF();
+      HashCode buildFileHash = RecordLogMap.readHashCode(in);
+      HashCode directoryHash = RecordLogMap.readHashCode(in);
+      int includeCount = in.readInt();
+      ImmutableList.Builder<StoredInclude> includes = ImmutableList.builder();
+      for (int i = 0; i < includeCount; i++) {
+        includes.add(new StoredInclude(in.readUTF(), RecordLogMap.readHashCode(in)));
+      }
+      int envCount = in.readInt();
+      ImmutableMap.Builder<String, Optional<String>> env = ImmutableMap.builder();
+      for (int i = 0; i < envCount; i++) {
+        String name = in.readUTF();
+        env.put(name, in.readBoolean() ? Optional.of(in.readUTF()) : Optional.empty());
+      }
+      int jsonLength = in.readInt();
+      if (jsonLength < 0 || jsonLength > MAX_RECORD_SIZE_BYTES) {
+        throw new IOException("Corrupt raw node store record.");
+      }
+      byte[] json = new byte[jsonLength];
+      in.readFully(json);
+      return Maps.immutableEntry(
+          key,
+          new StoredRawNodes(buildFileHash, directoryHash, includes.build(), env.build(), json));
+    }
+  }
+
+  /** The stored raw nodes of a build file, and what they were read from. */
+  static class StoredRawNodes {
+
+    final HashCode buildFileHash;
+
+    /** The hash of the listing of the build file's directory tree, which globs are run against. */
+    final HashCode directoryHash;
+
+    /** The files the build file included, and their hashes then. */
+    final ImmutableList<StoredInclude> includes;
+
+    /** The environment variables the build file read, and their values then. */
+    final ImmutableMap<String, Optional<String>> env;
+
+    /** The raw nodes, including the meta rules, as JSON. */
+    final byte[] json;
+
+    StoredRawNodes(
+        HashCode buildFileHash,
+        HashCode directoryHash,
+        ImmutableList<StoredInclude> includes,
+        ImmutableMap<String, Optional<String>> env,
+        byte[] json) {
+      this.buildFileHash = buildFileHash;
+      this.directoryHash = directoryHash;
+      this.includes = includes;
+      this.env = env;
+      this.json = json;
+    }
+  }
+
+  /** A file a build file included. */
+  static class StoredInclude {
+
+    /** The path of the file, as reported by the parser. */
+    final String path;
+
+    final HashCode hashCode;
+
+    StoredInclude(String path, HashCode hashCode) {
+      this.path = path;
+      this.hashCode = hashCode;
+    }
+  }
+}
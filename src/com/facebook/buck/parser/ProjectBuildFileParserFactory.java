@@ -17,6 +17,7 @@
 package com.facebook.buck.parser;
 
 import com.facebook.buck.event.BuckEventBus;
+import com.facebook.buck.io.ProjectWatch;
 import com.facebook.buck.io.WatchmanFactory;
 import com.facebook.buck.io.filesystem.skylark.SkylarkFilesystem;
 import com.facebook.buck.json.HybridProjectBuildFileParser;
@@ -29,15 +30,27 @@ import com.facebook.buck.python.toolchain.PythonInterpreter;
 import com.facebook.buck.rules.Cell;
 import com.facebook.buck.rules.Description;
 import com.facebook.buck.rules.coercer.TypeCoercerFactory;
+import com.facebook.buck.skylark.io.GlobberFactory;
+import com.facebook.buck.skylark.io.impl.CachingGlobber;
+import com.facebook.buck.skylark.io.impl.GlobCache;
+import com.facebook.buck.skylark.io.impl.SimpleGlobber;
+import com.facebook.buck.skylark.io.impl.WatchmanGlobberFactory;
+import com.facebook.buck.skylark.parser.SkylarkExtensionCache;
 import com.facebook.buck.skylark.parser.SkylarkProjectBuildFileParser;
 import com.facebook.buck.util.Console;
 import com.facebook.buck.util.DefaultProcessExecutor;
 import com.google.common.collect.ImmutableMap;
 import com.google.devtools.build.lib.events.EventKind;
 import com.google.devtools.build.lib.events.PrintingEventHandler;
+import java.nio.file.Path;
 import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
 
 public class ProjectBuildFileParserFactory {
+
+  private static final long DEFAULT_WATCHMAN_GLOB_QUERY_TIMEOUT_MS = TimeUnit.SECONDS.toMillis(5);
+
   /**
    * Callers are responsible for managing the life-cycle of the created {@link
    * ProjectBuildFileParser}.
@@ -63,6 +76,32 @@ public class ProjectBuildFileParserFactory {
       BuckEventBus eventBus,
       Iterable<Description<?>> descriptions,
       boolean enableProfiling) {
+    return createBuildFileParser(
+        cell,
+        typeCoercerFactory,
+        console,
+        eventBus,
+        descriptions,
+        enableProfiling,
+        new SkylarkExtensionCache(),
+        new GlobCache());
+  }
+
+  /**
+   * Same as {@link #createBuildFileParser(Cell, TypeCoercerFactory, Console, BuckEventBus,
+   * Iterable, boolean)} but lets the Skylark parser reuse the extensions in {@code
+   * skylarkExtensionCache} and the glob results in {@code skylarkGlobCache}, which must only be
+   * shared between parsers of {@code cell}.
+   */
+  public static ProjectBuildFileParser createBuildFileParser(
+      Cell cell,
+      TypeCoercerFactory typeCoercerFactory,
+      Console console,
+      BuckEventBus eventBus,
+      Iterable<Description<?>> descriptions,
+      boolean enableProfiling,
+      SkylarkExtensionCache skylarkExtensionCache,
+      GlobCache skylarkGlobCache) {
 
     ParserConfig parserConfig = cell.getBuckConfig().getView(ParserConfig.class);
 
@@ -104,7 +143,14 @@ public class ProjectBuildFileParserFactory {
             .build();
     return EventReportingProjectBuildFileParser.of(
         createProjectBuildFileParser(
-            cell, typeCoercerFactory, console, eventBus, parserConfig, buildFileParserOptions),
+            cell,
+            typeCoercerFactory,
+            console,
+            eventBus,
+            parserConfig,
+            buildFileParserOptions,
+            skylarkExtensionCache,
+            skylarkGlobCache),
         eventBus);
   }
 
@@ -115,7 +161,9 @@ public class ProjectBuildFileParserFactory {
       Console console,
       BuckEventBus eventBus,
       ParserConfig parserConfig,
-      ProjectBuildFileParserOptions buildFileParserOptions) {
+      ProjectBuildFileParserOptions buildFileParserOptions,
+      SkylarkExtensionCache skylarkExtensionCache,
+      GlobCache skylarkGlobCache) {
     PythonDslProjectBuildFileParser pythonDslProjectBuildFileParser =
         new PythonDslProjectBuildFileParser(
             buildFileParserOptions,
@@ -134,9 +182,41 @@ public class ProjectBuildFileParserFactory {
                   eventBus,
                   SkylarkFilesystem.using(cell.getFilesystem()),
                   typeCoercerFactory,
-                  new PrintingEventHandler(EventKind.ALL_EVENTS))),
+                  new PrintingEventHandler(EventKind.ALL_EVENTS),
+                  skylarkExtensionCache,
+                  createSkylarkGlobberFactory(cell, buildFileParserOptions, skylarkGlobCache))),
           parserConfig.getDefaultBuildFileSyntax());
     }
     return pythonDslProjectBuildFileParser;
   }
+
+  /**
+   * Creates the factory of globbers used by the Skylark parser. Globs are resolved with Watchman if
+   * it's enabled for globbing, and their results are cached as long as Watchman watches the cell.
+   */
+  private static GlobberFactory createSkylarkGlobberFactory(
+      Cell cell, ProjectBuildFileParserOptions buildFileParserOptions, GlobCache skylarkGlobCache) {
+    Path projectRoot = cell.getFilesystem().getRootPath();
+    @Nullable
+    ProjectWatch projectWatch = cell.getWatchman().getProjectWatches().get(projectRoot);
+    if (projectWatch == null) {
+      // Without a watch, Watchman can't resolve globs nor report changes to the cached results.
+      return SimpleGlobber::create;
+    }
+    GlobberFactory globberFactory = SimpleGlobber::create;
+    if (buildFileParserOptions.getUseWatchmanGlob()) {
+      globberFactory =
+          WatchmanGlobberFactory.create(
+              cell.getWatchman(),
+              projectWatch,
+              projectRoot,
+              TimeUnit.MILLISECONDS.toNanos(
+                  buildFileParserOptions
+                      .getWatchmanQueryTimeoutMs()
+                      .orElse(DEFAULT_WATCHMAN_GLOB_QUERY_TIMEOUT_MS)),
+              buildFileParserOptions.getWatchmanUseGlobGenerator(),
+              buildFileParserOptions.getWatchmanGlobStatResults());
+    }
+    return CachingGlobber.factory(globberFactory, skylarkGlobCache);
+  }
 }
@@ -16,19 +16,33 @@
 
 package com.facebook.buck.parser;
 
+import com.facebook.buck.event.BuckEventBus;
 import com.facebook.buck.log.Logger;
 import com.facebook.buck.parser.api.ProjectBuildFileParser;
+import com.facebook.buck.parser.events.ParserPoolStatsEvent;
+import com.facebook.buck.parser.events.ParserPoolStatsEvent.ParserStats;
 import com.facebook.buck.rules.Cell;
 import com.facebook.buck.util.concurrent.ResourcePool;
+import com.facebook.buck.util.timing.Clock;
+import com.facebook.buck.util.timing.DefaultClock;
 import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListeningExecutorService;
 import java.io.IOException;
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Function;
 import javax.annotation.concurrent.GuardedBy;
@@ -39,6 +53,12 @@ import javax.annotation.concurrent.GuardedBy;
  * <p>Parser instances are lazily created up till a fixed maximum. If more than max parser are
  * requested the associated 'requests' are queued up. As soon as a parser is returned it will be
  * used to satisfy the first pending request, otherwise it is "parked".
+ *
+ * <p>Parsers using more memory than allowed are restarted, and parsers parked for longer than the
+ * idle timeout are closed, so the number of parsers follows the backlog of build files. A build
+ * file is preferably handed to the parser that already loaded the most of the files the build files
+ * around it include. How the parsers were used is posted as a {@link ParserPoolStatsEvent} once
+ * the pool is closed.
  */
 class ProjectBuildFileParserPool implements AutoCloseable {
   private static final Logger LOG = Logger.get(ProjectBuildFileParserPool.class);
@@ -46,11 +66,24 @@ class ProjectBuildFileParserPool implements AutoCloseable {
   private final int maxParsersPerCell;
 
   @GuardedBy("this")
-  private final Map<Cell, ResourcePool<ProjectBuildFileParser>> parserResourcePools;
+  private final Map<Cell, ResourcePool<PooledParser>> parserResourcePools;
+
+  @GuardedBy("this")
+  private final Map<Cell, CellStats> cellStats;
 
   private final Function<Cell, ProjectBuildFileParser> parserFactory;
   private final AtomicBoolean closing;
   private final boolean enableProfiler;
+  private final Optional<Long> maxParserMemoryBytes;
+  private final Optional<Long> maxIdleNanos;
+  private final Optional<BuckEventBus> eventBus;
+  private final Clock clock;
+
+  /**
+   * The files included by the last build file parsed in each directory, as reported by its meta
+   * rules. Build files are expected to include about the same files as their neighbours.
+   */
+  private final ConcurrentMap<Path, ImmutableSet<String>> includesByDirectory;
 
   /**
    * @param maxParsersPerCell maximum number of parsers to create for a single cell.
@@ -60,13 +93,43 @@ class ProjectBuildFileParserPool implements AutoCloseable {
       int maxParsersPerCell,
       Function<Cell, ProjectBuildFileParser> parserFactory,
       boolean enableProfiler) {
+    this(
+        maxParsersPerCell,
+        parserFactory,
+        enableProfiler,
+        Optional.empty(),
+        Optional.empty(),
+        Optional.empty(),
+        new DefaultClock());
+  }
+
+  /**
+   * @param maxParserMemoryBytes resident memory above which a parser is restarted once it's done
+   *     with its build file.
+   * @param maxIdleNanos how long a parser may stay unused before it is closed.
+   * @param eventBus where to post the {@link ParserPoolStatsEvent}s.
+   */
+  public ProjectBuildFileParserPool(
+      int maxParsersPerCell,
+      Function<Cell, ProjectBuildFileParser> parserFactory,
+      boolean enableProfiler,
+      Optional<Long> maxParserMemoryBytes,
+      Optional<Long> maxIdleNanos,
+      Optional<BuckEventBus> eventBus,
+      Clock clock) {
     Preconditions.checkArgument(maxParsersPerCell > 0);
 
     this.maxParsersPerCell = maxParsersPerCell;
     this.parserResourcePools = new HashMap<>();
+    this.cellStats = new HashMap<>();
     this.parserFactory = parserFactory;
     this.closing = new AtomicBoolean(false);
     this.enableProfiler = enableProfiler;
+    this.maxParserMemoryBytes = maxParserMemoryBytes;
+    this.maxIdleNanos = maxIdleNanos;
+    this.eventBus = eventBus;
+    this.clock = clock;
+    this.includesByDirectory = new ConcurrentHashMap<>();
   }
 
   /**
@@ -83,28 +146,98 @@ class ProjectBuildFileParserPool implements AutoCloseable {
       final ListeningExecutorService executorService) {
     Preconditions.checkState(!closing.get());
 
+    CellStats stats = getStatsForCell(cell);
+    ImmutableSet<String> expectedIncludes = getExpectedIncludes(buildFile);
+    long requestedNanos = clock.nanoTime();
     return getResourcePoolForCell(cell)
         .scheduleOperationWithResource(
-            parser ->
-                ImmutableSet.copyOf(parser.getAllRulesAndMetaRules(buildFile, processedBytes)),
+            parser -> {
+              long startedNanos = clock.nanoTime();
+              stats.recordQueueWait(startedNanos - requestedNanos);
+              try {
+                ImmutableSet<Map<String, Object>> rawNodes =
+                    ImmutableSet.copyOf(
+                        parser.parser.getAllRulesAndMetaRules(buildFile, processedBytes));
+                recordIncludes(parser, buildFile, rawNodes);
+                return rawNodes;
+              } finally {
+                parser.recordUse(clock.nanoTime() - startedNanos);
+              }
+            },
+            parser -> Sets.intersection(expectedIncludes, parser.loadedIncludes).size(),
             executorService);
   }
 
-  private synchronized ResourcePool<ProjectBuildFileParser> getResourcePoolForCell(Cell cell) {
-    ResourcePool<ProjectBuildFileParser> pool = parserResourcePools.get(cell);
+  private ImmutableSet<String> getExpectedIncludes(Path buildFile) {
+    for (Path directory = buildFile.getParent();
+        directory != null;
+        directory = directory.getParent()) {
+      ImmutableSet<String> includes = includesByDirectory.get(directory);
+      if (includes != null) {
+        return includes;
+      }
+    }
+    return ImmutableSet.of();
+  }
+
+  @SuppressWarnings("unchecked")
+  private void recordIncludes(
+      PooledParser parser, Path buildFile, ImmutableSet<Map<String, Object>> rawNodes) {
+    for (Map<String, Object> rawNode : rawNodes) {
+      Object includes = rawNode.get(DaemonicParserState.INCLUDES_META_RULE);
+      if (includes != null) {
+        ImmutableSet.Builder<String> builder = ImmutableSet.builder();
+        for (String include : (Iterable<String>) includes) {
+          if (!include.equals(buildFile.toString())) {
+            builder.add(include);
+          }
+        }
+        ImmutableSet<String> includeSet = builder.build();
+        parser.loadedIncludes.addAll(includeSet);
+        includesByDirectory.put(buildFile.getParent(), includeSet);
+        return;
+      }
+    }
+  }
+
+  private synchronized ResourcePool<PooledParser> getResourcePoolForCell(Cell cell) {
+    ResourcePool<PooledParser> pool = parserResourcePools.get(cell);
     if (pool == null) {
+      CellStats stats = getStatsForCell(cell);
       pool =
           new ResourcePool<>(
               maxParsersPerCell,
               // If the Python process garbles the output stream then the bser codec doesn't always
               // recover and subsequent attempts at invoking the parser will fail.
               ResourcePool.ResourceUsageErrorPolicy.RETIRE,
-              () -> parserFactory.apply(cell));
+              () -> stats.addParser(new PooledParser(parserFactory.apply(cell), clock)),
+              parser -> isUsingTooMuchMemory(parser, stats),
+              maxIdleNanos,
+              clock);
       parserResourcePools.put(cell, pool);
     }
     return pool;
   }
 
+  private synchronized CellStats getStatsForCell(Cell cell) {
+    return cellStats.computeIfAbsent(cell, ignored -> new CellStats());
+  }
+
+  private boolean isUsingTooMuchMemory(PooledParser parser, CellStats stats) {
+    if (!maxParserMemoryBytes.isPresent()) {
+      return false;
+    }
+    Optional<Long> memoryBytes = parser.parser.getResidentMemoryBytes();
+    if (memoryBytes.isPresent() && memoryBytes.get() > maxParserMemoryBytes.get()) {
+      LOG.debug(
+          "Restarting a parser using %d bytes, more than %d.",
+          memoryBytes.get(), maxParserMemoryBytes.get());
+      stats.parsersRetiredForMemory.incrementAndGet();
+      return true;
+    }
+    return false;
+  }
+
   private void reportProfile() {
     if (!enableProfiler) {
       return;
@@ -117,7 +250,7 @@ class ProjectBuildFileParserPool implements AutoCloseable {
                 resourcePool.callOnEachResource(
                     parser -> {
                       try {
-                        parser.reportProfile();
+                        parser.parser.reportProfile();
                       } catch (IOException exception) {
                         LOG.debug(
                             exception,
@@ -128,10 +261,22 @@ class ProjectBuildFileParserPool implements AutoCloseable {
     }
   }
 
+  private void reportStats() {
+    if (!eventBus.isPresent()) {
+      return;
+    }
+    synchronized (this) {
+      long nowNanos = clock.nanoTime();
+      cellStats.forEach(
+          (cell, stats) -> eventBus.get().post(stats.toEvent(cell.getRoot(), nowNanos)));
+    }
+  }
+
   @Override
   public void close() {
     reportProfile();
-    ImmutableSet<ResourcePool<ProjectBuildFileParser>> resourcePools;
+    reportStats();
+    ImmutableSet<ResourcePool<PooledParser>> resourcePools;
     synchronized (this) {
       Preconditions.checkState(!closing.get());
       closing.set(true);
@@ -139,4 +284,73 @@ class ProjectBuildFileParserPool implements AutoCloseable {
     }
     resourcePools.forEach(ResourcePool::close);
   }
+
+  /** A parser in the pool, and how it was used. */
+  private static class PooledParser implements AutoCloseable {
+    private final ProjectBuildFileParser parser;
+    private final Clock clock;
+    private final long createdNanos;
+    private final Set<String> loadedIncludes = Sets.newConcurrentHashSet();
+    private final AtomicInteger buildFiles = new AtomicInteger();
+    private final AtomicLong busyNanos = new AtomicLong();
+    private volatile long closedNanos = -1;
+
+    private PooledParser(ProjectBuildFileParser parser, Clock clock) {
+      this.parser = parser;
+      this.clock = clock;
+      this.createdNanos = clock.nanoTime();
+    }
+
+    private void recordUse(long nanos) {
+      buildFiles.incrementAndGet();
+      busyNanos.addAndGet(nanos);
+    }
+
+    private ParserStats toStats(long nowNanos) {
+      long endNanos = closedNanos < 0 ? nowNanos : closedNanos;
+      return new ParserStats(buildFiles.get(), busyNanos.get(), endNanos - createdNanos);
+    }
+
+    @Override
+    public void close() throws Exception {
+      if (closedNanos < 0) {
+        closedNanos = clock.nanoTime();
+      }
+      parser.close();
+    }
+  }
+
+  /** How the parsers of a cell were used. */
+  private static class CellStats {
+    private final List<PooledParser> parsers = new ArrayList<>();
+    private final AtomicInteger requests = new AtomicInteger();
+    private final AtomicLong totalQueueWaitNanos = new AtomicLong();
+    private final AtomicLong maxQueueWaitNanos = new AtomicLong();
+    private final AtomicInteger parsersRetiredForMemory = new AtomicInteger();
+
+    private synchronized PooledParser addParser(PooledParser parser) {
+      parsers.add(parser);
+      return parser;
+    }
+
+    private void recordQueueWait(long nanos) {
+      requests.incrementAndGet();
+      totalQueueWaitNanos.addAndGet(nanos);
+      maxQueueWaitNanos.accumulateAndGet(nanos, Math::max);
+    }
+
+    private synchronized ParserPoolStatsEvent toEvent(Path cellRoot, long nowNanos) {
+      ImmutableList.Builder<ParserStats> parserStats = ImmutableList.builder();
+      for (PooledParser parser : parsers) {
+        parserStats.add(parser.toStats(nowNanos));
+      }
+      return ParserPoolStatsEvent.of(
+          cellRoot,
+          requests.get(),
+          totalQueueWaitNanos.get(),
+          maxQueueWaitNanos.get(),
+          parsersRetiredForMemory.get(),
+          parserStats.build());
+    }
+  }
 }
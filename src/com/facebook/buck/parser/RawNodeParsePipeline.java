@@ -37,15 +37,29 @@ public class RawNodeParsePipeline extends ParsePipeline<Map<String, Object>> {
   private final PipelineNodeCache<Path, ImmutableSet<Map<String, Object>>> cache;
   private final ListeningExecutorService executorService;
   private final ProjectBuildFileParserPool projectBuildFileParserPool;
+  private final PersistentRawNodeCache persistentCache;
 
   public RawNodeParsePipeline(
       Cache<Path, ImmutableSet<Map<String, Object>>> cache,
       ProjectBuildFileParserPool projectBuildFileParserPool,
       ListeningExecutorService executorService) {
+    this(
+        cache,
+        projectBuildFileParserPool,
+        executorService,
+        new PersistentRawNodeCache(cell -> Optional.empty()));
+  }
+
+  RawNodeParsePipeline(
+      Cache<Path, ImmutableSet<Map<String, Object>>> cache,
+      ProjectBuildFileParserPool projectBuildFileParserPool,
+      ListeningExecutorService executorService,
+      PersistentRawNodeCache persistentCache) {
     super();
     this.executorService = executorService;
     this.cache = new PipelineNodeCache<>(cache);
     this.projectBuildFileParserPool = projectBuildFileParserPool;
+    this.persistentCache = persistentCache;
   }
 
   /**
@@ -99,8 +113,13 @@ public class RawNodeParsePipeline extends ParsePipeline<Map<String, Object>> {
             return Futures.immediateCancelledFuture();
           }
 
-          return projectBuildFileParserPool.getAllRulesAndMetaRules(
-              cell, buildFile, processedBytes, executorService);
+          return persistentCache.getAllRulesAndMetaRules(
+              cell,
+              buildFile,
+              () ->
+                  projectBuildFileParserPool.getAllRulesAndMetaRules(
+                      cell, buildFile, processedBytes, executorService),
+              executorService);
         });
   }
 
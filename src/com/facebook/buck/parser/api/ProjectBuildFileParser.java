@@ -21,6 +21,7 @@ import com.google.common.collect.ImmutableList;
 import java.io.IOException;
 import java.nio.file.Path;
 import java.util.Map;
+import java.util.Optional;
 import java.util.concurrent.atomic.AtomicLong;
 
 /** Parses buck build files (usually BUCK files) and retrieve rule information from them. */
@@ -47,6 +48,14 @@ public interface ProjectBuildFileParser extends AutoCloseable {
   /** Reports profile information captured while parsing build files. */
   void reportProfile() throws IOException;
 
+  /**
+   * @return the resident memory of the processes the parser runs build files in, for parsers that
+   *     run them in other processes.
+   */
+  default Optional<Long> getResidentMemoryBytes() {
+    return Optional.empty();
+  }
+
   @Override
   void close() throws BuildFileParseException, InterruptedException, IOException;
 }
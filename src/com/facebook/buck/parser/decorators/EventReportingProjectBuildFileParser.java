@@ -25,6 +25,7 @@ import com.google.common.collect.ImmutableList;
 import java.io.IOException;
 import java.nio.file.Path;
 import java.util.Map;
+import java.util.Optional;
 import java.util.concurrent.atomic.AtomicLong;
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.GuardedBy;
@@ -83,6 +84,11 @@ public class EventReportingProjectBuildFileParser implements ProjectBuildFilePar
     delegate.reportProfile();
   }
 
+  @Override
+  public Optional<Long> getResidentMemoryBytes() {
+    return delegate.getResidentMemoryBytes();
+  }
+
   @Override
   public void close() throws BuildFileParseException, InterruptedException, IOException {
     maybePostFinishedEvent();
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.parser.events;
+
+import com.facebook.buck.event.AbstractBuckEvent;
+import com.facebook.buck.event.EventKey;
+import com.google.common.collect.ImmutableList;
+import java.nio.file.Path;
+
+/** Reports how the parsers of a cell were used, once parsing is done. */
+public class ParserPoolStatsEvent extends AbstractBuckEvent {
+  private final Path cellRoot;
+  private final int requests;
+  private final long totalQueueWaitNanos;
+  private final long maxQueueWaitNanos;
+  private final int parsersRetiredForMemory;
+  private final ImmutableList<ParserStats> parsers;
+
+  protected ParserPoolStatsEvent(
+      EventKey eventKey,
+      Path cellRoot,
+      int requests,
+      long totalQueueWaitNanos,
+      long maxQueueWaitNanos,
+      int parsersRetiredForMemory,
+      ImmutableList<ParserStats> parsers) {
+    super(eventKey);
+    this.cellRoot = cellRoot;
+    this.requests = requests;
+    this.totalQueueWaitNanos = totalQueueWaitNanos;
+    this.maxQueueWaitNanos = maxQueueWaitNanos;
+    this.parsersRetiredForMemory = parsersRetiredForMemory;
+    this.parsers = parsers;
+  }
+
+  @Override
+  public String getValueString() {
+    return String.format(
+        "%s: %d requests, %d parsers, %d ms max queue wait",
+        cellRoot, requests, parsers.size(), maxQueueWaitNanos / 1000000);
+  }
+
+  @Override
+  public String getEventName() {
+    return "ParserPoolStats";
+  }
+
+  public Path getCellRoot() {
+    return cellRoot;
+  }
+
+  /** @return how many build files were handed to the parsers. */
+  public int getRequests() {
+    return requests;
+  }
+
+  /** @return how long build files waited for a parser, in total. */
+  public long getTotalQueueWaitNanos() {
+    return totalQueueWaitNanos;
+  }
+
+  public long getMaxQueueWaitNanos() {
+    return maxQueueWaitNanos;
+  }
+
+  /** @return how many parsers were restarted because they used too much memory. */
+  public int getParsersRetiredForMemory() {
+    return parsersRetiredForMemory;
+  }
+
+  /** @return the usage of each parser created for the cell. */
+  public ImmutableList<ParserStats> getParsers() {
+    return parsers;
+  }
+
+  public static ParserPoolStatsEvent of(
+      Path cellRoot,
+      int requests,
+      long totalQueueWaitNanos,
+      long maxQueueWaitNanos,
+      int parsersRetiredForMemory,
+      ImmutableList<ParserStats> parsers) {
+    return new ParserPoolStatsEvent(
+        EventKey.unique(),
+        cellRoot,
+        requests,
+        totalQueueWaitNanos,
+        maxQueueWaitNanos,
+        parsersRetiredForMemory,
+        parsers);
+  }
+
+  /** The usage of a single parser. */
+  public static class ParserStats {
+    private final int buildFiles;
+    private final long busyNanos;
+    private final long lifetimeNanos;
+
+    public ParserStats(int buildFiles, long busyNanos, long lifetimeNanos) {
+      this.buildFiles = buildFiles;
+      this.busyNanos = busyNanos;
+      this.lifetimeNanos = lifetimeNanos;
+    }
+
+    public int getBuildFiles() {
+      return buildFiles;
+    }
+
+    public long getBusyNanos() {
+      return busyNanos;
+    }
+
+    /** @return how long the parser was around, until it was retired or parsing was done. */
+    public long getLifetimeNanos() {
+      return lifetimeNanos;
+    }
+
+    /** @return the fraction of its lifetime the parser spent parsing build files. */
+    public double getUtilization() {
+      return lifetimeNanos == 0 ? 0 : (double) busyNanos / lifetimeNanos;
+    }
+  }
+}
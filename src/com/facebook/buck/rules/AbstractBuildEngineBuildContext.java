@@ -16,6 +16,8 @@
 package com.facebook.buck.rules;
 
 import com.facebook.buck.artifact_cache.ArtifactCache;
+import com.facebook.buck.artifact_cache.config.ArtifactCompression;
+import com.facebook.buck.artifact_cache.config.ArtifactPrefetch;
 import com.facebook.buck.event.BuckEventBus;
 import com.facebook.buck.io.filesystem.ProjectFilesystem;
 import com.facebook.buck.model.BuildId;
@@ -47,6 +49,24 @@ abstract class AbstractBuildEngineBuildContext {
     return false;
   }
 
+  /** How artifacts uploaded to the {@link #getArtifactCache()} are compressed. */
+  @Value.Default
+  public ArtifactCompression getArtifactCompression() {
+    return ArtifactCompression.DEFAULT;
+  }
+
+  /** Whether, and how eagerly, artifacts are fetched from the {@link #getArtifactCache()} early. */
+  @Value.Default
+  public ArtifactPrefetch getArtifactPrefetch() {
+    return ArtifactPrefetch.DISABLED;
+  }
+
+  /** The order in which rules which are ready to build are given the build threads. */
+  @Value.Default
+  public CachingBuildEngine.RuleScheduling getRuleScheduling() {
+    return CachingBuildEngine.RuleScheduling.READY_ORDER;
+  }
+
   /**
    * Creates an {@link OnDiskBuildInfo}.
    *
@@ -0,0 +1,57 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules;
+
+import com.facebook.buck.util.immutables.BuckStyleImmutable;
+import java.util.Optional;
+import org.immutables.value.Value;
+
+/** What is known about the earlier builds of a rule, as kept by the {@link BuildRuleHistory}. */
+@Value.Immutable
+@BuckStyleImmutable
+abstract class AbstractBuildRuleStats {
+
+  /** The fully qualified name of the rule's build target. */
+  public abstract String getTarget();
+
+  /** The type of the rule, as in {@link BuildRule#getType()}. */
+  public abstract String getRuleType();
+
+  /** A moving average of how long the rule took to build locally, if it ever did. */
+  public abstract Optional<Long> getDurationMillis();
+
+  /** The size of the latest output of the rule, if it is known. */
+  public abstract Optional<Long> getOutputSizeBytes();
+
+  /** How many of the recent builds of the rule fetched it from the cache. */
+  @Value.Default
+  public int getCacheHits() {
+    return 0;
+  }
+
+  /** How many of the recent builds of the rule looked for it in the cache, but missed. */
+  @Value.Default
+  public int getCacheMisses() {
+    return 0;
+  }
+
+  /** @return the share of the recent lookups of the rule in the cache which hit, if any. */
+  public Optional<Double> getCacheHitRate() {
+    int lookups = getCacheHits() + getCacheMisses();
+    return lookups == 0 ? Optional.empty() : Optional.of(getCacheHits() / (double) lookups);
+  }
+}
@@ -45,6 +45,13 @@ abstract class AbstractCachingBuildEngineBuckConfig implements ConfigView<BuckCo
         .orElse(CachingBuildEngine.DepFiles.ENABLED);
   }
 
+  /** @return the order in which rules which are ready to build are given the build threads. */
+  public CachingBuildEngine.RuleScheduling getRuleScheduling() {
+    return getDelegate()
+        .getEnum("build", "rule_scheduling", CachingBuildEngine.RuleScheduling.class)
+        .orElse(CachingBuildEngine.RuleScheduling.READY_ORDER);
+  }
+
   /**
    * @return whether to log to console build rule failures as they happen, including rule name and
    *     error text. If false, then depending on keepGoing/verbosity settings, failures may not
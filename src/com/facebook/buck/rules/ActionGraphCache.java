@@ -59,6 +59,8 @@ public class ActionGraphCache {
   private static final Logger LOG = Logger.get(ActionGraphCache.class);
 
   private Cache<TargetGraph, ActionGraphAndResolver> previousActionGraphs;
+  private final IncrementalActionGraphGenerator incrementalActionGraphGenerator =
+      new IncrementalActionGraphGenerator();
 
   public ActionGraphCache(int maxEntries) {
     previousActionGraphs = CacheBuilder.newBuilder().maximumSize(maxEntries).build();
@@ -78,7 +80,8 @@ public class ActionGraphCache {
         ruleKeyConfiguration,
         buckConfig.getActionGraphParallelizationMode(),
         Optional.empty(),
-        buckConfig.getShouldInstrumentActionGraph());
+        buckConfig.getShouldInstrumentActionGraph(),
+        buckConfig.isIncrementalActionGraphEnabled());
   }
 
   /** Create an ActionGraph, using options extracted from a BuckConfig. */
@@ -96,7 +99,8 @@ public class ActionGraphCache {
         ruleKeyConfiguration,
         buckConfig.getActionGraphParallelizationMode(),
         ruleKeyLogger,
-        buckConfig.getShouldInstrumentActionGraph());
+        buckConfig.getShouldInstrumentActionGraph(),
+        buckConfig.isIncrementalActionGraphEnabled());
   }
 
   public ActionGraphAndResolver getActionGraph(
@@ -118,6 +122,27 @@ public class ActionGraphCache {
         shouldInstrumentGraphBuilding);
   }
 
+  public ActionGraphAndResolver getActionGraph(
+      final BuckEventBus eventBus,
+      final boolean checkActionGraphs,
+      final boolean skipActionGraphCache,
+      final TargetGraph targetGraph,
+      RuleKeyConfiguration ruleKeyConfiguration,
+      ActionGraphParallelizationMode parallelizationMode,
+      Optional<ThriftRuleKeyLogger> ruleKeyLogger,
+      final boolean shouldInstrumentGraphBuilding) {
+    return getActionGraph(
+        eventBus,
+        checkActionGraphs,
+        skipActionGraphCache,
+        targetGraph,
+        ruleKeyConfiguration,
+        parallelizationMode,
+        ruleKeyLogger,
+        shouldInstrumentGraphBuilding,
+        false);
+  }
+
   /**
    * It returns an {@link ActionGraphAndResolver}. If the {@code targetGraph} exists in the cache it
    * returns a cached version of the {@link ActionGraphAndResolver}, else returns a new one and
@@ -128,6 +153,8 @@ public class ActionGraphCache {
    *     memory. Instead, create a new {@link ActionGraph} for this request, which should be
    *     garbage-collected at the end of the request.
    * @param targetGraph the target graph that the action graph will be based on.
+   * @param incrementalActionGraph if true, a cache miss reuses the build rules of the last action
+   *     graph for the nodes that didn't change, see {@link IncrementalActionGraphGenerator}.
    * @return a {@link ActionGraphAndResolver}
    */
   public ActionGraphAndResolver getActionGraph(
@@ -138,7 +165,8 @@ public class ActionGraphCache {
       RuleKeyConfiguration ruleKeyConfiguration,
       ActionGraphParallelizationMode parallelizationMode,
       Optional<ThriftRuleKeyLogger> ruleKeyLogger,
-      final boolean shouldInstrumentGraphBuilding) {
+      final boolean shouldInstrumentGraphBuilding,
+      final boolean incrementalActionGraph) {
     ActionGraphEvent.Started started = ActionGraphEvent.started();
     eventBus.post(started);
     ActionGraphAndResolver out;
@@ -175,12 +203,16 @@ public class ActionGraphCache {
         Pair<TargetGraph, ActionGraphAndResolver> freshActionGraph =
             new Pair<TargetGraph, ActionGraphAndResolver>(
                 targetGraph,
-                createActionGraph(
-                    eventBus,
-                    new DefaultTargetNodeToBuildRuleTransformer(),
-                    targetGraph,
-                    parallelizationMode,
-                    shouldInstrumentGraphBuilding));
+                incrementalActionGraph && !skipActionGraphCache
+                    ? createActionGraphIncrementally(
+                        eventBus, targetGraph, parallelizationMode, shouldInstrumentGraphBuilding)
+                    : createActionGraph(
+                        eventBus,
+                        new DefaultTargetNodeToBuildRuleTransformer(),
+                        targetGraph,
+                        parallelizationMode,
+                        shouldInstrumentGraphBuilding,
+                        Optional.empty()));
         out = freshActionGraph.getSecond();
         if (!skipActionGraphCache) {
           LOG.info("ActionGraph cache assignment. skipActionGraphCache? %s", skipActionGraphCache);
@@ -235,18 +267,44 @@ public class ActionGraphCache {
 
     ActionGraphAndResolver actionGraph =
         createActionGraph(
-            eventBus, transformer, targetGraph, parallelizationMode, shouldInstrumentGraphBuilding);
+            eventBus,
+            transformer,
+            targetGraph,
+            parallelizationMode,
+            shouldInstrumentGraphBuilding,
+            Optional.empty());
 
     eventBus.post(ActionGraphEvent.finished(started, actionGraph.getActionGraph().getSize()));
     return actionGraph;
   }
 
+  private ActionGraphAndResolver createActionGraphIncrementally(
+      final BuckEventBus eventBus,
+      TargetGraph targetGraph,
+      ActionGraphParallelizationMode parallelizationMode,
+      final boolean shouldInstrumentGraphBuilding) {
+    try {
+      return createActionGraph(
+          eventBus,
+          new DefaultTargetNodeToBuildRuleTransformer(),
+          targetGraph,
+          parallelizationMode,
+          shouldInstrumentGraphBuilding,
+          Optional.of(incrementalActionGraphGenerator));
+    } catch (RuntimeException e) {
+      // Don't reuse the rules of a partially created action graph.
+      incrementalActionGraphGenerator.invalidate();
+      throw e;
+    }
+  }
+
   private static ActionGraphAndResolver createActionGraph(
       final BuckEventBus eventBus,
       TargetNodeToBuildRuleTransformer transformer,
       TargetGraph targetGraph,
       ActionGraphParallelizationMode parallelizationMode,
-      final boolean shouldInstrumentGraphBuilding) {
+      final boolean shouldInstrumentGraphBuilding,
+      Optional<IncrementalActionGraphGenerator> incrementalActionGraphGenerator) {
     switch (parallelizationMode) {
       case EXPERIMENT:
         parallelizationMode =
@@ -276,10 +334,15 @@ public class ActionGraphCache {
     }
     switch (parallelizationMode) {
       case ENABLED:
-        return createActionGraphInParallel(eventBus, transformer, targetGraph);
+        return createActionGraphInParallel(
+            eventBus, transformer, targetGraph, incrementalActionGraphGenerator);
       case DISABLED:
         return createActionGraphSerially(
-            eventBus, transformer, targetGraph, shouldInstrumentGraphBuilding);
+            eventBus,
+            transformer,
+            targetGraph,
+            shouldInstrumentGraphBuilding,
+            incrementalActionGraphGenerator);
       case EXPERIMENT_UNSTABLE:
       case EXPERIMENT:
         throw new AssertionError(
@@ -291,13 +354,17 @@ public class ActionGraphCache {
   private static ActionGraphAndResolver createActionGraphInParallel(
       final BuckEventBus eventBus,
       TargetNodeToBuildRuleTransformer transformer,
-      TargetGraph targetGraph) {
+      TargetGraph targetGraph,
+      Optional<IncrementalActionGraphGenerator> incrementalActionGraphGenerator) {
     // TODO(yiding): inject the pool or allow parallelism to be configured.
     ForkJoinPool pool =
         MostExecutors.forkJoinPoolWithThreadLimit(Runtime.getRuntime().availableProcessors(), 16);
     try {
       BuildRuleResolver resolver =
           new MultiThreadedBuildRuleResolver(pool, targetGraph, transformer, eventBus);
+      incrementalActionGraphGenerator.ifPresent(
+          generator ->
+              generator.populateRuleResolverWithCachedRules(eventBus, targetGraph, resolver));
       HashMap<BuildTarget, CompletableFuture<BuildRule>> futures = new HashMap<>();
 
       new AbstractBottomUpTraversal<TargetNode<?, ?>, RuntimeException>(targetGraph) {
@@ -340,9 +407,13 @@ public class ActionGraphCache {
       final BuckEventBus eventBus,
       TargetNodeToBuildRuleTransformer transformer,
       TargetGraph targetGraph,
-      final boolean shouldInstrumentGraphBuilding) {
+      final boolean shouldInstrumentGraphBuilding,
+      Optional<IncrementalActionGraphGenerator> incrementalActionGraphGenerator) {
     BuildRuleResolver resolver =
         new SingleThreadedBuildRuleResolver(targetGraph, transformer, eventBus);
+    incrementalActionGraphGenerator.ifPresent(
+        generator ->
+            generator.populateRuleResolverWithCachedRules(eventBus, targetGraph, resolver));
     new AbstractBottomUpTraversal<TargetNode<?, ?>, RuntimeException>(targetGraph) {
       @Override
       public void visit(TargetNode<?, ?> node) {
@@ -419,7 +490,8 @@ public class ActionGraphCache {
                   new DefaultTargetNodeToBuildRuleTransformer(),
                   targetGraph,
                   parallelizationMode,
-                  shouldInstrumentGraphBuilding));
+                  shouldInstrumentGraphBuilding,
+                  Optional.empty()));
 
       Map<BuildRule, RuleKey> lastActionGraphRuleKeys =
           getRuleKeysFromBuildRules(
@@ -459,5 +531,6 @@ public class ActionGraphCache {
 
   private void invalidateCache() {
     previousActionGraphs.invalidateAll();
+    incrementalActionGraphGenerator.invalidate();
   }
 }
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules;
+
+import com.facebook.buck.artifact_cache.ArtifactCodecs;
+import com.facebook.buck.artifact_cache.CacheResult;
+import com.facebook.buck.artifact_cache.PrefetchingArtifactCache;
+import com.facebook.buck.artifact_cache.config.ArtifactCompressionCodec;
+import com.facebook.buck.event.BuckEventBus;
+import com.facebook.buck.log.Logger;
+import com.facebook.buck.rules.CachingBuildEngine.BuildMode;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import java.io.Closeable;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import javax.annotation.Nullable;
+
+/**
+ * Walks the action graph ahead of the {@link CachingBuildEngine}, prefetching the artifacts of the
+ * rules it is likely to fetch from the cache.
+ *
+ * <p>The walk follows the rules the engine would: the build deps of a rule are only walked if its
+ * own artifact isn't going to be fetched, and the runtime deps are always walked. Only the default
+ * rule key of a rule is prefetched, since the other keys need the outputs of its deps.
+ */
+class ArtifactPrefetcher implements Closeable {
+
+  private static final Logger LOG = Logger.get(ArtifactPrefetcher.class);
+
+  private final PrefetchingArtifactCache cache;
+  private final ArtifactCompressionCodec codec;
+  private final ParallelRuleKeyCalculator<RuleKey> ruleKeyCalculator;
+  private final RuleDepsCache ruleDeps;
+  private final BuildMode buildMode;
+  private final RemoteBuildRuleCompletionWaiter remoteBuildRuleCompletionWaiter;
+  private final Function<BuildRule, Optional<RuleKey>> onDiskRuleKeys;
+  private final BooleanSupplier shouldKeepGoing;
+  private final BuckEventBus eventBus;
+  private final Executor executor;
+  private final Set<BuildRule> seen = Sets.newConcurrentHashSet();
+
+  ArtifactPrefetcher(
+      PrefetchingArtifactCache cache,
+      ArtifactCompressionCodec codec,
+      ParallelRuleKeyCalculator<RuleKey> ruleKeyCalculator,
+      RuleDepsCache ruleDeps,
+      BuildMode buildMode,
+      RemoteBuildRuleCompletionWaiter remoteBuildRuleCompletionWaiter,
+      Function<BuildRule, Optional<RuleKey>> onDiskRuleKeys,
+      BooleanSupplier shouldKeepGoing,
+      BuckEventBus eventBus,
+      Executor executor) {
+    this.cache = cache;
+    this.codec = codec;
+    this.ruleKeyCalculator = ruleKeyCalculator;
+    this.ruleDeps = ruleDeps;
+    this.buildMode = buildMode;
+    this.remoteBuildRuleCompletionWaiter = remoteBuildRuleCompletionWaiter;
+    this.onDiskRuleKeys = onDiskRuleKeys;
+    this.shouldKeepGoing = shouldKeepGoing;
+    this.eventBus = eventBus;
+    this.executor = executor;
+  }
+
+  /** @return the cache through which the engine should fetch, to use the prefetched artifacts. */
+  PrefetchingArtifactCache getCache() {
+    return cache;
+  }
+
+  /** Starts prefetching the artifacts of {@code rule} and its deps, unless it already has. */
+  void prefetch(BuildRule rule) {
+    if (!seen.add(rule) || !shouldKeepGoing.getAsBoolean()) {
+      return;
+    }
+    if (!rule.isCacheable()) {
+      prefetchDeps(rule, /* buildDeps */ true);
+      return;
+    }
+    ListenableFuture<RuleKey> ruleKey =
+        Futures.transformAsync(
+            remoteBuildRuleCompletionWaiter.waitForBuildRuleToFinishRemotely(rule),
+            ignored -> ruleKeyCalculator.calculate(eventBus, rule),
+            executor);
+    onSuccess(ruleKey, key -> prefetch(rule, key));
+  }
+
+  private void prefetch(BuildRule rule, RuleKey ruleKey) {
+    if (onDiskRuleKeys.apply(rule).equals(Optional.of(ruleKey))) {
+      // The engine won't look at the cache, nor at the build deps.
+      prefetchDeps(rule, /* buildDeps */ false);
+      return;
+    }
+    ListenableFuture<CacheResult> result =
+        cache.prefetch(ArtifactCodecs.getArtifactKey(ruleKey, codec));
+    if (buildMode == BuildMode.DEEP || buildMode == BuildMode.POPULATE_FROM_REMOTE_CACHE) {
+      // These modes fetch every dep regardless.
+      prefetchDeps(rule, /* buildDeps */ true);
+      return;
+    }
+    onSuccess(result, cacheResult -> prefetchDeps(rule, !cacheResult.getType().isSuccess()));
+  }
+
+  private void prefetchDeps(BuildRule rule, boolean buildDeps) {
+    Iterable<BuildRule> deps =
+        buildDeps ? ruleDeps.get(rule) : Sets.difference(ruleDeps.get(rule), rule.getBuildDeps());
+    for (BuildRule dep : deps) {
+      executor.execute(() -> prefetch(dep));
+    }
+  }
+
+  private <T> void onSuccess(ListenableFuture<T> future, Consumer<T> callback) {
+    Futures.addCallback(
+        future,
+        new FutureCallback<T>() {
+          @Override
+          public void onSuccess(@Nullable T result) {
+            if (result != null) {
+              callback.accept(result);
+            }
+          }
+
+          @Override
+          public void onFailure(Throwable t) {
+            // Prefetching is only an optimization, the build will report the failure itself.
+            LOG.debug(t, "Stopped prefetching.");
+          }
+        },
+        executor);
+  }
+
+  @Override
+  public void close() {
+    cache.close();
+  }
+}
@@ -18,6 +18,7 @@ package com.facebook.buck.rules;
 
 import com.facebook.buck.artifact_cache.ArtifactCache;
 import com.facebook.buck.artifact_cache.ArtifactUploader;
+import com.facebook.buck.artifact_cache.config.ArtifactCompression;
 import com.facebook.buck.event.BuckEventBus;
 import com.facebook.buck.io.filesystem.ProjectFilesystem;
 import com.facebook.buck.log.Logger;
@@ -263,12 +264,14 @@ public class BuildInfoRecorder {
   }
 
   /**
-   * Creates a zip file of the metadata and recorded artifacts and stores it in the artifact cache.
+   * Creates a zip file of the metadata and recorded artifacts, compressed with {@code
+   * compression}, and stores it in the artifact cache.
    */
   public ListenableFuture<Void> performUploadToArtifactCache(
       final ImmutableSet<RuleKey> ruleKeys,
       ArtifactCache artifactCache,
-      final BuckEventBus eventBus) {
+      final BuckEventBus eventBus,
+      ArtifactCompression compression) {
     // Skip all of this if caching is disabled. Although artifactCache.store() will be a noop,
     // building up the zip is wasted I/O.
     if (!artifactCache.getCacheReadMode().isWritable()) {
@@ -291,7 +294,8 @@ public class BuildInfoRecorder {
         buildMetadata,
         pathsToIncludeInZip,
         buildTarget,
-        projectFilesystem);
+        projectFilesystem,
+        compression);
   }
 
   /** @param pathToArtifact Relative path to the project root. */
@@ -17,20 +17,47 @@
 package com.facebook.buck.rules;
 
 import com.facebook.buck.io.filesystem.ProjectFilesystem;
+import com.facebook.buck.log.Logger;
 import java.io.IOException;
 import java.nio.file.Path;
 import java.util.Optional;
 import java.util.concurrent.ConcurrentHashMap;
 
-/** Manages the lifetimes of all {@link BuildInfoStore}s used in the build. */
+/**
+ * Manages the lifetimes of all {@link BuildInfoStore}s used in the build, and of the {@link
+ * BuildRuleHistory} it adds to.
+ */
 public class BuildInfoStoreManager implements AutoCloseable {
+  private static final Logger LOG = Logger.get(BuildInfoStoreManager.class);
+
   private final ConcurrentHashMap<Path, BuildInfoStore> buildInfoStores = new ConcurrentHashMap<>();
+  private final Optional<BuildRuleHistory> buildRuleHistory;
+
+  public BuildInfoStoreManager() {
+    this(Optional.empty());
+  }
+
+  public BuildInfoStoreManager(Optional<BuildRuleHistory> buildRuleHistory) {
+    this.buildRuleHistory = buildRuleHistory;
+  }
 
   @Override
   public void close() {
     for (BuildInfoStore store : buildInfoStores.values()) {
       store.close();
     }
+    if (buildRuleHistory.isPresent()) {
+      try {
+        buildRuleHistory.get().save();
+      } catch (IOException e) {
+        LOG.warn(e, "Failed to save the build rule history.");
+      }
+    }
+  }
+
+  /** @return how long the rules of the build are expected to take, if it is known. */
+  public Optional<BuildRuleDurationEstimates> getDurationEstimates() {
+    return buildRuleHistory.map(history -> history);
   }
 
   public BuildInfoStore get(
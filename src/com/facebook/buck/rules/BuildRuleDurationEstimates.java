@@ -0,0 +1,26 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules;
+
+import java.util.Optional;
+
+/** Tells how long build rules are expected to take to build locally. */
+public interface BuildRuleDurationEstimates {
+
+  /** @return how long {@code rule} is expected to take to build, if there is any estimate. */
+  Optional<Long> getExpectedDurationMillis(BuildRule rule);
+}
@@ -0,0 +1,301 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules;
+
+import com.facebook.buck.artifact_cache.CacheResultType;
+import com.facebook.buck.io.filesystem.ProjectFilesystem;
+import com.facebook.buck.model.BuildTarget;
+import com.facebook.buck.model.Pair;
+import com.facebook.buck.util.recordlog.RecordLog;
+import com.facebook.buck.util.recordlog.RecordLogMap;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+import com.google.common.eventbus.Subscribe;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import javax.annotation.Nullable;
+
+/**
+ * Statistics of the earlier builds of each rule, kept on disk between commands: how long the rule
+ * takes to build locally, how large its output is and how often it is found in the cache.
+ *
+ * <p>The history listens for {@link BuildRuleEvent.Finished} and is updated in memory, which only
+ * costs a map update per rule. {@link #save()} appends the updated statistics to a {@link
+ * RecordLogMap} under {@code buck-out/build_history}.
+ *
+ * <p>Durations are moving averages over the recent local builds of a rule, so that they follow
+ * the rule as it changes without being thrown off by a single slow build, and the cache lookups
+ * are counted over the recent builds only.
+ */
+public class BuildRuleHistory implements BuildRuleDurationEstimates {
+
+  private static final int MAGIC = 0x42524848;
+  private static final int VERSION = 2;
+  private static final int MAX_RECORD_SIZE_BYTES = 64 * 1024;
+  // The weight of the latest build in the moving average of the durations.
+  private static final double SMOOTHING_FACTOR = 0.3;
+  // The cache lookups are halved when there are more of them, so the older ones count less.
+  private static final int MAX_CACHE_LOOKUPS = 64;
+
+  // Keyed by the target and the type of the rule: when the definition of a target changes to a rule
+  // of another type, the statistics of the old rule say nothing about the new one.
+  private final RecordLogMap<Pair<String, String>, BuildRuleStats> stats;
+  private final Map<String, DurationTotal> durationTotalsByType = new ConcurrentHashMap<>();
+  private final DurationTotal durationTotal = new DurationTotal();
+
+  // Whether the durations of the loaded statistics have been added to the totals.
+  private volatile boolean totalsLoaded = false;
+
+  public BuildRuleHistory(ProjectFilesystem filesystem, Path historyPath) {
+    this.stats =
+        new RecordLogMap<>(
+            new RecordLog(
+                filesystem,
+                historyPath,
+                "build rule history",
+                MAGIC,
+                VERSION,
+                MAX_RECORD_SIZE_BYTES),
+            new Codec());
+  }
+
+  /** Creates the history of the builds in the cell with the given {@code filesystem}. */
+  public static BuildRuleHistory forFilesystem(ProjectFilesystem filesystem) {
+    return new BuildRuleHistory(
+        filesystem, filesystem.getBuckPaths().getBuildHistoryDir().resolve("rules"));
+  }
+
+  /**
+   * @return the statistics of the earlier builds of {@code target} by a rule of {@code ruleType},
+   *     if there were some.
+   */
+  public Optional<BuildRuleStats> getStats(BuildTarget target, String ruleType) {
+    return Optional.ofNullable(
+        getAllStats().get(new Pair<>(target.getFullyQualifiedName(), ruleType)));
+  }
+
+  /**
+   * @return how long {@code rule} is expected to take to build locally: how long it took before or,
+   *     if it was never built locally, how long the rules of its type take on average.
+   */
+  @Override
+  public Optional<Long> getExpectedDurationMillis(BuildRule rule) {
+    Optional<Long> duration =
+        getStats(rule.getBuildTarget(), rule.getType())
+            .flatMap(BuildRuleStats::getDurationMillis);
+    return duration.isPresent() ? duration : getAverageDurationMillis(rule.getType());
+  }
+
+  /** @return how long the rules of {@code ruleType} take to build locally, on average. */
+  public Optional<Long> getAverageDurationMillis(String ruleType) {
+    getAllStats();
+    DurationTotal total = durationTotalsByType.get(ruleType);
+    return total == null ? Optional.empty() : total.getAverage();
+  }
+
+  /** @return how long rules take to build locally, on average. */
+  public Optional<Long> getAverageDurationMillis() {
+    getAllStats();
+    return durationTotal.getAverage();
+  }
+
+  /** @return the {@code count} rules which take longest to build locally, slowest first. */
+  public ImmutableList<BuildRuleStats> getSlowestRules(int count) {
+    return getAllStats()
+        .asMap()
+        .values()
+        .stream()
+        .filter(ruleStats -> ruleStats.getDurationMillis().isPresent())
+        .sorted(
+            Comparator.comparing((BuildRuleStats ruleStats) -> ruleStats.getDurationMillis().get())
+                .reversed())
+        .limit(count)
+        .collect(ImmutableList.toImmutableList());
+  }
+
+  /** Records the outcome of a build of a rule. */
+  @Subscribe
+  public void buildRuleFinished(BuildRuleEvent.Finished finished) {
+    if (finished.getStatus() == BuildRuleStatus.CANCELED) {
+      return;
+    }
+    BuildRule rule = finished.getBuildRule();
+    Optional<Long> localDurationMillis =
+        finished.getSuccessType().orElse(null) == BuildRuleSuccessType.BUILT_LOCALLY
+            ? Optional.of(finished.getDuration().getWallMillisDuration())
+            : Optional.empty();
+    record(
+        rule.getBuildTarget(),
+        rule.getType(),
+        localDurationMillis,
+        finished.getOutputSize(),
+        finished.getCacheResult().getType());
+  }
+
+  @VisibleForTesting
+  public void record(
+      BuildTarget target,
+      String ruleType,
+      Optional<Long> localDurationMillis,
+      Optional<Long> outputSizeBytes,
+      CacheResultType cacheResultType) {
+    getAllStats()
+        .compute(
+            new Pair<>(target.getFullyQualifiedName(), ruleType),
+            (ignored, previous) -> {
+              BuildRuleStats.Builder builder =
+                  BuildRuleStats.builder()
+                      .setTarget(target.getFullyQualifiedName())
+                      .setRuleType(ruleType);
+              int hits = 0;
+              int misses = 0;
+              Optional<Long> duration = Optional.empty();
+              if (previous != null) {
+                builder.from(previous);
+                hits = previous.getCacheHits();
+                misses = previous.getCacheMisses();
+                duration = previous.getDurationMillis();
+              }
+              if (localDurationMillis.isPresent()) {
+                long latest = localDurationMillis.get();
+                duration =
+                    Optional.of(
+                        duration
+                            .map(
+                                average ->
+                                    Math.round(average + SMOOTHING_FACTOR * (latest - average)))
+                            .orElse(latest));
+                builder.setDurationMillis(duration);
+              }
+              if (cacheResultType == CacheResultType.HIT) {
+                hits++;
+              } else if (cacheResultType == CacheResultType.MISS) {
+                misses++;
+              }
+              if (hits + misses > MAX_CACHE_LOOKUPS) {
+                hits /= 2;
+                misses /= 2;
+              }
+              builder.setCacheHits(hits).setCacheMisses(misses);
+              if (outputSizeBytes.isPresent()) {
+                builder.setOutputSizeBytes(outputSizeBytes);
+              }
+              BuildRuleStats updated = builder.build();
+              updateDurationTotals(previous, updated);
+              return updated;
+            });
+  }
+
+  /** Appends the statistics updated since they were loaded or saved to the log. */
+  public void save() throws IOException {
+    stats.save();
+  }
+
+  @VisibleForTesting
+  int size() {
+    return stats.size();
+  }
+
+  private RecordLogMap<Pair<String, String>, BuildRuleStats> getAllStats() {
+    if (!totalsLoaded) {
+      synchronized (this) {
+        if (!totalsLoaded) {
+          for (BuildRuleStats ruleStats : stats.asMap().values()) {
+            updateDurationTotals(null, ruleStats);
+          }
+          totalsLoaded = true;
+        }
+      }
+    }
+    return stats;
+  }
+
+  private void updateDurationTotals(@Nullable BuildRuleStats previous, BuildRuleStats updated) {
+    if (previous != null && previous.getDurationMillis().isPresent()) {
+      long millis = previous.getDurationMillis().get();
+      getDurationTotal(previous.getRuleType()).add(-millis, -1);
+      durationTotal.add(-millis, -1);
+    }
+    if (updated.getDurationMillis().isPresent()) {
+      long millis = updated.getDurationMillis().get();
+      getDurationTotal(updated.getRuleType()).add(millis, 1);
+      durationTotal.add(millis, 1);
+    }
+  }
+
+  private DurationTotal getDurationTotal(String ruleType) {
+    return durationTotalsByType.computeIfAbsent(ruleType, type -> new DurationTotal());
+  }
+
+  private static class Codec implements RecordLogMap.Codec<Pair<String, String>, BuildRuleStats> {
+    @Override
+    public void write(Pair<String, String> key, BuildRuleStats ruleStats, DataOutputStream out)
+        throws IOException {
+      out.writeUTF(ruleStats.getTarget());
+      out.writeUTF(ruleStats.getRuleType());
+      out.writeLong(ruleStats.getDurationMillis().orElse(-1L));
+      out.writeLong(ruleStats.getOutputSizeBytes().orElse(-1L));
+      out.writeInt(ruleStats.getCacheHits());
+      out.writeInt(ruleStats.getCacheMisses());
+    }
+
+    @Override
+    public Map.Entry<Pair<String, String>, BuildRuleStats> read(DataInputStream in)
+        throws IOException {
+      String target = in.readUTF();
+      String ruleType = in.readUTF();
+      long durationMillis = in.readLong();
+      long outputSizeBytes = in.readLong();
+      return Maps.immutableEntry(
+          new Pair<>(target, ruleType),
+          BuildRuleStats.builder()
+              .setTarget(target)
+              .setRuleType(ruleType)
+              .setDurationMillis(
+                  durationMillis < 0 ? Optional.empty() : Optional.of(durationMillis))
+              .setOutputSizeBytes(
+                  outputSizeBytes < 0 ? Optional.empty() : Optional.of(outputSizeBytes))
+              .setCacheHits(in.readInt())
+              .setCacheMisses(in.readInt())
+              .build());
+    }
+  }
+
+  /** The sum and number of the durations of some rules. */
+  private static class DurationTotal {
+    private final LongAdder sumMillis = new LongAdder();
+    private final LongAdder count = new LongAdder();
+
+    private void add(long millis, int rules) {
+      sumMillis.add(millis);
+      count.add(rules);
+    }
+
+    private Optional<Long> getAverage() {
+      long rules = count.sum();
+      return rules <= 0 ? Optional.empty() : Optional.of(sumMillis.sum() / rules);
+    }
+  }
+}
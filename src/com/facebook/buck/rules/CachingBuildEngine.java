@@ -18,8 +18,12 @@ package com.facebook.buck.rules;
 
 import com.facebook.buck.artifact_cache.ArtifactCache;
 import com.facebook.buck.artifact_cache.CacheResult;
+import com.facebook.buck.artifact_cache.PrefetchingArtifactCache;
+import com.facebook.buck.artifact_cache.config.ArtifactPrefetch;
 import com.facebook.buck.event.BuckEventBus;
 import com.facebook.buck.event.RuleKeyCalculationEvent;
+import com.facebook.buck.io.filesystem.ProjectFilesystem;
+import com.facebook.buck.model.BuildId;
 import com.facebook.buck.model.BuildTarget;
 import com.facebook.buck.rules.keys.RuleKeyAndInputs;
 import com.facebook.buck.rules.keys.RuleKeyDiagnostics;
@@ -57,6 +61,7 @@ import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
 import java.util.stream.Stream;
 import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
 
 /**
  * A build engine used to build a {@link BuildRule} which also caches the results. If the current
@@ -109,6 +114,16 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
     SQLITE,
   }
 
+  /** The order in which rules which are ready to build are given the build threads. */
+  public enum RuleScheduling {
+    // In the order the rules become ready.
+    READY_ORDER,
+
+    // Rules with the longest chains of rules left after them first, estimated from the durations of
+    // earlier builds.
+    CRITICAL_PATH,
+  }
+
   /**
    * These are the values returned by {@link BuildEngine#build(BuildEngineBuildContext,
    * ExecutionContext, BuildRule)}. This must always return the same value for the build of each
@@ -151,6 +166,18 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
 
   private final RemoteBuildRuleCompletionWaiter remoteBuildRuleCompletionWaiter;
 
+  // The prefetcher of the latest build which enables prefetching, and the id of that build.
+  @GuardedBy("this")
+  @Nullable
+  private ArtifactPrefetcher artifactPrefetcher;
+
+  @GuardedBy("this")
+  @Nullable
+  private BuildId artifactPrefetcherBuildId;
+
+  // Created by the first build which schedules by critical path.
+  @Nullable private volatile CriticalPathScheduler criticalPathScheduler;
+
   public CachingBuildEngine(
       CachingBuildEngineDelegate cachingBuildEngineDelegate,
       WeightedListeningExecutorService service,
@@ -271,6 +298,12 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
 
   @Override
   public void close() {
+    synchronized (this) {
+      if (artifactPrefetcher != null) {
+        artifactPrefetcher.close();
+        artifactPrefetcher = null;
+      }
+    }
     try {
       Futures.allAsList(asyncCallbacks).get();
     } catch (InterruptedException e) {
@@ -469,11 +502,78 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
     // Keep track of all jobs that run asynchronously with respect to the build dep chain.  We want
     // to make sure we wait for these before calling yielding the final build result.
     registerTopLevelRule(rule, buildContext.getEventBus());
+    CriticalPathScheduler scheduler = getCriticalPathScheduler(buildContext);
+    if (scheduler != null) {
+      scheduler.registerTopLevelRule(rule, buildContext.getEventBus());
+    }
+    ArtifactPrefetcher prefetcher =
+        getArtifactPrefetcher(buildContext, rule.getProjectFilesystem());
+    if (prefetcher != null) {
+      buildContext = buildContext.withArtifactCache(prefetcher.getCache());
+      prefetcher.prefetch(rule);
+    }
     ListenableFuture<BuildResult> resultFuture =
         getBuildRuleResultWithRuntimeDeps(rule, buildContext, executionContext);
     return BuildEngineResult.builder().setResult(resultFuture).build();
   }
 
+  /**
+   * @return the prefetcher of the build of {@code buildContext}, or null if it doesn't prefetch.
+   *     Each build gets a prefetcher of its own, since it fetches through the build's cache.
+   */
+  @Nullable
+  private synchronized ArtifactPrefetcher getArtifactPrefetcher(
+      BuildEngineBuildContext buildContext, ProjectFilesystem filesystem) {
+    ArtifactPrefetch config = buildContext.getArtifactPrefetch();
+    if (!config.isEnabled()) {
+      return null;
+    }
+    if (artifactPrefetcher != null) {
+      if (buildContext.getBuildId().equals(artifactPrefetcherBuildId)) {
+        return artifactPrefetcher;
+      }
+      // The previous build is over, so nobody will ask for what it prefetched.
+      artifactPrefetcher.close();
+    }
+    artifactPrefetcher =
+        new ArtifactPrefetcher(
+            new PrefetchingArtifactCache(
+                buildContext.getArtifactCache(), filesystem, buildContext.getEventBus(), config),
+            buildContext.getArtifactCompression().getCodec(),
+            ruleKeyCalculator,
+            ruleDeps,
+            buildMode,
+            remoteBuildRuleCompletionWaiter,
+            rule ->
+                buildContext
+                    .createOnDiskBuildInfoFor(
+                        rule.getBuildTarget(),
+                        rule.getProjectFilesystem(),
+                        buildInfoStoreManager.get(rule.getProjectFilesystem(), metadataStorage))
+                    .getRuleKey(BuildInfo.MetadataKey.RULE_KEY),
+            () -> shouldKeepGoing(buildContext),
+            buildContext.getEventBus(),
+            serviceByAdjustingDefaultWeightsTo(SCHEDULING_MORE_WORK_RESOURCE_AMOUNTS));
+    artifactPrefetcherBuildId = buildContext.getBuildId();
+    return artifactPrefetcher;
+  }
+
+  @Nullable
+  private CriticalPathScheduler getCriticalPathScheduler(BuildEngineBuildContext buildContext) {
+    if (buildContext.getRuleScheduling() != RuleScheduling.CRITICAL_PATH) {
+      return null;
+    }
+    if (criticalPathScheduler == null) {
+      synchronized (this) {
+        if (criticalPathScheduler == null) {
+          criticalPathScheduler =
+              new CriticalPathScheduler(ruleDeps, buildInfoStoreManager.getDurationEstimates());
+        }
+      }
+    }
+    return criticalPathScheduler;
+  }
+
   @Nullable
   @Override
   public BuildResult getBuildRuleResult(BuildTarget buildTarget)
@@ -540,7 +640,7 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
             pathResolver,
             resourceAwareSchedulingInfo,
             ruleKeyFactories,
-            service,
+            getServiceForRule(rule),
             stepRunner,
             this.ruleDeps,
             rule,
@@ -554,6 +654,11 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
         .build();
   }
 
+  private WeightedListeningExecutorService getServiceForRule(BuildRule rule) {
+    CriticalPathScheduler scheduler = criticalPathScheduler;
+    return scheduler == null ? service : service.withPriority(scheduler.getPriority(rule));
+  }
+
   public static class DefaultBuildRuleBuilderDelegate
       implements CachingBuildRuleBuilder.BuildRuleBuilderDelegate {
     private final CachingBuildEngine cachingBuildEngine;
@@ -597,6 +702,11 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
       return cachingBuildEngine.firstFailure;
     }
 
+    @Override
+    public void onRuleDepsAboutToBeBuilt(BuildRule rule) {
+      cachingBuildEngine.cachingBuildEngineDelegate.onRuleDepsAboutToBeBuilt(rule);
+    }
+
     @Override
     public void onRuleAboutToBeBuilt(BuildRule rule) {
       cachingBuildEngine.cachingBuildEngineDelegate.onRuleAboutToBeBuilt(rule);
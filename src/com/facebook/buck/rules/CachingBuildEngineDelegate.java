@@ -23,6 +23,14 @@ public interface CachingBuildEngineDelegate {
 
   FileHashCache getFileHashCache();
 
+  /**
+   * Called when the rule missed the cache and its deps are about to be built. The rule is likely to
+   * be built once they are, so this is when its direct inputs can start being fetched.
+   *
+   * @param buildRule rule whose deps are about to be built.
+   */
+  default void onRuleDepsAboutToBeBuilt(BuildRule buildRule) {}
+
   /**
    * Called right before the rule is going to be built. This is when direct inputs to the rule would
    * get materialized on disk.
@@ -17,12 +17,16 @@
 package com.facebook.buck.rules;
 
 import com.facebook.buck.artifact_cache.ArtifactCache;
+import com.facebook.buck.artifact_cache.ArtifactCodecs;
 import com.facebook.buck.artifact_cache.ArtifactInfo;
+import com.facebook.buck.artifact_cache.ArtifactPayloadConsumer;
 import com.facebook.buck.artifact_cache.ArtifactUploader;
 import com.facebook.buck.artifact_cache.CacheResult;
 import com.facebook.buck.artifact_cache.CacheResultType;
 import com.facebook.buck.artifact_cache.RuleKeyCacheResult;
 import com.facebook.buck.artifact_cache.RuleKeyCacheResultEvent;
+import com.facebook.buck.artifact_cache.config.ArtifactCompression;
+import com.facebook.buck.artifact_cache.config.ArtifactCompressionCodec;
 import com.facebook.buck.event.ArtifactCompressionEvent;
 import com.facebook.buck.event.BuckEventBus;
 import com.facebook.buck.event.ConsoleEvent;
@@ -62,6 +66,7 @@ import com.facebook.buck.util.concurrent.MoreFutures;
 import com.facebook.buck.util.concurrent.ResourceAmounts;
 import com.facebook.buck.util.concurrent.WeightedListeningExecutorService;
 import com.facebook.buck.util.exceptions.BuckUncheckedExecutionException;
+import com.facebook.buck.util.zip.StagedZip;
 import com.facebook.buck.util.zip.Unzip;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
@@ -97,7 +102,6 @@ import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Supplier;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
-import java.util.zip.ZipFile;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 
@@ -129,6 +133,7 @@ class CachingBuildRuleBuilder {
   private final BuckEventBus eventBus;
   private final BuildContext buildRuleBuildContext;
   private final ArtifactCache artifactCache;
+  private final ArtifactCompression artifactCompression;
   private final BuildId buildId;
   private final RemoteBuildRuleCompletionWaiter remoteBuildRuleCompletionWaiter;
   private final Set<String> depsWithCacheMiss = Collections.synchronizedSet(new HashSet<>());
@@ -208,6 +213,7 @@ class CachingBuildRuleBuilder {
     this.eventBus = buildContext.getEventBus();
     this.buildRuleBuildContext = buildContext.getBuildContext();
     this.artifactCache = buildContext.getArtifactCache();
+    this.artifactCompression = buildContext.getArtifactCompression();
     this.buildId = buildContext.getBuildId();
     this.remoteBuildRuleCompletionWaiter = remoteBuildRuleCompletionWaiter;
     this.buildRuleScopeManager = new BuildRuleScopeManager();
@@ -716,7 +722,8 @@ class CachingBuildRuleBuilder {
               onDiskBuildInfo.getMetadataForArtifact(),
               onDiskBuildInfo.getPathsForArtifact(),
               rule.getBuildTarget(),
-              rule.getProjectFilesystem());
+              rule.getProjectFilesystem(),
+              artifactCompression);
     } catch (Throwable t) {
       eventBus.post(ThrowableConsoleEvent.create(t, "Error uploading to cache for %s.", rule));
     }
@@ -886,6 +893,7 @@ class CachingBuildRuleBuilder {
                     Preconditions.checkNotNull(rulekeyCacheResult.get()));
               }
 
+              buildRuleBuilderDelegate.onRuleDepsAboutToBeBuilt(rule);
               return Futures.transformAsync(
                   buildRuleBuilderDelegate.getDepResults(rule, executionContext),
                   (depResults) -> handleDepsResults(depResults),
@@ -1090,22 +1098,46 @@ class CachingBuildRuleBuilder {
     }
 
     // Create a temp file whose extension must be ".zip" for Filesystems.newFileSystem() to infer
-    // that we are creating a zip-based FileSystem.
+    // that we are creating a zip-based FileSystem. Caches which can stream artifacts never create
+    // it.
+    final AtomicReference<Path> zipPath = new AtomicReference<>();
     final LazyPath lazyZipPath =
         new LazyPath() {
           @Override
           protected Path create() throws IOException {
-            return Files.createTempFile(
-                "buck_artifact_" + MoreFiles.sanitize(rule.getBuildTarget().getShortName()),
-                ".zip");
+            zipPath.set(
+                Files.createTempFile(
+                    "buck_artifact_" + MoreFiles.sanitize(rule.getBuildTarget().getShortName()),
+                    ".zip"));
+            return zipPath.get();
+          }
+        };
+
+    // Unpack the artifact into a staging directory while it is being fetched, so that it only has
+    // to be moved into place once the cache has verified it. A cache may hand over the artifact
+    // more than once, in which case only the last one is kept.
+    final AtomicReference<StagedZip> stagedArtifact = new AtomicReference<>();
+    ArtifactPayloadConsumer payloadConsumer =
+        (metadata, payload) -> {
+          closeStagedArtifact(stagedArtifact.getAndSet(null));
+          ArtifactCompressionCodec codec = ArtifactCodecs.getCodec(metadata);
+          ArtifactCompressionEvent.Started started =
+              ArtifactCompressionEvent.started(
+                  ArtifactCompressionEvent.Operation.DECOMPRESS,
+                  ImmutableSet.of(ruleKey),
+                  ArtifactCodecs.getName(codec));
+          eventBus.post(started);
+          try {
+            // The payload belongs to the cache, so the decompressing stream isn't closed here.
+            stagedArtifact.set(
+                stageArtifact(filesystem, ArtifactCodecs.decompress(codec, payload)));
+          } finally {
+            eventBus.post(ArtifactCompressionEvent.finished(started));
           }
         };
 
-    // TODO(mbolin): Change ArtifactCache.fetch() so that it returns a File instead of takes one.
-    // Then we could download directly from the remote cache into the on-disk cache and unzip it
-    // from there.
     return Futures.transformAsync(
-        fetch(artifactCache, ruleKey, lazyZipPath),
+        fetch(artifactCache, ruleKey, lazyZipPath, payloadConsumer),
         cacheResult -> {
           try (Scope ignored = buildRuleScope()) {
             // Verify that the rule key we used to fetch the artifact is one of the rule keys
@@ -1124,12 +1156,39 @@ class CachingBuildRuleBuilder {
               }
             }
 
-            return Futures.immediateFuture(
-                unzipArtifactFromCacheResult(ruleKey, lazyZipPath, filesystem, cacheResult));
+            try {
+              return Futures.immediateFuture(
+                  unzipArtifactFromCacheResult(
+                      ruleKey, stagedArtifact.get(), zipPath.get(), filesystem, cacheResult));
+            } finally {
+              closeStagedArtifact(stagedArtifact.getAndSet(null));
+            }
           }
         });
   }
 
+  private StagedZip stageArtifact(ProjectFilesystem filesystem, InputStream artifact)
+      throws IOException {
+    Path tmpDir = filesystem.resolve(filesystem.getBuckPaths().getTmpDir());
+    Files.createDirectories(tmpDir);
+    return StagedZip.stage(
+        artifact,
+        Files.createTempDirectory(
+            tmpDir,
+            "buck_artifact_" + MoreFiles.sanitize(rule.getBuildTarget().getShortName())));
+  }
+
+  private void closeStagedArtifact(@Nullable StagedZip stagedArtifact) {
+    if (stagedArtifact == null) {
+      return;
+    }
+    try {
+      stagedArtifact.close();
+    } catch (IOException e) {
+      LOG.warn(e, "%s: failed to delete staged artifact.", rule.getBuildTarget());
+    }
+  }
+
   /**
    * onOutputsWillChange() should be called once we've determined that the outputs are going to
    * change from their previous state (e.g. because we're about to build locally or unzip an
@@ -1145,8 +1204,28 @@ class CachingBuildRuleBuilder {
 
   private ListenableFuture<CacheResult> fetch(
       ArtifactCache artifactCache, RuleKey ruleKey, LazyPath outputPath) {
+    return verifyFetch(artifactCache, ruleKey, artifactCache.fetchAsync(ruleKey, outputPath));
+  }
+
+  private ListenableFuture<CacheResult> fetch(
+      ArtifactCache artifactCache,
+      RuleKey ruleKey,
+      LazyPath outputPath,
+      ArtifactPayloadConsumer payloadConsumer) {
+    // Artifacts are stored under a key of their codec's, see ArtifactCodecs#getArtifactKey.
+    return verifyFetch(
+        artifactCache,
+        ruleKey,
+        artifactCache.fetchAsync(
+            ArtifactCodecs.getArtifactKey(ruleKey, artifactCompression.getCodec()),
+            outputPath,
+            payloadConsumer));
+  }
+
+  private ListenableFuture<CacheResult> verifyFetch(
+      ArtifactCache artifactCache, RuleKey ruleKey, ListenableFuture<CacheResult> fetchResult) {
     return Futures.transform(
-        artifactCache.fetchAsync(ruleKey, outputPath),
+        fetchResult,
         (CacheResult cacheResult) -> {
           try (Scope ignored = buildRuleScope()) {
             if (cacheResult.getType() != CacheResultType.HIT) {
@@ -1185,7 +1264,11 @@ class CachingBuildRuleBuilder {
   }
 
   private CacheResult unzipArtifactFromCacheResult(
-      RuleKey ruleKey, LazyPath lazyZipPath, ProjectFilesystem filesystem, CacheResult cacheResult)
+      RuleKey ruleKey,
+      @Nullable StagedZip stagedArtifact,
+      @Nullable Path zipPath,
+      ProjectFilesystem filesystem,
+      CacheResult cacheResult)
       throws IOException {
 
     // We only unpack artifacts from hits.
@@ -1199,57 +1282,40 @@ class CachingBuildRuleBuilder {
     Preconditions.checkArgument(cacheResult.getType() == CacheResultType.HIT);
     LOG.debug("Fetched '%s' from cache with rulekey '%s'", rule, ruleKey);
 
-    // It should be fine to get the path straight away, since cache already did it's job.
-    Path zipPath = lazyZipPath.getUnchecked();
-
-    // We unzip the file in the root of the project directory.
-    // Ideally, the following would work:
-    //
-    // Path pathToZip = Paths.get(zipPath.getAbsolutePath());
-    // FileSystem fs = FileSystems.newFileSystem(pathToZip, /* loader */ null);
-    // Path root = Iterables.getOnlyElement(fs.getRootDirectories());
-    // MoreFiles.copyRecursively(root, projectRoot);
-    //
-    // Unfortunately, this does not appear to work, in practice, because MoreFiles fails when trying
-    // to resolve a Path for a zip entry against a file Path on disk.
-    ArtifactCompressionEvent.Started started =
-        ArtifactCompressionEvent.started(
-            ArtifactCompressionEvent.Operation.DECOMPRESS, ImmutableSet.of(ruleKey));
-    eventBus.post(started);
-    try {
-      // First, clear out the pre-existing metadata directory.  We have to do this *before*
-      // unpacking the zipped artifact, as it includes files that will be stored in the metadata
-      // directory.
-      BuildInfoStore buildInfoStore =
-          buildInfoStoreManager.get(rule.getProjectFilesystem(), metadataStorage);
-
-      try (ZipFile artifact = new ZipFile(zipPath.toFile())) {
-        onDiskBuildInfo.validateArtifact(artifact);
-      }
+    // Every cache hands hits over to the payload consumer, which stages them.
+    Preconditions.checkState(
+        stagedArtifact != null, "Artifact for rulekey %s was fetched but not staged.", ruleKey);
 
-      Preconditions.checkState(
-          cacheResult.getMetadata().containsKey(BuildInfo.MetadataKey.ORIGIN_BUILD_ID),
-          "Cache artifact for rulekey %s is missing metadata %s.",
-          ruleKey,
-          BuildInfo.MetadataKey.ORIGIN_BUILD_ID);
-
-      Unzip.extractZipFile(
-          zipPath.toAbsolutePath(),
-          filesystem,
-          Unzip.ExistingFileMode.OVERWRITE_AND_CLEAN_DIRECTORIES);
-
-      // We only delete the ZIP file when it has been unzipped successfully. Otherwise, we leave it
-      // around for debugging purposes.
-      Files.delete(zipPath);
-
-      // TODO(cjhopman): This should probably record metadata with the buildInfoRecorder, not
-      // directly into the buildInfoStore.
-      // Also write out the build metadata.
-      buildInfoStore.updateMetadata(rule.getBuildTarget(), cacheResult.getMetadata());
-    } finally {
-      eventBus.post(ArtifactCompressionEvent.finished(started));
+    // The artifact was decompressed while it was staged, so all that's left is to move it into
+    // place.
+    // First, clear out the pre-existing metadata directory.  We have to do this *before*
+    // unpacking the zipped artifact, as it includes files that will be stored in the metadata
+    // directory.
+    BuildInfoStore buildInfoStore =
+        buildInfoStoreManager.get(rule.getProjectFilesystem(), metadataStorage);
+
+    onDiskBuildInfo.validateArtifact(stagedArtifact.getEntryNames());
+
+    Preconditions.checkState(
+        cacheResult.getMetadata().containsKey(BuildInfo.MetadataKey.ORIGIN_BUILD_ID),
+        "Cache artifact for rulekey %s is missing metadata %s.",
+        ruleKey,
+        BuildInfo.MetadataKey.ORIGIN_BUILD_ID);
+
+    // We unzip the artifact in the root of the project directory.
+    stagedArtifact.extractTo(filesystem, Unzip.ExistingFileMode.OVERWRITE_AND_CLEAN_DIRECTORIES);
+
+    // We only delete the ZIP file when it has been unzipped successfully. Otherwise, we leave it
+    // around for debugging purposes.
+    if (zipPath != null) {
+      Files.deleteIfExists(zipPath);
     }
 
+    // TODO(cjhopman): This should probably record metadata with the buildInfoRecorder, not
+    // directly into the buildInfoStore.
+    // Also write out the build metadata.
+    buildInfoStore.updateMetadata(rule.getBuildTarget(), cacheResult.getMetadata());
+
     return cacheResult;
   }
 
@@ -1814,6 +1880,8 @@ class CachingBuildRuleBuilder {
     @Nullable
     Throwable getFirstFailure();
 
+    void onRuleDepsAboutToBeBuilt(BuildRule rule);
+
     void onRuleAboutToBeBuilt(BuildRule rule);
   }
 
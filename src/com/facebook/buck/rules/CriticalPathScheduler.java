@@ -0,0 +1,194 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules;
+
+import com.facebook.buck.event.BuckEventBus;
+import com.facebook.buck.event.PerfEventId;
+import com.facebook.buck.event.SimplePerfEvent;
+import com.google.common.collect.ImmutableList;
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Optional;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * Prioritizes the rules which are ready to build by how much work is left after them, so that the
+ * longest chains of rules in the build are started first.
+ *
+ * <p>The work left after a rule is the length of the longest chain of rules from it to a top-level
+ * rule, estimated from how long each rule is expected to take to build by the {@link
+ * BuildRuleDurationEstimates}. Rules with no estimate count as a millisecond, so that without
+ * estimates the rules with the most rules above them come first.
+ */
+class CriticalPathScheduler {
+
+  private static final long UNKNOWN_DURATION_MILLIS = 1;
+
+  private final RuleDepsCache ruleDeps;
+  private final Optional<BuildRuleDurationEstimates> durationEstimates;
+  private final ConcurrentMap<BuildRule, Long> remainingMillis = new ConcurrentHashMap<>();
+
+  // How many rules the longest chain of deps below a rule has, which orders the rules so that a
+  // rule always comes after the rules which depend on it.
+  @GuardedBy("this")
+  private final Map<BuildRule, Integer> heights = new HashMap<>();
+
+  // The estimated time to build the longest chain of deps below a rule, and the rule itself.
+  @GuardedBy("this")
+  private final Map<BuildRule, Long> chainMillis = new HashMap<>();
+
+  @GuardedBy("this")
+  private final Map<BuildRule, Long> durations = new HashMap<>();
+
+  CriticalPathScheduler(
+      RuleDepsCache ruleDeps, Optional<BuildRuleDurationEstimates> durationEstimates) {
+    this.ruleDeps = ruleDeps;
+    this.durationEstimates = durationEstimates;
+  }
+
+  /**
+   * @return the estimated time from when {@code rule} starts building to when the top-level rules
+   *     which need it are built, or 0 for the rules of no registered top-level rule.
+   */
+  long getPriority(BuildRule rule) {
+    return remainingMillis.getOrDefault(rule, 0L);
+  }
+
+  /**
+   * Adds the chains of rules below {@code rule} to the estimates, and annotates the trace with the
+   * longest of them.
+   */
+  synchronized void registerTopLevelRule(BuildRule rule, BuckEventBus eventBus) {
+    try (SimplePerfEvent.Scope scope =
+        SimplePerfEvent.scope(
+            eventBus, PerfEventId.of("critical_path"), "target", rule.getFullyQualifiedName())) {
+      computeHeights(rule);
+      updateRemainingMillis(rule);
+      ImmutableList<BuildRule> criticalPath = getCriticalPath(rule);
+      scope.appendFinishedInfo("estimated_millis", chainMillis.get(rule));
+      scope.appendFinishedInfo(
+          "critical_path",
+          criticalPath.stream().map(BuildRule::getFullyQualifiedName).toArray(String[]::new));
+    }
+  }
+
+  @GuardedBy("this")
+  private long getDurationMillis(BuildRule rule) {
+    return durations.computeIfAbsent(
+        rule,
+        key ->
+            durationEstimates
+                .flatMap(estimates -> estimates.getExpectedDurationMillis(key))
+                .orElse(UNKNOWN_DURATION_MILLIS));
+  }
+
+  /**
+   * Computes the heights and chain lengths of the rules below {@code root}, without recursing down
+   * long chains.
+   */
+  @GuardedBy("this")
+  private void computeHeights(BuildRule root) {
+    if (heights.containsKey(root)) {
+      return;
+    }
+    Deque<Iterator<BuildRule>> stack = new ArrayDeque<>();
+    Deque<BuildRule> path = new ArrayDeque<>();
+    path.push(root);
+    stack.push(ruleDeps.get(root).iterator());
+    while (!stack.isEmpty()) {
+      Iterator<BuildRule> deps = stack.peek();
+      if (deps.hasNext()) {
+        BuildRule dep = deps.next();
+        if (!heights.containsKey(dep)) {
+          path.push(dep);
+          stack.push(ruleDeps.get(dep).iterator());
+        }
+        continue;
+      }
+      stack.pop();
+      BuildRule rule = path.pop();
+      int height = 0;
+      long longestDepChainMillis = 0;
+      for (BuildRule dep : ruleDeps.get(rule)) {
+        height = Math.max(height, heights.get(dep) + 1);
+        longestDepChainMillis = Math.max(longestDepChainMillis, chainMillis.get(dep));
+      }
+      heights.put(rule, height);
+      chainMillis.put(rule, longestDepChainMillis + getDurationMillis(rule));
+    }
+  }
+
+  /**
+   * Raises the estimates of the rules below {@code root} to the length of their chains to it. Rules
+   * are visited from the top down, so each is visited at most once, after all the rules which can
+   * raise its estimate, and only if its estimate was raised.
+   */
+  @GuardedBy("this")
+  private void updateRemainingMillis(BuildRule root) {
+    PriorityQueue<BuildRule> queue =
+        new PriorityQueue<>(Comparator.comparing(heights::get, Comparator.reverseOrder()));
+    Set<BuildRule> queued = new HashSet<>();
+    if (raiseRemainingMillis(root, getDurationMillis(root))) {
+      queue.add(root);
+      queued.add(root);
+    }
+    while (!queue.isEmpty()) {
+      BuildRule rule = queue.poll();
+      long remaining = remainingMillis.get(rule);
+      for (BuildRule dep : ruleDeps.get(rule)) {
+        if (raiseRemainingMillis(dep, remaining + getDurationMillis(dep)) && queued.add(dep)) {
+          queue.add(dep);
+        }
+      }
+    }
+  }
+
+  private boolean raiseRemainingMillis(BuildRule rule, long millis) {
+    Long previous = remainingMillis.get(rule);
+    if (previous != null && previous >= millis) {
+      return false;
+    }
+    remainingMillis.put(rule, millis);
+    return true;
+  }
+
+  /** @return the longest chain of rules from {@code root} down, by the estimated durations. */
+  @GuardedBy("this")
+  private ImmutableList<BuildRule> getCriticalPath(BuildRule root) {
+    ImmutableList.Builder<BuildRule> path = ImmutableList.builder();
+    for (BuildRule rule = root; rule != null; ) {
+      path.add(rule);
+      BuildRule next = null;
+      for (BuildRule dep : ruleDeps.get(rule)) {
+        if (next == null || chainMillis.get(dep) > chainMillis.get(next)) {
+          next = dep;
+        }
+      }
+      rule = next;
+    }
+    return path.build();
+  }
+}
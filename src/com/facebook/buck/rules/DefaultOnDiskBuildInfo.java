@@ -43,7 +43,7 @@ import java.nio.file.Paths;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.Optional;
-import java.util.zip.ZipFile;
+import java.util.Set;
 
 /**
  * Utility for reading the metadata associated with a build rule's output. This is metadata that
@@ -238,16 +238,16 @@ public class DefaultOnDiskBuildInfo implements OnDiskBuildInfo {
   }
 
   @Override
-  public void validateArtifact(ZipFile artifact) {
+  public void validateArtifact(Set<String> artifactEntries) {
     // TODO(bertrand): It would be good to validate OUTPUT_HASH and RECORDED_PATH_HASHES, but we
     // don't compute them if the artifact size exceeds the input rule key threshold.
-    validateArtifactHasKey(artifact, BuildInfo.MetadataKey.RECORDED_PATHS);
-    validateArtifactHasKey(artifact, BuildInfo.MetadataKey.OUTPUT_SIZE);
+    validateArtifactHasKey(artifactEntries, BuildInfo.MetadataKey.RECORDED_PATHS);
+    validateArtifactHasKey(artifactEntries, BuildInfo.MetadataKey.OUTPUT_SIZE);
   }
 
-  private void validateArtifactHasKey(ZipFile artifact, String key) {
+  private void validateArtifactHasKey(Set<String> artifactEntries, String key) {
     Preconditions.checkState(
-        artifact.getEntry(metadataDirectory.resolve(key).toString()) != null,
+        artifactEntries.contains(metadataDirectory.resolve(key).toString()),
         "Artifact missing artifactMetadata for key %s",
         key);
   }
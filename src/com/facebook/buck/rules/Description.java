@@ -88,4 +88,14 @@ public interface Description<T> {
       BuildRuleResolver resolver,
       CellPathResolver cellRoots,
       T args);
+
+  /**
+   * Whether the build rules created by this description, including the ones created for its
+   * flavors, only depend on the rules of its target's deps and don't hold on to the {@link
+   * BuildRuleResolver}, so that they can be reused by a later action graph when neither the node
+   * nor its deps changed.
+   */
+  default boolean producesCacheableSubgraph() {
+    return false;
+  }
 }
@@ -0,0 +1,209 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules;
+
+import com.facebook.buck.event.BuckEventBus;
+import com.facebook.buck.event.PerfEventId;
+import com.facebook.buck.event.SimplePerfEvent;
+import com.facebook.buck.graph.AbstractBottomUpTraversal;
+import com.facebook.buck.graph.AcyclicDepthFirstPostOrderTraversal.CycleException;
+import com.facebook.buck.io.ArchiveMemberPath;
+import com.facebook.buck.log.Logger;
+import com.facebook.buck.model.BuildTarget;
+import com.facebook.buck.model.UnflavoredBuildTarget;
+import com.facebook.buck.util.hashing.FileHashLoader;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.Optional;
+import java.util.Set;
+import javax.annotation.Nullable;
+
+/**
+ * Reuses the build rules of the last action graph that are unaffected by the changes to the target
+ * graph, so that only the rules of the changed nodes and of their reverse dependencies are created
+ * again.
+ *
+ * <p>A node is unaffected if it is equal to the node of the last target graph and if its {@link
+ * TargetGraphHashing} hash, which covers the node and all of its transitive deps, didn't change.
+ * Only the rules of nodes whose description, and the descriptions of all of their transitive deps,
+ * {@link Description#producesCacheableSubgraph() produce a cacheable subgraph} are reused, as the
+ * other rules may hold on to the resolver that created them.
+ */
+class IncrementalActionGraphGenerator {
+  private static final Logger LOG = Logger.get(IncrementalActionGraphGenerator.class);
+
+  @Nullable private TargetGraph lastTargetGraph;
+  @Nullable private ImmutableMap<BuildTarget, HashCode> lastNodeHashes;
+  @Nullable private BuildRuleResolver lastResolver;
+
+  /**
+   * Adds the reusable rules of the last action graph to {@code resolver}, which is then remembered
+   * as the last resolver.
+   */
+  void populateRuleResolverWithCachedRules(
+      BuckEventBus eventBus, TargetGraph targetGraph, BuildRuleResolver resolver) {
+    try (SimplePerfEvent.Scope scope =
+        SimplePerfEvent.scope(eventBus, PerfEventId.of("IncrementalActionGraph"))) {
+      ImmutableList<TargetNode<?, ?>> cacheableNodes = getCacheableNodes(targetGraph);
+      if (cacheableNodes.isEmpty()) {
+        // None of the rules could be reused, so don't bother hashing the target graph.
+        invalidate();
+        return;
+      }
+      Optional<ImmutableMap<BuildTarget, HashCode>> nodeHashes =
+          hashNodes(eventBus, targetGraph, cacheableNodes);
+      if (lastTargetGraph != null
+          && lastNodeHashes != null
+          && lastResolver != null
+          && nodeHashes.isPresent()) {
+        int reusedRules =
+            addReusableRules(
+                targetGraph,
+                nodeHashes.get(),
+                lastTargetGraph,
+                lastNodeHashes,
+                lastResolver,
+                resolver);
+        scope.appendFinishedInfo("reusedRules", reusedRules);
+        LOG.info("Reused %d build rules of the last action graph.", reusedRules);
+      }
+      lastTargetGraph = nodeHashes.isPresent() ? targetGraph : null;
+      lastNodeHashes = nodeHashes.orElse(null);
+      lastResolver = nodeHashes.isPresent() ? resolver : null;
+    }
+  }
+
+  /** Forgets the last action graph, so that the next one is created from scratch. */
+  void invalidate() {
+    lastTargetGraph = null;
+    lastNodeHashes = null;
+    lastResolver = null;
+  }
+
+  /**
+   * @return the nodes whose description, and the descriptions of all of their transitive deps,
+   *     produce a cacheable subgraph. Only these nodes are hashed.
+   */
+  private static ImmutableList<TargetNode<?, ?>> getCacheableNodes(TargetGraph targetGraph) {
+    Set<BuildTarget> cacheableTargets = new HashSet<>();
+    ImmutableList.Builder<TargetNode<?, ?>> cacheableNodes = ImmutableList.builder();
+    new AbstractBottomUpTraversal<TargetNode<?, ?>, RuntimeException>(targetGraph) {
+      @Override
+      public void visit(TargetNode<?, ?> node) {
+        if (node.getDescription().producesCacheableSubgraph()
+            && targetGraph
+                .getOutgoingNodesFor(node)
+                .stream()
+                .allMatch(dep -> cacheableTargets.contains(dep.getBuildTarget()))) {
+          cacheableTargets.add(node.getBuildTarget());
+          cacheableNodes.add(node);
+        }
+      }
+    }.traverse();
+    return cacheableNodes.build();
+  }
+
+  private static Optional<ImmutableMap<BuildTarget, HashCode>> hashNodes(
+      BuckEventBus eventBus, TargetGraph targetGraph, ImmutableList<TargetNode<?, ?>> roots) {
+    try {
+      return Optional.of(
+          new TargetGraphHashing(
+                  eventBus,
+                  targetGraph,
+                  new InputPathHashLoader(),
+                  Runtime.getRuntime().availableProcessors(),
+                  roots)
+              .hashTargetGraph());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      LOG.warn(e, "Interrupted while hashing the target graph, not reusing build rules.");
+    } catch (CycleException e) {
+      LOG.warn(e, "Could not hash the target graph, not reusing build rules.");
+    }
+    return Optional.empty();
+  }
+
+  private static int addReusableRules(
+      TargetGraph targetGraph,
+      ImmutableMap<BuildTarget, HashCode> nodeHashes,
+      TargetGraph lastTargetGraph,
+      ImmutableMap<BuildTarget, HashCode> lastNodeHashes,
+      BuildRuleResolver lastResolver,
+      BuildRuleResolver resolver) {
+    Set<BuildTarget> reusableNodes = new HashSet<>();
+    Set<UnflavoredBuildTarget> reusableTargets = new HashSet<>();
+    Set<UnflavoredBuildTarget> changedTargets = new HashSet<>();
+    new AbstractBottomUpTraversal<TargetNode<?, ?>, RuntimeException>(targetGraph) {
+      @Override
+      public void visit(TargetNode<?, ?> node) {
+        BuildTarget target = node.getBuildTarget();
+        boolean reusable =
+            nodeHashes.containsKey(target)
+                && nodeHashes.get(target).equals(lastNodeHashes.get(target))
+                && lastTargetGraph.getOptional(target).equals(Optional.of(node))
+                && targetGraph
+                    .getOutgoingNodesFor(node)
+                    .stream()
+                    .allMatch(dep -> reusableNodes.contains(dep.getBuildTarget()));
+        if (reusable) {
+          reusableNodes.add(target);
+          reusableTargets.add(target.getUnflavoredBuildTarget());
+        } else {
+          changedTargets.add(target.getUnflavoredBuildTarget());
+        }
+      }
+    }.traverse();
+    // Rules are grouped by unflavored target, so a single changed flavor taints all of them.
+    reusableTargets.removeAll(changedTargets);
+
+    int reusedRules = 0;
+    for (BuildRule rule : lastResolver.getBuildRules()) {
+      if (reusableTargets.contains(rule.getBuildTarget().getUnflavoredBuildTarget())) {
+        resolver.addToIndex(rule);
+        reusedRules++;
+      }
+    }
+    return reusedRules;
+  }
+
+  /**
+   * Creating build rules doesn't depend on the contents of their inputs, so only the paths of the
+   * inputs are hashed.
+   */
+  private static class InputPathHashLoader implements FileHashLoader {
+    @Override
+    public HashCode get(Path path) {
+      return Hashing.sha1().hashString(path.toString(), StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public long getSize(Path path) {
+      // Sizes aren't part of the hashes of the nodes.
+      return 0;
+    }
+
+    @Override
+    public HashCode get(ArchiveMemberPath archiveMemberPath) {
+      return Hashing.sha1().hashString(archiveMemberPath.toString(), StandardCharsets.UTF_8);
+    }
+  }
+}
@@ -24,7 +24,7 @@ import com.google.common.collect.ImmutableSortedSet;
 import java.io.IOException;
 import java.nio.file.Path;
 import java.util.Optional;
-import java.util.zip.ZipFile;
+import java.util.Set;
 
 /** Provides access to the on-disk rule metadata (both "artifact" and "build"). */
 interface OnDiskBuildInfo {
@@ -77,7 +77,7 @@ interface OnDiskBuildInfo {
 
   void writeOutputHashes(FileHashCache fileHashCache) throws IOException;
 
-  void validateArtifact(ZipFile artifact);
+  void validateArtifact(Set<String> artifactEntries);
 
   ImmutableSortedSet<Path> getOutputPaths();
 }
@@ -0,0 +1,407 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules.keys;
+
+import com.facebook.buck.io.filesystem.ProjectFilesystem;
+import com.facebook.buck.log.Logger;
+import com.facebook.buck.model.BuildTarget;
+import com.facebook.buck.rules.AddsToRuleKey;
+import com.facebook.buck.rules.BuildRule;
+import com.facebook.buck.rules.BuildRuleResolver;
+import com.facebook.buck.rules.RuleKey;
+import com.facebook.buck.rules.TargetGraph;
+import com.facebook.buck.rules.TargetNode;
+import com.facebook.buck.rules.keys.PersistentRuleKeyStore.StoredDep;
+import com.facebook.buck.rules.keys.PersistentRuleKeyStore.StoredInput;
+import com.facebook.buck.rules.keys.PersistentRuleKeyStore.StoredRuleKey;
+import com.facebook.buck.util.MoreSuppliers;
+import com.facebook.buck.util.hashing.FileHashLoader;
+import com.facebook.buck.util.hashing.StringHashing;
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import javax.annotation.Nullable;
+
+/**
+ * A {@link RuleKeyCache} which computes the default rule keys it doesn't have from the ones in a
+ * {@link PersistentRuleKeyStore}, when they are still valid, and stores the ones it computes.
+ *
+ * <p>A stored rule key is looked up with the structure hash of its rule: a hash of the definition
+ * of the rule's target and of its transitive deps in the target graph, and of the settings which
+ * affect all rule keys. It's valid as long as the files it was computed from, which are the inputs
+ * {@link #invalidateInputs(Iterable)} is driven by, still have the same hashes, and the rules it
+ * depends on still have the same keys.
+ *
+ * <p>Rule keys are served from, and invalidated in, the given in-memory cache, so a stored key is
+ * only looked up once per rule, and is invalidated as usual when the daemon sees its inputs change.
+ *
+ * <p>The functions given to {@link #get(BuildRule, Function)} must compute the key of the rule
+ * they're given, as they are also used to get the keys of its deps.
+ */
+public class PersistentRuleKeyCache implements RuleKeyCache<RuleKey> {
+
+  private static final Logger LOG = Logger.get(PersistentRuleKeyCache.class);
+
+  private final RuleKeyCache<RuleKey> delegate;
+  private final PersistentRuleKeyStore store;
+  private final TargetGraph targetGraph;
+  private final HashCode settingsHash;
+  private final ImmutableMap<String, ProjectFilesystem> filesystemsByRoot;
+  private final FileHashLoader fileHashLoader;
+  private final Supplier<ImmutableMap<String, BuildRule>> rulesByTarget;
+  private final Map<BuildTarget, Optional<HashCode>> structureHashes = new ConcurrentHashMap<>();
+
+  // Stats.
+  private final LongAdder reusedCount = new LongAdder();
+  private final LongAdder computedCount = new LongAdder();
+  private final LongAdder outdatedCount = new LongAdder();
+
+  /**
+   * @param delegate the in-memory cache serving the rule keys.
+   * @param settingsHash a hash of the settings which affect all rule keys.
+   * @param cellFilesystems the filesystems the inputs of stored rule keys may be from.
+   */
+  public PersistentRuleKeyCache(
+      RuleKeyCache<RuleKey> delegate,
+      PersistentRuleKeyStore store,
+      TargetGraph targetGraph,
+      BuildRuleResolver resolver,
+      HashCode settingsHash,
+      ImmutableSet<ProjectFilesystem> cellFilesystems,
+      FileHashLoader fileHashLoader) {
+    this.delegate = delegate;
+    this.store = store;
+    this.targetGraph = targetGraph;
+    this.settingsHash = settingsHash;
+    this.filesystemsByRoot =
+        cellFilesystems
+            .stream()
+            .collect(
+                ImmutableMap.toImmutableMap(
+                    filesystem -> filesystem.getRootPath().toString(),
+                    Function.identity(),
+                    (first, second) -> first));
+    this.fileHashLoader = fileHashLoader;
+    this.rulesByTarget =
+        MoreSuppliers.memoize(
+            () ->
+                ImmutableMap.copyOf(
+                    ImmutableList.copyOf(resolver.getBuildRules())
+                        .stream()
+                        .collect(
+                            ImmutableMap.toImmutableMap(
+                                rule -> rule.getBuildTarget().getFullyQualifiedName(),
+                                Function.identity(),
+                                (first, second) -> first))));
+  }
+
+  /**
+   * @param cellConfigs the configuration of each cell, by the cell's root.
+   * @param cellToolchains a description of each toolchain which restarts the daemon when it changes
+   *     (SDKs and the like), by toolchain name, of each cell, by the cell's root.
+   * @return a hash of the settings which affect all rule keys, for {@link PersistentRuleKeyCache}.
+   */
+  public static HashCode hashSettings(
+      RuleKeyConfiguration ruleKeyConfiguration,
+      ImmutableMap<Path, ImmutableMap<String, ImmutableMap<String, String>>> cellConfigs,
+      ImmutableMap<Path, ImmutableMap<String, String>> cellToolchains) {
+    Hasher hasher = Hashing.sha1().newHasher();
+    hasher.putInt(ruleKeyConfiguration.getSeed());
+    StringHashing.hashStringAndLength(hasher, ruleKeyConfiguration.getCoreKey());
+    hasher.putLong(ruleKeyConfiguration.getBuildInputRuleKeyFileSizeLimit());
+    for (Map.Entry<Path, ImmutableMap<String, ImmutableMap<String, String>>> cell :
+        ImmutableSortedMap.copyOf(cellConfigs).entrySet()) {
+      StringHashing.hashStringAndLength(hasher, cell.getKey().toString());
+      for (Map.Entry<String, ImmutableMap<String, String>> section :
+          ImmutableSortedMap.copyOf(cell.getValue()).entrySet()) {
+        StringHashing.hashStringAndLength(hasher, section.getKey());
+        hasher.putInt(section.getValue().size());
+        for (Map.Entry<String, String> entry :
+            ImmutableSortedMap.copyOf(section.getValue()).entrySet()) {
+          StringHashing.hashStringAndLength(hasher, entry.getKey());
+          StringHashing.hashStringAndLength(hasher, entry.getValue());
+        }
+      }
+    }
+    for (Map.Entry<Path, ImmutableMap<String, String>> cell :
+        ImmutableSortedMap.copyOf(cellToolchains).entrySet()) {
+      StringHashing.hashStringAndLength(hasher, cell.getKey().toString());
+      hasher.putInt(cell.getValue().size());
+      for (Map.Entry<String, String> toolchain :
+          ImmutableSortedMap.copyOf(cell.getValue()).entrySet()) {
+        StringHashing.hashStringAndLength(hasher, toolchain.getKey());
+        StringHashing.hashStringAndLength(hasher, toolchain.getValue());
+      }
+    }
+    return hasher.hash();
+  }
+
+  @Nullable
+  @Override
+  public RuleKey get(BuildRule rule) {
+    return delegate.get(rule);
+  }
+
+  @Override
+  public RuleKey get(BuildRule rule, Function<? super BuildRule, RuleKeyResult<RuleKey>> create) {
+    return delegate.get(rule, r -> load(r, create));
+  }
+
+  @Override
+  public RuleKey get(
+      AddsToRuleKey appendable, Function<? super AddsToRuleKey, RuleKeyResult<RuleKey>> create) {
+    return delegate.get(
+        appendable,
+        app -> {
+          RuleKeyResult<RuleKey> result = create.apply(app);
+          // Appendables aren't stored, so remember what they depend on for the rules using them.
+          flattenDeps(result).ifPresent(deps -> store.getAppendableDeps().put(app, deps));
+          return result;
+        });
+  }
+
+  private RuleKeyResult<RuleKey> load(
+      BuildRule rule, Function<? super BuildRule, RuleKeyResult<RuleKey>> create) {
+    BuildTarget target = rule.getBuildTarget();
+    Optional<HashCode> structureHash = getStructureHash(target);
+    if (!structureHash.isPresent()) {
+      // A rule without a target node can't be matched with its stored key.
+      return create.apply(rule);
+    }
+
+    Optional<StoredRuleKey> stored = store.get(target);
+    if (stored.isPresent()) {
+      if (stored.get().structureHash.equals(structureHash.get())) {
+        Optional<RuleKeyResult<RuleKey>> result = reuse(stored.get(), create);
+        if (result.isPresent()) {
+          reusedCount.increment();
+          return result.get();
+        }
+      }
+      LOG.verbose("stored rule key of %s is outdated", target);
+      outdatedCount.increment();
+    }
+
+    RuleKeyResult<RuleKey> result = create.apply(rule);
+    computedCount.increment();
+    toStoredRuleKey(structureHash.get(), result).ifPresent(ruleKey -> store.put(target, ruleKey));
+    return result;
+  }
+
+  /**
+   * @return the stored key with the current deps and inputs it was computed from, if they are
+   *     unchanged.
+   */
+  private Optional<RuleKeyResult<RuleKey>> reuse(
+      StoredRuleKey stored, Function<? super BuildRule, RuleKeyResult<RuleKey>> create) {
+    ImmutableList.Builder<RuleKeyInput> inputs = ImmutableList.builder();
+    for (StoredInput input : stored.inputs) {
+      ProjectFilesystem filesystem = filesystemsByRoot.get(input.cellRoot);
+      if (filesystem == null) {
+        return Optional.empty();
+      }
+      Path path = filesystem.getPath(input.path);
+      try {
+        if (!fileHashLoader.get(filesystem, path).equals(input.hashCode)) {
+          return Optional.empty();
+        }
+      } catch (IOException e) {
+        // Computing the key will report the error, if it's still there.
+        return Optional.empty();
+      }
+      inputs.add(RuleKeyInput.of(filesystem, path));
+    }
+
+    ImmutableList.Builder<BuildRule> deps = ImmutableList.builder();
+    for (StoredDep dep : stored.deps) {
+      BuildRule depRule = rulesByTarget.get().get(dep.target);
+      if (depRule == null || !get(depRule, create).equals(dep.ruleKey)) {
+        return Optional.empty();
+      }
+      deps.add(depRule);
+    }
+
+    return Optional.of(new RuleKeyResult<>(stored.ruleKey, deps.build(), inputs.build()));
+  }
+
+  /** @return the {@link StoredRuleKey} of a computed rule key, if it can be stored. */
+  private Optional<StoredRuleKey> toStoredRuleKey(
+      HashCode structureHash, RuleKeyResult<RuleKey> result) {
+    Optional<FlattenedDeps> deps = flattenDeps(result);
+    if (!deps.isPresent()) {
+      return Optional.empty();
+    }
+
+    ImmutableList.Builder<StoredInput> inputs = ImmutableList.builder();
+    for (RuleKeyInput input : deps.get().inputs) {
+      String cellRoot = input.getFilesystem().getRootPath().toString();
+      if (!filesystemsByRoot.containsKey(cellRoot)) {
+        return Optional.empty();
+      }
+      try {
+        inputs.add(
+            new StoredInput(
+                cellRoot,
+                input.getPath().toString(),
+                fileHashLoader.get(input.getFilesystem(), input.getPath())));
+      } catch (IOException e) {
+        return Optional.empty();
+      }
+    }
+
+    ImmutableList.Builder<StoredDep> storedDeps = ImmutableList.builder();
+    for (BuildRule rule : deps.get().rules) {
+      RuleKey ruleKey = delegate.get(rule);
+      if (ruleKey == null) {
+        return Optional.empty();
+      }
+      storedDeps.add(new StoredDep(rule.getBuildTarget().getFullyQualifiedName(), ruleKey));
+    }
+
+    return Optional.of(
+        new StoredRuleKey(structureHash, result.result, inputs.build(), storedDeps.build()));
+  }
+
+  /**
+   * @return the rules and inputs a rule key depends on, directly or through the appendables it
+   *     depends on, if all those appendables are known.
+   */
+  private Optional<FlattenedDeps> flattenDeps(RuleKeyResult<RuleKey> result) {
+    Set<BuildRule> rules = new LinkedHashSet<>();
+    Set<RuleKeyInput> inputs = new LinkedHashSet<>();
+    for (RuleKeyInput input : result.inputs) {
+      inputs.add(input);
+    }
+    for (Object dep : result.deps) {
+      if (dep instanceof BuildRule) {
+        rules.add((BuildRule) dep);
+      } else {
+        FlattenedDeps appendableDeps = store.getAppendableDeps().getIfPresent(dep);
+        if (appendableDeps == null) {
+          return Optional.empty();
+        }
+        rules.addAll(appendableDeps.rules);
+        inputs.addAll(appendableDeps.inputs);
+      }
+    }
+    return Optional.of(new FlattenedDeps(ImmutableSet.copyOf(rules), ImmutableSet.copyOf(inputs)));
+  }
+
+  private Optional<HashCode> getStructureHash(BuildTarget target) {
+    // Not computeIfAbsent, which can't compute the hashes of the deps recursively.
+    Optional<HashCode> hash = structureHashes.get(target);
+    if (hash == null) {
+      hash = computeStructureHash(target);
+      structureHashes.put(target, hash);
+    }
+    return hash;
+  }
+
+  private Optional<HashCode> computeStructureHash(BuildTarget target) {
+    Optional<TargetNode<?, ?>> node = targetGraph.getOptional(target);
+    if (!node.isPresent()) {
+      // Flavored rules are usually created from the node of the unflavored target.
+      node = targetGraph.getOptional(target.withoutFlavors());
+    }
+    if (!node.isPresent()) {
+      return Optional.empty();
+    }
+    Hasher hasher = Hashing.sha1().newHasher();
+    hasher.putBytes(settingsHash.asBytes());
+    StringHashing.hashStringAndLength(hasher, target.getFullyQualifiedName());
+    hasher.putBytes(node.get().getRawInputsHashCode().asBytes());
+    for (BuildTarget dep : ImmutableSortedSet.copyOf(node.get().getParseDeps())) {
+      Optional<HashCode> depHash = getStructureHash(dep);
+      if (!depHash.isPresent()) {
+        return Optional.empty();
+      }
+      StringHashing.hashStringAndLength(hasher, dep.getFullyQualifiedName());
+      hasher.putBytes(depHash.get().asBytes());
+    }
+    return Optional.of(hasher.hash());
+  }
+
+  @Override
+  public ImmutableList<Map.Entry<BuildRule, RuleKey>> getCachedBuildRules() {
+    return delegate.getCachedBuildRules();
+  }
+
+  @Override
+  public void invalidateInputs(Iterable<RuleKeyInput> inputs) {
+    // The stored keys don't need to be invalidated, as the inputs are hashed before reusing them.
+    delegate.invalidateInputs(inputs);
+  }
+
+  @Override
+  public void invalidateAllExceptFilesystems(ImmutableSet<ProjectFilesystem> filesystems) {
+    delegate.invalidateAllExceptFilesystems(filesystems);
+  }
+
+  @Override
+  public void invalidateFilesystem(ProjectFilesystem filesystem) {
+    delegate.invalidateFilesystem(filesystem);
+  }
+
+  @Override
+  public void invalidateAll() {
+    delegate.invalidateAll();
+  }
+
+  /** @return the stats of the in-memory cache. */
+  @Override
+  public CacheStats getStats() {
+    return delegate.getStats();
+  }
+
+  /**
+   * @return the stats of the stored rule keys: reused keys are hits, computed ones are misses and
+   *     loads, and outdated ones are evictions.
+   */
+  public CacheStats getPersistentStats() {
+    long computed = computedCount.longValue();
+    return new CacheStats(
+        reusedCount.longValue(), computed, computed, 0L, 0L, outdatedCount.longValue());
+  }
+
+  /** The rules and inputs a key depends on, directly or through the appendables it depends on. */
+  static class FlattenedDeps {
+
+    final ImmutableSet<BuildRule> rules;
+    final ImmutableSet<RuleKeyInput> inputs;
+
+    FlattenedDeps(ImmutableSet<BuildRule> rules, ImmutableSet<RuleKeyInput> inputs) {
+      this.rules = rules;
+      this.inputs = inputs;
+    }
+  }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules.keys;
+
+import com.facebook.buck.event.BuckEventBus;
+import com.facebook.buck.event.PerfEventId;
+import com.facebook.buck.event.SimplePerfEvent;
+import com.facebook.buck.log.Logger;
+import com.facebook.buck.rules.RuleKey;
+import com.google.common.cache.CacheStats;
+import java.io.IOException;
+
+/**
+ * A {@link RuleKeyCacheScope} giving access to a {@link PersistentRuleKeyCache} on top of the cache
+ * of another scope, which logs the stats of the stored keys and saves the new ones on close.
+ */
+public class PersistentRuleKeyCacheScope implements RuleKeyCacheScope<RuleKey> {
+
+  private static final Logger LOG = Logger.get(PersistentRuleKeyCacheScope.class);
+
+  private final BuckEventBus buckEventBus;
+  private final RuleKeyCacheScope<RuleKey> inner;
+  private final PersistentRuleKeyStore store;
+  private final PersistentRuleKeyCache cache;
+
+  public PersistentRuleKeyCacheScope(
+      BuckEventBus buckEventBus,
+      RuleKeyCacheScope<RuleKey> inner,
+      PersistentRuleKeyStore store,
+      PersistentRuleKeyCache cache) {
+    this.buckEventBus = buckEventBus;
+    this.inner = inner;
+    this.store = store;
+    this.cache = cache;
+  }
+
+  @Override
+  public RuleKeyCache<RuleKey> getCache() {
+    return cache;
+  }
+
+  @Override
+  public void close() {
+    try (SimplePerfEvent.Scope scope =
+        SimplePerfEvent.scope(buckEventBus, PerfEventId.of("persistent_rule_key_cache_cleanup"))) {
+
+      // Log stats.
+      CacheStats stats = cache.getPersistentStats();
+      buckEventBus.post(RuleKeyCacheStatsEvent.createForPersistentCache(stats));
+      scope.update("hitRate", stats.hitRate());
+      scope.update("hits", stats.hitCount());
+      scope.update("misses", stats.missCount());
+      scope.update("outdated", stats.evictionCount());
+
+      try {
+        store.save();
+      } catch (IOException e) {
+        // The keys will be computed again by the next daemon.
+        LOG.warn(e, "Failed to save the rule key store.");
+      }
+    } finally {
+      inner.close();
+    }
+  }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules.keys;
+
+import com.facebook.buck.io.filesystem.ProjectFilesystem;
+import com.facebook.buck.model.BuildTarget;
+import com.facebook.buck.rules.AddsToRuleKey;
+import com.facebook.buck.rules.RuleKey;
+import com.facebook.buck.rules.keys.PersistentRuleKeyCache.FlattenedDeps;
+import com.facebook.buck.util.recordlog.RecordLog;
+import com.facebook.buck.util.recordlog.RecordLogMap;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+import com.google.common.hash.HashCode;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Rule keys kept on disk, so that a new daemon can reuse the keys computed by the previous one
+ * instead of computing the keys of the whole action graph again.
+ *
+ * <p>Each rule key is stored with what it was computed from: a hash of the rule's definition and
+ * of the settings (see {@link PersistentRuleKeyCache}), the hashes of the files it read and the
+ * keys of the rules it depends on. A stored key is only reused once all of them are checked to be
+ * unchanged.
+ *
+ * <p>Keys are stored in memory as they're computed, and {@link #save()} appends them to a {@link
+ * RecordLogMap} under {@code buck-out/rule_keys}.
+ */
+public class PersistentRuleKeyStore {
+
+  private static final int MAGIC = 0x42524b43;
+  private static final int VERSION = 1;
+  private static final int MAX_RECORD_SIZE_BYTES = 16 * 1024 * 1024;
+
+  private final RecordLogMap<String, StoredRuleKey> ruleKeys;
+
+  // Appendables aren't stored, but the rules using them are stored with their deps, so the deps of
+  // the appendables seen by this daemon are remembered as long as the appendables are in use.
+  private final Cache<AddsToRuleKey, FlattenedDeps> appendableDeps =
+      CacheBuilder.newBuilder().weakKeys().build();
+
+  public PersistentRuleKeyStore(ProjectFilesystem filesystem, Path storePath) {
+    this.ruleKeys =
+        new RecordLogMap<>(
+            new RecordLog(
+                filesystem, storePath, "rule key store", MAGIC, VERSION, MAX_RECORD_SIZE_BYTES),
+            new Codec());
+  }
+
+  /** Creates the store of the rule keys of the cell with the given {@code filesystem}. */
+  public static PersistentRuleKeyStore forFilesystem(ProjectFilesystem filesystem) {
+    return new PersistentRuleKeyStore(
+        filesystem, filesystem.getBuckPaths().getRuleKeyCacheDir().resolve("default"));
+  }
+
+  /** @return the stored rule key of {@code target}, if there is one. */
+  Optional<StoredRuleKey> get(BuildTarget target) {
+    return Optional.ofNullable(ruleKeys.get(target.getFullyQualifiedName()));
+  }
+
+  /** Stores the rule key of {@code target}, replacing the one stored before. */
+  void put(BuildTarget target, StoredRuleKey ruleKey) {
+    ruleKeys.put(target.getFullyQualifiedName(), ruleKey);
+  }
+
+  Cache<AddsToRuleKey, FlattenedDeps> getAppendableDeps() {
+    return appendableDeps;
+  }
+
+  /** Appends the rule keys stored since they were loaded or saved to the log. */
+  public void save() throws IOException {
+    ruleKeys.save();
+  }
+
+  @VisibleForTesting
+  int size() {
+    return ruleKeys.size();
+  }
+
+  private static class Codec implements RecordLogMap.Codec<String, StoredRuleKey> {
+    @Override
+    public void write(String key, StoredRuleKey ruleKey, DataOutputStream out)
+        throws IOException {
+      out.writeUTF(key);
+      RecordLogMap.writeHashCode(out, ruleKey.structureHash);
+      RecordLogMap.writeHashCode(out, ruleKey.ruleKey.getHashCode());
+      out.writeInt(ruleKey.inputs.size());
+      for (StoredInput input : ruleKey.inputs) {
+        out.writeUTF(input.cellRoot);
+        out.writeUTF(input.path);
+        RecordLogMap.writeHashCode(out, input.hashCode);
+      }
+      out.writeInt(ruleKey.deps.size());
+      for (StoredDep dep : ruleKey.deps) {
+        out.writeUTF(dep.target);
+        RecordLogMap.writeHashCode(out, dep.ruleKey.getHashCode());
+      }
+    }
+
+    @Override
+    public Map.Entry<String, StoredRuleKey> read(DataInputStream in) throws IOException {
+      String key = in.readUTF();
+      HashCode structureHash = RecordLogMap.readHashCode(in);
+      RuleKey ruleKey = new RuleKey(RecordLogMap.readHashCode(in));
+      int inputCount = in.readInt();
+      ImmutableList.Builder<StoredInput> inputs = ImmutableList.builder();
+      for (int i = 0; i < inputCount; i++) {
+        inputs.add(new StoredInput(in.readUTF(), in.readUTF(), RecordLogMap.readHashCode(in)));
+      }
+      int depCount = in.readInt();
+      ImmutableList.Builder<StoredDep> deps = ImmutableList.builder();
+      for (int i = 0; i < depCount; i++) {
+        deps.add(new StoredDep(in.readUTF(), new RuleKey(RecordLogMap.readHashCode(in))));
+      }
+      return Maps.immutableEntry(
+          key, new StoredRuleKey(structureHash, ruleKey, inputs.build(), deps.build()));
+    }
+  }
+
+  /** A stored rule key, and what it was computed from. */
+  static class StoredRuleKey {
+
+    /** The hash of the rule's definition and of the settings when the key was computed. */
+    final HashCode structureHash;
+
+    final RuleKey ruleKey;
+
+    /** The files the key was computed from, and their hashes then. */
+    final ImmutableList<StoredInput> inputs;
+
+    /** The rules the key was computed from, and their keys then. */
+    final ImmutableList<StoredDep> deps;
+
+    StoredRuleKey(
+        HashCode structureHash,
+        RuleKey ruleKey,
+        ImmutableList<StoredInput> inputs,
+        ImmutableList<StoredDep> deps) {
+      this.structureHash = structureHash;
+      this.ruleKey = ruleKey;
+      this.inputs = inputs;
+      this.deps = deps;
+    }
+  }
+
+  /** A file a stored rule key was computed from. */
+  static class StoredInput {
+
+    /** The root of the filesystem of the file. */
+    final String cellRoot;
+
+    /** The path of the file, relative to {@link #cellRoot}. */
+    final String path;
+
+    final HashCode hashCode;
+
+    StoredInput(String cellRoot, String path, HashCode hashCode) {
+      this.cellRoot = cellRoot;
+      this.path = path;
+      this.hashCode = hashCode;
+    }
+  }
+
+  /** A rule a stored rule key was computed from. */
+  static class StoredDep {
+
+    /** The fully qualified name of the rule's target. */
+    final String target;
+
+    final RuleKey ruleKey;
+
+    StoredDep(String target, RuleKey ruleKey) {
+      this.target = target;
+      this.ruleKey = ruleKey;
+    }
+  }
+}
@@ -24,12 +24,14 @@ import com.facebook.buck.io.filesystem.ProjectFilesystem;
 import com.facebook.buck.log.Logger;
 import com.facebook.buck.rules.ActionGraph;
 import com.facebook.buck.rules.BuildRule;
+import com.facebook.buck.rules.RuleKey;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.eventbus.EventBus;
 import com.google.common.eventbus.Subscribe;
 import java.nio.file.Path;
 import java.util.Map;
+import java.util.Optional;
 import java.util.function.Consumer;
 import java.util.stream.IntStream;
 import javax.annotation.Nullable;
@@ -41,13 +43,17 @@ public class RuleKeyCacheRecycler<V> {
 
   private final RuleKeyCache<V> cache;
   private final ImmutableSet<ProjectFilesystem> watchedFilesystems;
+  private final Optional<PersistentRuleKeyStore> persistentStore;
 
   @Nullable private SettingsAffectingCache previousSettings = null;
 
   private RuleKeyCacheRecycler(
-      RuleKeyCache<V> cache, ImmutableSet<ProjectFilesystem> watchedFilesystems) {
+      RuleKeyCache<V> cache,
+      ImmutableSet<ProjectFilesystem> watchedFilesystems,
+      Optional<PersistentRuleKeyStore> persistentStore) {
     this.cache = cache;
     this.watchedFilesystems = watchedFilesystems;
+    this.persistentStore = persistentStore;
   }
 
   /**
@@ -60,9 +66,27 @@ public class RuleKeyCacheRecycler<V> {
       EventBus eventBus,
       RuleKeyCache<V> ruleKeyCache,
       ImmutableSet<ProjectFilesystem> watchedFilesystems) {
+    return register(
+        eventBus,
+        new RuleKeyCacheRecycler<>(ruleKeyCache, watchedFilesystems, Optional.empty()));
+  }
 
-    RuleKeyCacheRecycler<V> recycler = new RuleKeyCacheRecycler<>(ruleKeyCache, watchedFilesystems);
+  /**
+   * @param persistentStore where rule keys are kept between daemons, to reuse them when the cache
+   *     is empty.
+   * @return a new {@link RuleKeyCacheRecycler} of default rule keys.
+   */
+  public static RuleKeyCacheRecycler<RuleKey> createAndRegister(
+      EventBus eventBus,
+      RuleKeyCache<RuleKey> ruleKeyCache,
+      ImmutableSet<ProjectFilesystem> watchedFilesystems,
+      Optional<PersistentRuleKeyStore> persistentStore) {
+    return register(
+        eventBus, new RuleKeyCacheRecycler<>(ruleKeyCache, watchedFilesystems, persistentStore));
+  }
 
+  private static <V> RuleKeyCacheRecycler<V> register(
+      EventBus eventBus, RuleKeyCacheRecycler<V> recycler) {
     // Subscribe the recycler to receive filesystem watch events.
     eventBus.register(recycler);
 
@@ -70,7 +94,7 @@ public class RuleKeyCacheRecycler<V> {
   }
 
   public static <V> RuleKeyCacheRecycler<V> create(RuleKeyCache<V> ruleKeyCache) {
-    return new RuleKeyCacheRecycler<>(ruleKeyCache, ImmutableSet.of());
+    return new RuleKeyCacheRecycler<>(ruleKeyCache, ImmutableSet.of(), Optional.empty());
   }
 
   @Subscribe
@@ -164,6 +188,11 @@ public class RuleKeyCacheRecycler<V> {
     }
   }
 
+  /** @return where rule keys are kept between daemons, if they are. */
+  public Optional<PersistentRuleKeyStore> getPersistentStore() {
+    return persistentStore;
+  }
+
   public ImmutableList<Map.Entry<BuildRule, V>> getCachedBuildRules() {
     return cache.getCachedBuildRules();
   }
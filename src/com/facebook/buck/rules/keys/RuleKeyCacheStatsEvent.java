@@ -23,14 +23,21 @@ import com.google.common.cache.CacheStats;
 public class RuleKeyCacheStatsEvent extends AbstractBuckEvent {
 
   private final CacheStats stats;
+  private final boolean persistent;
 
-  private RuleKeyCacheStatsEvent(EventKey eventKey, CacheStats stats) {
+  private RuleKeyCacheStatsEvent(EventKey eventKey, CacheStats stats, boolean persistent) {
     super(eventKey);
     this.stats = stats;
+    this.persistent = persistent;
   }
 
   public static RuleKeyCacheStatsEvent create(CacheStats stats) {
-    return new RuleKeyCacheStatsEvent(EventKey.unique(), stats);
+    return new RuleKeyCacheStatsEvent(EventKey.unique(), stats, false);
+  }
+
+  /** @return an event with the stats of the rule keys kept on disk between daemons. */
+  public static RuleKeyCacheStatsEvent createForPersistentCache(CacheStats stats) {
+    return new RuleKeyCacheStatsEvent(EventKey.unique(), stats, true);
   }
 
   @Override
@@ -46,4 +53,9 @@ public class RuleKeyCacheStatsEvent extends AbstractBuckEvent {
   public CacheStats getStats() {
     return stats;
   }
+
+  /** @return whether these are the stats of the rule keys kept on disk between daemons. */
+  public boolean isPersistent() {
+    return persistent;
+  }
 }
@@ -0,0 +1,385 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules.keys.hasher;
+
+import com.facebook.buck.io.ArchiveMemberPath;
+import com.facebook.buck.model.BuildTarget;
+import com.facebook.buck.rules.BuildRuleType;
+import com.facebook.buck.rules.BuildTargetSourcePath;
+import com.facebook.buck.rules.ExplicitBuildTargetSourcePath;
+import com.facebook.buck.rules.ForwardingBuildTargetSourcePath;
+import com.facebook.buck.rules.RuleKey;
+import com.facebook.buck.rules.SourceRoot;
+import com.facebook.buck.util.sha1.Sha1HashCode;
+import com.google.common.base.Preconditions;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.hash.HashCode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.regex.Pattern;
+import javax.annotation.Nullable;
+
+/**
+ * An implementation of {@link RuleKeyHasher} which computes the same SHA-1 as a {@link
+ * GuavaRuleKeyHasher} over {@code Hashing.sha1()}, without allocating for the values put into it.
+ *
+ * <p>Values are encoded straight into a byte buffer, which is handed to the digest whenever it
+ * fills up. The buffer and the digest are returned to a per-thread pool by {@link #hash}, to be
+ * reused by the next hasher created on that thread. Rule keys are computed recursively, so a thread
+ * may use several hashers at once. The encodings of build targets are cached.
+ */
+public class StreamingRuleKeyHasher implements RuleKeyHasher<HashCode> {
+
+  private static final int BUFFER_SIZE = 8 * 1024;
+  private static final int MAX_POOLED_STATES_PER_THREAD = 16;
+  private static final byte[] NO_BUFFER = new byte[0];
+
+  private static final ThreadLocal<ArrayDeque<State>> POOLED_STATES =
+      ThreadLocal.withInitial(ArrayDeque::new);
+
+  private static final LoadingCache<BuildTarget, byte[]> BUILD_TARGET_ENCODINGS =
+      CacheBuilder.newBuilder()
+          .weakKeys()
+          .build(
+              CacheLoader.from(
+                  target -> target.getFullyQualifiedName().getBytes(StandardCharsets.UTF_8)));
+
+  @Nullable private State state;
+  private byte[] buffer;
+  private int position = 0;
+
+  public StreamingRuleKeyHasher() {
+    State pooled = POOLED_STATES.get().pollFirst();
+    this.state = pooled != null ? pooled : new State();
+    this.buffer = state.buffer;
+  }
+
+  private void ensureCapacity(int bytes) {
+    if (position + bytes > buffer.length) {
+      flush();
+    }
+  }
+
+  private MessageDigest getDigest() {
+    return Preconditions.checkNotNull(state, "The hash was already computed.").digest;
+  }
+
+  private void flush() {
+    getDigest().update(buffer, 0, position);
+    position = 0;
+  }
+
+  private void writeByte(byte b) {
+    ensureCapacity(1);
+    buffer[position++] = b;
+  }
+
+  // Guava's hashers put primitives in little endian order, and so do these.
+
+  private void writeShort(short s) {
+    ensureCapacity(2);
+    buffer[position++] = (byte) s;
+    buffer[position++] = (byte) (s >>> 8);
+  }
+
+  private void writeInt(int i) {
+    ensureCapacity(4);
+    buffer[position++] = (byte) i;
+    buffer[position++] = (byte) (i >>> 8);
+    buffer[position++] = (byte) (i >>> 16);
+    buffer[position++] = (byte) (i >>> 24);
+  }
+
+  private void writeLong(long l) {
+    writeInt((int) l);
+    writeInt((int) (l >>> 32));
+  }
+
+  private void writeBytes(byte[] bytes) {
+    if (bytes.length > buffer.length - position) {
+      flush();
+      if (bytes.length > buffer.length) {
+        getDigest().update(bytes);
+        return;
+      }
+    }
+    System.arraycopy(bytes, 0, buffer, position, bytes.length);
+    position += bytes.length;
+  }
+
+  /**
+   * Writes {@code val} in UTF-8, replacing unpaired surrogates with {@code '?'} the way {@link
+   * String#getBytes} does.
+   *
+   * @return the number of bytes written.
+   */
+  private int writeUtf8(String val) {
+    int written = 0;
+    int length = val.length();
+    for (int i = 0; i < length; i++) {
+      ensureCapacity(4);
+      char c = val.charAt(i);
+      if (c < 0x80) {
+        buffer[position++] = (byte) c;
+        written += 1;
+      } else if (c < 0x800) {
+        buffer[position++] = (byte) (0xc0 | (c >>> 6));
+        buffer[position++] = (byte) (0x80 | (c & 0x3f));
+        written += 2;
+      } else if (!Character.isSurrogate(c)) {
+        buffer[position++] = (byte) (0xe0 | (c >>> 12));
+        buffer[position++] = (byte) (0x80 | ((c >>> 6) & 0x3f));
+        buffer[position++] = (byte) (0x80 | (c & 0x3f));
+        written += 3;
+      } else if (Character.isHighSurrogate(c)
+          && i + 1 < length
+          && Character.isLowSurrogate(val.charAt(i + 1))) {
+        int codePoint = Character.toCodePoint(c, val.charAt(++i));
+        buffer[position++] = (byte) (0xf0 | (codePoint >>> 18));
+        buffer[position++] = (byte) (0x80 | ((codePoint >>> 12) & 0x3f));
+        buffer[position++] = (byte) (0x80 | ((codePoint >>> 6) & 0x3f));
+        buffer[position++] = (byte) (0x80 | (codePoint & 0x3f));
+        written += 4;
+      } else {
+        buffer[position++] = '?';
+        written += 1;
+      }
+    }
+    return written;
+  }
+
+  private StreamingRuleKeyHasher putBytes(byte type, byte[] bytes) {
+    writeBytes(bytes);
+    writeInt(bytes.length);
+    writeByte(type);
+    return this;
+  }
+
+  private StreamingRuleKeyHasher putHashCode(byte type, HashCode hash) {
+    int length = hash.bits() / Byte.SIZE;
+    ensureCapacity(length);
+    position += hash.writeBytesTo(buffer, position, length);
+    writeInt(length);
+    writeByte(type);
+    return this;
+  }
+
+  private StreamingRuleKeyHasher putStringified(byte type, String val) {
+    writeInt(writeUtf8(val));
+    writeByte(type);
+    return this;
+  }
+
+  private StreamingRuleKeyHasher putBuildTarget(byte type, BuildTarget target) {
+    return putBytes(type, BUILD_TARGET_ENCODINGS.getUnchecked(target));
+  }
+
+  @Override
+  public StreamingRuleKeyHasher putKey(String key) {
+    return putStringified(RuleKeyHasherTypes.KEY, key);
+  }
+
+  @Override
+  public StreamingRuleKeyHasher putNull() {
+    writeByte(RuleKeyHasherTypes.NULL);
+    return this;
+  }
+
+  @Override
+  public StreamingRuleKeyHasher putBoolean(boolean val) {
+    writeByte(val ? RuleKeyHasherTypes.TRUE : RuleKeyHasherTypes.FALSE);
+    return this;
+  }
+
+  @Override
+  public StreamingRuleKeyHasher putNumber(Number val) {
+    if (val instanceof Integer) { // most common, so test first
+      return putNumber(val.intValue());
+    } else if (val instanceof Long) {
+      return putNumber(val.longValue());
+    } else if (val instanceof Short) {
+      return putNumber(val.shortValue());
+    } else if (val instanceof Byte) {
+      return putNumber(val.byteValue());
+    } else if (val instanceof Float) {
+      return putNumber(val.floatValue());
+    } else if (val instanceof Double) {
+      return putNumber(val.doubleValue());
+    } else {
+      throw new UnsupportedOperationException(("Unsupported Number type: " + val.getClass()));
+    }
+  }
+
+  public StreamingRuleKeyHasher putNumber(int val) {
+    writeInt(val);
+    writeByte(RuleKeyHasherTypes.INTEGER);
+    return this;
+  }
+
+  public StreamingRuleKeyHasher putNumber(long val) {
+    writeLong(val);
+    writeByte(RuleKeyHasherTypes.LONG);
+    return this;
+  }
+
+  public StreamingRuleKeyHasher putNumber(short val) {
+    writeShort(val);
+    writeByte(RuleKeyHasherTypes.SHORT);
+    return this;
+  }
+
+  public StreamingRuleKeyHasher putNumber(byte val) {
+    writeByte(val);
+    writeByte(RuleKeyHasherTypes.BYTE);
+    return this;
+  }
+
+  public StreamingRuleKeyHasher putNumber(float val) {
+    writeInt(Float.floatToRawIntBits(val));
+    writeByte(RuleKeyHasherTypes.FLOAT);
+    return this;
+  }
+
+  public StreamingRuleKeyHasher putNumber(double val) {
+    writeLong(Double.doubleToRawLongBits(val));
+    writeByte(RuleKeyHasherTypes.DOUBLE);
+    return this;
+  }
+
+  @Override
+  public StreamingRuleKeyHasher putString(String val) {
+    return putStringified(RuleKeyHasherTypes.STRING, val);
+  }
+
+  @Override
+  public StreamingRuleKeyHasher putBytes(byte[] bytes) {
+    return putBytes(RuleKeyHasherTypes.BYTE_ARRAY, bytes);
+  }
+
+  @Override
+  public StreamingRuleKeyHasher putPattern(Pattern pattern) {
+    return putStringified(RuleKeyHasherTypes.PATTERN, pattern.toString());
+  }
+
+  @Override
+  public StreamingRuleKeyHasher putSha1(Sha1HashCode sha1) {
+    ensureCapacity(20);
+    position = sha1.copyTo(buffer, position);
+    writeByte(RuleKeyHasherTypes.SHA1);
+    return this;
+  }
+
+  @Override
+  public StreamingRuleKeyHasher putPath(Path path, HashCode hash) {
+    putStringified(RuleKeyHasherTypes.PATH, path.toString());
+    return putHashCode(RuleKeyHasherTypes.PATH, hash);
+  }
+
+  @Override
+  public StreamingRuleKeyHasher putArchiveMemberPath(ArchiveMemberPath path, HashCode hash) {
+    putStringified(RuleKeyHasherTypes.ARCHIVE_MEMBER_PATH, path.toString());
+    return putHashCode(RuleKeyHasherTypes.ARCHIVE_MEMBER_PATH, hash);
+  }
+
+  @Override
+  public StreamingRuleKeyHasher putNonHashingPath(String path) {
+    return putStringified(RuleKeyHasherTypes.NON_HASHING_PATH, path);
+  }
+
+  @Override
+  public StreamingRuleKeyHasher putSourceRoot(SourceRoot sourceRoot) {
+    return putStringified(RuleKeyHasherTypes.SOURCE_ROOT, sourceRoot.getName());
+  }
+
+  @Override
+  public StreamingRuleKeyHasher putRuleKey(RuleKey ruleKey) {
+    return putHashCode(RuleKeyHasherTypes.RULE_KEY, ruleKey.getHashCode());
+  }
+
+  @Override
+  public StreamingRuleKeyHasher putBuildRuleType(BuildRuleType buildRuleType) {
+    return putStringified(RuleKeyHasherTypes.RULE_TYPE, buildRuleType.toString());
+  }
+
+  @Override
+  public StreamingRuleKeyHasher putBuildTarget(BuildTarget buildTarget) {
+    return putBuildTarget(RuleKeyHasherTypes.TARGET, buildTarget);
+  }
+
+  @Override
+  public StreamingRuleKeyHasher putBuildTargetSourcePath(BuildTargetSourcePath targetSourcePath) {
+    putBuildTarget(RuleKeyHasherTypes.TARGET_SOURCE_PATH, targetSourcePath.getTarget());
+    if (targetSourcePath instanceof ExplicitBuildTargetSourcePath) {
+      putStringified(
+          RuleKeyHasherTypes.TARGET_SOURCE_PATH,
+          ((ExplicitBuildTargetSourcePath) targetSourcePath).getResolvedPath().toString());
+    } else if (targetSourcePath instanceof ForwardingBuildTargetSourcePath) {
+      putStringified(
+          RuleKeyHasherTypes.TARGET_SOURCE_PATH, targetSourcePath.representationForRuleKey());
+    }
+    return this;
+  }
+
+  @Override
+  public StreamingRuleKeyHasher putContainer(Container container, int length) {
+    writeByte(RuleKeyHasherTypes.containerSubType(container));
+    writeInt(length);
+    writeByte(RuleKeyHasherTypes.CONTAINER);
+    return this;
+  }
+
+  @Override
+  public StreamingRuleKeyHasher putWrapper(Wrapper wrapper) {
+    writeByte(RuleKeyHasherTypes.wrapperSubType(wrapper));
+    writeByte(RuleKeyHasherTypes.WRAPPER);
+    return this;
+  }
+
+  @Override
+  public HashCode hash() {
+    flush();
+    State done = Preconditions.checkNotNull(state);
+    HashCode hash = HashCode.fromBytes(done.digest.digest());
+    // Anything put after this fails, rather than corrupting the hasher the state is reused by.
+    state = null;
+    buffer = NO_BUFFER;
+    ArrayDeque<State> pooled = POOLED_STATES.get();
+    if (pooled.size() < MAX_POOLED_STATES_PER_THREAD) {
+      pooled.addFirst(done);
+    }
+    return hash;
+  }
+
+  /** The buffer and digest of a hasher, which are reused once it's done. */
+  private static class State {
+    private final MessageDigest digest;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+
+    private State() {
+      try {
+        digest = MessageDigest.getInstance("SHA-1");
+      } catch (NoSuchAlgorithmException e) {
+        throw new IllegalStateException("SHA-1 is always available.", e);
+      }
+    }
+  }
+}
@@ -90,6 +90,11 @@ public class ExportFileDescription
     return new ExportFile(buildTarget, projectFilesystem, ruleFinder, name, mode, src);
   }
 
+  @Override
+  public boolean producesCacheableSubgraph() {
+    return true;
+  }
+
   /** If the src field is absent, add the name field to the list of inputs. */
   @Override
   public Iterable<Path> inferInputsFromConstructorArgs(
@@ -50,6 +50,11 @@ public class ShBinaryDescription implements Description<ShBinaryDescriptionArg>
         buildTarget, cellRoots, projectFilesystem, params, args.getMain(), args.getResources());
   }
 
+  @Override
+  public boolean producesCacheableSubgraph() {
+    return true;
+  }
+
   @BuckStyleImmutable
   @Value.Immutable
   interface AbstractShBinaryDescriptionArg extends CommonDescriptionArg, HasDeclaredDeps {
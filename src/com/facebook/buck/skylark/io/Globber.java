@@ -28,5 +28,5 @@ import java.util.Set;
 public interface Globber {
   Set<String> run(
       Collection<String> include, Collection<String> exclude, boolean excludeDirectories)
-      throws IOException;
+      throws IOException, InterruptedException;
 }
@@ -0,0 +1,34 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.skylark.io;
+
+import com.google.devtools.build.lib.vfs.Path;
+import java.io.IOException;
+
+/** Creates the {@link Globber}s used for resolving {@code glob} calls in build files. */
+@FunctionalInterface
+public interface GlobberFactory extends AutoCloseable {
+
+  /**
+   * @param basePath The base path relative to which paths matching glob patterns will be resolved.
+   */
+  Globber create(Path basePath);
+
+  /** Releases the resources shared by the globbers created by this factory. */
+  @Override
+  default void close() throws IOException {}
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.skylark.io.impl;
+
+import com.facebook.buck.skylark.io.Globber;
+import com.facebook.buck.skylark.io.GlobberFactory;
+import com.google.common.collect.ImmutableSet;
+import com.google.devtools.build.lib.vfs.Path;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Set;
+import javax.annotation.Nullable;
+
+/** A {@link Globber} that reuses the results of identical globs stored in a {@link GlobCache}. */
+public class CachingGlobber implements Globber {
+
+  private final Globber delegate;
+  private final Path basePath;
+  private final GlobCache cache;
+
+  private CachingGlobber(Globber delegate, Path basePath, GlobCache cache) {
+    this.delegate = delegate;
+    this.basePath = basePath;
+    this.cache = cache;
+  }
+
+  @Override
+  public Set<String> run(
+      Collection<String> include, Collection<String> exclude, boolean excludeDirectories)
+      throws IOException, InterruptedException {
+    @Nullable
+    ImmutableSet<String> paths = cache.get(basePath, include, exclude, excludeDirectories);
+    if (paths == null) {
+      paths = ImmutableSet.copyOf(delegate.run(include, exclude, excludeDirectories));
+      cache.put(basePath, include, exclude, excludeDirectories, paths);
+    }
+    return paths;
+  }
+
+  /**
+   * @return The factory of globbers that resolve globs using the globbers of {@code delegate},
+   *     unless their results are already in {@code cache}.
+   */
+  public static GlobberFactory factory(GlobberFactory delegate, GlobCache cache) {
+    return new GlobberFactory() {
+      @Override
+      public Globber create(Path basePath) {
+        return new CachingGlobber(delegate.create(basePath), basePath, cache);
+      }
+
+      @Override
+      public void close() throws IOException {
+        delegate.close();
+      }
+    };
+  }
+}
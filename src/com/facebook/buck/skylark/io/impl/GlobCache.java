@@ -0,0 +1,120 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.skylark.io.impl;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import javax.annotation.Nullable;
+
+/**
+ * Keeps the results of {@code glob} calls around, so that build files parsed again don't have to
+ * list their packages again.
+ *
+ * <p>The cache has no way of noticing changes to the file system by itself, so it must only be
+ * used for projects watched by Watchman, with every created or deleted path passed to {@link
+ * #invalidate(Path)}.
+ */
+public class GlobCache {
+
+  // Keyed by the directory the globs were resolved in, so that invalidating a path only has to look
+  // at the entries of its ancestors.
+  private final ConcurrentMap<Path, ConcurrentMap<Key, ImmutableSet<String>>> resultsByBasePath =
+      new ConcurrentHashMap<>();
+
+  @Nullable
+  ImmutableSet<String> get(
+      com.google.devtools.build.lib.vfs.Path basePath,
+      Collection<String> include,
+      Collection<String> exclude,
+      boolean excludeDirectories) {
+    ConcurrentMap<Key, ImmutableSet<String>> results = resultsByBasePath.get(toPath(basePath));
+    return results == null ? null : results.get(new Key(include, exclude, excludeDirectories));
+  }
+
+  void put(
+      com.google.devtools.build.lib.vfs.Path basePath,
+      Collection<String> include,
+      Collection<String> exclude,
+      boolean excludeDirectories,
+      ImmutableSet<String> paths) {
+    resultsByBasePath
+        .computeIfAbsent(toPath(basePath), ignored -> new ConcurrentHashMap<>())
+        .put(new Key(include, exclude, excludeDirectories), paths);
+  }
+
+  /**
+   * Drops the results of globs that could have matched {@code path}, which is every glob resolved
+   * in one of its ancestor directories.
+   */
+  public void invalidate(Path path) {
+    for (Path ancestor = path; ancestor != null; ancestor = ancestor.getParent()) {
+      resultsByBasePath.remove(ancestor);
+    }
+  }
+
+  /** Drops all cached results. */
+  public void invalidateAll() {
+    resultsByBasePath.clear();
+  }
+
+  /** @return the number of cached glob results. */
+  public int size() {
+    return resultsByBasePath.values().stream().mapToInt(Map::size).sum();
+  }
+
+  private static Path toPath(com.google.devtools.build.lib.vfs.Path path) {
+    return Paths.get(path.getPathString());
+  }
+
+  private static class Key {
+    private final ImmutableList<String> include;
+    private final ImmutableList<String> exclude;
+    private final boolean excludeDirectories;
+
+    Key(Collection<String> include, Collection<String> exclude, boolean excludeDirectories) {
+      this.include = ImmutableList.copyOf(include);
+      this.exclude = ImmutableList.copyOf(exclude);
+      this.excludeDirectories = excludeDirectories;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (this == other) {
+        return true;
+      }
+      if (!(other instanceof Key)) {
+        return false;
+      }
+      Key that = (Key) other;
+      return include.equals(that.include)
+          && exclude.equals(that.exclude)
+          && excludeDirectories == that.excludeDirectories;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(include, exclude, excludeDirectories);
+    }
+  }
+}
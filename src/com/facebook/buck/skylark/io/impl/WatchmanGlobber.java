@@ -0,0 +1,179 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.skylark.io.impl;
+
+import com.facebook.buck.io.WatchmanClient;
+import com.facebook.buck.log.Logger;
+import com.facebook.buck.skylark.io.Globber;
+import com.facebook.buck.util.function.ThrowingSupplier;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.devtools.build.lib.vfs.Path;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * An implementation of globbing functionality that resolves glob patterns using Watchman queries
+ * instead of walking the file system.
+ *
+ * <p>Watchman only returns files, so globs that should also return directories are resolved using
+ * the fallback globber, as are globs for which the Watchman query times out.
+ */
+public class WatchmanGlobber implements Globber {
+
+  private static final Logger LOG = Logger.get(WatchmanGlobber.class);
+
+  private static final Pattern COLLAPSE_SLASHES = Pattern.compile("/+");
+  private static final ImmutableMap<String, Object> MATCH_FLAGS =
+      ImmutableMap.of("includedotfiles", true);
+
+  private final ThrowingSupplier<WatchmanClient, IOException> watchmanClient;
+  private final long queryTimeoutNanos;
+  private final String watchRoot;
+  private final Optional<String> relativeRoot;
+  private final boolean useGlobGenerator;
+  private final boolean statResults;
+  /** Path used as a root when resolving patterns. */
+  private final Path basePath;
+
+  private final Globber fallbackGlobber;
+
+  WatchmanGlobber(
+      ThrowingSupplier<WatchmanClient, IOException> watchmanClient,
+      long queryTimeoutNanos,
+      String watchRoot,
+      Optional<String> relativeRoot,
+      boolean useGlobGenerator,
+      boolean statResults,
+      Path basePath,
+      Globber fallbackGlobber) {
+    this.watchmanClient = watchmanClient;
+    this.queryTimeoutNanos = queryTimeoutNanos;
+    this.watchRoot = watchRoot;
+    this.relativeRoot = relativeRoot;
+    this.useGlobGenerator = useGlobGenerator;
+    this.statResults = statResults;
+    this.basePath = basePath;
+    this.fallbackGlobber = fallbackGlobber;
+  }
+
+  /**
+   * @param include File patterns that should be included in the resulting set.
+   * @param exclude File patterns that should be excluded from the resulting set.
+   * @param excludeDirectories Whether directories should be excluded from the resulting set.
+   * @return The set of paths resolved using include patterns minus paths excluded by exclude
+   *     patterns.
+   */
+  @Override
+  public Set<String> run(
+      Collection<String> include, Collection<String> exclude, boolean excludeDirectories)
+      throws IOException, InterruptedException {
+    if (!excludeDirectories || include.isEmpty()) {
+      return fallbackGlobber.run(include, exclude, excludeDirectories);
+    }
+    Optional<ImmutableSet<String>> result = query(include, exclude);
+    if (!result.isPresent()) {
+      return fallbackGlobber.run(include, exclude, excludeDirectories);
+    }
+    return result.get();
+  }
+
+  /** @return The files matching the patterns, or nothing if the Watchman query timed out. */
+  @SuppressWarnings("unchecked")
+  private Optional<ImmutableSet<String>> query(
+      Collection<String> include, Collection<String> exclude)
+      throws IOException, InterruptedException {
+    Map<String, Object> params = new LinkedHashMap<>();
+    relativeRoot.ifPresent(root -> params.put("relative_root", root));
+    // Get the current state of the filesystem instead of waiting for a fence.
+    params.put("sync_timeout", 0);
+    // We only care about the paths to each of the files.
+    params.put("fields", ImmutableList.of("name"));
+
+    // Query all files matching the patterns which are either regular files or symlinks.
+    List<Object> expression =
+        Lists.newArrayList(
+            "allof",
+            ImmutableList.of(
+                "anyof", ImmutableList.of("type", "f"), ImmutableList.of("type", "l")));
+    if (!exclude.isEmpty()) {
+      expression.add(ImmutableList.of("not", matchAny(exclude)));
+    }
+    if (useGlobGenerator) {
+      params.put("glob", ImmutableList.copyOf(include));
+      params.put("glob_includedotfiles", true);
+    } else {
+      params.put("path", ImmutableList.of(""));
+      expression.add("exists");
+      expression.add(matchAny(include));
+    }
+    params.put("expression", expression);
+
+    Object[] query = {"query", watchRoot, params};
+    Optional<? extends Map<String, ? extends Object>> queryResponse =
+        watchmanClient.throwingGet().queryWithTimeout(queryTimeoutNanos, query);
+    if (!queryResponse.isPresent()) {
+      LOG.warn("Timed out after %d ns for Watchman glob query %s", queryTimeoutNanos, params);
+      return Optional.empty();
+    }
+
+    Map<String, ? extends Object> response = queryResponse.get();
+    String error = (String) response.get("error");
+    if (error != null) {
+      throw new IOException(String.format("Error from Watchman query %s: %s", params, error));
+    }
+    String warning = (String) response.get("warning");
+    if (warning != null) {
+      LOG.warn("Watchman warning from query %s: %s", params, warning);
+    }
+
+    List<String> files = (List<String>) response.get("files");
+    if (files == null) {
+      return Optional.of(ImmutableSet.of());
+    }
+    ImmutableSet.Builder<String> result = ImmutableSet.builder();
+    for (String file : files) {
+      if (statResults && !basePath.getRelative(file).exists(basePath.getFileSystem())) {
+        LOG.warn("Watchman query returned non-existent file: %s", basePath.getRelative(file));
+        continue;
+      }
+      result.add(file);
+    }
+    return Optional.of(result.build());
+  }
+
+  private static ImmutableList<Object> matchAny(Collection<String> patterns) {
+    ImmutableList.Builder<Object> builder = ImmutableList.builder().add("anyof");
+    for (String pattern : patterns) {
+      builder.add(
+          ImmutableList.of(
+              "match",
+              COLLAPSE_SLASHES.matcher(pattern).replaceAll("/"),
+              "wholename",
+              MATCH_FLAGS));
+    }
+    return builder.build();
+  }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.skylark.io.impl;
+
+import com.facebook.buck.io.ProjectWatch;
+import com.facebook.buck.io.Watchman;
+import com.facebook.buck.io.WatchmanClient;
+import com.facebook.buck.skylark.io.Globber;
+import com.facebook.buck.skylark.io.GlobberFactory;
+import com.google.devtools.build.lib.vfs.Path;
+import java.io.IOException;
+import java.util.Optional;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * Creates {@link WatchmanGlobber}s for the build files of a project watched by Watchman. All of
+ * them share a single Watchman client, which is created on first use.
+ */
+public class WatchmanGlobberFactory implements GlobberFactory {
+
+  private final Watchman watchman;
+  private final ProjectWatch projectWatch;
+  private final java.nio.file.Path projectRoot;
+  private final long queryTimeoutNanos;
+  private final boolean useGlobGenerator;
+  private final boolean statResults;
+
+  @GuardedBy("this")
+  @Nullable
+  private WatchmanClient watchmanClient;
+
+  private WatchmanGlobberFactory(
+      Watchman watchman,
+      ProjectWatch projectWatch,
+      java.nio.file.Path projectRoot,
+      long queryTimeoutNanos,
+      boolean useGlobGenerator,
+      boolean statResults) {
+    this.watchman = watchman;
+    this.projectWatch = projectWatch;
+    this.projectRoot = projectRoot;
+    this.queryTimeoutNanos = queryTimeoutNanos;
+    this.useGlobGenerator = useGlobGenerator;
+    this.statResults = statResults;
+  }
+
+  /**
+   * @param watchman The Watchman instance watching the project.
+   * @param projectWatch The watch of the project containing the build files.
+   * @param projectRoot The root of the project containing the build files.
+   * @param queryTimeoutNanos The time after which a glob falls back to walking the file system.
+   * @param useGlobGenerator Whether Watchman supports the {@code glob} generator.
+   * @param statResults Whether to drop files reported by Watchman which no longer exist.
+   */
+  public static WatchmanGlobberFactory create(
+      Watchman watchman,
+      ProjectWatch projectWatch,
+      java.nio.file.Path projectRoot,
+      long queryTimeoutNanos,
+      boolean useGlobGenerator,
+      boolean statResults) {
+    return new WatchmanGlobberFactory(
+        watchman, projectWatch, projectRoot, queryTimeoutNanos, useGlobGenerator, statResults);
+  }
+
+  @Override
+  public Globber create(Path basePath) {
+    return new WatchmanGlobber(
+        this::getWatchmanClient,
+        queryTimeoutNanos,
+        projectWatch.getWatchRoot(),
+        getRelativeRoot(basePath),
+        useGlobGenerator,
+        statResults,
+        basePath,
+        SimpleGlobber.create(basePath));
+  }
+
+  /** @return The path of {@code basePath} relative to the Watchman watch root, if not the root. */
+  private Optional<String> getRelativeRoot(Path basePath) {
+    String relativePath =
+        basePath
+            .relativeTo(basePath.getFileSystem().getPath(projectRoot.toString()))
+            .getPathString();
+    if (relativePath.isEmpty()) {
+      return projectWatch.getProjectPrefix();
+    }
+    return Optional.of(
+        projectWatch.getProjectPrefix().map(prefix -> prefix + "/").orElse("") + relativePath);
+  }
+
+  private synchronized WatchmanClient getWatchmanClient() throws IOException {
+    if (watchmanClient == null) {
+      watchmanClient = watchman.createClient();
+    }
+    return watchmanClient;
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    if (watchmanClient != null) {
+      watchmanClient.close();
+      watchmanClient = null;
+    }
+  }
+}
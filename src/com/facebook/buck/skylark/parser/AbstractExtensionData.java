@@ -26,7 +26,7 @@ import org.immutables.value.Value;
  * in order to load it. The main purpose of extra information is to properly captured all dependent
  * information for caching purposes.
  */
-@Value.Immutable
+@Value.Immutable(copy = true)
 @BuckStyleImmutable
 abstract class AbstractExtensionData {
   public abstract Extension getExtension();
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.skylark.parser;
+
+import com.google.common.hash.HashCode;
+import java.nio.file.Path;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import javax.annotation.Nullable;
+
+/**
+ * Keeps evaluated Skylark extensions around, so that build files loading the same {@code .bzl}
+ * files don't have to parse and evaluate them again.
+ *
+ * <p>Entries are keyed by the path and the hash of the contents of the extension file, so a
+ * modified file is never served from the cache. An entry is only used if the extensions it was
+ * evaluated against are still the ones the cache returns for its dependencies, which is checked by
+ * the parser on every lookup.
+ *
+ * <p>Extensions capture the rule functions of the parser that evaluated them, so a cache must only
+ * be shared between parsers of the same cell.
+ */
+public class SkylarkExtensionCache {
+
+  private final ConcurrentMap<Key, ExtensionData> extensions = new ConcurrentHashMap<>();
+
+  /** @return the extension evaluated from {@code path} with the given contents, if cached. */
+  @Nullable
+  ExtensionData get(com.google.devtools.build.lib.vfs.Path path, HashCode contentHash) {
+    return extensions.get(new Key(path, contentHash));
+  }
+
+  void put(com.google.devtools.build.lib.vfs.Path path, HashCode contentHash, ExtensionData data) {
+    extensions.put(new Key(path, contentHash), data);
+  }
+
+  /**
+   * Drops the extensions evaluated from {@code path}. Extensions loading it are revalidated the
+   * next time they are used.
+   */
+  public void invalidate(Path path) {
+    String pathString = path.toString();
+    extensions.keySet().removeIf(key -> key.path.equals(pathString));
+  }
+
+  /** Drops all cached extensions. */
+  public void invalidateAll() {
+    extensions.clear();
+  }
+
+  /** @return the number of cached extensions. */
+  public int size() {
+    return extensions.size();
+  }
+
+  private static class Key {
+    // Paths of different parsers belong to different file systems and are never equal, so the path
+    // string is used instead.
+    private final String path;
+    private final HashCode contentHash;
+
+    Key(com.google.devtools.build.lib.vfs.Path path, HashCode contentHash) {
+      this.path = path.getPathString();
+      this.contentHash = contentHash;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (this == other) {
+        return true;
+      }
+      if (!(other instanceof Key)) {
+        return false;
+      }
+      Key that = (Key) other;
+      return path.equals(that.path) && contentHash.equals(that.contentHash);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(path, contentHash);
+    }
+  }
+}
@@ -21,6 +21,7 @@ import com.facebook.buck.io.file.MorePaths;
 import com.facebook.buck.log.Logger;
 import com.facebook.buck.parser.api.ProjectBuildFileParser;
 import com.facebook.buck.parser.events.ParseBuckFileEvent;
+import com.facebook.buck.parser.events.ParseBuckProfilerReportEvent;
 import com.facebook.buck.parser.exceptions.BuildFileParseException;
 import com.facebook.buck.parser.options.ProjectBuildFileParserOptions;
 import com.facebook.buck.rules.Description;
@@ -31,6 +32,7 @@ import com.facebook.buck.skylark.function.Glob;
 import com.facebook.buck.skylark.function.ReadConfig;
 import com.facebook.buck.skylark.function.SkylarkExtensionFunctions;
 import com.facebook.buck.skylark.function.SkylarkNativeModule;
+import com.facebook.buck.skylark.io.GlobberFactory;
 import com.facebook.buck.skylark.io.impl.SimpleGlobber;
 import com.facebook.buck.skylark.packages.PackageContext;
 import com.facebook.buck.skylark.packages.PackageFactory;
@@ -41,6 +43,8 @@ import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.ImmutableSortedSet;
 import com.google.common.collect.Ordering;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
 import com.google.devtools.build.lib.cmdline.Label;
 import com.google.devtools.build.lib.cmdline.PackageIdentifier;
 import com.google.devtools.build.lib.cmdline.RepositoryName;
@@ -64,6 +68,7 @@ import com.google.devtools.build.lib.vfs.FileSystemUtils;
 import com.google.devtools.build.lib.vfs.PathFragment;
 import java.io.IOException;
 import java.nio.file.Path;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.Optional;
 import java.util.concurrent.atomic.AtomicLong;
@@ -100,18 +105,26 @@ public class SkylarkProjectBuildFileParser implements ProjectBuildFileParser {
   private final Supplier<ImmutableList<BuiltinFunction>> buckRuleFunctionsSupplier;
   private final Supplier<ClassObject> nativeModuleSupplier;
   private final Supplier<Environment.Frame> buckGlobalsSupplier;
+  private final SkylarkExtensionCache extensionCache;
+  private final GlobberFactory globberFactory;
+  private long extensionCacheHits;
+  private long extensionCacheMisses;
 
   private SkylarkProjectBuildFileParser(
       ProjectBuildFileParserOptions options,
       BuckEventBus buckEventBus,
       FileSystem fileSystem,
       TypeCoercerFactory typeCoercerFactory,
-      EventHandler eventHandler) {
+      EventHandler eventHandler,
+      SkylarkExtensionCache extensionCache,
+      GlobberFactory globberFactory) {
     this.options = options;
     this.buckEventBus = buckEventBus;
     this.fileSystem = fileSystem;
     this.typeCoercerFactory = typeCoercerFactory;
     this.eventHandler = eventHandler;
+    this.extensionCache = extensionCache;
+    this.globberFactory = globberFactory;
     // since Skylark parser is currently disabled by default, avoid creating functions in case
     // it's never used
     // TODO(ttsugrii): replace suppliers with eager loading once Skylark parser is on by default
@@ -127,8 +140,37 @@ public class SkylarkProjectBuildFileParser implements ProjectBuildFileParser {
       FileSystem fileSystem,
       TypeCoercerFactory typeCoercerFactory,
       EventHandler eventHandler) {
+    return using(
+        options,
+        buckEventBus,
+        fileSystem,
+        typeCoercerFactory,
+        eventHandler,
+        new SkylarkExtensionCache(),
+        SimpleGlobber::create);
+  }
+
+  /**
+   * Create an instance of Skylark project build file parser using provided options, which reuses
+   * extensions evaluated by other parsers sharing the same {@code extensionCache} and resolves
+   * globs using globbers created by {@code globberFactory}.
+   */
+  public static SkylarkProjectBuildFileParser using(
+      ProjectBuildFileParserOptions options,
+      BuckEventBus buckEventBus,
+      FileSystem fileSystem,
+      TypeCoercerFactory typeCoercerFactory,
+      EventHandler eventHandler,
+      SkylarkExtensionCache extensionCache,
+      GlobberFactory globberFactory) {
     return new SkylarkProjectBuildFileParser(
-        options, buckEventBus, fileSystem, typeCoercerFactory, eventHandler);
+        options,
+        buckEventBus,
+        fileSystem,
+        typeCoercerFactory,
+        eventHandler,
+        extensionCache,
+        globberFactory);
   }
 
   @Override
@@ -197,9 +239,13 @@ public class SkylarkProjectBuildFileParser implements ProjectBuildFileParser {
           "Cannot parse build file " + buildFile);
     }
     ParseContext parseContext = new ParseContext();
+    // The extensions loaded by this parse, so that each of them is read, hashed and checked
+    // against the extensions it loads at most once, however many of the others load it.
+    Map<com.google.devtools.build.lib.vfs.Path, ExtensionData> loadedExtensions = new HashMap<>();
     try (Mutability mutability = Mutability.create("parsing " + buildFile)) {
       EnvironmentData envData =
-          createBuildFileEvaluationEnvironment(buildFile, buildFileAst, mutability, parseContext);
+          createBuildFileEvaluationEnvironment(
+              buildFile, buildFileAst, mutability, parseContext, loadedExtensions);
       boolean exec = buildFileAst.exec(envData.getEnvironment(), eventHandler);
       if (!exec) {
         throw BuildFileParseException.createForUnknownParseError(
@@ -222,9 +268,11 @@ public class SkylarkProjectBuildFileParser implements ProjectBuildFileParser {
   /** Creates an instance of {@link ParserInputSource} for a file at {@code buildFilePath}. */
   private ParserInputSource createInputSource(com.google.devtools.build.lib.vfs.Path buildFilePath)
       throws IOException {
-    return ParserInputSource.create(
-        FileSystemUtils.readWithKnownFileSize(buildFilePath, buildFilePath.getFileSize(fileSystem)),
-        buildFilePath.asFragment());
+    return ParserInputSource.create(readContent(buildFilePath), buildFilePath.asFragment());
+  }
+
+  private byte[] readContent(com.google.devtools.build.lib.vfs.Path path) throws IOException {
+    return FileSystemUtils.readWithKnownFileSize(path, path.getFileSize(fileSystem));
   }
 
   /**
@@ -232,9 +280,14 @@ public class SkylarkProjectBuildFileParser implements ProjectBuildFileParser {
    *     functions like {@code glob} and native rules like {@code java_library}.
    */
   private EnvironmentData createBuildFileEvaluationEnvironment(
-      Path buildFile, BuildFileAST buildFileAst, Mutability mutability, ParseContext parseContext)
+      Path buildFile,
+      BuildFileAST buildFileAst,
+      Mutability mutability,
+      ParseContext parseContext,
+      Map<com.google.devtools.build.lib.vfs.Path, ExtensionData> loadedExtensions)
       throws IOException, InterruptedException, BuildFileParseException {
-    ImmutableList<ExtensionData> dependencies = loadExtensions(buildFileAst.getImports());
+    ImmutableList<ExtensionData> dependencies =
+        loadExtensions(buildFileAst.getImports(), loadedExtensions);
     ImmutableMap<String, Environment.Extension> importMap = toImportMap(dependencies);
     Environment env =
         Environment.builder(mutability)
@@ -251,7 +304,7 @@ public class SkylarkProjectBuildFileParser implements ProjectBuildFileParser {
     env.setup("package_name", SkylarkNativeModule.packageName);
     PackageContext packageContext =
         PackageContext.builder()
-            .setGlobber(SimpleGlobber.create(fileSystem.getPath(buildFile.getParent().toString())))
+            .setGlobber(globberFactory.create(fileSystem.getPath(buildFile.getParent().toString())))
             .setRawConfig(options.getRawConfig())
             .build();
     env.setupDynamic(PackageFactory.PACKAGE_CONTEXT, packageContext);
@@ -266,18 +319,21 @@ public class SkylarkProjectBuildFileParser implements ProjectBuildFileParser {
     ImmutableList.Builder<com.google.devtools.build.lib.vfs.Path> loadedPathsBuilder =
         ImmutableList.builder();
     for (ExtensionData extensionData : dependencies) {
-      loadedPathsBuilder.add(extensionData.getPath());
+      // Cached extensions may have been loaded by other parsers, using their own file system.
+      loadedPathsBuilder.add(fileSystem.getPath(extensionData.getPath().getPathString()));
       loadedPathsBuilder.addAll(toLoadedPaths(extensionData.getDependencies()));
     }
     return loadedPathsBuilder.build();
   }
 
   /** Loads all extensions identified by corresponding {@link SkylarkImport}s. */
-  private ImmutableList<ExtensionData> loadExtensions(ImmutableList<SkylarkImport> skylarkImports)
+  private ImmutableList<ExtensionData> loadExtensions(
+      ImmutableList<SkylarkImport> skylarkImports,
+      Map<com.google.devtools.build.lib.vfs.Path, ExtensionData> loadedExtensions)
       throws IOException, InterruptedException, BuildFileParseException {
     ImmutableList.Builder<ExtensionData> extensionsBuilder = ImmutableList.builder();
     for (SkylarkImport skylarkImport : skylarkImports) {
-      ExtensionData extensionData = loadExtension(skylarkImport);
+      ExtensionData extensionData = loadExtension(skylarkImport, loadedExtensions);
       extensionsBuilder.add(extensionData);
     }
     return extensionsBuilder.build();
@@ -297,24 +353,90 @@ public class SkylarkProjectBuildFileParser implements ProjectBuildFileParser {
   }
 
   /** Creates an extension from a {@code path}. */
-  private ExtensionData loadExtension(SkylarkImport skylarkImport)
+  private ExtensionData loadExtension(
+      SkylarkImport skylarkImport,
+      Map<com.google.devtools.build.lib.vfs.Path, ExtensionData> loadedExtensions)
+      throws IOException, BuildFileParseException, InterruptedException {
+    return loadExtension(
+        getImportPath(skylarkImport), skylarkImport.getImportString(), loadedExtensions);
+  }
+
+  /**
+   * Returns the extension at {@code extensionPath}, reusing the cached one if neither the file nor
+   * any of the extensions it loads have changed since it was evaluated.
+   *
+   * @param loadedExtensions the extensions already loaded by the current parse, which are returned
+   *     as they are.
+   */
+  private ExtensionData loadExtension(
+      com.google.devtools.build.lib.vfs.Path extensionPath,
+      String importString,
+      Map<com.google.devtools.build.lib.vfs.Path, ExtensionData> loadedExtensions)
+      throws IOException, BuildFileParseException, InterruptedException {
+    @Nullable ExtensionData loaded = loadedExtensions.get(extensionPath);
+    if (loaded != null) {
+      return loaded.withImportString(importString);
+    }
+    byte[] content = readContent(extensionPath);
+    HashCode contentHash = Hashing.sha1().hashBytes(content);
+    @Nullable ExtensionData cached = extensionCache.get(extensionPath, contentHash);
+    ExtensionData extensionData;
+    if (cached != null && areDependenciesUpToDate(cached, loadedExtensions)) {
+      extensionCacheHits++;
+      extensionData = cached.withImportString(importString);
+    } else {
+      extensionCacheMisses++;
+      extensionData = evaluateExtension(extensionPath, importString, content, loadedExtensions);
+      extensionCache.put(extensionPath, contentHash, extensionData);
+    }
+    loadedExtensions.put(extensionPath, extensionData);
+    return extensionData;
+  }
+
+  /**
+   * @return Whether every extension loaded by {@code extensionData} is still the one it was
+   *     evaluated against.
+   */
+  private boolean areDependenciesUpToDate(
+      ExtensionData extensionData,
+      Map<com.google.devtools.build.lib.vfs.Path, ExtensionData> loadedExtensions)
+      throws IOException, BuildFileParseException, InterruptedException {
+    for (ExtensionData dependency : extensionData.getDependencies()) {
+      ExtensionData current =
+          loadExtension(
+              fileSystem.getPath(dependency.getPath().getPathString()),
+              dependency.getImportString(),
+              loadedExtensions);
+      if (current.getExtension() != dependency.getExtension()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Parses and evaluates the extension with the given {@code content}. */
+  private ExtensionData evaluateExtension(
+      com.google.devtools.build.lib.vfs.Path extensionPath,
+      String importString,
+      byte[] content,
+      Map<com.google.devtools.build.lib.vfs.Path, ExtensionData> loadedExtensions)
       throws IOException, BuildFileParseException, InterruptedException {
-    com.google.devtools.build.lib.vfs.Path extensionPath = getImportPath(skylarkImport);
     Extension extension;
     ImmutableList<ExtensionData> dependencies = ImmutableList.of();
     try (Mutability mutability = Mutability.create("importing extension")) {
       BuildFileAST extensionAst =
-          BuildFileAST.parseSkylarkFile(createInputSource(extensionPath), eventHandler);
+          BuildFileAST.parseSkylarkFile(
+              ParserInputSource.create(content, extensionPath.asFragment()), eventHandler);
       if (extensionAst.containsErrors()) {
         throw BuildFileParseException.createForUnknownParseError(
-            "Cannot parse extension file " + skylarkImport.getImportString());
+            "Cannot parse extension file " + importString);
       }
       Environment.Builder envBuilder =
           Environment.builder(mutability)
               .setEventHandler(eventHandler)
               .setGlobals(buckGlobalsSupplier.get());
       if (!extensionAst.getImports().isEmpty()) {
-        dependencies = loadExtensions(extensionAst.getImports());
+        dependencies = loadExtensions(extensionAst.getImports(), loadedExtensions);
         envBuilder.setImportedExtensions(toImportMap(dependencies));
       }
       Environment extensionEnv = envBuilder.useDefaultSemantics().build();
@@ -323,7 +445,7 @@ public class SkylarkProjectBuildFileParser implements ProjectBuildFileParser {
       boolean success = extensionAst.exec(extensionEnv, eventHandler);
       if (!success) {
         throw BuildFileParseException.createForUnknownParseError(
-            "Cannot evaluate extension file " + skylarkImport.getImportString());
+            "Cannot evaluate extension file " + importString);
       }
       extension = new Extension(extensionEnv);
     }
@@ -331,7 +453,7 @@ public class SkylarkProjectBuildFileParser implements ProjectBuildFileParser {
         .setExtension(extension)
         .setPath(extensionPath)
         .setDependencies(dependencies)
-        .setImportString(skylarkImport.getImportString())
+        .setImportString(importString)
         .build();
   }
 
@@ -501,12 +623,19 @@ public class SkylarkProjectBuildFileParser implements ProjectBuildFileParser {
 
   @Override
   public void reportProfile() throws IOException {
-    // TODO(ttsugrii): implement
+    if (!options.getEnableProfiling()) {
+      return;
+    }
+    buckEventBus.post(
+        ParseBuckProfilerReportEvent.profilerReport(
+            String.format(
+                "Skylark extension cache: %d hits, %d misses, %d extensions cached",
+                extensionCacheHits, extensionCacheMisses, extensionCache.size())));
   }
 
   @Override
   public void close() throws BuildFileParseException, InterruptedException, IOException {
-    // nothing to do
+    globberFactory.close();
   }
 
   /**
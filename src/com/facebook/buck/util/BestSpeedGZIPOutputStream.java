@@ -0,0 +1,34 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Gzips at the fastest level, for data such as traces which is written while the user waits, and
+ * only read occasionally.
+ */
+public class BestSpeedGZIPOutputStream extends GZIPOutputStream {
+
+  public BestSpeedGZIPOutputStream(OutputStream out, boolean syncFlush) throws IOException {
+    super(out, syncFlush);
+    def.setLevel(Deflater.BEST_SPEED);
+  }
+}
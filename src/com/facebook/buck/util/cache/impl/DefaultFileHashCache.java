@@ -36,6 +36,7 @@ import com.google.common.hash.Hashing;
 import java.io.IOException;
 import java.nio.file.FileSystems;
 import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.AbstractMap;
 import java.util.ArrayList;
 import java.util.List;
@@ -52,6 +53,7 @@ public class DefaultFileHashCache implements ProjectFileHashCache {
 
   private final ProjectFilesystem projectFilesystem;
   private final Predicate<Path> ignoredPredicate;
+  private final Optional<PersistentFileHashStore> persistentStore;
 
   @VisibleForTesting FileHashCacheEngine fileHashCacheEngine;
 
@@ -59,8 +61,21 @@ public class DefaultFileHashCache implements ProjectFileHashCache {
       ProjectFilesystem projectFilesystem,
       Predicate<Path> ignoredPredicate,
       FileHashCacheMode fileHashCacheMode) {
+    this(projectFilesystem, ignoredPredicate, fileHashCacheMode, Optional.empty());
+  }
+
+  /**
+   * @param persistentStore file hashes computed by earlier runs, which are used instead of hashing
+   *     files which haven't changed since.
+   */
+  protected DefaultFileHashCache(
+      ProjectFilesystem projectFilesystem,
+      Predicate<Path> ignoredPredicate,
+      FileHashCacheMode fileHashCacheMode,
+      Optional<PersistentFileHashStore> persistentStore) {
     this.projectFilesystem = projectFilesystem;
     this.ignoredPredicate = ignoredPredicate;
+    this.persistentStore = persistentStore;
     FileHashCacheEngine.ValueLoader<HashCodeAndFileType> hashLoader =
         path -> {
           try {
@@ -142,6 +157,17 @@ public class DefaultFileHashCache implements ProjectFileHashCache {
         projectFilesystem, getDefaultPathPredicate(projectFilesystem), fileHashCacheMode);
   }
 
+  public static DefaultFileHashCache createDefaultFileHashCache(
+      ProjectFilesystem projectFilesystem,
+      FileHashCacheMode fileHashCacheMode,
+      Optional<PersistentFileHashStore> persistentStore) {
+    return new DefaultFileHashCache(
+        projectFilesystem,
+        getDefaultPathPredicate(projectFilesystem),
+        fileHashCacheMode,
+        persistentStore);
+  }
+
   protected static Predicate<Path> getDefaultPathPredicate(ProjectFilesystem projectFilesystem) {
     return path ->
         path.startsWith(projectFilesystem.getBuckPaths().getBuckOut())
@@ -191,7 +217,19 @@ public class DefaultFileHashCache implements ProjectFileHashCache {
   }
 
   private HashCode getFileHashCode(Path path) throws IOException {
-    return projectFilesystem.computeSha1(path).asHashCode();
+    if (!persistentStore.isPresent()) {
+      return projectFilesystem.computeSha1(path).asHashCode();
+    }
+    // Stat the file before hashing it, so that a change made meanwhile is noticed next time.
+    BasicFileAttributes attributes =
+        projectFilesystem.readAttributes(path, BasicFileAttributes.class);
+    Optional<HashCode> stored = persistentStore.get().get(path, attributes);
+    if (stored.isPresent()) {
+      return stored.get();
+    }
+    HashCode hashCode = projectFilesystem.computeSha1(path).asHashCode();
+    persistentStore.get().put(path, attributes, hashCode);
+    return hashCode;
   }
 
   private long getPathSize(Path path) throws IOException {
@@ -0,0 +1,183 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.util.cache.impl;
+
+import com.facebook.buck.io.filesystem.ProjectFilesystem;
+import com.facebook.buck.util.recordlog.RecordLog;
+import com.facebook.buck.util.recordlog.RecordLogMap;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Maps;
+import com.google.common.hash.HashCode;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * File hashes kept on disk, so that they outlive the daemon and runs without one.
+ *
+ * <p>A hash is recorded along with the modification time, size and file key (the inode on most
+ * systems) of the file it was computed for, and is only handed out again while all of them still
+ * match, which is checked when the hash is asked for. Files modified moments before they were
+ * hashed aren't recorded, since a change made within the resolution of the modification time
+ * wouldn't be noticed.
+ *
+ * <p>The hashes are kept in a {@link RecordLogMap}, which {@link #flush()} saves. A log which can't
+ * be read is discarded, all its hashes are computed again.
+ */
+public class PersistentFileHashStore {
+
+  private static final int MAGIC = 0x42464853;
+  private static final int VERSION = 1;
+  private static final int MAX_RECORD_SIZE_BYTES = 64 * 1024;
+  // Modification times are only as precise as the filesystem keeps them, so a file modified again
+  // right after it was hashed may look unchanged.
+  private static final long RACY_MODIFICATION_WINDOW_MILLIS = 2000;
+
+  private final RecordLogMap<Path, StoredHash> hashes;
+
+  public PersistentFileHashStore(ProjectFilesystem filesystem, Path storePath) {
+    this.hashes =
+        new RecordLogMap<>(
+            new RecordLog(
+                filesystem, storePath, "file hash store", MAGIC, VERSION, MAX_RECORD_SIZE_BYTES),
+            new Codec(filesystem));
+  }
+
+  /** Creates the store of the hashes of the files in {@code filesystem}. */
+  public static PersistentFileHashStore forFilesystem(ProjectFilesystem filesystem) {
+    return new PersistentFileHashStore(
+        filesystem, filesystem.getBuckPaths().getFileHashCacheDir().resolve("hashes"));
+  }
+
+  /**
+   * @return the recorded hash of {@code relativePath}, if the file still has the modification
+   *     time, size and file key in {@code attributes}.
+   */
+  public Optional<HashCode> get(Path relativePath, BasicFileAttributes attributes) {
+    StoredHash entry = hashes.get(relativePath);
+    if (entry == null || !entry.matches(attributes)) {
+      return Optional.empty();
+    }
+    return Optional.of(entry.hashCode);
+  }
+
+  /** Records the hash of {@code relativePath}, computed while it had {@code attributes}. */
+  public void put(Path relativePath, BasicFileAttributes attributes, HashCode hashCode) {
+    long modifiedMillis = attributes.lastModifiedTime().toMillis();
+    if (modifiedMillis > System.currentTimeMillis() - RACY_MODIFICATION_WINDOW_MILLIS) {
+      return;
+    }
+    StoredHash entry = new StoredHash(attributes, hashCode);
+    if (!entry.equals(hashes.get(relativePath))) {
+      hashes.put(relativePath, entry);
+    }
+  }
+
+  /** Appends the hashes recorded since the last flush to the log, compacting it if needed. */
+  public void flush() throws IOException {
+    hashes.save();
+  }
+
+  @VisibleForTesting
+  int size() {
+    return hashes.size();
+  }
+
+  private static class Codec implements RecordLogMap.Codec<Path, StoredHash> {
+    private final ProjectFilesystem filesystem;
+
+    private Codec(ProjectFilesystem filesystem) {
+      this.filesystem = filesystem;
+    }
+
+    @Override
+    public void write(Path path, StoredHash entry, DataOutputStream out) throws IOException {
+      out.writeUTF(path.toString());
+      out.writeLong(entry.modifiedNanos);
+      out.writeLong(entry.sizeBytes);
+      out.writeUTF(entry.fileKey);
+      RecordLogMap.writeHashCode(out, entry.hashCode);
+    }
+
+    @Override
+    public Map.Entry<Path, StoredHash> read(DataInputStream in) throws IOException {
+      Path path = filesystem.getPath(in.readUTF());
+      long modifiedNanos = in.readLong();
+      long sizeBytes = in.readLong();
+      String fileKey = in.readUTF();
+      HashCode hashCode = RecordLogMap.readHashCode(in);
+      return Maps.immutableEntry(path, new StoredHash(modifiedNanos, sizeBytes, fileKey, hashCode));
+    }
+  }
+
+  private static class StoredHash {
+    private final long modifiedNanos;
+    private final long sizeBytes;
+    // Empty where the filesystem has no file keys.
+    private final String fileKey;
+    private final HashCode hashCode;
+
+    private StoredHash(long modifiedNanos, long sizeBytes, String fileKey, HashCode hashCode) {
+      this.modifiedNanos = modifiedNanos;
+      this.sizeBytes = sizeBytes;
+      this.fileKey = fileKey;
+      this.hashCode = hashCode;
+    }
+
+    private StoredHash(BasicFileAttributes attributes, HashCode hashCode) {
+      this(
+          attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS),
+          attributes.size(),
+          getFileKey(attributes),
+          hashCode);
+    }
+
+    private static String getFileKey(BasicFileAttributes attributes) {
+      Object fileKey = attributes.fileKey();
+      return fileKey == null ? "" : fileKey.toString();
+    }
+
+    private boolean matches(BasicFileAttributes attributes) {
+      return modifiedNanos == attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS)
+          && sizeBytes == attributes.size()
+          && fileKey.equals(getFileKey(attributes));
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (!(other instanceof StoredHash)) {
+        return false;
+      }
+      StoredHash that = (StoredHash) other;
+      return modifiedNanos == that.modifiedNanos
+          && sizeBytes == that.sizeBytes
+          && fileKey.equals(that.fileKey)
+          && hashCode.equals(that.hashCode);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(modifiedNanos, sizeBytes, fileKey, hashCode);
+    }
+  }
+}
@@ -25,4 +25,10 @@ abstract class AbstractListeningSemaphoreArrayPendingItem {
   public abstract SettableFuture<Void> getFuture();
 
   public abstract ResourceAmounts getResources();
+
+  /** Items with a higher priority are given resources first. */
+  public abstract long getPriority();
+
+  /** The order items were queued in, which serves items of the same priority first come first. */
+  public abstract long getSequence();
 }
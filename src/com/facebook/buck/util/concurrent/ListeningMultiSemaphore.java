@@ -20,9 +20,10 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.SettableFuture;
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
+import java.util.PriorityQueue;
 
 /**
  * A semaphore using {@link ListenableFuture}s for acquisition of different resource types rather
@@ -32,8 +33,13 @@ public class ListeningMultiSemaphore {
 
   private ResourceAmounts usedValues;
   private final ResourceAmounts maximumValues;
-  private final List<ListeningSemaphoreArrayPendingItem> pending = new LinkedList<>();
+  private final PriorityQueue<ListeningSemaphoreArrayPendingItem> pending =
+      new PriorityQueue<>(
+          Comparator.comparingLong(ListeningSemaphoreArrayPendingItem::getPriority)
+              .reversed()
+              .thenComparingLong(ListeningSemaphoreArrayPendingItem::getSequence));
   private final ResourceAllocationFairness fairness;
+  private long nextSequence = 0;
 
   public ListeningMultiSemaphore(
       ResourceAmounts availableResources, ResourceAllocationFairness fairness) {
@@ -52,7 +58,20 @@ public class ListeningMultiSemaphore {
    *     amounts, they will be capped to them.
    * @return Future that will be completed once resource will be acquired.
    */
-  public synchronized ListenableFuture<Void> acquire(ResourceAmounts resources) {
+  public ListenableFuture<Void> acquire(ResourceAmounts resources) {
+    return acquire(resources, 0);
+  }
+
+  /**
+   * Like {@link #acquire(ResourceAmounts)}, but if the resources aren't available the request is
+   * queued ahead of the pending requests with a lower priority. Requests with the same priority are
+   * served in the order they were made.
+   *
+   * @param resources Resource amounts that need to be acquired.
+   * @param priority The priority of the request, higher priorities are served first.
+   * @return Future that will be completed once resource will be acquired.
+   */
+  public synchronized ListenableFuture<Void> acquire(ResourceAmounts resources, long priority) {
     if (resources.equals(ResourceAmounts.ZERO)) {
       return Futures.immediateFuture(null);
     }
@@ -60,7 +79,9 @@ public class ListeningMultiSemaphore {
     resources = capResourceAmounts(resources);
     if (!checkIfResourcesAvailable(resources)) {
       SettableFuture<Void> pendingFuture = SettableFuture.create();
-      pending.add(ListeningSemaphoreArrayPendingItem.of(pendingFuture, resources));
+      pending.add(
+          ListeningSemaphoreArrayPendingItem.of(
+              pendingFuture, resources, priority, nextSequence++));
       return pendingFuture;
     }
     increaseUsedResources(resources);
@@ -87,17 +108,21 @@ public class ListeningMultiSemaphore {
       getPendingItemsThatCanBeProcessed() {
     ImmutableList.Builder<ListeningSemaphoreArrayPendingItem> builder = ImmutableList.builder();
 
-    Iterator<ListeningSemaphoreArrayPendingItem> iterator = pending.iterator();
-    while (!getAvailableResources().equals(ResourceAmounts.ZERO) && iterator.hasNext()) {
-      ListeningSemaphoreArrayPendingItem item = iterator.next();
+    // Items are taken off the queue in order, and the ones skipped over are put back afterwards.
+    List<ListeningSemaphoreArrayPendingItem> skipped = new ArrayList<>();
+    while (!getAvailableResources().equals(ResourceAmounts.ZERO) && !pending.isEmpty()) {
+      ListeningSemaphoreArrayPendingItem item = pending.peek();
       if (checkIfResourcesAvailable(item.getResources())) {
         builder.add(item);
         increaseUsedResources(item.getResources());
-        iterator.remove();
-      } else if (!fairnessAllowsReordering()) {
+        pending.poll();
+      } else if (fairnessAllowsReordering()) {
+        skipped.add(pending.poll());
+      } else {
         break;
       }
     }
+    pending.addAll(skipped);
     return builder.build();
   }
 
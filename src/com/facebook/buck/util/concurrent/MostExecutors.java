@@ -77,6 +77,32 @@ public class MostExecutors {
         /* handler */ new ThreadPoolExecutor.DiscardPolicy());
   }
 
+  /**
+   * Creates a single threaded executor which holds at most {@code maxQueuedTasks} tasks, to bound
+   * the memory they use: once that many are waiting, submitting threads wait for room. Tasks
+   * submitted after shutdown are silently discarded.
+   */
+  public static ExecutorService newSingleThreadExecutor(
+      ThreadFactory threadFactory, int maxQueuedTasks) {
+    return new ThreadPoolExecutor(
+        /* corePoolSize */ 1,
+        /* maximumPoolSize */ 1,
+        /* keepAliveTime */ 0L,
+        TimeUnit.MILLISECONDS,
+        /* workQueue */ new LinkedBlockingQueue<Runnable>(maxQueuedTasks),
+        /* threadFactory */ threadFactory,
+        /* handler */ (task, executor) -> {
+          if (executor.isShutdown()) {
+            return;
+          }
+          try {
+            executor.getQueue().put(task);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        });
+  }
+
   /**
    * Creates a multi-threaded executor with meaningfully named threads.
    *
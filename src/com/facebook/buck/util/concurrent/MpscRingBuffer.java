@@ -0,0 +1,111 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.util.concurrent;
+
+import com.google.common.base.Preconditions;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import javax.annotation.Nullable;
+
+/**
+ * A bounded, lock-free queue for many producers and a single consumer.
+ *
+ * <p>Each slot of the ring carries a sequence number saying whether it's ready to be written or
+ * read, so producers only contend on claiming a position, and never on the consumer. {@link
+ * #offer(Object)} fails rather than waits when the ring is full, leaving it to the caller to decide
+ * whether to retry or give up. Only one thread may call {@link #poll()}.
+ */
+public final class MpscRingBuffer<T> {
+
+  private final int mask;
+  private final AtomicReferenceArray<T> items;
+  private final AtomicLongArray sequences;
+  private final AtomicLong tail = new AtomicLong();
+  private volatile long head = 0;
+
+  /** @param capacity the minimum number of items the ring holds, rounded up to a power of two. */
+  public MpscRingBuffer(int capacity) {
+    Preconditions.checkArgument(capacity > 0 && capacity <= 1 << 30);
+    // With a single slot, the sequence of a published item would equal that of a freed slot.
+    int size = Math.max(2, Integer.highestOneBit(capacity));
+    if (size < capacity) {
+      size <<= 1;
+    }
+    this.mask = size - 1;
+    this.items = new AtomicReferenceArray<>(size);
+    this.sequences = new AtomicLongArray(size);
+    for (int i = 0; i < size; i++) {
+      sequences.set(i, i);
+    }
+  }
+
+  public int capacity() {
+    return mask + 1;
+  }
+
+  /** @return whether the item was added, which it isn't when the ring is full. */
+  public boolean offer(T item) {
+    Preconditions.checkNotNull(item);
+    long position = tail.get();
+    while (true) {
+      int index = (int) (position & mask);
+      long available = sequences.get(index) - position;
+      if (available == 0) {
+        if (tail.compareAndSet(position, position + 1)) {
+          items.lazySet(index, item);
+          // Publishes the item to the consumer.
+          sequences.set(index, position + 1);
+          return true;
+        }
+        position = tail.get();
+      } else if (available < 0) {
+        // The consumer hasn't freed this slot yet, a full lap ago.
+        return false;
+      } else {
+        // Another producer claimed this position.
+        position = tail.get();
+      }
+    }
+  }
+
+  /** @return the oldest item, or {@code null} if the ring is empty. Not thread-safe. */
+  @Nullable
+  public T poll() {
+    long position = head;
+    int index = (int) (position & mask);
+    if (sequences.get(index) != position + 1) {
+      return null;
+    }
+    T item = items.get(index);
+    items.lazySet(index, null);
+    // Hands the slot back to the producers for the next lap.
+    sequences.set(index, position + mask + 1);
+    head = position + 1;
+    return item;
+  }
+
+  /** @return the number of items in the ring, which may be stale by the time it's returned. */
+  public int size() {
+    long size = tail.get() - head;
+    return (int) Math.max(0, Math.min(size, capacity()));
+  }
+
+  public boolean isEmpty() {
+    return size() == 0;
+  }
+}
@@ -18,23 +18,35 @@ package com.facebook.buck.util.concurrent;
 
 import com.facebook.buck.log.Logger;
 import com.facebook.buck.model.Either;
+import com.facebook.buck.util.timing.Clock;
+import com.facebook.buck.util.timing.DefaultClock;
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
 import com.google.common.util.concurrent.AsyncFunction;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListeningExecutorService;
 import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Deque;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Consumer;
+import java.util.function.Predicate;
 import java.util.function.Supplier;
+import java.util.function.ToIntFunction;
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.GuardedBy;
 
@@ -54,12 +66,21 @@ import javax.annotation.concurrent.GuardedBy;
  * of errors when "using" a resource it is assumed to be defective, will be retired and a new
  * resource will be requested from the supplier. The Future associated with the failed attempt to
  * use the resource will contain the relevant exception.
+ *
+ * <p>The pool can also adapt to the demand: resources which are worn out (for example because they
+ * hold on to too much memory) are retired when they are returned, resources left parked for longer
+ * than a maximum idle time are closed by a periodic check, and each operation can say which of the
+ * parked resources it would rather use. Retired resources are closed outside of the pool's lock.
  */
 public class ResourcePool<R extends AutoCloseable> implements AutoCloseable {
   private static final Logger LOG = Logger.get(ResourcePool.class);
+  private static final long MIN_IDLE_CHECK_PERIOD_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
 
   private final int maxResources;
   private final ResourceUsageErrorPolicy resourceUsageErrorPolicy;
+  private final Predicate<? super R> isWornOut;
+  private final Optional<Long> maxIdleNanos;
+  private final Clock clock;
 
   @GuardedBy("this")
   private final Supplier<R> resourceSupplier;
@@ -70,11 +91,18 @@ public class ResourcePool<R extends AutoCloseable> implements AutoCloseable {
   @GuardedBy("this")
   private final Deque<R> parkedResources;
 
+  /** When each parked resource was parked, as returned by {@link Clock#nanoTime()}. */
+  @GuardedBy("this")
+  private final Map<R, Long> parkedSinceNanos;
+
   @GuardedBy("this")
   private final Deque<SettableFuture<Void>> resourceRequests;
 
   private final AtomicBoolean closing;
 
+  /** Closes idle resources even while nothing is returned to the pool. */
+  private final Optional<ScheduledExecutorService> idleCheckExecutor;
+
   @GuardedBy("this")
   private @Nullable ListenableFuture<Void> shutdownFuture;
 
@@ -90,17 +118,57 @@ public class ResourcePool<R extends AutoCloseable> implements AutoCloseable {
       int maxResources,
       ResourceUsageErrorPolicy resourceUsageErrorPolicy,
       Supplier<R> resourceSupplier) {
+    this(
+        maxResources,
+        resourceUsageErrorPolicy,
+        resourceSupplier,
+        resource -> false,
+        Optional.empty(),
+        new DefaultClock());
+  }
+
+  /**
+   * @param isWornOut tells whether a resource that was just used should be retired rather than
+   *     parked. A new resource is created in its place when needed.
+   * @param maxIdleNanos how long a resource may stay parked before it is closed. The last parked
+   *     resource is always kept, so that the next request doesn't have to wait for a new one.
+   */
+  public ResourcePool(
+      int maxResources,
+      ResourceUsageErrorPolicy resourceUsageErrorPolicy,
+      Supplier<R> resourceSupplier,
+      Predicate<? super R> isWornOut,
+      Optional<Long> maxIdleNanos,
+      Clock clock) {
     Preconditions.checkArgument(maxResources > 0);
 
     this.maxResources = maxResources;
     this.resourceUsageErrorPolicy = resourceUsageErrorPolicy;
     this.resourceSupplier = resourceSupplier;
+    this.isWornOut = isWornOut;
+    this.maxIdleNanos = maxIdleNanos;
+    this.clock = clock;
     this.createdResources = new ArrayList<>();
     this.parkedResources = new ArrayDeque<>();
+    this.parkedSinceNanos = new IdentityHashMap<>();
     this.resourceRequests = new ArrayDeque<>();
     this.closing = new AtomicBoolean(false);
     this.shutdownFuture = null;
     this.pendingWork = new HashSet<>();
+    this.idleCheckExecutor =
+        maxIdleNanos.map(
+            nanos -> {
+              ScheduledExecutorService executor =
+                  Executors.newSingleThreadScheduledExecutor(
+                      new ThreadFactoryBuilder()
+                          .setNameFormat("resource idle check-%d")
+                          .setDaemon(true)
+                          .build());
+              long periodNanos = Math.max(nanos, MIN_IDLE_CHECK_PERIOD_NANOS);
+              executor.scheduleWithFixedDelay(
+                  this::closeIdleResources, periodNanos, periodNanos, TimeUnit.NANOSECONDS);
+              return executor;
+            });
   }
 
   public synchronized void callOnEachResource(Consumer<R> withResource) {
@@ -118,6 +186,21 @@ public class ResourcePool<R extends AutoCloseable> implements AutoCloseable {
    */
   public synchronized <T> ListenableFuture<T> scheduleOperationWithResource(
       ThrowingFunction<R, T> withResource, final ListeningExecutorService executorService) {
+    return scheduleOperationWithResource(withResource, resource -> 0, executorService);
+  }
+
+  /**
+   * @param affinity how well suited each resource is to the processing. Of the parked resources,
+   *     the one with the highest affinity is used, and the one parked the longest among equals.
+   * @param executorService where to perform the resource processing. Should really be a "real"
+   *     executor (not a directExecutor).
+   * @return a {@link ListenableFuture} containing the result of the processing. The future will be
+   *     cancelled if the {@link ResourcePool#close()} method is called.
+   */
+  public synchronized <T> ListenableFuture<T> scheduleOperationWithResource(
+      ThrowingFunction<R, T> withResource,
+      ToIntFunction<? super R> affinity,
+      final ListeningExecutorService executorService) {
     Preconditions.checkState(!closing.get());
 
     final ListenableFuture<T> futureWork =
@@ -126,7 +209,7 @@ public class ResourcePool<R extends AutoCloseable> implements AutoCloseable {
             new AsyncFunction<Void, T>() {
               @Override
               public ListenableFuture<T> apply(Void input) throws Exception {
-                Either<R, ListenableFuture<Void>> resourceRequest = requestResource();
+                Either<R, ListenableFuture<Void>> resourceRequest = requestResource(affinity);
                 if (resourceRequest.isLeft()) {
                   R resource = resourceRequest.getLeft();
                   boolean resourceIsDefunct = false;
@@ -172,8 +255,9 @@ public class ResourcePool<R extends AutoCloseable> implements AutoCloseable {
     return scheduleNewResourceRequest();
   }
 
-  private synchronized Either<R, ListenableFuture<Void>> requestResource() {
-    Optional<R> resource = obtainResource();
+  private synchronized Either<R, ListenableFuture<Void>> requestResource(
+      ToIntFunction<? super R> affinity) {
+    Optional<R> resource = obtainResource(affinity);
     if (resource.isPresent()) {
       return Either.ofLeft(resource.get());
     }
@@ -189,29 +273,90 @@ public class ResourcePool<R extends AutoCloseable> implements AutoCloseable {
     return resourceFuture;
   }
 
-  private synchronized Optional<R> obtainResource() {
+  private synchronized Optional<R> obtainResource(ToIntFunction<? super R> affinity) {
     if (closing.get()) {
       return Optional.empty();
     }
-    R resource = parkedResources.pollFirst();
-    if (resource != null) {
-      return Optional.of(resource);
+    R best = null;
+    int bestAffinity = Integer.MIN_VALUE;
+    for (R resource : parkedResources) {
+      int resourceAffinity = affinity.applyAsInt(resource);
+      if (best == null || resourceAffinity > bestAffinity) {
+        best = resource;
+        bestAffinity = resourceAffinity;
+      }
+    }
+    if (best != null) {
+      parkedResources.remove(best);
+      parkedSinceNanos.remove(best);
+      return Optional.of(best);
     }
     return createIfAllowed();
   }
 
-  private synchronized void returnResource(R resource, boolean resourceIsDefunct) {
-    if (resourceIsDefunct) {
-      createdResources.remove(resource);
+  private void returnResource(R resource, boolean resourceIsDefunct) {
+    // The resource isn't shared until it's parked, so it can be checked without holding the lock.
+    boolean retire = resourceIsDefunct;
+    if (!retire && isWornOut.test(resource)) {
+      LOG.debug("Retiring a worn out resource.");
+      retire = true;
+    }
+    List<R> toClose = new ArrayList<>();
+    synchronized (this) {
+      if (retire) {
+        createdResources.remove(resource);
+        toClose.add(resource);
+      } else {
+        parkedResources.add(resource);
+        parkedSinceNanos.put(resource, clock.nanoTime());
+      }
+      collectIdleResources(toClose);
+      scheduleNextRequest();
+    }
+    closeRetired(toClose);
+  }
+
+  /** Closes the resources parked for longer than the maximum idle time, but the last one. */
+  @VisibleForTesting
+  void closeIdleResources() {
+    List<R> toClose = new ArrayList<>();
+    synchronized (this) {
+      if (closing.get()) {
+        return;
+      }
+      collectIdleResources(toClose);
+    }
+    closeRetired(toClose);
+  }
+
+  @GuardedBy("this")
+  private void collectIdleResources(List<R> toClose) {
+    if (!maxIdleNanos.isPresent()) {
+      return;
+    }
+    long now = clock.nanoTime();
+    Iterator<R> iterator = parkedResources.iterator();
+    while (parkedResources.size() > 1 && iterator.hasNext()) {
+      R resource = iterator.next();
+      if (now - parkedSinceNanos.get(resource) > maxIdleNanos.get()) {
+        iterator.remove();
+        parkedSinceNanos.remove(resource);
+        createdResources.remove(resource);
+        LOG.debug("Retiring an idle resource.");
+        toClose.add(resource);
+      }
+    }
+  }
+
+  /** Closing may be slow, so it's done once the retired resources are out of the pool's state. */
+  private void closeRetired(List<R> resources) {
+    for (R resource : resources) {
       try {
         resource.close();
       } catch (Exception e) {
-        LOG.info(e, "Error shutting down a defunct resource.");
+        LOG.info(e, "Error shutting down a retired resource.");
       }
-    } else {
-      parkedResources.add(resource);
     }
-    scheduleNextRequest();
   }
 
   private synchronized void scheduleNextRequest() {
@@ -252,6 +397,7 @@ public class ResourcePool<R extends AutoCloseable> implements AutoCloseable {
   public synchronized void close() {
     Preconditions.checkState(!closing.get());
     closing.set(true);
+    idleCheckExecutor.ifPresent(ExecutorService::shutdownNow);
 
     // Unblock all waiting requests.
     for (SettableFuture<Void> request : resourceRequests) {
@@ -282,20 +428,22 @@ public class ResourcePool<R extends AutoCloseable> implements AutoCloseable {
             new AsyncFunction<List<Object>, Void>() {
               @Override
               public ListenableFuture<Void> apply(List<Object> input) throws Exception {
+                List<R> toClose;
                 synchronized (ResourcePool.this) {
                   if (parkedResources.size() != createdResources.size()) {
                     LOG.error("Whoops! Some resource are still in use during shutdown.");
                   }
-                  // Now that pending work is done we can close all resources.
-                  for (R resource : createdResources) {
-                    resource.close();
-                  }
+                  toClose = new ArrayList<>(createdResources);
                   if (!resourceRequests.isEmpty()) {
                     LOG.error(
                         "Error shutting down ResourcePool: "
                             + "there should be no enqueued resource requests.");
                   }
                 }
+                // Now that pending work is done we can close all resources.
+                for (R resource : toClose) {
+                  resource.close();
+                }
                 executorService.shutdown();
                 return Futures.immediateFuture(null);
               }
@@ -0,0 +1,288 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.util.recordlog;
+
+import com.facebook.buck.io.filesystem.ProjectFilesystem;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingInputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.CRC32;
+import javax.annotation.Nullable;
+
+/**
+ * A file of records which is appended to as they're written, and replaced by a {@link Rewriter
+ * rewritten} one once it holds many records which are no longer needed.
+ *
+ * <p>The log starts with a magic number and a version, which tell what it holds, followed by a
+ * header of its owner's. Each record is its length, its contents and a checksum of its contents,
+ * so that a log left corrupt is detected. A record cut short by a crash, or by a process appending
+ * to the log right now, can only be at the end of the log, and is read as the end of it.
+ *
+ * <p>What a record holds is up to the owner of the log. See {@link RecordLogMap} for a map kept in
+ * a log.
+ */
+public class RecordLog {
+
+  private final ProjectFilesystem filesystem;
+  private final Path path;
+  private final String description;
+  private final int magic;
+  private final int version;
+  private final int maxRecordSizeBytes;
+
+  /**
+   * @param path the path of the log, relative to the project root.
+   * @param description what the log is, for error messages, e.g. "rule key store".
+   * @param maxRecordSizeBytes how large a record can be. Longer records are taken to be corrupt.
+   */
+  public RecordLog(
+      ProjectFilesystem filesystem,
+      Path path,
+      String description,
+      int magic,
+      int version,
+      int maxRecordSizeBytes) {
+    this.filesystem = filesystem;
+    this.path = path;
+    this.description = description;
+    this.magic = magic;
+    this.version = version;
+    this.maxRecordSizeBytes = maxRecordSizeBytes;
+  }
+
+  public Path getPath() {
+    return path;
+  }
+
+  public String getDescription() {
+    return description;
+  }
+
+  public boolean exists() {
+    return filesystem.exists(path);
+  }
+
+  public void delete() throws IOException {
+    filesystem.deleteFileAtPathIfExists(path);
+  }
+
+  /**
+   * Appends {@code records} to the log, which must have been created by a {@link Rewriter}. They
+   * are written all at once, so that they don't interleave with the records other processes are
+   * appending to the same log.
+   */
+  public void append(Iterable<byte[]> records) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (DataOutputStream out = new DataOutputStream(bytes)) {
+      for (byte[] record : records) {
+        writeRecord(out, record);
+      }
+    }
+    if (bytes.size() == 0) {
+      return;
+    }
+    // The log is reopened every time, so that a log rewritten by another process is appended to.
+    try (OutputStream out = filesystem.newUnbufferedFileOutputStream(path, /* append */ true)) {
+      bytes.writeTo(out);
+    }
+  }
+
+  /**
+   * Opens the log for reading.
+   *
+   * @throws IOException if it doesn't exist or has another magic number or version.
+   */
+  public Reader newReader() throws IOException {
+    return new Reader();
+  }
+
+  /** Starts a new log, which replaces this one once it's {@link Rewriter#commit() committed}. */
+  public Rewriter newRewriter() throws IOException {
+    return new Rewriter();
+  }
+
+  private void writeRecord(DataOutputStream out, byte[] record) throws IOException {
+    if (record.length == 0 || record.length > maxRecordSizeBytes) {
+      throw new IOException(
+          String.format("Can't write a %d byte record to a %s.", record.length, description));
+    }
+    out.writeInt(record.length);
+    out.write(record);
+    out.writeInt(checksum(record));
+  }
+
+  private static int checksum(byte[] bytes) {
+    CRC32 crc = new CRC32();
+    crc.update(bytes, 0, bytes.length);
+    return (int) crc.getValue();
+  }
+
+  /** Reads the records of the log in the order they were written. */
+  public class Reader implements Closeable {
+
+    private final CountingInputStream counter;
+    private final DataInputStream in;
+    private boolean truncated = false;
+
+    private Reader() throws IOException {
+      counter =
+          new CountingInputStream(new BufferedInputStream(filesystem.newFileInputStream(path)));
+      in = new DataInputStream(counter);
+      try {
+        if (in.readInt() != magic || in.readInt() != version) {
+          throw new IOException(
+              String.format(
+                  "%s is not a %s, or an unsupported version of one.", path, description));
+        }
+      } catch (IOException e) {
+        in.close();
+        throw e;
+      }
+    }
+
+    /** The stream to read the owner's header from, before reading any record. */
+    public DataInputStream getHeaderInput() {
+      return in;
+    }
+
+    /** @return how many bytes of the log have been read. */
+    public long getOffset() {
+      return counter.getCount();
+    }
+
+    /** Skips to {@code offset}, which should be the offset a record starts at. */
+    public void skipTo(long offset) throws IOException {
+      ByteStreams.skipFully(in, offset - getOffset());
+    }
+
+    /**
+     * @return the next record, or null at the end of the log, which may be a record cut short.
+     * @throws IOException if the record is corrupt.
+     */
+    @Nullable
+    public byte[] readRecord() throws IOException {
+      if (truncated) {
+        return null;
+      }
+      long offset = getOffset();
+      in.mark(1);
+      if (in.read() == -1) {
+        return null;
+      }
+      in.reset();
+      byte[] record;
+      int checksum;
+      try {
+        int length = in.readInt();
+        if (length <= 0 || length > maxRecordSizeBytes) {
+          throw new IOException(
+              String.format("Corrupt %s record at offset %d of %s.", description, offset, path));
+        }
+        record = new byte[length];
+        in.readFully(record);
+        checksum = in.readInt();
+      } catch (EOFException e) {
+        truncated = true;
+        return null;
+      }
+      if (checksum != checksum(record)) {
+        throw new IOException(
+            String.format("Corrupt %s record at offset %d of %s.", description, offset, path));
+      }
+      return record;
+    }
+
+    /**
+     * Whether the log ended in a record cut short. Appending after it would make the records
+     * appended unreadable, so if no other process could be appending to it, the log should be
+     * rewritten instead.
+     */
+    public boolean isTruncated() {
+      return truncated;
+    }
+
+    @Override
+    public void close() throws IOException {
+      in.close();
+    }
+  }
+
+  /**
+   * Writes a new log next to this one, which replaces it when {@link #commit() committed}. A
+   * rewriter which is closed before it's committed leaves the log as it was.
+   */
+  public class Rewriter implements Closeable {
+
+    private final Path tmp;
+    private final DataOutputStream out;
+    private long recordCount = 0;
+    private boolean closed = false;
+
+    private Rewriter() throws IOException {
+      filesystem.mkdirs(path.getParent());
+      tmp = filesystem.createTempFile(path.getParent(), path.getFileName().toString(), ".tmp");
+      out = new DataOutputStream(new BufferedOutputStream(filesystem.newFileOutputStream(tmp)));
+      out.writeInt(magic);
+      out.writeInt(version);
+    }
+
+    /** The stream to write the owner's header to, before writing any record. */
+    public DataOutputStream getHeaderOutput() {
+      return out;
+    }
+
+    public void writeRecord(byte[] record) throws IOException {
+      RecordLog.this.writeRecord(out, record);
+      recordCount++;
+    }
+
+    public long getRecordCount() {
+      return recordCount;
+    }
+
+    /** @return how large the new log is. */
+    public long getSizeBytes() {
+      return out.size();
+    }
+
+    /** Replaces the log with the new one. */
+    public void commit() throws IOException {
+      out.close();
+      closed = true;
+      filesystem.move(tmp, path, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (!closed) {
+        out.close();
+        closed = true;
+      }
+      filesystem.deleteFileAtPathIfExists(tmp);
+    }
+  }
+}
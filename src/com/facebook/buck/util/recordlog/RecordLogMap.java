@@ -0,0 +1,246 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.util.recordlog;
+
+import com.facebook.buck.log.Logger;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.hash.HashCode;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiFunction;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * A map kept in a {@link RecordLog} between commands, for what an earlier command computed and a
+ * later one can reuse.
+ *
+ * <p>The map is loaded from the log when it's first used, and {@link #save()} appends a record of
+ * every entry put since. The log is rewritten with a record per entry once it holds many outdated
+ * records, or when an entry is removed, since there's no record of a removal.
+ *
+ * <p>The log can optionally be tied to a fingerprint of whatever all its entries depend on. A log
+ * with another fingerprint, or which can't be read, is discarded: its entries can always be
+ * computed again, so the command goes on rather than fail.
+ */
+public class RecordLogMap<K, V> {
+
+  private static final Logger LOG = Logger.get(RecordLogMap.class);
+
+  // Don't bother compacting small logs, however many outdated records they hold.
+  private static final long MIN_RECORDS_BEFORE_COMPACTION = 10000;
+
+  /** Writes the entries of a map to records, and reads them back. */
+  public interface Codec<K, V> {
+    void write(K key, V value, DataOutputStream out) throws IOException;
+
+    /** Reads an entry written by {@link #write}. */
+    Map.Entry<K, V> read(DataInputStream in) throws IOException;
+  }
+
+  private final RecordLog log;
+  private final Optional<HashCode> fingerprint;
+  private final Codec<K, V> codec;
+  private final Set<K> unsaved = ConcurrentHashMap.newKeySet();
+
+  @Nullable private volatile Map<K, V> entries;
+
+  @GuardedBy("this")
+  private long recordCount = 0;
+
+  @GuardedBy("this")
+  private boolean compactOnSave = false;
+
+  public RecordLogMap(RecordLog log, Codec<K, V> codec) {
+    this(log, Optional.empty(), codec);
+  }
+
+  /** @param fingerprint if present, entries saved with another fingerprint are discarded. */
+  public RecordLogMap(RecordLog log, Optional<HashCode> fingerprint, Codec<K, V> codec) {
+    this.log = log;
+    this.fingerprint = fingerprint;
+    this.codec = codec;
+  }
+
+  @Nullable
+  public V get(K key) {
+    return getEntries().get(key);
+  }
+
+  /** @return the entry put for {@code key} before, if any. */
+  @Nullable
+  public V put(K key, V value) {
+    V previous = getEntries().put(key, value);
+    unsaved.add(key);
+    return previous;
+  }
+
+  /** Atomically updates the entry for {@code key}, as {@link Map#compute} does. */
+  @Nullable
+  public V compute(K key, BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+    V value = getEntries().compute(key, remappingFunction);
+    unsaved.add(key);
+    return value;
+  }
+
+  public void remove(K key) {
+    if (getEntries().remove(key) != null) {
+      unsaved.remove(key);
+      synchronized (this) {
+        compactOnSave = true;
+      }
+    }
+  }
+
+  /** @return a view of the entries, which is loaded if it hasn't been yet. */
+  public Map<K, V> asMap() {
+    return Collections.unmodifiableMap(getEntries());
+  }
+
+  public int size() {
+    return getEntries().size();
+  }
+
+  /** Appends the entries put since the map was loaded or saved to the log. */
+  public synchronized void save() throws IOException {
+    if (unsaved.isEmpty() && !compactOnSave) {
+      return;
+    }
+    Map<K, V> allEntries = getEntries();
+    if (compactOnSave
+        || !log.exists()
+        || recordCount + unsaved.size()
+            > Math.max(MIN_RECORDS_BEFORE_COMPACTION, 2L * allEntries.size())) {
+      unsaved.clear();
+      compact(allEntries);
+      return;
+    }
+    List<byte[]> records = new ArrayList<>(unsaved.size());
+    for (K key : unsaved) {
+      unsaved.remove(key);
+      V value = allEntries.get(key);
+      if (value != null) {
+        records.add(encodeRecord(key, value));
+      }
+    }
+    log.append(records);
+    recordCount += records.size();
+  }
+
+  @VisibleForTesting
+  synchronized long getRecordCount() {
+    getEntries();
+    return recordCount;
+  }
+
+  private Map<K, V> getEntries() {
+    Map<K, V> result = entries;
+    if (result == null) {
+      synchronized (this) {
+        result = entries;
+        if (result == null) {
+          result = new ConcurrentHashMap<>();
+          load(result);
+          entries = result;
+        }
+      }
+    }
+    return result;
+  }
+
+  @GuardedBy("this")
+  private void load(Map<K, V> into) {
+    if (!log.exists()) {
+      return;
+    }
+    try (RecordLog.Reader reader = log.newReader()) {
+      if (fingerprint.isPresent()
+          && !readHashCode(reader.getHeaderInput()).equals(fingerprint.get())) {
+        LOG.debug(
+            "Discarding %s %s, saved with another fingerprint.",
+            log.getDescription(), log.getPath());
+        compactOnSave = true;
+        return;
+      }
+      byte[] record;
+      while ((record = reader.readRecord()) != null) {
+        Map.Entry<K, V> entry = codec.read(new DataInputStream(new ByteArrayInputStream(record)));
+        into.put(entry.getKey(), entry.getValue());
+        recordCount++;
+      }
+      if (reader.isTruncated()) {
+        // Nothing else appends to the log, so the record cut short was left by a crash.
+        compactOnSave = true;
+      }
+    } catch (IOException e) {
+      LOG.warn(e, "Discarding unreadable %s %s.", log.getDescription(), log.getPath());
+      into.clear();
+      recordCount = 0;
+      compactOnSave = true;
+    }
+  }
+
+  @GuardedBy("this")
+  private void compact(Map<K, V> allEntries) throws IOException {
+    try (RecordLog.Rewriter rewriter = log.newRewriter()) {
+      if (fingerprint.isPresent()) {
+        writeHashCode(rewriter.getHeaderOutput(), fingerprint.get());
+      }
+      for (Map.Entry<K, V> entry : allEntries.entrySet()) {
+        rewriter.writeRecord(encodeRecord(entry.getKey(), entry.getValue()));
+      }
+      rewriter.commit();
+      recordCount = rewriter.getRecordCount();
+    }
+    compactOnSave = false;
+  }
+
+  private byte[] encodeRecord(K key, V value) throws IOException {
+    ByteArrayOutputStream record = new ByteArrayOutputStream();
+    try (DataOutputStream out = new DataOutputStream(record)) {
+      codec.write(key, value, out);
+    }
+    return record.toByteArray();
+  }
+
+  /** Writes a hash code as its length and bytes, for codecs of entries holding hashes. */
+  public static void writeHashCode(DataOutputStream out, HashCode hashCode) throws IOException {
+    byte[] bytes = hashCode.asBytes();
+    out.writeByte(bytes.length);
+    out.write(bytes);
+  }
+
+  /** Reads a hash code written by {@link #writeHashCode}. */
+  public static HashCode readHashCode(DataInputStream in) throws IOException {
+    byte[] bytes = new byte[in.readUnsignedByte()];
+    if (bytes.length == 0) {
+      throw new IOException("Corrupt hash code.");
+    }
+    in.readFully(bytes);
+    return HashCode.fromBytes(bytes);
+  }
+}
@@ -99,6 +99,27 @@ public final class Sha1HashCode {
     return hasher;
   }
 
+  /**
+   * Copies the 20 bytes of this SHA-1 into {@code buffer} in order, starting at {@code offset}.
+   *
+   * @return the offset just past the copied bytes.
+   */
+  public int copyTo(byte[] buffer, int offset) {
+    offset = copyInt(buffer, offset, firstFourBytes);
+    offset = copyInt(buffer, offset, (int) nextEightBytes);
+    offset = copyInt(buffer, offset, (int) (nextEightBytes >>> 32));
+    offset = copyInt(buffer, offset, (int) lastEightBytes);
+    return copyInt(buffer, offset, (int) (lastEightBytes >>> 32));
+  }
+
+  private static int copyInt(byte[] buffer, int offset, int bytes) {
+    buffer[offset] = (byte) bytes;
+    buffer[offset + 1] = (byte) (bytes >>> 8);
+    buffer[offset + 2] = (byte) (bytes >>> 16);
+    buffer[offset + 3] = (byte) (bytes >>> 24);
+    return offset + 4;
+  }
+
   /**
    * <strong>This method should be used sparingly as we are trying to favor {@link Sha1HashCode}
    * over {@link HashCode}, where appropriate.</strong> Currently, the {@code FileHashCache} API is
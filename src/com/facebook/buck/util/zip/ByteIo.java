@@ -16,7 +16,9 @@
 
 package com.facebook.buck.util.zip;
 
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 
 class ByteIo {
@@ -37,4 +39,20 @@ class ByteIo {
     out.write((int) ((value >>> 24) & 0xff));
     return 4;
   }
+
+  public static int readShort(InputStream in) throws IOException {
+    return readByte(in) | (readByte(in) << 8);
+  }
+
+  public static long readInt(InputStream in) throws IOException {
+    return readShort(in) | ((long) readShort(in) << 16);
+  }
+
+  private static int readByte(InputStream in) throws IOException {
+    int value = in.read();
+    if (value == -1) {
+      throw new EOFException();
+    }
+    return value;
+  }
 }
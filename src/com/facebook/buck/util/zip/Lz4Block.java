@@ -0,0 +1,266 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.util.zip;
+
+import com.google.common.base.Preconditions;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Compression and decompression of LZ4 blocks, as described in
+ * https://github.com/lz4/lz4/blob/master/doc/lz4_Block_format.md.
+ *
+ * <p>The compressor is a greedy single-pass matcher, similar to the reference implementation's
+ * default level: it trades some compression ratio for speed.
+ */
+final class Lz4Block {
+
+  private static final int MIN_MATCH = 4;
+  private static final int MAX_DISTANCE = 0xFFFF;
+
+  // The last match must start at least this many bytes before the end of the block, and the last
+  // literals must be at least LAST_LITERALS long.
+  private static final int MF_LIMIT = 12;
+  private static final int LAST_LITERALS = 5;
+
+  private static final int HASH_LOG = 14;
+  static final int HASH_TABLE_SIZE = 1 << HASH_LOG;
+
+  // Once this many positions in a row have failed to find a match, start skipping ahead faster, so
+  // that incompressible data doesn't cost much.
+  private static final int SKIP_TRIGGER = 6;
+
+  private static final int XX_PRIME_1 = 0x9E3779B1;
+  private static final int XX_PRIME_2 = 0x85EBCA77;
+  private static final int XX_PRIME_3 = 0xC2B2AE3D;
+  private static final int XX_PRIME_4 = 0x27D4EB2F;
+  private static final int XX_PRIME_5 = 0x165667B1;
+
+  private Lz4Block() {}
+
+  /** @return the largest possible size of a compressed block of {@code length} bytes. */
+  static int maxCompressedLength(int length) {
+    return length + length / 255 + 16;
+  }
+
+  /**
+   * Compresses {@code src[srcOffset, srcOffset + length)} into {@code dst}, which must have room
+   * for {@link #maxCompressedLength} bytes from {@code dstOffset}.
+   *
+   * @param hashTable scratch space of {@link #HASH_TABLE_SIZE} entries, reused between calls.
+   * @return the size of the compressed block.
+   */
+  static int compress(
+      byte[] src, int srcOffset, int length, byte[] dst, int dstOffset, int[] hashTable) {
+    Preconditions.checkArgument(hashTable.length == HASH_TABLE_SIZE);
+    int srcEnd = srcOffset + length;
+    int anchor = srcOffset;
+    int op = dstOffset;
+
+    if (length >= MF_LIMIT + 1) {
+      Arrays.fill(hashTable, -1);
+      int matchStartLimit = srcEnd - MF_LIMIT;
+      int matchEndLimit = srcEnd - LAST_LITERALS;
+      int ip = srcOffset;
+      int misses = 0;
+      while (ip < matchStartLimit) {
+        int sequence = readInt(src, ip);
+        int hash = hash(sequence);
+        int ref = hashTable[hash];
+        hashTable[hash] = ip;
+        if (ref < 0 || ip - ref > MAX_DISTANCE || readInt(src, ref) != sequence) {
+          ip += 1 + (misses++ >>> SKIP_TRIGGER);
+          continue;
+        }
+        misses = 0;
+
+        int matchLength = MIN_MATCH;
+        while (ip + matchLength < matchEndLimit
+            && src[ip + matchLength] == src[ref + matchLength]) {
+          matchLength++;
+        }
+        while (ip > anchor && ref > srcOffset && src[ip - 1] == src[ref - 1]) {
+          ip--;
+          ref--;
+          matchLength++;
+        }
+
+        op = writeSequence(src, anchor, ip - anchor, ip - ref, matchLength, dst, op);
+        ip += matchLength;
+        anchor = ip;
+      }
+    }
+
+    // The remainder of the block is emitted as literals.
+    int literalLength = srcEnd - anchor;
+    int token = op++;
+    op = writeLength(dst, token, 4, literalLength, op);
+    System.arraycopy(src, anchor, dst, op, literalLength);
+    return op + literalLength - dstOffset;
+  }
+
+  /**
+   * Decompresses the block {@code src[srcOffset, srcOffset + length)} into {@code dst}, which must
+   * be large enough to hold all of it.
+   *
+   * @return the size of the decompressed block.
+   * @throws IOException if the block is malformed or doesn't fit in {@code dst}.
+   */
+  static int decompress(byte[] src, int srcOffset, int length, byte[] dst, int dstOffset)
+      throws IOException {
+    int srcEnd = srcOffset + length;
+    int ip = srcOffset;
+    int op = dstOffset;
+    while (true) {
+      if (ip >= srcEnd) {
+        throw new IOException("Truncated LZ4 block.");
+      }
+      int token = src[ip++] & 0xFF;
+
+      int literalLength = token >>> 4;
+      if (literalLength == 0xF) {
+        int b;
+        do {
+          if (ip >= srcEnd) {
+            throw new IOException("Truncated LZ4 block.");
+          }
+          b = src[ip++] & 0xFF;
+          literalLength += b;
+        } while (b == 0xFF);
+      }
+      if (literalLength > srcEnd - ip || literalLength > dst.length - op) {
+        throw new IOException("Corrupt LZ4 block: literals out of bounds.");
+      }
+      System.arraycopy(src, ip, dst, op, literalLength);
+      ip += literalLength;
+      op += literalLength;
+
+      // The last sequence of a block only has literals.
+      if (ip == srcEnd) {
+        return op - dstOffset;
+      }
+
+      if (srcEnd - ip < 2) {
+        throw new IOException("Truncated LZ4 block.");
+      }
+      int offset = (src[ip] & 0xFF) | (src[ip + 1] & 0xFF) << 8;
+      ip += 2;
+      if (offset == 0 || offset > op - dstOffset) {
+        throw new IOException("Corrupt LZ4 block: match offset out of bounds.");
+      }
+
+      int matchLength = token & 0xF;
+      if (matchLength == 0xF) {
+        int b;
+        do {
+          if (ip >= srcEnd) {
+            throw new IOException("Truncated LZ4 block.");
+          }
+          b = src[ip++] & 0xFF;
+          matchLength += b;
+        } while (b == 0xFF);
+      }
+      matchLength += MIN_MATCH;
+      if (matchLength > dst.length - op) {
+        throw new IOException("Corrupt LZ4 block: match out of bounds.");
+      }
+
+      int ref = op - offset;
+      if (offset >= matchLength) {
+        System.arraycopy(dst, ref, dst, op, matchLength);
+      } else {
+        // Overlapping matches repeat the last offset bytes, so they have to be copied in order.
+        for (int i = 0; i < matchLength; i++) {
+          dst[op + i] = dst[ref + i];
+        }
+      }
+      op += matchLength;
+    }
+  }
+
+  /**
+   * Computes the 32 bit xxHash of a short input with a seed of 0, as used by the checksums of LZ4
+   * frame descriptors.
+   */
+  static int xxHash32(byte[] bytes, int offset, int length) {
+    Preconditions.checkArgument(length < 16);
+    int hash = XX_PRIME_5 + length;
+    int end = offset + length;
+    int i = offset;
+    for (; i + 4 <= end; i += 4) {
+      hash += readInt(bytes, i) * XX_PRIME_3;
+      hash = Integer.rotateLeft(hash, 17) * XX_PRIME_4;
+    }
+    for (; i < end; i++) {
+      hash += (bytes[i] & 0xFF) * XX_PRIME_5;
+      hash = Integer.rotateLeft(hash, 11) * XX_PRIME_1;
+    }
+    hash ^= hash >>> 15;
+    hash *= XX_PRIME_2;
+    hash ^= hash >>> 13;
+    hash *= XX_PRIME_3;
+    hash ^= hash >>> 16;
+    return hash;
+  }
+
+  private static int writeSequence(
+      byte[] src,
+      int literalOffset,
+      int literalLength,
+      int matchOffset,
+      int matchLength,
+      byte[] dst,
+      int op) {
+    int token = op++;
+    op = writeLength(dst, token, 4, literalLength, op);
+    System.arraycopy(src, literalOffset, dst, op, literalLength);
+    op += literalLength;
+    dst[op++] = (byte) matchOffset;
+    dst[op++] = (byte) (matchOffset >>> 8);
+    return writeLength(dst, token, 0, matchLength - MIN_MATCH, op);
+  }
+
+  /**
+   * Stores {@code length} in the nibble of the token at {@code dst[token]} starting at bit {@code
+   * shift}, followed by as many extra length bytes as needed at {@code op}.
+   */
+  private static int writeLength(byte[] dst, int token, int shift, int length, int op) {
+    if (length < 0xF) {
+      dst[token] = (byte) (shift == 0 ? (dst[token] | length) : (length << shift));
+      return op;
+    }
+    dst[token] = (byte) (shift == 0 ? (dst[token] | 0xF) : (0xF << shift));
+    length -= 0xF;
+    while (length >= 0xFF) {
+      dst[op++] = (byte) 0xFF;
+      length -= 0xFF;
+    }
+    dst[op++] = (byte) length;
+    return op;
+  }
+
+  private static int hash(int sequence) {
+    return (sequence * XX_PRIME_1) >>> (32 - HASH_LOG);
+  }
+
+  static int readInt(byte[] bytes, int offset) {
+    return (bytes[offset] & 0xFF)
+        | (bytes[offset + 1] & 0xFF) << 8
+        | (bytes[offset + 2] & 0xFF) << 16
+        | (bytes[offset + 3] & 0xFF) << 24;
+  }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.util.zip;
+
+import com.google.common.io.ByteStreams;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Decompresses a single LZ4 frame, as written by {@link Lz4FrameOutputStream}.
+ *
+ * <p>Frames with dependent blocks, checksums or dictionaries aren't supported. Reading stops at the
+ * end of the frame, and closing this stream closes the underlying one.
+ */
+public class Lz4FrameInputStream extends InputStream {
+
+  private final InputStream in;
+  private final byte[] compressed;
+  private final byte[] buffer;
+  private int position = 0;
+  private int limit = 0;
+  private boolean finished = false;
+
+  public Lz4FrameInputStream(InputStream in) throws IOException {
+    this.in = in;
+
+    byte[] header = new byte[7];
+    ByteStreams.readFully(in, header);
+    if (Lz4Block.readInt(header, 0) != Lz4FrameOutputStream.MAGIC) {
+      throw new IOException("Not an LZ4 frame.");
+    }
+    int flags = header[4] & 0xFF;
+    if ((flags & 0xC0) != Lz4FrameOutputStream.VERSION) {
+      throw new IOException(String.format("Unsupported LZ4 frame version in flags 0x%02x.", flags));
+    }
+    int unsupportedFlags =
+        Lz4FrameOutputStream.BLOCK_CHECKSUM_FLAG
+            | Lz4FrameOutputStream.CONTENT_SIZE_FLAG
+            | Lz4FrameOutputStream.CONTENT_CHECKSUM_FLAG
+            | Lz4FrameOutputStream.DICTIONARY_ID_FLAG;
+    if ((flags & Lz4FrameOutputStream.BLOCK_INDEPENDENCE_FLAG) == 0
+        || (flags & unsupportedFlags) != 0) {
+      throw new IOException(String.format("Unsupported LZ4 frame flags 0x%02x.", flags));
+    }
+    if ((byte) (Lz4Block.xxHash32(header, 4, 2) >>> 8) != header[6]) {
+      throw new IOException("Corrupt LZ4 frame descriptor.");
+    }
+    int blockMaximumSizeId = (header[5] >>> 4) & 0x7;
+    if (blockMaximumSizeId < 4) {
+      throw new IOException(
+          String.format("Invalid LZ4 frame block maximum size %d.", blockMaximumSizeId));
+    }
+    int blockMaximumSize = 1 << (8 + 2 * blockMaximumSizeId);
+    this.compressed = new byte[blockMaximumSize];
+    this.buffer = new byte[blockMaximumSize];
+  }
+
+  @Override
+  public int read() throws IOException {
+    if (position == limit && !readBlock()) {
+      return -1;
+    }
+    return buffer[position++] & 0xFF;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (len == 0) {
+      return 0;
+    }
+    if (position == limit && !readBlock()) {
+      return -1;
+    }
+    int count = Math.min(len, limit - position);
+    System.arraycopy(buffer, position, b, off, count);
+    position += count;
+    return count;
+  }
+
+  @Override
+  public int available() {
+    return limit - position;
+  }
+
+  @Override
+  public void close() throws IOException {
+    in.close();
+  }
+
+  /** @return false at the end of the frame. */
+  private boolean readBlock() throws IOException {
+    while (!finished) {
+      byte[] blockSize = new byte[4];
+      ByteStreams.readFully(in, blockSize);
+      int size = Lz4Block.readInt(blockSize, 0);
+      if (size == 0) {
+        finished = true;
+        return false;
+      }
+      boolean isUncompressed = (size & Lz4FrameOutputStream.UNCOMPRESSED_BLOCK_FLAG) != 0;
+      size &= ~Lz4FrameOutputStream.UNCOMPRESSED_BLOCK_FLAG;
+      if (size > buffer.length) {
+        throw new IOException(String.format("LZ4 block of %d bytes is too large.", size));
+      }
+      position = 0;
+      if (isUncompressed) {
+        ByteStreams.readFully(in, buffer, 0, size);
+        limit = size;
+      } else {
+        ByteStreams.readFully(in, compressed, 0, size);
+        limit = Lz4Block.decompress(compressed, 0, size, buffer, 0);
+      }
+      if (limit > 0) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.util.zip;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Compresses data into a single LZ4 frame, as described in
+ * https://github.com/lz4/lz4/blob/master/doc/lz4_Frame_format.md, so it can also be read by the
+ * {@code lz4} command line tool.
+ *
+ * <p>Blocks are compressed independently of each other and without checksums: the data written
+ * here is expected to carry its own checksums, like the entries of a zip archive.
+ */
+public class Lz4FrameOutputStream extends OutputStream {
+
+  static final int MAGIC = 0x184D2204;
+  static final int VERSION = 0x40;
+  static final int BLOCK_INDEPENDENCE_FLAG = 0x20;
+  static final int BLOCK_CHECKSUM_FLAG = 0x10;
+  static final int CONTENT_SIZE_FLAG = 0x08;
+  static final int CONTENT_CHECKSUM_FLAG = 0x04;
+  static final int DICTIONARY_ID_FLAG = 0x01;
+  static final int UNCOMPRESSED_BLOCK_FLAG = 0x80000000;
+
+  // Block maximum size 6, 1MB.
+  private static final int BLOCK_MAXIMUM_SIZE_ID = 6;
+  static final int BLOCK_SIZE = 1 << (8 + 2 * BLOCK_MAXIMUM_SIZE_ID);
+
+  private final OutputStream out;
+  private final byte[] buffer = new byte[BLOCK_SIZE];
+  private final byte[] compressed = new byte[Lz4Block.maxCompressedLength(BLOCK_SIZE)];
+  private final int[] hashTable = new int[Lz4Block.HASH_TABLE_SIZE];
+  private int length = 0;
+  private boolean closed = false;
+
+  public Lz4FrameOutputStream(OutputStream out) throws IOException {
+    this.out = out;
+    byte[] header = new byte[7];
+    writeInt(header, 0, MAGIC);
+    header[4] = (byte) (VERSION | BLOCK_INDEPENDENCE_FLAG);
+    header[5] = (byte) (BLOCK_MAXIMUM_SIZE_ID << 4);
+    header[6] = (byte) (Lz4Block.xxHash32(header, 4, 2) >>> 8);
+    out.write(header);
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    if (length == BLOCK_SIZE) {
+      writeBlock();
+    }
+    buffer[length++] = (byte) b;
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    while (len > 0) {
+      if (length == BLOCK_SIZE) {
+        writeBlock();
+      }
+      int count = Math.min(len, BLOCK_SIZE - length);
+      System.arraycopy(b, off, buffer, length, count);
+      length += count;
+      off += count;
+      len -= count;
+    }
+  }
+
+  /** Writes out a block for the data written so far, so flushing often hurts compression. */
+  @Override
+  public void flush() throws IOException {
+    writeBlock();
+    out.flush();
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    try (OutputStream out = this.out) {
+      writeBlock();
+      byte[] endMark = new byte[4];
+      out.write(endMark);
+    }
+  }
+
+  private void writeBlock() throws IOException {
+    if (length == 0) {
+      return;
+    }
+    int compressedLength = Lz4Block.compress(buffer, 0, length, compressed, 0, hashTable);
+    byte[] blockSize = new byte[4];
+    if (compressedLength < length) {
+      writeInt(blockSize, 0, compressedLength);
+      out.write(blockSize);
+      out.write(compressed, 0, compressedLength);
+    } else {
+      writeInt(blockSize, 0, length | UNCOMPRESSED_BLOCK_FLAG);
+      out.write(blockSize);
+      out.write(buffer, 0, length);
+    }
+    length = 0;
+  }
+
+  private static void writeInt(byte[] bytes, int offset, int value) {
+    bytes[offset] = (byte) value;
+    bytes[offset + 1] = (byte) (value >>> 8);
+    bytes[offset + 2] = (byte) (value >>> 16);
+    bytes[offset + 3] = (byte) (value >>> 24);
+  }
+}
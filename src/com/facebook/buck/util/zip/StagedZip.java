@@ -0,0 +1,355 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.util.zip;
+
+import com.facebook.buck.io.file.MoreFiles;
+import com.facebook.buck.io.filesystem.ProjectFilesystem;
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.ByteStreams;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipUtil;
+
+/**
+ * A zip archive that has been read front to back from a stream, with the contents of its file
+ * entries written to a staging directory.
+ *
+ * <p>Unlike {@link Unzip#extractZipFile}, this doesn't need the whole archive to be on disk before
+ * starting, so an archive can be unpacked while it is still being downloaded. Entries only reach
+ * their final location in {@link #extractTo}, which means an archive that turns out to be truncated
+ * or corrupt never modifies the destination.
+ *
+ * <p>Encrypted entries, and stored entries whose sizes are only known from a data descriptor, can't
+ * be read from a stream and are rejected. Neither is ever written by {@link CustomZipOutputStream}.
+ */
+public class StagedZip implements Closeable {
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private static final int ENCRYPTED_FLAG = 1;
+  private static final int DATA_DESCRIPTOR_FLAG = 1 << 3;
+  private static final int ZIP64_EXTRA_FIELD_ID = 0x0001;
+  private static final long ZIP64_END_SIGNATURE = 0x06064b50L;
+  private static final long ZIP64_LOCATOR_SIGNATURE = 0x07064b50L;
+  private static final int ZIP64_LOCATOR_SIZE = 20;
+
+  private final Path stagingDirectory;
+  private final ImmutableList<ZipArchiveEntry> entries;
+  private final ImmutableMap<String, Path> stagedFiles;
+
+  private StagedZip(
+      Path stagingDirectory,
+      ImmutableList<ZipArchiveEntry> entries,
+      ImmutableMap<String, Path> stagedFiles) {
+    this.stagingDirectory = stagingDirectory;
+    this.entries = entries;
+    this.stagedFiles = stagedFiles;
+  }
+
+  /**
+   * Reads a zip archive from {@code inputStream} up to and including its central directory, writing
+   * the contents of its file entries to {@code stagingDirectory}, which is created if needed and
+   * deleted when the returned object is closed or if reading fails.
+   *
+   * <p>The stream isn't closed, and any bytes following the central directory are left unread.
+   */
+  public static StagedZip stage(InputStream inputStream, Path stagingDirectory)
+      throws IOException {
+    Files.createDirectories(stagingDirectory);
+    try {
+      return new Reader(inputStream, stagingDirectory).read();
+    } catch (IOException | RuntimeException e) {
+      MoreFiles.deleteRecursivelyIfExists(stagingDirectory);
+      throw e;
+    }
+  }
+
+  /** @return the names of all the entries of the archive, including directories. */
+  public ImmutableSet<String> getEntryNames() {
+    return entries.stream().map(ZipArchiveEntry::getName).collect(ImmutableSet.toImmutableSet());
+  }
+
+  /**
+   * Moves the staged entries into {@code filesystem}, in the same way as {@link
+   * Unzip#extractZipFile(Path, ProjectFilesystem, Unzip.ExistingFileMode)} would unpack the
+   * archive, and returns the paths of the written files. May only be called once.
+   */
+  public ImmutableList<Path> extractTo(
+      ProjectFilesystem filesystem, Unzip.ExistingFileMode existingFileMode) throws IOException {
+    return Unzip.extractEntries(
+        entries,
+        filesystem,
+        filesystem.getPath(""),
+        existingFileMode,
+        (entry, target) -> {
+          Path stagedFile = Preconditions.checkNotNull(stagedFiles.get(entry.getName()));
+          if (entry.isUnixSymlink()) {
+            filesystem.createSymLink(
+                target,
+                filesystem.getPath(new String(Files.readAllBytes(stagedFile), Charsets.UTF_8)),
+                /* force */ true);
+          } else {
+            Files.move(stagedFile, filesystem.resolve(target), StandardCopyOption.REPLACE_EXISTING);
+          }
+          Unzip.restoreFileAttributes(entry, filesystem, target);
+        });
+  }
+
+  @Override
+  public void close() throws IOException {
+    MoreFiles.deleteRecursivelyIfExists(stagingDirectory);
+  }
+
+  /** Streaming parser for the local file headers and central directory of an archive. */
+  private static class Reader {
+    private final PushbackInputStream in;
+    private final Path stagingDirectory;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private final List<ZipArchiveEntry> entries = new ArrayList<>();
+    private final Map<String, Path> stagedFiles = new HashMap<>();
+
+    private Reader(InputStream inputStream, Path stagingDirectory) {
+      this.in = new PushbackInputStream(inputStream, BUFFER_SIZE);
+      this.stagingDirectory = stagingDirectory;
+    }
+
+    private StagedZip read() throws IOException {
+      long signature = ByteIo.readInt(in);
+      while (signature == ZipEntry.LOCSIG) {
+        readLocalFile();
+        signature = ByteIo.readInt(in);
+      }
+
+      // The central directory holds the external attributes (which carry the unix mode) and the
+      // platform that created each entry, neither of which is part of the local file headers.
+      int centralDirectoryEntries = 0;
+      while (signature == ZipEntry.CENSIG) {
+        if (centralDirectoryEntries >= entries.size()) {
+          throw new IOException("Central directory lists more entries than the archive contains.");
+        }
+        readCentralDirectoryFileHeader(entries.get(centralDirectoryEntries++));
+        signature = ByteIo.readInt(in);
+      }
+
+      if (centralDirectoryEntries != entries.size()) {
+        throw new IOException("Central directory doesn't list all the entries of the archive.");
+      }
+
+      // Large archives have zip64 end of central directory records in front of the regular one.
+      if (signature == ZIP64_END_SIGNATURE) {
+        ByteStreams.skipFully(in, readLong());
+        signature = ByteIo.readInt(in);
+      }
+      if (signature == ZIP64_LOCATOR_SIGNATURE) {
+        ByteStreams.skipFully(in, ZIP64_LOCATOR_SIZE - 4);
+        signature = ByteIo.readInt(in);
+      }
+      if (signature != ZipEntry.ENDSIG) {
+        throw new IOException(String.format("Unexpected zip record signature 0x%08x.", signature));
+      }
+      // Read the rest of the record, so that a truncated archive is always noticed.
+      ByteStreams.skipFully(in, ZipEntry.ENDHDR - 4 - 2);
+      ByteStreams.skipFully(in, ByteIo.readShort(in));
+      return new StagedZip(
+          stagingDirectory, ImmutableList.copyOf(entries), ImmutableMap.copyOf(stagedFiles));
+    }
+
+    private void readLocalFile() throws IOException {
+      ByteIo.readShort(in); // Version needed to extract.
+      int flags = ByteIo.readShort(in);
+      int method = ByteIo.readShort(in);
+      long dosTime = ByteIo.readInt(in);
+      long crc = ByteIo.readInt(in);
+      long compressedSize = ByteIo.readInt(in);
+      long size = ByteIo.readInt(in);
+      int nameLength = ByteIo.readShort(in);
+      int extraLength = ByteIo.readShort(in);
+      String name = new String(readBytes(nameLength), Charsets.UTF_8);
+      boolean isZip64 = hasExtraField(readBytes(extraLength), ZIP64_EXTRA_FIELD_ID);
+
+      if ((flags & ENCRYPTED_FLAG) != 0) {
+        throw new IOException(String.format("Encrypted zip entry %s is not supported.", name));
+      }
+      boolean hasDataDescriptor = (flags & DATA_DESCRIPTOR_FLAG) != 0;
+
+      ZipArchiveEntry entry = new ZipArchiveEntry(name);
+      entry.setMethod(method);
+      entry.setTime(ZipUtil.dosToJavaTime(dosTime));
+
+      Path stagedFile = null;
+      OutputStream contents = ByteStreams.nullOutputStream();
+      if (!entry.isDirectory()) {
+        stagedFile = stagingDirectory.resolve(Integer.toString(entries.size()));
+        contents = new BufferedOutputStream(Files.newOutputStream(stagedFile), BUFFER_SIZE);
+      }
+
+      CRC32 actualCrc = new CRC32();
+      long actualCompressedSize;
+      long actualSize;
+      try (CheckedOutputStream out = new CheckedOutputStream(contents, actualCrc)) {
+        switch (method) {
+          case ZipEntry.DEFLATED:
+            Inflater inflater = new Inflater(/* nowrap */ true);
+            try {
+              inflate(name, inflater, out);
+              actualCompressedSize = inflater.getBytesRead();
+              actualSize = inflater.getBytesWritten();
+            } finally {
+              inflater.end();
+            }
+            break;
+          case ZipEntry.STORED:
+            if (hasDataDescriptor || isZip64) {
+              throw new IOException(
+                  String.format("Stored zip entry %s doesn't record its size up front.", name));
+            }
+            actualCompressedSize = ByteStreams.copy(ByteStreams.limit(in, compressedSize), out);
+            actualSize = actualCompressedSize;
+            break;
+          default:
+            throw new IOException(
+                String.format(
+                    "Zip entry %s uses unsupported compression method %d.", name, method));
+        }
+      }
+
+      if (hasDataDescriptor) {
+        crc = ByteIo.readInt(in);
+        if (crc == ZipEntry.EXTSIG) {
+          // The data descriptor signature is optional, so this was it rather than the crc.
+          crc = ByteIo.readInt(in);
+        }
+        compressedSize = isZip64 ? readLong() : ByteIo.readInt(in);
+        size = isZip64 ? readLong() : ByteIo.readInt(in);
+      } else if (isZip64) {
+        throw new IOException(String.format("Zip64 entry %s is not supported.", name));
+      }
+
+      if (actualCrc.getValue() != crc
+          || actualCompressedSize != compressedSize
+          || actualSize != size) {
+        throw new IOException(String.format("Zip entry %s is corrupt.", name));
+      }
+
+      entry.setSize(size);
+      entry.setCrc(crc);
+      entries.add(entry);
+      if (stagedFile != null) {
+        stagedFiles.put(name, stagedFile);
+      }
+    }
+
+    /** Inflates a single deflate stream, leaving {@code in} positioned right after it. */
+    private void inflate(String name, Inflater inflater, OutputStream out) throws IOException {
+      byte[] inflated = new byte[BUFFER_SIZE];
+      int inputLength = 0;
+      try {
+        while (!inflater.finished()) {
+          if (inflater.needsInput()) {
+            inputLength = in.read(buffer);
+            if (inputLength == -1) {
+              throw new EOFException(String.format("Zip entry %s is truncated.", name));
+            }
+            inflater.setInput(buffer, 0, inputLength);
+          }
+          int length = inflater.inflate(inflated);
+          if (length == 0 && inflater.needsDictionary()) {
+            throw new IOException(String.format("Zip entry %s needs a dictionary.", name));
+          }
+          out.write(inflated, 0, length);
+        }
+      } catch (DataFormatException e) {
+        throw new IOException(String.format("Zip entry %s is corrupt.", name), e);
+      }
+      // The inflater may have been handed bytes past the end of the entry; give them back.
+      int remaining = inflater.getRemaining();
+      if (remaining > 0) {
+        in.unread(buffer, inputLength - remaining, remaining);
+      }
+    }
+
+    private void readCentralDirectoryFileHeader(ZipArchiveEntry entry) throws IOException {
+      int versionMadeBy = ByteIo.readShort(in);
+      // Version needed to extract, flags, method, time, crc and sizes all match the local header.
+      ByteStreams.skipFully(in, 2 + 2 + 2 + 4 + 4 + 4 + 4);
+      int nameLength = ByteIo.readShort(in);
+      int extraLength = ByteIo.readShort(in);
+      int commentLength = ByteIo.readShort(in);
+      ByteStreams.skipFully(in, 2 + 2); // Disk number start and internal attributes.
+      long externalAttributes = ByteIo.readInt(in);
+      ByteIo.readInt(in); // Offset of the local header.
+      String name = new String(readBytes(nameLength), Charsets.UTF_8);
+      ByteStreams.skipFully(in, extraLength + commentLength);
+
+      if (!name.equals(entry.getName())) {
+        throw new IOException(
+            String.format(
+                "Central directory entry %s doesn't match local entry %s.", name, entry.getName()));
+      }
+      if ((versionMadeBy >> 8) == ZipArchiveEntry.PLATFORM_UNIX) {
+        entry.setUnixMode((int) (externalAttributes >> 16));
+      } else {
+        entry.setExternalAttributes(externalAttributes);
+      }
+    }
+
+    private byte[] readBytes(int length) throws IOException {
+      byte[] bytes = new byte[length];
+      ByteStreams.readFully(in, bytes);
+      return bytes;
+    }
+
+    private long readLong() throws IOException {
+      return ByteIo.readInt(in) | (ByteIo.readInt(in) << 32);
+    }
+
+    private static boolean hasExtraField(byte[] extra, int headerId) {
+      int offset = 0;
+      while (offset + 4 <= extra.length) {
+        int id = (extra[offset] & 0xff) | ((extra[offset + 1] & 0xff) << 8);
+        int length = (extra[offset + 2] & 0xff) | ((extra[offset + 3] & 0xff) << 8);
+        if (id == headerId) {
+          return true;
+        }
+        offset += 4 + length;
+      }
+      return false;
+    }
+  }
+}
@@ -73,6 +73,12 @@ public class Unzip {
       }
     }
 
+    restoreFileAttributes(entry, filesystem, target);
+  }
+
+  /** Restores the mtime and executable bit recorded in {@code entry} on the written file. */
+  static void restoreFileAttributes(
+      ZipArchiveEntry entry, ProjectFilesystem filesystem, Path target) throws IOException {
     Path filePath = filesystem.resolve(target);
     File file = filePath.toFile();
 
@@ -183,101 +189,126 @@ public class Unzip {
       Path relativePath,
       ExistingFileMode existingFileMode)
       throws IOException {
+    try (ZipFile zip = new ZipFile(zipFile.toFile())) {
+      return extractEntries(
+          Collections.list(zip.getEntries()),
+          filesystem,
+          relativePath,
+          existingFileMode,
+          (entry, target) -> writeZipContents(zip, entry, filesystem, target));
+    }
+  }
 
-    // We want to remove stale contents of directories listed in zipFile, but avoid deleting and
+  /** Writes the contents of a single file entry of a zip to its destination. */
+  interface EntryWriter {
+    void write(ZipArchiveEntry entry, Path target) throws IOException;
+  }
+
+  /**
+   * Lays out the directory structure described by {@code entries} under {@code relativePath},
+   * cleaning up stale files as requested, and hands each file entry to {@code entryWriter} once its
+   * parent directory exists. Returns the paths of the written files.
+   */
+  static ImmutableList<Path> extractEntries(
+      Iterable<ZipArchiveEntry> entries,
+      ProjectFilesystem filesystem,
+      Path relativePath,
+      ExistingFileMode existingFileMode,
+      EntryWriter entryWriter)
+      throws IOException {
+
+    // We want to remove stale contents of directories listed in the zip, but avoid deleting and
     // re-creating any directories that already exist. We *also* want to avoid a full recursive
     // scan of listed directories, since that's almost as slow as deleting. So we preprocess the
-    // contents of zipFile and then scan the existing filesystem to remove stale artifacts.
+    // contents of the zip and then scan the existing filesystem to remove stale artifacts.
 
     ImmutableList.Builder<Path> filesWritten = ImmutableList.builder();
-    try (ZipFile zip = new ZipFile(zipFile.toFile())) {
-      // Get the list of paths in zipFile.  Keep them sorted by path, so dirs come before contents.
-      SortedMap<Path, ZipArchiveEntry> pathMap = new TreeMap<>();
-      for (ZipArchiveEntry entry : Collections.list(zip.getEntries())) {
-        Path target = relativePath.resolve(entry.getName()).normalize();
-        pathMap.put(target, entry);
-      }
-      // A zip file isn't required to list intermediate paths (e.g., it can contain "foo/" and
-      // "foo/bar/baz"), but we need to know not to delete those intermediates, so fill them in.
-      for (SortedMap.Entry<Path, ZipArchiveEntry> p : new ArrayList<>(pathMap.entrySet())) {
-        if (!isTopLevel(p.getKey(), pathMap)) {
-          fillIntermediatePaths(p.getKey(), pathMap);
-        }
+    // Get the list of paths in the zip.  Keep them sorted by path, so dirs come before contents.
+    SortedMap<Path, ZipArchiveEntry> pathMap = new TreeMap<>();
+    for (ZipArchiveEntry entry : entries) {
+      Path target = relativePath.resolve(entry.getName()).normalize();
+      pathMap.put(target, entry);
+    }
+    // A zip file isn't required to list intermediate paths (e.g., it can contain "foo/" and
+    // "foo/bar/baz"), but we need to know not to delete those intermediates, so fill them in.
+    for (SortedMap.Entry<Path, ZipArchiveEntry> p : new ArrayList<>(pathMap.entrySet())) {
+      if (!isTopLevel(p.getKey(), pathMap)) {
+        fillIntermediatePaths(p.getKey(), pathMap);
       }
+    }
 
-      /**
-       * This is just used to allow us to record which directories we've already created and skip
-       * creating them multiple times.
-       */
-      class DirectoryCreator {
-        private Set<Path> existing = new HashSet<>();
+    /**
+     * This is just used to allow us to record which directories we've already created and skip
+     * creating them multiple times.
+     */
+    class DirectoryCreator {
+      private Set<Path> existing = new HashSet<>();
 
-        private DirectoryCreator() {
-          existing.add(filesystem.getRootPath());
-        }
+      private DirectoryCreator() {
+        existing.add(filesystem.getRootPath());
+      }
 
-        private void mkdirs(Path target) throws IOException {
-          if (existing.contains(target)) {
-            return;
-          }
-          filesystem.mkdirs(target);
-          while (target != null) {
-            existing.add(target);
-            target = target.getParent();
-          }
+      private void mkdirs(Path target) throws IOException {
+        if (existing.contains(target)) {
+          return;
         }
+        filesystem.mkdirs(target);
+        while (target != null) {
+          existing.add(target);
+          target = target.getParent();
+        }
+      }
 
-        private void forcefullyCreateDirs(Path target) throws IOException {
-          if (existing.contains(target)) {
-            return;
-          }
-          if (filesystem.exists(target)) {
-            if (!filesystem.isDirectory(target)) {
-              filesystem.deleteFileAtPath(target);
-              filesystem.mkdirs(target);
-            }
-          } else {
-            if (target.getParent() != null) {
-              forcefullyCreateDirs(target.getParent());
-            }
+      private void forcefullyCreateDirs(Path target) throws IOException {
+        if (existing.contains(target)) {
+          return;
+        }
+        if (filesystem.exists(target)) {
+          if (!filesystem.isDirectory(target)) {
+            filesystem.deleteFileAtPath(target);
             filesystem.mkdirs(target);
           }
-          existing.add(target);
+        } else {
+          if (target.getParent() != null) {
+            forcefullyCreateDirs(target.getParent());
+          }
+          filesystem.mkdirs(target);
         }
+        existing.add(target);
       }
+    }
 
-      DirectoryCreator creator = new DirectoryCreator();
+    DirectoryCreator creator = new DirectoryCreator();
 
-      for (SortedMap.Entry<Path, ZipArchiveEntry> p : pathMap.entrySet()) {
-        Path target = p.getKey();
-        ZipArchiveEntry entry = p.getValue();
-        if (entry.isDirectory()) {
-          if (filesystem.isDirectory(target, LinkOption.NOFOLLOW_LINKS)) {
-            // We have a pre-existing directory: delete its contents if they aren't in the zip.
-            if (existingFileMode == ExistingFileMode.OVERWRITE_AND_CLEAN_DIRECTORIES) {
-              for (Path path : filesystem.getDirectoryContents(target)) {
-                if (!pathMap.containsKey(path)) {
-                  filesystem.deleteRecursivelyIfExists(path);
-                }
+    for (SortedMap.Entry<Path, ZipArchiveEntry> p : pathMap.entrySet()) {
+      Path target = p.getKey();
+      ZipArchiveEntry entry = p.getValue();
+      if (entry.isDirectory()) {
+        if (filesystem.isDirectory(target, LinkOption.NOFOLLOW_LINKS)) {
+          // We have a pre-existing directory: delete its contents if they aren't in the zip.
+          if (existingFileMode == ExistingFileMode.OVERWRITE_AND_CLEAN_DIRECTORIES) {
+            for (Path path : filesystem.getDirectoryContents(target)) {
+              if (!pathMap.containsKey(path)) {
+                filesystem.deleteRecursivelyIfExists(path);
               }
             }
-          } else if (filesystem.exists(target, LinkOption.NOFOLLOW_LINKS)) {
-            filesystem.deleteFileAtPath(target);
-            creator.mkdirs(target);
-          } else {
-            creator.forcefullyCreateDirs(target);
           }
+        } else if (filesystem.exists(target, LinkOption.NOFOLLOW_LINKS)) {
+          filesystem.deleteFileAtPath(target);
+          creator.mkdirs(target);
         } else {
-          if (filesystem.isFile(target, LinkOption.NOFOLLOW_LINKS)) { // NOPMD for clarity
-            // pass
-          } else if (filesystem.exists(target, LinkOption.NOFOLLOW_LINKS)) {
-            filesystem.deleteRecursivelyIfExists(target);
-          } else if (target.getParent() != null) {
-            creator.forcefullyCreateDirs(target.getParent());
-          }
-          filesWritten.add(target);
-          writeZipContents(zip, entry, filesystem, target);
+          creator.forcefullyCreateDirs(target);
+        }
+      } else {
+        if (filesystem.isFile(target, LinkOption.NOFOLLOW_LINKS)) { // NOPMD for clarity
+          // pass
+        } else if (filesystem.exists(target, LinkOption.NOFOLLOW_LINKS)) {
+          filesystem.deleteRecursivelyIfExists(target);
+        } else if (target.getParent() != null) {
+          creator.forcefullyCreateDirs(target.getParent());
         }
+        filesWritten.add(target);
+        entryWriter.write(entry, target);
       }
     }
     return filesWritten.build();
@@ -18,10 +18,16 @@ package com.facebook.buck.util.zip;
 
 import com.facebook.buck.io.filesystem.ProjectFilesystem;
 import com.google.common.io.ByteStreams;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Collection;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.Deflater;
 
 public class Zip {
 
@@ -34,6 +40,24 @@ public class Zip {
   public static void create(
       ProjectFilesystem projectFilesystem, Collection<Path> pathsToIncludeInZip, Path out)
       throws IOException {
+    create(
+        projectFilesystem,
+        pathsToIncludeInZip,
+        new BufferedOutputStream(Files.newOutputStream(out)),
+        ZipCompressionLevel.DEFAULT_COMPRESSION_LEVEL.getValue());
+  }
+
+  /**
+   * Like {@link #create(ProjectFilesystem, Collection, Path)}, but writes to (and closes) {@code
+   * out}, compressing entries with the given deflate level. Entries are stored uncompressed if
+   * {@code compressionLevel} is 0.
+   */
+  public static void create(
+      ProjectFilesystem projectFilesystem,
+      Collection<Path> pathsToIncludeInZip,
+      OutputStream out,
+      int compressionLevel)
+      throws IOException {
     try (CustomZipOutputStream zip = ZipOutputStreams.newOutputStream(out)) {
       for (Path path : pathsToIncludeInZip) {
         boolean isDirectory = projectFilesystem.isDirectory(path);
@@ -44,6 +68,22 @@ public class Zip {
 
         entry.setExternalAttributes(projectFilesystem.getFileAttributesForZipEntry(path));
 
+        entry.setCompressionLevel(compressionLevel);
+        if (compressionLevel == Deflater.NO_COMPRESSION && !isDirectory) {
+          // Stored entries need their size and CRC up front, which takes an extra pass over the
+          // file. That's still much cheaper than deflating it.
+          CRC32 crc = new CRC32();
+          long size;
+          try (InputStream input = projectFilesystem.newFileInputStream(path)) {
+            size =
+                ByteStreams.copy(
+                    input, new CheckedOutputStream(ByteStreams.nullOutputStream(), crc));
+          }
+          entry.setSize(size);
+          entry.setCompressedSize(size);
+          entry.setCrc(crc.getValue());
+        }
+
         zip.putNextEntry(entry);
         if (!isDirectory) {
           try (InputStream input = projectFilesystem.newFileInputStream(path)) {
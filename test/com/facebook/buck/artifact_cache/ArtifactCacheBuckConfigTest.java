@@ -23,6 +23,8 @@ import com.facebook.buck.artifact_cache.config.ArtifactCacheMode;
 import com.facebook.buck.artifact_cache.config.CacheReadMode;
 import com.facebook.buck.artifact_cache.config.DirCacheEntry;
 import com.facebook.buck.artifact_cache.config.HttpCacheEntry;
+import com.facebook.buck.artifact_cache.config.MemoryCacheEntry;
+import com.facebook.buck.artifact_cache.config.MemoryCacheEvictionPolicy;
 import com.facebook.buck.config.BuckConfigTestUtils;
 import com.facebook.buck.io.file.MorePaths;
 import com.facebook.buck.io.filesystem.ProjectFilesystem;
@@ -92,6 +94,21 @@ public class ArtifactCacheBuckConfigTest {
         Matchers.containsInAnyOrder(ArtifactCacheMode.dir, ArtifactCacheMode.http));
   }
 
+  @Test
+  public void testHttpMultiFetchIsOptIn() throws IOException {
+    assertThat(
+        createFromText("[cache]", "mode = http").getHttpMultiFetchEnabled(), Matchers.is(false));
+    // The thrift cache's multi-fetch experiment doesn't turn it on.
+    assertThat(
+        createFromText("[cache]", "mode = http", "multi_fetch = enabled")
+            .getHttpMultiFetchEnabled(),
+        Matchers.is(false));
+    assertThat(
+        createFromText("[cache]", "mode = http", "http_multi_fetch_enabled = true")
+            .getHttpMultiFetchEnabled(),
+        Matchers.is(true));
+  }
+
   @Test
   public void testHttpCacheSettings() throws Exception {
     ArtifactCacheBuckConfig config =
@@ -329,6 +346,26 @@ public class ArtifactCacheBuckConfigTest {
     assertThat(cache.getErrorMessageFormat(), Matchers.equalTo(testText));
   }
 
+  @Test
+  public void testMemoryCacheSettings() throws IOException {
+    assertThat(
+        createFromText("[cache]", "mode = dir").getMemoryCacheEntry(),
+        Matchers.equalTo(Optional.empty()));
+
+    ArtifactCacheBuckConfig config =
+        createFromText(
+            "[cache]",
+            "memory_cache_max_size = 64MB",
+            "memory_cache_max_artifact_size = 2MB",
+            "memory_cache_eviction_policy = fifo");
+    assertThat(
+        config.getMemoryCacheEntry(),
+        Matchers.equalTo(
+            Optional.of(
+                MemoryCacheEntry.of(
+                    64 * 1024 * 1024, 2 * 1024 * 1024, MemoryCacheEvictionPolicy.FIFO))));
+  }
+
   public static ArtifactCacheBuckConfig createFromText(String... lines) throws IOException {
     ProjectFilesystem projectFilesystem = new FakeProjectFilesystem();
     StringReader reader = new StringReader(Joiner.on('\n').join(lines));
@@ -16,7 +16,10 @@
 
 package com.facebook.buck.artifact_cache;
 
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
 
 import com.facebook.buck.artifact_cache.config.ArtifactCacheBuckConfig;
 import com.facebook.buck.artifact_cache.config.CacheReadMode;
@@ -26,9 +29,13 @@ import com.facebook.buck.io.filesystem.ProjectFilesystem;
 import com.facebook.buck.io.filesystem.TestProjectFilesystems;
 import com.facebook.buck.testutil.FakeProjectFilesystem;
 import com.facebook.buck.testutil.integration.TemporaryPaths;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
 import com.google.common.util.concurrent.MoreExecutors;
 import java.nio.file.Paths;
 import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
 import org.hamcrest.Matchers;
 import org.junit.Rule;
 import org.junit.Test;
@@ -249,7 +256,50 @@ public class ArtifactCachesTest {
     assertThat(stripDecorators(artifactCache), Matchers.instanceOf(HttpArtifactCache.class));
   }
 
+  @Test
+  public void dirCacheExecutorRunsTasksInTheCallerWhenItsQueueIsFull() throws Exception {
+    ListeningExecutorService executor =
+        ArtifactCaches.newDirCacheExecutorService("test-%d", 1, 1);
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    Thread caller = Thread.currentThread();
+    try {
+      // Occupies the only thread, then the only slot in the queue.
+      ListenableFuture<?> running =
+          executor.submit(
+              () -> {
+                started.countDown();
+                release.await();
+                return null;
+              });
+      started.await();
+      ListenableFuture<Thread> queued = executor.submit(Thread::currentThread);
+
+      ListenableFuture<Thread> overflowing = executor.submit(Thread::currentThread);
+      assertTrue(overflowing.isDone());
+      assertSame(caller, overflowing.get());
+
+      release.countDown();
+      running.get();
+      assertNotSame(caller, queued.get());
+    } finally {
+      release.countDown();
+      executor.shutdown();
+    }
+  }
+
+  @Test(expected = RejectedExecutionException.class)
+  public void dirCacheExecutorRejectsTasksOnceShutDown() {
+    ListeningExecutorService executor =
+        ArtifactCaches.newDirCacheExecutorService("test-%d", 1, 1);
+    executor.shutdown();
+    executor.submit(() -> {});
+  }
+
   private static ArtifactCache stripDecorators(ArtifactCache artifactCache) {
+    if (artifactCache instanceof ChunkedArtifactCacheDecorator) {
+      return stripDecorators(((ChunkedArtifactCacheDecorator) artifactCache).getDelegate());
+    }
     if (artifactCache instanceof LoggingArtifactCacheDecorator) {
       LoggingArtifactCacheDecorator cacheDecorator = (LoggingArtifactCacheDecorator) artifactCache;
       return stripDecorators(cacheDecorator.getDelegate());
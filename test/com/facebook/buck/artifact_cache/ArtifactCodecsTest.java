@@ -0,0 +1,121 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.artifact_cache;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import com.facebook.buck.artifact_cache.config.ArtifactCompression;
+import com.facebook.buck.artifact_cache.config.ArtifactCompressionCodec;
+import com.facebook.buck.io.filesystem.ProjectFilesystem;
+import com.facebook.buck.io.filesystem.TestProjectFilesystems;
+import com.facebook.buck.rules.RuleKey;
+import com.facebook.buck.testutil.integration.TemporaryPaths;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.ByteStreams;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class ArtifactCodecsTest {
+
+  private static final byte[] CONTENTS =
+      "some contents, some contents, some contents\n".getBytes(Charsets.UTF_8);
+
+  @Rule public TemporaryPaths tmp = new TemporaryPaths();
+
+  private ProjectFilesystem filesystem;
+
+  @Before
+  public void setUp() throws IOException {
+    filesystem = TestProjectFilesystems.createProjectFilesystem(tmp.getRoot());
+    filesystem.mkdirs(Paths.get("out"));
+    filesystem.writeBytesToPath(CONTENTS, Paths.get("out/a.txt"));
+    filesystem.writeBytesToPath(CONTENTS, Paths.get("out/b.txt"));
+  }
+
+  @Test
+  public void testArtifactsWithoutACodecAreDeflated() throws IOException {
+    ImmutableMap<String, String> withCodec =
+        ArtifactCodecs.addCodecToMetadata(
+            ImmutableMap.of("key", "value"), ArtifactCompression.DEFAULT);
+    assertEquals("deflate", withCodec.get(ArtifactCodecs.METADATA_KEY));
+    assertEquals(ArtifactCompressionCodec.DEFLATE, ArtifactCodecs.getCodec(withCodec));
+    assertEquals(
+        ArtifactCompressionCodec.DEFLATE,
+        ArtifactCodecs.getCodec(ImmutableMap.of("key", "value")));
+  }
+
+  @Test
+  public void testOnlyArtifactsWhichArentZipArchivesHaveKeysOfTheirOwn() {
+    RuleKey ruleKey = new RuleKey("aaaa");
+    assertEquals(ruleKey, ArtifactCodecs.getArtifactKey(ruleKey, ArtifactCompressionCodec.DEFLATE));
+    assertEquals(ruleKey, ArtifactCodecs.getArtifactKey(ruleKey, ArtifactCompressionCodec.STORED));
+    RuleKey lz4Key = ArtifactCodecs.getArtifactKey(ruleKey, ArtifactCompressionCodec.LZ4);
+    assertNotEquals(ruleKey, lz4Key);
+    assertEquals(lz4Key, ArtifactCodecs.getArtifactKey(ruleKey, ArtifactCompressionCodec.LZ4));
+  }
+
+  @Test
+  public void testCodecRoundTripsThroughMetadata() throws IOException {
+    ImmutableMap<String, String> metadata =
+        ArtifactCodecs.addCodecToMetadata(
+            ImmutableMap.of(), ArtifactCompression.of(ArtifactCompressionCodec.LZ4, 1));
+    assertEquals("lz4", metadata.get(ArtifactCodecs.METADATA_KEY));
+    assertEquals(ArtifactCompressionCodec.LZ4, ArtifactCodecs.getCodec(metadata));
+  }
+
+  @Test(expected = IOException.class)
+  public void testUnknownCodecIsRejected() throws IOException {
+    ArtifactCodecs.getCodec(ImmutableMap.of(ArtifactCodecs.METADATA_KEY, "brotli"));
+  }
+
+  @Test
+  public void testAllCodecsRoundTrip() throws IOException {
+    for (ArtifactCompressionCodec codec : ArtifactCompressionCodec.values()) {
+      Path artifact = tmp.getRoot().resolve(codec + ".artifact");
+      ArtifactCodecs.compress(
+          filesystem,
+          ImmutableList.of(Paths.get("out/a.txt"), Paths.get("out/b.txt")),
+          artifact,
+          ArtifactCompression.of(codec, 9));
+
+      try (InputStream payload = Files.newInputStream(artifact);
+          ZipInputStream zip = new ZipInputStream(ArtifactCodecs.decompress(codec, payload))) {
+        ZipEntry entry;
+        int entries = 0;
+        while ((entry = zip.getNextEntry()) != null) {
+          if (!entry.isDirectory()) {
+            assertArrayEquals(codec.toString(), CONTENTS, ByteStreams.toByteArray(zip));
+            entries++;
+          }
+        }
+        assertEquals(codec.toString(), 2, entries);
+      }
+    }
+  }
+}
@@ -0,0 +1,354 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.artifact_cache;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+
+import com.facebook.buck.event.BuckEventBusForTests;
+import com.facebook.buck.io.file.BorrowablePath;
+import com.facebook.buck.io.file.LazyPath;
+import com.facebook.buck.io.filesystem.ProjectFilesystem;
+import com.facebook.buck.io.filesystem.TestProjectFilesystems;
+import com.facebook.buck.rules.RuleKey;
+import com.facebook.buck.testutil.integration.TemporaryPaths;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.hamcrest.Matchers;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class ChunkedArtifactCacheDecoratorTest {
+
+  @Rule public TemporaryPaths tmp = new TemporaryPaths();
+
+  private static final RuleKey dummyRuleKey =
+      new RuleKey("76b1c1beae69428db2d1befb31cf743ac8ce90df");
+  private static final RuleKey dummyRuleKey2 =
+      new RuleKey("1111111111111111111111111111111111111111");
+
+  private static final int AVERAGE_CHUNK_SIZE = 1024;
+
+  private ChunkedArtifactCacheDecorator newChunkedCache(
+      ArtifactCache delegate, long minimumChunkedStoredArtifactSize) throws IOException {
+    return new ChunkedArtifactCacheDecorator(
+        delegate,
+        TestProjectFilesystems.createProjectFilesystem(tmp.getRoot()),
+        BuckEventBusForTests.newInstance(),
+        /* performChunkedStores */ true,
+        minimumChunkedStoredArtifactSize,
+        AVERAGE_CHUNK_SIZE);
+  }
+
+  private static byte[] randomBytes(int size) {
+    byte[] bytes = new byte[size];
+    new Random(42).nextBytes(bytes);
+    return bytes;
+  }
+
+  private Path writeArtifact(byte[] contents) throws IOException {
+    Path path = tmp.newFile();
+    Files.write(path, contents);
+    return path;
+  }
+
+  @Test
+  public void testStoreAndFetchRoundTrip() throws Exception {
+    byte[] contents = randomBytes(64 * 1024);
+    try (InMemoryArtifactCache inMemoryArtifactCache = new InMemoryArtifactCache();
+        ChunkedArtifactCacheDecorator chunkedCache = newChunkedCache(inMemoryArtifactCache, 0L)) {
+      chunkedCache
+          .store(
+              ArtifactInfo.builder()
+                  .addRuleKeys(dummyRuleKey)
+                  .setMetadata(ImmutableMap.of("key", "value"))
+                  .build(),
+              BorrowablePath.notBorrowablePath(writeArtifact(contents)))
+          .get();
+
+      // One manifest plus a number of chunks.
+      assertThat(inMemoryArtifactCache.getArtifactCount(), Matchers.greaterThan(2));
+
+      LazyPath output = LazyPath.ofInstance(tmp.getRoot().resolve("output"));
+      CacheResult result = Futures.getUnchecked(chunkedCache.fetchAsync(dummyRuleKey, output));
+      assertThat(result.getType(), Matchers.equalTo(CacheResultType.HIT));
+      assertThat(result.getMetadata(), Matchers.equalTo(ImmutableMap.of("key", "value")));
+      assertThat(result.getArtifactSizeBytes(), Matchers.equalTo((long) contents.length));
+      assertArrayEquals(contents, Files.readAllBytes(output.get()));
+    }
+  }
+
+  @Test
+  public void testFetchWithConsumerReceivesAssembledArtifact() throws Exception {
+    byte[] contents = randomBytes(64 * 1024);
+    try (InMemoryArtifactCache inMemoryArtifactCache = new InMemoryArtifactCache();
+        ChunkedArtifactCacheDecorator chunkedCache = newChunkedCache(inMemoryArtifactCache, 0L)) {
+      chunkedCache
+          .store(
+              ArtifactInfo.builder().addRuleKeys(dummyRuleKey).build(),
+              BorrowablePath.notBorrowablePath(writeArtifact(contents)))
+          .get();
+
+      // The consumer only ever sees the artifact itself, never the manifest.
+      List<byte[]> consumed = new ArrayList<>();
+      CacheResult result =
+          Futures.getUnchecked(
+              chunkedCache.fetchAsync(
+                  dummyRuleKey,
+                  LazyPath.ofInstance(tmp.getRoot().resolve("output")),
+                  (metadata, payload) -> consumed.add(ByteStreams.toByteArray(payload))));
+      assertThat(result.getType(), Matchers.equalTo(CacheResultType.HIT));
+      assertThat(consumed, Matchers.hasSize(1));
+      assertArrayEquals(contents, consumed.get(0));
+    }
+  }
+
+  @Test
+  public void testSmallChangeOnlyStoresNewChunks() throws Exception {
+    byte[] contents = randomBytes(256 * 1024);
+    byte[] modifiedContents = contents.clone();
+    modifiedContents[128 * 1024] ^= 0xff;
+    try (InMemoryArtifactCache inMemoryArtifactCache = new InMemoryArtifactCache();
+        ChunkedArtifactCacheDecorator chunkedCache = newChunkedCache(inMemoryArtifactCache, 0L)) {
+      chunkedCache
+          .store(
+              ArtifactInfo.builder().addRuleKeys(dummyRuleKey).build(),
+              BorrowablePath.notBorrowablePath(writeArtifact(contents)))
+          .get();
+      int artifactCountAfterFirstStore = inMemoryArtifactCache.getArtifactCount();
+
+      chunkedCache
+          .store(
+              ArtifactInfo.builder().addRuleKeys(dummyRuleKey2).build(),
+              BorrowablePath.notBorrowablePath(writeArtifact(modifiedContents)))
+          .get();
+      // A new manifest plus at most a couple of chunks around the modified byte.
+      assertThat(
+          inMemoryArtifactCache.getArtifactCount() - artifactCountAfterFirstStore,
+          Matchers.lessThanOrEqualTo(4));
+
+      LazyPath output = LazyPath.ofInstance(tmp.getRoot().resolve("output"));
+      assertThat(
+          Futures.getUnchecked(chunkedCache.fetchAsync(dummyRuleKey2, output)).getType(),
+          Matchers.equalTo(CacheResultType.HIT));
+      assertArrayEquals(modifiedContents, Files.readAllBytes(output.get()));
+    }
+  }
+
+  @Test
+  public void testSmallArtifactsAreStoredDirectly() throws Exception {
+    byte[] contents = randomBytes(100);
+    try (InMemoryArtifactCache inMemoryArtifactCache = new InMemoryArtifactCache();
+        ChunkedArtifactCacheDecorator chunkedCache =
+            newChunkedCache(inMemoryArtifactCache, /* minimumChunkedStoredArtifactSize */ 101)) {
+      chunkedCache
+          .store(
+              ArtifactInfo.builder().addRuleKeys(dummyRuleKey).build(),
+              BorrowablePath.notBorrowablePath(writeArtifact(contents)))
+          .get();
+      assertThat(inMemoryArtifactCache.getArtifactCount(), Matchers.equalTo(1));
+      assertFalse(
+          Futures.getUnchecked(
+                  inMemoryArtifactCache.fetchAsync(
+                      dummyRuleKey, LazyPath.ofInstance(tmp.newFile())))
+              .getMetadata()
+              .containsKey(ChunkedArtifactCacheDecorator.METADATA_KEY));
+    }
+  }
+
+  @Test
+  public void testMissingChunkIsAMissAndIsStoredAgain() throws Exception {
+    byte[] contents = randomBytes(64 * 1024);
+    try (InMemoryArtifactCache inMemoryArtifactCache = new InMemoryArtifactCache();
+        ChunkedArtifactCacheDecorator chunkedCache = newChunkedCache(inMemoryArtifactCache, 0L)) {
+      Path artifact = writeArtifact(contents);
+      chunkedCache
+          .store(
+              ArtifactInfo.builder().addRuleKeys(dummyRuleKey).build(),
+              BorrowablePath.notBorrowablePath(artifact))
+          .get();
+
+      // Evict one chunk behind the back of the decorator.
+      RuleKey chunkKey =
+          new RuleKey(
+              new ContentDefinedChunker(AVERAGE_CHUNK_SIZE)
+                      .split(new ByteArrayInputStream(contents))
+                      .get(0)
+                      .getHash()
+                      .toString()
+                  + "cdc0");
+      inMemoryArtifactCache.deleteAsync(ImmutableList.of(chunkKey)).get();
+
+      LazyPath output = LazyPath.ofInstance(tmp.getRoot().resolve("output"));
+      assertThat(
+          Futures.getUnchecked(chunkedCache.fetchAsync(dummyRuleKey, output)).getType(),
+          Matchers.equalTo(CacheResultType.MISS));
+
+      chunkedCache
+          .store(
+              ArtifactInfo.builder().addRuleKeys(dummyRuleKey).build(),
+              BorrowablePath.notBorrowablePath(artifact))
+          .get();
+      assertThat(
+          Futures.getUnchecked(chunkedCache.fetchAsync(dummyRuleKey, output)).getType(),
+          Matchers.equalTo(CacheResultType.HIT));
+      assertArrayEquals(contents, Files.readAllBytes(output.get()));
+    }
+  }
+
+  @Test
+  public void testStoreDeletesItsTemporaryFiles() throws Exception {
+    byte[] contents = randomBytes(64 * 1024);
+    try (InMemoryArtifactCache inMemoryArtifactCache = new InMemoryArtifactCache();
+        ChunkedArtifactCacheDecorator chunkedCache = newChunkedCache(inMemoryArtifactCache, 0L)) {
+      chunkedCache
+          .store(
+              ArtifactInfo.builder().addRuleKeys(dummyRuleKey).build(),
+              BorrowablePath.notBorrowablePath(writeArtifact(contents)))
+          .get();
+
+      // The in-memory cache copies what it stores, so neither chunks nor manifest are left behind.
+      ProjectFilesystem filesystem = TestProjectFilesystems.createProjectFilesystem(tmp.getRoot());
+      Path tmpDir = filesystem.resolve(filesystem.getBuckPaths().getTmpDir());
+      try (Stream<Path> files = Files.list(tmpDir)) {
+        assertThat(files.collect(Collectors.toList()), Matchers.empty());
+      }
+    }
+  }
+
+  @Test
+  public void testStoreSurvivesTheOutputBeingDeletedRightAway() throws Exception {
+    byte[] contents = randomBytes(64 * 1024);
+    SettableFuture<Void> containsChecked = SettableFuture.create();
+    try (InMemoryArtifactCache delegate =
+            new InMemoryArtifactCache() {
+              @Override
+              public ListenableFuture<ImmutableMap<RuleKey, CacheResult>> multiContainsAsync(
+                  ImmutableSet<RuleKey> ruleKeys) {
+                return Futures.transformAsync(
+                    containsChecked,
+                    ignored -> super.multiContainsAsync(ruleKeys),
+                    MoreExecutors.directExecutor());
+              }
+            };
+        ChunkedArtifactCacheDecorator chunkedCache = newChunkedCache(delegate, 0L)) {
+      Path artifact = writeArtifact(contents);
+      ListenableFuture<Void> stored =
+          chunkedCache.store(
+              ArtifactInfo.builder().addRuleKeys(dummyRuleKey).build(),
+              BorrowablePath.notBorrowablePath(artifact));
+      Files.delete(artifact);
+      containsChecked.set(null);
+      stored.get();
+
+      LazyPath output = LazyPath.ofInstance(tmp.getRoot().resolve("output"));
+      CacheResult result = Futures.getUnchecked(chunkedCache.fetchAsync(dummyRuleKey, output));
+      assertThat(result.getType(), Matchers.equalTo(CacheResultType.HIT));
+      assertArrayEquals(contents, Files.readAllBytes(output.get()));
+    }
+  }
+
+  @Test
+  public void testChunkFetchesInFlightAreLimited() throws Exception {
+    byte[] contents = randomBytes(64 * 1024);
+    try (PendingChunkArtifactCache delegate = new PendingChunkArtifactCache();
+        ChunkedArtifactCacheDecorator chunkedCache = newChunkedCache(delegate, 0L)) {
+      chunkedCache
+          .store(
+              ArtifactInfo.builder().addRuleKeys(dummyRuleKey).build(),
+              BorrowablePath.notBorrowablePath(writeArtifact(contents)))
+          .get();
+
+      LazyPath output = LazyPath.ofInstance(tmp.getRoot().resolve("output"));
+      ListenableFuture<CacheResult> result = chunkedCache.fetchAsync(dummyRuleKey, output);
+      int fetched = 0;
+      while (!result.isDone()) {
+        Runnable fetch = delegate.pending.poll();
+        if (fetch == null) {
+          Thread.sleep(1);
+          continue;
+        }
+        assertThat(
+            delegate.pending.size(),
+            Matchers.lessThan(ChunkedArtifactCacheDecorator.MAX_IN_FLIGHT_CHUNK_FETCHES));
+        fetch.run();
+        fetched++;
+      }
+
+      assertThat(
+          fetched, Matchers.greaterThan(ChunkedArtifactCacheDecorator.MAX_IN_FLIGHT_CHUNK_FETCHES));
+      assertThat(result.get().getType(), Matchers.equalTo(CacheResultType.HIT));
+      assertArrayEquals(contents, Files.readAllBytes(output.get()));
+    }
+  }
+
+  @Test
+  public void testChunkerSplitsDeterministicallyWithinBounds() throws Exception {
+    byte[] contents = randomBytes(512 * 1024);
+    ContentDefinedChunker chunker = new ContentDefinedChunker(AVERAGE_CHUNK_SIZE);
+    ImmutableList<ContentDefinedChunker.Chunk> chunks =
+        chunker.split(new ByteArrayInputStream(contents));
+    ImmutableList<ContentDefinedChunker.Chunk> chunksAgain =
+        chunker.split(new ByteArrayInputStream(contents));
+
+    long offset = 0;
+    for (int i = 0; i < chunks.size(); i++) {
+      ContentDefinedChunker.Chunk chunk = chunks.get(i);
+      assertThat(chunk.getOffset(), Matchers.equalTo(offset));
+      assertThat(chunk.getSize(), Matchers.lessThanOrEqualTo(4 * AVERAGE_CHUNK_SIZE));
+      if (i < chunks.size() - 1) {
+        assertThat(chunk.getSize(), Matchers.greaterThanOrEqualTo(AVERAGE_CHUNK_SIZE / 4));
+      }
+      assertThat(chunk.getHash(), Matchers.equalTo(chunksAgain.get(i).getHash()));
+      offset += chunk.getSize();
+    }
+    assertThat(offset, Matchers.equalTo((long) contents.length));
+  }
+
+  /** Leaves chunk fetches pending until the test runs them. */
+  private static class PendingChunkArtifactCache extends InMemoryArtifactCache {
+    private final Queue<Runnable> pending = new ConcurrentLinkedQueue<>();
+
+    @Override
+    public ListenableFuture<CacheResult> fetchAsync(RuleKey ruleKey, LazyPath output) {
+      if (ruleKey.equals(dummyRuleKey)) {
+        return super.fetchAsync(ruleKey, output);
+      }
+      SettableFuture<CacheResult> result = SettableFuture.create();
+      pending.add(() -> result.setFuture(super.fetchAsync(ruleKey, output)));
+      return result;
+    }
+  }
+}
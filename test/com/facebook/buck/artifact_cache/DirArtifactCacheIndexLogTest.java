@@ -0,0 +1,167 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.artifact_cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.facebook.buck.artifact_cache.DirArtifactCacheIndexLog.Operation;
+import com.facebook.buck.io.filesystem.ProjectFilesystem;
+import com.facebook.buck.io.filesystem.TestProjectFilesystems;
+import com.facebook.buck.testutil.integration.TemporaryPaths;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class DirArtifactCacheIndexLogTest {
+
+  @Rule public TemporaryPaths tmp = new TemporaryPaths();
+
+  private ProjectFilesystem filesystem;
+  private Path logPath;
+  private Path a;
+  private Path b;
+  private Path c;
+
+  @Before
+  public void setUp() throws IOException {
+    filesystem = TestProjectFilesystems.createProjectFilesystem(tmp.getRoot());
+    logPath = Paths.get("cache/index/index.log");
+    Path cacheRoot = filesystem.resolve("cache");
+    a = cacheRoot.resolve("aa/aa/aaaa");
+    b = cacheRoot.resolve("bb/bb/bbbb");
+    c = cacheRoot.resolve("cc/cc/cccc");
+  }
+
+  @Test
+  public void testNothingIsAppendedUntilTheLogIsCreated() throws IOException {
+    DirArtifactCacheIndexLog log = newLog();
+    log.append(Operation.ADD, a, 10);
+    assertFalse(log.exists());
+
+    DirArtifactCacheIndex index = new DirArtifactCacheIndex();
+    index.load(ImmutableMap.of(a, 10L));
+    log.compact(index);
+    assertTrue(log.exists());
+  }
+
+  @Test
+  public void testReplaysSnapshotAndAppendedRecords() throws IOException {
+    DirArtifactCacheIndex index = new DirArtifactCacheIndex();
+    index.load(ImmutableMap.of(a, 10L, b, 20L));
+    DirArtifactCacheIndexLog log = newLog();
+    log.compact(index);
+    log.append(Operation.ADD, c, 30);
+    log.append(Operation.TOUCH, a, 0);
+    log.appendRemovals(ImmutableList.of(b));
+
+    DirArtifactCacheIndex loaded = new DirArtifactCacheIndex();
+    newLog().readNewRecords(loaded);
+    assertTrue(loaded.isLoaded());
+    assertEquals(ImmutableList.of(c, a), loaded.getEntries().keySet().asList());
+    assertEquals(40, loaded.getTotalSizeBytes());
+  }
+
+  @Test
+  public void testPicksUpRecordsAndCompactionsOfOtherWriters() throws IOException {
+    DirArtifactCacheIndex index = new DirArtifactCacheIndex();
+    index.load(ImmutableMap.of(a, 10L));
+    DirArtifactCacheIndexLog writer = newLog();
+    writer.compact(index);
+
+    DirArtifactCacheIndex otherIndex = new DirArtifactCacheIndex();
+    DirArtifactCacheIndexLog other = newLog();
+    other.readNewRecords(otherIndex);
+    assertEquals(ImmutableMap.of(a, 10L), otherIndex.getEntries());
+
+    writer.append(Operation.ADD, b, 20);
+    other.readNewRecords(otherIndex);
+    assertEquals(ImmutableMap.of(a, 10L, b, 20L), otherIndex.getEntries());
+
+    // Entries missing from the compacted log are dropped when the other index is reloaded. The
+    // records appended since the writer last read the log are carried over.
+    otherIndex.add(c, 30);
+    index.remove(a);
+    writer.compact(index);
+    other.readNewRecords(otherIndex);
+    assertEquals(ImmutableMap.of(b, 20L), otherIndex.getEntries());
+    assertTrue(otherIndex.isLoaded());
+  }
+
+  @Test
+  public void testCompactionKeepsRecordsAppendedByOtherWriters() throws IOException {
+    DirArtifactCacheIndex index = new DirArtifactCacheIndex();
+    index.load(ImmutableMap.of(a, 10L));
+    DirArtifactCacheIndexLog writer = newLog();
+    writer.compact(index);
+    DirArtifactCacheIndexLog other = newLog();
+    other.readNewRecords(new DirArtifactCacheIndex());
+
+    other.append(Operation.ADD, b, 20);
+    other.append(Operation.REMOVE, a, 0);
+    writer.compact(index);
+    assertEquals(ImmutableMap.of(b, 20L), index.getEntries());
+
+    DirArtifactCacheIndex loaded = new DirArtifactCacheIndex();
+    newLog().readNewRecords(loaded);
+    assertEquals(ImmutableMap.of(b, 20L), loaded.getEntries());
+    assertFalse(writer.needsCompaction(loaded.size()));
+  }
+
+  @Test
+  public void testCompactionIsSkippedIfAnotherWriterCompacted() throws IOException {
+    DirArtifactCacheIndex index = new DirArtifactCacheIndex();
+    index.load(ImmutableMap.of(a, 10L));
+    DirArtifactCacheIndexLog writer = newLog();
+    writer.compact(index);
+    DirArtifactCacheIndexLog other = newLog();
+    DirArtifactCacheIndex otherIndex = new DirArtifactCacheIndex();
+    other.readNewRecords(otherIndex);
+
+    otherIndex.add(b, 20);
+    other.compact(otherIndex);
+    writer.compact(index);
+
+    DirArtifactCacheIndex loaded = new DirArtifactCacheIndex();
+    newLog().readNewRecords(loaded);
+    assertEquals(ImmutableMap.of(a, 10L, b, 20L), loaded.getEntries());
+  }
+
+  @Test(expected = IOException.class)
+  public void testCorruptRecordsAreRejected() throws IOException {
+    DirArtifactCacheIndex index = new DirArtifactCacheIndex();
+    index.load(ImmutableMap.of(a, 10L, b, 20L));
+    newLog().compact(index);
+
+    byte[] bytes = Files.readAllBytes(filesystem.resolve(logPath));
+    bytes[bytes.length - 10] ^= 0xFF;
+    Files.write(filesystem.resolve(logPath), bytes);
+
+    newLog().readNewRecords(new DirArtifactCacheIndex());
+  }
+
+  private DirArtifactCacheIndexLog newLog() {
+    return new DirArtifactCacheIndexLog(filesystem, logPath, filesystem.resolve("cache"));
+  }
+}
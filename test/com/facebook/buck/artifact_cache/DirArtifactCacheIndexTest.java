@@ -0,0 +1,78 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.artifact_cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import org.junit.Test;
+
+public class DirArtifactCacheIndexTest {
+
+  private static final Path A = Paths.get("aa/aa/aaaa");
+  private static final Path B = Paths.get("bb/bb/bbbb");
+  private static final Path C = Paths.get("cc/cc/cccc");
+  private static final Path D = Paths.get("dd/dd/dddd");
+
+  @Test
+  public void testEvictsLeastRecentlyUsedFirst() {
+    DirArtifactCacheIndex index = new DirArtifactCacheIndex();
+    index.add(A, 10);
+    index.add(B, 10);
+    index.add(C, 10);
+    index.touch(A);
+    assertEquals(30, index.getTotalSizeBytes());
+
+    assertEquals(ImmutableList.of(B), index.removeLeastRecentlyUsed(20));
+    assertEquals(ImmutableList.of(C, A), index.removeLeastRecentlyUsed(0));
+    assertEquals(0, index.getTotalSizeBytes());
+  }
+
+  @Test
+  public void testAddReplacesSizeAndRemoveForgetsEntry() {
+    DirArtifactCacheIndex index = new DirArtifactCacheIndex();
+    index.add(A, 10);
+    index.add(A, 4);
+    index.add(B, 6);
+    assertEquals(10, index.getTotalSizeBytes());
+
+    index.remove(A);
+    index.remove(C);
+    assertEquals(6, index.getTotalSizeBytes());
+    assertEquals(ImmutableList.of(B), index.removeLeastRecentlyUsed(0));
+  }
+
+  @Test
+  public void testLoadedEntriesAreOlderThanRecordedOnes() {
+    DirArtifactCacheIndex index = new DirArtifactCacheIndex();
+    index.add(C, 10);
+    assertFalse(index.isLoaded());
+
+    // C is already known, so what's on disk doesn't change it.
+    index.load(ImmutableMap.of(B, 1L, C, 100L, A, 1L));
+    assertTrue(index.isLoaded());
+    assertEquals(12, index.getTotalSizeBytes());
+
+    index.add(D, 1);
+    assertEquals(ImmutableList.of(B, A, C), index.removeLeastRecentlyUsed(1));
+  }
+}
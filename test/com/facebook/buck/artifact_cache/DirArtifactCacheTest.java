@@ -19,13 +19,15 @@ package com.facebook.buck.artifact_cache;
 import static java.nio.charset.StandardCharsets.UTF_8;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
-import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
 
 import com.facebook.buck.artifact_cache.config.CacheReadMode;
+import com.facebook.buck.event.BuckEventBus;
+import com.facebook.buck.event.BuckEventBusForTests;
 import com.facebook.buck.io.file.BorrowablePath;
 import com.facebook.buck.io.file.LazyPath;
+import com.facebook.buck.io.filesystem.ProjectFilesystem;
 import com.facebook.buck.io.filesystem.TestProjectFilesystems;
 import com.facebook.buck.model.BuildTargetFactory;
 import com.facebook.buck.rules.AddToRuleKey;
@@ -47,20 +49,24 @@ import com.facebook.buck.testutil.DummyFileHashCache;
 import com.facebook.buck.testutil.FakeFileHashCache;
 import com.facebook.buck.testutil.FakeProjectFilesystem;
 import com.facebook.buck.testutil.integration.TemporaryPaths;
-import com.facebook.buck.util.DirectoryCleaner;
 import com.facebook.buck.util.cache.FileHashCache;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.eventbus.Subscribe;
 import com.google.common.hash.HashCode;
 import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.MoreExecutors;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.Executors;
 import org.hamcrest.Matchers;
 import org.junit.After;
 import org.junit.Rule;
@@ -711,31 +717,6 @@ public class DirArtifactCacheTest {
     assertEquals(ImmutableSet.of(fileZ, fileW), ImmutableSet.copyOf(filesInCache));
   }
 
-  private DirectoryCleaner.PathStats fakePathStats(long creationTime, long lastAccessTime) {
-    return new DirectoryCleaner.PathStats(null, 0, creationTime, lastAccessTime);
-  }
-
-  @Test
-  public void testDirectoryCleanerPathSelector() throws InterruptedException, IOException {
-    Path cacheDir = tmpDir.newFolder();
-
-    dirArtifactCache =
-        new DirArtifactCache(
-            "dir",
-            TestProjectFilesystems.createProjectFilesystem(cacheDir),
-            Paths.get("."),
-            CacheReadMode.READWRITE,
-            /* maxCacheSizeBytes */ Optional.of(3L));
-
-    DirectoryCleaner.PathSelector pathSelector = dirArtifactCache.getDirectoryCleanerPathSelector();
-
-    assertTrue(pathSelector.comparePaths(fakePathStats(0, 0), fakePathStats(0, 10)) < 0);
-    assertTrue(pathSelector.comparePaths(fakePathStats(0, 10), fakePathStats(10, 10)) < 0);
-    assertSame(pathSelector.comparePaths(fakePathStats(20, 10), fakePathStats(20, 10)), 0);
-    assertTrue(pathSelector.comparePaths(fakePathStats(0, 20), fakePathStats(10, 10)) > 0);
-    assertTrue(pathSelector.comparePaths(fakePathStats(20, 10), fakePathStats(10, 10)) > 0);
-  }
-
   @Test
   public void testDeleteAfterStoreIfFull() throws InterruptedException, IOException {
     Path cacheDir = tmpDir.newFolder();
@@ -908,6 +889,152 @@ public class DirArtifactCacheTest {
     cache.close();
   }
 
+  @Test
+  public void testStoresAndEvictsOnBackgroundThreads() throws Exception {
+    Path cacheDir = tmpDir.newFolder();
+    Path data = tmpDir.newFile("data");
+    Files.write(data, "x".getBytes(UTF_8));
+
+    BuckEventBus eventBus = BuckEventBusForTests.newInstance();
+    List<DirArtifactCacheEvent.EvictionFinished> evictions =
+        Collections.synchronizedList(new ArrayList<>());
+    eventBus.register(
+        new Object() {
+          @Subscribe
+          public void evictionFinished(DirArtifactCacheEvent.EvictionFinished finished) {
+            evictions.add(finished);
+          }
+        });
+
+    // A 1-byte entry takes 5 bytes to store, so only one of them fits in 9 bytes.
+    DirArtifactCache cache =
+        new DirArtifactCache(
+            "dir",
+            TestProjectFilesystems.createProjectFilesystem(cacheDir),
+            cacheDir,
+            CacheReadMode.READWRITE,
+            /* maxCacheSizeBytes */ Optional.of(9L),
+            MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(2)),
+            MoreExecutors.listeningDecorator(Executors.newSingleThreadExecutor()),
+            Optional.of(eventBus));
+
+    RuleKey ruleKeyX = new RuleKey("aaaa");
+    RuleKey ruleKeyY = new RuleKey("bbbb");
+    cache
+        .store(
+            ArtifactInfo.builder().addRuleKeys(ruleKeyX).build(),
+            BorrowablePath.notBorrowablePath(data))
+        .get();
+    Path output = tmpDir.getRoot().resolve("output");
+    assertEquals(
+        CacheResultType.HIT,
+        cache.fetchAsync(ruleKeyX, LazyPath.ofInstance(output)).get().getType());
+    cache
+        .store(
+            ArtifactInfo.builder().addRuleKeys(ruleKeyY).build(),
+            BorrowablePath.notBorrowablePath(data))
+        .get();
+
+    // Closing waits for the eviction triggered by the second store.
+    cache.close();
+
+    assertFalse(Files.exists(cache.getPathForRuleKey(ruleKeyX, Optional.empty())));
+    assertFalse(Files.exists(cache.getPathForRuleKey(ruleKeyX, Optional.of(".metadata"))));
+    assertTrue(Files.exists(cache.getPathForRuleKey(ruleKeyY, Optional.empty())));
+    assertEquals(1, evictions.size());
+    assertEquals(1, evictions.get(0).getEvictedEntries());
+    assertEquals(5L, evictions.get(0).getSizeBytes());
+  }
+
+  @Test
+  public void testIndexIsReloadedFromItsLog() throws IOException {
+    Path cacheDir = tmpDir.newFolder();
+    Path data = tmpDir.newFile("data");
+    Files.write(data, "x".getBytes(UTF_8));
+    ProjectFilesystem filesystem = TestProjectFilesystems.createProjectFilesystem(cacheDir);
+
+    RuleKey ruleKeyX = new RuleKey("aaaa");
+    RuleKey ruleKeyY = new RuleKey("bbbb");
+    DirArtifactCache cache =
+        new DirArtifactCache(
+            "dir",
+            filesystem,
+            Paths.get("."),
+            CacheReadMode.READWRITE,
+            /* maxCacheSizeBytes */ Optional.of(100L));
+    cache.store(
+        ArtifactInfo.builder().addRuleKeys(ruleKeyX).build(),
+        BorrowablePath.notBorrowablePath(data));
+    // Trimming the cache on close writes out its index.
+    cache.close();
+    assertTrue(Files.exists(cacheDir.resolve("index/index.log")));
+
+    cache =
+        new DirArtifactCache(
+            "dir",
+            filesystem,
+            Paths.get("."),
+            CacheReadMode.READWRITE,
+            /* maxCacheSizeBytes */ Optional.of(100L));
+    assertEquals(
+        ImmutableList.of(CacheResultType.CONTAINS, CacheResultType.MISS),
+        Futures.getUnchecked(cache.multiContainsAsync(ImmutableSet.of(ruleKeyX, ruleKeyY)))
+            .values()
+            .stream()
+            .map(CacheResult::getType)
+            .collect(ImmutableList.toImmutableList()));
+
+    // Entries deleted behind the cache's back are dropped from the index once they're missed.
+    Files.delete(filesystem.resolve(cache.getPathForRuleKey(ruleKeyX, Optional.empty())));
+    Path output = tmpDir.getRoot().resolve("output");
+    assertEquals(
+        CacheResultType.MISS,
+        Futures.getUnchecked(cache.fetchAsync(ruleKeyX, LazyPath.ofInstance(output))).getType());
+    assertEquals(
+        CacheResultType.MISS,
+        Futures.getUnchecked(cache.multiContainsAsync(ImmutableSet.of(ruleKeyX)))
+            .get(ruleKeyX)
+            .getType());
+    cache.close();
+  }
+
+  @Test
+  public void testStoreReplacesEntriesDeletedBehindTheIndexesBack() throws IOException {
+    Path cacheDir = tmpDir.newFolder();
+    Path data = tmpDir.newFile("data");
+    Files.write(data, "x".getBytes(UTF_8));
+    ProjectFilesystem filesystem = TestProjectFilesystems.createProjectFilesystem(cacheDir);
+
+    RuleKey ruleKey = new RuleKey("aaaa");
+    DirArtifactCache cache =
+        new DirArtifactCache(
+            "dir",
+            filesystem,
+            Paths.get("."),
+            CacheReadMode.READWRITE,
+            /* maxCacheSizeBytes */ Optional.of(100L));
+    Futures.getUnchecked(
+        cache.store(
+            ArtifactInfo.builder().addRuleKeys(ruleKey).build(),
+            BorrowablePath.notBorrowablePath(data)));
+    // Loads the index.
+    cache.deleteOldFiles();
+
+    Path artifactPath = filesystem.resolve(cache.getPathForRuleKey(ruleKey, Optional.empty()));
+    Files.delete(artifactPath);
+    Futures.getUnchecked(
+        cache.store(
+            ArtifactInfo.builder().addRuleKeys(ruleKey).build(),
+            BorrowablePath.notBorrowablePath(data)));
+
+    assertTrue(Files.exists(artifactPath));
+    Path output = tmpDir.getRoot().resolve("output");
+    assertEquals(
+        CacheResultType.HIT,
+        Futures.getUnchecked(cache.fetchAsync(ruleKey, LazyPath.ofInstance(output))).getType());
+    cache.close();
+  }
+
   @Test
   public void testFolderLevelsForRuleKeys() throws IOException {
     DirArtifactCache cache =
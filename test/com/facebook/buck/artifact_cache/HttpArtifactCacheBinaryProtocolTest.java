@@ -20,6 +20,7 @@ import static org.junit.Assert.assertThat;
 
 import com.facebook.buck.rules.RuleKey;
 import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.hash.HashCode;
@@ -32,6 +33,7 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Optional;
 import org.hamcrest.Matchers;
 import org.junit.Rule;
 import org.junit.Test;
@@ -101,6 +103,64 @@ public class HttpArtifactCacheBinaryProtocolTest {
     assertThat(fetchResponsePayload.toByteArray(), Matchers.equalTo(data.getBytes(Charsets.UTF_8)));
   }
 
+  @Test
+  public void testMultiFetchRequestAndResponse() throws IOException {
+    RuleKey ruleKey = new RuleKey("00000000000000000000000000000000");
+    RuleKey ruleKey2 = new RuleKey("90000000000000000000008000000005");
+    RuleKey ruleKey3 = new RuleKey("00000000010000000000008000000000");
+    ImmutableList<RuleKey> ruleKeys = ImmutableList.of(ruleKey, ruleKey2, ruleKey3);
+
+    byte[] request = HttpArtifactCacheBinaryProtocol.createMultiFetchRequest(ruleKeys);
+    assertThat(
+        HttpArtifactCacheBinaryProtocol.readMultiFetchRequest(
+            new DataInputStream(new ByteArrayInputStream(request))),
+        Matchers.equalTo(ruleKeys));
+
+    HttpArtifactCacheBinaryProtocol.MultiFetchResponse multiFetchResponse =
+        new HttpArtifactCacheBinaryProtocol.MultiFetchResponse(
+            ImmutableList.of(
+                Optional.of(
+                    new HttpArtifactCacheBinaryProtocol.FetchResponse(
+                        ImmutableSet.of(ruleKey),
+                        ImmutableMap.of("metaKey", "metaValue"),
+                        ByteSource.wrap("data".getBytes(Charsets.UTF_8)))),
+                Optional.empty(),
+                Optional.of(
+                    new HttpArtifactCacheBinaryProtocol.FetchResponse(
+                        ImmutableSet.of(ruleKey3),
+                        ImmutableMap.of(),
+                        ByteSource.wrap("more data".getBytes(Charsets.UTF_8))))));
+    ByteArrayOutputStream responseOutputStream = new ByteArrayOutputStream();
+    multiFetchResponse.write(responseOutputStream);
+    byte[] response = responseOutputStream.toByteArray();
+    assertThat((long) response.length, Matchers.is(multiFetchResponse.getContentLength()));
+
+    DataInputStream input = new DataInputStream(new ByteArrayInputStream(response));
+    assertThat(HttpArtifactCacheBinaryProtocol.readMultiFetchResponseHeader(input), Matchers.is(3));
+
+    // Leave the first payload unread, which must not get in the way of reading the others.
+    Optional<DataInputStream> entry =
+        HttpArtifactCacheBinaryProtocol.readMultiFetchResponseEntry(input);
+    assertThat(entry.isPresent(), Matchers.is(true));
+    entry.get().close();
+
+    assertThat(
+        HttpArtifactCacheBinaryProtocol.readMultiFetchResponseEntry(input).isPresent(),
+        Matchers.is(false));
+
+    entry = HttpArtifactCacheBinaryProtocol.readMultiFetchResponseEntry(input);
+    assertThat(entry.isPresent(), Matchers.is(true));
+    ByteArrayOutputStream payload = new ByteArrayOutputStream();
+    FetchResponseReadResult result;
+    try (DataInputStream entryInput = entry.get()) {
+      result = HttpArtifactCacheBinaryProtocol.readFetchResponse(entryInput, payload);
+    }
+    assertThat(result.getRuleKeys(), Matchers.contains(ruleKey3));
+    assertThat(result.getActualHashCode(), Matchers.equalTo(result.getExpectedHashCode()));
+    assertThat(payload.toByteArray(), Matchers.equalTo("more data".getBytes(Charsets.UTF_8)));
+    assertThat(input.read(), Matchers.is(-1));
+  }
+
   @Test
   public void testReadFetchResponse() throws IOException {
     final String base64EncodedData =
@@ -36,6 +36,7 @@ import com.facebook.buck.slb.OkHttpResponseWrapper;
 import com.facebook.buck.testutil.FakeProjectFilesystem;
 import com.facebook.buck.util.timing.IncrementingFakeClock;
 import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.io.ByteSource;
@@ -556,6 +557,65 @@ public class HttpArtifactCacheTest {
     cache.close();
   }
 
+  @Test
+  public void testMultiFetchFallsBackToFetchWhenTheServerDoesNotSupportIt() throws Exception {
+    RuleKey ruleKey = new RuleKey("00000000000000000000000000000000");
+    RuleKey otherRuleKey = new RuleKey("11111111111111111111111111111111");
+    String data = "data";
+    for (int unsupportedCode :
+        ImmutableList.of(
+            HttpURLConnection.HTTP_NOT_FOUND,
+            HttpURLConnection.HTTP_BAD_METHOD,
+            HttpURLConnection.HTTP_NOT_IMPLEMENTED)) {
+      FakeProjectFilesystem filesystem = new FakeProjectFilesystem();
+      List<String> requestedPaths = new ArrayList<>();
+      argsBuilder.setProjectFilesystem(filesystem);
+      argsBuilder.setFetchClient(
+          withMakeRequest(
+              (path, requestBuilder) -> {
+                requestedPaths.add(path);
+                Request request = requestBuilder.url(SERVER + path).build();
+                Response.Builder response =
+                    new Response.Builder().request(request).protocol(Protocol.HTTP_1_1).message("");
+                if (path.equals("/artifacts/multikey")) {
+                  response.code(unsupportedCode).body(createDummyBody());
+                } else {
+                  RuleKey requested = new RuleKey(path.substring("/artifacts/key/".length()));
+                  response
+                      .code(HttpURLConnection.HTTP_OK)
+                      .body(
+                          createResponseBody(
+                              ImmutableSet.of(requested),
+                              ImmutableMap.of(),
+                              ByteSource.wrap(data.getBytes(Charsets.UTF_8)),
+                              data));
+                }
+                return new OkHttpResponseWrapper(response.build());
+              }));
+      HttpArtifactCache cache =
+          new HttpArtifactCache(argsBuilder.build(), /* multiFetchLimit */ 10, 1);
+
+      Path output = Paths.get("output/file");
+      CacheResult result =
+          Futures.getUnchecked(cache.fetchAsync(ruleKey, LazyPath.ofInstance(output)));
+      assertEquals(result.cacheError().orElse(""), CacheResultType.HIT, result.getType());
+      assertEquals(Optional.of(data), filesystem.readFileIfItExists(output));
+      Path otherOutput = Paths.get("output/other");
+      result =
+          Futures.getUnchecked(cache.fetchAsync(otherRuleKey, LazyPath.ofInstance(otherOutput)));
+      assertEquals(result.cacheError().orElse(""), CacheResultType.HIT, result.getType());
+
+      // Multi-fetch isn't tried again once the server turned out not to support it.
+      assertEquals(
+          ImmutableList.of(
+              "/artifacts/multikey",
+              "/artifacts/key/" + ruleKey,
+              "/artifacts/key/" + otherRuleKey),
+          requestedPaths);
+      cache.close();
+    }
+  }
+
   private static ResponseBody createDummyBody() {
     return ResponseBody.create(MediaType.parse("text/plain"), "SUCCESS");
   }
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.artifact_cache;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import com.facebook.buck.artifact_cache.config.MemoryCacheEntry;
+import com.facebook.buck.artifact_cache.config.MemoryCacheEvictionPolicy;
+import com.facebook.buck.event.BuckEventBusForTests;
+import com.facebook.buck.io.file.BorrowablePath;
+import com.facebook.buck.io.file.LazyPath;
+import com.facebook.buck.rules.RuleKey;
+import com.facebook.buck.testutil.integration.TemporaryPaths;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.ByteStreams;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class MemoryArtifactCacheDecoratorTest {
+
+  @Rule public TemporaryPaths tmp = new TemporaryPaths();
+
+  private static final RuleKey RULE_KEY = new RuleKey("76b1c1beae69428db2d1befb31cf743ac8ce90df");
+  private static final ImmutableMap<String, String> METADATA = ImmutableMap.of("key", "value");
+  private static final byte[] DATA = "artifact".getBytes();
+
+  private final MemoryArtifactStore store =
+      new MemoryArtifactStore(MemoryCacheEntry.of(1024, 16, MemoryCacheEvictionPolicy.LRU));
+
+  private MemoryArtifactCacheDecorator newCache(ArtifactCache delegate) {
+    return new MemoryArtifactCacheDecorator(delegate, store, BuckEventBusForTests.newInstance());
+  }
+
+  @Test
+  public void fetchedArtifactIsServedFromMemoryByLaterCommands() throws Exception {
+    InMemoryArtifactCache delegate = new InMemoryArtifactCache();
+    delegate.store(
+        ArtifactInfo.builder().addRuleKeys(RULE_KEY).setMetadata(METADATA).build(), DATA);
+    try (MemoryArtifactCacheDecorator cache = newCache(delegate)) {
+      CacheResult result =
+          cache.fetchAsync(RULE_KEY, LazyPath.ofInstance(tmp.getRoot().resolve("first"))).get();
+      assertEquals("in-memory", result.getCacheSource());
+    }
+    delegate.deleteAsync(ImmutableList.of(RULE_KEY)).get();
+
+    Path output = tmp.getRoot().resolve("second");
+    try (MemoryArtifactCacheDecorator cache = newCache(delegate)) {
+      CacheResult result = cache.fetchAsync(RULE_KEY, LazyPath.ofInstance(output)).get();
+
+      assertEquals(CacheResultType.HIT, result.getType());
+      assertEquals(MemoryArtifactCacheDecorator.CACHE_SOURCE, result.getCacheSource());
+      assertEquals(METADATA, result.getMetadata());
+      assertArrayEquals(DATA, Files.readAllBytes(output));
+      assertEquals(1, cache.getMemoryCacheCounters().getTotalMemoryCacheHits());
+      assertEquals(0, cache.getMemoryCacheCounters().getTotalMemoryCacheMisses());
+    }
+  }
+
+  @Test
+  public void storedArtifactIsServedFromMemory() throws Exception {
+    InMemoryArtifactCache delegate = new InMemoryArtifactCache();
+    Path artifact = tmp.newFile();
+    Files.write(artifact, DATA);
+    AtomicReference<byte[]> consumed = new AtomicReference<>();
+
+    try (MemoryArtifactCacheDecorator cache = newCache(delegate)) {
+      cache
+          .store(
+              ArtifactInfo.builder().addRuleKeys(RULE_KEY).setMetadata(METADATA).build(),
+              BorrowablePath.borrowablePath(artifact))
+          .get();
+      delegate.deleteAsync(ImmutableList.of(RULE_KEY)).get();
+      CacheResult result =
+          cache
+              .fetchAsync(
+                  RULE_KEY,
+                  LazyPath.ofInstance(tmp.getRoot().resolve("unused")),
+                  (metadata, payload) -> consumed.set(ByteStreams.toByteArray(payload)))
+              .get();
+
+      assertEquals(MemoryArtifactCacheDecorator.CACHE_SOURCE, result.getCacheSource());
+      assertArrayEquals(DATA, consumed.get());
+    }
+  }
+
+  @Test
+  public void consumedArtifactIsKeptInMemory() throws Exception {
+    InMemoryArtifactCache delegate = new InMemoryArtifactCache();
+    delegate.store(
+        ArtifactInfo.builder().addRuleKeys(RULE_KEY).setMetadata(METADATA).build(), DATA);
+
+    try (MemoryArtifactCacheDecorator cache = newCache(delegate)) {
+      cache
+          .fetchAsync(
+              RULE_KEY,
+              LazyPath.ofInstance(tmp.getRoot().resolve("unused")),
+              (metadata, payload) -> ByteStreams.toByteArray(payload))
+          .get();
+
+      assertArrayEquals(DATA, toByteArray(store.get(RULE_KEY).get()));
+      assertEquals(1, cache.getMemoryCacheCounters().getTotalMemoryCacheMisses());
+    }
+  }
+
+  @Test
+  public void largeArtifactIsNotKeptInMemory() throws Exception {
+    InMemoryArtifactCache delegate = new InMemoryArtifactCache();
+    delegate.store(ArtifactInfo.builder().addRuleKeys(RULE_KEY).build(), new byte[17]);
+
+    try (MemoryArtifactCacheDecorator cache = newCache(delegate)) {
+      cache.fetchAsync(RULE_KEY, LazyPath.ofInstance(tmp.getRoot().resolve("output"))).get();
+
+      assertFalse(store.get(RULE_KEY).isPresent());
+    }
+  }
+
+  private static byte[] toByteArray(MemoryArtifactStore.StoredArtifact stored) {
+    ByteBuffer data = stored.getData();
+    byte[] bytes = new byte[data.remaining()];
+    data.get(bytes);
+    return bytes;
+  }
+}
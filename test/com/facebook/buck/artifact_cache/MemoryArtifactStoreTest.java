@@ -0,0 +1,118 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.artifact_cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.facebook.buck.artifact_cache.config.ArtifactCacheMode;
+import com.facebook.buck.artifact_cache.config.MemoryCacheEntry;
+import com.facebook.buck.artifact_cache.config.MemoryCacheEvictionPolicy;
+import com.facebook.buck.rules.RuleKey;
+import com.google.common.collect.ImmutableMap;
+import java.nio.ByteBuffer;
+import java.util.Optional;
+import org.junit.Test;
+
+public class MemoryArtifactStoreTest {
+
+  private static final RuleKey FIRST = new RuleKey("1111111111111111111111111111111111111111");
+  private static final RuleKey SECOND = new RuleKey("2222222222222222222222222222222222222222");
+  private static final RuleKey THIRD = new RuleKey("3333333333333333333333333333333333333333");
+
+  private static MemoryArtifactStore newStore(MemoryCacheEvictionPolicy policy) {
+    return new MemoryArtifactStore(MemoryCacheEntry.of(20, 10, policy));
+  }
+
+  private static void put(MemoryArtifactStore store, RuleKey ruleKey, int size) {
+    store.put(ruleKey, ImmutableMap.of(), new byte[size], Optional.empty());
+  }
+
+  @Test
+  public void storedArtifactIsReturned() {
+    MemoryArtifactStore store = newStore(MemoryCacheEvictionPolicy.LRU);
+    store.put(
+        FIRST,
+        ImmutableMap.of("key", "value"),
+        new byte[] {1, 2, 3},
+        Optional.of(ArtifactCacheMode.dir));
+
+    MemoryArtifactStore.StoredArtifact stored = store.get(FIRST).get();
+    ByteBuffer data = stored.getData();
+    byte[] bytes = new byte[data.remaining()];
+    data.get(bytes);
+
+    assertEquals(ImmutableMap.of("key", "value"), stored.getMetadata());
+    assertEquals(Optional.of(ArtifactCacheMode.dir), stored.getCacheMode());
+    assertEquals(3, bytes.length);
+    assertEquals(3, store.getSizeBytes());
+    // Reading the artifact doesn't use it up.
+    assertEquals(3, store.get(FIRST).get().getData().remaining());
+  }
+
+  @Test
+  public void largeArtifactsAreNotKept() {
+    MemoryArtifactStore store = newStore(MemoryCacheEvictionPolicy.LRU);
+    put(store, FIRST, 11);
+
+    assertFalse(store.get(FIRST).isPresent());
+    assertEquals(0, store.getSizeBytes());
+  }
+
+  @Test
+  public void leastRecentlyUsedArtifactIsEvicted() {
+    MemoryArtifactStore store = newStore(MemoryCacheEvictionPolicy.LRU);
+    put(store, FIRST, 10);
+    put(store, SECOND, 10);
+    store.get(FIRST);
+    put(store, THIRD, 10);
+
+    assertTrue(store.get(FIRST).isPresent());
+    assertFalse(store.get(SECOND).isPresent());
+    assertTrue(store.get(THIRD).isPresent());
+    assertEquals(1, store.getEvictionCount());
+    assertEquals(20, store.getSizeBytes());
+  }
+
+  @Test
+  public void firstAddedArtifactIsEvicted() {
+    MemoryArtifactStore store = newStore(MemoryCacheEvictionPolicy.FIFO);
+    put(store, FIRST, 10);
+    put(store, SECOND, 10);
+    store.get(FIRST);
+    put(store, THIRD, 10);
+
+    assertFalse(store.get(FIRST).isPresent());
+    assertTrue(store.get(SECOND).isPresent());
+    assertTrue(store.get(THIRD).isPresent());
+    assertEquals(1, store.getEvictionCount());
+  }
+
+  @Test
+  public void replacingArtifactKeepsSizeAccurate() {
+    MemoryArtifactStore store = newStore(MemoryCacheEvictionPolicy.LRU);
+    put(store, FIRST, 10);
+    put(store, FIRST, 4);
+    store.remove(SECOND);
+
+    assertEquals(4, store.getSizeBytes());
+    store.remove(FIRST);
+    assertEquals(0, store.getSizeBytes());
+    assertEquals(0, store.getArtifactCount());
+  }
+}
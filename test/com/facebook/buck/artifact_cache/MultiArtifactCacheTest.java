@@ -16,7 +16,9 @@
 
 package com.facebook.buck.artifact_cache;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertThat;
 
@@ -28,21 +30,30 @@ import com.facebook.buck.io.filesystem.ProjectFilesystem;
 import com.facebook.buck.io.filesystem.TestProjectFilesystems;
 import com.facebook.buck.rules.RuleKey;
 import com.facebook.buck.testutil.integration.TemporaryPaths;
+import com.facebook.buck.util.concurrent.FakeListeningExecutorService;
+import com.google.common.base.Charsets;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Maps;
 import com.google.common.util.concurrent.Futures;
+import com.google.common.io.ByteStreams;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayDeque;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Queue;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Stream;
 import javax.annotation.Nullable;
 import org.hamcrest.Matchers;
 import org.junit.Rule;
@@ -400,4 +411,121 @@ public class MultiArtifactCacheTest {
 
     multiArtifactCache.close();
   }
+
+  @Test
+  public void cacheFetchWithConsumerPushesArtifactToHigherCache() throws Exception {
+    InMemoryArtifactCache cache1 = new InMemoryArtifactCache();
+    InMemoryArtifactCache cache2 = new InMemoryArtifactCache();
+    MultiArtifactCache multiArtifactCache =
+        new MultiArtifactCache(ImmutableList.of(cache1, cache2));
+
+    Path outputFile = tmp.getRoot().resolve("output");
+    LazyPath output = LazyPath.ofInstance(outputFile);
+
+    byte[] contents = "artifact".getBytes(Charsets.UTF_8);
+    ImmutableMap<String, String> metadata = ImmutableMap.of("hello", "world");
+    cache2.store(
+        ArtifactInfo.builder().addRuleKeys(dummyRuleKey).setMetadata(metadata).build(), contents);
+    AtomicReference<byte[]> consumed = new AtomicReference<>();
+    CacheResult result =
+        multiArtifactCache
+            .fetchAsync(
+                dummyRuleKey,
+                output,
+                (payloadMetadata, payload) -> consumed.set(ByteStreams.toByteArray(payload)))
+            .get();
+    assertThat(result.getType(), Matchers.equalTo(CacheResultType.HIT));
+    assertArrayEquals(contents, consumed.get());
+
+    Path fetched = tmp.newFile();
+    assertThat(
+        Futures.getUnchecked(cache1.fetchAsync(dummyRuleKey, LazyPath.ofInstance(fetched)))
+            .getType(),
+        Matchers.equalTo(CacheResultType.HIT));
+    assertArrayEquals(contents, Files.readAllBytes(fetched));
+    try (Stream<Path> files = Files.list(tmp.getRoot())) {
+      assertFalse(files.anyMatch(file -> file.toString().endsWith(".fill")));
+    }
+
+    multiArtifactCache.close();
+  }
+
+  @Test
+  public void cacheFetchBackFillsDirCacheWhenOutputIsDeletedRightAway() throws Exception {
+    ProjectFilesystem filesystem = TestProjectFilesystems.createProjectFilesystem(tmp.getRoot());
+    SteppedExecutorService ioExecutor = new SteppedExecutorService();
+    DirArtifactCache cache1 =
+        new DirArtifactCache(
+            "dir1",
+            filesystem,
+            Paths.get("cache1"),
+            CacheReadMode.READWRITE,
+            Optional.empty(),
+            ioExecutor,
+            MoreExecutors.newDirectExecutorService(),
+            Optional.empty());
+    DirArtifactCache cache2 =
+        new DirArtifactCache(
+            "dir2",
+            filesystem,
+            Paths.get("cache2"),
+            CacheReadMode.READWRITE,
+            Optional.empty(),
+            MoreExecutors.newDirectExecutorService(),
+            MoreExecutors.newDirectExecutorService(),
+            Optional.empty());
+    MultiArtifactCache multiArtifactCache =
+        new MultiArtifactCache(ImmutableList.of(cache1, cache2));
+
+    byte[] contents = "artifact".getBytes(Charsets.UTF_8);
+    Path source = tmp.newFile("source");
+    Files.write(source, contents);
+    cache2
+        .store(
+            ArtifactInfo.builder().addRuleKeys(dummyRuleKey).build(),
+            BorrowablePath.notBorrowablePath(source))
+        .get();
+
+    Path output = tmp.getRoot().resolve("output");
+    ListenableFuture<CacheResult> result =
+        multiArtifactCache.fetchAsync(dummyRuleKey, LazyPath.ofInstance(output));
+    ioExecutor.runPending();
+    assertThat(result.get().getType(), Matchers.equalTo(CacheResultType.HIT));
+
+    // The back-fill into the first cache is still queued; the caller no longer needs its output.
+    Files.delete(output);
+    ioExecutor.runPending();
+
+    Path fetched = tmp.getRoot().resolve("fetched");
+    ListenableFuture<CacheResult> refetch =
+        cache1.fetchAsync(dummyRuleKey, LazyPath.ofInstance(fetched));
+    ioExecutor.runPending();
+    assertThat(refetch.get().getType(), Matchers.equalTo(CacheResultType.HIT));
+    assertArrayEquals(contents, Files.readAllBytes(fetched));
+
+    multiArtifactCache.close();
+  }
+
+  /** Runs submitted tasks only when asked to, so that tests can interleave with them. */
+  private static class SteppedExecutorService extends FakeListeningExecutorService {
+    private final Queue<Runnable> pending = new ArrayDeque<>();
+
+    /** Runs the tasks queued so far, leaving the ones they submit for the next call. */
+    void runPending() {
+      for (int i = pending.size(); i > 0; i--) {
+        pending.remove().run();
+      }
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) {
+      runPending();
+      return pending.isEmpty();
+    }
+
+    @Override
+    public void execute(Runnable command) {
+      pending.add(command);
+    }
+  }
 }
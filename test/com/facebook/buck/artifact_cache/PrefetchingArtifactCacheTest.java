@@ -0,0 +1,246 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.artifact_cache;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.facebook.buck.artifact_cache.config.ArtifactPrefetch;
+import com.facebook.buck.event.BuckEventBusForTests;
+import com.facebook.buck.io.file.LazyPath;
+import com.facebook.buck.io.filesystem.ProjectFilesystem;
+import com.facebook.buck.io.filesystem.TestProjectFilesystems;
+import com.facebook.buck.rules.RuleKey;
+import com.facebook.buck.testutil.integration.TemporaryPaths;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.stream.Stream;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class PrefetchingArtifactCacheTest {
+
+  @Rule public TemporaryPaths tmp = new TemporaryPaths();
+
+  private static final RuleKey RULE_KEY = new RuleKey("76b1c1beae69428db2d1befb31cf743ac8ce90df");
+  private static final RuleKey OTHER_RULE_KEY =
+      new RuleKey("1111111111111111111111111111111111111111");
+  private static final byte[] DATA = "artifact".getBytes();
+
+  private PrefetchingArtifactCache newCache(ArtifactCache delegate, int maxInFlight) {
+    return new PrefetchingArtifactCache(
+        delegate,
+        TestProjectFilesystems.createProjectFilesystem(tmp.getRoot()),
+        BuckEventBusForTests.newInstance(),
+        ArtifactPrefetch.of(true, maxInFlight, 1024 * 1024));
+  }
+
+  @Test
+  public void prefetchedArtifactIsMovedToOutput() throws Exception {
+    CountingArtifactCache delegate = new CountingArtifactCache();
+    delegate.store(ArtifactInfo.builder().addRuleKeys(RULE_KEY).build(), DATA);
+    Path output = tmp.getRoot().resolve("output");
+
+    try (PrefetchingArtifactCache cache = newCache(delegate, 4)) {
+      assertEquals(CacheResultType.HIT, cache.prefetch(RULE_KEY).get().getType());
+      // Prefetched artifacts wait in buck-out, on the same filesystem as the build's outputs.
+      assertEquals(1, listBuckOutTmp().size());
+      CacheResult result = cache.fetchAsync(RULE_KEY, LazyPath.ofInstance(output)).get();
+
+      assertEquals(CacheResultType.HIT, result.getType());
+      assertArrayEquals(DATA, Files.readAllBytes(output));
+      assertEquals(1, delegate.getFetchCount(RULE_KEY));
+      assertEquals(1, cache.getPrefetchCounters().getTotalPrefetchesUsed());
+      assertEquals(ImmutableList.of(), listBuckOutTmp());
+    }
+  }
+
+  @Test
+  public void prefetchedArtifactIsHandedToPayloadConsumer() throws Exception {
+    CountingArtifactCache delegate = new CountingArtifactCache();
+    delegate.store(
+        ArtifactInfo.builder().addRuleKeys(RULE_KEY).setMetadata(ImmutableMap.of("k", "v")).build(),
+        DATA);
+    List<byte[]> consumed = new CopyOnWriteArrayList<>();
+
+    try (PrefetchingArtifactCache cache = newCache(delegate, 4)) {
+      cache.prefetch(RULE_KEY).get();
+      CacheResult result =
+          cache
+              .fetchAsync(
+                  RULE_KEY,
+                  LazyPath.ofInstance(tmp.getRoot().resolve("unused")),
+                  (metadata, payload) -> consumed.add(ByteStreams.toByteArray(payload)))
+              .get();
+
+      assertEquals(CacheResultType.HIT, result.getType());
+      assertEquals(1, consumed.size());
+      assertArrayEquals(DATA, consumed.get(0));
+      assertEquals(1, delegate.getFetchCount(RULE_KEY));
+    }
+  }
+
+  @Test
+  public void prefetchedMissIsReused() throws Exception {
+    CountingArtifactCache delegate = new CountingArtifactCache();
+
+    try (PrefetchingArtifactCache cache = newCache(delegate, 4)) {
+      assertEquals(CacheResultType.MISS, cache.prefetch(RULE_KEY).get().getType());
+      CacheResult result =
+          cache.fetchAsync(RULE_KEY, LazyPath.ofInstance(tmp.getRoot().resolve("output"))).get();
+
+      assertEquals(CacheResultType.MISS, result.getType());
+      assertEquals(1, delegate.getFetchCount(RULE_KEY));
+    }
+  }
+
+  @Test
+  public void prefetchIsUsedOnlyOnce() throws Exception {
+    CountingArtifactCache delegate = new CountingArtifactCache();
+    delegate.store(ArtifactInfo.builder().addRuleKeys(RULE_KEY).build(), DATA);
+    Path output = tmp.getRoot().resolve("output");
+
+    try (PrefetchingArtifactCache cache = newCache(delegate, 4)) {
+      cache.prefetch(RULE_KEY).get();
+      cache.fetchAsync(RULE_KEY, LazyPath.ofInstance(output)).get();
+      Files.delete(output);
+      CacheResult result = cache.fetchAsync(RULE_KEY, LazyPath.ofInstance(output)).get();
+
+      assertEquals(CacheResultType.HIT, result.getType());
+      assertArrayEquals(DATA, Files.readAllBytes(output));
+      assertEquals(2, delegate.getFetchCount(RULE_KEY));
+    }
+  }
+
+  @Test
+  public void unusedPrefetchesAreCountedAsWasted() throws Exception {
+    CountingArtifactCache delegate = new CountingArtifactCache();
+    delegate.store(ArtifactInfo.builder().addRuleKeys(RULE_KEY).build(), DATA);
+
+    PrefetchingArtifactCache cache = newCache(delegate, 4);
+    cache.prefetch(RULE_KEY).get();
+    cache.prefetch(OTHER_RULE_KEY).get();
+    cache.close();
+
+    CacheCountersSummary counters = cache.getPrefetchCounters();
+    assertEquals(2, counters.getTotalPrefetches());
+    assertEquals(1, counters.getTotalPrefetchHits());
+    assertEquals(0, counters.getTotalPrefetchesUsed());
+    assertEquals(1, counters.getTotalPrefetchesWasted());
+    assertEquals(DATA.length, counters.getPrefetchWastedBytes());
+  }
+
+  @Test
+  public void prefetchesInFlightAreLimited() throws Exception {
+    PendingArtifactCache delegate = new PendingArtifactCache();
+
+    try (PrefetchingArtifactCache cache = newCache(delegate, 1)) {
+      ListenableFuture<CacheResult> first = cache.prefetch(RULE_KEY);
+      cache.prefetch(OTHER_RULE_KEY);
+      assertEquals(ImmutableList.of(RULE_KEY), ImmutableList.copyOf(delegate.pending.keySet()));
+
+      delegate.pending.remove(RULE_KEY).set(CacheResult.miss());
+      assertTrue(first.isDone());
+      assertEquals(
+          ImmutableList.of(OTHER_RULE_KEY), ImmutableList.copyOf(delegate.pending.keySet()));
+    }
+  }
+
+  @Test
+  public void fetchOfQueuedPrefetchGoesToDelegate() throws Exception {
+    PendingArtifactCache delegate = new PendingArtifactCache();
+
+    try (PrefetchingArtifactCache cache = newCache(delegate, 1)) {
+      cache.prefetch(RULE_KEY);
+      ListenableFuture<CacheResult> queued = cache.prefetch(OTHER_RULE_KEY);
+      ListenableFuture<CacheResult> fetched =
+          cache.fetchAsync(OTHER_RULE_KEY, LazyPath.ofInstance(tmp.getRoot().resolve("output")));
+
+      assertTrue(queued.isCancelled());
+      delegate.pending.remove(OTHER_RULE_KEY).set(CacheResult.miss());
+      assertEquals(CacheResultType.MISS, fetched.get().getType());
+
+      // The queued prefetch isn't started once there's room for it.
+      delegate.pending.remove(RULE_KEY).set(CacheResult.miss());
+      assertTrue(delegate.pending.isEmpty());
+    }
+  }
+
+  @Test
+  public void fetchOfPrefetchCancelledByCloseIsAMiss() throws Exception {
+    PendingArtifactCache delegate = new PendingArtifactCache();
+
+    PrefetchingArtifactCache cache = newCache(delegate, 1);
+    cache.prefetch(RULE_KEY);
+    ListenableFuture<CacheResult> queued = cache.prefetch(OTHER_RULE_KEY);
+    cache.close();
+    ListenableFuture<CacheResult> fetched =
+        cache.fetchAsync(OTHER_RULE_KEY, LazyPath.ofInstance(tmp.getRoot().resolve("output")));
+
+    assertTrue(queued.isCancelled());
+    assertFalse(fetched.isCancelled());
+    assertEquals(CacheResultType.MISS, fetched.get().getType());
+    assertEquals(0, cache.getPrefetchCounters().getTotalPrefetchesUsed());
+  }
+
+  private ImmutableList<Path> listBuckOutTmp() throws IOException {
+    ProjectFilesystem filesystem = TestProjectFilesystems.createProjectFilesystem(tmp.getRoot());
+    Path tmpDir = filesystem.resolve(filesystem.getBuckPaths().getTmpDir());
+    try (Stream<Path> files = Files.list(tmpDir)) {
+      return files.collect(ImmutableList.toImmutableList());
+    }
+  }
+
+  /** Counts the fetches of each rule key. */
+  private static class CountingArtifactCache extends InMemoryArtifactCache {
+    private final Map<RuleKey, Integer> fetchCounts = new ConcurrentHashMap<>();
+
+    @Override
+    public ListenableFuture<CacheResult> fetchAsync(RuleKey ruleKey, LazyPath output) {
+      fetchCounts.merge(ruleKey, 1, Integer::sum);
+      return super.fetchAsync(ruleKey, output);
+    }
+
+    int getFetchCount(RuleKey ruleKey) {
+      return fetchCounts.getOrDefault(ruleKey, 0);
+    }
+  }
+
+  /** Leaves fetches pending until the test completes them. */
+  private static class PendingArtifactCache extends InMemoryArtifactCache {
+    private final Map<RuleKey, SettableFuture<CacheResult>> pending = new ConcurrentHashMap<>();
+
+    @Override
+    public ListenableFuture<CacheResult> fetchAsync(RuleKey ruleKey, LazyPath output) {
+      SettableFuture<CacheResult> result = SettableFuture.create();
+      pending.put(ruleKey, result);
+      return result;
+    }
+  }
+}
@@ -31,6 +31,7 @@ import com.google.caliper.Benchmark;
 import com.google.caliper.Param;
 import com.google.common.hash.HashCode;
 import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListeningExecutorService;
 import com.google.common.util.concurrent.MoreExecutors;
 import java.io.IOException;
@@ -54,8 +55,8 @@ public class SQLiteArtifactCacheBenchmark {
   @Param({"1000", "10000", "100000"})
   private int opCount = 100;
 
-  @Param({"5", "10"})
-  private int threadCount = 2;
+  @Param({"5", "10", "32", "64"})
+  private int threadCount = 32;
 
   private static final Random random = new Random(12345);
   private static final long MAX_INLINED_BYTES = 1024;
@@ -70,7 +71,6 @@ public class SQLiteArtifactCacheBenchmark {
   private Path largeFile;
 
   private Path cacheDir;
-  private LazyPath output;
   private SQLiteArtifactCache artifactCache;
   private ListeningExecutorService executor;
 
@@ -87,7 +87,6 @@ public class SQLiteArtifactCacheBenchmark {
     }
 
     cacheDir = tmpDir.newFolder();
-    output = LazyPath.ofInstance(cacheDir.resolve(".output"));
 
     setUpBenchmark();
   }
@@ -95,6 +94,7 @@ public class SQLiteArtifactCacheBenchmark {
   @BeforeExperiment
   private void setUpBenchmark() throws IOException, SQLException {
     artifactCache = cache(Optional.of(1024 * 1024 * 1024L));
+    executor = MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(threadCount));
     byte[] randomRuleKey = new byte[16];
 
     ruleKeys = new ArrayList<>(opCount);
@@ -143,6 +143,7 @@ public class SQLiteArtifactCacheBenchmark {
   @Ignore
   @Test
   public void testSingleThreaded() {
+    executor.shutdown();
     executor = MoreExecutors.newDirectExecutorService();
     runAllBenchmarks();
   }
@@ -150,7 +151,6 @@ public class SQLiteArtifactCacheBenchmark {
   @Ignore
   @Test
   public void testMultiThreaded() {
-    executor = MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(threadCount));
     runAllBenchmarks();
   }
 
@@ -163,33 +163,51 @@ public class SQLiteArtifactCacheBenchmark {
 
   @Benchmark
   private void benchMetadataStore() {
+    List<ListenableFuture<?>> stores = new ArrayList<>(opCount);
     for (ArtifactInfo info : metadataInfo) {
-      artifactCache.store(info, BorrowablePath.notBorrowablePath(emptyFile));
+      stores.add(
+          Futures.dereference(
+              executor.submit(
+                  () -> artifactCache.store(info, BorrowablePath.notBorrowablePath(emptyFile)))));
     }
+    Futures.getUnchecked(Futures.allAsList(stores));
   }
 
   @Benchmark
   private void benchMetadataFetch() {
-    for (RuleKey key : ruleKeys) {
-      Futures.getUnchecked(artifactCache.fetchAsync(key, output));
-    }
+    fetchAll(ruleKeys);
   }
 
   @Benchmark
   private void benchArtifactStore() {
-    for (int i = 0; i < contentInfo.size() / 2; i++) {
-      artifactCache.store(contentInfo.get(i), BorrowablePath.notBorrowablePath(inlinedFile));
-    }
-
-    for (int i = contentInfo.size() / 2; i < contentInfo.size(); i++) {
-      artifactCache.store(contentInfo.get(i), BorrowablePath.notBorrowablePath(largeFile));
+    List<ListenableFuture<?>> stores = new ArrayList<>(opCount);
+    for (int i = 0; i < contentInfo.size(); i++) {
+      ArtifactInfo info = contentInfo.get(i);
+      Path file = i < contentInfo.size() / 2 ? inlinedFile : largeFile;
+      stores.add(
+          Futures.dereference(
+              executor.submit(
+                  () -> artifactCache.store(info, BorrowablePath.notBorrowablePath(file)))));
     }
+    Futures.getUnchecked(Futures.allAsList(stores));
   }
 
   @Benchmark
   private void benchArtifactFetch() {
-    for (RuleKey key : ruleKeys) {
-      Futures.getUnchecked(artifactCache.fetchAsync(key, output));
+    fetchAll(contentHashes);
+  }
+
+  private void fetchAll(List<RuleKey> keys) {
+    List<ListenableFuture<?>> fetches = new ArrayList<>(opCount);
+    for (RuleKey key : keys) {
+      // Each thread needs an output of its own.
+      fetches.add(
+          executor.submit(
+              () ->
+                  Futures.getUnchecked(
+                      artifactCache.fetchAsync(
+                          key, LazyPath.ofInstance(cacheDir.resolve(".output-" + key))))));
     }
+    Futures.getUnchecked(Futures.allAsList(fetches));
   }
 }
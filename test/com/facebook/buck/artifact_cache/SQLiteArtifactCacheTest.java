@@ -25,6 +25,7 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import com.facebook.buck.artifact_cache.config.CacheReadMode;
 import com.facebook.buck.event.BuckEventBusForTests;
@@ -38,15 +39,25 @@ import com.facebook.buck.testutil.integration.TemporaryPaths;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.DriverManager;
 import java.sql.SQLException;
 import java.sql.Timestamp;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import org.hamcrest.Matchers;
 import org.junit.After;
 import org.junit.Before;
@@ -112,6 +123,30 @@ public class SQLiteArtifactCacheTest {
         CacheReadMode.READWRITE);
   }
 
+  /** A cache which only commits its writes when they're flushed, or when a batch is full. */
+  private SQLiteArtifactCache cacheWithoutTimedCommits() throws IOException, SQLException {
+    return new SQLiteArtifactCache(
+        "sqlite",
+        filesystem,
+        cacheDir,
+        BuckEventBusForTests.newInstance(),
+        Optional.empty(),
+        Optional.of(MAX_INLINED_BYTES),
+        CacheReadMode.READWRITE,
+        TimeUnit.HOURS.toMillis(1));
+  }
+
+  private Connection openDatabase() throws SQLException {
+    return DriverManager.getConnection("jdbc:sqlite:" + cacheDir.resolve("dircache.db"));
+  }
+
+  private ArtifactInfo metadataInfo(RuleKey ruleKey) {
+    return ArtifactInfo.builder()
+        .addRuleKeys(ruleKey)
+        .putMetadata(METADATA_KEY, contentHashA.toString())
+        .build();
+  }
+
   /**
    * Writes an artifact small enough to inline in the database.
    *
@@ -432,6 +467,126 @@ public class SQLiteArtifactCacheTest {
     assertArrayEquals(Files.readAllBytes(output.get()), Files.readAllBytes(fileA));
   }
 
+  @Test
+  public void testWritesAreCommittedTogether() throws Exception {
+    artifactCache = cacheWithoutTimedCommits();
+    ListenableFuture<Void> storeA =
+        artifactCache.store(metadataInfo(ruleKeyA), BorrowablePath.notBorrowablePath(emptyFile));
+    ListenableFuture<Void> storeB =
+        artifactCache.store(metadataInfo(ruleKeyB), BorrowablePath.notBorrowablePath(emptyFile));
+    assertFalse(storeA.isDone());
+    assertFalse(storeB.isDone());
+
+    try (SQLiteArtifactCache otherCache = cacheWithoutTimedCommits()) {
+      assertEquals(
+          CacheResultType.MISS,
+          Futures.getUnchecked(otherCache.fetchAsync(ruleKeyA, output)).getType());
+
+      assertThat(artifactCache.metadataRuleKeys(), Matchers.hasSize(2));
+      assertTrue(storeA.isDone());
+      assertTrue(storeB.isDone());
+      assertEquals(
+          CacheResultType.HIT,
+          Futures.getUnchecked(otherCache.fetchAsync(ruleKeyA, output)).getType());
+    }
+  }
+
+  @Test
+  public void testFullBatchIsCommittedRightAway() throws Exception {
+    artifactCache = cacheWithoutTimedCommits();
+    List<ListenableFuture<Void>> stores = new ArrayList<>();
+    for (int i = 0; i < 1000; i++) {
+      stores.add(
+          artifactCache.store(
+              metadataInfo(new RuleKey(String.format("%016x", i))),
+              BorrowablePath.notBorrowablePath(emptyFile)));
+    }
+    Futures.allAsList(stores).get(30, TimeUnit.SECONDS);
+  }
+
+  @Test
+  public void testReadsSeeUncommittedWrites() throws Exception {
+    artifactCache = cacheWithoutTimedCommits();
+    writeInlinedArtifact(fileA);
+    ListenableFuture<Void> metadataStore =
+        artifactCache.store(metadataInfo(ruleKeyA), BorrowablePath.notBorrowablePath(emptyFile));
+    ListenableFuture<Void> contentStore =
+        artifactCache.store(artifactInfoA, BorrowablePath.notBorrowablePath(fileA));
+
+    CacheResult metadataResult = Futures.getUnchecked(artifactCache.fetchAsync(ruleKeyA, output));
+    assertEquals(CacheResultType.HIT, metadataResult.getType());
+    assertEquals(contentHashA.toString(), metadataResult.getMetadata().get(METADATA_KEY));
+
+    CacheResult contentResult =
+        Futures.getUnchecked(artifactCache.fetchAsync(contentHashA, output));
+    assertEquals(CacheResultType.HIT, contentResult.getType());
+    assertArrayEquals(Files.readAllBytes(fileA), Files.readAllBytes(output.get()));
+
+    assertFalse(metadataStore.isDone());
+    assertFalse(contentStore.isDone());
+  }
+
+  @Test
+  public void testContentDeletedWhileItsStoreIsBeingCommittedStaysDeleted() throws Exception {
+    artifactCache = cacheWithoutTimedCommits();
+    writeFileArtifact(fileA);
+    artifactCache.store(artifactInfoA, BorrowablePath.notBorrowablePath(fileA));
+
+    ExecutorService executor = Executors.newCachedThreadPool();
+    try (Connection lock = openDatabase()) {
+      // Keep the cache's commit waiting for the database until the lock is released.
+      lock.setAutoCommit(false);
+      lock.createStatement().executeUpdate("DELETE FROM metadata");
+      Thread[] committer = new Thread[1];
+      Future<?> commit =
+          executor.submit(
+              () -> {
+                committer[0] = Thread.currentThread();
+                return artifactCache.directoryFileContentHashes();
+              });
+      while (committer[0] == null || committer[0].getState() != Thread.State.TIMED_WAITING) {
+        Thread.sleep(1);
+      }
+
+      filesystem.deleteFileAtPath(artifactCache.getArtifactPath(contentHashA));
+      assertEquals(
+          CacheResultType.MISS,
+          executor
+              .submit(() -> Futures.getUnchecked(artifactCache.fetchAsync(contentHashA, output)))
+              .get(30, TimeUnit.SECONDS)
+              .getType());
+      assertEquals(
+          CacheResultType.MISS,
+          Futures.getUnchecked(artifactCache.fetchAsync(contentHashA, output)).getType());
+
+      lock.rollback();
+      commit.get(30, TimeUnit.SECONDS);
+    } finally {
+      executor.shutdownNow();
+    }
+
+    assertThat(artifactCache.directoryFileContentHashes(), Matchers.empty());
+  }
+
+  @Test
+  public void testFailedCommitFailsTheFuturesOfItsWrites() throws Exception {
+    artifactCache = cacheWithoutTimedCommits();
+    ListenableFuture<Void> store =
+        artifactCache.store(metadataInfo(ruleKeyA), BorrowablePath.notBorrowablePath(emptyFile));
+    try (Connection connection = openDatabase()) {
+      connection.createStatement().executeUpdate("DROP TABLE metadata");
+    }
+
+    artifactCache.inlinedArtifactContentHashes();
+    assertTrue(store.isDone());
+    try {
+      store.get();
+      fail("The store should have failed with its commit.");
+    } catch (ExecutionException e) {
+      assertThat(e.getCause(), Matchers.instanceOf(SQLException.class));
+    }
+  }
+
   @Test
   public void testMarshalMetadata() throws IOException {
     byte[] expected = new byte[4];
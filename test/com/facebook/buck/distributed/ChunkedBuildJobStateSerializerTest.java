@@ -0,0 +1,140 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.distributed;
+
+import com.facebook.buck.distributed.thrift.BuildJobState;
+import com.facebook.buck.distributed.thrift.BuildJobStateBuildTarget;
+import com.facebook.buck.distributed.thrift.BuildJobStateCell;
+import com.facebook.buck.distributed.thrift.BuildJobStateFileHashEntry;
+import com.facebook.buck.distributed.thrift.BuildJobStateFileHashes;
+import com.facebook.buck.distributed.thrift.BuildJobStateTargetGraph;
+import com.facebook.buck.distributed.thrift.BuildJobStateTargetNode;
+import com.facebook.buck.distributed.thrift.PathWithUnixSeparators;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Sets;
+import java.io.IOException;
+import java.util.Optional;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ChunkedBuildJobStateSerializerTest {
+
+  private static final int PACKAGES = 200;
+
+  @Test
+  public void testChunksJoinBackIntoState() throws IOException {
+    BuildJobState state = createBuildJobState(PACKAGES);
+
+    ImmutableMap<String, byte[]> chunks = ChunkedBuildJobStateSerializer.serializeChunks(state);
+    Assert.assertTrue(chunks.size() > 3);
+    Optional<ImmutableList<String>> chunkHashes =
+        ChunkedBuildJobStateSerializer.deserializeManifest(
+            ChunkedBuildJobStateSerializer.serializeManifest(chunks.keySet()));
+    Assert.assertEquals(Optional.of(chunks.keySet().asList()), chunkHashes);
+
+    Assert.assertEquals(
+        state, ChunkedBuildJobStateSerializer.deserializeChunks(chunks.values().asList()));
+  }
+
+  @Test
+  public void testChangingFileHashOnlyChangesItsChunk() throws IOException {
+    BuildJobState state = createBuildJobState(PACKAGES);
+    ImmutableMap<String, byte[]> chunks = ChunkedBuildJobStateSerializer.serializeChunks(state);
+
+    state.getFileHashes().get(1).getEntries().get(42).setSha1("changed");
+    ImmutableMap<String, byte[]> changedChunks =
+        ChunkedBuildJobStateSerializer.serializeChunks(state);
+
+    Assert.assertEquals(1, Sets.difference(changedChunks.keySet(), chunks.keySet()).size());
+    Assert.assertEquals(chunks.size(), changedChunks.size());
+  }
+
+  @Test
+  public void testAddingPackageOnlyChangesItsChunk() throws IOException {
+    ImmutableMap<String, byte[]> chunks =
+        ChunkedBuildJobStateSerializer.serializeChunks(createBuildJobState(PACKAGES));
+    ImmutableMap<String, byte[]> changedChunks =
+        ChunkedBuildJobStateSerializer.serializeChunks(createBuildJobState(PACKAGES + 1));
+
+    // The new package is in the file hashes of both cells and in the target graph.
+    Assert.assertTrue(Sets.difference(changedChunks.keySet(), chunks.keySet()).size() <= 4);
+  }
+
+  @Test
+  public void testWholeStateIsNotManifest() throws IOException {
+    Assert.assertFalse(
+        ChunkedBuildJobStateSerializer.deserializeManifest(
+                BuildJobStateSerializer.serialize(createBuildJobState(1)))
+            .isPresent());
+  }
+
+  @Test
+  public void testStateWithoutFileHashesOrNodes() throws IOException {
+    BuildJobState state =
+        new BuildJobState()
+            .setTopLevelTargets(ImmutableList.of("//:target"))
+            .setFileHashes(ImmutableList.of(new BuildJobStateFileHashes().setCellIndex(0)))
+            .setTargetGraph(new BuildJobStateTargetGraph());
+
+    Assert.assertEquals(
+        state,
+        ChunkedBuildJobStateSerializer.deserializeChunks(
+            ChunkedBuildJobStateSerializer.serializeChunks(state).values()));
+  }
+
+  /**
+   * Creates a state with two cells, each with two files in every package, and a target for each
+   * package of the first cell. Files and targets are in the order the chunks are joined in.
+   */
+  static BuildJobState createBuildJobState(int packages) {
+    BuildJobState state =
+        new BuildJobState()
+            .setCells(
+                ImmutableMap.of(
+                    0, new BuildJobStateCell().setNameHint("root"),
+                    1, new BuildJobStateCell().setNameHint("other")))
+            .setTopLevelTargets(ImmutableList.of("//pkg0000:target"))
+            .setTargetGraph(new BuildJobStateTargetGraph());
+    for (int cell = 0; cell < 2; cell++) {
+      BuildJobStateFileHashes fileHashes = new BuildJobStateFileHashes().setCellIndex(cell);
+      for (int i = 0; i < packages; i++) {
+        for (String file : ImmutableList.of("BUCK", "Source.java")) {
+          fileHashes.addToEntries(
+              new BuildJobStateFileHashEntry()
+                  .setPath(
+                      new PathWithUnixSeparators().setPath(String.format("pkg%04d/%s", i, file)))
+                  .setSha1(String.format("%040d", cell * packages + i)));
+        }
+      }
+      state.addToFileHashes(fileHashes);
+    }
+    for (int i = 0; i < packages; i++) {
+      state
+          .getTargetGraph()
+          .addToNodes(
+              new BuildJobStateTargetNode()
+                  .setCellIndex(0)
+                  .setRawNode("{\"name\": \"target\"}")
+                  .setBuildTarget(
+                      new BuildJobStateBuildTarget()
+                          .setBaseName(String.format("//pkg%04d", i))
+                          .setShortName("target")));
+    }
+    return state;
+  }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.distributed;
+
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.junit.Assert.assertEquals;
+
+import com.facebook.buck.distributed.thrift.BuildJobStateFileHashEntry;
+import com.facebook.buck.distributed.thrift.BuildJobStateFileHashes;
+import com.facebook.buck.distributed.thrift.PathWithUnixSeparators;
+import com.facebook.buck.io.file.MorePaths;
+import com.facebook.buck.io.filesystem.ProjectFilesystem;
+import com.facebook.buck.io.filesystem.TestProjectFilesystems;
+import com.facebook.buck.model.BuildTarget;
+import com.facebook.buck.model.BuildTargetFactory;
+import com.facebook.buck.rules.AddToRuleKey;
+import com.facebook.buck.rules.BuildRule;
+import com.facebook.buck.rules.DefaultSourcePathResolver;
+import com.facebook.buck.rules.DefaultTargetNodeToBuildRuleTransformer;
+import com.facebook.buck.rules.NoopBuildRuleWithDeclaredAndExtraDeps;
+import com.facebook.buck.rules.PathSourcePath;
+import com.facebook.buck.rules.SingleThreadedBuildRuleResolver;
+import com.facebook.buck.rules.SourcePath;
+import com.facebook.buck.rules.SourcePathRuleFinder;
+import com.facebook.buck.rules.TargetGraph;
+import com.facebook.buck.rules.TestBuildRuleParams;
+import com.facebook.buck.rules.keys.TestRuleKeyConfigurationFactory;
+import com.facebook.buck.util.cache.ProjectFileHashCache;
+import com.facebook.buck.util.cache.impl.StackedFileHashCache;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.hash.HashCode;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.easymock.EasyMock;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DistBuildCachingEngineDelegateTest {
+  private static final Path FILE_A = Paths.get("a.txt");
+  private static final Path FILE_B = Paths.get("b.txt");
+  private static final HashCode HASH_A = HashCode.fromString("aaaa");
+  private static final HashCode HASH_B = HashCode.fromString("bbbb");
+
+  @Rule public TemporaryFolder projectDir = new TemporaryFolder();
+
+  private ProjectFilesystem projectFilesystem;
+  private PendingFileContentsProvider provider;
+  private DistBuildCachingEngineDelegate delegate;
+  private BuildRule ruleA;
+  private BuildRule ruleB;
+
+  @Before
+  public void setUp() throws IOException {
+    projectFilesystem =
+        TestProjectFilesystems.createProjectFilesystem(projectDir.getRoot().toPath());
+
+    BuildJobStateFileHashes fileHashes = new BuildJobStateFileHashes();
+    fileHashes.addToEntries(newFileHashEntry(FILE_A, HASH_A));
+    fileHashes.addToEntries(newFileHashEntry(FILE_B, HASH_B));
+
+    ProjectFileHashCache mockFileHashCache = EasyMock.createNiceMock(ProjectFileHashCache.class);
+    expect(mockFileHashCache.getFilesystem()).andReturn(projectFilesystem).anyTimes();
+    expect(mockFileHashCache.get(FILE_A)).andReturn(HASH_A).anyTimes();
+    expect(mockFileHashCache.get(FILE_B)).andReturn(HASH_B).anyTimes();
+    replay(mockFileHashCache);
+
+    provider = new PendingFileContentsProvider();
+    MaterializerDummyFileHashCache materializer =
+        new MaterializerDummyFileHashCache(
+            mockFileHashCache, fileHashes, provider, MoreExecutors.newDirectExecutorService());
+
+    SourcePathRuleFinder ruleFinder =
+        new SourcePathRuleFinder(
+            new SingleThreadedBuildRuleResolver(
+                TargetGraph.EMPTY, new DefaultTargetNodeToBuildRuleTransformer()));
+    delegate =
+        new DistBuildCachingEngineDelegate(
+            DefaultSourcePathResolver.from(ruleFinder),
+            ruleFinder,
+            new StackedFileHashCache(ImmutableList.of()),
+            new StackedFileHashCache(ImmutableList.of(materializer)),
+            TestRuleKeyConfigurationFactory.create(),
+            MoreExecutors.directExecutor(),
+            /* pendingFileMaterializationTimeoutSeconds */ 0);
+
+    ruleA = newRuleWithInput("//:a", FILE_A);
+    ruleB = newRuleWithInput("//:b", FILE_B);
+  }
+
+  @Test
+  public void inputsAreFetchedWhileDepsAreBuilt() {
+    delegate.onRuleDepsAboutToBeBuilt(ruleA);
+
+    assertEquals(ImmutableSet.of(FILE_A.toString()), provider.pending.keySet());
+  }
+
+  @Test
+  public void ruleOnlyWaitsForItsOwnInputs() {
+    delegate.onRuleDepsAboutToBeBuilt(ruleA);
+    delegate.onRuleDepsAboutToBeBuilt(ruleB);
+    provider.pending.get(FILE_A.toString()).set(true);
+
+    // The inputs of ruleB are still being fetched, but ruleA doesn't need them.
+    delegate.onRuleAboutToBeBuilt(ruleA);
+  }
+
+  @Test(expected = RuntimeException.class)
+  public void ruleWaitsForItsInputs() {
+    delegate.onRuleDepsAboutToBeBuilt(ruleA);
+    delegate.onRuleDepsAboutToBeBuilt(ruleB);
+    provider.pending.get(FILE_A.toString()).set(true);
+
+    delegate.onRuleAboutToBeBuilt(ruleB);
+  }
+
+  @Test
+  public void inputsAreFetchedOnDemandWithoutPrefetching() {
+    SettableFuture<Boolean> future = SettableFuture.create();
+    future.set(true);
+    provider.completed.put(FILE_B.toString(), future);
+
+    delegate.onRuleAboutToBeBuilt(ruleB);
+
+    assertEquals(ImmutableSet.of(), provider.pending.keySet());
+  }
+
+  private BuildRule newRuleWithInput(String target, Path input) {
+    return new RuleWithInput(
+        BuildTargetFactory.newInstance(target),
+        projectFilesystem,
+        PathSourcePath.of(projectFilesystem, input));
+  }
+
+  private static BuildJobStateFileHashEntry newFileHashEntry(Path path, HashCode hashCode) {
+    BuildJobStateFileHashEntry entry = new BuildJobStateFileHashEntry();
+    entry.setPath(new PathWithUnixSeparators().setPath(MorePaths.pathWithUnixSeparators(path)));
+    entry.setSha1(hashCode.toString());
+    entry.setIsDirectory(false);
+    return entry;
+  }
+
+  private static class RuleWithInput extends NoopBuildRuleWithDeclaredAndExtraDeps {
+
+    @AddToRuleKey private final SourcePath input;
+
+    public RuleWithInput(
+        BuildTarget buildTarget, ProjectFilesystem projectFilesystem, SourcePath input) {
+      super(buildTarget, projectFilesystem, TestBuildRuleParams.create());
+      this.input = input;
+    }
+  }
+
+  /** Leaves fetches pending until the test completes them, unless they're already completed. */
+  private static class PendingFileContentsProvider implements FileContentsProvider {
+    private final Map<String, SettableFuture<Boolean>> pending = new ConcurrentHashMap<>();
+    private final Map<String, SettableFuture<Boolean>> completed = new ConcurrentHashMap<>();
+
+    @Override
+    public ListenableFuture<Boolean> materializeFileContentsAsync(
+        BuildJobStateFileHashEntry entry, Path targetAbsPath) {
+      String path = entry.getPath().getPath();
+      if (completed.containsKey(path)) {
+        return completed.get(path);
+      }
+      SettableFuture<Boolean> result = SettableFuture.create();
+      pending.put(path, result);
+      return result;
+    }
+
+    @Override
+    public void close() {}
+  }
+}
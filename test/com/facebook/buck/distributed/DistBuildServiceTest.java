@@ -39,6 +39,7 @@ import com.facebook.buck.distributed.thrift.CASContainsResponse;
 import com.facebook.buck.distributed.thrift.CreateBuildResponse;
 import com.facebook.buck.distributed.thrift.EnqueueMinionsRequest;
 import com.facebook.buck.distributed.thrift.EnqueueMinionsResponse;
+import com.facebook.buck.distributed.thrift.FetchBuildGraphResponse;
 import com.facebook.buck.distributed.thrift.FetchBuildSlaveFinishedStatsRequest;
 import com.facebook.buck.distributed.thrift.FetchBuildSlaveFinishedStatsResponse;
 import com.facebook.buck.distributed.thrift.FetchBuildSlaveStatusRequest;
@@ -71,6 +72,7 @@ import com.facebook.buck.testutil.integration.TemporaryPaths;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
 import com.google.common.util.concurrent.ListeningExecutorService;
 import com.google.common.util.concurrent.MoreExecutors;
 import java.io.IOException;
@@ -164,6 +166,74 @@ public class DistBuildServiceTest {
     Assert.assertTrue(buildJobState.equals(sentState));
   }
 
+  @Test
+  public void canUploadTargetGraphInChunks() throws IOException {
+    // Stands in for the frontend, keeping the CAS and the stored build graph in memory.
+    Map<String, byte[]> cas = new HashMap<>();
+    List<byte[]> buildGraph = new ArrayList<>();
+    EasyMock.expect(frontendService.makeRequest(EasyMock.anyObject()))
+        .andAnswer(
+            () -> {
+              FrontendRequest request = (FrontendRequest) EasyMock.getCurrentArguments()[0];
+              FrontendResponse response =
+                  new FrontendResponse().setType(request.getType()).setWasSuccessful(true);
+              switch (request.getType()) {
+                case CAS_CONTAINS:
+                  return response.setCasContainsResponse(
+                      new CASContainsResponse()
+                          .setExists(
+                              request
+                                  .getCasContainsRequest()
+                                  .getContentSha1s()
+                                  .stream()
+                                  .map(cas::containsKey)
+                                  .collect(Collectors.toList())));
+                case STORE_LOCAL_CHANGES:
+                  for (FileInfo file : request.getStoreLocalChangesRequest().getFiles()) {
+                    Assert.assertNull(cas.put(file.getContentHash(), file.getContent()));
+                  }
+                  return response;
+                case STORE_BUILD_GRAPH:
+                  buildGraph.add(request.getStoreBuildGraphRequest().getBuildGraph());
+                  return response;
+                case FETCH_BUILD_GRAPH:
+                  return response.setFetchBuildGraphResponse(
+                      new FetchBuildGraphResponse().setBuildGraph(Iterables.getLast(buildGraph)));
+                case FETCH_SRC_FILES:
+                  return response.setFetchSourceFilesResponse(
+                      new FetchSourceFilesResponse()
+                          .setFiles(
+                              request
+                                  .getFetchSourceFilesRequest()
+                                  .getContentHashes()
+                                  .stream()
+                                  .map(
+                                      hash ->
+                                          new FileInfo()
+                                              .setContentHash(hash)
+                                              .setContent(cas.get(hash)))
+                                  .collect(Collectors.toList())));
+                default:
+                  throw new AssertionError("Unexpected request: " + request.getType());
+              }
+            })
+        .anyTimes();
+    EasyMock.replay(frontendService);
+
+    DistBuildService service = new DistBuildService(frontendService, USERNAME, true);
+    StampedeId stampedeId = new StampedeId().setId("check-id");
+    BuildJobState buildJobState = ChunkedBuildJobStateSerializerTest.createBuildJobState(100);
+    service.uploadTargetGraph(buildJobState, stampedeId, distBuildClientStatsTracker);
+    int chunksAfterFirstUpload = cas.size();
+    Assert.assertEquals(buildJobState, service.fetchBuildJobState(stampedeId));
+
+    // Only the chunk with the changed file is uploaded again.
+    buildJobState.getFileHashes().get(0).getEntries().get(0).setSha1("changed");
+    service.uploadTargetGraph(buildJobState, stampedeId, distBuildClientStatsTracker);
+    Assert.assertEquals(chunksAfterFirstUpload + 1, cas.size());
+    Assert.assertEquals(buildJobState, service.fetchBuildJobState(stampedeId));
+  }
+
   @Test
   public void canUploadFiles() throws Exception {
     final List<Boolean> fileExistence = Arrays.asList(true, false, true);
@@ -17,6 +17,7 @@
 package com.facebook.buck.distributed.build_slave;
 
 import com.facebook.buck.artifact_cache.NoopArtifactCache;
+import com.facebook.buck.distributed.build_slave.BuildTargetsQueue.EnqueuedTarget;
 import com.facebook.buck.distributed.thrift.WorkUnit;
 import com.facebook.buck.event.DefaultBuckEventBus;
 import com.facebook.buck.model.BuildId;
@@ -28,8 +29,15 @@ import com.facebook.buck.rules.keys.RuleKeyConfiguration;
 import com.facebook.buck.testutil.DummyFileHashCache;
 import com.facebook.buck.util.timing.FakeClock;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
 import com.google.common.util.concurrent.MoreExecutors;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import org.junit.Assert;
 import org.junit.Before;
@@ -38,6 +46,7 @@ import org.junit.Test;
 public class MinionWorkloadAllocatorTest {
 
   private static final String MINION_ONE = "Super minion 1";
+  private static final String MINION_TWO = "Super minion 2";
   private static final int MAX_WORK_UNITS = 10;
 
   private BuildTargetsQueue queue;
@@ -94,4 +103,248 @@ public class MinionWorkloadAllocatorTest {
     Assert.assertEquals(0, fourthTargets.size());
     Assert.assertTrue(allocator.isBuildFinished());
   }
+
+  @Test
+  public void testWorkGoesToMinionHoldingItsDependencies() {
+    // Two leaves, each needed by two targets that are only needed by the root.
+    Map<String, ImmutableList<String>> dependencies = new LinkedHashMap<>();
+    dependencies.put("a", ImmutableList.of());
+    dependencies.put("b", ImmutableList.of());
+    dependencies.put("a_left", ImmutableList.of("a"));
+    dependencies.put("a_right", ImmutableList.of("a"));
+    dependencies.put("b_left", ImmutableList.of("b"));
+    dependencies.put("b_right", ImmutableList.of("b"));
+    dependencies.put("root", ImmutableList.of("a_left", "a_right", "b_left", "b_right"));
+    MinionWorkloadAllocator allocator = new MinionWorkloadAllocator(createQueue(dependencies));
+
+    String leafOfMinionOne =
+        getOnlyTarget(allocator.dequeueZeroDependencyNodes(MINION_ONE, ImmutableList.of(), 1));
+    String leafOfMinionTwo =
+        getOnlyTarget(allocator.dequeueZeroDependencyNodes(MINION_TWO, ImmutableList.of(), 1));
+
+    // Minion two finishes first, and takes one of the targets depending on its own leaf.
+    String firstOfMinionTwo =
+        getOnlyTarget(
+            allocator.dequeueZeroDependencyNodes(
+                MINION_TWO, ImmutableList.of(leafOfMinionTwo), 1));
+    Assert.assertEquals(ImmutableList.of(leafOfMinionTwo), dependencies.get(firstOfMinionTwo));
+
+    // Minion one then gets its own work, even though the other work was ready first.
+    String firstOfMinionOne =
+        getOnlyTarget(
+            allocator.dequeueZeroDependencyNodes(
+                MINION_ONE, ImmutableList.of(leafOfMinionOne), 1));
+    Assert.assertEquals(ImmutableList.of(leafOfMinionOne), dependencies.get(firstOfMinionOne));
+
+    // With minion one busy, minion two steals its remaining work.
+    Assert.assertEquals(
+        2,
+        allocator
+            .dequeueZeroDependencyNodes(MINION_TWO, ImmutableList.of(firstOfMinionTwo), 2)
+            .size());
+
+    ImmutableList<MinionUtilization> utilization = allocator.getMinionUtilization();
+    Assert.assertEquals(2, utilization.size());
+    MinionUtilization minionOne = utilization.get(0);
+    Assert.assertEquals(MINION_ONE, minionOne.getMinionId());
+    Assert.assertEquals(2, minionOne.getTargetsAssigned());
+    Assert.assertEquals(1, minionOne.getTargetsFinished());
+    Assert.assertEquals(1, minionOne.getTargetsInFlight());
+    Assert.assertEquals(1, minionOne.getLocalWorkUnits());
+    Assert.assertEquals(0, minionOne.getStolenWorkUnits());
+    MinionUtilization minionTwo = utilization.get(1);
+    Assert.assertEquals(MINION_TWO, minionTwo.getMinionId());
+    Assert.assertEquals(4, minionTwo.getWorkUnitsRequested());
+    Assert.assertEquals(4, minionTwo.getWorkUnitsAssigned());
+    Assert.assertEquals(2, minionTwo.getLocalWorkUnits());
+    Assert.assertEquals(1, minionTwo.getStolenWorkUnits());
+    Assert.assertEquals(1.0, minionTwo.getCapacityUsed(), 0.0);
+  }
+
+  @Test
+  public void testDependenciesOfEveryTargetOfAWorkUnitCountForItsLocality() {
+    Map<String, ImmutableList<String>> dependencies = new LinkedHashMap<>();
+    dependencies.put("other", ImmutableList.of());
+    dependencies.put("leaf", ImmutableList.of());
+    dependencies.put("top", ImmutableList.of("other", "leaf"));
+    MinionWorkloadAllocator allocator = new MinionWorkloadAllocator(createQueue(dependencies));
+
+    Assert.assertEquals(
+        "other",
+        getOnlyTarget(allocator.dequeueZeroDependencyNodes(MINION_TWO, ImmutableList.of(), 1)));
+    allocator.dequeueZeroDependencyNodes(MINION_TWO, ImmutableList.of("other"), 0);
+
+    // The leaf has no dependencies, but the target built on top of it in the same unit does.
+    List<WorkUnit> workUnits =
+        allocator.dequeueZeroDependencyNodes(MINION_ONE, ImmutableList.of(), 1);
+    Assert.assertEquals(
+        ImmutableList.of("leaf", "top"), Iterables.getOnlyElement(workUnits).getBuildTargets());
+
+    MinionUtilization minionOne = allocator.getMinionUtilization().get(0);
+    Assert.assertEquals(MINION_ONE, minionOne.getMinionId());
+    Assert.assertEquals(0, minionOne.getLocalWorkUnits());
+    Assert.assertEquals(1, minionOne.getStolenWorkUnits());
+  }
+
+  @Test
+  public void testLongestRemainingChainIsStartedFirst() {
+    Map<String, ImmutableList<String>> dependencies = new LinkedHashMap<>();
+    dependencies.put("short", ImmutableList.of());
+    dependencies.put("long", ImmutableList.of());
+    dependencies.put("long_middle", ImmutableList.of("long"));
+    dependencies.put("long_top", ImmutableList.of("long_middle"));
+    dependencies.put("root", ImmutableList.of("short", "long_top"));
+    BuildTargetsQueue queue = createQueue(dependencies);
+    Assert.assertEquals(2, queue.getCriticalPathLength("short"));
+    Assert.assertEquals(4, queue.getCriticalPathLength("long"));
+
+    List<WorkUnit> workUnits =
+        new MinionWorkloadAllocator(queue)
+            .dequeueZeroDependencyNodes(MINION_ONE, ImmutableList.of(), 1);
+    Assert.assertEquals(
+        ImmutableList.of("long", "long_middle", "long_top"),
+        Iterables.getOnlyElement(workUnits).getBuildTargets());
+  }
+
+  @Test
+  public void testLocalitySavesFetchesAndTimeInSimulatedBuild() {
+    // Stacks of pairs of targets, each depending on both targets of the pair below it.
+    Map<String, ImmutableList<String>> dependencies = new LinkedHashMap<>();
+    List<String> stackTops = new ArrayList<>();
+    for (int stack = 0; stack < 6; stack++) {
+      ImmutableList<String> below = ImmutableList.of();
+      for (int level = 0; level < 5; level++) {
+        String left = String.format("stack%d_level%d_left", stack, level);
+        String right = String.format("stack%d_level%d_right", stack, level);
+        dependencies.put(left, below);
+        dependencies.put(right, below);
+        below = ImmutableList.of(left, right);
+      }
+      stackTops.addAll(below);
+    }
+    dependencies.put("root", ImmutableList.copyOf(stackTops));
+
+    BuildTargetsQueue blindQueue = createQueue(dependencies);
+    SimulatedBuild blindBuild =
+        new SimulatedBuild(
+            dependencies,
+            (minionId, finished, maxWorkUnits) ->
+                blindQueue.dequeueZeroDependencyNodes(finished, maxWorkUnits));
+    blindBuild.run();
+
+    MinionWorkloadAllocator allocator = new MinionWorkloadAllocator(createQueue(dependencies));
+    SimulatedBuild localityAwareBuild =
+        new SimulatedBuild(dependencies, allocator::dequeueZeroDependencyNodes);
+    localityAwareBuild.run();
+
+    Assert.assertTrue(allocator.isBuildFinished());
+    Assert.assertEquals(dependencies.size(), localityAwareBuild.builtBy.size());
+    Assert.assertTrue(localityAwareBuild.remoteFetches < blindBuild.remoteFetches);
+    Assert.assertTrue(localityAwareBuild.ticks < blindBuild.ticks);
+  }
+
+  private static String getOnlyTarget(List<WorkUnit> workUnits) {
+    return Iterables.getOnlyElement(Iterables.getOnlyElement(workUnits).getBuildTargets());
+  }
+
+  private static BuildTargetsQueue createQueue(Map<String, ImmutableList<String>> dependencies) {
+    Map<String, List<String>> dependents = new HashMap<>();
+    for (Map.Entry<String, ImmutableList<String>> entry : dependencies.entrySet()) {
+      for (String dependency : entry.getValue()) {
+        dependents.computeIfAbsent(dependency, key -> new ArrayList<>()).add(entry.getKey());
+      }
+    }
+
+    List<EnqueuedTarget> zeroDependencyTargets = new ArrayList<>();
+    Map<String, EnqueuedTarget> allTargets = new HashMap<>();
+    for (Map.Entry<String, ImmutableList<String>> entry : dependencies.entrySet()) {
+      EnqueuedTarget target =
+          new EnqueuedTarget(
+              entry.getKey(),
+              ImmutableList.copyOf(dependents.getOrDefault(entry.getKey(), ImmutableList.of())),
+              entry.getValue().size(),
+              ImmutableSet.copyOf(entry.getValue()));
+      allTargets.put(entry.getKey(), target);
+      if (entry.getValue().isEmpty()) {
+        zeroDependencyTargets.add(target);
+      }
+    }
+    return new BuildTargetsQueue(zeroDependencyTargets, allTargets);
+  }
+
+  /** Something handing out work to minions, like the coordinator. */
+  private interface WorkSource {
+    List<WorkUnit> getWork(String minionId, List<String> finishedTargets, int maxWorkUnits);
+  }
+
+  /**
+   * Runs a build on three minions with three cores each, in steps of a tick. Building a target
+   * takes a tick, plus two for each of its dependencies that has to be fetched from another minion.
+   * With an odd number of cores, handing out targets in order splits the pairs between minions.
+   */
+  private static class SimulatedBuild {
+    private static final int MINIONS = 3;
+    private static final int CORES_PER_MINION = 3;
+    private static final int TICKS_PER_REMOTE_FETCH = 2;
+
+    private final Map<String, ImmutableList<String>> dependencies;
+    private final WorkSource workSource;
+    private final Map<String, String> builtBy = new HashMap<>();
+    private int remoteFetches = 0;
+    private int ticks = 0;
+
+    SimulatedBuild(Map<String, ImmutableList<String>> dependencies, WorkSource workSource) {
+      this.dependencies = dependencies;
+      this.workSource = workSource;
+    }
+
+    void run() {
+      // Work units each minion is building, with the tick at which they finish.
+      List<Map<WorkUnit, Integer>> running = new ArrayList<>();
+      for (int minion = 0; minion < MINIONS; minion++) {
+        running.add(new HashMap<>());
+      }
+
+      while (builtBy.size() < dependencies.size()
+          || running.stream().anyMatch(workUnits -> !workUnits.isEmpty())) {
+        Assert.assertTrue("Simulated build is stuck.", ticks < 10 * dependencies.size());
+        for (int minion = 0; minion < MINIONS; minion++) {
+          String minionId = "minion" + minion;
+          List<String> finished = new ArrayList<>();
+          running
+              .get(minion)
+              .entrySet()
+              .removeIf(
+                  entry -> {
+                    if (entry.getValue() > ticks) {
+                      return false;
+                    }
+                    finished.addAll(entry.getKey().getBuildTargets());
+                    return true;
+                  });
+
+          int freeCores = CORES_PER_MINION - running.get(minion).size();
+          for (WorkUnit workUnit : workSource.getWork(minionId, finished, freeCores)) {
+            running.get(minion).put(workUnit, ticks + build(minionId, workUnit));
+          }
+        }
+        ticks++;
+      }
+    }
+
+    private int build(String minionId, WorkUnit workUnit) {
+      int duration = 0;
+      for (String target : workUnit.getBuildTargets()) {
+        for (String dependency : dependencies.get(target)) {
+          if (!minionId.equals(builtBy.get(dependency))) {
+            remoteFetches++;
+            duration += TICKS_PER_REMOTE_FETCH;
+          }
+        }
+        builtBy.put(target, minionId);
+        duration++;
+      }
+      return duration;
+    }
+  }
 }
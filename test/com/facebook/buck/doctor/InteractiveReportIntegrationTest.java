@@ -18,8 +18,12 @@ package com.facebook.buck.doctor;
 
 import static org.junit.Assert.assertThat;
 
+import com.facebook.buck.artifact_cache.CacheResultType;
 import com.facebook.buck.doctor.config.BuildLogEntry;
 import com.facebook.buck.doctor.config.DoctorConfig;
+import com.facebook.buck.io.filesystem.ProjectFilesystem;
+import com.facebook.buck.model.BuildTargetFactory;
+import com.facebook.buck.rules.BuildRuleHistory;
 import com.facebook.buck.testutil.integration.ProjectWorkspace;
 import com.facebook.buck.testutil.integration.TemporaryPaths;
 import com.facebook.buck.testutil.integration.TestDataHelper;
@@ -38,6 +42,8 @@ public class InteractiveReportIntegrationTest {
   private static final String BUILD_PATH =
       "buck-out/log/" + "2016-06-21_16h16m24s_buildcommand_ac8bd626-6137-4747-84dd-5d4f215c876c/";
 
+  private static final String SLOWEST_RULES_PATH = "buck-out/build_history/slowest_rules.tsv";
+
   private ProjectWorkspace traceWorkspace;
   private String tracePath;
 
@@ -78,6 +84,8 @@ public class InteractiveReportIntegrationTest {
     zipInspector.assertFileExists(BUILD_PATH + "buck-machine-log");
     zipInspector.assertFileExists(BUILD_PATH + "buck.log");
     zipInspector.assertFileExists(BUILD_PATH + "file.trace");
+    // Without any build history there's nothing to summarize.
+    zipInspector.assertFileDoesNotExist(SLOWEST_RULES_PATH);
   }
 
   @Test
@@ -180,4 +188,61 @@ public class InteractiveReportIntegrationTest {
         zipInspector.getZipFileEntries(),
         Matchers.hasItem(Matchers.stringContainsInOrder("watchman-diag-report")));
   }
+
+  @Test
+  public void testBuildHistorySummaryInReport() throws Exception {
+    ProjectFilesystem filesystem = traceWorkspace.asCell().getFilesystem();
+    BuildRuleHistory history = BuildRuleHistory.forFilesystem(filesystem);
+    history.record(
+        BuildTargetFactory.newInstance("//:fast"),
+        "java_library",
+        Optional.of(100L),
+        Optional.empty(),
+        CacheResultType.MISS);
+    history.record(
+        BuildTargetFactory.newInstance("//:fast"),
+        "java_library",
+        Optional.empty(),
+        Optional.empty(),
+        CacheResultType.HIT);
+    history.record(
+        BuildTargetFactory.newInstance("//:slow"),
+        "genrule",
+        Optional.of(900L),
+        Optional.of(2048L),
+        CacheResultType.MISS);
+    history.record(
+        BuildTargetFactory.newInstance("//:never_built_locally"),
+        "genrule",
+        Optional.empty(),
+        Optional.empty(),
+        CacheResultType.HIT);
+    history.save();
+
+    UserInputFixture userInputFixture = new UserInputFixture("0");
+    DoctorConfig doctorConfig = DoctorConfig.of(traceWorkspace.asCell().getBuckConfig());
+    BuildLogHelper buildLogHelper = new BuildLogHelper(filesystem);
+    Optional<BuildLogEntry> entry =
+        DoctorTestUtils.createDoctorHelper(
+                traceWorkspace, userInputFixture.getUserInput(), doctorConfig)
+            .promptForBuild(new ArrayList<>(buildLogHelper.getBuildLogs()));
+
+    DefectSubmitResult report =
+        DoctorTestUtils.createDefectReport(
+            traceWorkspace,
+            ImmutableSet.of(entry.get()),
+            userInputFixture.getUserInput(),
+            doctorConfig);
+    Path reportFile = filesystem.resolve(report.getReportSubmitLocation().get());
+
+    ZipInspector zipInspector = new ZipInspector(reportFile);
+    zipInspector.assertFileContents(
+        SLOWEST_RULES_PATH,
+        String.format(
+            "target\ttype\tduration_ms\toutput_bytes\tcache_hit_rate\n"
+                + "//:slow\tgenrule\t900\t2048\t%.2f\n"
+                + "//:fast\tjava_library\t100\t-\t%.2f\n",
+            0.0,
+            0.5));
+  }
 }
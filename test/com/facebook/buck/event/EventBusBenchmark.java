@@ -0,0 +1,133 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.event;
+
+import com.facebook.buck.event.QueuedBuckEventBus.SlowListenerPolicy;
+import com.facebook.buck.util.timing.DefaultClock;
+import com.google.common.eventbus.Subscribe;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures how many events per second the event buses take from many posting threads, as a build
+ * with many worker threads does. Use {@code -t} to change the number of threads.
+ *
+ * <p>The default bus queues events without bound, so its numbers are of posting alone; the
+ * queued bus blocks posters once a listener falls behind, so its numbers include delivery.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Threads(64)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class EventBusBenchmark {
+
+  @Param({"default", "queued"})
+  private String eventBusType = "queued";
+
+  @Param({"1", "8"})
+  private int listenerCount = 8;
+
+  private BuckEventBus eventBus;
+
+  @Setup(Level.Iteration)
+  public void setUp() {
+    switch (eventBusType) {
+      case "default":
+        eventBus =
+            new DefaultBuckEventBus(
+                new DefaultClock(),
+                true,
+                BuckEventBusForTests.BUILD_ID_FOR_TEST,
+                DefaultBuckEventBus.DEFAULT_SHUTDOWN_TIMEOUT_MS);
+        break;
+      case "queued":
+        eventBus =
+            new QueuedBuckEventBus(
+                new DefaultClock(),
+                BuckEventBusForTests.BUILD_ID_FOR_TEST,
+                QueuedBuckEventBus.DEFAULT_QUEUE_CAPACITY,
+                SlowListenerPolicy.BLOCK);
+        break;
+      default:
+        throw new IllegalArgumentException(eventBusType);
+    }
+    for (int i = 0; i < listenerCount; i++) {
+      eventBus.register(new CountingListener());
+    }
+  }
+
+  @TearDown(Level.Iteration)
+  public void tearDown() throws IOException {
+    eventBus.close();
+  }
+
+  @Benchmark
+  public void post() {
+    eventBus.post(new BenchmarkEvent());
+  }
+
+  /** Subscribes to the event both by its own type and a supertype, as listeners commonly do. */
+  public static class CountingListener {
+    private final LongAdder events = new LongAdder();
+    private final LongAdder buckEvents = new LongAdder();
+
+    @Subscribe
+    public void onEvent(BenchmarkEvent event) {
+      events.increment();
+    }
+
+    @Subscribe
+    public void onBuckEvent(BuckEvent event) {
+      buckEvents.increment();
+    }
+  }
+
+  /** A minimal event. */
+  public static class BenchmarkEvent extends AbstractBuckEvent {
+    public BenchmarkEvent() {
+      super(EventKey.unique());
+    }
+
+    @Override
+    protected String getValueString() {
+      return "";
+    }
+
+    @Override
+    public String getEventName() {
+      return "BenchmarkEvent";
+    }
+  }
+}
@@ -0,0 +1,293 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.event;
+
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import com.facebook.buck.event.QueuedBuckEventBus.SlowListenerPolicy;
+import com.facebook.buck.util.timing.DefaultClock;
+import com.google.common.collect.ImmutableList;
+import com.google.common.eventbus.Subscribe;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public class QueuedBuckEventBusTest {
+
+  private static final int TIMEOUT_MILLIS = 5000;
+
+  private static QueuedBuckEventBus newEventBus(int capacity, SlowListenerPolicy policy) {
+    return new QueuedBuckEventBus(
+        new DefaultClock(),
+        BuckEventBusForTests.BUILD_ID_FOR_TEST,
+        capacity,
+        policy,
+        TIMEOUT_MILLIS);
+  }
+
+  @Test
+  public void everyListenerGetsTheEventsOfEachThreadInOrder() throws Exception {
+    int threads = 4;
+    int eventsPerThread = 2000;
+    RecordingListener first = new RecordingListener();
+    RecordingListener second = new RecordingListener();
+    QueuedBuckEventBus eventBus = newEventBus(16, SlowListenerPolicy.BLOCK);
+    eventBus.register(first);
+    eventBus.register(second);
+
+    List<Thread> posters = new ArrayList<>();
+    for (int t = 0; t < threads; t++) {
+      int thread = t;
+      Thread poster =
+          new Thread(
+              () -> {
+                for (int i = 0; i < eventsPerThread; i++) {
+                  eventBus.post(new TestEvent(thread, i));
+                }
+              });
+      poster.start();
+      posters.add(poster);
+    }
+    for (Thread poster : posters) {
+      poster.join();
+    }
+    eventBus.close();
+
+    for (RecordingListener listener : ImmutableList.of(first, second)) {
+      assertEquals(threads * eventsPerThread, listener.events.size());
+      int[] next = new int[threads];
+      List<TestEvent> outOfOrder = new ArrayList<>();
+      for (TestEvent event : listener.events) {
+        if (event.sequence != next[event.thread]) {
+          outOfOrder.add(event);
+        }
+        next[event.thread] = event.sequence + 1;
+      }
+      assertThat(outOfOrder, empty());
+    }
+  }
+
+  @Test
+  public void subscribersOfSupertypesAndInheritedSubscribersGetEvents() throws Exception {
+    SubclassListener listener = new SubclassListener();
+    QueuedBuckEventBus eventBus = newEventBus(16, SlowListenerPolicy.BLOCK);
+    eventBus.register(listener);
+    eventBus.register(listener);
+
+    TestEvent event = new TestEvent(0, 0);
+    eventBus.post(event);
+    eventBus.close();
+
+    assertEquals(
+        ImmutableList.of("any:" + event, "subclass:" + event),
+        ImmutableList.sortedCopyOf(listener.calls));
+  }
+
+  @Test
+  public void slowListenerDoesNotDelayOtherListeners() throws Exception {
+    CountDownLatch release = new CountDownLatch(1);
+    BlockedListener slow = new BlockedListener(release);
+    CountDownLatch received = new CountDownLatch(3);
+    QueuedBuckEventBus eventBus = newEventBus(16, SlowListenerPolicy.BLOCK);
+    eventBus.register(slow);
+    eventBus.register(
+        new Object() {
+          @Subscribe
+          public void onEvent(TestEvent event) {
+            received.countDown();
+          }
+        });
+
+    for (int i = 0; i < 3; i++) {
+      eventBus.post(new TestEvent(0, i));
+    }
+    assertTrue(received.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+
+    release.countDown();
+    eventBus.close();
+    assertEquals(3, slow.events.size());
+  }
+
+  @Test
+  public void eventsForAFullQueueAreDroppedWithTheDropPolicy() throws Exception {
+    CountDownLatch release = new CountDownLatch(1);
+    BlockedListener slow = new BlockedListener(release);
+    QueuedBuckEventBus eventBus = newEventBus(2, SlowListenerPolicy.DROP);
+    eventBus.register(slow);
+
+    for (int i = 0; i < 10; i++) {
+      eventBus.post(new TestEvent(0, i));
+    }
+    release.countDown();
+    eventBus.close();
+
+    assertThat(eventBus.getDroppedEventCount(), greaterThan(0L));
+    assertEquals(10, slow.events.size() + eventBus.getDroppedEventCount());
+  }
+
+  @Test
+  public void eventsPostedByListenersAreDeliveredBeforeClosing() throws Exception {
+    RecordingListener recorder = new RecordingListener();
+    QueuedBuckEventBus eventBus = newEventBus(1, SlowListenerPolicy.BLOCK);
+    eventBus.register(
+        new Object() {
+          @Subscribe
+          public void onEvent(TestEvent event) {
+            if (event.sequence < 100) {
+              eventBus.post(new TestEvent(event.thread, event.sequence + 1));
+            }
+          }
+        });
+    eventBus.register(recorder);
+
+    eventBus.post(new TestEvent(0, 0));
+    eventBus.close();
+
+    assertEquals(101, recorder.events.size());
+  }
+
+  @Test
+  public void eventsPostedByListenersToAFullQueueAreDeliveredInOrder() throws Exception {
+    CountDownLatch release = new CountDownLatch(1);
+    BlockedListener slow = new BlockedListener(release);
+    CountDownLatch posted = new CountDownLatch(1);
+    QueuedBuckEventBus eventBus = newEventBus(2, SlowListenerPolicy.BLOCK);
+    eventBus.register(slow);
+    eventBus.register(
+        new Object() {
+          @Subscribe
+          public void onEvent(TestEvent event) {
+            if (event.thread == 0) {
+              for (int i = 0; i < 10; i++) {
+                eventBus.post(new TestEvent(1, i));
+              }
+              posted.countDown();
+            }
+          }
+        });
+
+    eventBus.post(new TestEvent(0, 0));
+    assertTrue(posted.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+    release.countDown();
+    eventBus.close();
+
+    assertEquals(11, slow.events.size());
+    for (int i = 0; i < 10; i++) {
+      assertEquals(i, slow.events.get(i + 1).sequence);
+    }
+  }
+
+  @Test
+  public void closeGivesUpOnAStuckListener() throws Exception {
+    int timeoutMillis = 200;
+    QueuedBuckEventBus eventBus =
+        new QueuedBuckEventBus(
+            new DefaultClock(),
+            BuckEventBusForTests.BUILD_ID_FOR_TEST,
+            16,
+            SlowListenerPolicy.BLOCK,
+            timeoutMillis);
+    CountDownLatch release = new CountDownLatch(1);
+    eventBus.register(new BlockedListener(release));
+    eventBus.post(new TestEvent(0, 0));
+    eventBus.post(new TestEvent(0, 1));
+
+    long start = System.nanoTime();
+    eventBus.close();
+    long durationMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    release.countDown();
+
+    assertThat(durationMillis, lessThanOrEqualTo((long) timeoutMillis * 2));
+    assertThat(durationMillis, lessThan((long) TIMEOUT_MILLIS));
+  }
+
+  private static class RecordingListener {
+    private final List<TestEvent> events = new CopyOnWriteArrayList<>();
+
+    @Subscribe
+    public void onEvent(TestEvent event) {
+      events.add(event);
+    }
+  }
+
+  private static class BlockedListener {
+    private final CountDownLatch release;
+    private final List<TestEvent> events = new CopyOnWriteArrayList<>();
+
+    private BlockedListener(CountDownLatch release) {
+      this.release = release;
+    }
+
+    @Subscribe
+    public void onEvent(TestEvent event) throws InterruptedException {
+      release.await();
+      events.add(event);
+    }
+  }
+
+  private static class BaseListener {
+    protected final List<String> calls = new CopyOnWriteArrayList<>();
+
+    @Subscribe
+    public void onAnyEvent(BuckEvent event) {
+      calls.add("any:" + event);
+    }
+
+    @Subscribe
+    public void onTestEvent(TestEvent event) {
+      calls.add("base:" + event);
+    }
+  }
+
+  private static class SubclassListener extends BaseListener {
+    @Override
+    @Subscribe
+    public void onTestEvent(TestEvent event) {
+      calls.add("subclass:" + event);
+    }
+  }
+
+  private static class TestEvent extends AbstractBuckEvent {
+    private final int thread;
+    private final int sequence;
+
+    private TestEvent(int thread, int sequence) {
+      super(EventKey.unique());
+      this.thread = thread;
+      this.sequence = sequence;
+    }
+
+    @Override
+    protected String getValueString() {
+      return thread + ":" + sequence;
+    }
+
+    @Override
+    public String getEventName() {
+      return "TestEvent";
+    }
+  }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.event.chrome_trace;
+
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+
+import com.facebook.buck.event.chrome_trace.ChromeTraceEvent.Phase;
+import com.facebook.buck.util.ObjectMappers;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.zip.GZIPOutputStream;
+import org.junit.Test;
+
+public class BinaryChromeTraceWriterTest {
+
+  private static final ImmutableList<ChromeTraceEvent> EVENTS =
+      ImmutableList.of(
+          new ChromeTraceEvent(
+              "buck",
+              "process_name",
+              Phase.METADATA,
+              0,
+              0,
+              100,
+              10,
+              ImmutableMap.of(
+                  "user_args", ImmutableList.of("build", "//foo:bar"),
+                  "is_daemon", true,
+                  "timestamp", 1409702151000L)),
+          new ChromeTraceEvent("buck", "//foo:bar", Phase.BEGIN, 0, 12, 200, 20, ImmutableMap.of()),
+          new ChromeTraceEvent(
+              "buck",
+              "//foo:bar",
+              Phase.END,
+              0,
+              12,
+              150,
+              30,
+              ImmutableMap.of("cache_result", "MISS", "ratio", 0.5, "count", -3)),
+          new ChromeTraceEvent(null, "no_category", Phase.COUNTER, 1, 13, 300, 40, null));
+
+  @Test
+  public void eventsRoundTrip() throws IOException {
+    List<ChromeTraceEvent> events = readAll(write(EVENTS, 1 << 20));
+
+    assertEquals(toJson(EVENTS), toJson(events));
+  }
+
+  @Test
+  public void eventsRoundTripWhenStringsAreReset() throws IOException {
+    List<ChromeTraceEvent> events = readAll(write(EVENTS, 8));
+
+    assertEquals(toJson(EVENTS), toJson(events));
+  }
+
+  @Test
+  public void eventsOfATruncatedTraceAreRead() throws IOException {
+    byte[] trace = write(EVENTS, 1 << 20);
+    byte[] truncated = Arrays.copyOf(trace, trace.length - 3);
+
+    List<ChromeTraceEvent> events = readAll(truncated);
+
+    assertEquals(toJson(EVENTS.subList(0, EVENTS.size() - 1)), toJson(events));
+  }
+
+  @Test
+  public void repeatedNamesAreWrittenOnce() throws IOException {
+    List<ChromeTraceEvent> events = new ArrayList<>();
+    for (int i = 0; i < 1000; i++) {
+      events.add(
+          new ChromeTraceEvent(
+              "buck", "//some/long/path/to:target", Phase.BEGIN, 0, 1, i, i, ImmutableMap.of()));
+    }
+
+    byte[] trace = write(events, 1 << 20);
+
+    assertThat(trace.length, lessThan(events.size() * 12));
+  }
+
+  @Test
+  public void onlyRepeatedValuesAreInterned() throws IOException {
+    List<ChromeTraceEvent> events = new ArrayList<>();
+    for (int i = 0; i < 100; i++) {
+      events.add(
+          new ChromeTraceEvent(
+              "buck",
+              "//foo:bar",
+              Phase.END,
+              0,
+              1,
+              i,
+              i,
+              ImmutableMap.of(
+                  "rule_key", String.format("%040x", i),
+                  "deps", ImmutableList.of("//foo:dep" + i),
+                  "cache_result", "MISS")));
+    }
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+    try (BinaryChromeTraceWriter writer = new BinaryChromeTraceWriter(out, 1 << 20)) {
+      writer.writeStart();
+      for (ChromeTraceEvent event : events) {
+        writer.writeEvent(event);
+      }
+      writer.writeEnd();
+      // The category, the name, the three keys and "MISS".
+      assertEquals(6, writer.getInternedStringCount());
+    }
+    assertEquals(toJson(events), toJson(readAll(out.toByteArray())));
+  }
+
+  @Test
+  public void gzippedTraceIsConvertedToJson() throws IOException {
+    ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+    try (GZIPOutputStream out = new GZIPOutputStream(gzipped)) {
+      out.write(write(EVENTS, 1 << 20));
+    }
+    ByteArrayOutputStream json = new ByteArrayOutputStream();
+
+    BinaryChromeTraceReader.convertToJson(new ByteArrayInputStream(gzipped.toByteArray()), json);
+
+    List<Map<String, Object>> converted =
+        ObjectMappers.createParser(json.toByteArray())
+            .readValueAs(new TypeReference<List<Map<String, Object>>>() {});
+    assertEquals(EVENTS.size(), converted.size());
+    assertEquals("//foo:bar", converted.get(1).get("name"));
+    assertFalse(converted.get(3).containsKey("cat"));
+  }
+
+  private static byte[] write(List<ChromeTraceEvent> events, int maxStrings) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (BinaryChromeTraceWriter writer = new BinaryChromeTraceWriter(out, maxStrings)) {
+      writer.writeStart();
+      for (ChromeTraceEvent event : events) {
+        writer.writeEvent(event);
+      }
+      writer.writeEnd();
+    }
+    return out.toByteArray();
+  }
+
+  private static List<ChromeTraceEvent> readAll(byte[] trace) throws IOException {
+    List<ChromeTraceEvent> events = new ArrayList<>();
+    try (BinaryChromeTraceReader reader =
+        new BinaryChromeTraceReader(new ByteArrayInputStream(trace))) {
+      for (Optional<ChromeTraceEvent> event = reader.readEvent();
+          event.isPresent();
+          event = reader.readEvent()) {
+        events.add(event.get());
+      }
+    }
+    return events;
+  }
+
+  private static String toJson(List<ChromeTraceEvent> events) throws IOException {
+    return ObjectMappers.WRITER.writeValueAsString(events);
+  }
+}
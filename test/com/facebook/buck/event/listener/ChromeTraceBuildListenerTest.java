@@ -20,6 +20,7 @@ import static org.hamcrest.Matchers.empty;
 import static org.hamcrest.Matchers.not;
 import static org.hamcrest.Matchers.notNullValue;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
@@ -39,6 +40,7 @@ import com.facebook.buck.event.DefaultBuckEventBus;
 import com.facebook.buck.event.EventKey;
 import com.facebook.buck.event.PerfEventId;
 import com.facebook.buck.event.SimplePerfEvent;
+import com.facebook.buck.event.chrome_trace.BinaryChromeTraceReader;
 import com.facebook.buck.event.chrome_trace.ChromeTraceBuckConfig;
 import com.facebook.buck.event.chrome_trace.ChromeTraceEvent;
 import com.facebook.buck.event.chrome_trace.ChromeTraceEvent.Phase;
@@ -76,6 +78,7 @@ import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.ImmutableSortedSet;
 import com.google.common.collect.Iterables;
 import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.lang.management.ManagementFactory;
@@ -731,7 +734,71 @@ public class ChromeTraceBuildListenerTest {
     assertThat(elements, not(empty()));
   }
 
+  @Test
+  public void canWriteBinaryTraces() throws InterruptedException, IOException {
+    ProjectFilesystem projectFilesystem =
+        TestProjectFilesystems.createProjectFilesystem(tmpDir.getRoot().toPath());
+
+    ChromeTraceBuildListener listener =
+        new ChromeTraceBuildListener(
+            projectFilesystem,
+            invocationInfo,
+            FAKE_CLOCK,
+            Locale.US,
+            TimeZone.getTimeZone("America/Los_Angeles"),
+            ManagementFactory.getThreadMXBean(),
+            chromeTraceConfig(1, true, true));
+    listener.writeChromeTraceMetadataEvent("test", ImmutableMap.of("key", "value"));
+    listener.outputTrace(invocationInfo.getBuildId());
+
+    Path tracePath = Paths.get(EXPECTED_DIR + "build.2014-09-02.16-55-51.BUILD_ID.btrace.gz");
+    assertTrue(projectFilesystem.exists(tracePath));
+    assertTrue(projectFilesystem.exists(Paths.get("buck-out/log/build.btrace.gz")));
+
+    ByteArrayOutputStream json = new ByteArrayOutputStream();
+    BinaryChromeTraceReader.convertToJson(projectFilesystem.newFileInputStream(tracePath), json);
+    List<ChromeTraceEvent> events =
+        ObjectMappers.createParser(json.toByteArray())
+            .readValueAs(new TypeReference<List<ChromeTraceEvent>>() {});
+    assertThat(events, Matchers.hasSize(4));
+    assertEquals("test", events.get(3).getName());
+    assertEquals(ImmutableMap.of("key", "value"), events.get(3).getArgs());
+  }
+
+  @Test
+  public void endEventsOfWrittenBeginEventsAreNeverDropped()
+      throws InterruptedException, IOException {
+    ChromeTraceBuildListener listener =
+        new ChromeTraceBuildListener(
+            TestProjectFilesystems.createProjectFilesystem(tmpDir.getRoot().toPath()),
+            invocationInfo,
+            FAKE_CLOCK,
+            Locale.US,
+            TimeZone.getTimeZone("America/Los_Angeles"),
+            ManagementFactory.getThreadMXBean(),
+            chromeTraceConfig(1, false));
+
+    // Written while the writer keeps up, then ended once it's behind.
+    assertFalse(listener.shouldDrop(traceEvent("outer", Phase.BEGIN), false));
+    // Dropped while it's behind, then ended once it has caught up.
+    assertTrue(listener.shouldDrop(traceEvent("outer", Phase.BEGIN), true));
+    assertTrue(listener.shouldDrop(traceEvent("outer", Phase.END), false));
+    assertFalse(listener.shouldDrop(traceEvent("outer", Phase.END), true));
+    assertTrue(listener.shouldDrop(traceEvent("instant", Phase.IMMEDIATE), true));
+    assertFalse(listener.shouldDrop(traceEvent("thread_name", Phase.METADATA), true));
+    listener.outputTrace(invocationInfo.getBuildId());
+  }
+
+  private static ChromeTraceEvent traceEvent(String name, Phase phase) {
+    return new ChromeTraceEvent("test", name, phase, 0, 1, 0, 0, ImmutableMap.of());
+  }
+
   private static ChromeTraceBuckConfig chromeTraceConfig(int tracesToKeep, boolean compressTraces) {
+    return chromeTraceConfig(tracesToKeep, compressTraces, false);
+  }
+
+  private static ChromeTraceBuckConfig chromeTraceConfig(
+      int tracesToKeep, boolean compressTraces, boolean binaryTraces) {
     return ChromeTraceBuckConfig.of(
         FakeBuckConfig.builder()
             .setSections(
@@ -741,7 +808,9 @@ public class ChromeTraceBuildListenerTest {
                         "max_traces",
                         Integer.toString(tracesToKeep),
                         "compress_traces",
-                        Boolean.toString(compressTraces))))
+                        Boolean.toString(compressTraces),
+                        "binary_traces",
+                        Boolean.toString(binaryTraces))))
             .build());
   }
 
@@ -17,10 +17,14 @@ package com.facebook.buck.event.listener;
 
 import static org.junit.Assert.assertThat;
 
+import com.facebook.buck.artifact_cache.CacheResultType;
 import com.facebook.buck.event.BuckEventBus;
 import com.facebook.buck.event.DefaultBuckEventBus;
 import com.facebook.buck.io.filesystem.ProjectFilesystem;
 import com.facebook.buck.model.BuildId;
+import com.facebook.buck.rules.BuildRule;
+import com.facebook.buck.rules.BuildRuleHistory;
+import com.facebook.buck.rules.FakeBuildRule;
 import com.facebook.buck.testutil.FakeProjectFilesystem;
 import com.facebook.buck.testutil.integration.TemporaryPaths;
 import com.facebook.buck.util.ObjectMappers;
@@ -34,6 +38,7 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Optional;
 import org.hamcrest.Matchers;
 import org.junit.Rule;
 import org.junit.Test;
@@ -288,4 +293,69 @@ public class ProgressEstimatorTest {
     assertThat(e.getApproximateBuildProgress().get(), Matchers.greaterThan(0.0));
     assertThat(e.getApproximateBuildProgress().get(), Matchers.lessThan(1.0));
   }
+
+  @Test
+  public void testBuildProgressIsWeightedByTheDurationsOfEarlierBuilds() {
+    ProjectFilesystem filesystem = new FakeProjectFilesystem();
+    Path p = filesystem.resolve(ProgressEstimator.PROGRESS_ESTIMATIONS_JSON);
+    BuildRule slow = new FakeBuildRule("//:slow");
+    BuildRule fast = new FakeBuildRule("//:fast");
+    BuildRuleHistory history = BuildRuleHistory.forFilesystem(filesystem);
+    recordLocalBuild(history, slow, 900);
+    recordLocalBuild(history, fast, 100);
+
+    ProgressEstimator fastFirst =
+        new ProgressEstimator(p, getBuckEventBus(), Optional.of(history));
+    fastFirst.didStartBuild();
+    fastFirst.setNumberOfRules(2);
+    fastFirst.didFinishRule(fast);
+    // 100ms done, and the rule left is assumed to take the average of 500ms.
+    assertThat(fastFirst.getApproximateBuildProgress().get(), Matchers.closeTo(0.16, 0.001));
+
+    ProgressEstimator slowFirst =
+        new ProgressEstimator(p, getBuckEventBus(), Optional.of(history));
+    slowFirst.didStartBuild();
+    slowFirst.setNumberOfRules(2);
+    slowFirst.didFinishRule(slow);
+    assertThat(slowFirst.getApproximateBuildProgress().get(), Matchers.closeTo(0.64, 0.001));
+  }
+
+  @Test
+  public void testRulesNeverBuiltBeforeCountAsTheAverageOfTheirType() {
+    ProjectFilesystem filesystem = new FakeProjectFilesystem();
+    Path p = filesystem.resolve(ProgressEstimator.PROGRESS_ESTIMATIONS_JSON);
+    BuildRuleHistory history = BuildRuleHistory.forFilesystem(filesystem);
+    recordLocalBuild(history, new FakeBuildRule("//:slow"), 900);
+    recordLocalBuild(history, new FakeBuildRule("//:fast"), 100);
+
+    ProgressEstimator e = new ProgressEstimator(p, getBuckEventBus(), Optional.of(history));
+    e.didStartBuild();
+    e.setNumberOfRules(4);
+    e.didFinishRule(new FakeBuildRule("//:new"));
+    // 500ms done out of 4 rules of 500ms.
+    assertThat(e.getApproximateBuildProgress().get(), Matchers.closeTo(0.25, 0.001));
+  }
+
+  @Test
+  public void testBuildProgressCountsRulesWithoutAnyHistory() {
+    ProjectFilesystem filesystem = new FakeProjectFilesystem();
+    Path p = filesystem.resolve(ProgressEstimator.PROGRESS_ESTIMATIONS_JSON);
+    ProgressEstimator e =
+        new ProgressEstimator(
+            p, getBuckEventBus(), Optional.of(BuildRuleHistory.forFilesystem(filesystem)));
+
+    e.didStartBuild();
+    e.setNumberOfRules(4);
+    e.didFinishRule(new FakeBuildRule("//:new"));
+    assertThat(e.getApproximateBuildProgress().get(), Matchers.closeTo(0.25, 0.001));
+  }
+
+  private static void recordLocalBuild(BuildRuleHistory history, BuildRule rule, long millis) {
+    history.record(
+        rule.getBuildTarget(),
+        rule.getType(),
+        Optional.of(millis),
+        Optional.empty(),
+        CacheResultType.MISS);
+  }
 }
@@ -21,11 +21,13 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 import com.facebook.buck.artifact_cache.ArtifactCache;
+import com.facebook.buck.artifact_cache.ArtifactCacheEvent;
 import com.facebook.buck.artifact_cache.ArtifactCaches;
 import com.facebook.buck.artifact_cache.ArtifactInfo;
 import com.facebook.buck.artifact_cache.CacheResult;
 import com.facebook.buck.artifact_cache.CacheResultType;
 import com.facebook.buck.artifact_cache.DirArtifactCacheTestUtil;
+import com.facebook.buck.artifact_cache.HttpArtifactCacheEvent;
 import com.facebook.buck.artifact_cache.TestArtifactCaches;
 import com.facebook.buck.artifact_cache.config.ArtifactCacheBuckConfig;
 import com.facebook.buck.config.BuckConfig;
@@ -44,6 +46,7 @@ import com.facebook.buck.util.environment.Architecture;
 import com.facebook.buck.util.environment.Platform;
 import com.google.common.base.Joiner;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.eventbus.Subscribe;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListeningExecutorService;
 import com.google.common.util.concurrent.MoreExecutors;
@@ -54,6 +57,8 @@ import java.io.InputStream;
 import java.io.StringReader;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
 import org.hamcrest.Matchers;
 import org.junit.After;
@@ -85,9 +90,14 @@ public class ServedCacheIntegrationTest {
     projectFilesystem.writeContentsToPath(A_FILE_DATA, A_FILE_PATH);
 
     dirCache = createArtifactCache(createMockLocalDirCacheConfig());
-    dirCache.store(
-        ArtifactInfo.builder().addRuleKeys(A_FILE_RULE_KEY).setMetadata(A_FILE_METADATA).build(),
-        BorrowablePath.notBorrowablePath(A_FILE_PATH));
+    dirCache
+        .store(
+            ArtifactInfo.builder()
+                .addRuleKeys(A_FILE_RULE_KEY)
+                .setMetadata(A_FILE_METADATA)
+                .build(),
+            BorrowablePath.notBorrowablePath(A_FILE_PATH))
+        .get();
   }
 
   @After
@@ -144,6 +154,64 @@ public class ServedCacheIntegrationTest {
         projectFilesystem.readFileIfItExists(fetchedContents).get(), Matchers.equalTo(A_FILE_DATA));
   }
 
+  @Test
+  public void testMultiFetchFromServedDircache() throws Exception {
+    RuleKey otherRuleKey = new RuleKey("9876543210");
+    Path otherFilePath = Paths.get("otherFile");
+    projectFilesystem.writeContentsToPath("otherdata", otherFilePath);
+    dirCache
+        .store(
+            ArtifactInfo.builder().addRuleKeys(otherRuleKey).build(),
+            BorrowablePath.notBorrowablePath(otherFilePath))
+        .get();
+
+    webServer = new WebServer(/* port */ 0, projectFilesystem);
+    webServer.updateAndStartIfNeeded(Optional.of(dirCache));
+
+    List<ArtifactCacheEvent.Operation> operations = new ArrayList<>();
+    buckEventBus.register(
+        new Object() {
+          @Subscribe
+          public void started(HttpArtifactCacheEvent.Started event) {
+            operations.add(event.getOperation());
+          }
+        });
+    ArtifactCache serverBackedCache =
+        createArtifactCache(
+            createMockLocalConfig(
+                "[cache]",
+                "mode = http",
+                "http_multi_fetch_enabled = true",
+                String.format("http_url = http://127.0.0.1:%d/", webServer.getPort().get())));
+
+    Path fetchedContents = tmpDir.newFile();
+    Path otherFetchedContents = tmpDir.newFile();
+    CacheResult cacheResult =
+        Futures.getUnchecked(
+            serverBackedCache.fetchAsync(A_FILE_RULE_KEY, LazyPath.ofInstance(fetchedContents)));
+    CacheResult otherCacheResult =
+        Futures.getUnchecked(
+            serverBackedCache.fetchAsync(
+                otherRuleKey, LazyPath.ofInstance(otherFetchedContents)));
+    CacheResult missingCacheResult =
+        Futures.getUnchecked(
+            serverBackedCache.fetchAsync(
+                new RuleKey("00000000"), LazyPath.ofInstance(tmpDir.newFile())));
+
+    assertThat(
+        operations, Matchers.everyItem(Matchers.is(ArtifactCacheEvent.Operation.MULTI_FETCH)));
+    assertThat(operations, Matchers.hasSize(3));
+    assertThat(cacheResult.getType(), Matchers.is(CacheResultType.HIT));
+    assertThat(cacheResult.getMetadata(), Matchers.equalTo(A_FILE_METADATA));
+    assertThat(
+        projectFilesystem.readFileIfItExists(fetchedContents).get(), Matchers.equalTo(A_FILE_DATA));
+    assertThat(otherCacheResult.getType(), Matchers.is(CacheResultType.HIT));
+    assertThat(
+        projectFilesystem.readFileIfItExists(otherFetchedContents).get(),
+        Matchers.equalTo("otherdata"));
+    assertThat(missingCacheResult.getType(), Matchers.is(CacheResultType.MISS));
+  }
+
   private static class ThrowAfterXBytesStream extends FilterInputStream {
     private final long bytesToThrowAfter;
     private long bytesRead = 0L;
@@ -196,6 +196,31 @@ public class WatchmanWatcherTest {
         ((WatchmanPathEvent) eventBuffer.events.get(1)).getPath().toString());
   }
 
+  @Test
+  public void whenMultipleFilesThenBatchOfEventsGenerated()
+      throws IOException, InterruptedException {
+    ImmutableMap<String, Object> watchmanOutput =
+        ImmutableMap.of(
+            "files",
+            ImmutableList.of(
+                ImmutableMap.<String, Object>of("name", "foo/bar/baz"),
+                ImmutableMap.<String, Object>of("name", "foo/bar/boz", "new", true)));
+    List<WatchmanPathEventBatch> batches = new ArrayList<>();
+    eventBus.register(
+        new Object() {
+          @Subscribe
+          public void on(WatchmanPathEventBatch batch) {
+            batches.add(batch);
+          }
+        });
+    WatchmanWatcher watcher = createWatcher(eventBus, watchmanOutput);
+    watcher.postEvents(
+        BuckEventBusForTests.newInstance(FakeClock.DO_NOT_CARE),
+        WatchmanWatcher.FreshInstanceAction.NONE);
+    assertEquals(1, batches.size());
+    assertEquals(eventBuffer.events, batches.get(0).getEvents());
+  }
+
   @Test
   public void whenTooManyChangesThenOverflowEventGenerated()
       throws IOException, InterruptedException {
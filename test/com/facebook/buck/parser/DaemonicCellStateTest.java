@@ -30,6 +30,7 @@ import com.facebook.buck.parser.PipelineNodeCache.Cache;
 import com.facebook.buck.rules.Cell;
 import com.facebook.buck.rules.TestCellBuilder;
 import com.facebook.buck.testutil.FakeProjectFilesystem;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import java.io.IOException;
@@ -128,4 +129,35 @@ public class DaemonicCellStateTest {
         Optional.empty(),
         cache.lookupComputedNode(childCell, target));
   }
+
+  @Test
+  public void testInvalidatingIncludeInvalidatesDependentPackages()
+      throws BuildTargetException, IOException, InterruptedException {
+    Cache<BuildTarget, Boolean> cache = state.getOrCreateCache(Boolean.class);
+    Path include = filesystem.resolve("defs.bzl");
+    BuildTarget first = BuildTargetFactory.newInstance(filesystem.getRootPath(), "//first:lib");
+    BuildTarget second = BuildTargetFactory.newInstance(filesystem.getRootPath(), "//second:lib");
+    BuildTarget unrelated =
+        BuildTargetFactory.newInstance(filesystem.getRootPath(), "//unrelated:lib");
+    for (BuildTarget target : ImmutableList.of(first, second)) {
+      state.putRawNodesIfNotPresentAndStripMetaEntries(
+          target.getCellPath().resolve(target.getBasePath().resolve("BUCK")),
+          ImmutableSet.of(
+              ImmutableMap.of(
+                  "name", target.getShortName(),
+                  "buck.base_path", MorePaths.pathWithUnixSeparators(target.getBasePath()))),
+          ImmutableSet.of(include),
+          ImmutableMap.of());
+      cache.putComputedNodeIfNotPresent(rootCell, target, true);
+    }
+    populateDummyRawNode(state, unrelated);
+    cache.putComputedNodeIfNotPresent(rootCell, unrelated, true);
+
+    assertEquals(2, state.invalidatePath(include));
+    assertEquals(Optional.empty(), cache.lookupComputedNode(rootCell, first));
+    assertEquals(Optional.empty(), cache.lookupComputedNode(rootCell, second));
+    assertEquals(Optional.of(true), cache.lookupComputedNode(rootCell, unrelated));
+    // The dependents were forgotten along with the include.
+    assertEquals(0, state.invalidatePath(include));
+  }
 }
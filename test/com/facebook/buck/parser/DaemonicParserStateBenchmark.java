@@ -0,0 +1,148 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.parser;
+
+import com.facebook.buck.event.listener.BroadcastEventListener;
+import com.facebook.buck.io.WatchmanPathEvent;
+import com.facebook.buck.io.file.MorePaths;
+import com.facebook.buck.io.filesystem.ProjectFilesystem;
+import com.facebook.buck.model.BuildTargetException;
+import com.facebook.buck.rules.Cell;
+import com.facebook.buck.rules.TestCellBuilder;
+import com.facebook.buck.rules.coercer.DefaultTypeCoercerFactory;
+import com.facebook.buck.testutil.FakeProjectFilesystem;
+import com.google.caliper.AfterExperiment;
+import com.google.caliper.BeforeExperiment;
+import com.google.caliper.Benchmark;
+import com.google.caliper.Param;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/** Measures the latency of cache lookups while batches of changes are being invalidated. */
+public class DaemonicParserStateBenchmark {
+  @Param({"1000", "10000"})
+  private int packageCount = 100;
+
+  @Param({"0", "1", "4"})
+  private int invalidatingThreads = 1;
+
+  @Param({"100", "1000"})
+  private int batchSize = 10;
+
+  private DaemonicParserState state;
+  private Cell cell;
+  private List<Path> buildFiles;
+  private ExecutorService executorService;
+  private AtomicBoolean invalidating;
+
+  @Before
+  public void setUpTest() throws Exception {
+    setUpBenchmark();
+  }
+
+  @BeforeExperiment
+  public void setUpBenchmark() throws Exception {
+    ProjectFilesystem filesystem = FakeProjectFilesystem.createJavaOnlyFilesystem();
+    cell = new TestCellBuilder().setFilesystem(filesystem).build();
+    state =
+        new DaemonicParserState(
+            new BroadcastEventListener(), new DefaultTypeCoercerFactory(), /* parsingThreads */ 8);
+
+    buildFiles = new ArrayList<>(packageCount);
+    for (int i = 0; i < packageCount; i++) {
+      Path buildFile = filesystem.resolve(Paths.get("package_" + i, "BUCK"));
+      buildFiles.add(buildFile);
+      putRawNodes(buildFile);
+    }
+
+    invalidating = new AtomicBoolean(true);
+    executorService = Executors.newFixedThreadPool(Math.max(1, invalidatingThreads));
+    for (int i = 0; i < invalidatingThreads; i++) {
+      Random random = new Random(i);
+      executorService.submit(
+          () -> {
+            while (invalidating.get()) {
+              invalidateAndRestoreBatch(random);
+            }
+            return null;
+          });
+    }
+  }
+
+  @After
+  @AfterExperiment
+  public void cleanup() throws Exception {
+    invalidating.set(false);
+    executorService.shutdown();
+    executorService.awaitTermination(1, TimeUnit.MINUTES);
+  }
+
+  private void putRawNodes(Path buildFile) throws BuildTargetException {
+    Map<String, Object> rawNode =
+        ImmutableMap.of(
+            "name",
+            "lib",
+            "buck.base_path",
+            MorePaths.pathWithUnixSeparators(cell.getRoot().relativize(buildFile.getParent())));
+    state
+        .getRawNodeCache()
+        .putComputedNodeIfNotPresent(cell, buildFile, ImmutableSet.of(rawNode));
+  }
+
+  /** Invalidates a batch of changes to random packages, the way a branch switch would. */
+  private void invalidateAndRestoreBatch(Random random) throws BuildTargetException {
+    ImmutableList.Builder<WatchmanPathEvent> events = ImmutableList.builder();
+    List<Path> changedBuildFiles = new ArrayList<>(batchSize);
+    for (int i = 0; i < batchSize; i++) {
+      Path buildFile = buildFiles.get(random.nextInt(buildFiles.size()));
+      changedBuildFiles.add(buildFile);
+      events.add(
+          WatchmanPathEvent.of(
+              cell.getRoot(), WatchmanPathEvent.Kind.MODIFY, cell.getRoot().relativize(buildFile)));
+    }
+    state.invalidateBasedOn(events.build());
+    for (Path buildFile : changedBuildFiles) {
+      putRawNodes(buildFile);
+    }
+  }
+
+  @Test
+  public void lookupsUnderInvalidationCorrectness() throws Exception {
+    lookupsUnderInvalidation();
+  }
+
+  @Benchmark
+  public void lookupsUnderInvalidation() throws Exception {
+    for (Path buildFile : buildFiles) {
+      state.getRawNodeCache().lookupComputedNode(cell, buildFile);
+    }
+  }
+}
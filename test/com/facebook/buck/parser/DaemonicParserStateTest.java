@@ -0,0 +1,129 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.parser;
+
+import static org.junit.Assert.assertEquals;
+
+import com.facebook.buck.counters.Counter;
+import com.facebook.buck.counters.IntegerCounter;
+import com.facebook.buck.event.listener.BroadcastEventListener;
+import com.facebook.buck.io.WatchmanPathEvent;
+import com.facebook.buck.io.file.MorePaths;
+import com.facebook.buck.io.filesystem.ProjectFilesystem;
+import com.facebook.buck.rules.Cell;
+import com.facebook.buck.rules.TestCellBuilder;
+import com.facebook.buck.rules.coercer.DefaultTypeCoercerFactory;
+import com.facebook.buck.testutil.FakeProjectFilesystem;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import java.nio.file.Path;
+import java.util.Optional;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DaemonicParserStateTest {
+
+  private ProjectFilesystem filesystem;
+  private Cell cell;
+  private DaemonicParserState state;
+
+  @Before
+  public void setUp() throws Exception {
+    filesystem = FakeProjectFilesystem.createJavaOnlyFilesystem();
+    cell = new TestCellBuilder().setFilesystem(filesystem).build();
+    state =
+        new DaemonicParserState(
+            new BroadcastEventListener(), new DefaultTypeCoercerFactory(), /* parsingThreads */ 1);
+  }
+
+  @Test
+  public void filesAddedToOnePackageInvalidateItOnce() throws Exception {
+    Path buildFile = createBuildFile(filesystem.getPath("foo"));
+    filesystem.writeContentsToPath("", filesystem.getPath("foo/a.txt"));
+    filesystem.writeContentsToPath("", filesystem.getPath("foo/b.txt"));
+
+    state.invalidateBasedOn(
+        ImmutableList.of(
+            createEvent(filesystem.getPath("foo/a.txt")),
+            createEvent(filesystem.getPath("foo/b.txt"))));
+
+    assertEquals(1, getCounter("build_files_invalidated_by_add_or_remove"));
+    assertEquals(1, getCounter("rules_invalidated_by_watch_events"));
+    assertEquals(Optional.empty(), state.getRawNodeCache().lookupComputedNode(cell, buildFile));
+  }
+
+  @Test
+  public void buildFileAddedInTheSameBatchInvalidatesPackagesOfBothTrees() throws Exception {
+    Path outerBuildFile = createBuildFile(filesystem.getPath("foo"));
+    // The build file tree caches what it finds, so look the file up before it's moved to a new
+    // package, as a parse would have.
+    assertEquals(
+        Optional.of(filesystem.getPath("foo")),
+        state
+            .getBuildFileTrees()
+            .get(cell)
+            .getBasePathOfAncestorTarget(filesystem.getPath("foo/bar/c.txt")));
+    filesystem.mkdirs(filesystem.getPath("foo/bar"));
+    filesystem.writeContentsToPath("", filesystem.getPath("foo/bar/BUCK"));
+    filesystem.writeContentsToPath("", filesystem.getPath("foo/bar/c.txt"));
+
+    state.invalidateBasedOn(
+        ImmutableList.of(
+            createEvent(filesystem.getPath("foo/bar/BUCK")),
+            createEvent(filesystem.getPath("foo/bar/c.txt"))));
+
+    // foo/bar/c.txt belonged to foo before the change, and belongs to foo/bar after it.
+    assertEquals(2, getCounter("build_files_invalidated_by_add_or_remove"));
+    assertEquals(
+        Optional.empty(), state.getRawNodeCache().lookupComputedNode(cell, outerBuildFile));
+    assertEquals(
+        Optional.of(filesystem.getPath("foo/bar")),
+        state
+            .getBuildFileTrees()
+            .get(cell)
+            .getBasePathOfAncestorTarget(filesystem.getPath("foo/bar/c.txt")));
+  }
+
+  private Path createBuildFile(Path basePath) throws Exception {
+    filesystem.mkdirs(basePath);
+    filesystem.writeContentsToPath("", basePath.resolve("BUCK"));
+    Path buildFile = filesystem.resolve(basePath.resolve("BUCK"));
+    state
+        .getRawNodeCache()
+        .putComputedNodeIfNotPresent(
+            cell,
+            buildFile,
+            ImmutableSet.of(
+                ImmutableMap.of(
+                    "name", "lib", "buck.base_path", MorePaths.pathWithUnixSeparators(basePath))));
+    return buildFile;
+  }
+
+  private WatchmanPathEvent createEvent(Path path) {
+    return WatchmanPathEvent.of(filesystem.getRootPath(), WatchmanPathEvent.Kind.CREATE, path);
+  }
+
+  private long getCounter(String name) {
+    for (Counter counter : state.getCounters()) {
+      if (counter.getName().equals(name)) {
+        return ((IntegerCounter) counter).get();
+      }
+    }
+    throw new AssertionError("No counter named " + name);
+  }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.parser;
+
+import static org.junit.Assert.assertEquals;
+
+import com.facebook.buck.config.FakeBuckConfig;
+import com.facebook.buck.io.filesystem.ProjectFilesystem;
+import com.facebook.buck.io.filesystem.TestProjectFilesystems;
+import com.facebook.buck.rules.Cell;
+import com.facebook.buck.rules.TestCellBuilder;
+import com.facebook.buck.testutil.integration.TemporaryPaths;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class PersistentRawNodeCacheTest {
+
+  @Rule public TemporaryPaths tmp = new TemporaryPaths();
+
+  private final ListeningExecutorService executor = MoreExecutors.newDirectExecutorService();
+  private final AtomicInteger parseCount = new AtomicInteger();
+
+  private ProjectFilesystem filesystem;
+  private Path buildFile;
+
+  @Before
+  public void setUp() throws Exception {
+    filesystem = TestProjectFilesystems.createProjectFilesystem(tmp.getRoot());
+    filesystem.mkdirs(Paths.get("foo/src"));
+    filesystem.writeContentsToPath("java_library(name = 'a')", Paths.get("foo/BUCK"));
+    filesystem.writeContentsToPath("FOO = 1", Paths.get("foo/defs.bzl"));
+    filesystem.writeContentsToPath("class A {}", Paths.get("foo/src/A.java"));
+    buildFile = filesystem.resolve("foo/BUCK");
+  }
+
+  private Cell newCell(String envValue, String configValue) throws Exception {
+    return new TestCellBuilder()
+        .setFilesystem(filesystem)
+        .setBuckConfig(
+            FakeBuckConfig.builder()
+                .setFilesystem(filesystem)
+                .setEnvironment(ImmutableMap.of("FOO", envValue))
+                .setSections("[foo]", "bar = " + configValue)
+                .build())
+        .build();
+  }
+
+  private ImmutableSet<Map<String, Object>> rawNodes(Cell cell) {
+    return ImmutableSet.of(
+        ImmutableMap.of(
+            "buck.base_path", "foo", "name", "a", "srcs", ImmutableList.of("src/A.java")),
+        ImmutableMap.of(
+            DaemonicParserState.INCLUDES_META_RULE,
+            ImmutableList.of(buildFile.toString(), filesystem.resolve("foo/defs.bzl").toString())),
+        ImmutableMap.of(DaemonicParserState.CONFIGS_META_RULE, ImmutableMap.of()),
+        ImmutableMap.of(
+            DaemonicParserState.ENV_META_RULE,
+            ImmutableMap.of("FOO", cell.getBuckConfig().getEnvironment().get("FOO"))));
+  }
+
+  /** Parses the build file in a new run, with a new store read from disk. */
+  private ImmutableSet<Map<String, Object>> parse(Cell cell) throws Exception {
+    PersistentRawNodeStore store = PersistentRawNodeStore.forCell(cell);
+    try (PersistentRawNodeCache cache =
+        new PersistentRawNodeCache(ignored -> Optional.of(store))) {
+      return cache
+          .getAllRulesAndMetaRules(
+              cell,
+              buildFile,
+              () -> {
+                parseCount.incrementAndGet();
+                return Futures.immediateFuture(rawNodes(cell));
+              },
+              executor)
+          .get();
+    }
+  }
+
+  @Test
+  public void storedNodesAreReusedByNextRun() throws Exception {
+    Cell cell = newCell("1", "baz");
+    ImmutableSet<Map<String, Object>> parsed = parse(cell);
+    ImmutableSet<Map<String, Object>> reused = parse(cell);
+
+    assertEquals(1, parseCount.get());
+    assertEquals(parsed, reused);
+  }
+
+  @Test
+  public void modifiedBuildFileIsParsedAgain() throws Exception {
+    Cell cell = newCell("1", "baz");
+    parse(cell);
+    filesystem.writeContentsToPath("java_library(name = 'b')", Paths.get("foo/BUCK"));
+    parse(cell);
+
+    assertEquals(2, parseCount.get());
+  }
+
+  @Test
+  public void modifiedIncludeIsParsedAgain() throws Exception {
+    Cell cell = newCell("1", "baz");
+    parse(cell);
+    filesystem.writeContentsToPath("FOO = 2", Paths.get("foo/defs.bzl"));
+    parse(cell);
+    parse(cell);
+
+    assertEquals(2, parseCount.get());
+  }
+
+  @Test
+  public void addedSourceFileIsParsedAgain() throws Exception {
+    Cell cell = newCell("1", "baz");
+    parse(cell);
+    filesystem.writeContentsToPath("class B {}", Paths.get("foo/src/B.java"));
+    parse(cell);
+
+    assertEquals(2, parseCount.get());
+  }
+
+  @Test
+  public void fileAddedToSubpackageIsNotParsedAgain() throws Exception {
+    filesystem.mkdirs(Paths.get("foo/sub"));
+    filesystem.writeContentsToPath("java_library(name = 'sub')", Paths.get("foo/sub/BUCK"));
+    Cell cell = newCell("1", "baz");
+    parse(cell);
+    filesystem.writeContentsToPath("class C {}", Paths.get("foo/sub/C.java"));
+    parse(cell);
+
+    assertEquals(1, parseCount.get());
+  }
+
+  @Test
+  public void subdirectoryBecomingAPackageIsParsedAgain() throws Exception {
+    Cell cell = newCell("1", "baz");
+    parse(cell);
+    filesystem.writeContentsToPath("java_library(name = 'src')", Paths.get("foo/src/BUCK"));
+    parse(cell);
+
+    assertEquals(2, parseCount.get());
+  }
+
+  @Test
+  public void changedEnvironmentIsParsedAgain() throws Exception {
+    parse(newCell("1", "baz"));
+    parse(newCell("2", "baz"));
+
+    assertEquals(2, parseCount.get());
+  }
+
+  @Test
+  public void changedConfigurationIsParsedAgain() throws Exception {
+    parse(newCell("1", "baz"));
+    parse(newCell("1", "qux"));
+
+    assertEquals(2, parseCount.get());
+  }
+}
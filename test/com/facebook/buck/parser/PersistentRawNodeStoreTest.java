@@ -0,0 +1,115 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.parser;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import com.facebook.buck.io.filesystem.ProjectFilesystem;
+import com.facebook.buck.io.filesystem.TestProjectFilesystems;
+import com.facebook.buck.parser.PersistentRawNodeStore.StoredInclude;
+import com.facebook.buck.parser.PersistentRawNodeStore.StoredRawNodes;
+import com.facebook.buck.testutil.integration.TemporaryPaths;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.HashCode;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Optional;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class PersistentRawNodeStoreTest {
+
+  @Rule public TemporaryPaths tmp = new TemporaryPaths();
+
+  private static final HashCode FINGERPRINT = HashCode.fromInt(1);
+
+  private ProjectFilesystem filesystem;
+  private Path storePath;
+  private Path buildFile;
+  private Path otherBuildFile;
+
+  @Before
+  public void setUp() throws Exception {
+    filesystem = TestProjectFilesystems.createProjectFilesystem(tmp.getRoot());
+    storePath = Paths.get("parse_cache/raw_nodes");
+    buildFile = filesystem.resolve("foo/BUCK");
+    otherBuildFile = filesystem.resolve("bar/BUCK");
+  }
+
+  private PersistentRawNodeStore newStore(HashCode fingerprint) {
+    return new PersistentRawNodeStore(filesystem, storePath, fingerprint);
+  }
+
+  private static StoredRawNodes storedRawNodes(String json) {
+    return new StoredRawNodes(
+        HashCode.fromInt(2),
+        HashCode.fromInt(3),
+        ImmutableList.of(new StoredInclude("/root/foo/defs.bzl", HashCode.fromInt(4))),
+        ImmutableMap.of("FOO", Optional.of("1"), "BAR", Optional.empty()),
+        json.getBytes(UTF_8));
+  }
+
+  @Test
+  public void storedNodesAreReloadedAfterSave() throws Exception {
+    PersistentRawNodeStore store = newStore(FINGERPRINT);
+    store.put(buildFile, storedRawNodes("[{\"name\": \"a\"}]"));
+    store.save();
+    store.put(otherBuildFile, storedRawNodes("[]"));
+    store.save();
+
+    PersistentRawNodeStore reloaded = newStore(FINGERPRINT);
+    assertEquals(2, reloaded.size());
+    StoredRawNodes stored = reloaded.get(buildFile).get();
+    StoredRawNodes expected = storedRawNodes("[{\"name\": \"a\"}]");
+    assertEquals(expected.buildFileHash, stored.buildFileHash);
+    assertEquals(expected.directoryHash, stored.directoryHash);
+    assertEquals(1, stored.includes.size());
+    assertEquals(expected.includes.get(0).path, stored.includes.get(0).path);
+    assertEquals(expected.includes.get(0).hashCode, stored.includes.get(0).hashCode);
+    assertEquals(expected.env, stored.env);
+    assertArrayEquals(expected.json, stored.json);
+  }
+
+  @Test
+  public void removedNodesStayRemovedAfterSave() throws Exception {
+    PersistentRawNodeStore store = newStore(FINGERPRINT);
+    store.put(buildFile, storedRawNodes("[]"));
+    store.put(otherBuildFile, storedRawNodes("[]"));
+    store.save();
+    store.remove(buildFile);
+    store.save();
+
+    PersistentRawNodeStore reloaded = newStore(FINGERPRINT);
+    assertFalse(reloaded.get(buildFile).isPresent());
+    assertEquals(1, reloaded.size());
+  }
+
+  @Test
+  public void nodesStoredWithAnotherFingerprintAreDiscarded() throws Exception {
+    PersistentRawNodeStore store = newStore(FINGERPRINT);
+    store.put(buildFile, storedRawNodes("[]"));
+    store.save();
+
+    assertEquals(0, newStore(HashCode.fromInt(5)).size());
+    assertEquals(1, newStore(FINGERPRINT).size());
+  }
+}
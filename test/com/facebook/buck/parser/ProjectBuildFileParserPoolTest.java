@@ -19,10 +19,16 @@ package com.facebook.buck.parser;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.fail;
 
+import com.facebook.buck.event.BuckEventBus;
+import com.facebook.buck.event.BuckEventBusForTests;
+import com.facebook.buck.event.FakeBuckEventListener;
 import com.facebook.buck.parser.api.ProjectBuildFileParser;
+import com.facebook.buck.parser.events.ParserPoolStatsEvent;
+import com.facebook.buck.parser.events.ParserPoolStatsEvent.ParserStats;
 import com.facebook.buck.rules.Cell;
 import com.facebook.buck.rules.TestCellBuilder;
 import com.facebook.buck.util.concurrent.AssertScopeExclusiveAccess;
+import com.facebook.buck.util.timing.SettableFakeClock;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Throwables;
 import com.google.common.collect.FluentIterable;
@@ -38,6 +44,7 @@ import java.nio.file.Paths;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Optional;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executors;
@@ -334,6 +341,48 @@ public class ProjectBuildFileParserPoolTest {
     }
   }
 
+  @Test
+  public void postsParserUsageOnClose() throws Exception {
+    Cell cell = new TestCellBuilder().build();
+    BuckEventBus eventBus = BuckEventBusForTests.newInstance();
+    FakeBuckEventListener listener = new FakeBuckEventListener();
+    eventBus.register(listener);
+    SettableFakeClock clock = new SettableFakeClock(1000, 0);
+
+    ProjectBuildFileParserPool parserPool =
+        new ProjectBuildFileParserPool(
+            /* maxParsersPerCell */ 2,
+            createMockParserFactory(
+                () -> {
+                  clock.advanceTimeNanos(10);
+                  return ImmutableList.of();
+                }),
+            /* enableProfiler */ false,
+            Optional.empty(),
+            Optional.empty(),
+            Optional.of(eventBus),
+            clock);
+    Futures.allAsList(
+            scheduleWork(cell, parserPool, MoreExecutors.newDirectExecutorService(), 3))
+        .get();
+    clock.advanceTimeNanos(20);
+    parserPool.close();
+
+    List<ParserPoolStatsEvent> events =
+        FluentIterable.from(listener.getEvents()).filter(ParserPoolStatsEvent.class).toList();
+    assertThat(events, Matchers.hasSize(1));
+    ParserPoolStatsEvent event = events.get(0);
+    assertThat(event.getCellRoot(), Matchers.equalTo(cell.getRoot()));
+    assertThat(event.getRequests(), Matchers.equalTo(3));
+    assertThat(event.getTotalQueueWaitNanos(), Matchers.equalTo(0L));
+    // The direct executor parses each build file as soon as it's requested, with a single parser.
+    assertThat(event.getParsers(), Matchers.hasSize(1));
+    ParserStats parserStats = event.getParsers().get(0);
+    assertThat(parserStats.getBuildFiles(), Matchers.equalTo(3));
+    assertThat(parserStats.getBusyNanos(), Matchers.equalTo(30L));
+    assertThat(parserStats.getLifetimeNanos(), Matchers.equalTo(50L));
+  }
+
   private static ImmutableSet<ListenableFuture<?>> scheduleWork(
       Cell cell,
       ProjectBuildFileParserPool pool,
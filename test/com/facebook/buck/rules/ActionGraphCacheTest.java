@@ -22,6 +22,8 @@ import static org.hamcrest.Matchers.contains;
 import static org.hamcrest.Matchers.empty;
 import static org.hamcrest.Matchers.equalTo;
 import static org.hamcrest.Matchers.hasProperty;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertThat;
 
@@ -31,6 +33,8 @@ import com.facebook.buck.event.BuckEvent;
 import com.facebook.buck.event.BuckEventBus;
 import com.facebook.buck.event.BuckEventBusForTests;
 import com.facebook.buck.event.ExperimentEvent;
+import com.facebook.buck.event.PerfEventId;
+import com.facebook.buck.event.SimplePerfEvent;
 import com.facebook.buck.jvm.java.JavaLibraryBuilder;
 import com.facebook.buck.model.BuildTarget;
 import com.facebook.buck.model.BuildTargetFactory;
@@ -38,6 +42,8 @@ import com.facebook.buck.model.Pair;
 import com.facebook.buck.rules.keys.ContentAgnosticRuleKeyFactory;
 import com.facebook.buck.rules.keys.RuleKeyFieldLoader;
 import com.facebook.buck.rules.keys.TestRuleKeyConfigurationFactory;
+import com.facebook.buck.shell.ExportFileBuilder;
+import com.facebook.buck.shell.ShBinaryBuilder;
 import com.facebook.buck.testutil.TargetGraphFactory;
 import com.facebook.buck.testutil.integration.TemporaryPaths;
 import com.facebook.buck.util.RichStream;
@@ -45,6 +51,7 @@ import com.facebook.buck.util.timing.IncrementingFakeClock;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.eventbus.Subscribe;
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -363,6 +370,117 @@ public class ActionGraphCacheTest {
                 hasProperty("variant", anyOf(equalTo("ENABLED"), equalTo("DISABLED"))))));
   }
 
+  @Test
+  public void incrementalActionGraphReusesRulesOfUnchangedNodes() {
+    TargetNode<?, ?> exportX = createExportFileNode("X", "x");
+    TargetNode<?, ?> binary = createShBinaryNode("S", exportX);
+    ActionGraphCache cache = new ActionGraphCache(1);
+
+    ActionGraphAndResolver resultRun1 =
+        getIncrementalActionGraph(
+            cache,
+            TargetGraphFactory.newInstance(exportX, binary, createExportFileNode("Y", "y")));
+    ActionGraphAndResolver resultRun2 =
+        getIncrementalActionGraph(
+            cache,
+            TargetGraphFactory.newInstance(exportX, binary, createExportFileNode("Y", "z")));
+
+    assertEquals(1, countEventsOf(ActionGraphEvent.Cache.MissWithTargetGraphDifference.class));
+    assertThat(getRule(resultRun2, "X"), sameInstance(getRule(resultRun1, "X")));
+    assertThat(getRule(resultRun2, "S"), sameInstance(getRule(resultRun1, "S")));
+    assertThat(getRule(resultRun2, "Y"), not(sameInstance(getRule(resultRun1, "Y"))));
+  }
+
+  @Test
+  public void incrementalActionGraphRecreatesRulesOfReverseDeps() {
+    ActionGraphCache cache = new ActionGraphCache(1);
+    TargetNode<?, ?> exportX = createExportFileNode("X", "x");
+    TargetNode<?, ?> changedExportX = createExportFileNode("X", "y");
+
+    ActionGraphAndResolver resultRun1 =
+        getIncrementalActionGraph(
+            cache, TargetGraphFactory.newInstance(exportX, createShBinaryNode("S", exportX)));
+    ActionGraphAndResolver resultRun2 =
+        getIncrementalActionGraph(
+            cache,
+            TargetGraphFactory.newInstance(
+                changedExportX, createShBinaryNode("S", changedExportX)));
+
+    assertThat(getRule(resultRun2, "X"), not(sameInstance(getRule(resultRun1, "X"))));
+    assertThat(getRule(resultRun2, "S"), not(sameInstance(getRule(resultRun1, "S"))));
+  }
+
+  @Test
+  public void incrementalActionGraphDoesNotReuseRulesOfUncacheableDescriptions() {
+    ActionGraphCache cache = new ActionGraphCache(1);
+
+    ActionGraphAndResolver resultRun1 = getIncrementalActionGraph(cache, targetGraph1);
+    ActionGraphAndResolver resultRun2 = getIncrementalActionGraph(cache, targetGraph2);
+
+    assertThat(
+        resultRun2.getResolver().getRule(nodeB.getBuildTarget()),
+        not(sameInstance(resultRun1.getResolver().getRule(nodeB.getBuildTarget()))));
+  }
+
+  @Test
+  public void incrementalActionGraphOnlyHashesNodesWhoseRulesCanBeReused() {
+    List<Object> hashedTargets = new ArrayList<>();
+    eventBus.register(
+        new Object() {
+          @Subscribe
+          public void perfEvent(SimplePerfEvent event) {
+            if (event.getEventType() == SimplePerfEvent.Type.STARTED
+                && event.getEventId().equals(PerfEventId.of("compute_node_hash"))) {
+              hashedTargets.add(event.getEventInfo().get("target"));
+            }
+          }
+        });
+    ActionGraphCache cache = new ActionGraphCache(1);
+    TargetNode<?, ?> exportX = createExportFileNode("X", "x");
+
+    getIncrementalActionGraph(cache, targetGraph1);
+    assertThat(hashedTargets, empty());
+
+    getIncrementalActionGraph(
+        cache, TargetGraphFactory.newInstance(exportX, createTargetNode("A", exportX)));
+    assertThat(hashedTargets, contains(exportX.getBuildTarget()));
+  }
+
+  private ActionGraphAndResolver getIncrementalActionGraph(
+      ActionGraphCache cache, TargetGraph targetGraph) {
+    return cache.getActionGraph(
+        eventBus,
+        NOT_CHECK_GRAPHS,
+        /* skipActionGraphCache */ false,
+        targetGraph,
+        TestRuleKeyConfigurationFactory.createWithSeed(keySeed),
+        ActionGraphParallelizationMode.DISABLED,
+        Optional.empty(),
+        false,
+        /* incrementalActionGraph */ true);
+  }
+
+  private BuildRule getRule(ActionGraphAndResolver actionGraph, String name) {
+    return actionGraph.getResolver().getRule(BuildTargetFactory.newInstance("//foo:" + name));
+  }
+
+  private TargetNode<?, ?> createExportFileNode(String name, String out) {
+    return new ExportFileBuilder(BuildTargetFactory.newInstance("//foo:" + name))
+        .setSrc(FakeSourcePath.of("foo/" + name))
+        .setOut(out)
+        .build();
+  }
+
+  private TargetNode<?, ?> createShBinaryNode(String name, TargetNode<?, ?>... deps) {
+    return new ShBinaryBuilder(BuildTargetFactory.newInstance("//foo:" + name))
+        .setMain(FakeSourcePath.of("foo/main.sh"))
+        .setDeps(
+            RichStream.from(deps)
+                .map(TargetNode::getBuildTarget)
+                .toImmutableSortedSet(Comparator.naturalOrder()))
+        .build();
+  }
+
   private TargetNode<?, ?> createTargetNode(String name, TargetNode<?, ?>... deps) {
     BuildTarget buildTarget = BuildTargetFactory.newInstance("//foo:" + name);
     JavaLibraryBuilder targetNodeBuilder = JavaLibraryBuilder.createBuilder(buildTarget);
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import com.facebook.buck.artifact_cache.ArtifactCodecs;
+import com.facebook.buck.artifact_cache.ArtifactInfo;
+import com.facebook.buck.artifact_cache.CacheResult;
+import com.facebook.buck.artifact_cache.CacheResultType;
+import com.facebook.buck.artifact_cache.InMemoryArtifactCache;
+import com.facebook.buck.artifact_cache.PrefetchingArtifactCache;
+import com.facebook.buck.artifact_cache.config.ArtifactCompressionCodec;
+import com.facebook.buck.artifact_cache.config.ArtifactPrefetch;
+import com.facebook.buck.event.BuckEventBus;
+import com.facebook.buck.event.BuckEventBusForTests;
+import com.facebook.buck.io.file.LazyPath;
+import com.facebook.buck.io.filesystem.ProjectFilesystem;
+import com.facebook.buck.io.filesystem.TestProjectFilesystems;
+import com.facebook.buck.model.BuildTarget;
+import com.facebook.buck.model.BuildTargetFactory;
+import com.facebook.buck.rules.keys.FakeRuleKeyFactory;
+import com.facebook.buck.testutil.integration.TemporaryPaths;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class ArtifactPrefetcherTest {
+
+  @Rule public TemporaryPaths tmp = new TemporaryPaths();
+
+  private static final byte[] DATA = "artifact".getBytes();
+
+  private ProjectFilesystem filesystem;
+  private BuckEventBus eventBus;
+  private RuleDepsCache ruleDeps;
+  private CountingArtifactCache delegate;
+
+  @Before
+  public void setUp() throws Exception {
+    filesystem = TestProjectFilesystems.createProjectFilesystem(tmp.getRoot());
+    eventBus = BuckEventBusForTests.newInstance();
+    ruleDeps =
+        new RuleDepsCache(
+            new SingleThreadedBuildRuleResolver(
+                TargetGraph.EMPTY, new DefaultTargetNodeToBuildRuleTransformer()));
+    delegate = new CountingArtifactCache();
+  }
+
+  private BuildRule createRule(String name, BuildRule... deps) {
+    return new FakeBuildRule(BuildTargetFactory.newInstance("//:" + name), filesystem, deps);
+  }
+
+  private static RuleKey ruleKey(BuildRule rule) {
+    return new RuleKey(
+        Hashing.sha1().hashUnencodedChars(rule.getBuildTarget().getFullyQualifiedName()));
+  }
+
+  private ArtifactPrefetcher newPrefetcher(ArtifactCompressionCodec codec, BuildRule... rules) {
+    ImmutableMap.Builder<BuildTarget, RuleKey> ruleKeys = ImmutableMap.builder();
+    for (BuildRule rule : rules) {
+      ruleKeys.put(rule.getBuildTarget(), ruleKey(rule));
+    }
+    return new ArtifactPrefetcher(
+        new PrefetchingArtifactCache(
+            delegate, filesystem, eventBus, ArtifactPrefetch.of(true, 4, 1024 * 1024)),
+        codec,
+        new ParallelRuleKeyCalculator<>(
+            MoreExecutors.newDirectExecutorService(),
+            new FakeRuleKeyFactory(ruleKeys.build()),
+            ruleDeps,
+            (bus, rule) -> () -> {}),
+        ruleDeps,
+        CachingBuildEngine.BuildMode.SHALLOW,
+        new NoOpRemoteBuildRuleCompletionWaiter(),
+        rule -> Optional.empty(),
+        () -> true,
+        eventBus,
+        MoreExecutors.directExecutor());
+  }
+
+  private CacheResult fetch(ArtifactPrefetcher prefetcher, RuleKey key, String output)
+      throws Exception {
+    return prefetcher
+        .getCache()
+        .fetchAsync(key, LazyPath.ofInstance(tmp.getRoot().resolve(output)))
+        .get();
+  }
+
+  @Test
+  public void prefetchedResultsAreUsedAndMissesAreNotFetchedAgain() throws Exception {
+    BuildRule leaf = createRule("leaf");
+    BuildRule hit = createRule("hit", leaf);
+    BuildRule miss = createRule("miss");
+    BuildRule top = createRule("top", hit, miss);
+    delegate.store(ArtifactInfo.builder().addRuleKeys(ruleKey(hit)).build(), DATA);
+
+    try (ArtifactPrefetcher prefetcher =
+        newPrefetcher(ArtifactCompressionCodec.DEFLATE, leaf, hit, miss, top)) {
+      prefetcher.prefetch(top);
+
+      assertEquals(CacheResultType.MISS, fetch(prefetcher, ruleKey(top), "top").getType());
+      assertEquals(CacheResultType.HIT, fetch(prefetcher, ruleKey(hit), "hit").getType());
+      assertArrayEquals(DATA, Files.readAllBytes(tmp.getRoot().resolve("hit")));
+      assertEquals(CacheResultType.MISS, fetch(prefetcher, ruleKey(miss), "miss").getType());
+      assertEquals(1, prefetcher.getCache().getPrefetchCounters().getTotalPrefetchHits());
+      assertEquals(3, prefetcher.getCache().getPrefetchCounters().getTotalPrefetchesUsed());
+    }
+    // The build's fetches took over the prefetches, rather than go to the cache again.
+    assertEquals(1, delegate.getFetchCount(ruleKey(top)));
+    assertEquals(1, delegate.getFetchCount(ruleKey(hit)));
+    assertEquals(1, delegate.getFetchCount(ruleKey(miss)));
+    // The build deps of a hit aren't built, so they're not worth fetching.
+    assertEquals(0, delegate.getFetchCount(ruleKey(leaf)));
+  }
+
+  @Test
+  public void artifactsArePrefetchedUnderTheKeyOfTheirCodec() throws Exception {
+    BuildRule rule = createRule("rule");
+    RuleKey artifactKey =
+        ArtifactCodecs.getArtifactKey(ruleKey(rule), ArtifactCompressionCodec.LZ4);
+    delegate.store(ArtifactInfo.builder().addRuleKeys(artifactKey).build(), DATA);
+
+    try (ArtifactPrefetcher prefetcher = newPrefetcher(ArtifactCompressionCodec.LZ4, rule)) {
+      prefetcher.prefetch(rule);
+      assertEquals(CacheResultType.HIT, fetch(prefetcher, artifactKey, "rule").getType());
+    }
+    assertEquals(1, delegate.getFetchCount(artifactKey));
+    assertEquals(0, delegate.getFetchCount(ruleKey(rule)));
+  }
+
+  private static class CountingArtifactCache extends InMemoryArtifactCache {
+    private final Map<RuleKey, Integer> fetchCounts = new ConcurrentHashMap<>();
+
+    @Override
+    public ListenableFuture<CacheResult> fetchAsync(RuleKey ruleKey, LazyPath output) {
+      fetchCounts.merge(ruleKey, 1, Integer::sum);
+      return super.fetchAsync(ruleKey, output);
+    }
+
+    int getFetchCount(RuleKey ruleKey) {
+      return fetchCounts.getOrDefault(ruleKey, 0);
+    }
+  }
+}
@@ -16,12 +16,19 @@
 
 package com.facebook.buck.rules;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 import com.facebook.buck.artifact_cache.ArtifactCache;
+import com.facebook.buck.artifact_cache.ArtifactCodecs;
+import com.facebook.buck.artifact_cache.CacheResult;
+import com.facebook.buck.artifact_cache.CacheResultType;
 import com.facebook.buck.artifact_cache.DirArtifactCacheTestUtil;
 import com.facebook.buck.artifact_cache.TestArtifactCaches;
+import com.facebook.buck.artifact_cache.config.ArtifactCompression;
+import com.facebook.buck.artifact_cache.config.ArtifactCompressionCodec;
 import com.facebook.buck.event.DefaultBuckEventBus;
+import com.facebook.buck.io.file.LazyPath;
 import com.facebook.buck.io.filesystem.ProjectFilesystem;
 import com.facebook.buck.model.BuildId;
 import com.facebook.buck.model.BuildTarget;
@@ -52,7 +59,8 @@ public class BuildInfoRecorderIntegrationTest {
     buildInfoRecorder.performUploadToArtifactCache(
         ImmutableSet.of(new RuleKey(RULE_KEY)),
         artifactCache,
-        new DefaultBuckEventBus(new DefaultClock(), new BuildId()));
+        new DefaultBuckEventBus(new DefaultClock(), new BuildId()),
+        ArtifactCompression.DEFAULT);
     assertTrue(
         cacheDir
             .resolve(
@@ -62,6 +70,38 @@ public class BuildInfoRecorderIntegrationTest {
             .exists());
   }
 
+  @Test
+  public void artifactsWhichArentZipArchivesAreStoredUnderTheirCodecsKey() throws Exception {
+    BuildInfoRecorder buildInfoRecorder = createBuildInfoRecorder(new FakeProjectFilesystem());
+    Path cacheDir = Files.createTempDirectory("root");
+    ArtifactCache artifactCache =
+        TestArtifactCaches.createDirCacheForTest(cacheDir, Paths.get("cache"));
+    buildInfoRecorder
+        .performUploadToArtifactCache(
+            ImmutableSet.of(new RuleKey(RULE_KEY)),
+            artifactCache,
+            new DefaultBuckEventBus(new DefaultClock(), new BuildId()),
+            ArtifactCompression.of(ArtifactCompressionCodec.LZ4, 1))
+        .get();
+
+    // Versions which can't read the artifact miss, rather than fail to unpack it.
+    CacheResult miss =
+        artifactCache
+            .fetchAsync(new RuleKey(RULE_KEY), LazyPath.ofInstance(cacheDir.resolve("miss")))
+            .get();
+    assertEquals(CacheResultType.MISS, miss.getType());
+
+    CacheResult hit =
+        artifactCache
+            .fetchAsync(
+                ArtifactCodecs.getArtifactKey(
+                    new RuleKey(RULE_KEY), ArtifactCompressionCodec.LZ4),
+                LazyPath.ofInstance(cacheDir.resolve("hit")))
+            .get();
+    assertEquals(CacheResultType.HIT, hit.getType());
+    assertEquals(ArtifactCompressionCodec.LZ4, ArtifactCodecs.getCodec(hit.getMetadata()));
+  }
+
   private static BuildInfoRecorder createBuildInfoRecorder(ProjectFilesystem filesystem) {
     return new BuildInfoRecorder(
         BUILD_TARGET,
@@ -26,6 +26,7 @@ import static org.junit.Assert.assertTrue;
 import com.facebook.buck.artifact_cache.ArtifactCache;
 import com.facebook.buck.artifact_cache.ArtifactInfo;
 import com.facebook.buck.artifact_cache.NoopArtifactCache;
+import com.facebook.buck.artifact_cache.config.ArtifactCompression;
 import com.facebook.buck.artifact_cache.config.CacheReadMode;
 import com.facebook.buck.event.BuckEventBus;
 import com.facebook.buck.event.DefaultBuckEventBus;
@@ -203,7 +204,8 @@ public class BuildInfoRecorderTest {
           }
         };
 
-    buildInfoRecorder.performUploadToArtifactCache(ImmutableSet.of(new RuleKey("aa")), cache, bus);
+    buildInfoRecorder.performUploadToArtifactCache(
+        ImmutableSet.of(new RuleKey("aa")), cache, bus, ArtifactCompression.DEFAULT);
     assertTrue(stored.get());
   }
 
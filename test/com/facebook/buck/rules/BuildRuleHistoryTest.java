@@ -0,0 +1,196 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import com.facebook.buck.artifact_cache.CacheResultType;
+import com.facebook.buck.io.filesystem.ProjectFilesystem;
+import com.facebook.buck.io.filesystem.TestProjectFilesystems;
+import com.facebook.buck.model.BuildTarget;
+import com.facebook.buck.model.BuildTargetFactory;
+import com.facebook.buck.testutil.integration.TemporaryPaths;
+import com.google.common.collect.ImmutableList;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Optional;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class BuildRuleHistoryTest {
+
+  @Rule public TemporaryPaths tmp = new TemporaryPaths();
+
+  private static final BuildTarget TARGET = BuildTargetFactory.newInstance("//:target");
+  private static final BuildTarget OTHER_TARGET = BuildTargetFactory.newInstance("//:other");
+
+  private ProjectFilesystem filesystem;
+
+  @Before
+  public void setUp() throws Exception {
+    filesystem = TestProjectFilesystems.createProjectFilesystem(tmp.getRoot());
+  }
+
+  private static void recordLocalBuild(BuildRuleHistory history, BuildTarget target, long millis) {
+    history.record(target, "genrule", Optional.of(millis), Optional.of(10L), CacheResultType.MISS);
+  }
+
+  @Test
+  public void statsAreReloadedAfterSave() throws Exception {
+    BuildRuleHistory history = BuildRuleHistory.forFilesystem(filesystem);
+    recordLocalBuild(history, TARGET, 100);
+    history.save();
+    recordLocalBuild(history, OTHER_TARGET, 200);
+    history.save();
+
+    BuildRuleHistory reloaded = BuildRuleHistory.forFilesystem(filesystem);
+    assertEquals(2, reloaded.size());
+    BuildRuleStats stats = reloaded.getStats(TARGET, "genrule").get();
+    assertEquals("genrule", stats.getRuleType());
+    assertEquals(Optional.of(100L), stats.getDurationMillis());
+    assertEquals(Optional.of(10L), stats.getOutputSizeBytes());
+    assertEquals(1, stats.getCacheMisses());
+    assertEquals(Optional.of(150L), reloaded.getAverageDurationMillis("genrule"));
+  }
+
+  @Test
+  public void durationIsAMovingAverage() {
+    BuildRuleHistory history = BuildRuleHistory.forFilesystem(filesystem);
+    recordLocalBuild(history, TARGET, 1000);
+    recordLocalBuild(history, TARGET, 2000);
+
+    assertEquals(Optional.of(1300L), history.getStats(TARGET, "genrule").get().getDurationMillis());
+    assertEquals(Optional.of(1300L), history.getAverageDurationMillis());
+  }
+
+  @Test
+  public void rulesNeverBuiltLocallyTakeTheAverageOfTheirType() {
+    BuildRule known = new FakeBuildRule(TARGET, filesystem);
+    BuildRule unknown = new FakeBuildRule(OTHER_TARGET, filesystem);
+    BuildRuleHistory history = BuildRuleHistory.forFilesystem(filesystem);
+    history.record(
+        TARGET, known.getType(), Optional.of(500L), Optional.empty(), CacheResultType.MISS);
+
+    assertEquals(Optional.of(500L), history.getExpectedDurationMillis(known));
+    assertEquals(Optional.of(500L), history.getExpectedDurationMillis(unknown));
+  }
+
+  @Test
+  public void cacheHitsDoNotChangeTheDuration() {
+    BuildRuleHistory history = BuildRuleHistory.forFilesystem(filesystem);
+    recordLocalBuild(history, TARGET, 1000);
+    history.record(TARGET, "genrule", Optional.empty(), Optional.empty(), CacheResultType.HIT);
+
+    BuildRuleStats stats = history.getStats(TARGET, "genrule").get();
+    assertEquals(Optional.of(1000L), stats.getDurationMillis());
+    assertEquals(Optional.of(0.5), stats.getCacheHitRate());
+  }
+
+  @Test
+  public void oldCacheLookupsCountForLess() {
+    BuildRuleHistory history = BuildRuleHistory.forFilesystem(filesystem);
+    for (int i = 0; i < 64; i++) {
+      history.record(TARGET, "genrule", Optional.empty(), Optional.empty(), CacheResultType.MISS);
+    }
+    history.record(TARGET, "genrule", Optional.empty(), Optional.empty(), CacheResultType.HIT);
+
+    BuildRuleStats stats = history.getStats(TARGET, "genrule").get();
+    assertEquals(32, stats.getCacheMisses());
+    assertEquals(0, stats.getCacheHits());
+  }
+
+  @Test
+  public void rulesOfAnotherTypeAtTheSameTargetAreKeptApart() throws Exception {
+    BuildRuleHistory history = BuildRuleHistory.forFilesystem(filesystem);
+    recordLocalBuild(history, TARGET, 1000);
+    history.record(
+        TARGET, "java_library", Optional.of(100L), Optional.empty(), CacheResultType.MISS);
+    history.save();
+
+    BuildRuleHistory reloaded = BuildRuleHistory.forFilesystem(filesystem);
+    assertEquals(2, reloaded.size());
+    assertEquals(
+        Optional.of(1000L), reloaded.getStats(TARGET, "genrule").get().getDurationMillis());
+    assertEquals(
+        Optional.of(100L), reloaded.getStats(TARGET, "java_library").get().getDurationMillis());
+    assertFalse(reloaded.getStats(TARGET, "cxx_library").isPresent());
+  }
+
+  @Test
+  public void slowestRulesComeFirst() {
+    BuildRuleHistory history = BuildRuleHistory.forFilesystem(filesystem);
+    recordLocalBuild(history, TARGET, 100);
+    recordLocalBuild(history, OTHER_TARGET, 200);
+    history.record(
+        BuildTargetFactory.newInstance("//:cached"),
+        "genrule",
+        Optional.empty(),
+        Optional.empty(),
+        CacheResultType.HIT);
+
+    assertEquals(
+        ImmutableList.of(OTHER_TARGET.getFullyQualifiedName()),
+        history
+            .getSlowestRules(1)
+            .stream()
+            .map(BuildRuleStats::getTarget)
+            .collect(ImmutableList.toImmutableList()));
+    assertEquals(2, history.getSlowestRules(10).size());
+  }
+
+  @Test
+  public void unreadableHistoryIsDiscarded() throws Exception {
+    Path historyPath = filesystem.getBuckPaths().getBuildHistoryDir().resolve("rules");
+    filesystem.mkdirs(historyPath.getParent());
+    filesystem.writeContentsToPath("garbage", historyPath);
+
+    BuildRuleHistory history = BuildRuleHistory.forFilesystem(filesystem);
+    assertEquals(0, history.size());
+    recordLocalBuild(history, TARGET, 100);
+    history.save();
+
+    assertEquals(
+        Optional.of(100L),
+        BuildRuleHistory.forFilesystem(filesystem)
+            .getStats(TARGET, "genrule")
+            .get()
+            .getDurationMillis());
+  }
+
+  @Test
+  public void truncatedRecordIsDropped() throws Exception {
+    BuildRuleHistory history = BuildRuleHistory.forFilesystem(filesystem);
+    recordLocalBuild(history, TARGET, 100);
+    history.save();
+    recordLocalBuild(history, OTHER_TARGET, 200);
+    history.save();
+    Path historyPath =
+        filesystem.resolve(filesystem.getBuckPaths().getBuildHistoryDir().resolve("rules"));
+    byte[] contents = Files.readAllBytes(historyPath);
+    Files.write(historyPath, Arrays.copyOf(contents, contents.length - 3));
+
+    BuildRuleHistory reloaded = BuildRuleHistory.forFilesystem(filesystem);
+    assertEquals(1, reloaded.size());
+    recordLocalBuild(reloaded, OTHER_TARGET, 300);
+    reloaded.save();
+
+    assertEquals(2, BuildRuleHistory.forFilesystem(filesystem).size());
+  }
+}
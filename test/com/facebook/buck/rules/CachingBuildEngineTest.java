@@ -35,12 +35,14 @@ import static org.junit.Assert.fail;
 
 import com.facebook.buck.artifact_cache.ArtifactCache;
 import com.facebook.buck.artifact_cache.ArtifactInfo;
+import com.facebook.buck.artifact_cache.ArtifactPayloadConsumer;
 import com.facebook.buck.artifact_cache.CacheDeleteResult;
 import com.facebook.buck.artifact_cache.CacheResult;
 import com.facebook.buck.artifact_cache.CacheResultType;
 import com.facebook.buck.artifact_cache.InMemoryArtifactCache;
 import com.facebook.buck.artifact_cache.NoopArtifactCache;
 import com.facebook.buck.artifact_cache.config.ArtifactCacheMode;
+import com.facebook.buck.artifact_cache.config.ArtifactPrefetch;
 import com.facebook.buck.artifact_cache.config.CacheReadMode;
 import com.facebook.buck.cli.CommandThreadManager;
 import com.facebook.buck.event.BuckEvent;
@@ -509,7 +511,9 @@ public class CachingBuildEngineTest {
               HashCode.fromInt(123).toString());
       expect(
               artifactCache.fetchAsync(
-                  eq(defaultRuleKeyFactory.build(buildRule)), isA(LazyPath.class)))
+                  eq(defaultRuleKeyFactory.build(buildRule)),
+                  isA(LazyPath.class),
+                  isA(ArtifactPayloadConsumer.class)))
           .andDelegateTo(new FakeArtifactCacheThatWritesAZipFile(desiredZipEntries, metadata));
 
       BuildEngineBuildContext buildContext =
@@ -598,7 +602,9 @@ public class CachingBuildEngineTest {
               "Imagine this is the contents of a valid JAR file.");
       expect(
               artifactCache.fetchAsync(
-                  eq(defaultRuleKeyFactory.build(buildRule)), isA(LazyPath.class)))
+                  eq(defaultRuleKeyFactory.build(buildRule)),
+                  isA(LazyPath.class),
+                  isA(ArtifactPayloadConsumer.class)))
           .andDelegateTo(new FakeArtifactCacheThatWritesAZipFile(desiredZipEntries, metadata));
 
       BuildEngineBuildContext buildContext =
@@ -1460,6 +1466,56 @@ public class CachingBuildEngineTest {
       }
     }
 
+    @Test
+    public void eachBuildPrefetchesThroughItsOwnCache() throws Exception {
+      BuildRule rule =
+          new WriteFile(
+              BuildTargetFactory.newInstance("//:rule"),
+              filesystem,
+              "data",
+              Paths.get("output/path"),
+              /* executable */ false);
+      BuildRule otherRule =
+          new WriteFile(
+              BuildTargetFactory.newInstance("//:other_rule"),
+              filesystem,
+              "other data",
+              Paths.get("output/other_path"),
+              /* executable */ false);
+      InMemoryArtifactCache otherCache = new InMemoryArtifactCache();
+      ArtifactPrefetch prefetch = ArtifactPrefetch.of(true, 4, 1024 * 1024);
+
+      try (CachingBuildEngine cachingBuildEngine = cachingBuildEngineFactory().build()) {
+        assertEquals(
+            BuildRuleSuccessType.BUILT_LOCALLY,
+            cachingBuildEngine
+                .build(
+                    buildContext.withArtifactPrefetch(prefetch),
+                    TestExecutionContext.newInstance(),
+                    rule)
+                .getResult()
+                .get()
+                .getSuccess());
+        // A later build, with a cache of its own, on the same engine.
+        assertEquals(
+            BuildRuleSuccessType.BUILT_LOCALLY,
+            cachingBuildEngine
+                .build(
+                    buildContext
+                        .withArtifactPrefetch(prefetch)
+                        .withArtifactCache(otherCache)
+                        .withBuildId(new BuildId()),
+                    TestExecutionContext.newInstance(),
+                    otherRule)
+                .getResult()
+                .get()
+                .getSuccess());
+      }
+
+      assertEquals(1, cache.getArtifactCount());
+      assertEquals(1, otherCache.getArtifactCount());
+    }
+
     @Test
     public void fetchingFromCacheSeedsFileHashCache() throws Throwable {
       // Create a simple rule which just writes something new to the output file.
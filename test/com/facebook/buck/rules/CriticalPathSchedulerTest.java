@@ -0,0 +1,125 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules;
+
+import static org.junit.Assert.assertEquals;
+
+import com.facebook.buck.event.BuckEventBus;
+import com.facebook.buck.event.BuckEventBusForTests;
+import com.facebook.buck.io.filesystem.ProjectFilesystem;
+import com.facebook.buck.io.filesystem.TestProjectFilesystems;
+import com.facebook.buck.model.BuildTargetFactory;
+import com.facebook.buck.testutil.integration.TemporaryPaths;
+import com.google.common.collect.ImmutableMap;
+import java.util.Optional;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class CriticalPathSchedulerTest {
+
+  @Rule public TemporaryPaths tmp = new TemporaryPaths();
+
+  private ProjectFilesystem filesystem;
+  private BuckEventBus eventBus;
+  private RuleDepsCache ruleDeps;
+
+  @Before
+  public void setUp() throws Exception {
+    filesystem = TestProjectFilesystems.createProjectFilesystem(tmp.getRoot());
+    eventBus = BuckEventBusForTests.newInstance();
+    ruleDeps =
+        new RuleDepsCache(
+            new SingleThreadedBuildRuleResolver(
+                TargetGraph.EMPTY, new DefaultTargetNodeToBuildRuleTransformer()));
+  }
+
+  private BuildRule createRule(String name, BuildRule... deps) {
+    return new FakeBuildRule(BuildTargetFactory.newInstance("//:" + name), filesystem, deps);
+  }
+
+  @Test
+  public void rulesWithLongerChainsAboveThemComeFirst() {
+    BuildRule leaf = createRule("leaf");
+    BuildRule middle = createRule("middle", leaf);
+    BuildRule top = createRule("top", middle);
+    BuildRule otherLeaf = createRule("other_leaf");
+    BuildRule otherTop = createRule("other_top", otherLeaf);
+
+    CriticalPathScheduler scheduler = new CriticalPathScheduler(ruleDeps, Optional.empty());
+    scheduler.registerTopLevelRule(top, eventBus);
+    scheduler.registerTopLevelRule(otherTop, eventBus);
+
+    assertEquals(1, scheduler.getPriority(top));
+    assertEquals(2, scheduler.getPriority(middle));
+    assertEquals(3, scheduler.getPriority(leaf));
+    assertEquals(2, scheduler.getPriority(otherLeaf));
+  }
+
+  @Test
+  public void sharedDepsTakeTheLongestChainAboveThem() {
+    BuildRule shared = createRule("shared");
+    BuildRule shortTop = createRule("short_top", shared);
+    BuildRule middle = createRule("middle", shared);
+    BuildRule longTop = createRule("long_top", middle);
+
+    CriticalPathScheduler scheduler = new CriticalPathScheduler(ruleDeps, Optional.empty());
+    scheduler.registerTopLevelRule(shortTop, eventBus);
+    assertEquals(2, scheduler.getPriority(shared));
+    scheduler.registerTopLevelRule(longTop, eventBus);
+    assertEquals(3, scheduler.getPriority(shared));
+  }
+
+  @Test
+  public void estimatedDurationsAreUsed() {
+    BuildRule slow = createRule("slow");
+    BuildRule fast = createRule("fast");
+    BuildRule top = createRule("top", slow, fast);
+    ImmutableMap<BuildRule, Long> durations = ImmutableMap.of(slow, 1000L, fast, 10L, top, 100L);
+
+    CriticalPathScheduler scheduler =
+        new CriticalPathScheduler(
+            ruleDeps, Optional.of(rule -> Optional.ofNullable(durations.get(rule))));
+    scheduler.registerTopLevelRule(top, eventBus);
+
+    assertEquals(100, scheduler.getPriority(top));
+    assertEquals(1100, scheduler.getPriority(slow));
+    assertEquals(110, scheduler.getPriority(fast));
+  }
+
+  @Test
+  public void rulesWithoutAnEstimateCountAsAMillisecond() {
+    BuildRule known = createRule("known");
+    BuildRule unknown = createRule("unknown");
+    BuildRule top = createRule("top", known, unknown);
+
+    CriticalPathScheduler scheduler =
+        new CriticalPathScheduler(
+            ruleDeps,
+            Optional.of(rule -> rule == known ? Optional.of(500L) : Optional.empty()));
+    scheduler.registerTopLevelRule(top, eventBus);
+
+    assertEquals(501, scheduler.getPriority(known));
+    assertEquals(2, scheduler.getPriority(unknown));
+  }
+
+  @Test
+  public void unregisteredRulesHaveNoPriority() {
+    CriticalPathScheduler scheduler = new CriticalPathScheduler(ruleDeps, Optional.empty());
+    assertEquals(0, scheduler.getPriority(createRule("rule")));
+  }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules.keys;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import com.facebook.buck.io.filesystem.ProjectFilesystem;
+import com.facebook.buck.io.filesystem.TestProjectFilesystems;
+import com.facebook.buck.model.BuildTarget;
+import com.facebook.buck.model.BuildTargetFactory;
+import com.facebook.buck.rules.AddToRuleKey;
+import com.facebook.buck.rules.BuildRule;
+import com.facebook.buck.rules.BuildRuleResolver;
+import com.facebook.buck.rules.DefaultSourcePathResolver;
+import com.facebook.buck.rules.DefaultTargetNodeToBuildRuleTransformer;
+import com.facebook.buck.rules.FakeTargetNodeBuilder;
+import com.facebook.buck.rules.NoopBuildRuleWithDeclaredAndExtraDeps;
+import com.facebook.buck.rules.PathSourcePath;
+import com.facebook.buck.rules.RuleKey;
+import com.facebook.buck.rules.SingleThreadedBuildRuleResolver;
+import com.facebook.buck.rules.SourcePath;
+import com.facebook.buck.rules.SourcePathRuleFinder;
+import com.facebook.buck.rules.TargetGraph;
+import com.facebook.buck.rules.TestBuildRuleParams;
+import com.facebook.buck.testutil.TargetGraphFactory;
+import com.facebook.buck.testutil.integration.TemporaryPaths;
+import com.facebook.buck.util.cache.FileHashCacheMode;
+import com.facebook.buck.util.cache.impl.DefaultFileHashCache;
+import com.facebook.buck.util.cache.impl.StackedFileHashCache;
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.hash.HashCode;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Optional;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class PersistentRuleKeyCacheTest {
+
+  @Rule public TemporaryPaths tmp = new TemporaryPaths();
+
+  private static final BuildTarget DEP = BuildTargetFactory.newInstance("//:dep");
+  private static final BuildTarget TARGET = BuildTargetFactory.newInstance("//:target");
+  private static final Path DEP_INPUT = Paths.get("dep.txt");
+  private static final Path TARGET_INPUT = Paths.get("target.txt");
+
+  private ProjectFilesystem filesystem;
+  private HashCode settingsHash;
+
+  @Before
+  public void setUp() throws Exception {
+    filesystem = TestProjectFilesystems.createProjectFilesystem(tmp.getRoot());
+    filesystem.writeContentsToPath("dep", DEP_INPUT);
+    filesystem.writeContentsToPath("target", TARGET_INPUT);
+    settingsHash = hashSettings("1", "ndk-1");
+  }
+
+  private HashCode hashSettings(String value, String toolchain) {
+    return PersistentRuleKeyCache.hashSettings(
+        TestRuleKeyConfigurationFactory.create(),
+        ImmutableMap.of(
+            filesystem.getRootPath(), ImmutableMap.of("section", ImmutableMap.of("key", value))),
+        ImmutableMap.of(filesystem.getRootPath(), ImmutableMap.of("android-ndk", toolchain)));
+  }
+
+  @Test
+  public void storedKeysAreReusedByANewDaemon() throws Exception {
+    RuleKey computed = new Daemon().build();
+    assertBuild(new Daemon(), computed, new CacheStats(2, 0, 0, 0, 0, 0));
+  }
+
+  @Test
+  public void keysAreComputedAgainWhenAnInputChanges() throws Exception {
+    RuleKey computed = new Daemon().build();
+    filesystem.writeContentsToPath("changed", DEP_INPUT);
+
+    Daemon daemon = new Daemon();
+    RuleKey recomputed = daemon.build();
+    assertNotEquals(computed, recomputed);
+    assertEquals(daemon.buildWithoutStore(), recomputed);
+    // The dep's input changed, and the target's dep has a new key.
+    assertEquals(new CacheStats(0, 2, 2, 0, 0, 2), daemon.cache.getPersistentStats());
+
+    assertBuild(new Daemon(), recomputed, new CacheStats(2, 0, 0, 0, 0, 0));
+  }
+
+  @Test
+  public void keysAreComputedAgainWhenTheSettingsChange() throws Exception {
+    RuleKey computed = new Daemon().build();
+    settingsHash = hashSettings("2", "ndk-1");
+
+    assertBuild(new Daemon(), computed, new CacheStats(0, 2, 2, 0, 0, 2));
+  }
+
+  @Test
+  public void keysAreComputedAgainWhenAToolchainChanges() throws Exception {
+    RuleKey computed = new Daemon().build();
+    settingsHash = hashSettings("1", "ndk-2");
+
+    assertBuild(new Daemon(), computed, new CacheStats(0, 2, 2, 0, 0, 2));
+  }
+
+  @Test
+  public void reusedKeysAreInvalidatedWithTheirInputs() throws Exception {
+    new Daemon().build();
+
+    Daemon daemon = new Daemon();
+    daemon.build();
+    assertNotNull(daemon.cache.get(daemon.target));
+    daemon.cache.invalidateInputs(ImmutableList.of(RuleKeyInput.of(filesystem, DEP_INPUT)));
+    assertNull(daemon.cache.get(daemon.dep));
+    assertNull(daemon.cache.get(daemon.target));
+  }
+
+  private static void assertBuild(Daemon daemon, RuleKey expectedKey, CacheStats expectedStats)
+      throws Exception {
+    assertEquals(expectedKey, daemon.build());
+    assertEquals(expectedStats, daemon.cache.getPersistentStats());
+  }
+
+  /** The state of a daemon: a fresh action graph, caches and a store loaded from disk. */
+  private class Daemon {
+    private final BuildRuleResolver resolver =
+        new SingleThreadedBuildRuleResolver(
+            TargetGraph.EMPTY, new DefaultTargetNodeToBuildRuleTransformer());
+    private final BuildRule dep =
+        resolver.addToIndex(new InputRule(DEP, PathSourcePath.of(filesystem, DEP_INPUT)));
+    private final BuildRule target =
+        resolver.addToIndex(
+            new InputRule(TARGET, PathSourcePath.of(filesystem, TARGET_INPUT), dep));
+    private final TargetGraph targetGraph =
+        TargetGraphFactory.newInstance(
+            FakeTargetNodeBuilder.build(dep), FakeTargetNodeBuilder.build(target));
+    private final StackedFileHashCache fileHashCache =
+        new StackedFileHashCache(
+            ImmutableList.of(
+                DefaultFileHashCache.createDefaultFileHashCache(
+                    filesystem, FileHashCacheMode.DEFAULT)));
+    private final PersistentRuleKeyStore store = PersistentRuleKeyStore.forFilesystem(filesystem);
+    private final PersistentRuleKeyCache cache =
+        new PersistentRuleKeyCache(
+            new DefaultRuleKeyCache<>(),
+            store,
+            targetGraph,
+            resolver,
+            settingsHash,
+            ImmutableSet.of(filesystem),
+            fileHashCache);
+
+    private RuleKey build() throws Exception {
+      RuleKey ruleKey = newFactory(cache).build(target);
+      store.save();
+      return ruleKey;
+    }
+
+    private RuleKey buildWithoutStore() {
+      return newFactory(new DefaultRuleKeyCache<>()).build(target);
+    }
+
+    private DefaultRuleKeyFactory newFactory(RuleKeyCache<RuleKey> ruleKeyCache) {
+      SourcePathRuleFinder ruleFinder = new SourcePathRuleFinder(resolver);
+      return new DefaultRuleKeyFactory(
+          new RuleKeyFieldLoader(TestRuleKeyConfigurationFactory.create()),
+          fileHashCache,
+          DefaultSourcePathResolver.from(ruleFinder),
+          ruleFinder,
+          ruleKeyCache,
+          Optional.empty());
+    }
+  }
+
+  private class InputRule extends NoopBuildRuleWithDeclaredAndExtraDeps {
+
+    @AddToRuleKey private final SourcePath input;
+
+    private InputRule(BuildTarget target, SourcePath input, BuildRule... deps) {
+      super(
+          target,
+          filesystem,
+          TestBuildRuleParams.create().withDeclaredDeps(ImmutableSortedSet.copyOf(deps)));
+      this.input = input;
+    }
+  }
+}
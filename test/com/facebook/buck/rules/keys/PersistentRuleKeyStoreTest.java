@@ -0,0 +1,107 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules.keys;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import com.facebook.buck.io.filesystem.ProjectFilesystem;
+import com.facebook.buck.io.filesystem.TestProjectFilesystems;
+import com.facebook.buck.model.BuildTarget;
+import com.facebook.buck.model.BuildTargetFactory;
+import com.facebook.buck.rules.RuleKey;
+import com.facebook.buck.rules.keys.PersistentRuleKeyStore.StoredDep;
+import com.facebook.buck.rules.keys.PersistentRuleKeyStore.StoredInput;
+import com.facebook.buck.rules.keys.PersistentRuleKeyStore.StoredRuleKey;
+import com.facebook.buck.testutil.integration.TemporaryPaths;
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.HashCode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class PersistentRuleKeyStoreTest {
+
+  @Rule public TemporaryPaths tmp = new TemporaryPaths();
+
+  private static final BuildTarget TARGET = BuildTargetFactory.newInstance("//:target");
+  private static final BuildTarget OTHER_TARGET = BuildTargetFactory.newInstance("//:other");
+  private static final RuleKey RULE_KEY = new RuleKey("76b1c1beae69428db2d1befb31cf743ac8ce90df");
+  private static final RuleKey DEP_RULE_KEY =
+      new RuleKey("1111111111111111111111111111111111111111");
+
+  private ProjectFilesystem filesystem;
+
+  @Before
+  public void setUp() throws Exception {
+    filesystem = TestProjectFilesystems.createProjectFilesystem(tmp.getRoot());
+  }
+
+  private StoredRuleKey newStoredRuleKey(RuleKey ruleKey) {
+    return new StoredRuleKey(
+        HashCode.fromInt(42),
+        ruleKey,
+        ImmutableList.of(
+            new StoredInput(
+                filesystem.getRootPath().toString(), "foo/Bar.java", HashCode.fromInt(7))),
+        ImmutableList.of(new StoredDep("//:dep", DEP_RULE_KEY)));
+  }
+
+  @Test
+  public void ruleKeysAreReloadedAfterSave() throws Exception {
+    PersistentRuleKeyStore store = PersistentRuleKeyStore.forFilesystem(filesystem);
+    store.put(TARGET, newStoredRuleKey(DEP_RULE_KEY));
+    store.save();
+    store.put(TARGET, newStoredRuleKey(RULE_KEY));
+    store.put(OTHER_TARGET, newStoredRuleKey(DEP_RULE_KEY));
+    store.save();
+
+    PersistentRuleKeyStore reloaded = PersistentRuleKeyStore.forFilesystem(filesystem);
+    assertEquals(2, reloaded.size());
+    StoredRuleKey stored = reloaded.get(TARGET).get();
+    assertEquals(HashCode.fromInt(42), stored.structureHash);
+    assertEquals(RULE_KEY, stored.ruleKey);
+    StoredInput input = stored.inputs.get(0);
+    assertEquals(filesystem.getRootPath().toString(), input.cellRoot);
+    assertEquals("foo/Bar.java", input.path);
+    assertEquals(HashCode.fromInt(7), input.hashCode);
+    assertEquals("//:dep", stored.deps.get(0).target);
+    assertEquals(DEP_RULE_KEY, stored.deps.get(0).ruleKey);
+  }
+
+  @Test
+  public void recordCutShortIsDropped() throws Exception {
+    PersistentRuleKeyStore store = PersistentRuleKeyStore.forFilesystem(filesystem);
+    store.put(TARGET, newStoredRuleKey(RULE_KEY));
+    store.save();
+    store.put(OTHER_TARGET, newStoredRuleKey(RULE_KEY));
+    store.save();
+
+    Path storePath =
+        filesystem.resolve(filesystem.getBuckPaths().getRuleKeyCacheDir().resolve("default"));
+    byte[] bytes = Files.readAllBytes(storePath);
+    Files.write(storePath, Arrays.copyOf(bytes, bytes.length - 3));
+
+    PersistentRuleKeyStore reloaded = PersistentRuleKeyStore.forFilesystem(filesystem);
+    assertEquals(1, reloaded.size());
+    assertFalse(reloaded.get(OTHER_TARGET).isPresent());
+    assertEquals(RULE_KEY, reloaded.get(TARGET).get().ruleKey);
+  }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules.keys;
+
+import com.facebook.buck.model.BuildTarget;
+import com.facebook.buck.model.BuildTargetFactory;
+import com.facebook.buck.rules.RuleKey;
+import com.facebook.buck.rules.keys.hasher.GuavaRuleKeyHasher;
+import com.facebook.buck.rules.keys.hasher.RuleKeyHasher;
+import com.facebook.buck.rules.keys.hasher.RuleKeyHasher.Container;
+import com.facebook.buck.rules.keys.hasher.RuleKeyHasher.Wrapper;
+import com.facebook.buck.rules.keys.hasher.StreamingRuleKeyHasher;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Compares the rule key hashers on a synthetic action graph, where each rule hashes its target, a
+ * few fields and sources, and the rule keys of its deps. Run with {@code -prof gc} to compare the
+ * allocation rates too.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class RuleKeyHasherBenchmark {
+
+  private static final int MAX_DEPS = 8;
+  private static final int MAX_SOURCES = 10;
+
+  @Param({"guava", "streaming"})
+  private String hasher = "streaming";
+
+  @Param({"10000", "300000"})
+  private int ruleCount = 10000;
+
+  private Supplier<RuleKeyHasher<HashCode>> newHasher;
+  private SyntheticRule[] rules;
+  private RuleKey[] ruleKeys;
+
+  @Setup
+  public void setUp() {
+    switch (hasher) {
+      case "guava":
+        newHasher = () -> new GuavaRuleKeyHasher(Hashing.sha1().newHasher());
+        break;
+      case "streaming":
+        newHasher = StreamingRuleKeyHasher::new;
+        break;
+      default:
+        throw new IllegalArgumentException("Unknown hasher: " + hasher);
+    }
+
+    Random random = new Random(42);
+    rules = new SyntheticRule[ruleCount];
+    for (int i = 0; i < ruleCount; i++) {
+      // Deps always come earlier in the array, so the keys of the deps are known when hashing.
+      int[] deps = new int[i == 0 ? 0 : random.nextInt(MAX_DEPS + 1)];
+      for (int d = 0; d < deps.length; d++) {
+        deps[d] = random.nextInt(i);
+      }
+      Path[] sources = new Path[random.nextInt(MAX_SOURCES + 1)];
+      HashCode[] sourceHashes = new HashCode[sources.length];
+      for (int s = 0; s < sources.length; s++) {
+        sources[s] = Paths.get(String.format("java/com/example/module%d/Source%d.java", i, s));
+        sourceHashes[s] = Hashing.sha1().hashInt(random.nextInt());
+      }
+      rules[i] =
+          new SyntheticRule(
+              BuildTargetFactory.newInstance(String.format("//java/com/example/module%d:lib", i)),
+              deps,
+              sources,
+              sourceHashes,
+              random.nextInt(100));
+    }
+    ruleKeys = new RuleKey[ruleCount];
+  }
+
+  @Benchmark
+  public void hashActionGraph(Blackhole blackhole) {
+    for (int i = 0; i < rules.length; i++) {
+      ruleKeys[i] = new RuleKey(hashRule(rules[i]));
+    }
+    blackhole.consume(ruleKeys);
+  }
+
+  private HashCode hashRule(SyntheticRule rule) {
+    RuleKeyHasher<HashCode> h = newHasher.get();
+    h.putKey(".rule_key_type").putString("default");
+    h.putKey(".build_target").putBuildTarget(rule.target);
+    h.putKey(".type").putString("java_library");
+    h.putKey("javaVersion").putNumber(rule.javaVersion);
+    h.putKey("exportedDeps").putBoolean(rule.deps.length % 2 == 0);
+
+    for (int s = 0; s < rule.sources.length; s++) {
+      h.putPath(rule.sources[s], rule.sourceHashes[s]);
+    }
+    h.putContainer(Container.LIST, rule.sources.length).putKey("srcs");
+
+    for (int dep : rule.deps) {
+      h.putRuleKey(ruleKeys[dep]).putWrapper(Wrapper.BUILD_RULE);
+    }
+    h.putContainer(Container.LIST, rule.deps.length).putKey("deps");
+    return h.hash();
+  }
+
+  private static class SyntheticRule {
+    private final BuildTarget target;
+    private final int[] deps;
+    private final Path[] sources;
+    private final HashCode[] sourceHashes;
+    private final int javaVersion;
+
+    private SyntheticRule(
+        BuildTarget target, int[] deps, Path[] sources, HashCode[] sourceHashes, int javaVersion) {
+      this.target = target;
+      this.deps = deps;
+      this.sources = sources;
+      this.sourceHashes = sourceHashes;
+      this.javaVersion = javaVersion;
+    }
+  }
+}
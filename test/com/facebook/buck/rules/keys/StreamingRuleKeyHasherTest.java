@@ -0,0 +1,132 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules.keys;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import com.facebook.buck.model.BuildTarget;
+import com.facebook.buck.model.BuildTargetFactory;
+import com.facebook.buck.rules.keys.hasher.RuleKeyHasher;
+import com.facebook.buck.rules.keys.hasher.RuleKeyHasher.Container;
+import com.facebook.buck.rules.keys.hasher.StreamingRuleKeyHasher;
+import com.google.common.base.Strings;
+import com.google.common.hash.HashCode;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.function.Function;
+import org.junit.Test;
+import org.junit.experimental.runners.Enclosed;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+@SuppressWarnings("PMD.TestClassWithoutTestCases")
+@RunWith(Enclosed.class)
+public class StreamingRuleKeyHasherTest {
+
+  @RunWith(Parameterized.class)
+  public static class UniquenessTest extends CommonRuleKeyHasherTest.UniquenessTest<HashCode> {
+    @Parameters(name = "{0} != {2}")
+    public static Iterable<Object[]> cases() {
+      return CommonRuleKeyHasherTest.uniquenessTestCases(StreamingRuleKeyHasher::new);
+    }
+  }
+
+  public static class ConsistencyTest extends CommonRuleKeyHasherTest.ConsistencyTest<HashCode> {
+
+    @Override
+    protected StreamingRuleKeyHasher newHasher() {
+      return new StreamingRuleKeyHasher();
+    }
+  }
+
+  /** The streaming hasher must not change any rule key computed with the Guava one. */
+  public static class CompatibilityTest {
+
+    private static void assertSameHash(
+        Function<RuleKeyHasher<HashCode>, RuleKeyHasher<HashCode>> addToHash) {
+      assertEquals(
+          addToHash.apply(GuavaRuleKeyHasherTest.newHasher()).hash(),
+          addToHash.apply(new StreamingRuleKeyHasher()).hash());
+    }
+
+    @Test
+    public void everyValueHashesAsWithGuava() {
+      List<Object[]> guavaCases =
+          CommonRuleKeyHasherTest.uniquenessTestCases(GuavaRuleKeyHasherTest::newHasher);
+      List<Object[]> streamingCases =
+          CommonRuleKeyHasherTest.uniquenessTestCases(StreamingRuleKeyHasher::new);
+      assertEquals(guavaCases.size(), streamingCases.size());
+      for (int i = 0; i < guavaCases.size(); i++) {
+        assertArrayEquals(guavaCases.get(i), streamingCases.get(i));
+      }
+    }
+
+    @Test
+    public void primitiveNumbersHashAsBoxedOnes() {
+      assertEquals(
+          GuavaRuleKeyHasherTest.newHasher().putNumber(42).putNumber(42L).putNumber(4.2).hash(),
+          new StreamingRuleKeyHasher().putNumber(42).putNumber(42L).putNumber(4.2).hash());
+    }
+
+    @Test
+    public void stringsAreEncodedAsUtf8() {
+      assertSameHash(h -> h.putString("é中😀"));
+      // Unpaired surrogates are replaced, as String#getBytes does.
+      assertSameHash(h -> h.putString("\ud83d.\ude00\ud83d"));
+    }
+
+    @Test
+    public void valuesLargerThanTheBufferAreHashed() {
+      String longString = Strings.repeat("éx", 10000);
+      assertSameHash(h -> h.putKey(longString).putString(longString));
+      assertSameHash(h -> h.putBytes(new byte[100000]).putBytes(new byte[3]));
+      assertSameHash(
+          h -> {
+            for (int i = 0; i < 10000; i++) {
+              h.putContainer(Container.LIST, i).putPath(Paths.get("a/b"), HashCode.fromInt(i));
+            }
+            return h;
+          });
+    }
+
+    @Test
+    public void buildTargetsHashTheSameEveryTime() {
+      BuildTarget target = BuildTargetFactory.newInstance("//foo:bar#baz");
+      assertSameHash(h -> h.putBuildTarget(target).putBuildTarget(target));
+    }
+
+    @Test
+    public void nestedHashersOnOneThreadAreIndependent() {
+      StreamingRuleKeyHasher outer = new StreamingRuleKeyHasher().putString("outer");
+      HashCode inner = new StreamingRuleKeyHasher().putString("inner").hash();
+      StreamingRuleKeyHasher reused = new StreamingRuleKeyHasher().putString("reused");
+
+      assertEquals(GuavaRuleKeyHasherTest.newHasher().putString("outer").hash(), outer.hash());
+      assertEquals(GuavaRuleKeyHasherTest.newHasher().putString("inner").hash(), inner);
+      assertEquals(GuavaRuleKeyHasherTest.newHasher().putString("reused").hash(), reused.hash());
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void puttingAfterHashingFails() {
+      StreamingRuleKeyHasher hasher = new StreamingRuleKeyHasher();
+      hasher.hash();
+      hasher.putString("late");
+    }
+  }
+}
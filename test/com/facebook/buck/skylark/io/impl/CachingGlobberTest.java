@@ -0,0 +1,124 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.skylark.io.impl;
+
+import static org.hamcrest.core.IsEqual.equalTo;
+import static org.junit.Assert.assertThat;
+
+import com.facebook.buck.io.filesystem.ProjectFilesystem;
+import com.facebook.buck.io.filesystem.skylark.SkylarkFilesystem;
+import com.facebook.buck.skylark.io.Globber;
+import com.facebook.buck.skylark.io.GlobberFactory;
+import com.facebook.buck.testutil.FakeProjectFilesystem;
+import com.google.common.collect.ImmutableSet;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CachingGlobberTest {
+  private Path root;
+  private GlobCache cache;
+  private AtomicInteger globs;
+  private GlobberFactory globberFactory;
+
+  @Before
+  public void setUp() throws Exception {
+    ProjectFilesystem projectFilesystem = FakeProjectFilesystem.createRealTempFilesystem();
+    SkylarkFilesystem fileSystem = SkylarkFilesystem.using(projectFilesystem);
+    root = fileSystem.getPath(projectFilesystem.getRootPath().toString());
+    cache = new GlobCache();
+    globs = new AtomicInteger();
+    globberFactory =
+        CachingGlobber.factory(
+            basePath -> {
+              Globber globber = SimpleGlobber.create(basePath);
+              return (include, exclude, excludeDirectories) -> {
+                globs.incrementAndGet();
+                return globber.run(include, exclude, excludeDirectories);
+              };
+            },
+            cache);
+  }
+
+  @Test
+  public void testGlobResultsAreReusedByOtherGlobbers() throws Exception {
+    FileSystemUtils.createEmptyFile(root.getChild("foo.txt"));
+    for (int i = 0; i < 2; i++) {
+      assertThat(
+          globberFactory
+              .create(root)
+              .run(Collections.singleton("*.txt"), Collections.emptySet(), true),
+          equalTo(ImmutableSet.of("foo.txt")));
+    }
+    assertThat(globs.get(), equalTo(1));
+  }
+
+  @Test
+  public void testDifferentGlobsAreNotShared() throws Exception {
+    FileSystemUtils.createEmptyFile(root.getChild("foo.txt"));
+    Globber globber = globberFactory.create(root);
+    globber.run(Collections.singleton("*.txt"), Collections.emptySet(), true);
+    globber.run(Collections.singleton("*.txt"), Collections.singleton("foo.txt"), true);
+    globber.run(Collections.singleton("*.txt"), Collections.emptySet(), false);
+    assertThat(globs.get(), equalTo(3));
+  }
+
+  @Test
+  public void testAddedFileInvalidatesGlobsOfAncestorDirectories() throws Exception {
+    FileSystemUtils.createDirectoryAndParents(root.getRelative("a/b"));
+    FileSystemUtils.createDirectoryAndParents(root.getRelative("c"));
+    globberFactory.create(root).run(Collections.singleton("**"), Collections.emptySet(), true);
+    globberFactory
+        .create(root.getRelative("a/b"))
+        .run(Collections.singleton("**"), Collections.emptySet(), true);
+    globberFactory
+        .create(root.getRelative("c"))
+        .run(Collections.singleton("**"), Collections.emptySet(), true);
+    assertThat(cache.size(), equalTo(3));
+
+    FileSystemUtils.createEmptyFile(root.getRelative("a/b/foo.txt"));
+    cache.invalidate(Paths.get(root.getRelative("a/b/foo.txt").getPathString()));
+    assertThat(cache.size(), equalTo(1));
+    assertThat(
+        globberFactory
+            .create(root.getRelative("a/b"))
+            .run(Collections.singleton("**"), Collections.emptySet(), true),
+        equalTo(ImmutableSet.of("foo.txt")));
+  }
+
+  @Test
+  public void testAddedFileInvalidatesEveryGlobOfItsDirectoryOnly() throws Exception {
+    FileSystemUtils.createDirectoryAndParents(root.getRelative("a/b"));
+    FileSystemUtils.createDirectoryAndParents(root.getRelative("a/bc"));
+    Globber globber = globberFactory.create(root.getRelative("a/b"));
+    globber.run(Collections.singleton("*.txt"), Collections.emptySet(), false);
+    globber.run(Collections.singleton("**"), Collections.emptySet(), true);
+    globberFactory
+        .create(root.getRelative("a/bc"))
+        .run(Collections.singleton("*.txt"), Collections.emptySet(), false);
+    assertThat(cache.size(), equalTo(3));
+
+    cache.invalidate(Paths.get(root.getRelative("a/b/foo.txt").getPathString()));
+    assertThat(cache.size(), equalTo(1));
+    cache.invalidate(Paths.get(root.getRelative("a/bc/foo.txt").getPathString()));
+    assertThat(cache.size(), equalTo(0));
+  }
+}
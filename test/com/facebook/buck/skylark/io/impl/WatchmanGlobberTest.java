@@ -0,0 +1,218 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.skylark.io.impl;
+
+import static org.hamcrest.core.IsEqual.equalTo;
+import static org.junit.Assert.assertThat;
+
+import com.facebook.buck.io.FakeWatchmanClient;
+import com.facebook.buck.io.ProjectWatch;
+import com.facebook.buck.io.Watchman;
+import com.facebook.buck.io.WatchmanClient;
+import com.facebook.buck.io.filesystem.ProjectFilesystem;
+import com.facebook.buck.io.filesystem.skylark.SkylarkFilesystem;
+import com.facebook.buck.skylark.io.Globber;
+import com.facebook.buck.testutil.FakeProjectFilesystem;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Optional;
+import org.hamcrest.CoreMatchers;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+public class WatchmanGlobberTest {
+  private static final ImmutableList<Object> FILES_AND_SYMLINKS =
+      ImmutableList.of("anyof", ImmutableList.of("type", "f"), ImmutableList.of("type", "l"));
+  private static final ImmutableMap<String, Object> MATCH_FLAGS =
+      ImmutableMap.of("includedotfiles", true);
+
+  private ProjectFilesystem projectFilesystem;
+  private Path root;
+
+  @Rule public ExpectedException thrown = ExpectedException.none();
+
+  @Before
+  public void setUp() throws Exception {
+    projectFilesystem = FakeProjectFilesystem.createRealTempFilesystem();
+    SkylarkFilesystem fileSystem = SkylarkFilesystem.using(projectFilesystem);
+    root = fileSystem.getPath(projectFilesystem.getRootPath().toString());
+  }
+
+  @Test
+  public void testGlobIsResolvedWithWatchmanQuery() throws Exception {
+    Globber globber =
+        createGlobber(
+            root,
+            /* useGlobGenerator */ false,
+            new FakeWatchmanClient(
+                0,
+                ImmutableMap.of(
+                    query(
+                        ImmutableMap.of(
+                            "sync_timeout",
+                            0,
+                            "fields",
+                            ImmutableList.of("name"),
+                            "path",
+                            ImmutableList.of(""),
+                            "expression",
+                            ImmutableList.of(
+                                "allof",
+                                FILES_AND_SYMLINKS,
+                                "exists",
+                                ImmutableList.of("anyof", match("*.txt"))))),
+                    ImmutableMap.of("files", ImmutableList.of("foo.txt", "bar.txt")))));
+    assertThat(
+        globber.run(Collections.singleton("*.txt"), Collections.emptySet(), true),
+        equalTo(ImmutableSet.of("bar.txt", "foo.txt")));
+  }
+
+  @Test
+  public void testGlobGeneratorIsUsedRelativeToBasePath() throws Exception {
+    Globber globber =
+        createGlobber(
+            root.getChild("src"),
+            /* useGlobGenerator */ true,
+            new FakeWatchmanClient(
+                0,
+                ImmutableMap.of(
+                    query(
+                        ImmutableMap.<String, Object>builder()
+                            .put("relative_root", "src")
+                            .put("sync_timeout", 0)
+                            .put("fields", ImmutableList.of("name"))
+                            .put("glob", ImmutableList.of("*.txt"))
+                            .put("glob_includedotfiles", true)
+                            .put(
+                                "expression",
+                                ImmutableList.of(
+                                    "allof",
+                                    FILES_AND_SYMLINKS,
+                                    ImmutableList.of(
+                                        "not", ImmutableList.of("anyof", match("bar.txt")))))
+                            .build()),
+                    ImmutableMap.of("files", ImmutableList.of("foo.txt")))));
+    assertThat(
+        globber.run(Collections.singleton("*.txt"), Collections.singleton("bar.txt"), true),
+        equalTo(ImmutableSet.of("foo.txt")));
+  }
+
+  @Test
+  public void testFileSystemIsUsedWhenDirsAreNotExcluded() throws Exception {
+    FileSystemUtils.createDirectoryAndParents(root.getChild("some_dir"));
+    Globber globber =
+        createGlobber(
+            root, /* useGlobGenerator */ true, new FakeWatchmanClient(0, ImmutableMap.of()));
+    assertThat(
+        globber.run(Collections.singleton("some_dir"), Collections.emptySet(), false),
+        equalTo(ImmutableSet.of("some_dir")));
+  }
+
+  @Test
+  public void testFileSystemIsUsedWhenQueryTimesOut() throws Exception {
+    FileSystemUtils.createEmptyFile(root.getChild("foo.txt"));
+    Globber globber =
+        createGlobber(
+            root,
+            /* useGlobGenerator */ true,
+            new FakeWatchmanClient(
+                Long.MAX_VALUE,
+                ImmutableMap.of(
+                    query(
+                        ImmutableMap.of(
+                            "sync_timeout",
+                            0,
+                            "fields",
+                            ImmutableList.of("name"),
+                            "glob",
+                            ImmutableList.of("*.txt"),
+                            "glob_includedotfiles",
+                            true,
+                            "expression",
+                            ImmutableList.of("allof", FILES_AND_SYMLINKS))),
+                    ImmutableMap.of("files", ImmutableList.of("stale.txt")))));
+    assertThat(
+        globber.run(Collections.singleton("*.txt"), Collections.emptySet(), true),
+        equalTo(ImmutableSet.of("foo.txt")));
+  }
+
+  @Test
+  public void testWatchmanErrorIsReported() throws Exception {
+    Globber globber =
+        createGlobber(
+            root,
+            /* useGlobGenerator */ true,
+            new FakeWatchmanClient(
+                0,
+                ImmutableMap.of(
+                    query(
+                        ImmutableMap.of(
+                            "sync_timeout",
+                            0,
+                            "fields",
+                            ImmutableList.of("name"),
+                            "glob",
+                            ImmutableList.of("*.txt"),
+                            "glob_includedotfiles",
+                            true,
+                            "expression",
+                            ImmutableList.of("allof", FILES_AND_SYMLINKS))),
+                    ImmutableMap.of("error", "unable to resolve root"))));
+    thrown.expect(IOException.class);
+    thrown.expectMessage(CoreMatchers.endsWith("unable to resolve root"));
+    globber.run(Collections.singleton("*.txt"), Collections.emptySet(), true);
+  }
+
+  private Globber createGlobber(Path basePath, boolean useGlobGenerator, WatchmanClient client) {
+    Watchman watchman =
+        new Watchman(
+            ImmutableMap.of(),
+            ImmutableSet.of(),
+            ImmutableMap.of(),
+            Optional.of(Paths.get(".watchman-sock"))) {
+          @Override
+          public WatchmanClient createClient() {
+            return client;
+          }
+        };
+    return WatchmanGlobberFactory.create(
+            watchman,
+            ProjectWatch.of(root.getPathString(), Optional.empty()),
+            projectFilesystem.getRootPath(),
+            /* queryTimeoutNanos */ 1000,
+            useGlobGenerator,
+            /* statResults */ false)
+        .create(basePath);
+  }
+
+  private ImmutableList<Object> query(Map<String, Object> params) {
+    return ImmutableList.of("query", root.getPathString(), params);
+  }
+
+  private static ImmutableList<Object> match(String pattern) {
+    return ImmutableList.of("match", pattern, "wholename", MATCH_FLAGS);
+  }
+}
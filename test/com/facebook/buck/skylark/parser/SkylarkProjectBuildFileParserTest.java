@@ -36,12 +36,14 @@ import com.facebook.buck.rules.KnownBuildRuleTypesProvider;
 import com.facebook.buck.rules.TestCellBuilder;
 import com.facebook.buck.rules.coercer.DefaultTypeCoercerFactory;
 import com.facebook.buck.sandbox.TestSandboxExecutionStrategyFactory;
+import com.facebook.buck.skylark.io.impl.SimpleGlobber;
 import com.facebook.buck.testutil.FakeProjectFilesystem;
 import com.facebook.buck.testutil.TestConsole;
 import com.facebook.buck.util.DefaultProcessExecutor;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.hash.HashCode;
 import com.google.devtools.build.lib.events.Event;
 import com.google.devtools.build.lib.events.EventCollector;
 import com.google.devtools.build.lib.events.EventHandler;
@@ -51,10 +53,13 @@ import com.google.devtools.build.lib.syntax.Type;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.EnumSet;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.Nullable;
 import org.hamcrest.Matchers;
 import org.junit.Before;
 import org.junit.Rule;
@@ -84,6 +89,11 @@ public class SkylarkProjectBuildFileParserTest {
   }
 
   private SkylarkProjectBuildFileParser createParser(EventHandler eventHandler) {
+    return createParser(eventHandler, new SkylarkExtensionCache());
+  }
+
+  private SkylarkProjectBuildFileParser createParser(
+      EventHandler eventHandler, SkylarkExtensionCache extensionCache) {
     return SkylarkProjectBuildFileParser.using(
         ProjectBuildFileParserOptions.builder()
             .setProjectRoot(cell.getRoot())
@@ -97,7 +107,9 @@ public class SkylarkProjectBuildFileParserTest {
         BuckEventBusForTests.newInstance(),
         SkylarkFilesystem.using(projectFilesystem),
         new DefaultTypeCoercerFactory(),
-        eventHandler);
+        eventHandler,
+        extensionCache,
+        SimpleGlobber::create);
   }
 
   @Test
@@ -576,6 +588,127 @@ public class SkylarkProjectBuildFileParserTest {
     assertThat(envsMetadataRule.get("__env"), equalTo(ImmutableMap.of()));
   }
 
+  @Test
+  public void extensionIsEvaluatedOnceByParsersSharingCache() throws Exception {
+    EventCollector eventCollector = new EventCollector(EnumSet.allOf(EventKind.class));
+    SkylarkExtensionCache extensionCache = new SkylarkExtensionCache();
+    Path directory = projectFilesystem.resolve("src").resolve("test");
+    Files.createDirectories(directory);
+    Path buildFile = directory.resolve("BUCK");
+    Files.write(
+        buildFile,
+        Arrays.asList(
+            "load('//src/test:build_rules.bzl', 'get_name')",
+            "prebuilt_jar(name='foo', binary_jar=get_name())"));
+    Files.write(
+        directory.resolve("build_rules.bzl"),
+        Arrays.asList("print('evaluated')", "def get_name():", "  return 'jar'"));
+
+    for (int i = 0; i < 2; i++) {
+      parser = createParser(eventCollector, extensionCache);
+      ImmutableList<Map<String, Object>> allRulesAndMetaRules =
+          parser.getAllRulesAndMetaRules(buildFile, new AtomicLong());
+      assertThat(allRulesAndMetaRules.get(0).get("binaryJar"), equalTo("jar"));
+      @SuppressWarnings("unchecked")
+      ImmutableSet<String> includes =
+          (ImmutableSet<String>) allRulesAndMetaRules.get(1).get("__includes");
+      assertThat(includes, Matchers.hasSize(2));
+    }
+    assertThat(eventCollector.count(), equalTo(1));
+    assertThat(extensionCache.size(), equalTo(1));
+  }
+
+  @Test
+  public void modifiedExtensionIsReevaluated() throws Exception {
+    Path buildFile = projectFilesystem.resolve("BUCK");
+    Path extensionFile = projectFilesystem.resolve("ext.bzl");
+    Files.write(
+        buildFile,
+        Arrays.asList("load('//:ext.bzl', 'name')", "prebuilt_jar(name='foo', binary_jar=name)"));
+    Files.write(extensionFile, Arrays.asList("name = 'a.jar'"));
+    assertThat(getSingleRule(buildFile).get("binaryJar"), equalTo("a.jar"));
+
+    Files.write(extensionFile, Arrays.asList("name = 'b.jar'"));
+    assertThat(getSingleRule(buildFile).get("binaryJar"), equalTo("b.jar"));
+  }
+
+  @Test
+  public void extensionIsReevaluatedWhenItsDependencyIsModified() throws Exception {
+    EventCollector eventCollector = new EventCollector(EnumSet.allOf(EventKind.class));
+    parser = createParser(eventCollector);
+    Path buildFile = projectFilesystem.resolve("BUCK");
+    Path dependencyFile = projectFilesystem.resolve("dep.bzl");
+    Files.write(
+        buildFile,
+        Arrays.asList("load('//:ext.bzl', 'name')", "prebuilt_jar(name='foo', binary_jar=name)"));
+    Files.write(
+        projectFilesystem.resolve("ext.bzl"),
+        Arrays.asList("load('//:dep.bzl', 'dep')", "print('evaluated')", "name = dep"));
+    Files.write(dependencyFile, Arrays.asList("dep = 'a.jar'"));
+    assertThat(getSingleRule(buildFile).get("binaryJar"), equalTo("a.jar"));
+    assertThat(getSingleRule(buildFile).get("binaryJar"), equalTo("a.jar"));
+    assertThat(eventCollector.count(), equalTo(1));
+
+    Files.write(dependencyFile, Arrays.asList("dep = 'b.jar'"));
+    assertThat(getSingleRule(buildFile).get("binaryJar"), equalTo("b.jar"));
+    assertThat(eventCollector.count(), equalTo(2));
+  }
+
+  @Test
+  public void extensionLoadedByManyOthersIsLookedUpOncePerParse() throws Exception {
+    List<String> lookedUp = new ArrayList<>();
+    SkylarkExtensionCache extensionCache =
+        new SkylarkExtensionCache() {
+          @Nullable
+          @Override
+          ExtensionData get(com.google.devtools.build.lib.vfs.Path path, HashCode contentHash) {
+            lookedUp.add(path.getBaseName());
+            return super.get(path, contentHash);
+          }
+        };
+    parser = createParser(new PrintingEventHandler(EventKind.ALL_EVENTS), extensionCache);
+    Path buildFile = projectFilesystem.resolve("BUCK");
+    Files.write(
+        buildFile,
+        Arrays.asList(
+            "load('//:a.bzl', 'a')",
+            "load('//:b.bzl', 'b')",
+            "prebuilt_jar(name='foo', binary_jar=a + b)"));
+    Files.write(
+        projectFilesystem.resolve("a.bzl"), Arrays.asList("load('//:c.bzl', 'c')", "a = c"));
+    Files.write(
+        projectFilesystem.resolve("b.bzl"), Arrays.asList("load('//:c.bzl', 'c')", "b = c"));
+    Files.write(
+        projectFilesystem.resolve("c.bzl"), Arrays.asList("load('//:d.bzl', 'd')", "c = d"));
+    Files.write(projectFilesystem.resolve("d.bzl"), Arrays.asList("d = 'x'"));
+
+    assertThat(getSingleRule(buildFile).get("binaryJar"), equalTo("xx"));
+    assertThat(lookedUp, Matchers.contains("a.bzl", "c.bzl", "d.bzl", "b.bzl"));
+
+    // The cached extensions are checked against the extensions they load, but c.bzl and d.bzl are
+    // only checked once although both a.bzl and b.bzl load them.
+    lookedUp.clear();
+    assertThat(getSingleRule(buildFile).get("binaryJar"), equalTo("xx"));
+    assertThat(lookedUp, Matchers.contains("a.bzl", "c.bzl", "d.bzl", "b.bzl"));
+  }
+
+  @Test
+  public void invalidatedExtensionIsDropped() throws Exception {
+    SkylarkExtensionCache extensionCache = new SkylarkExtensionCache();
+    parser = createParser(new PrintingEventHandler(EventKind.ALL_EVENTS), extensionCache);
+    Path buildFile = projectFilesystem.resolve("BUCK");
+    Path extensionFile = projectFilesystem.resolve("ext.bzl");
+    Files.write(
+        buildFile,
+        Arrays.asList("load('//:ext.bzl', 'name')", "prebuilt_jar(name='foo', binary_jar=name)"));
+    Files.write(extensionFile, Arrays.asList("name = 'a.jar'"));
+    getSingleRule(buildFile);
+    assertThat(extensionCache.size(), equalTo(1));
+
+    extensionCache.invalidate(extensionFile);
+    assertThat(extensionCache.size(), equalTo(0));
+  }
+
   private Map<String, Object> getSingleRule(Path buildFile)
       throws BuildFileParseException, InterruptedException, IOException {
     ImmutableList<Map<String, Object>> allRules = parser.getAll(buildFile, new AtomicLong());
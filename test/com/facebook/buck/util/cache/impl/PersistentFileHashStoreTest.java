@@ -0,0 +1,169 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.util.cache.impl;
+
+import static org.junit.Assert.assertEquals;
+
+import com.facebook.buck.io.filesystem.ProjectFilesystem;
+import com.facebook.buck.io.filesystem.TestProjectFilesystems;
+import com.facebook.buck.testutil.integration.TemporaryPaths;
+import com.facebook.buck.util.cache.FileHashCacheMode;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class PersistentFileHashStoreTest {
+
+  @Rule public TemporaryPaths tmp = new TemporaryPaths();
+
+  private static final HashCode HASH = Hashing.sha1().hashInt(42);
+  private static final FileTime AN_HOUR_AGO =
+      FileTime.fromMillis(System.currentTimeMillis() - TimeUnit.HOURS.toMillis(1));
+
+  private ProjectFilesystem filesystem;
+  private Path file;
+
+  @Before
+  public void setUp() throws Exception {
+    filesystem = TestProjectFilesystems.createProjectFilesystem(tmp.getRoot());
+    file = Paths.get("file");
+    filesystem.writeContentsToPath("contents", file);
+    Files.setLastModifiedTime(filesystem.resolve(file), AN_HOUR_AGO);
+  }
+
+  private BasicFileAttributes attributes(Path path) throws IOException {
+    return filesystem.readAttributes(path, BasicFileAttributes.class);
+  }
+
+  @Test
+  public void hashIsReloadedAfterFlush() throws Exception {
+    PersistentFileHashStore store = PersistentFileHashStore.forFilesystem(filesystem);
+    store.put(file, attributes(file), HASH);
+    store.flush();
+
+    PersistentFileHashStore reloaded = PersistentFileHashStore.forFilesystem(filesystem);
+    assertEquals(Optional.of(HASH), reloaded.get(file, attributes(file)));
+  }
+
+  @Test
+  public void appendedHashesAreReloaded() throws Exception {
+    Path other = Paths.get("other");
+    filesystem.writeContentsToPath("other contents", other);
+    Files.setLastModifiedTime(filesystem.resolve(other), AN_HOUR_AGO);
+    HashCode otherHash = Hashing.sha1().hashInt(43);
+
+    PersistentFileHashStore store = PersistentFileHashStore.forFilesystem(filesystem);
+    store.put(file, attributes(file), HASH);
+    store.flush();
+    store.put(other, attributes(other), otherHash);
+    store.flush();
+
+    PersistentFileHashStore reloaded = PersistentFileHashStore.forFilesystem(filesystem);
+    assertEquals(2, reloaded.size());
+    assertEquals(Optional.of(HASH), reloaded.get(file, attributes(file)));
+    assertEquals(Optional.of(otherHash), reloaded.get(other, attributes(other)));
+  }
+
+  @Test
+  public void hashIsNotUsedOnceFileChanges() throws Exception {
+    PersistentFileHashStore store = PersistentFileHashStore.forFilesystem(filesystem);
+    store.put(file, attributes(file), HASH);
+
+    filesystem.writeContentsToPath("changed contents", file);
+    Files.setLastModifiedTime(filesystem.resolve(file), AN_HOUR_AGO);
+    assertEquals(Optional.empty(), store.get(file, attributes(file)));
+  }
+
+  @Test
+  public void hashIsNotUsedOnceModificationTimeChanges() throws Exception {
+    PersistentFileHashStore store = PersistentFileHashStore.forFilesystem(filesystem);
+    store.put(file, attributes(file), HASH);
+
+    Files.setLastModifiedTime(
+        filesystem.resolve(file), FileTime.fromMillis(AN_HOUR_AGO.toMillis() + 1000));
+    assertEquals(Optional.empty(), store.get(file, attributes(file)));
+  }
+
+  @Test
+  public void recentlyModifiedFilesAreNotRecorded() throws Exception {
+    Files.setLastModifiedTime(
+        filesystem.resolve(file), FileTime.fromMillis(System.currentTimeMillis()));
+    PersistentFileHashStore store = PersistentFileHashStore.forFilesystem(filesystem);
+    store.put(file, attributes(file), HASH);
+
+    assertEquals(Optional.empty(), store.get(file, attributes(file)));
+  }
+
+  @Test
+  public void unreadableStoreIsDiscarded() throws Exception {
+    Path storePath = filesystem.getBuckPaths().getFileHashCacheDir().resolve("hashes");
+    filesystem.mkdirs(storePath.getParent());
+    filesystem.writeContentsToPath("garbage", storePath);
+
+    PersistentFileHashStore store = PersistentFileHashStore.forFilesystem(filesystem);
+    assertEquals(Optional.empty(), store.get(file, attributes(file)));
+    store.put(file, attributes(file), HASH);
+    store.flush();
+
+    PersistentFileHashStore reloaded = PersistentFileHashStore.forFilesystem(filesystem);
+    assertEquals(Optional.of(HASH), reloaded.get(file, attributes(file)));
+  }
+
+  @Test
+  public void truncatedRecordIsDropped() throws Exception {
+    Path other = Paths.get("other");
+    filesystem.writeContentsToPath("other contents", other);
+    Files.setLastModifiedTime(filesystem.resolve(other), AN_HOUR_AGO);
+
+    PersistentFileHashStore store = PersistentFileHashStore.forFilesystem(filesystem);
+    store.put(file, attributes(file), HASH);
+    store.flush();
+    store.put(other, attributes(other), HASH);
+    store.flush();
+    Path storePath = filesystem.getBuckPaths().getFileHashCacheDir().resolve("hashes");
+    byte[] contents = Files.readAllBytes(filesystem.resolve(storePath));
+    Files.write(filesystem.resolve(storePath), Arrays.copyOf(contents, contents.length - 3));
+
+    PersistentFileHashStore reloaded = PersistentFileHashStore.forFilesystem(filesystem);
+    assertEquals(1, reloaded.size());
+    reloaded.put(other, attributes(other), HASH);
+    reloaded.flush();
+    assertEquals(2, PersistentFileHashStore.forFilesystem(filesystem).size());
+  }
+
+  @Test
+  public void fileHashCacheUsesStoredHash() throws Exception {
+    PersistentFileHashStore store = PersistentFileHashStore.forFilesystem(filesystem);
+    store.put(file, attributes(file), HASH);
+
+    DefaultFileHashCache cache =
+        DefaultFileHashCache.createDefaultFileHashCache(
+            filesystem, FileHashCacheMode.DEFAULT, Optional.of(store));
+    assertEquals(HASH, cache.get(file));
+  }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.util.concurrent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+
+public class MostExecutorsTest {
+
+  @Test
+  public void boundedExecutorMakesSubmittersWaitForRoomWhenFull() throws Exception {
+    ExecutorService executor =
+        MostExecutors.newSingleThreadExecutor(
+            new MostExecutors.NamedThreadFactory("bounded"), /* maxQueuedTasks */ 1);
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    AtomicInteger ran = new AtomicInteger();
+    Thread submitter =
+        new Thread(
+            () -> {
+              // The first task waits in the queue, the second one waits for room.
+              executor.execute(ran::incrementAndGet);
+              executor.execute(ran::incrementAndGet);
+            });
+    try {
+      executor.execute(
+          () -> {
+            started.countDown();
+            try {
+              release.await();
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+            }
+            ran.incrementAndGet();
+          });
+      assertTrue(started.await(5, TimeUnit.SECONDS));
+
+      submitter.start();
+      while (submitter.getState() != Thread.State.WAITING) {
+        assertTrue(submitter.isAlive());
+        Thread.sleep(1);
+      }
+      release.countDown();
+      submitter.join(TimeUnit.SECONDS.toMillis(5));
+      assertFalse(submitter.isAlive());
+    } finally {
+      release.countDown();
+      executor.shutdown();
+      assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+    }
+    assertEquals(3, ran.get());
+
+    // Tasks submitted after shutdown are discarded.
+    executor.execute(ran::incrementAndGet);
+    assertEquals(3, ran.get());
+  }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.util.concurrent;
+
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import org.junit.Test;
+
+public class MpscRingBufferTest {
+
+  @Test
+  public void capacityIsRoundedUpToAPowerOfTwo() {
+    assertThat(new MpscRingBuffer<Integer>(2).capacity(), is(2));
+    assertThat(new MpscRingBuffer<Integer>(5).capacity(), is(8));
+    assertThat(new MpscRingBuffer<Integer>(64).capacity(), is(64));
+  }
+
+  @Test
+  public void ringOfASingleItemDoesNotOverwriteItemsNotPolledYet() {
+    MpscRingBuffer<Integer> ring = new MpscRingBuffer<>(1);
+
+    assertThat(ring.offer(1), is(true));
+    assertThat(ring.offer(2), is(true));
+    assertThat(ring.offer(3), is(false));
+    assertThat(ring.poll(), is(1));
+    assertThat(ring.poll(), is(2));
+    assertThat(ring.poll(), is(nullValue()));
+  }
+
+  @Test
+  public void offerFailsWhenFullAndSucceedsOnceAnItemIsPolled() {
+    MpscRingBuffer<Integer> ring = new MpscRingBuffer<>(2);
+
+    assertThat(ring.offer(1), is(true));
+    assertThat(ring.offer(2), is(true));
+    assertThat(ring.offer(3), is(false));
+    assertThat(ring.size(), is(2));
+
+    assertThat(ring.poll(), is(1));
+    assertThat(ring.offer(3), is(true));
+    assertThat(ring.poll(), is(2));
+    assertThat(ring.poll(), is(3));
+    assertThat(ring.poll(), is(nullValue()));
+    assertThat(ring.isEmpty(), is(true));
+  }
+
+  @Test
+  public void itemsOfEachProducerArePolledInOrder() throws InterruptedException {
+    int producers = 4;
+    int itemsPerProducer = 10000;
+    MpscRingBuffer<int[]> ring = new MpscRingBuffer<>(16);
+    CountDownLatch start = new CountDownLatch(1);
+    List<Thread> threads = new ArrayList<>();
+    for (int p = 0; p < producers; p++) {
+      int producer = p;
+      Thread thread =
+          new Thread(
+              () -> {
+                try {
+                  start.await();
+                } catch (InterruptedException e) {
+                  return;
+                }
+                for (int i = 0; i < itemsPerProducer; i++) {
+                  int[] item = {producer, i};
+                  while (!ring.offer(item)) {
+                    Thread.yield();
+                  }
+                }
+              });
+      thread.start();
+      threads.add(thread);
+    }
+    start.countDown();
+
+    int[] next = new int[producers];
+    int received = 0;
+    List<String> outOfOrder = new ArrayList<>();
+    while (received < producers * itemsPerProducer) {
+      int[] item = ring.poll();
+      if (item == null) {
+        Thread.yield();
+        continue;
+      }
+      if (item[1] != next[item[0]]) {
+        outOfOrder.add(item[0] + ":" + item[1]);
+      }
+      next[item[0]] = item[1] + 1;
+      received++;
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    assertThat(outOfOrder, empty());
+    assertThat(ring.poll(), is(nullValue()));
+  }
+}
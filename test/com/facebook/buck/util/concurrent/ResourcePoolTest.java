@@ -18,8 +18,12 @@ package com.facebook.buck.util.concurrent;
 
 import static org.hamcrest.Matchers.equalTo;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertThat;
 
+import com.facebook.buck.util.timing.Clock;
+import com.facebook.buck.util.timing.SettableFakeClock;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListeningExecutorService;
@@ -27,12 +31,15 @@ import com.google.common.util.concurrent.MoreExecutors;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Optional;
 import java.util.Set;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 import org.hamcrest.Matchers;
@@ -153,6 +160,130 @@ public class ResourcePoolTest {
     }
   }
 
+  @Test
+  public void parkedResourceWithHighestAffinityIsUsed() throws Exception {
+    try (Fixture f = new Fixture(/* maxResources */ 2)) {
+      ListeningExecutorService executorService = MoreExecutors.newDirectExecutorService();
+      // Use both resources at once, so that both end up parked, resource 1 first.
+      f.getPool()
+          .scheduleOperationWithResource(
+              r -> f.getPool().scheduleOperationWithResource(inner -> inner, executorService).get(),
+              executorService)
+          .get();
+      assertThat(f.getCreatedResources().get(), equalTo(2));
+
+      TestResource preferred =
+          f.getPool()
+              .scheduleOperationWithResource(
+                  r -> r, r -> r.getTestResourceId() == 0 ? 1 : 0, executorService)
+              .get();
+      TestResource unpreferred =
+          f.getPool().scheduleOperationWithResource(r -> r, executorService).get();
+
+      assertThat(preferred.getTestResourceId(), equalTo(0));
+      // Without a preference the resource parked the longest is used.
+      assertThat(unpreferred.getTestResourceId(), equalTo(1));
+    }
+  }
+
+  @Test
+  public void wornOutResourceIsRetired() throws Exception {
+    try (Fixture f =
+        new Fixture(
+            /* maxResources */ 1,
+            r -> r.getTestResourceId() == 0,
+            Optional.empty(),
+            SettableFakeClock.DO_NOT_CARE)) {
+      ListeningExecutorService executorService = MoreExecutors.newDirectExecutorService();
+      TestResource first = f.getPool().scheduleOperationWithResource(r -> r, executorService).get();
+      TestResource second =
+          f.getPool().scheduleOperationWithResource(r -> r, executorService).get();
+      TestResource third = f.getPool().scheduleOperationWithResource(r -> r, executorService).get();
+
+      assertThat(first.getTestResourceId(), equalTo(0));
+      assertThat(second.getTestResourceId(), equalTo(1));
+      assertThat(third.getTestResourceId(), equalTo(1));
+      assertThat(f.getClosedResources(), equalTo(ImmutableSet.of(first)));
+    }
+  }
+
+  @Test
+  public void retiredResourcesAreCheckedAndClosedOutsideOfThePoolLock() throws Exception {
+    try (Fixture f =
+        new Fixture(
+            /* maxResources */ 1, r -> true, Optional.of(100L), SettableFakeClock.DO_NOT_CARE)) {
+      List<ListenableFuture<TestResource>> futures = new ArrayList<>();
+      for (int i = 0; i < 3; i++) {
+        futures.add(f.getPool().scheduleOperationWithResource(r -> r, f.getExecutorService()));
+      }
+      Futures.allAsList(futures).get();
+
+      assertThat(getIds(f.getClosedResources()), equalTo(ImmutableSet.of(0, 1, 2)));
+      assertFalse(f.wasPoolLockHeldByResourceCallback());
+    }
+  }
+
+  @Test
+  public void idleResourcesAreClosedButTheLastOne() throws Exception {
+    SettableFakeClock clock = new SettableFakeClock(1000, 0);
+    try (Fixture f =
+        new Fixture(/* maxResources */ 3, r -> false, Optional.of(100L), clock)) {
+      ListeningExecutorService executorService = MoreExecutors.newDirectExecutorService();
+      // Use all three resources at once, they get parked in the order 2, 1, 0.
+      f.getPool()
+          .scheduleOperationWithResource(
+              r ->
+                  f.getPool()
+                      .scheduleOperationWithResource(
+                          inner ->
+                              f.getPool()
+                                  .scheduleOperationWithResource(
+                                      innermost -> innermost, executorService)
+                                  .get(),
+                          executorService)
+                      .get(),
+              executorService)
+          .get();
+      assertThat(f.getCreatedResources().get(), equalTo(3));
+      assertThat(f.getClosedResources(), Matchers.empty());
+
+      clock.advanceTimeNanos(150);
+      TestResource used = f.getPool().scheduleOperationWithResource(r -> r, executorService).get();
+      assertThat(used.getTestResourceId(), equalTo(2));
+      assertThat(getIds(f.getClosedResources()), equalTo(ImmutableSet.of(0, 1)));
+
+      // The last resource is kept however long it was idle.
+      clock.advanceTimeNanos(150);
+      used = f.getPool().scheduleOperationWithResource(r -> r, executorService).get();
+      assertThat(used.getTestResourceId(), equalTo(2));
+      assertThat(getIds(f.getClosedResources()), equalTo(ImmutableSet.of(0, 1)));
+    }
+  }
+
+  @Test
+  public void idleResourcesAreClosedWhileNothingIsReturned() throws Exception {
+    SettableFakeClock clock = new SettableFakeClock(1000, 0);
+    try (Fixture f =
+        new Fixture(/* maxResources */ 2, r -> false, Optional.of(100L), clock)) {
+      ListeningExecutorService executorService = MoreExecutors.newDirectExecutorService();
+      // Use both resources at once, they get parked in the order 1, 0.
+      f.getPool()
+          .scheduleOperationWithResource(
+              r -> f.getPool().scheduleOperationWithResource(inner -> inner, executorService).get(),
+              executorService)
+          .get();
+      assertThat(f.getClosedResources(), Matchers.empty());
+
+      clock.advanceTimeNanos(150);
+      f.getPool().closeIdleResources();
+      assertThat(getIds(f.getClosedResources()), equalTo(ImmutableSet.of(1)));
+    }
+  }
+
+  private static Set<Integer> getIds(Set<TestResource> resources) {
+    return resources.stream().map(TestResource::getTestResourceId).collect(Collectors.toSet());
+  }
+
   private static class TestResource implements AutoCloseable {
     private final int id;
 
@@ -177,6 +308,7 @@ public class ResourcePoolTest {
     private final ListeningExecutorService executorService;
     private final Set<TestResource> createdResourcesSet;
     private final Set<TestResource> closedResourcesSet;
+    private final AtomicBoolean poolLockHeldByResourceCallback;
 
     public Fixture() {
       this(/* maxResources */ 2, ResourcePool.ResourceUsageErrorPolicy.RECYCLE);
@@ -194,10 +326,41 @@ public class ResourcePoolTest {
         int maxResources,
         Consumer<Integer> beforeResourceCreatedFunction,
         ResourcePool.ResourceUsageErrorPolicy errorPolicy) {
+      this(
+          maxResources,
+          beforeResourceCreatedFunction,
+          errorPolicy,
+          resource -> false,
+          Optional.empty(),
+          SettableFakeClock.DO_NOT_CARE);
+    }
+
+    public Fixture(
+        int maxResources,
+        Predicate<TestResource> isWornOut,
+        Optional<Long> maxIdleNanos,
+        Clock clock) {
+      this(
+          maxResources,
+          (id) -> {},
+          ResourcePool.ResourceUsageErrorPolicy.RECYCLE,
+          isWornOut,
+          maxIdleNanos,
+          clock);
+    }
+
+    public Fixture(
+        int maxResources,
+        Consumer<Integer> beforeResourceCreatedFunction,
+        ResourcePool.ResourceUsageErrorPolicy errorPolicy,
+        Predicate<TestResource> isWornOut,
+        Optional<Long> maxIdleNanos,
+        Clock clock) {
       this.maxResources = maxResources;
       this.createdResources = new AtomicInteger(0);
       this.createdResourcesSet = new HashSet<>();
       this.closedResourcesSet = new HashSet<>();
+      this.poolLockHeldByResourceCallback = new AtomicBoolean(false);
       this.pool =
           new ResourcePool<>(
               /* maxResources */ maxResources,
@@ -209,6 +372,7 @@ public class ResourcePoolTest {
                     new TestResource(id) {
                       @Override
                       public void close() throws Exception {
+                        checkPoolLockIsNotHeld();
                         synchronized (closedResourcesSet) {
                           closedResourcesSet.add(this);
                         }
@@ -218,11 +382,23 @@ public class ResourcePoolTest {
                   createdResourcesSet.add(testResource);
                 }
                 return testResource;
-              });
+              },
+              resource -> {
+                checkPoolLockIsNotHeld();
+                return isWornOut.test(resource);
+              },
+              maxIdleNanos,
+              clock);
       executorService =
           MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(maxResources));
     }
 
+    private void checkPoolLockIsNotHeld() {
+      if (Thread.holdsLock(pool)) {
+        poolLockHeldByResourceCallback.set(true);
+      }
+    }
+
     public ListeningExecutorService getExecutorService() {
       return executorService;
     }
@@ -235,6 +411,17 @@ public class ResourcePoolTest {
       return maxResources;
     }
 
+    public Set<TestResource> getClosedResources() {
+      synchronized (closedResourcesSet) {
+        return new HashSet<>(closedResourcesSet);
+      }
+    }
+
+    /** Operations run on a direct executor hold the lock of the pool which scheduled them. */
+    public boolean wasPoolLockHeldByResourceCallback() {
+      return poolLockHeldByResourceCallback.get();
+    }
+
     public ResourcePool<TestResource> getPool() {
       return pool;
     }
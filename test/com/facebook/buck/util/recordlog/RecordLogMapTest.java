@@ -0,0 +1,163 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.util.recordlog;
+
+import static org.junit.Assert.assertEquals;
+
+import com.facebook.buck.io.filesystem.ProjectFilesystem;
+import com.facebook.buck.io.filesystem.TestProjectFilesystems;
+import com.facebook.buck.testutil.integration.TemporaryPaths;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import com.google.common.hash.HashCode;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Optional;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class RecordLogMapTest {
+
+  @Rule public TemporaryPaths tmp = new TemporaryPaths();
+
+  private static final RecordLogMap.Codec<String, Long> CODEC =
+      new RecordLogMap.Codec<String, Long>() {
+        @Override
+        public void write(String key, Long value, DataOutputStream out) throws IOException {
+          out.writeUTF(key);
+          out.writeLong(value);
+        }
+
+        @Override
+        public Map.Entry<String, Long> read(DataInputStream in) throws IOException {
+          return Maps.immutableEntry(in.readUTF(), in.readLong());
+        }
+      };
+
+  private ProjectFilesystem filesystem;
+  private Path logPath;
+
+  @Before
+  public void setUp() throws Exception {
+    filesystem = TestProjectFilesystems.createProjectFilesystem(tmp.getRoot());
+    logPath = Paths.get("logs/test.log");
+  }
+
+  private RecordLogMap<String, Long> newMap() {
+    return newMap(Optional.empty());
+  }
+
+  private RecordLogMap<String, Long> newMap(Optional<HashCode> fingerprint) {
+    return new RecordLogMap<>(
+        new RecordLog(filesystem, logPath, "test map", 0x54455354, 1, 1024), fingerprint, CODEC);
+  }
+
+  @Test
+  public void entriesAreReloadedAfterSave() throws Exception {
+    RecordLogMap<String, Long> map = newMap();
+    map.put("a", 1L);
+    map.save();
+    map.put("b", 2L);
+    map.compute("a", (key, value) -> value + 10);
+    map.save();
+
+    RecordLogMap<String, Long> reloaded = newMap();
+    assertEquals(ImmutableMap.of("a", 11L, "b", 2L), reloaded.asMap());
+    // The first save created the log, the second appended to it.
+    assertEquals(3, reloaded.getRecordCount());
+  }
+
+  @Test
+  public void removalRewritesTheLog() throws Exception {
+    RecordLogMap<String, Long> map = newMap();
+    map.put("a", 1L);
+    map.put("b", 2L);
+    map.save();
+    map.remove("a");
+    map.save();
+
+    RecordLogMap<String, Long> reloaded = newMap();
+    assertEquals(ImmutableMap.of("b", 2L), reloaded.asMap());
+    assertEquals(1, reloaded.getRecordCount());
+  }
+
+  @Test
+  public void outdatedRecordsAreCompactedAway() throws Exception {
+    RecordLogMap<String, Long> map = newMap();
+    map.put("a", 0L);
+    map.save();
+    for (long i = 1; i <= 10000; i++) {
+      map.put("a", i);
+      map.save();
+    }
+
+    RecordLogMap<String, Long> reloaded = newMap();
+    assertEquals(ImmutableMap.of("a", 10000L), reloaded.asMap());
+    assertEquals(1, reloaded.getRecordCount());
+  }
+
+  @Test
+  public void recordCutShortIsDroppedAndTheLogRewritten() throws Exception {
+    RecordLogMap<String, Long> map = newMap();
+    map.put("a", 1L);
+    map.save();
+    map.put("b", 2L);
+    map.save();
+    byte[] contents = Files.readAllBytes(filesystem.resolve(logPath));
+    Files.write(filesystem.resolve(logPath), Arrays.copyOf(contents, contents.length - 3));
+
+    RecordLogMap<String, Long> reloaded = newMap();
+    assertEquals(ImmutableMap.of("a", 1L), reloaded.asMap());
+    reloaded.put("c", 3L);
+    reloaded.save();
+    assertEquals(ImmutableMap.of("a", 1L, "c", 3L), newMap().asMap());
+  }
+
+  @Test
+  public void unreadableLogIsDiscarded() throws Exception {
+    filesystem.mkdirs(logPath.getParent());
+    filesystem.writeContentsToPath("garbage", logPath);
+
+    RecordLogMap<String, Long> map = newMap();
+    assertEquals(ImmutableMap.of(), map.asMap());
+    map.put("a", 1L);
+    map.save();
+    assertEquals(ImmutableMap.of("a", 1L), newMap().asMap());
+  }
+
+  @Test
+  public void logWithAnotherFingerprintIsDiscarded() throws Exception {
+    HashCode fingerprint = HashCode.fromInt(1);
+    RecordLogMap<String, Long> map = newMap(Optional.of(fingerprint));
+    map.put("a", 1L);
+    map.save();
+    assertEquals(ImmutableMap.of("a", 1L), newMap(Optional.of(fingerprint)).asMap());
+
+    RecordLogMap<String, Long> other = newMap(Optional.of(HashCode.fromInt(2)));
+    assertEquals(ImmutableMap.of(), other.asMap());
+    // The log is replaced even though nothing was put.
+    other.save();
+    assertEquals(ImmutableMap.of(), newMap(Optional.of(fingerprint)).asMap());
+  }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.util.recordlog;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.facebook.buck.io.filesystem.ProjectFilesystem;
+import com.facebook.buck.io.filesystem.TestProjectFilesystems;
+import com.facebook.buck.testutil.integration.TemporaryPaths;
+import com.google.common.collect.ImmutableList;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class RecordLogTest {
+
+  @Rule public TemporaryPaths tmp = new TemporaryPaths();
+
+  private static final int MAGIC = 0x54455354;
+
+  private ProjectFilesystem filesystem;
+  private Path logPath;
+
+  @Before
+  public void setUp() throws Exception {
+    filesystem = TestProjectFilesystems.createProjectFilesystem(tmp.getRoot());
+    logPath = Paths.get("logs/test.log");
+  }
+
+  private RecordLog newLog(int version) {
+    return new RecordLog(filesystem, logPath, "test log", MAGIC, version, /* max size */ 16);
+  }
+
+  private static byte[] bytes(String string) {
+    return string.getBytes(UTF_8);
+  }
+
+  @Test
+  public void rewrittenAndAppendedRecordsAreReadInOrder() throws Exception {
+    RecordLog log = newLog(1);
+    try (RecordLog.Rewriter rewriter = log.newRewriter()) {
+      rewriter.getHeaderOutput().writeLong(42);
+      rewriter.writeRecord(bytes("a"));
+      rewriter.writeRecord(bytes("b"));
+      rewriter.commit();
+      assertEquals(2, rewriter.getRecordCount());
+      assertEquals(Files.size(filesystem.resolve(logPath)), rewriter.getSizeBytes());
+    }
+    log.append(ImmutableList.of(bytes("c"), bytes("d")));
+
+    try (RecordLog.Reader reader = newLog(1).newReader()) {
+      assertEquals(42, reader.getHeaderInput().readLong());
+      assertArrayEquals(bytes("a"), reader.readRecord());
+      long offset = reader.getOffset();
+      assertArrayEquals(bytes("b"), reader.readRecord());
+      assertArrayEquals(bytes("c"), reader.readRecord());
+      assertArrayEquals(bytes("d"), reader.readRecord());
+      assertNull(reader.readRecord());
+      assertFalse(reader.isTruncated());
+
+      try (RecordLog.Reader again = newLog(1).newReader()) {
+        again.skipTo(offset);
+        assertArrayEquals(bytes("b"), again.readRecord());
+      }
+    }
+  }
+
+  @Test
+  public void uncommittedRewriteLeavesTheLogAsItWas() throws Exception {
+    RecordLog log = newLog(1);
+    try (RecordLog.Rewriter rewriter = log.newRewriter()) {
+      rewriter.writeRecord(bytes("a"));
+      rewriter.commit();
+    }
+    try (RecordLog.Rewriter rewriter = log.newRewriter()) {
+      rewriter.writeRecord(bytes("b"));
+    }
+
+    try (RecordLog.Reader reader = log.newReader()) {
+      assertArrayEquals(bytes("a"), reader.readRecord());
+      assertNull(reader.readRecord());
+    }
+    assertEquals(1, filesystem.getDirectoryContents(logPath.getParent()).size());
+  }
+
+  @Test
+  public void recordCutShortEndsTheLog() throws Exception {
+    RecordLog log = newLog(1);
+    try (RecordLog.Rewriter rewriter = log.newRewriter()) {
+      rewriter.writeRecord(bytes("a"));
+      rewriter.writeRecord(bytes("bbbb"));
+      rewriter.commit();
+    }
+    byte[] contents = Files.readAllBytes(filesystem.resolve(logPath));
+    Files.write(filesystem.resolve(logPath), Arrays.copyOf(contents, contents.length - 3));
+
+    try (RecordLog.Reader reader = log.newReader()) {
+      assertArrayEquals(bytes("a"), reader.readRecord());
+      assertNull(reader.readRecord());
+      assertTrue(reader.isTruncated());
+    }
+  }
+
+  @Test(expected = IOException.class)
+  public void corruptRecordIsRejected() throws Exception {
+    RecordLog log = newLog(1);
+    try (RecordLog.Rewriter rewriter = log.newRewriter()) {
+      rewriter.writeRecord(bytes("abcd"));
+      rewriter.commit();
+    }
+    byte[] contents = Files.readAllBytes(filesystem.resolve(logPath));
+    contents[contents.length - 6] ^= 0xFF;
+    Files.write(filesystem.resolve(logPath), contents);
+
+    try (RecordLog.Reader reader = log.newReader()) {
+      reader.readRecord();
+    }
+  }
+
+  @Test(expected = IOException.class)
+  public void logOfAnotherVersionIsRejected() throws Exception {
+    try (RecordLog.Rewriter rewriter = newLog(1).newRewriter()) {
+      rewriter.commit();
+    }
+    newLog(2).newReader().close();
+  }
+
+  @Test(expected = IOException.class)
+  public void recordsLargerThanTheLimitAreRejected() throws Exception {
+    try (RecordLog.Rewriter rewriter = newLog(1).newRewriter()) {
+      rewriter.writeRecord(new byte[17]);
+    }
+  }
+}
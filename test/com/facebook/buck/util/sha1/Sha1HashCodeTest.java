@@ -24,6 +24,7 @@ import com.google.common.base.Strings;
 import com.google.common.hash.HashCode;
 import com.google.common.hash.Hasher;
 import com.google.common.hash.Hashing;
+import com.google.common.io.BaseEncoding;
 import org.junit.Test;
 
 public class Sha1HashCodeTest {
@@ -88,6 +89,16 @@ public class Sha1HashCodeTest {
     assertEquals(expectedHash, observedHash);
   }
 
+  @Test
+  public void testCopyTo() {
+    Sha1HashCode sha1 = Sha1HashCode.of("a002b39af204cdfaa5fdb67816b13867c32ac52c");
+    byte[] buffer = new byte[22];
+    assertEquals(21, sha1.copyTo(buffer, 1));
+    assertEquals(
+        "00a002b39af204cdfaa5fdb67816b13867c32ac52c00",
+        BaseEncoding.base16().lowerCase().encode(buffer));
+  }
+
   @Test
   public void testAsHashCode() {
     Sha1HashCode sha1HashCode = Sha1HashCode.of("a002b39af204cdfaa5fdb67816b13867c32ac52c");
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.util.zip;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+import org.hamcrest.Matchers;
+import org.junit.Test;
+
+public class Lz4FrameStreamTest {
+
+  @Test
+  public void testEmptyFrame() throws IOException {
+    byte[] compressed = compress(new byte[0]);
+    // Magic, flags, block descriptor, header checksum and end mark.
+    assertArrayEquals(
+        new byte[] {0x04, 0x22, 0x4D, 0x18, 0x60, 0x60, 0x51, 0, 0, 0, 0}, compressed);
+    assertArrayEquals(new byte[0], decompress(compressed));
+  }
+
+  @Test
+  public void testHeaderChecksumMatchesXxHash() {
+    // The descriptor checksum of the flags 0x64 and 0x40, as computed by the lz4 tool.
+    assertEquals((byte) 0xA7, (byte) (Lz4Block.xxHash32(new byte[] {0x64, 0x40}, 0, 2) >>> 8));
+  }
+
+  @Test
+  public void testCompressibleDataRoundTrips() throws IOException {
+    StringBuilder builder = new StringBuilder();
+    for (int i = 0; i < 10000; i++) {
+      builder.append("line ").append(i % 100).append(" of some repetitive text\n");
+    }
+    byte[] data = builder.toString().getBytes(Charsets.UTF_8);
+
+    byte[] compressed = compress(data);
+    assertThat(compressed.length, Matchers.lessThan(data.length / 4));
+    assertArrayEquals(data, decompress(compressed));
+  }
+
+  @Test
+  public void testIncompressibleDataRoundTripsAcrossBlocks() throws IOException {
+    byte[] data = new byte[Lz4FrameOutputStream.BLOCK_SIZE * 2 + 12345];
+    new Random(42).nextBytes(data);
+
+    byte[] compressed = compress(data);
+    assertThat(compressed.length, Matchers.lessThan(data.length + 64));
+    assertArrayEquals(data, decompress(compressed));
+  }
+
+  @Test
+  public void testOverlappingMatchesAndSingleByteWrites() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] data = new byte[100000];
+    Arrays.fill(data, 0, 50000, (byte) 'a');
+    new Random(0).nextBytes(Arrays.copyOfRange(data, 50000, 50100));
+    try (Lz4FrameOutputStream lz4 = new Lz4FrameOutputStream(out)) {
+      for (byte b : data) {
+        lz4.write(b);
+      }
+    }
+
+    try (InputStream in = new Lz4FrameInputStream(new ByteArrayInputStream(out.toByteArray()))) {
+      for (byte b : data) {
+        assertEquals(b & 0xFF, in.read());
+      }
+      assertEquals(-1, in.read());
+    }
+  }
+
+  @Test(expected = IOException.class)
+  public void testTruncatedFrameIsRejected() throws IOException {
+    byte[] data = new byte[100000];
+    new Random(42).nextBytes(data);
+    byte[] compressed = compress(data);
+    decompress(Arrays.copyOf(compressed, compressed.length - 100));
+  }
+
+  @Test(expected = IOException.class)
+  public void testOtherDataIsRejected() throws IOException {
+    decompress("not an lz4 frame".getBytes(Charsets.UTF_8));
+  }
+
+  private static byte[] compress(byte[] data) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (Lz4FrameOutputStream lz4 = new Lz4FrameOutputStream(out)) {
+      lz4.write(data);
+    }
+    return out.toByteArray();
+  }
+
+  private static byte[] decompress(byte[] compressed) throws IOException {
+    try (InputStream in = new Lz4FrameInputStream(new ByteArrayInputStream(compressed))) {
+      return ByteStreams.toByteArray(in);
+    }
+  }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.util.zip;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeThat;
+
+import com.facebook.buck.io.file.MoreFiles;
+import com.facebook.buck.io.file.MorePosixFilePermissions;
+import com.facebook.buck.io.filesystem.ProjectFilesystem;
+import com.facebook.buck.io.filesystem.TestProjectFilesystems;
+import com.facebook.buck.testutil.ZipArchive;
+import com.facebook.buck.testutil.integration.TemporaryPaths;
+import com.facebook.buck.util.environment.Platform;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.hamcrest.Matchers;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class StagedZipTest {
+  private static final byte[] DUMMY_FILE_CONTENTS = "BUCK Unzip Test String!\nNihao\n".getBytes();
+
+  @Rule public TemporaryPaths tmpFolder = new TemporaryPaths();
+
+  private Path zipFile;
+  private Path stagingDirectory;
+
+  @Before
+  public void setUp() {
+    zipFile = tmpFolder.getRoot().resolve("tmp.zip");
+    stagingDirectory = tmpFolder.getRoot().resolve("staging");
+  }
+
+  @Test
+  public void testStageAndExtract() throws Exception {
+    byte[] largeContents = new byte[1024 * 1024];
+    new Random(42).nextBytes(largeContents);
+    try (ZipArchive zipArchive = new ZipArchive(zipFile, true)) {
+      zipArchive.add("1.bin", DUMMY_FILE_CONTENTS);
+      zipArchive.add("subdir/2.bin", largeContents);
+      zipArchive.addDir("emptydir");
+    }
+
+    Path extractFolder = tmpFolder.newFolder();
+    ProjectFilesystem filesystem = TestProjectFilesystems.createProjectFilesystem(extractFolder);
+    ImmutableList<Path> result;
+    try (InputStream input = Files.newInputStream(zipFile);
+        StagedZip stagedZip = StagedZip.stage(input, stagingDirectory)) {
+      assertEquals(
+          ImmutableSet.of("1.bin", "subdir/", "subdir/2.bin", "emptydir/"),
+          stagedZip.getEntryNames());
+      // Nothing is written to the destination until the archive is extracted.
+      assertFalse(Files.exists(extractFolder.resolve("1.bin")));
+      result = stagedZip.extractTo(filesystem, Unzip.ExistingFileMode.OVERWRITE);
+    }
+
+    assertArrayEquals(DUMMY_FILE_CONTENTS, Files.readAllBytes(extractFolder.resolve("1.bin")));
+    assertArrayEquals(largeContents, Files.readAllBytes(extractFolder.resolve("subdir/2.bin")));
+    assertTrue(Files.isDirectory(extractFolder.resolve("emptydir")));
+    assertEquals(ImmutableList.of(Paths.get("1.bin"), Paths.get("subdir/2.bin")), result);
+    assertFalse(Files.exists(stagingDirectory));
+  }
+
+  @Test
+  public void testStagePreservesExecutePermissionsAndModificationTime() throws Exception {
+    final long time = ZipConstants.getFakeTime() / 1000 * 1000;
+
+    // Stored entries with their sizes in the local header can be read from a stream too.
+    try (ZipArchiveOutputStream zip = new ZipArchiveOutputStream(zipFile.toFile())) {
+      ZipArchiveEntry entry = new ZipArchiveEntry("test.exe");
+      entry.setUnixMode(
+          (int) MorePosixFilePermissions.toMode(PosixFilePermissions.fromString("r-x------")));
+      entry.setSize(DUMMY_FILE_CONTENTS.length);
+      entry.setMethod(ZipEntry.STORED);
+      entry.setTime(time);
+      zip.putArchiveEntry(entry);
+      zip.write(DUMMY_FILE_CONTENTS);
+      zip.closeArchiveEntry();
+    }
+
+    Path extractFolder = tmpFolder.newFolder();
+    try (InputStream input = Files.newInputStream(zipFile);
+        StagedZip stagedZip = StagedZip.stage(input, stagingDirectory)) {
+      stagedZip.extractTo(
+          TestProjectFilesystems.createProjectFilesystem(extractFolder),
+          Unzip.ExistingFileMode.OVERWRITE);
+    }
+
+    Path exe = extractFolder.resolve("test.exe");
+    assertArrayEquals(DUMMY_FILE_CONTENTS, Files.readAllBytes(exe));
+    assertThat(Files.getLastModifiedTime(exe).toMillis(), Matchers.equalTo(time));
+    assertTrue(Files.isExecutable(exe));
+  }
+
+  @Test
+  public void testStageSymlink() throws Exception {
+    assumeThat(Platform.detect(), Matchers.is(Matchers.not(Platform.WINDOWS)));
+
+    try (ZipArchiveOutputStream zip = new ZipArchiveOutputStream(zipFile.toFile())) {
+      ZipArchiveEntry entry = new ZipArchiveEntry("link.txt");
+      entry.setUnixMode((int) MoreFiles.S_IFLNK);
+      String target = "target.txt";
+      entry.setSize(target.getBytes(Charsets.UTF_8).length);
+      entry.setMethod(ZipEntry.STORED);
+      zip.putArchiveEntry(entry);
+      zip.write(target.getBytes(Charsets.UTF_8));
+      zip.closeArchiveEntry();
+    }
+
+    Path extractFolder = tmpFolder.newFolder();
+    try (InputStream input = Files.newInputStream(zipFile);
+        StagedZip stagedZip = StagedZip.stage(input, stagingDirectory)) {
+      stagedZip.extractTo(
+          TestProjectFilesystems.createProjectFilesystem(extractFolder),
+          Unzip.ExistingFileMode.OVERWRITE);
+    }
+
+    Path link = extractFolder.resolve("link.txt");
+    assertTrue(Files.isSymbolicLink(link));
+    assertThat(Files.readSymbolicLink(link).toString(), Matchers.equalTo("target.txt"));
+  }
+
+  @Test
+  public void testTruncatedArchiveIsRejectedAndCleanedUp() throws Exception {
+    try (ZipArchive zipArchive = new ZipArchive(zipFile, true)) {
+      zipArchive.add("1.bin", DUMMY_FILE_CONTENTS);
+      zipArchive.add("2.bin", DUMMY_FILE_CONTENTS);
+    }
+    byte[] contents = Files.readAllBytes(zipFile);
+
+    try (InputStream input =
+        new ByteArrayInputStream(Arrays.copyOf(contents, contents.length - 10))) {
+      StagedZip.stage(input, stagingDirectory).close();
+      fail("Truncated archive should not be staged.");
+    } catch (IOException e) {
+      assertFalse(Files.exists(stagingDirectory));
+    }
+  }
+}